@@ -33,6 +33,7 @@ import au.com.gaiaresources.bdrs.model.index.IndexTask;
 import au.com.gaiaresources.bdrs.model.index.IndexType;
 import au.com.gaiaresources.bdrs.model.index.IndexUtil;
 import au.com.gaiaresources.bdrs.model.portal.Portal;
+import au.com.gaiaresources.bdrs.search.IndexProgress;
 import au.com.gaiaresources.bdrs.search.SearchService;
 import au.com.gaiaresources.bdrs.security.Role;
 import au.com.gaiaresources.bdrs.util.DateFormatter;
@@ -70,6 +71,7 @@ public class AdminDataIndexController extends AbstractController {
     public static final String INDEX_SCHEDULE_VIEW_NAME = "dataIndexSchedule";
     public static final String INDEX_SCHEDULE_LIST_URL = "/admin/index/dataIndexListing.htm";
     public static final String INDEX_SCHEDULE_LIST_VIEW_NAME = "dataIndexScheduleList";
+    public static final String INDEX_PROGRESS_URL = "/admin/index/indexProgress.htm";
     
     /*
      * Parameter name constants.
@@ -461,12 +463,11 @@ public class AdminDataIndexController extends AbstractController {
             }
             if (schedule.isFullRebuild()) {
                 if (clazz != null) {
-                    searchService.deleteIndex(clazz, portal);
+                    searchService.rebuildIndex(clazz, portal);
                 } else {
-                    searchService.deleteIndexes(portal);
+                    searchService.rebuildIndexes(portal);
                 }
-            }
-            if (clazz != null) {
+            } else if (clazz != null) {
                 searchService.createIndex(clazz, portal);
             } else {
                 searchService.createIndexes(portal);
@@ -477,5 +478,24 @@ public class AdminDataIndexController extends AbstractController {
             array.add(schedule.flatten());
         }
         writeJson(request, response, array.toString());
-    } 
+    }
+
+    /**
+     * Writes the progress of the index rebuilds of the portal as JSON, with
+     * the number of entities indexed, the elapsed time and the estimated time
+     * remaining in milliseconds.
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    @RolesAllowed({Role.ADMIN, Role.ROOT})
+    @RequestMapping(value = INDEX_PROGRESS_URL, method = RequestMethod.GET)
+    public void indexProgress(HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
+        JSONArray array = new JSONArray();
+        for (IndexProgress progress : searchService.getIndexProgress(getRequestContext().getPortal())) {
+            array.add(progress.flatten());
+        }
+        writeJson(request, response, array.toString());
+    }
 }
@@ -0,0 +1,67 @@
+package au.com.gaiaresources.bdrs.controller.admin;
+
+import java.io.IOException;
+
+import javax.annotation.security.RolesAllowed;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import au.com.gaiaresources.bdrs.controller.AbstractController;
+import au.com.gaiaresources.bdrs.file.FileService;
+import au.com.gaiaresources.bdrs.json.JSONObject;
+import au.com.gaiaresources.bdrs.model.grid.GridService;
+import au.com.gaiaresources.bdrs.security.Role;
+
+/**
+ * Reports the depth and lag of the background work queues so that operators
+ * can see whether the grid and thumbnail workers are keeping up.
+ */
+@Controller
+public class AdminQueueStatusController extends AbstractController {
+
+    public static final String QUEUE_STATUS_URL = "/admin/queueStatus.htm";
+
+    @Autowired
+    private GridService gridService;
+
+    @Autowired
+    private FileService fileService;
+
+    /**
+     * Writes the status of the grid update and thumbnail queues as JSON.
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    @RolesAllowed({Role.ADMIN, Role.ROOT})
+    @RequestMapping(value = QUEUE_STATUS_URL, method = RequestMethod.GET)
+    public void queueStatus(HttpServletRequest request,
+                            HttpServletResponse response) throws IOException {
+        JSONObject grid = new JSONObject();
+        grid.put("queueDepth", gridService.getQueueDepth());
+        grid.put("queueLagMillis", gridService.getQueueLagMillis());
+        grid.put("lastBatchLagMillis", gridService.getLastBatchLagMillis());
+        grid.put("processedRecordCount", gridService.getProcessedRecordCount());
+        grid.put("coalescedRecordCount", gridService.getCoalescedRecordCount());
+        grid.put("pendingCoalescedRecordCount", gridService.getPendingCoalescedRecordCount());
+        grid.put("coalescedCellCount", gridService.getCoalescedCellCount());
+
+        JSONObject thumbnail = new JSONObject();
+        thumbnail.put("queueDepth", fileService.getThumbnailQueueDepth());
+        thumbnail.put("inFlightCount", fileService.getThumbnailInFlightCount());
+        thumbnail.put("generatedCount", fileService.getThumbnailCount());
+        thumbnail.put("generationMillis", fileService.getThumbnailMillis());
+        thumbnail.put("sharedCount", fileService.getSharedThumbnailCount());
+        thumbnail.put("failureCount", fileService.getThumbnailFailureCount());
+
+        JSONObject status = new JSONObject();
+        status.put("grid", grid);
+        status.put("thumbnail", thumbnail);
+        writeJson(request, response, status.toString());
+    }
+}
@@ -2,7 +2,10 @@ package au.com.gaiaresources.bdrs.controller.bulkdata;
 
 import au.com.gaiaresources.bdrs.attribute.AttributeDictionaryFactory;
 import au.com.gaiaresources.bdrs.controller.AbstractController;
+import au.com.gaiaresources.bdrs.controller.job.JobController;
 import au.com.gaiaresources.bdrs.deserialization.record.*;
+import au.com.gaiaresources.bdrs.model.job.Job;
+import au.com.gaiaresources.bdrs.model.job.JobType;
 import au.com.gaiaresources.bdrs.model.method.CensusMethod;
 import au.com.gaiaresources.bdrs.model.method.CensusMethodDAO;
 import au.com.gaiaresources.bdrs.model.survey.Survey;
@@ -11,8 +14,12 @@ import au.com.gaiaresources.bdrs.model.taxa.TaxaDAO;
 import au.com.gaiaresources.bdrs.model.user.User;
 import au.com.gaiaresources.bdrs.security.Role;
 import au.com.gaiaresources.bdrs.service.bulkdata.*;
+import au.com.gaiaresources.bdrs.service.job.BulkDataUploadJobHandler;
+import au.com.gaiaresources.bdrs.service.job.JobService;
+import au.com.gaiaresources.bdrs.service.job.ShapefileUploadJobHandler;
 import au.com.gaiaresources.bdrs.spatial.*;
 import au.com.gaiaresources.bdrs.util.FileUtils;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.hibernate.HibernateException;
@@ -34,8 +41,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 @RolesAllowed( {Role.USER,Role.POWERUSER,Role.SUPERVISOR,Role.ADMIN} )
 @Controller
@@ -44,7 +53,10 @@ public class BulkDataController extends AbstractController {
     public static final String BULK_DATA_URL = "/bulkdata/bulkdata.htm";
     
     public static final String CONTENT_TYPE_XLS = "application/vnd.ms-excel";
+    public static final String CONTENT_TYPE_XLSX = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
     public static final String SHAPEFILE_UPLOAD_URL = "/bulkdata/uploadShapefile.htm";
+    public static final String UPLOAD_JOB_URL = "/bulkdata/uploadJob.htm";
+    public static final String SHAPEFILE_UPLOAD_JOB_URL = "/bulkdata/uploadShapefileJob.htm";
     public static final String SHAPEFILE_TEMPLATE_URL = "/bulkdata/shapefileTemplate.htm";
     public static final String SPREADSHEET_TEMPLATE_URL = "/bulkdata/spreadsheetTemplate.htm";
     
@@ -57,6 +69,22 @@ public class BulkDataController extends AbstractController {
     public static final String MSG_KEY_SHAPEFILE_UPLOAD_BAD_ZIP = "bdrs.bulkdata.shapefile.uploadBadZip";
     public static final String MSG_KEY_SHAPEFILE_UNSUPPORTED_CRS = "bdrs.bulkdata.shapefile.unsupportedCrs";
     public static final String MSG_KEY_SHAPEFILE_EMPTY = "bdrs.bulkdata.shapefile.emptyShapefile";
+
+    /**
+     * The session attribute holding the progress of a spreadsheet upload that
+     * failed after some of its records were saved.
+     */
+    public static final String SESSION_KEY_UPLOAD_CHECKPOINT = "bulkDataUploadCheckpoint";
+    /**
+     * The request parameter that saves all of the records of a spreadsheet
+     * in one transaction, so that either all or none of them are saved.
+     */
+    public static final String PARAM_ALL_OR_NOTHING = "allOrNothing";
+    /**
+     * The request parameter that resumes an earlier upload of the same
+     * spreadsheet, skipping the records it saved.
+     */
+    public static final String PARAM_RESUME = "resume";
     
     private Logger log = Logger.getLogger(getClass());
 
@@ -72,6 +100,9 @@ public class BulkDataController extends AbstractController {
     @Autowired
     private TaxaDAO taxaDAO;
 
+    @Autowired
+    private JobService jobService;
+
     @RolesAllowed({Role.ADMIN, Role.ROOT, Role.POWERUSER, Role.SUPERVISOR, Role.USER})
     @RequestMapping(value = BULK_DATA_URL, method = RequestMethod.GET)
     public ModelAndView bulkdata(HttpServletRequest request,
@@ -125,18 +156,24 @@ public class BulkDataController extends AbstractController {
         boolean fileError = false;
         boolean parseError = false;
         boolean databaseError = false;
+        BulkUploadCheckpoint checkpoint = null;
 
         try {
             MultipartFile uploadedFile = req.getFile("spreadsheet");
 
             if(uploadedFile != null) {
-                if(CONTENT_TYPE_XLS.equals(uploadedFile.getContentType())) {
+                if(CONTENT_TYPE_XLS.equals(uploadedFile.getContentType()) ||
+                        CONTENT_TYPE_XLSX.equals(uploadedFile.getContentType())) {
 
+                    String contentHash = getContentHash(uploadedFile);
                     InputStream inp = uploadedFile.getInputStream();
                     boolean createMissing = req.getParameter("createMissing") != null;
                     BulkUpload bulkUpload = bulkDataService.importBulkData(survey, inp);
                     view.addObject("bulkUpload", bulkUpload);
 
+                    checkpoint = getUploadCheckpoint(req, surveyPk, uploadedFile.getOriginalFilename(),
+                            contentHash, bulkUpload.getRecordUploadList().size());
+
                     if(bulkUpload.hasError()) {
                         parseError = true;
                         if(bulkUpload.getErrorCount() < BulkDataService.PARSE_ERROR_LIMIT) {
@@ -150,15 +187,20 @@ public class BulkDataController extends AbstractController {
                         }
                         log.warn(errorMessage);
                     } else {
+                        int chunkSize = req.getParameter(PARAM_ALL_OR_NOTHING) != null ?
+                                0 : AbstractBulkDataService.SAVE_CHUNK_SIZE;
                         bulkDataService.saveRecords(getRequestContext().getUser(),
-                                bulkUpload, createMissing);
+                                bulkUpload, createMissing, chunkSize, checkpoint);
+                        log.info(String.format("Saved %d records of %s in %d chunks (%.0f records/s)",
+                                checkpoint.getSavedRowCount(), checkpoint.getFileName(),
+                                checkpoint.getChunkCount(), checkpoint.getRowsPerSecond()));
                     }
 
                 } else {
                     // Failed to have the right content type
                     fileError = true;
-                    errorMessage = "The uploaded file was not an XLS file.";
-                    errorDescription = "Please retry your upload with a XLS file";
+                    errorMessage = "The uploaded file was not an XLS or XLSX file.";
+                    errorDescription = "Please retry your upload with a XLS or XLSX file";
                     log.warn(errorMessage);
                 }
             } else {
@@ -244,6 +286,17 @@ public class BulkDataController extends AbstractController {
             log.error(he.toString(), he);
         }
 
+        if (checkpoint != null) {
+            if (errorMessage.length() > 0 && checkpoint.getCommittedRowCount() > 0) {
+                // Uploading the same spreadsheet again may continue after the saved records.
+                req.getSession().setAttribute(SESSION_KEY_UPLOAD_CHECKPOINT, checkpoint);
+                errorDescription += String.format("%sThe first %d records have been saved. They will be skipped if %s is uploaded again unchanged with resume selected.",
+                        errorDescription.endsWith(".") ? " " : ". ", checkpoint.getCommittedRowCount(), checkpoint.getFileName());
+            } else {
+                req.getSession().removeAttribute(SESSION_KEY_UPLOAD_CHECKPOINT);
+            }
+        }
+
         view.addObject("survey", survey);
         view.addObject("surveyList", surveyDAO.getActiveSurveysForUser(user));
         view.addObject("errorMessage", errorMessage);
@@ -256,6 +309,35 @@ public class BulkDataController extends AbstractController {
         return view;
     }
     
+    /**
+     * Gets the progress of an earlier upload of the same spreadsheet that
+     * failed after some of its records were saved if the user chose to
+     * resume it, or starts a new upload.
+     */
+    private BulkUploadCheckpoint getUploadCheckpoint(HttpServletRequest req, int surveyPk, String fileName,
+            String contentHash, int rowCount) {
+        Object checkpoint = req.getSession().getAttribute(SESSION_KEY_UPLOAD_CHECKPOINT);
+        if (req.getParameter(PARAM_RESUME) != null) {
+            if (checkpoint instanceof BulkUploadCheckpoint
+                    && ((BulkUploadCheckpoint) checkpoint).matches(surveyPk, contentHash, rowCount)) {
+                log.info(String.format("Resuming the upload of %s after record %d", fileName,
+                        ((BulkUploadCheckpoint) checkpoint).getCommittedRowCount()));
+                return (BulkUploadCheckpoint) checkpoint;
+            }
+            log.warn(String.format("Cannot resume the upload of %s, it is not the spreadsheet that was partly saved", fileName));
+        }
+        return new BulkUploadCheckpoint(surveyPk, fileName, contentHash, rowCount);
+    }
+
+    private String getContentHash(MultipartFile uploadedFile) throws IOException {
+        InputStream in = uploadedFile.getInputStream();
+        try {
+            return DigestUtils.shaHex(in);
+        } finally {
+            in.close();
+        }
+    }
+
     @RolesAllowed({Role.ADMIN, Role.ROOT, Role.POWERUSER, Role.SUPERVISOR, Role.USER})
     @RequestMapping(value=SHAPEFILE_TEMPLATE_URL, method=RequestMethod.GET) 
     public void getShapefileTemplate(HttpServletRequest request, HttpServletResponse response,
@@ -368,4 +450,55 @@ public class BulkDataController extends AbstractController {
         }
         return mv;
     }
+
+    /**
+     * Queues the upload of a spreadsheet to be saved in the background, the
+     * response is the id of the job as JSON. The progress of the job is
+     * reported by {@link JobController#JOB_STATUS_URL}.
+     */
+    @RolesAllowed({Role.ADMIN, Role.ROOT, Role.POWERUSER, Role.SUPERVISOR, Role.USER})
+    @RequestMapping(value = UPLOAD_JOB_URL, method = RequestMethod.POST)
+    public void uploadJob(MultipartHttpServletRequest req,
+                          HttpServletResponse res,
+                          @RequestParam(value="surveyPk", required=true) int surveyPk) throws IOException {
+        MultipartFile uploadedFile = req.getFile("spreadsheet");
+        if (uploadedFile == null || !(CONTENT_TYPE_XLS.equals(uploadedFile.getContentType()) ||
+                CONTENT_TYPE_XLSX.equals(uploadedFile.getContentType()))) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "The spreadsheet must be a .xls or .xlsx file.");
+            return;
+        }
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(BulkDataUploadJobHandler.PARAM_SURVEY_ID, surveyPk);
+        params.put(BulkDataUploadJobHandler.PARAM_FILE_NAME, "spreadsheet");
+        params.put(BulkDataUploadJobHandler.PARAM_ORIGINAL_FILE_NAME, uploadedFile.getOriginalFilename());
+        params.put(BulkDataUploadJobHandler.PARAM_CREATE_MISSING, req.getParameter("createMissing") != null);
+        params.put(BulkDataUploadJobHandler.PARAM_ALL_OR_NOTHING, req.getParameter(PARAM_ALL_OR_NOTHING) != null);
+
+        // the job is queued when the request commits, after the file is written.
+        Job job = jobService.submit(JobType.BULK_DATA_UPLOAD, getRequestContext().getUser(), params);
+        uploadedFile.transferTo(jobService.createInputFile(job, "spreadsheet"));
+        writeJson(req, res, JobController.getSubmittedJson(job));
+    }
+
+    /**
+     * Queues the upload of a shapefile to be saved in the background, the
+     * response is the id of the job as JSON.
+     */
+    @RolesAllowed({Role.ADMIN, Role.ROOT, Role.POWERUSER, Role.SUPERVISOR, Role.USER})
+    @RequestMapping(value = SHAPEFILE_UPLOAD_JOB_URL, method = RequestMethod.POST)
+    public void uploadShapefileJob(MultipartHttpServletRequest request, HttpServletResponse response) throws IOException {
+        MultipartFile uploadedFile = request.getFile(PARAM_SHAPEFILE_FILE);
+        if (uploadedFile == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No shapefile was uploaded.");
+            return;
+        }
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(ShapefileUploadJobHandler.PARAM_FILE_NAME, "shapefile.zip");
+
+        Job job = jobService.submit(JobType.SHAPEFILE_UPLOAD, getRequestContext().getUser(), params);
+        uploadedFile.transferTo(jobService.createInputFile(job, "shapefile.zip"));
+        writeJson(request, response, JobController.getSubmittedJson(job));
+    }
 }
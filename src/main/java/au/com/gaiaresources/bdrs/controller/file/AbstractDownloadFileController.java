@@ -102,9 +102,7 @@ public class AbstractDownloadFileController extends AbstractController {
     }
 
     protected void downloadFileFromStream(InputStream inStream, HttpServletResponse response, String filePrefix, String fileSuffix, String contentType) throws IOException {
-        response.setContentType(contentType);
-        response.setHeader("Content-Disposition", "attachment;filename=\""+ filePrefix + "_" + 
-                           new SimpleDateFormat(FILE_DATE_FORMAT).format(new Date(System.currentTimeMillis())) + "." + fileSuffix + "\"");
+        setDownloadHeaders(response, filePrefix, fileSuffix, contentType);
         try {
             int length = IOUtils.copy(inStream, response.getOutputStream());
             response.setContentLength(length);
@@ -115,6 +113,16 @@ public class AbstractDownloadFileController extends AbstractController {
         }
     }
     
+    /**
+     * Sets the content type and the attachment file name of a download that
+     * is written directly to the response.
+     */
+    protected void setDownloadHeaders(HttpServletResponse response, String filePrefix, String fileSuffix, String contentType) {
+        response.setContentType(contentType);
+        response.setHeader("Content-Disposition", "attachment;filename=\""+ filePrefix + "_" + 
+                           new SimpleDateFormat(FILE_DATE_FORMAT).format(new Date(System.currentTimeMillis())) + "." + fileSuffix + "\"");
+    }
+    
     private String getContentType(FileDataSource fileDataSource) {
         String contentType;
         File file = fileDataSource.getFile();
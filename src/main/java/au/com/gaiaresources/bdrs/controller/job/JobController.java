@@ -0,0 +1,132 @@
+package au.com.gaiaresources.bdrs.controller.job;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.activation.FileDataSource;
+import javax.annotation.security.RolesAllowed;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.ws.http.HTTPException;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.ModelAndView;
+
+import au.com.gaiaresources.bdrs.controller.file.AbstractDownloadFileController;
+import au.com.gaiaresources.bdrs.json.JSONArray;
+import au.com.gaiaresources.bdrs.json.JSONObject;
+import au.com.gaiaresources.bdrs.model.job.Job;
+import au.com.gaiaresources.bdrs.model.job.JobDAO;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.security.Role;
+import au.com.gaiaresources.bdrs.service.job.JobService;
+
+/**
+ * Reports the progress of background jobs and serves their results. A job
+ * may only be seen by the user it was submitted for and by administrators.
+ */
+@Controller
+public class JobController extends AbstractDownloadFileController {
+
+    public static final String JOB_STATUS_URL = "/job/status.htm";
+    public static final String JOB_LIST_URL = "/job/list.htm";
+    public static final String JOB_DOWNLOAD_URL = "/job/download.htm";
+
+    public static final String PARAM_JOB_ID = "jobId";
+    public static final String PARAM_LIMIT = "limit";
+
+    private Logger log = Logger.getLogger(getClass());
+
+    @Autowired
+    private JobDAO jobDAO;
+    @Autowired
+    private JobService jobService;
+
+    /**
+     * Writes the state and progress of a job as JSON.
+     * @param request
+     * @param response
+     * @param jobId the id of the job.
+     * @throws IOException
+     */
+    @RolesAllowed({Role.ADMIN, Role.ROOT, Role.POWERUSER, Role.SUPERVISOR, Role.USER})
+    @RequestMapping(value = JOB_STATUS_URL, method = RequestMethod.GET)
+    public void status(HttpServletRequest request,
+                       HttpServletResponse response,
+                       @RequestParam(value = PARAM_JOB_ID, required = true) int jobId) throws IOException {
+        Job job = getJob(jobId);
+        writeJson(request, response, JSONObject.fromMapToString(jobService.getStatus(job)));
+    }
+
+    /**
+     * Writes the state and progress of the most recent jobs of the logged
+     * in user as JSON.
+     * @param request
+     * @param response
+     * @param limit the maximum number of jobs.
+     * @throws IOException
+     */
+    @RolesAllowed({Role.ADMIN, Role.ROOT, Role.POWERUSER, Role.SUPERVISOR, Role.USER})
+    @RequestMapping(value = JOB_LIST_URL, method = RequestMethod.GET)
+    public void list(HttpServletRequest request,
+                     HttpServletResponse response,
+                     @RequestParam(value = PARAM_LIMIT, defaultValue = "20") int limit) throws IOException {
+        JSONArray array = new JSONArray();
+        for (Job job : jobDAO.getJobs(getRequestContext().getUser(), limit)) {
+            array.add(jobService.getStatus(job));
+        }
+        writeJson(request, response, array.toString());
+    }
+
+    /**
+     * Downloads the file written by a job that has completed.
+     * @param jobId the id of the job.
+     * @return the file.
+     */
+    @RolesAllowed({Role.ADMIN, Role.ROOT, Role.POWERUSER, Role.SUPERVISOR, Role.USER})
+    @RequestMapping(value = JOB_DOWNLOAD_URL, method = RequestMethod.GET)
+    public ModelAndView download(@RequestParam(value = PARAM_JOB_ID, required = true) int jobId) {
+        Job job = getJob(jobId);
+        FileDataSource file;
+        try {
+            file = jobService.getResultFile(job);
+        } catch (IllegalArgumentException iae) {
+            log.error("The result of job " + jobId + " no longer exists", iae);
+            file = null;
+        }
+        if (file == null) {
+            throw new HTTPException(HttpServletResponse.SC_NOT_FOUND);
+        }
+        return downloadFile(job.getResultFileName(), null, false, file);
+    }
+
+    /**
+     * @param job a job that has just been submitted.
+     * @return the response of the endpoints that queue work, the id of the
+     * job as JSON.
+     */
+    public static String getSubmittedJson(Job job) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put(PARAM_JOB_ID, job.getId());
+        result.put("status", job.getStatus().toString());
+        return JSONObject.fromMapToString(result);
+    }
+
+    private Job getJob(int jobId) {
+        Job job = jobDAO.getJob(jobId);
+        if (job == null) {
+            throw new HTTPException(HttpServletResponse.SC_NOT_FOUND);
+        }
+        User user = getRequestContext().getUser();
+        if (!user.isAdmin() && !user.getId().equals(job.getOwner().getId())) {
+            throw new HTTPException(HttpServletResponse.SC_FORBIDDEN);
+        }
+        return job;
+    }
+}
@@ -81,6 +81,7 @@ public abstract class AbstractDownloadWriter<T> {
             response.setHeader("Content-Disposition", "attachment;filename=record_export_"+System.currentTimeMillis()+".zip");
             break;
         case XLS:
+        case XLSX:
             throw new IllegalArgumentException("Cannot write XLS Records without a Survey.");
         default:
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -122,6 +123,9 @@ public abstract class AbstractDownloadWriter<T> {
         case XLS:
             writeXLSRecords(bulkDataService, out, survey, sc, sesh);
             break;
+        case XLSX:
+            writeXLSXRecords(bulkDataService, out, survey, sc, sesh);
+            break;
         default:
             // Do nothing
             log.error("Unknown RecordDownloadFormat: "+format);
@@ -141,6 +145,18 @@ public abstract class AbstractDownloadWriter<T> {
             OutputStream out, Survey survey,
             ScrollableResults<T> sc, Session sesh) throws Exception;
 
+    /**
+     * Writes the results to an xlsx file.
+     * @param bulkDataService the service that encodes the records.
+     * @param out the output stream where encoded records will be written.
+     * @param survey the survey containing the records.
+     * @param sc the records to be encoded.
+     * @param sesh the database session to retrieve the records.
+     */
+    protected abstract void writeXLSXRecords(BulkDataService bulkDataService,
+            OutputStream out, Survey survey,
+            ScrollableResults<T> sc, Session sesh) throws Exception;
+
     /**
      * Writes the results to a shapefile.
      * @param out the output stream where encoded records will be written.
@@ -3,7 +3,10 @@ package au.com.gaiaresources.bdrs.controller.map;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -14,13 +17,20 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.bind.JAXBException;
 
+import au.com.gaiaresources.bdrs.geojson.RecordGridClusterer;
+import au.com.gaiaresources.bdrs.geojson.RecordProjectionMfFeature;
 import au.com.gaiaresources.bdrs.kml.BDRSKMLWriter;
 import au.com.gaiaresources.bdrs.model.preference.PreferenceDAO;
 import au.com.gaiaresources.bdrs.service.content.ContentService;
+import au.com.gaiaresources.bdrs.service.map.GeoMapFeatureIndex;
+import au.com.gaiaresources.bdrs.service.map.SurveyRecordVersions;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.hibernate.FlushMode;
 import org.hibernate.Session;
+import org.json.JSONWriter;
+import org.mapfish.geo.MfFeature;
+import org.mapfish.geo.MfGeoJSONWriter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StringUtils;
@@ -33,10 +43,10 @@ import au.com.gaiaresources.bdrs.controller.AbstractController;
 import au.com.gaiaresources.bdrs.controller.webservice.JqGridDataBuilder;
 import au.com.gaiaresources.bdrs.controller.webservice.JqGridDataHelper;
 import au.com.gaiaresources.bdrs.controller.webservice.JqGridDataRow;
+import au.com.gaiaresources.bdrs.db.ScrollableResults;
 import au.com.gaiaresources.bdrs.db.SessionFactory;
 import au.com.gaiaresources.bdrs.db.impl.PagedQueryResult;
 import au.com.gaiaresources.bdrs.db.impl.PaginationFilter;
-import au.com.gaiaresources.bdrs.db.impl.SortOrder;
 import au.com.gaiaresources.bdrs.file.FileService;
 import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
 import au.com.gaiaresources.bdrs.json.JSONArray;
@@ -49,9 +59,11 @@ import au.com.gaiaresources.bdrs.model.map.GeoMapFeatureDAO;
 import au.com.gaiaresources.bdrs.model.map.GeoMapLayer;
 import au.com.gaiaresources.bdrs.model.map.GeoMapLayerDAO;
 import au.com.gaiaresources.bdrs.model.map.GeoMapLayerSource;
+import au.com.gaiaresources.bdrs.model.portal.Portal;
 import au.com.gaiaresources.bdrs.model.record.AccessControlledRecordAdapter;
 import au.com.gaiaresources.bdrs.model.record.Record;
 import au.com.gaiaresources.bdrs.model.record.RecordDAO;
+import au.com.gaiaresources.bdrs.model.record.RecordProjection;
 import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
 import au.com.gaiaresources.bdrs.model.taxa.Attribute;
 import au.com.gaiaresources.bdrs.model.taxa.AttributeDAO;
@@ -62,6 +74,8 @@ import au.com.gaiaresources.bdrs.security.Role;
 import au.com.gaiaresources.bdrs.service.web.JsonService;
 import au.com.gaiaresources.bdrs.servlet.view.PortalRedirectView;
 import au.com.gaiaresources.bdrs.spatial.ShapeFileReader;
+import au.com.gaiaresources.bdrs.util.Pair;
+import au.com.gaiaresources.bdrs.util.SpatialUtil;
 import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
 import au.com.gaiaresources.bdrs.util.TransactionHelper;
 
@@ -79,6 +93,7 @@ public class GeoMapLayerController extends AbstractController {
     public static final String LIST_SERVICE_URL = BASE_ADMIN_URL + "listService.htm";
     public static final String GET_LAYER_URL = "/bdrs/map/getLayer.htm";
     public static final String GET_RECORD_URL = "/bdrs/map/getRecord.htm";
+    public static final String GET_LAYER_TILE_URL = "/bdrs/map/getLayerTile.htm";
     
     public static final String DOWNLOAD_RECORDS_URL = "bdrs/map/downloadRecords.htm";
     
@@ -121,8 +136,22 @@ public class GeoMapLayerController extends AbstractController {
     
     public static final String PARAM_RECORD_ID = "recordPk";
     
+    public static final String PARAM_BBOX = "bbox";
+    public static final String PARAM_ZOOM = "zoom";
+    
+    /**
+     * Tiles at this zoom level and above contain each record rather than clusters.
+     */
+    public static final int CLUSTER_MAX_ZOOM = 14;
+    /**
+     * The number of seconds tiles may be cached by the client.
+     */
+    public static final int TILE_MAX_AGE_SECS = 300;
+    
     public static final String JSON_KEY_ITEMS = "items";
     
+    public static final int FEATURE_INFO_MAX_RESULTS = 10;
+    
     public static final String KML_RECORD_FOLDER = "Record";
     public static final String KML_POINT_ICON_ID = "pointIcon";
     
@@ -147,6 +176,10 @@ public class GeoMapLayerController extends AbstractController {
     @Autowired
     private GeoMapFeatureDAO featureDAO;
     @Autowired
+    private GeoMapFeatureIndex featureIndex;
+    @Autowired
+    private SurveyRecordVersions surveyRecordVersions;
+    @Autowired
     private PreferenceDAO preferenceDAO;
     @Autowired
     private SessionFactory sessionFactory;
@@ -403,12 +436,15 @@ public class GeoMapLayerController extends AbstractController {
                 return;
             }
 
-            BDRSKMLWriter writer = new BDRSKMLWriter(preferenceDAO,
-                    getRequestContext().getServerURL(), request.getParameter("placemark_color"));
-
+            // the records are queried before anything is written so that a
+            // failed query is not reported as a truncated document.
             Integer[] mapLayerIds = new Integer[] { gml.getId() };
             User accessingUser = getRequestContext().getUser();                             
             List<Record> recList = getRecordsToDisplay(mapLayerIds, accessingUser, null);
+
+            BDRSKMLWriter writer = new BDRSKMLWriter(preferenceDAO,
+                    getRequestContext().getServerURL(), request.getParameter("placemark_color"),
+                    response.getOutputStream());
             
             try {
                 writer.writeRecordsToKML(accessingUser, recList, response.getOutputStream(), false);
@@ -425,6 +461,123 @@ public class GeoMapLayerController extends AbstractController {
         }
     }
     
+    /**
+     * Returns the records of a survey layer within a bounding box as GeoJSON.
+     * Below {@link #CLUSTER_MAX_ZOOM} nearby records are clustered into the
+     * cells of a grid sized for the zoom level. The records are filtered with
+     * the same visibility rules as {@link #getLayer(int, HttpServletRequest, HttpServletResponse)}.
+     * 
+     * The response may be cached by the client, and is only cached privately
+     * when a user is logged in as the visible records depend on the user.
+     * The entity tag is the version of the records of the survey and the
+     * user, so a request with a current entity tag is answered without
+     * querying the records.
+     * 
+     * @param layerPk the id of the layer, which must be a survey layer.
+     * @param bbox the bounding box of the tile as minx,miny,maxx,maxy in
+     * longitude and latitude.
+     * @param zoom the zoom level of the map.
+     * @param request
+     * @param response
+     * @throws Exception
+     */
+    // public
+    @RequestMapping(value = GET_LAYER_TILE_URL, method = RequestMethod.GET)
+    public void getLayerTile(
+            @RequestParam(value = PARAM_LAYER_ID, required=true) int layerPk,
+            @RequestParam(value = PARAM_BBOX, required=true) String bbox,
+            @RequestParam(value = PARAM_ZOOM, required=true) int zoom,
+            HttpServletRequest request, HttpServletResponse response) throws Exception {
+        GeoMapLayer gml = layerDAO.get(layerPk);
+        if (gml == null || gml.getLayerSource() != GeoMapLayerSource.SURVEY_KML || gml.getSurvey() == null) {
+            log.error("layer id not valid for tiles : " + layerPk);
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        Geometry spatialFilter = parseBbox(bbox);
+        if (spatialFilter == null || zoom < 0) {
+            log.error("invalid bbox : " + bbox + " or zoom : " + zoom);
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        
+        User accessingUser = getRequestContext().getUser();
+        // the tile is a function of the records of the survey, the user, the
+        // bounding box and the zoom, and the last two are in the url. The
+        // version only sees the changes made by this server, the number of
+        // records and their last update are stored with the records so the
+        // changes made by the other servers change the tag too.
+        Integer surveyId = gml.getSurvey().getId();
+        String version = surveyRecordVersions.getVersion(surveyId);
+        Pair<Long, Date> recordState = recDAO.getSurveyRecordState(surveyId);
+        String etag = "\"" + version + "-" + recordState.getFirst() + "-" +
+                (recordState.getSecond() == null ? "" : recordState.getSecond().getTime()) + "-" +
+                (accessingUser == null ? "" : accessingUser.getId()) + "\"";
+        response.setHeader("Cache-Control", (accessingUser == null ? "public" : "private") +
+                ", max-age=" + TILE_MAX_AGE_SECS);
+        response.setHeader("ETag", etag);
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        
+        ScrollableResults<RecordProjection> records = recDAO.getRecordProjections(new Integer[] { gml.getId() },
+                spatialFilter, getPrivateFilter(accessingUser), getOwnerFilter(accessingUser));
+        
+        SpatialUtil spatialUtil = new SpatialUtilFactory().getLocationUtil();
+        StringWriter json = new StringWriter();
+        JSONWriter jsonWriter = new JSONWriter(json);
+        MfGeoJSONWriter geoJSONWriter = new MfGeoJSONWriter(jsonWriter);
+        jsonWriter.object();
+        jsonWriter.key("type");
+        jsonWriter.value("FeatureCollection");
+        jsonWriter.key("features");
+        jsonWriter.array();
+        if (zoom >= CLUSTER_MAX_ZOOM) {
+            while (records.hasMoreElements()) {
+                RecordProjection r = records.nextElement();
+                if (r.getGeometry() != null) {
+                    geoJSONWriter.encodeFeature(new RecordProjectionMfFeature(r, spatialUtil));
+                }
+            }
+        } else {
+            RecordGridClusterer clusterer = new RecordGridClusterer(zoom, spatialUtil);
+            while (records.hasMoreElements()) {
+                clusterer.add(records.nextElement());
+            }
+            for (MfFeature feature : clusterer.getFeatures()) {
+                geoJSONWriter.encodeFeature(feature);
+            }
+        }
+        jsonWriter.endArray();
+        jsonWriter.endObject();
+        
+        writeJson(request, response, json.toString());
+    }
+    
+    /**
+     * @param bbox minx,miny,maxx,maxy
+     * @return the bounding box as a polygon or null if it is not valid.
+     */
+    private Geometry parseBbox(String bbox) {
+        String[] split = bbox.split(",");
+        if (split.length != 4) {
+            return null;
+        }
+        try {
+            double minX = Double.parseDouble(split[0].trim());
+            double minY = Double.parseDouble(split[1].trim());
+            double maxX = Double.parseDouble(split[2].trim());
+            double maxY = Double.parseDouble(split[3].trim());
+            if (maxX <= minX || maxY <= minY) {
+                return null;
+            }
+            return geomBuilder.createRectangle(minX, minY, maxX - minX, maxY - minY);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+    
     /**
      * Get the KML for a single record
      * 
@@ -442,13 +595,14 @@ public class GeoMapLayerController extends AbstractController {
         response.setContentType("application/vnd.google-earth.kml+xml");
         response.setHeader("Content-Disposition", "attachment;filename=layer_"+System.currentTimeMillis()+".kml");
 
+        Record rec = recDAO.getRecord(recordPk);
+        List<Record> recordList = new LinkedList<Record>();
+        recordList.add(rec);
+
         BDRSKMLWriter writer = new BDRSKMLWriter(preferenceDAO, getRequestContext().getServerURL(),
-                request.getParameter("placemark_color"));
+                request.getParameter("placemark_color"), response.getOutputStream());
         
         try {
-            Record rec = recDAO.getRecord(recordPk);
-            List<Record> recordList = new LinkedList<Record>();
-            recordList.add(rec);
             writer.writeRecordsToKML(getRequestContext().getUser(), recordList,
                     response.getOutputStream(), true);
 
@@ -499,11 +653,17 @@ public class GeoMapLayerController extends AbstractController {
         Point point = geomBuilder.createPoint(longitude_x, latitude_y);
         Geometry spatialFilter = bufferKm > 0d ? geomBuilder.bufferInKm(point, bufferKm) : point;
         
-        // 0th page, 10 results per page. Order by geo map feature id.
-        PaginationFilter filter = new PaginationFilter(0, 10);
-        filter.addSortingCriteria("id", SortOrder.ASCENDING);
-        
-        List<GeoMapFeature> gmfList = featureDAO.find(mapLayedIds, spatialFilter, filter).getList();
+        // first 10 features ordered by geo map feature id, found with the in memory index.
+        Portal portal = getRequestContext().getPortal();
+        List<Integer> featureIds = featureIndex.find(portal != null ? portal.getId() : null,
+                mapLayedIds, spatialFilter, FEATURE_INFO_MAX_RESULTS);
+        List<GeoMapFeature> gmfList = new ArrayList<GeoMapFeature>(featureIds.size());
+        for (Integer featureId : featureIds) {
+            GeoMapFeature f = featureDAO.get(featureId);
+            if (f != null) {
+                gmfList.add(f);
+            }
+        }
         
         User accessingUser = getRequestContext().getUser();                             
         List<Record> recList = getRecordsToDisplay(mapLayedIds, accessingUser, spatialFilter);
@@ -527,26 +687,30 @@ public class GeoMapLayerController extends AbstractController {
     }
     
     private List<Record> getRecordsToDisplay(Integer[] mapLayerIds, User accessingUser, Geometry spatialFilter) {
-        List<Record> recList;
-        // if logged in
-        if (accessingUser != null) {
-            // if admin
-            if (accessingUser.isAdmin()) {
-                // as the admin we don't care about the privacy level or the owner of the record
-                recList = recDAO.find(mapLayerIds, spatialFilter, null, null);  
-            } else {
-                // if standard user
-                
-                // the user id shouldn't be null but if it is, set it to 0. This will make the
-                // find method return all of the non private records for the map layer / spatial filter
-                Integer userId = accessingUser.getId() != null ? accessingUser.getId() : 0;
-                recList = recDAO.find(mapLayerIds, spatialFilter, false, userId);  
-            }    
-        } else {
-            // if not logged in
-            recList = recDAO.find(mapLayerIds, spatialFilter, false, null);  
+        return recDAO.find(mapLayerIds, spatialFilter, getPrivateFilter(accessingUser), getOwnerFilter(accessingUser));
+    }
+    
+    /**
+     * @return whether the records displayed to the user must be private, or
+     * null if the user can see all records.
+     */
+    private Boolean getPrivateFilter(User accessingUser) {
+        // as the admin we don't care about the privacy level or the owner of the record
+        return accessingUser != null && accessingUser.isAdmin() ? null : Boolean.FALSE;
+    }
+    
+    /**
+     * @return the id of the user whose private records are also displayed, or
+     * null if there is no such user.
+     */
+    private Integer getOwnerFilter(User accessingUser) {
+        // if not logged in or admin
+        if (accessingUser == null || accessingUser.isAdmin()) {
+            return null;
         }
-        return recList;
+        // the user id shouldn't be null but if it is, set it to 0. This will make the
+        // find method return all of the non private records for the map layer / spatial filter
+        return accessingUser.getId() != null ? accessingUser.getId() : 0;
     }
     
     // time limit of 300 secs / 5 minutes
@@ -54,6 +54,17 @@ public class LocationDownloadWriter extends AbstractDownloadWriter<Location> {
         bulkDataService.exportLocations(sesh, sc, out);
     }
 
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.controller.map.AbstractDownloadWriter#writeXLSXRecords(au.com.gaiaresources.bdrs.service.bulkdata.BulkDataService, java.io.OutputStream, au.com.gaiaresources.bdrs.model.survey.Survey, au.com.gaiaresources.bdrs.db.ScrollableResults, org.hibernate.Session)
+     */
+    @Override
+    protected void writeXLSXRecords(BulkDataService bulkDataService,
+            OutputStream out, Survey survey,
+            ScrollableResults<Location> sc, Session sesh) throws Exception {
+        bulkDataService.exportLocationsXlsx(sesh, sc, out);
+    }
+
     /*
      * (non-Javadoc)
      * @see au.com.gaiaresources.bdrs.controller.map.AbstractDownloadWriter#writeSHPRecords(java.io.OutputStream, org.hibernate.Session, au.com.gaiaresources.bdrs.model.user.User, au.com.gaiaresources.bdrs.model.survey.Survey, au.com.gaiaresources.bdrs.db.ScrollableResults)
@@ -107,7 +118,8 @@ public class LocationDownloadWriter extends AbstractDownloadWriter<Location> {
         int recordCount = 0;
         List<Location> rList = new ArrayList<Location>(ScrollableResults.RESULTS_BATCH_SIZE);
 
-        BDRSKMLWriter writer = new BDRSKMLWriter(preferenceDAO, serverURL, null);
+        // placemarks are written to the output stream as each batch is written.
+        BDRSKMLWriter writer = new BDRSKMLWriter(preferenceDAO, serverURL, null, out);
 
         while (sc.hasMoreElements()) {
             rList.add(sc.nextElement());
@@ -123,6 +135,6 @@ public class LocationDownloadWriter extends AbstractDownloadWriter<Location> {
         // Flush the remainder out of the list.
         writer.writeLocations(rList);
         sesh.clear();
-        writer.write(false, out);
+        writer.close();
     }
 }
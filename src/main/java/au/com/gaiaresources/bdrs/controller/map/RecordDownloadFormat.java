@@ -9,7 +9,8 @@ import au.com.gaiaresources.bdrs.json.JSONEnumUtil;
 public enum RecordDownloadFormat implements JSONEnum {
     KML,
     SHAPEFILE,
-    XLS;
+    XLS,
+    XLSX;
     
     @Override
     public void writeJSONString(Writer out) throws IOException {
@@ -8,19 +8,16 @@ import au.com.gaiaresources.bdrs.model.survey.Survey;
 import au.com.gaiaresources.bdrs.model.user.User;
 import au.com.gaiaresources.bdrs.service.bulkdata.BulkDataService;
 import au.com.gaiaresources.bdrs.spatial.ShapeFileWriter;
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.hibernate.Session;
 
 import javax.xml.bind.JAXBException;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Writes a set of {@link Record}s to a xls, shapefile, or kml file.
+ * Writes a set of {@link Record}s to a xls, xlsx, shapefile, or kml file.
  */
 public class RecordDownloadWriter extends AbstractDownloadWriter<Record> {
     
@@ -60,6 +57,17 @@ public class RecordDownloadWriter extends AbstractDownloadWriter<Record> {
         bulkDataService.exportSurveyRecords(sesh, survey, sc, out);
     }
 
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.controller.map.AbstractDownloadWriter#writeXLSXRecords(au.com.gaiaresources.bdrs.service.bulkdata.BulkDataService, java.io.OutputStream, au.com.gaiaresources.bdrs.model.survey.Survey, au.com.gaiaresources.bdrs.db.ScrollableResults, org.hibernate.Session)
+     */
+    @Override
+    protected void writeXLSXRecords(BulkDataService bulkDataService,
+            OutputStream out, Survey survey,
+            ScrollableResults<Record> sc, Session sesh) throws Exception {
+        bulkDataService.exportSurveyRecordsXlsx(sesh, survey, sc, out);
+    }
+
     /*
      * (non-Javadoc)
      * @see au.com.gaiaresources.bdrs.controller.map.AbstractDownloadWriter#writeSHPRecords(java.io.OutputStream, org.hibernate.Session, au.com.gaiaresources.bdrs.model.user.User, au.com.gaiaresources.bdrs.model.survey.Survey, au.com.gaiaresources.bdrs.db.ScrollableResults)
@@ -67,38 +75,11 @@ public class RecordDownloadWriter extends AbstractDownloadWriter<Record> {
     @Override
     protected void writeSHPRecords(OutputStream out, Session sesh,
             User accessingUser, Survey survey, ScrollableResults<Record> sc) throws Exception {
-        // This is not a good thing
-        // -----
-        // Yes, I believe I just made it worse
-        List<Record> recordList = new ArrayList<Record>();
-
-        while(sc.hasMoreElements()) {
-            Record r = sc.nextElement();
-            if (survey == null || r.getSurvey() == survey) {
-                recordList.add(r);
-            }
-        }
-        
-        if (!recordList.isEmpty()) {
-            
-            // no point writing a non empty shapefile since the user is not
-            // expecting a template in this download but a populated shapefile
-            ShapeFileWriter writer = new ShapeFileWriter(serverURL);
-            File zipFile = writer.exportRecords(recordList, accessingUser);
-            
-            sesh.clear();
-            recordList.clear();
-            
-            FileInputStream inStream = null;
-            try {
-                inStream = new FileInputStream(zipFile);
-                IOUtils.copy(inStream, out);
-            } finally {
-                if (inStream != null) {
-                    inStream.close();
-                }
-            }    
-        }
+        // The shapefile is streamed from the scrollable results so the
+        // records are never held in memory together.
+        ShapeFileWriter writer = new ShapeFileWriter(serverURL);
+        writer.exportRecords(sc, sesh, survey, accessingUser, out);
+        sesh.clear();
     }
 
     /*
@@ -111,7 +92,8 @@ public class RecordDownloadWriter extends AbstractDownloadWriter<Record> {
         int recordCount = 0;
         List<Record> rList = new ArrayList<Record>(ScrollableResults.RESULTS_BATCH_SIZE);
 
-        BDRSKMLWriter writer = new BDRSKMLWriter(preferenceDAO, serverURL, null);
+        // placemarks are written to the output stream as each batch is written.
+        BDRSKMLWriter writer = new BDRSKMLWriter(preferenceDAO, serverURL, null, out);
 
         while (sc.hasMoreElements()) {
             rList.add(sc.nextElement());
@@ -129,6 +111,6 @@ public class RecordDownloadWriter extends AbstractDownloadWriter<Record> {
         writer.writeRecords(accessingUser, rList, serializeLazyLoadedAttributes);
 
         sesh.clear();
-        writer.write(false, out);
+        writer.close();
     }
 }
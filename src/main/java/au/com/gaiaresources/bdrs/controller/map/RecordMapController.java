@@ -1,10 +1,13 @@
 package au.com.gaiaresources.bdrs.controller.map;
 
 import au.com.gaiaresources.bdrs.controller.AbstractController;
+import au.com.gaiaresources.bdrs.db.impl.SortingCriteria;
 import au.com.gaiaresources.bdrs.kml.BDRSKMLWriter;
 import au.com.gaiaresources.bdrs.model.preference.PreferenceDAO;
 import au.com.gaiaresources.bdrs.model.record.RecordDAO;
 import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
+import au.com.gaiaresources.bdrs.model.record.impl.AdvancedRecordFilter;
+import au.com.gaiaresources.bdrs.model.record.impl.RecordFilter;
 import au.com.gaiaresources.bdrs.model.user.User;
 import au.com.gaiaresources.bdrs.security.Role;
 import org.apache.log4j.Logger;
@@ -114,13 +117,19 @@ public class RecordMapController extends AbstractController {
         Session sesh = getRequestContext().getHibernate(); 
         sesh.setFlushMode(FlushMode.MANUAL);
         RecordDownloadFormat format = RecordDownloadFormat.valueOf(downloadFormat);
-        ScrollableRecords sc = recordDAO.getScrollableRecords(currentUser, groupPk, 
-                                                              surveyPk, 
-                                                              taxonGroupPk, 
-                                                              startDate, 
-                                                              endDate, 
-                                                              speciesScientificNameSearch,
-                                                              1, limit);
+        RecordFilter filter = new AdvancedRecordFilter();
+        filter.setUser(currentUser);
+        filter.setGroupPk(groupPk);
+        filter.setSurveyPk(surveyPk);
+        filter.setTaxonGroupPk(taxonGroupPk);
+        filter.setStartDate(startDate);
+        filter.setEndDate(endDate);
+        filter.setSpeciesSearch(speciesScientificNameSearch);
+        filter.setPageNumber(1);
+        filter.setEntriesPerPage(limit);
+        // a forward only cursor, the writers clear the session as they go
+        List<SortingCriteria> sortCriteria = Collections.emptyList();
+        ScrollableRecords sc = recordDAO.getStreamingRecords(filter, sortCriteria, 0);
 
         new RecordDownloadWriter(preferenceDAO, getRequestContext().getServerURL(), false)
                 .write(sesh, request, response, sc, format, currentUser);
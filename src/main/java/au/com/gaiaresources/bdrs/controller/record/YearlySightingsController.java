@@ -320,6 +320,7 @@ public class YearlySightingsController extends RecordController {
                                     recAttr = attributeDAO.save(recAttr);
                                     if(attributeParser.getAttrFile() != null) {
                                         fileService.createFile(recAttr, attributeParser.getAttrFile());
+                                        fileService.generateThumbnails(recAttr, recAttr.getStringValue());
                                     }
                                     recAtts.add(recAttr);
                                 }
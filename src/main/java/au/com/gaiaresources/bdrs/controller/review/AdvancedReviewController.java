@@ -10,6 +10,7 @@ import au.com.gaiaresources.bdrs.db.impl.HqlQuery.SortOrder;
 import au.com.gaiaresources.bdrs.db.impl.PortalPersistentImpl;
 import au.com.gaiaresources.bdrs.db.impl.Predicate;
 import au.com.gaiaresources.bdrs.db.impl.ScrollableResultsImpl;
+import au.com.gaiaresources.bdrs.db.impl.StreamingScrollableResults;
 import au.com.gaiaresources.bdrs.kml.BDRSKMLWriter;
 import au.com.gaiaresources.bdrs.model.index.IndexingConstants;
 import au.com.gaiaresources.bdrs.model.location.Location;
@@ -31,6 +32,7 @@ import au.com.gaiaresources.bdrs.service.facet.FacetService;
 import au.com.gaiaresources.bdrs.service.facet.SurveyFacet;
 import au.com.gaiaresources.bdrs.service.facet.option.FacetOption;
 import au.com.gaiaresources.bdrs.service.python.report.ReportService;
+import au.com.gaiaresources.bdrs.service.survey.SurveyAccessResolver;
 import au.com.gaiaresources.bdrs.servlet.BdrsWebConstants;
 import au.com.gaiaresources.bdrs.servlet.RequestContext;
 import au.com.gaiaresources.bdrs.util.SpatialUtil;
@@ -125,6 +127,9 @@ public abstract class AdvancedReviewController<T> extends SightingsController {
     @Autowired
     private GeoMapDAO geoMapDAO;
 
+    @Autowired
+    private SurveyAccessResolver surveyAccessResolver;
+
     // defaults to using WGS84 / lonlat/ 4326 (they are all the same thing)
     private SpatialUtil spatialUtil = new SpatialUtilFactory().getLocationUtil();
 
@@ -209,8 +214,9 @@ public abstract class AdvancedReviewController<T> extends SightingsController {
     public void advancedReviewKMLSightings(HttpServletRequest request, HttpServletResponse response,
                                            List<Facet> facetList, ScrollableResults<T> sr, boolean serializeAttributes) throws IOException, JAXBException {
 
+        response.setContentType(BdrsWebConstants.KML_CONTENT_TYPE);
         BDRSKMLWriter writer = new BDRSKMLWriter(preferenceDAO,
-                getRequestContext().getServerURL(), null);
+                getRequestContext().getServerURL(), null, response.getOutputStream());
 
         User currentUser = getRequestContext().getUser();
         Session sesh = getRequestContext().getHibernate();
@@ -228,9 +234,7 @@ public abstract class AdvancedReviewController<T> extends SightingsController {
             }
         }
         writeKMLResults(writer, currentUser, rList, serializeAttributes);
-
-        response.setContentType(BdrsWebConstants.KML_CONTENT_TYPE);
-        writer.write(false, response.getOutputStream());
+        writer.close();
     }
 
     /**
@@ -248,9 +252,10 @@ public abstract class AdvancedReviewController<T> extends SightingsController {
      * @param rList               the list of results to write
      * @param serializeAttributes whether to serialize attributes as json which is embedded in the KML. Is slow
      *                            and can cause heap problems for large datasets
+     * @throws JAXBException
      */
     protected abstract void writeKMLResults(BDRSKMLWriter writer, User currentUser,
-                                            List<T> rList, boolean serializeAttributes);
+                                            List<T> rList, boolean serializeAttributes) throws JAXBException;
 
     /**
      * Turns the supplied PortalPersistentImpl into an Map containing it's properties.
@@ -279,7 +284,7 @@ public abstract class AdvancedReviewController<T> extends SightingsController {
         User user = requestContext.getUser();
 
         // Enabling this filter users from seeing results not allowed by their current role.
-        FilterManager.enableRecordFilter(requestContext.getHibernate(), user);
+        surveyAccessResolver.enableRecordFilter(requestContext.getHibernate(), user);
         FilterManager.enableLocationFilter(requestContext.getHibernate(), user);
     }
 
@@ -476,6 +481,33 @@ public abstract class AdvancedReviewController<T> extends SightingsController {
         return new ScrollableResultsImpl<T>(query, pageNumber, entriesPerPage);
     }
 
+    /**
+     * Applies the selection criteria represented by the provided {@link Facet}s
+     * and the associated {@link FacetOption}s returning the matching results
+     * with a forward only cursor, for downloads.
+     *
+     * @param facetList     the {@link Facet}s providing the selection criteria.
+     * @param surveyId      the primary key of the survey containing all eligible results.
+     *                      The <code>surveyId</code> may be null if all surveys are allowed.
+     * @param sortProperty  the HQL property that should be used for sorting.
+     *                      The sortProperty may be null if no sorting is necessary.
+     * @param sortOrder     the sorting order
+     * @param searchText    textual restriction to be applied to matching results.
+     * @param clearInterval the number of results read between each clear of the session,
+     *                      or 0 if the caller manages the session.
+     * @return the matching results as a forward only result set
+     * @see StreamingScrollableResults
+     */
+    protected ScrollableResults<T> getStreamingResults(List<Facet> facetList,
+                                                       Integer surveyId,
+                                                       String sortProperty,
+                                                       String sortOrder,
+                                                       String searchText,
+                                                       int clearInterval) {
+        Query query = getMatchingRecordsQuery(facetList, surveyId, sortProperty, sortOrder, searchText);
+        return new StreamingScrollableResults<T>(query, getRequestContext().getHibernate(), clearInterval);
+    }
+
 
     /**
      * Applies the selection criteria represented by the provided {@link Facet}s
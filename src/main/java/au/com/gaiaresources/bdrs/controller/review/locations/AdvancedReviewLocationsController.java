@@ -82,6 +82,7 @@ public class AdvancedReviewLocationsController extends AdvancedReviewController<
     private static final String KML_FILENAME = "Locations.kml";
     private static final String SHAPEFILE_ZIP_ENTRY_FORMAT = "shp/Locations.zip";
     private static final String XLS_ZIP_ENTRY_FORMAT = "xls/Locations.xls";
+    private static final String XLSX_ZIP_ENTRY_FORMAT = "xlsx/Locations.xlsx";
     
     public static final Set<String> VALID_SORT_PROPERTIES;
 
@@ -466,12 +467,13 @@ public class AdvancedReviewLocationsController extends AdvancedReviewController<
                         zos.closeEntry();
                         break;
                     }
-                    case XLS: {
+                    case XLS:
+                    case XLSX: {
                         // make sure scrollable records is rewound and ready to go!
                         sc.rewind();
                         
                         ZipEntry shpEntry = new ZipEntry(
-                                String.format(XLS_ZIP_ENTRY_FORMAT));
+                                rdf == RecordDownloadFormat.XLSX ? XLSX_ZIP_ENTRY_FORMAT : XLS_ZIP_ENTRY_FORMAT);
                         zos.putNextEntry(shpEntry);
 
                         downloadWriter.write(bulkDataService, rdf, zos, sesh, null, user, sc);
@@ -510,7 +512,7 @@ public class AdvancedReviewLocationsController extends AdvancedReviewController<
 
     @Override
     protected void writeKMLResults(BDRSKMLWriter writer, User currentUser,
-            List<Location> rList, boolean serializeAttributes) {
+            List<Location> rList, boolean serializeAttributes) throws JAXBException {
         if (!serializeAttributes) {
             throw new IllegalArgumentException("This implementation always serializes attributes");
         }
@@ -526,7 +528,7 @@ public class AdvancedReviewLocationsController extends AdvancedReviewController<
     private void writeKML(ZipOutputStream zos, Session sesh, ScrollableResults<Location> sc) throws JAXBException {
         int recordCount = 0;
         List<Location> locList = new ArrayList<Location>(ScrollableResults.RESULTS_BATCH_SIZE);
-        BDRSKMLWriter writer = new BDRSKMLWriter(preferenceDAO, getRequestContext().getServerURL(), null);
+        BDRSKMLWriter writer = new BDRSKMLWriter(preferenceDAO, getRequestContext().getServerURL(), null, zos);
         while (sc.hasMoreElements()) {
             locList.add(sc.nextElement());
             // evict to ensure garbage collection
@@ -541,7 +543,7 @@ public class AdvancedReviewLocationsController extends AdvancedReviewController<
         writer.writeLocations(locList);
         sesh.clear();
         
-        writer.write(false, zos);
+        writer.close();
     }
 
     @Override
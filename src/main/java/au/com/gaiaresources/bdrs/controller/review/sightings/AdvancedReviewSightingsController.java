@@ -13,6 +13,7 @@ import au.com.gaiaresources.bdrs.kml.BDRSKMLWriter;
 import au.com.gaiaresources.bdrs.model.location.Location;
 import au.com.gaiaresources.bdrs.model.method.CensusMethod;
 import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.record.RecordDAO;
 import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
 import au.com.gaiaresources.bdrs.model.report.Report;
 import au.com.gaiaresources.bdrs.model.report.ReportCapability;
@@ -33,6 +34,7 @@ import au.com.gaiaresources.bdrs.util.StringUtils;
 import edu.emory.mathcs.backport.java.util.Collections;
 import org.apache.log4j.Logger;
 import org.hibernate.Query;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -151,6 +153,9 @@ public class AdvancedReviewSightingsController extends AdvancedReviewController<
     
     private Logger log = Logger.getLogger(getClass());
 
+    @Autowired
+    private RecordDAO recordDAO;
+
     /**
      * Provides a view of the facet listing and a skeleton of the map or list
      * view. The map or list view will populate itself via asynchronous 
@@ -291,10 +296,12 @@ public class AdvancedReviewSightingsController extends AdvancedReviewController<
 
         List<Facet> facetList = facetService.getFacetList(currentUser(), newParamMap);
         
-        ScrollableResults<Record> sr = getScrollableResults(facetList, surveyId, 
-                                                            getParameter(newParamMap, SORT_BY_QUERY_PARAM_NAME), 
-                                                            getParameter(newParamMap, SORT_ORDER_QUERY_PARAM_NAME),
-                                                            getParameter(newParamMap, SEARCH_QUERY_PARAM_NAME));
+        // the KML writer clears the session after each batch of records
+        ScrollableResults<Record> sr = getStreamingResults(facetList, surveyId, 
+                                                           getParameter(newParamMap, SORT_BY_QUERY_PARAM_NAME), 
+                                                           getParameter(newParamMap, SORT_ORDER_QUERY_PARAM_NAME),
+                                                           getParameter(newParamMap, SEARCH_QUERY_PARAM_NAME),
+                                                           0);
         advancedReviewKMLSightings(request, response, facetList, sr, false);
     }
     
@@ -380,11 +387,13 @@ public class AdvancedReviewSightingsController extends AdvancedReviewController<
         }
 
         // I think 'surveyId' is not used for AdvancedReview but is used for MySightings
-        ScrollableResults<Record> sc = getScrollableResults(facetList,
+        // The download writers manage the session themselves.
+        ScrollableResults<Record> sc = getStreamingResults(facetList,
                 surveyId,
                 getParameter(newParamMap, SORT_BY_QUERY_PARAM_NAME),
                 getParameter(newParamMap, SORT_ORDER_QUERY_PARAM_NAME),
-                getParameter(newParamMap, SEARCH_QUERY_PARAM_NAME));
+                getParameter(newParamMap, SEARCH_QUERY_PARAM_NAME),
+                0);
 
         downloadSightings(response, downloadFormat, sc, surveyList);
     }
@@ -499,9 +508,15 @@ public class AdvancedReviewSightingsController extends AdvancedReviewController<
             Integer surveyId, String searchText) {
 
     	applyJoinsForBaseQuery(hqlQuery);
+
+        // the records matching the search text are found in the record index if possible
+        Predicate indexPredicate = null;
+        if(searchText != null && !searchText.isEmpty()) {
+            indexPredicate = recordDAO.createSearchPredicate("record.id", searchText);
+        }
     	
-    	// If we are doing a text search, add a few extra joins.
-    	if(searchText != null && !searchText.isEmpty()) {
+    	// If we are doing a text search without the index, add a few extra joins.
+    	if(searchText != null && !searchText.isEmpty() && indexPredicate == null) {
             if (!hqlQuery.hasAlias(ATTRIBUTE_VALUE_ALIAS)) {
                 hqlQuery.leftJoin("record.attributes", ATTRIBUTE_VALUE_ALIAS);
             }
@@ -518,7 +533,9 @@ public class AdvancedReviewSightingsController extends AdvancedReviewController<
             }
         }
         
-        if(searchText != null && !searchText.isEmpty()) {
+        if(indexPredicate != null) {
+            hqlQuery.and(indexPredicate);
+        } else if(searchText != null && !searchText.isEmpty()) {
         	String formattedSearchText = String.format("%%%s%%", searchText);
             Predicate searchPredicate = Predicate.ilike("record.notes", formattedSearchText);
             searchPredicate.or(Predicate.ilike("record.user.name", String.format("%%%s%%", searchText)));
@@ -648,7 +665,7 @@ public class AdvancedReviewSightingsController extends AdvancedReviewController<
     */
     @Override
     protected void writeKMLResults(BDRSKMLWriter writer, User currentUser,
-                                   List<Record> rList, boolean serializeAttributes) {
+                                   List<Record> rList, boolean serializeAttributes) throws JAXBException {
         writer.writeRecords(currentUser, rList, serializeAttributes);
     }
 
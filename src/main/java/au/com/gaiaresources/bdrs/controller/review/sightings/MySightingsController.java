@@ -31,7 +31,6 @@ import org.springframework.web.servlet.ModelAndView;
 import au.com.gaiaresources.bdrs.controller.map.RecordDownloadFormat;
 import au.com.gaiaresources.bdrs.controller.map.RecordDownloadWriter;
 import au.com.gaiaresources.bdrs.controller.map.WebMap;
-import au.com.gaiaresources.bdrs.db.FilterManager;
 import au.com.gaiaresources.bdrs.db.ScrollableResults;
 import au.com.gaiaresources.bdrs.db.impl.SortOrder;
 import au.com.gaiaresources.bdrs.db.impl.SortingCriteria;
@@ -54,6 +53,7 @@ import au.com.gaiaresources.bdrs.model.taxa.TaxaDAO;
 import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
 import au.com.gaiaresources.bdrs.model.user.User;
 import au.com.gaiaresources.bdrs.security.Role;
+import au.com.gaiaresources.bdrs.service.survey.SurveyAccessResolver;
 import au.com.gaiaresources.bdrs.servlet.BdrsWebConstants;
 import au.com.gaiaresources.bdrs.util.SpatialUtil;
 import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
@@ -118,6 +118,8 @@ public class MySightingsController extends SightingsController {
     private GeoMapDAO geoMapDAO;
     @Autowired
     private PreferenceDAO preferenceDAO;
+    @Autowired
+    private SurveyAccessResolver surveyAccessResolver;
 
     /**
      * Displays a tabbed view of a selected set of records.
@@ -224,6 +226,7 @@ public class MySightingsController extends SightingsController {
         mv.addObject("download_kml_selected", Arrays.binarySearch(downloadFormat, RecordDownloadFormat.KML.toString()) > -1);
         mv.addObject("download_shp_selected", Arrays.binarySearch(downloadFormat, RecordDownloadFormat.SHAPEFILE.toString()) > -1);
         mv.addObject("download_xls_selected", Arrays.binarySearch(downloadFormat, RecordDownloadFormat.XLS.toString()) > -1);
+        mv.addObject("download_xlsx_selected", Arrays.binarySearch(downloadFormat, RecordDownloadFormat.XLSX.toString()) > -1);
 
         // A limited user should not see the download tab
         mv.addObject("hideDownload", user.isLimitedUser());
@@ -468,7 +471,10 @@ public class MySightingsController extends SightingsController {
         SortOrder sortOrder = SortOrder.valueOf(sortOrderStr);
 
         RecordFilter filter = getRecordFilter(surveyId, taxonGroupId, taxonSearch, startDate, endDate, user, userRecordsOnly, limit, false);
-        ScrollableRecords sr = getScrollableRecords(filter, sortBy, sortOrder);
+        List<SortingCriteria> sortCriteria = new ArrayList<SortingCriteria>(1);
+        sortCriteria.add(new SortingCriteria(sortBy, sortOrder));
+        // The download writers manage the session themselves.
+        ScrollableRecords sr = recordDAO.getStreamingRecords(filter, sortCriteria, 0);
 
         List<Survey> surveyList;
         if (surveyId == 0) {
@@ -525,7 +531,7 @@ public class MySightingsController extends SightingsController {
         }
         
         if (!userRecordsOnly) {
-            FilterManager.enableRecordFilter(getRequestContext().getHibernate(), accessor);
+            surveyAccessResolver.enableRecordFilter(getRequestContext().getHibernate(), accessor);
         }
 
         if(limit > 0) {
@@ -31,6 +31,7 @@ public abstract class SightingsController extends RecordController {
     private static final String KML_FILENAME = "Records.kml";
     private static final String SHAPEFILE_ZIP_ENTRY_FORMAT = "shp/Survey%d_%s.zip";
     private static final String XLS_ZIP_ENTRY_FORMAT = "xls/Survey%d_%s.xls";
+    private static final String XLSX_ZIP_ENTRY_FORMAT = "xlsx/Survey%d_%s.xlsx";
     
     public static final String SIGHTINGS_DOWNLOAD_CONTENT_TYPE = "application/zip";
     
@@ -69,7 +70,6 @@ public abstract class SightingsController extends RecordController {
             if (downloadFormat != null) {
                 String serverURL = getRequestContext().getServerURL();
                 Session sesh = getRequestContext().getHibernate();
-                BDRSKMLWriter kmlWriter = new BDRSKMLWriter(preferenceDAO, serverURL, null);
                 RecordDownloadWriter downloadWriter =
                         new RecordDownloadWriter(preferenceDAO, serverURL, true);
                 for (String format : downloadFormat) {
@@ -81,7 +81,8 @@ public abstract class SightingsController extends RecordController {
                         sc.rewind();
                         ZipEntry kmlEntry = new ZipEntry(KML_FILENAME);
                         zos.putNextEntry(kmlEntry);
-                        writeKML(zos, sesh, kmlWriter, user, sc, true);
+                        BDRSKMLWriter kmlWriter = new BDRSKMLWriter(preferenceDAO, serverURL, null, zos);
+                        writeKML(sesh, kmlWriter, user, sc, true);
                         zos.closeEntry();
                         break;
                     }
@@ -106,14 +107,16 @@ public abstract class SightingsController extends RecordController {
                         }
                         break;
                     }
-                    case XLS: {
+                    case XLS:
+                    case XLSX: {
+                        String entryFormat = rdf == RecordDownloadFormat.XLSX ? XLSX_ZIP_ENTRY_FORMAT : XLS_ZIP_ENTRY_FORMAT;
                         for (Survey survey : surveyList) {
                             
                             // make sure scrollable records is rewound and ready to go!
                             sc.rewind();
                             
                             ZipEntry shpEntry = new ZipEntry(
-                                    String.format(XLS_ZIP_ENTRY_FORMAT, survey.getId(), FileUtils.getSafeFilename(survey.getName())));
+                                    String.format(entryFormat, survey.getId(), FileUtils.getSafeFilename(survey.getName())));
                             zos.putNextEntry(shpEntry);
 
                             // The writer impl will flush the session and disconnect the survey.
@@ -143,16 +146,15 @@ public abstract class SightingsController extends RecordController {
     /**
      * Write KML
      * 
-     * @param zos ZipOutputStream
      * @param sesh Hibernate session
-     * @param writer BDRSKMLWriter
+     * @param writer BDRSKMLWriter streaming to the zip entry
      * @param user User requesting the write
      * @param sc Hibernate scrollable record results
      * @param serializeAttributes Whether to include record attributes as json which is embedded in the KML.
      * Very slow database access for large numbers of records and may also cause heap problems!
      * @throws JAXBException
      */
-    private void writeKML(ZipOutputStream zos, Session sesh, BDRSKMLWriter writer, User user, ScrollableResults<Record> sc,
+    private void writeKML(Session sesh, BDRSKMLWriter writer, User user, ScrollableResults<Record> sc,
             boolean serializeAttributes) throws JAXBException {
         int recordCount = 0;
         List<Record> rList = new ArrayList<Record>(ScrollableResults.RESULTS_BATCH_SIZE);
@@ -173,6 +175,6 @@ public abstract class SightingsController extends RecordController {
         writer.writeRecords(user, rList, serializeAttributes);
         sesh.clear();
         
-        writer.write(false, zos);
+        writer.close();
     }
 }
@@ -26,14 +26,16 @@ import au.com.gaiaresources.bdrs.model.taxa.*;
 import au.com.gaiaresources.bdrs.model.user.User;
 import au.com.gaiaresources.bdrs.model.user.UserDAO;
 import au.com.gaiaresources.bdrs.security.UserDetails;
+import au.com.gaiaresources.bdrs.service.survey.SpeciesPack;
+import au.com.gaiaresources.bdrs.service.survey.SpeciesPackService;
 import au.com.gaiaresources.bdrs.service.survey.SurveyImportExportService;
 import au.com.gaiaresources.bdrs.servlet.BdrsWebConstants;
 import au.com.gaiaresources.bdrs.servlet.RequestContext;
 import au.com.gaiaresources.bdrs.servlet.RequestContextHolder;
 import au.com.gaiaresources.bdrs.util.SpatialUtil;
 import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
-import javassist.scopedpool.SoftValueHashMap;
 import org.apache.commons.beanutils.PropertyUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.codehaus.plexus.util.StringUtils;
 import org.hibernate.FlushMode;
@@ -48,16 +50,21 @@ import org.springframework.web.servlet.ModelAndView;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.math.BigDecimal;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 
 @Controller
 public class ApplicationService extends AbstractController {
     
     public static final String DOWNLOAD_SURVEY_SPECIES_URL = "/webservice/application/surveySpeciesDownload.htm";
+    public static final String DOWNLOAD_SURVEY_SPECIES_PACK_URL = "/webservice/application/surveySpeciesPack.htm";
     public static final String DOWNLOAD_SURVEY_NO_SPECIES_URL = "/webservice/application/surveyDownload.htm";
     public static final String CREATE_SURVEY_URL = "/webservice/application/createSurvey.htm";
     
@@ -125,6 +132,11 @@ public class ApplicationService extends AbstractController {
 
     public static final String PARAM_INCLUDE_PROFILE = "includeProfile";
     
+    /**
+     * The number of client records synchronised before the session is flushed and cleared.
+     */
+    public static final int CLIENT_SYNC_BATCH_SIZE = 200;
+    
     private Logger log = Logger.getLogger(getClass());
 
     @Autowired
@@ -160,6 +172,9 @@ public class ApplicationService extends AbstractController {
     @Autowired
     private ManagedFileDAO managedFileDAO;
 
+    @Autowired
+    private SpeciesPackService speciesPackService;
+
     @Autowired
     private RecordGroupDAO recordGroupDAO;
     
@@ -498,6 +513,14 @@ public class ApplicationService extends AbstractController {
                 }
             }
 
+            if (surveysOnDevice.isEmpty()) {
+                // the page is read from the species pack of the survey
+                String slice = speciesPackService.getSlice(getRequestContext().getHibernate(), s, 
+                        includeProfile, first, maxResults);
+                this.writeJson(response, slice);
+                return;
+            }
+
             Set<TaxonGroup> groupsInSpecies = new HashSet<TaxonGroup>();
             
             int speciesDownloadCount = taxaDAO.countActualSpeciesForSurvey(s, surveysOnDevice);
@@ -574,6 +597,133 @@ public class ApplicationService extends AbstractController {
         this.writeJson(response, result.toString());
     }
     
+    /**
+     * Download all of the species of a survey as a single gzip compressed
+     * JSON document, in the same form as a page of the species download.
+     * The document is versioned by its ETag, a request with the ETag of the
+     * current version in If-None-Match is answered with 304 Not Modified.
+     * A single byte range of the compressed document may be requested to
+     * resume an interrupted download.
+     * 
+     * @param request HttpRequest
+     * @param response HttpResponse
+     * @param surveyId Survey that owns species
+     * @param includeProfile true if the species profile items are included
+     * @throws IOException Error writing to output stream
+     */
+    @RequestMapping(value = DOWNLOAD_SURVEY_SPECIES_PACK_URL, method = RequestMethod.GET)
+    public void surveySpeciesPack(HttpServletRequest request, HttpServletResponse response,
+            @RequestParam(value=BdrsWebConstants.PARAM_SURVEY_ID, required=true) Integer surveyId,
+            @RequestParam(value=PARAM_INCLUDE_PROFILE, defaultValue="true") Boolean includeProfile) throws IOException {
+
+        Survey s = surveyDAO.get(surveyId);
+        if (s == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Survey could not be found for id = " + surveyId);
+            return;
+        }
+        SpeciesPack pack = speciesPackService.getPack(getRequestContext().getHibernate(), s, includeProfile);
+
+        String etag = pack.getETag();
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "private, must-revalidate");
+        response.setHeader("Vary", "Accept-Encoding");
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || "*".equals(ifNoneMatch.trim()))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null || !acceptEncoding.contains("gzip")) {
+            // ranges are only served of the compressed document
+            InputStream in = new GZIPInputStream(new FileInputStream(pack.getPackFile()));
+            try {
+                IOUtils.copy(in, response.getOutputStream());
+            } finally {
+                in.close();
+            }
+            return;
+        }
+
+        long length = pack.getPackLength();
+        long start = 0;
+        long end = length - 1;
+        response.setHeader("Content-Encoding", "gzip");
+        response.setHeader("Accept-Ranges", "bytes");
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            long[] bounds = parseByteRange(range, length);
+            if (bounds == null) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            start = bounds[0];
+            end = bounds[1];
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", String.format("bytes %d-%d/%d", start, end, length));
+        }
+        response.setContentLength((int) (end - start + 1));
+
+        InputStream in = new FileInputStream(pack.getPackFile());
+        try {
+            long skipped = 0;
+            while (skipped < start) {
+                skipped += in.skip(start - skipped);
+            }
+            copy(in, response.getOutputStream(), end - start + 1);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parses a single byte range, bytes=first-last, bytes=first- or bytes=-suffix.
+     * @return the first and last byte of the range, or null if the range is
+     * not valid for the length.
+     */
+    private long[] parseByteRange(String range, long length) {
+        range = range.trim();
+        if (!range.startsWith("bytes=") || range.contains(",")) {
+            return null;
+        }
+        String[] split = range.substring("bytes=".length()).split("-", -1);
+        if (split.length != 2) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (split[0].trim().isEmpty()) {
+                long suffix = Long.parseLong(split[1].trim());
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(split[0].trim());
+                end = split[1].trim().isEmpty() ? length - 1 : Math.min(length - 1, Long.parseLong(split[1].trim()));
+            }
+            return start <= end && start < length ? new long[] { start, end } : null;
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    private void copy(InputStream in, OutputStream out, long count) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (count > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read < 0) {
+                break;
+            }
+            out.write(buffer, 0, read);
+            count -= read;
+        }
+        out.flush();
+    }
+    
     @RequestMapping(value = "/webservice/application/clientSyncLocations.htm", method = RequestMethod.POST)
     public ModelAndView clientSyncLocations(HttpServletRequest request, HttpServletResponse response,
             @RequestParam(value="inFrame", defaultValue="true") boolean inFrame) throws IOException {
@@ -614,9 +764,9 @@ public class ApplicationService extends AbstractController {
                 // to the new server id.
                 SyncResponse syncResponse = new SyncResponse();
                 JSONArray clientData = JSONArray.fromString(jsonData);
-                SoftValueHashMap attrCache = new SoftValueHashMap();
+                ClientSyncCache cache = new ClientSyncCache(recordDAO, recordGroupDAO);
                 for(Object jsonLocationBean : clientData){
-                    syncLocation(syncResponse, jsonLocationBean, user, attrCache, spatialUtilFactory);
+                    syncLocation(syncResponse, jsonLocationBean, user, cache, spatialUtilFactory);
                 }
                 
                 status.put("sync_result", syncResponse.getResponse());
@@ -659,7 +809,7 @@ public class ApplicationService extends AbstractController {
     }
     
     private void syncLocation(SyncResponse syncResponse,
-                              Object jsonLocationBean, User user, SoftValueHashMap attrCache, 
+                              Object jsonLocationBean, User user, ClientSyncCache cache, 
                               SpatialUtilFactory spatialUtilFactory)
             throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, IOException {
         
@@ -705,7 +855,7 @@ public class ApplicationService extends AbstractController {
         // Attribute Values
         List<Object> locAttrBeanList = (List<Object>) PropertyUtils.getProperty(jsonLocationBean, "attributes");
         for(Object jsonLocAttrValBean : locAttrBeanList) { 
-            AttributeValue locAttrVal = syncAttributeValue(syncResponse, jsonLocAttrValBean, attrCache);
+            AttributeValue locAttrVal = syncAttributeValue(syncResponse, jsonLocAttrValBean, cache);
             if (locAttrVal != null) {
                 loc.getAttributes().add(locAttrVal);
             }
@@ -795,11 +945,23 @@ public class ApplicationService extends AbstractController {
 
                 JSONArray clientData = JSONArray.fromString(jsonData);
 
-                SoftValueHashMap attrCache = new SoftValueHashMap();
-                SoftValueHashMap recordGroupCache = new SoftValueHashMap();
-                for(Object jsonRecordBean : clientData) {
-                    syncRecord(syncResponse,
-                            jsonRecordBean, user, attrCache, recordGroupCache, spatialUtilFactory);
+                // The records are synchronised in batches. Everything referenced
+                // by a batch is loaded up front and the session is flushed and
+                // cleared after each batch so that large syncs do not fill the
+                // session.
+                Session sesh = getRequestContext().getHibernate();
+                List<Object> batch = new ArrayList<Object>(CLIENT_SYNC_BATCH_SIZE);
+                for(int i=0; i<clientData.size(); i++) {
+                    batch.add(clientData.get(i));
+                    if (batch.size() == CLIENT_SYNC_BATCH_SIZE || i == clientData.size() - 1) {
+                        ClientSyncCache cache = createRecordSyncCache(batch);
+                        for(Object jsonRecordBean : batch) {
+                            syncRecord(syncResponse, jsonRecordBean, user, cache, spatialUtilFactory);
+                        }
+                        sesh.flush();
+                        sesh.clear();
+                        batch.clear();
+                    }
                 }
 
                 status.put("sync_result", syncResponse.getResponse());
@@ -1007,9 +1169,57 @@ public class ApplicationService extends AbstractController {
         }
     }
     
+    /**
+     * Creates a cache containing everything referenced by the batch of 
+     * client records.
+     * @param batch the json representation of the records.
+     * @return the loaded cache.
+     */
+    private ClientSyncCache createRecordSyncCache(List<Object> batch)
+        throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        ClientSyncCache cache = new ClientSyncCache(recordDAO, recordGroupDAO);
+        for (Object jsonRecordBean : batch) {
+            Integer recordPk = getJSONInteger(jsonRecordBean, "server_id", 0);
+            if (recordPk < 1) {
+                cache.addRecordClientId(getJSONString(jsonRecordBean, "id", null));
+            } else {
+                cache.addId(Record.class, recordPk);
+            }
+            cache.addId(Record.class, getJSONInteger(jsonRecordBean, "parentRecord_id", null));
+            cache.addId(Location.class, getJSONInteger(jsonRecordBean, "location", null));
+            cache.addId(CensusMethod.class, getJSONInteger(jsonRecordBean, "censusMethod_id", null));
+            cache.addId(Survey.class, getJSONInteger(jsonRecordBean, "survey_id", null));
+            cache.addId(IndicatorSpecies.class, getJSONInteger(jsonRecordBean, JSON_KEY_TAXON_ID, null));
+            
+            String parentAttributeValueSid = getJSONString(jsonRecordBean, "parentAttributeValueSid", null);
+            if (parentAttributeValueSid != null) {
+                cache.addId(AttributeValue.class, Integer.parseInt(parentAttributeValueSid));
+            }
+            
+            List<Object> recAttrBeanList = (List<Object>) PropertyUtils.getProperty(jsonRecordBean, "attributeValues");
+            for (Object jsonRecAttrBean : recAttrBeanList) {
+                cache.addId(Attribute.class, getJSONInteger(jsonRecAttrBean, "attribute_id", null));
+                cache.addId(AttributeValue.class, getJSONInteger(jsonRecAttrBean, "server_id", 0));
+                cache.addId(IndicatorSpecies.class, getJSONInteger(jsonRecAttrBean, JSON_KEY_TAXON_ID, null));
+            }
+            
+            JSONObject jsonObj = (JSONObject)jsonRecordBean;
+            if (jsonObj.has("recordGroup")) {
+                JSONObject recordGroupJson = jsonObj.getJSONObject("recordGroup");
+                int recordGroupId = recordGroupJson.optInt("server_id", 0);
+                if (recordGroupId != 0) {
+                    cache.addId(RecordGroup.class, recordGroupId);
+                } else {
+                    cache.addRecordGroupClientId(recordGroupJson.getString("id"));
+                }
+            }
+        }
+        cache.load();
+        return cache;
+    }
+    
     private void syncRecord(SyncResponse syncResponse,
-            Object jsonRecordBean, User user, SoftValueHashMap attrCache,
-            SoftValueHashMap recordGroupCache,
+            Object jsonRecordBean, User user, ClientSyncCache cache,
     		SpatialUtilFactory spatialUtilFactory)
         throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, IOException {
 
@@ -1021,9 +1231,9 @@ public class ApplicationService extends AbstractController {
         Integer recordPk = getJSONInteger(jsonRecordBean, "server_id", 0);
         Record rec;
         if(recordPk < 1) {
-            rec = recordDAO.getRecordByClientID(clientID);
+            rec = cache.getRecordByClientId(clientID);
         } else {
-            rec = recordDAO.getRecord(recordPk);
+            rec = cache.get(Record.class, recordPk);
             if (rec == null) {
                 log.error("Sync record: Retrieved null record for record pk = " + recordPk);
                 throw new IllegalStateException("Record cannot be null here");
@@ -1061,7 +1271,7 @@ public class ApplicationService extends AbstractController {
         //set location for record if exists
         Integer locationId = getJSONInteger(jsonRecordBean, "location", null);
         if (locationId != null) {
-            Location l = locationDAO.getLocation(locationId.intValue());
+            Location l = cache.get(Location.class, locationId);
             rec.setLocation(l);
         }
 
@@ -1091,13 +1301,13 @@ public class ApplicationService extends AbstractController {
         
         Integer censusMethodPk = getJSONInteger(jsonRecordBean, "censusMethod_id", null);
         if(censusMethodPk != null) {
-            rec.setCensusMethod(censusMethodDAO.get(censusMethodPk));
+            rec.setCensusMethod(cache.get(CensusMethod.class, censusMethodPk));
         }
 
         // This section operates if the id is a server side primary key.
         Integer parentRecordPk = getJSONInteger(jsonRecordBean, "parentRecord_id", null);
         if(parentRecordPk != null) {
-            rec.setParentRecord(recordDAO.getRecord(parentRecordPk));
+            rec.setParentRecord(cache.get(Record.class, parentRecordPk));
         }
 
         // This operates on a client side id.
@@ -1118,7 +1328,7 @@ public class ApplicationService extends AbstractController {
         {
             String clientParentAttributeValueSid = getJSONString(jsonRecordBean, "parentAttributeValueSid", null);
             if(clientParentAttributeValueSid != null) {
-                AttributeValue av = attributeValueDAO.get(Integer.parseInt(clientParentAttributeValueSid));
+                AttributeValue av = cache.get(AttributeValue.class, Integer.parseInt(clientParentAttributeValueSid));
                 rec.setAttributeValue(av);
             }
         }
@@ -1128,7 +1338,7 @@ public class ApplicationService extends AbstractController {
         String scientificName = getJSONString(jsonRecordBean, "scientificName", null);
         Integer taxonPk = getJSONInteger(jsonRecordBean, JSON_KEY_TAXON_ID, null);
         if(taxonPk != null) {
-            IndicatorSpecies taxon = taxaDAO.getIndicatorSpecies(taxonPk);
+            IndicatorSpecies taxon = cache.get(IndicatorSpecies.class, taxonPk);
             if(taxon == null) {
                 // Must be a field species
                 // Don't create a new field name attribute if one already exists...
@@ -1147,7 +1357,7 @@ public class ApplicationService extends AbstractController {
 
         rec.setUser(user);
         if(surveyPk != null) {
-        	Survey s = surveyDAO.getSurvey(surveyPk);
+        	Survey s = cache.get(Survey.class, surveyPk);
             if (s != null) {
                 rec.setSurvey(s);
                 rec.setRecordVisibility(s.getDefaultRecordVisibility());
@@ -1157,10 +1367,11 @@ public class ApplicationService extends AbstractController {
 
         
         syncResponse.add(Record.class, clientID, rec);
+        cache.putRecord(clientID, rec);
 
         List<Object> recAttrBeanList = (List<Object>) PropertyUtils.getProperty(jsonRecordBean, "attributeValues");
         for(Object jsonRecAttrBean : recAttrBeanList) {
-            AttributeValue recAttr = syncAttributeValue(syncResponse, jsonRecAttrBean, attrCache);
+            AttributeValue recAttr = syncAttributeValue(syncResponse, jsonRecAttrBean, cache);
             if (recAttr != null) {
                 rec.getAttributes().add(recAttr);
             }
@@ -1173,20 +1384,9 @@ public class ApplicationService extends AbstractController {
             int recordGroupId = recordGroupJson.optInt("server_id", 0);
             RecordGroup group;
             if (recordGroupId != 0) {
-                group = (RecordGroup)recordGroupCache.get(recordGroupId);
-                if (group == null) {
-                    group = recordGroupDAO.getRecordGroup(recordGroupId);
-                }
+                group = cache.get(RecordGroup.class, recordGroupId);
             } else {
-                group = (RecordGroup)recordGroupCache.get(recordGroupClientId);
-                if (group == null) {
-                    group = recordGroupDAO.getRecordGroupByClientID(recordGroupClientId);
-                }
-            }
-            if (group != null && group.getId() != null) {
-                // add to cache
-                recordGroupCache.put(group.getId(), group);
-                recordGroupCache.put(recordGroupClientId, group);
+                group = cache.getRecordGroupByClientId(recordGroupClientId);
             }
             rec.setRecordGroup(group);
         }
@@ -1200,7 +1400,7 @@ public class ApplicationService extends AbstractController {
         recordDAO.saveRecord(rec);
     }
     
-    private AttributeValue syncAttributeValue(SyncResponse syncResponse, Object jsonRecAttrBean, SoftValueHashMap attrCache)
+    private AttributeValue syncAttributeValue(SyncResponse syncResponse, Object jsonRecAttrBean, ClientSyncCache cache)
         throws IllegalAccessException, InvocationTargetException, NoSuchMethodException, IOException {
         String id = getJSONString(jsonRecAttrBean, "id", null);
         if(id == null) {
@@ -1211,11 +1411,7 @@ public class ApplicationService extends AbstractController {
         Integer attrPk = getJSONInteger(jsonRecAttrBean, "attribute_id", null);
         String value = getJSONString(jsonRecAttrBean, "value", "");
 
-        Attribute attr = (Attribute)attrCache.get(attrPk);
-        if(attr == null) {
-            attr = taxaDAO.getAttribute(attrPk);
-            attrCache.put(attrPk, attr);
-        }
+        Attribute attr = cache.get(Attribute.class, attrPk);
 
         // This attribute is still null. We have a situation where
         // the attribute exists on the device but not on the server.
@@ -1226,7 +1422,7 @@ public class ApplicationService extends AbstractController {
             return null;
         }
 
-        AttributeValue attrVal = attrValPk < 1 ? new AttributeValue() : attributeValueDAO.get(attrValPk);
+        AttributeValue attrVal = attrValPk < 1 ? new AttributeValue() : cache.get(AttributeValue.class, attrValPk);
         if (attrVal == null) {
             attrVal = new AttributeValue();
         }
@@ -1328,7 +1524,7 @@ public class ApplicationService extends AbstractController {
             {
                 Integer taxonId = getJSONInteger(jsonRecAttrBean, JSON_KEY_TAXON_ID, null);
                 if (taxonId != null) {
-                        IndicatorSpecies species = taxaDAO.getIndicatorSpecies(taxonId);
+                        IndicatorSpecies species = cache.get(IndicatorSpecies.class, taxonId);
                         attrVal.setSpecies(species);
                         if (species != null) {
                                 attrVal.setStringValue(value);
@@ -1353,6 +1549,7 @@ public class ApplicationService extends AbstractController {
 
         if(filename != null && base64 != null) {
             fileService.createFile(attrVal.getClass(), attrVal.getId(), filename, Base64.decode(base64));
+            fileService.generateThumbnails(attrVal, filename);
         }
         
         syncResponse.add(AttributeValue.class, id, attrVal);
@@ -0,0 +1,212 @@
+package au.com.gaiaresources.bdrs.controller.webservice;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import au.com.gaiaresources.bdrs.db.impl.PersistentImpl;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.record.RecordDAO;
+import au.com.gaiaresources.bdrs.model.record.RecordGroup;
+import au.com.gaiaresources.bdrs.model.record.RecordGroupDAO;
+
+/**
+ * Holds the persistent objects referenced by a batch of objects synchronised
+ * from a mobile client. The primary keys and client ids referenced by the
+ * batch are registered first and then loaded with one query per class by
+ * {@link #load()}. Objects that were not registered are loaded individually
+ * when they are first requested.
+ *
+ * A cache must not be used after the session it was loaded in has been
+ * cleared.
+ */
+public class ClientSyncCache {
+
+    private RecordDAO recordDAO;
+    private RecordGroupDAO recordGroupDAO;
+
+    private Map<Class<?>, Set<Integer>> pendingIds = new HashMap<Class<?>, Set<Integer>>();
+    private Set<String> pendingRecordClientIds = new HashSet<String>();
+    private Set<String> pendingRecordGroupClientIds = new HashSet<String>();
+
+    private Map<Class<?>, Map<Integer, PersistentImpl>> cache = new HashMap<Class<?>, Map<Integer, PersistentImpl>>();
+    private Map<String, Record> recordsByClientId = new HashMap<String, Record>();
+    private Map<String, RecordGroup> recordGroupsByClientId = new HashMap<String, RecordGroup>();
+
+    /**
+     * @param recordDAO used to load records and all other classes except record groups.
+     * @param recordGroupDAO used to load record groups.
+     */
+    public ClientSyncCache(RecordDAO recordDAO, RecordGroupDAO recordGroupDAO) {
+        this.recordDAO = recordDAO;
+        this.recordGroupDAO = recordGroupDAO;
+    }
+
+    /**
+     * Registers a primary key to be loaded by {@link #load()}.
+     * @param clazz the class of the persistent object.
+     * @param id the primary key. Null and non positive keys are ignored.
+     */
+    public void addId(Class<? extends PersistentImpl> clazz, Integer id) {
+        if (id == null || id < 1) {
+            return;
+        }
+        Set<Integer> ids = pendingIds.get(clazz);
+        if (ids == null) {
+            ids = new HashSet<Integer>();
+            pendingIds.put(clazz, ids);
+        }
+        ids.add(id);
+    }
+
+    /**
+     * Registers the client id of a record to be loaded by {@link #load()}.
+     * @param clientId the client id of the record.
+     */
+    public void addRecordClientId(String clientId) {
+        if (clientId != null) {
+            pendingRecordClientIds.add(clientId);
+        }
+    }
+
+    /**
+     * Registers the client id of a record group to be loaded by {@link #load()}.
+     * @param clientId the client id of the record group.
+     */
+    public void addRecordGroupClientId(String clientId) {
+        if (clientId != null) {
+            pendingRecordGroupClientIds.add(clientId);
+        }
+    }
+
+    /**
+     * Loads all registered objects. Client ids are resolved to primary keys
+     * first so that each class is loaded with a single query.
+     */
+    public void load() {
+        Map<String, Integer> recordIds = pendingRecordClientIds.isEmpty() ?
+                Collections.<String, Integer>emptyMap() : recordDAO.getRecordIdsByClientID(pendingRecordClientIds);
+        for (Integer id : recordIds.values()) {
+            addId(Record.class, id);
+        }
+        Map<String, Integer> recordGroupIds = pendingRecordGroupClientIds.isEmpty() ?
+                Collections.<String, Integer>emptyMap() : recordGroupDAO.getRecordGroupIdsByClientID(pendingRecordGroupClientIds);
+        for (Integer id : recordGroupIds.values()) {
+            addId(RecordGroup.class, id);
+        }
+
+        for (Map.Entry<Class<?>, Set<Integer>> entry : pendingIds.entrySet()) {
+            Class<?> clazz = entry.getKey();
+            Set<Integer> ids = entry.getValue();
+            List<? extends PersistentImpl> loaded;
+            if (Record.class.equals(clazz)) {
+                // records are updated so their collections are needed as well
+                loaded = recordDAO.getRecordsWithAttributes(ids);
+            } else if (RecordGroup.class.equals(clazz)) {
+                loaded = recordGroupDAO.getByIDs(RecordGroup.class, ids);
+            } else {
+                loaded = recordDAO.getByIDs(clazz.asSubclass(PersistentImpl.class), ids);
+            }
+
+            Map<Integer, PersistentImpl> classCache = getClassCache(clazz);
+            for (Integer id : ids) {
+                // remember the misses so that they are not queried again
+                classCache.put(id, null);
+            }
+            for (PersistentImpl p : loaded) {
+                classCache.put(p.getId(), p);
+            }
+        }
+
+        for (Map.Entry<String, Integer> entry : recordIds.entrySet()) {
+            recordsByClientId.put(entry.getKey(), get(Record.class, entry.getValue()));
+        }
+        for (Map.Entry<String, Integer> entry : recordGroupIds.entrySet()) {
+            recordGroupsByClientId.put(entry.getKey(), get(RecordGroup.class, entry.getValue()));
+        }
+
+        pendingIds.clear();
+        pendingRecordClientIds.clear();
+        pendingRecordGroupClientIds.clear();
+    }
+
+    /**
+     * Returns the persistent object with the specified primary key, loading it
+     * if it was not registered before {@link #load()}.
+     * @param clazz the class of the persistent object.
+     * @param id the primary key.
+     * @return the persistent object or null if it does not exist.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends PersistentImpl> T get(Class<T> clazz, Integer id) {
+        if (id == null) {
+            return null;
+        }
+        Map<Integer, PersistentImpl> classCache = getClassCache(clazz);
+        if (!classCache.containsKey(id)) {
+            addId(clazz, id);
+            load();
+        }
+        return (T) classCache.get(id);
+    }
+
+    /**
+     * Returns the record with the specified client id. Records added with
+     * {@link #putRecord(String, Record)} are returned even if they have not
+     * been flushed.
+     * @param clientId the client id of the record.
+     * @return the record or null if there is no record with the client id.
+     */
+    public Record getRecordByClientId(String clientId) {
+        if (!recordsByClientId.containsKey(clientId)) {
+            addRecordClientId(clientId);
+            load();
+            if (!recordsByClientId.containsKey(clientId)) {
+                recordsByClientId.put(clientId, null);
+            }
+        }
+        return recordsByClientId.get(clientId);
+    }
+
+    /**
+     * Returns the record group with the specified client id.
+     * @param clientId the client id of the record group.
+     * @return the record group or null if there is no record group with the client id.
+     */
+    public RecordGroup getRecordGroupByClientId(String clientId) {
+        if (!recordGroupsByClientId.containsKey(clientId)) {
+            addRecordGroupClientId(clientId);
+            load();
+            if (!recordGroupsByClientId.containsKey(clientId)) {
+                recordGroupsByClientId.put(clientId, null);
+            }
+        }
+        return recordGroupsByClientId.get(clientId);
+    }
+
+    /**
+     * Associates a record with its client id, so that a record synchronised
+     * twice in the same batch is only created once.
+     * @param clientId the client id of the record.
+     * @param record the record.
+     */
+    public void putRecord(String clientId, Record record) {
+        recordsByClientId.put(clientId, record);
+        if (record.getId() != null) {
+            getClassCache(Record.class).put(record.getId(), record);
+        }
+    }
+
+    private Map<Integer, PersistentImpl> getClassCache(Class<?> clazz) {
+        Map<Integer, PersistentImpl> classCache = cache.get(clazz);
+        if (classCache == null) {
+            classCache = new HashMap<Integer, PersistentImpl>();
+            cache.put(clazz, classCache);
+        }
+        return classCache;
+    }
+}
@@ -1,7 +1,12 @@
 package au.com.gaiaresources.bdrs.controller.webservice;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.security.RolesAllowed;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -13,13 +18,20 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 
 import au.com.gaiaresources.bdrs.controller.file.AbstractDownloadFileController;
+import au.com.gaiaresources.bdrs.controller.job.JobController;
+import au.com.gaiaresources.bdrs.db.impl.SortingCriteria;
 import au.com.gaiaresources.bdrs.dwca.RecordDwcaWriter;
+import au.com.gaiaresources.bdrs.model.job.Job;
+import au.com.gaiaresources.bdrs.model.job.JobType;
 import au.com.gaiaresources.bdrs.model.record.RecordDAO;
 import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
 import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
 import au.com.gaiaresources.bdrs.model.record.impl.AdvancedRecordFilter;
 import au.com.gaiaresources.bdrs.model.record.impl.RecordFilter;
+import au.com.gaiaresources.bdrs.security.Role;
 import au.com.gaiaresources.bdrs.service.content.ContentService;
+import au.com.gaiaresources.bdrs.service.job.DwcaDownloadJobHandler;
+import au.com.gaiaresources.bdrs.service.job.JobService;
 import au.com.gaiaresources.bdrs.service.lsid.LSIDService;
 import au.com.gaiaresources.bdrs.service.web.RedirectionService;
 import au.com.gaiaresources.bdrs.util.SpatialUtil;
@@ -29,11 +41,14 @@ import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
 public class DarwinCoreArchiveService extends AbstractDownloadFileController {
 
     public static final String DOWNLOAD_ARCHIVE_URL = "/webservice/application/downloadDwca.htm";
+    public static final String QUEUE_ARCHIVE_URL = "/webservice/application/queueDwca.htm";
     
     @Autowired
     private LSIDService lsidService;
     @Autowired
     private RecordDAO recordDAO;
+    @Autowired
+    private JobService jobService;
     
     private SpatialUtil spatialUtil = new SpatialUtilFactory().getLocationUtil();
     
@@ -52,11 +67,37 @@ public class DarwinCoreArchiveService extends AbstractDownloadFileController {
         RecordFilter recFilter = new AdvancedRecordFilter();
         recFilter.setRecordVisibility(RecordVisibility.PUBLIC);
         
-        ScrollableRecords scrollableRec = recordDAO.getScrollableRecords(recFilter);
+        List<SortingCriteria> sortCriteria = Collections.emptyList();
+        ScrollableRecords scrollableRec = recordDAO.getStreamingRecords(recFilter, sortCriteria, RecordDwcaWriter.BATCH_SIZE);
         
         RecordDwcaWriter recordDwcaWriter = new RecordDwcaWriter(lsidService, spatialUtil, redirService);
-        File zip = recordDwcaWriter.writeArchive(scrollableRec);
         
-        downloadFile(zip, response, "bdrs_dwca", "zip");
+        // written directly to the response as the records are read
+        setDownloadHeaders(response, "bdrs_dwca", "zip", "application/octet-stream");
+        long start = System.currentTimeMillis();
+        recordDwcaWriter.writeArchive(scrollableRec, response.getOutputStream());
+        response.flushBuffer();
+        
+        log.info(String.format("Wrote %d records and %d measurements to the archive in %d ms",
+                recordDwcaWriter.getRecordCount(), recordDwcaWriter.getMeasurementCount(),
+                System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Queues the archive to be written in the background, the response is
+     * the id of the job as JSON. Once the job has completed the archive is
+     * downloaded from {@link JobController#JOB_DOWNLOAD_URL}.
+     * 
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    @RolesAllowed({Role.ADMIN, Role.ROOT, Role.POWERUSER, Role.SUPERVISOR, Role.USER})
+    @RequestMapping(value = QUEUE_ARCHIVE_URL, method = RequestMethod.POST)
+    public void queueArchive(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DwcaDownloadJobHandler.PARAM_SERVER_URL, ContentService.getRequestURL(request));
+        Job job = jobService.submit(JobType.DWCA_DOWNLOAD, getRequestContext().getUser(), params);
+        writeJson(request, response, JobController.getSubmittedJson(job));
     }
 }
@@ -2,10 +2,12 @@ package au.com.gaiaresources.bdrs.controller.webservice;
 
 import au.com.gaiaresources.bdrs.controller.AbstractController;
 import au.com.gaiaresources.bdrs.geojson.RecordGroupLineMfFeature;
-import au.com.gaiaresources.bdrs.geojson.RecordMinimalMfFeature;
-import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.db.ScrollableResults;
+import au.com.gaiaresources.bdrs.geojson.RecordProjectionMfFeature;
 import au.com.gaiaresources.bdrs.model.record.RecordDAO;
 import au.com.gaiaresources.bdrs.model.record.RecordGroup;
+import au.com.gaiaresources.bdrs.model.record.RecordGroupDAO;
+import au.com.gaiaresources.bdrs.model.record.RecordProjection;
 import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
 import au.com.gaiaresources.bdrs.model.survey.Survey;
 import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
@@ -32,11 +34,14 @@ import org.springframework.web.util.HtmlUtils;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created with IntelliJ IDEA.
@@ -61,6 +66,9 @@ public class RecordGeoJsonService extends AbstractController {
     public static final String PARAM_SPECIES_NAME = "speciesName";
     public static final String PARAM_GROUPED = "grouped";
 
+    private static final String CHARACTER_ENCODING = "UTF-8";
+    private static final String GZIP_ENCODING = "gzip";
+
     private Logger log = Logger.getLogger(getClass());
 
     @Autowired
@@ -71,6 +79,8 @@ public class RecordGeoJsonService extends AbstractController {
     private SurveyDAO surveyDAO;
     @Autowired
     private TaxaDAO taxaDAO;
+    @Autowired
+    private RecordGroupDAO recordGroupDAO;
 
     /**
      * Returns a geo json object of records that meet the passed parameters
@@ -107,104 +117,124 @@ public class RecordGeoJsonService extends AbstractController {
             HttpServletRequest request, HttpServletResponse response)
             throws IOException {
 
-        try {
-
-            SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
-
-            Date startDate = null;
-            if (StringUtils.notEmpty(startDateStr)) {
-                try {
-                    startDate = dateFormat.parse(startDateStr);
-                } catch (ParseException e) {
-                    response.setContentType("text/html");
-                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    response.getWriter().write("Bad start date : "
-                            + startDateStr + ". Must be in following format : "
-                            + DATE_FORMAT);
-                    return;
-                }
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+
+        Date startDate = null;
+        if (StringUtils.notEmpty(startDateStr)) {
+            try {
+                startDate = dateFormat.parse(startDateStr);
+            } catch (ParseException e) {
+                response.setContentType("text/html");
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write("Bad start date : "
+                        + startDateStr + ". Must be in following format : "
+                        + DATE_FORMAT);
+                return;
             }
+        }
 
-            Date endDate = null;
-            if (StringUtils.notEmpty(endDateStr)) {
-                try {
-                    endDate = dateFormat.parse(endDateStr);
-                } catch (ParseException e) {
-                    response.setContentType("text/html");
-                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    response.getWriter().write("Bad end date. : "
-                            + endDateStr + " Must be in following format : "
-                            + DATE_FORMAT);
-                    return;
-                }
+        Date endDate = null;
+        if (StringUtils.notEmpty(endDateStr)) {
+            try {
+                endDate = dateFormat.parse(endDateStr);
+            } catch (ParseException e) {
+                response.setContentType("text/html");
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write("Bad end date. : "
+                        + endDateStr + " Must be in following format : "
+                        + DATE_FORMAT);
+                return;
             }
+        }
 
-            List<Integer> speciesList;
-            if (StringUtils.notEmpty(speciesName) || StringUtils.notEmpty(groupName)) {
-
-                speciesList = taxaDAO.searchIndicatorSpeciesPk(groupName, speciesName, true);
-                if (speciesList.isEmpty()) {
-                    // return with error
-                    response.setContentType("text/html");
-                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    response.getWriter().write("No species returned for species search string : "
-                            + HtmlUtils.htmlEscape(speciesName) + " and group search string : "
-                            + HtmlUtils.htmlEscape(groupName));
-                    return;
-                }
-            } else {
-                speciesList = Collections.EMPTY_LIST;
+        List<Integer> speciesList;
+        if (StringUtils.notEmpty(speciesName) || StringUtils.notEmpty(groupName)) {
+
+            speciesList = taxaDAO.searchIndicatorSpeciesPk(groupName, speciesName, true);
+            if (speciesList.isEmpty()) {
+                // return with error
+                response.setContentType("text/html");
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write("No species returned for species search string : "
+                        + HtmlUtils.htmlEscape(speciesName) + " and group search string : "
+                        + HtmlUtils.htmlEscape(groupName));
+                return;
             }
+        } else {
+            speciesList = Collections.EMPTY_LIST;
+        }
 
-            User u = userDAO.getUser(username);
-            List<Survey> surveys = new ArrayList<Survey>();
-            if (surveyIds != null) {
-                for (int surveyId : surveyIds) {
-                    Survey s = surveyDAO.get(surveyId);
-                    if (s != null) {
-                        surveys.add(s);
-                    }
+        User u = userDAO.getUser(username);
+        List<Survey> surveys = new ArrayList<Survey>();
+        if (surveyIds != null) {
+            for (int surveyId : surveyIds) {
+                Survey s = surveyDAO.get(surveyId);
+                if (s != null) {
+                    surveys.add(s);
                 }
             }
+        }
 
-            ScrollableRecords records = recordDAO.getScrollableRecords(u, surveys,
-                    speciesList, startDate, endDate, 0, limit);
+        ScrollableResults<RecordProjection> records = recordDAO.getRecordProjections(u, surveys,
+                speciesList, startDate, endDate, limit);
 
-            String jsonpCallback = request.getParameter(BdrsWebConstants.JSONP_CALLBACK_PARAM);
-            boolean jsonp = StringUtils.notEmpty(jsonpCallback);
+        String jsonpCallback = request.getParameter(BdrsWebConstants.JSONP_CALLBACK_PARAM);
+        boolean jsonp = StringUtils.notEmpty(jsonpCallback);
 
+        // the content type must be set before the writer is opened to
+        // apply the character encoding.
+        response.setContentType(jsonp ? "application/javascript" : "application/json");
+        response.setCharacterEncoding(CHARACTER_ENCODING);
+        Writer writer = openWriter(request, response);
+        try {
             if (jsonp) {
                 jsonpCallback = HtmlUtils.htmlEscape(jsonpCallback);
-                response.getWriter().write(jsonpCallback + "(");
+                writer.write(jsonpCallback + "(");
             }
 
-            writeGeoJson(getRequestContext().getHibernate(),
-                    response.getWriter(), records, grouped);
+            writeGeoJson(getRequestContext().getHibernate(), writer, records, grouped);
 
             if (jsonp) {
-                response.getWriter().write(");");
-                response.setContentType("application/javascript");
-            } else {
-                response.setContentType("application/json");
+                writer.write(");");
             }
         } catch (JSONException ex) {
-            log.error("Error creating GeoJSON feed");
-            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            response.getWriter().write("Error creating GeoJSON feed : " + ex.getMessage());
-            response.setContentType("text/html");
+            // the features written so far have already been sent
+            log.error("Error creating GeoJSON feed", ex);
+            if (!response.isCommitted()) {
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        } finally {
+            writer.close();
         }
     }
 
+    /**
+     * Opens the writer of the response, compressing the response if the
+     * client accepts gzip encoding. The feed is highly repetitive so it
+     * compresses to a fraction of its size.
+     */
+    private Writer openWriter(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.addHeader("Vary", "Accept-Encoding");
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.toLowerCase().contains(GZIP_ENCODING)) {
+            response.setHeader("Content-Encoding", GZIP_ENCODING);
+            return new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(response.getOutputStream()), CHARACTER_ENCODING));
+        }
+        return response.getWriter();
+    }
+
     /**
      * @param sesh hibernate session
      * @param w writer
-     * @param records records to serialize
+     * @param records projections of the records to serialize
      * @param grouped when true, only displays records with record groups.
      *                Draws these records as a line, ordered by record 'when' date.
      *                when false, will draw ignore groups even if they exist
      *                and draw all records as points.
      */
-    public void writeGeoJson(Session sesh, Writer w, ScrollableRecords records, boolean grouped) throws JSONException {
+    public void writeGeoJson(Session sesh, Writer w, ScrollableResults<RecordProjection> records,
+                             boolean grouped) throws JSONException {
 
         JSONWriter jsonWriter = new JSONWriter(w);
         MfGeoJSONWriter geoJSONWriter = new MfGeoJSONWriter(jsonWriter);
@@ -223,35 +253,32 @@ public class RecordGeoJsonService extends AbstractController {
 
         Set<Integer> includedGroupIds = new HashSet<Integer>();
         while (records.hasMoreElements()) {
-            Record r = records.nextElement();
+            RecordProjection r = records.nextElement();
 
             if (!grouped) {
                 if (r.getGeometry() != null) {
-                    MfFeature feature = new RecordMinimalMfFeature(r, spatialUtil);
+                    MfFeature feature = new RecordProjectionMfFeature(r, spatialUtil);
                     geoJSONWriter.encodeFeature(feature);
                 }
             } else {
                 // record must have a group
-                RecordGroup recordGroup = r.getRecordGroup();
-                if (recordGroup != null) {
-                    if (!includedGroupIds.contains(recordGroup.getId())) {
-                        includedGroupIds.add(recordGroup.getId());
+                Integer recordGroupId = r.getRecordGroupId();
+                if (recordGroupId != null) {
+                    if (!includedGroupIds.contains(recordGroupId)) {
+                        includedGroupIds.add(recordGroupId);
+                        RecordGroup recordGroup = recordGroupDAO.getRecordGroup(recordGroupId);
                         ScrollableRecords sr = recordDAO.getRecordByGroup(recordGroup);
 
                         MfFeature lineFeature =
-                                new RecordGroupLineMfFeature(r.getRecordGroup(), sr,
+                                new RecordGroupLineMfFeature(recordGroup, sr,
                                         spatialUtil, sesh);
                         geoJSONWriter.encodeFeature(lineFeature);
                     }
                 } // else we ignore the record
             }
-
-            sesh.clear();
         }
 
         jsonWriter.endArray();
         jsonWriter.endObject();
     }
 }
-
-
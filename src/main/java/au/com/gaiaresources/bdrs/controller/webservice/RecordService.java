@@ -34,10 +34,13 @@ import org.springframework.web.bind.annotation.RequestParam;
 
 import au.com.gaiaresources.bdrs.controller.AbstractController;
 import au.com.gaiaresources.bdrs.controller.BadWebParameterException;
+import au.com.gaiaresources.bdrs.controller.job.JobController;
 import au.com.gaiaresources.bdrs.db.impl.PagedQueryResult;
 import au.com.gaiaresources.bdrs.db.impl.PaginationFilter;
 import au.com.gaiaresources.bdrs.json.JSONArray;
 import au.com.gaiaresources.bdrs.json.JSONObject;
+import au.com.gaiaresources.bdrs.model.job.Job;
+import au.com.gaiaresources.bdrs.model.job.JobType;
 import au.com.gaiaresources.bdrs.model.record.AccessControlledRecordAdapter;
 import au.com.gaiaresources.bdrs.model.record.Record;
 import au.com.gaiaresources.bdrs.model.record.RecordDAO;
@@ -47,6 +50,8 @@ import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
 import au.com.gaiaresources.bdrs.model.user.User;
 import au.com.gaiaresources.bdrs.model.user.UserDAO;
 import au.com.gaiaresources.bdrs.service.bulkdata.AbstractBulkDataService;
+import au.com.gaiaresources.bdrs.service.job.JobService;
+import au.com.gaiaresources.bdrs.service.job.RecordDownloadJobHandler;
 import au.com.gaiaresources.bdrs.service.web.JsonService;
 import au.com.gaiaresources.bdrs.servlet.BdrsWebConstants;
 import au.com.gaiaresources.bdrs.util.SpatialUtil;
@@ -114,6 +119,8 @@ public class RecordService extends AbstractController {
     private AbstractBulkDataService bulkDataService;
     @Autowired
     private PreferenceDAO prefDAO;
+    @Autowired
+    private JobService jobService;
     
     private SpatialUtil spatialUtil = new SpatialUtilFactory().getLocationUtil();
 
@@ -481,6 +488,7 @@ public class RecordService extends AbstractController {
             @RequestParam(value = "date_start", defaultValue = "01 Jan 1970") Date startDate,
             @RequestParam(value = "date_end", defaultValue = "01 Jan 9999") Date endDate,
             @RequestParam(value = "limit", defaultValue = "5000") long limit,
+            @RequestParam(value = "format", defaultValue = "xls") String format,
             HttpServletResponse response) throws IOException {
 
         // We are changing the flush mode here to prevent checking for dirty
@@ -508,12 +516,62 @@ public class RecordService extends AbstractController {
 
         Survey survey = surveyDAO.getSurvey(surveyPk);
 
-        response.setContentType("application/vnd.ms-excel");
-        response.setHeader("Content-Disposition",
-                "attachment;filename=records_"
-                        + System.currentTimeMillis() + ".xls");
-        bulkDataService.exportSurveyRecords(getRequestContext().getHibernate(), survey, sc, limit, response
-                .getOutputStream());
+        if ("xlsx".equalsIgnoreCase(format)) {
+            // the rows are streamed so the download is not held in memory
+            response.setContentType(AbstractBulkDataService.XLSX_CONTENT_TYPE);
+            response.setHeader("Content-Disposition",
+                    "attachment;filename=records_"
+                            + System.currentTimeMillis() + ".xlsx");
+            bulkDataService.exportSurveyRecordsXlsx(getRequestContext().getHibernate(), survey, sc, limit, response
+                    .getOutputStream());
+        } else {
+            response.setContentType("application/vnd.ms-excel");
+            response.setHeader("Content-Disposition",
+                    "attachment;filename=records_"
+                            + System.currentTimeMillis() + ".xls");
+            bulkDataService.exportSurveyRecords(getRequestContext().getHibernate(), survey, sc, limit, response
+                    .getOutputStream());
+        }
+    }
+
+    /**
+     * Queues the records that would be returned by
+     * <code>/webservice/record/downloadRecords.htm</code> to be written in
+     * the background, the response is the id of the job as JSON. Once the
+     * job has completed the spreadsheet is downloaded from
+     * {@link JobController#JOB_DOWNLOAD_URL}.
+     */
+    @RequestMapping(value = "/webservice/record/queueDownloadRecords.htm", method = RequestMethod.POST)
+    public void queueDownloadRecords(
+            @RequestParam(value = "ident", defaultValue = "") String ident,
+            @RequestParam(value = "species", defaultValue = "") String species,
+            @RequestParam(value = "group", defaultValue = "0") int groupPk,
+            @RequestParam(value = "survey", defaultValue = "1") int surveyPk,
+            @RequestParam(value = "taxon_group", defaultValue = "0") int taxonGroupPk,
+            @RequestParam(value = "date_start", defaultValue = "01 Jan 1970") Date startDate,
+            @RequestParam(value = "date_end", defaultValue = "01 Jan 9999") Date endDate,
+            @RequestParam(value = "limit", defaultValue = "5000") long limit,
+            @RequestParam(value = "format", defaultValue = "xls") String format,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+
+        User user = ident.isEmpty() ? null : userDAO.getUserByRegistrationKey(ident);
+        if (user == null) {
+            throw new HTTPException(HttpServletResponse.SC_UNAUTHORIZED);
+        }
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(RecordDownloadJobHandler.PARAM_SURVEY_ID, surveyPk);
+        params.put(RecordDownloadJobHandler.PARAM_GROUP_ID, groupPk);
+        params.put(RecordDownloadJobHandler.PARAM_TAXON_GROUP_ID, taxonGroupPk);
+        params.put(RecordDownloadJobHandler.PARAM_SPECIES, species);
+        params.put(RecordDownloadJobHandler.PARAM_START_DATE, startDate.getTime());
+        params.put(RecordDownloadJobHandler.PARAM_END_DATE, endDate.getTime());
+        params.put(RecordDownloadJobHandler.PARAM_LIMIT, limit);
+        params.put(RecordDownloadJobHandler.PARAM_FORMAT, format);
+
+        Job job = jobService.submit(JobType.RECORD_DOWNLOAD, user, params);
+        writeJson(request, response, JobController.getSubmittedJson(job));
     }
 
     /**
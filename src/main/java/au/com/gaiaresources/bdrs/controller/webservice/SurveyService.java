@@ -200,7 +200,7 @@ public class SurveyService extends AbstractController {
         	speciesList = taxaDAO.getIndicatorSpecies(g, speciesSearch);
         }
         else {
-        	speciesList = taxaDAO.getIndicatorSpeciesByNameSearch(speciesSearch, true); 
+        	speciesList = taxaService.getIndicatorSpeciesByNameSearch(speciesSearch, true); 
         }
         
         JSONArray array = convertSpeciesToJson(speciesList);
@@ -217,7 +217,7 @@ public class SurveyService extends AbstractController {
             throws IOException {
         List<IndicatorSpecies> speciesList;
         if (surveyDAO.countSpeciesForSurvey(surveyPk) == 0) {
-            speciesList = taxaDAO.getIndicatorSpeciesByNameSearch(speciesSearch, true);
+            speciesList = taxaService.getIndicatorSpeciesByNameSearch(speciesSearch, true);
         } else {
             speciesList = surveyDAO.getSpeciesForSurveySearch(surveyPk, speciesSearch);
             // See RecordDeserializer.validateSpeciesInformation()
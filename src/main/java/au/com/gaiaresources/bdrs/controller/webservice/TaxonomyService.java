@@ -5,6 +5,7 @@ import au.com.gaiaresources.bdrs.json.JSONArray;
 import au.com.gaiaresources.bdrs.json.JSONObject;
 import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
 import au.com.gaiaresources.bdrs.model.taxa.TaxaDAO;
+import au.com.gaiaresources.bdrs.model.taxa.TaxaService;
 import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
 import au.com.gaiaresources.bdrs.util.Pair;
 import au.com.gaiaresources.bdrs.util.StringUtils;
@@ -32,6 +33,8 @@ public class TaxonomyService extends AbstractController {
     private Logger log = Logger.getLogger(getClass());
     @Autowired
     private TaxaDAO taxaDAO;
+    @Autowired
+    private TaxaService taxaService;
 
     @RequestMapping(value = "/webservice/taxon/searchTaxonGroup.htm", method = RequestMethod.GET)
     public void searchTaxonGroup(HttpServletRequest request,
@@ -41,7 +44,7 @@ public class TaxonomyService extends AbstractController {
 
         if(request.getParameter("q") != null) {
             List<TaxonGroup> taxonGroupList =
-                taxaDAO.getTaxonGroupSearch(request.getParameter("q"));
+                taxaService.getTaxonGroupSearch(request.getParameter("q"));
 
             for(TaxonGroup group : taxonGroupList) {
                 array.add(group.flatten());
@@ -60,7 +63,7 @@ public class TaxonomyService extends AbstractController {
 
         if(request.getParameter("q") != null) {
             List<IndicatorSpecies> speciesList =
-                taxaDAO.getIndicatorSpeciesByNameSearch(request.getParameter("q"), false);
+                taxaService.getIndicatorSpeciesByNameSearch(request.getParameter("q"), false);
             
             String depthStr = request.getParameter("depth");
             int depth = depthStr == null ? 0 : Integer.parseInt(depthStr);
@@ -3,15 +3,97 @@ package au.com.gaiaresources.bdrs.db;
 import java.io.Serializable;
 import java.util.Date;
 
+import org.hibernate.CallbackException;
 import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
+import org.hibernate.collection.PersistentCollection;
 import org.hibernate.type.Type;
+import org.springframework.beans.factory.annotation.Autowired;
 
+import au.com.gaiaresources.bdrs.db.impl.PortalPersistentImpl;
+import au.com.gaiaresources.bdrs.model.group.Group;
+import au.com.gaiaresources.bdrs.model.file.ManagedFile;
+import au.com.gaiaresources.bdrs.model.location.Location;
+import au.com.gaiaresources.bdrs.model.map.GeoMap;
+import au.com.gaiaresources.bdrs.model.map.GeoMapFeature;
+import au.com.gaiaresources.bdrs.model.map.GeoMapLayer;
+import au.com.gaiaresources.bdrs.model.method.CensusMethod;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeValue;
+import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
+import au.com.gaiaresources.bdrs.model.taxa.SpeciesProfile;
+import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
+import au.com.gaiaresources.bdrs.model.theme.Theme;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.service.facet.FacetCountCache;
+import au.com.gaiaresources.bdrs.service.facet.RecordFacetState;
+import au.com.gaiaresources.bdrs.service.map.GeoMapFeatureIndex;
+import au.com.gaiaresources.bdrs.service.map.SurveyRecordVersions;
+import au.com.gaiaresources.bdrs.service.menu.MenuCache;
+import au.com.gaiaresources.bdrs.service.survey.SurveyAccessResolver;
+import au.com.gaiaresources.bdrs.service.survey.SpeciesPackService;
+import au.com.gaiaresources.bdrs.service.taxonomy.TaxonNameIndex;
 import au.com.gaiaresources.bdrs.servlet.RequestContext;
 import au.com.gaiaresources.bdrs.servlet.RequestContextHolder;
 
 public class CoreInterceptor extends EmptyInterceptor {
 
     private static final long serialVersionUID = 1L;
+
+    private static final String ATTRIBUTES_ROLE_SUFFIX = ".attributes";
+    private static final String SPECIES_ROLE_SUFFIX = ".species";
+    private static final String LAYER_PROPERTY = "layer";
+    private static final String SURVEY_PROPERTY = "survey";
+
+    /**
+     * Notified of the records changed by each transaction so that the cached
+     * facet counts can be adjusted.
+     */
+    @Autowired(required = false)
+    private transient FacetCountCache facetCountCache;
+
+    /**
+     * Notified of the map features changed by each transaction so that the
+     * spatial indexes of their layers can be discarded.
+     */
+    @Autowired(required = false)
+    private transient GeoMapFeatureIndex geoMapFeatureIndex;
+
+    /**
+     * Notified of the records changed by each transaction so that the
+     * versions of the map tiles of their surveys change.
+     */
+    @Autowired(required = false)
+    private transient SurveyRecordVersions surveyRecordVersions;
+
+    /**
+     * Notified of the taxa and taxon groups changed by each transaction so
+     * that the name index can be updated.
+     */
+    @Autowired(required = false)
+    private transient TaxonNameIndex taxonNameIndex;
+
+    /**
+     * Notified of the taxa and survey species changed by each transaction
+     * so that the species packs of the surveys can be discarded.
+     */
+    @Autowired(required = false)
+    private transient SpeciesPackService speciesPackService;
+
+    /**
+     * Notified of the surveys, maps, themes, groups and users changed by
+     * each transaction so that the cached menus and themes can be discarded.
+     */
+    @Autowired(required = false)
+    private transient MenuCache menuCache;
+
+    /**
+     * Notified of the surveys and groups changed by each transaction so that
+     * the surveys each user may see are resolved again.
+     */
+    @Autowired(required = false)
+    private transient SurveyAccessResolver surveyAccessResolver;
     
     /**
      * {@inheritDoc}
@@ -19,6 +101,21 @@ public class CoreInterceptor extends EmptyInterceptor {
     @Override
     public boolean onSave(Object entity, Serializable id, Object[] state,
             String[] propertyNames, Type[] types) {
+        if (facetCountCache != null && entity instanceof Record) {
+            facetCountCache.recordSaved((Record) entity);
+        }
+        recordVersionChanged(entity, null, null);
+        if (geoMapFeatureIndex != null && entity instanceof GeoMapFeature) {
+            geoMapFeatureIndex.layerChanged(getLayerId(((GeoMapFeature) entity).getLayer()));
+        }
+        if (taxonNameIndex != null && isTaxon(entity)) {
+            taxonNameIndex.taxonChanged(entity);
+        }
+        if (speciesPackService != null && isSpeciesPackContent(entity)) {
+            speciesPackService.taxaChanged();
+        }
+        menuContentChanged(entity);
+        surveyAccessChanged(entity);
         return updateWhoColumns(entity, id, state, propertyNames, types);
     }
 
@@ -29,9 +126,333 @@ public class CoreInterceptor extends EmptyInterceptor {
     public boolean onFlushDirty(Object entity, Serializable id,
             Object[] currentState, Object[] previousState,
             String[] propertyNames, Type[] types) {
+        if (facetCountCache != null) {
+            if (entity instanceof Record) {
+                facetCountCache.recordUpdated((Record) entity, propertyNames, previousState);
+            } else if (isFacetPropertyDirty(entity, currentState, previousState, propertyNames)) {
+                facetCountCache.invalidateOnCommit(getPortalId(entity));
+            }
+        }
+        recordVersionChanged(entity, propertyNames, previousState);
+        if (geoMapFeatureIndex != null && entity instanceof GeoMapFeature) {
+            geoMapFeatureIndex.layerChanged(getLayerId(((GeoMapFeature) entity).getLayer()));
+            // the feature may have been moved from another layer
+            for (int i = 0; previousState != null && i < propertyNames.length; i++) {
+                if (LAYER_PROPERTY.equals(propertyNames[i]) && previousState[i] instanceof GeoMapLayer) {
+                    geoMapFeatureIndex.layerChanged(getLayerId((GeoMapLayer) previousState[i]));
+                }
+            }
+        }
+        if (taxonNameIndex != null && isTaxon(entity)) {
+            taxonNameIndex.taxonChanged(entity);
+        }
+        if (speciesPackService != null && (isSpeciesPackContent(entity) || entity instanceof ManagedFile)) {
+            speciesPackService.taxaChanged();
+        }
+        menuContentChanged(entity);
+        surveyAccessChanged(entity);
         return updateWhoColumns(entity, id, currentState, propertyNames, types);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDelete(Object entity, Serializable id, Object[] state,
+            String[] propertyNames, Type[] types) {
+        if (facetCountCache != null) {
+            if (entity instanceof Record) {
+                facetCountCache.recordDeleted((Record) entity, propertyNames, state);
+            } else if (isFacetDependency(entity)) {
+                facetCountCache.invalidateOnCommit(getPortalId(entity));
+            }
+        }
+        recordVersionChanged(entity, null, null);
+        if (geoMapFeatureIndex != null) {
+            if (entity instanceof GeoMapFeature) {
+                geoMapFeatureIndex.layerChanged(getLayerId(((GeoMapFeature) entity).getLayer()));
+            } else if (entity instanceof GeoMapLayer) {
+                geoMapFeatureIndex.layerChanged(getLayerId((GeoMapLayer) entity));
+            }
+        }
+        if (taxonNameIndex != null && isTaxon(entity)) {
+            taxonNameIndex.taxonDeleted(entity);
+        }
+        if (speciesPackService != null) {
+            if (isSpeciesPackContent(entity) || entity instanceof ManagedFile) {
+                speciesPackService.taxaChanged();
+            } else if (entity instanceof Survey) {
+                speciesPackService.surveyChanged(((Survey) entity).getId());
+            }
+        }
+        menuContentChanged(entity);
+        surveyAccessChanged(entity);
+    }
+
+    /**
+     * Notified of an entity that is about to be deleted with a query, which
+     * is not seen by {@link #onDelete(Object, Serializable, Object[], String[], Type[])}.
+     * The state of the entity is resolved immediately, so this must not be
+     * called during a flush.
+     * @param entity the entity that is about to be deleted.
+     */
+    public void onDeleteByQuery(Object entity) {
+        if (entity instanceof Record) {
+            if (facetCountCache != null) {
+                facetCountCache.recordDeleted((Record) entity);
+            }
+            recordVersionChanged(entity, null, null);
+        } else {
+            onDelete(entity, null, null, null, null);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCollectionUpdate(Object collection, Serializable key) throws CallbackException {
+        collectionChanged(collection, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCollectionRemove(Object collection, Serializable key) throws CallbackException {
+        collectionChanged(collection, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCollectionRecreate(Object collection, Serializable key) throws CallbackException {
+        // a recreated collection does not know what it replaced
+        collectionChanged(collection, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterTransactionBegin(Transaction tx) {
+        if (facetCountCache != null) {
+            facetCountCache.transactionBegun(tx);
+        }
+        if (geoMapFeatureIndex != null) {
+            geoMapFeatureIndex.transactionBegun();
+        }
+        if (surveyRecordVersions != null) {
+            surveyRecordVersions.transactionBegun();
+        }
+        if (taxonNameIndex != null) {
+            taxonNameIndex.transactionBegun(tx);
+        }
+        if (speciesPackService != null) {
+            speciesPackService.transactionBegun();
+        }
+        if (menuCache != null) {
+            menuCache.transactionBegun();
+        }
+        if (surveyAccessResolver != null) {
+            surveyAccessResolver.transactionBegun();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeTransactionCompletion(Transaction tx) {
+        if (facetCountCache != null) {
+            facetCountCache.beforeTransactionCompletion(tx);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterTransactionCompletion(Transaction tx) {
+        if (facetCountCache != null) {
+            facetCountCache.afterTransactionCompletion(tx, tx.wasCommitted());
+        }
+        if (geoMapFeatureIndex != null) {
+            geoMapFeatureIndex.transactionCompleted();
+        }
+        if (surveyRecordVersions != null) {
+            surveyRecordVersions.transactionCompleted();
+        }
+        if (taxonNameIndex != null) {
+            taxonNameIndex.transactionCompleted(tx, tx.wasCommitted());
+        }
+        if (speciesPackService != null) {
+            speciesPackService.transactionCompleted();
+        }
+        if (menuCache != null) {
+            menuCache.transactionCompleted();
+        }
+        if (surveyAccessResolver != null) {
+            surveyAccessResolver.transactionCompleted();
+        }
+    }
+
+    private void collectionChanged(Object collection, boolean previousKnown) {
+        if (!(collection instanceof PersistentCollection)) {
+            return;
+        }
+        PersistentCollection persistent = (PersistentCollection) collection;
+        Object owner = persistent.getOwner();
+        if (speciesPackService != null) {
+            String role = persistent.getRole();
+            if (owner instanceof IndicatorSpecies) {
+                // the secondary groups or profile items of a taxon
+                speciesPackService.taxaChanged();
+            } else if (owner instanceof Survey && role != null && role.endsWith(SPECIES_ROLE_SUFFIX)) {
+                speciesPackService.surveyChanged(((Survey) owner).getId());
+            }
+        }
+        // the members of a survey or group, or the census methods of a survey
+        menuContentChanged(owner);
+        surveyAccessChanged(owner);
+        if (facetCountCache == null) {
+            return;
+        }
+        if (owner instanceof Record) {
+            String role = persistent.getRole();
+            if (role != null && role.endsWith(ATTRIBUTES_ROLE_SUFFIX)) {
+                facetCountCache.recordAttributesUpdated((Record) owner, 
+                        previousKnown ? RecordFacetState.getSnapshot(collection) : null);
+            }
+        } else if (owner instanceof Survey || owner instanceof Group) {
+            // survey membership determines which records a user can see
+            facetCountCache.invalidateOnCommit(getPortalId(owner));
+        }
+    }
+
+    /**
+     * @return true if deleting the entity may change the facet counts of
+     * records without deleting the records themselves. Deleted attribute
+     * values are handled as changes to the attributes of their record.
+     */
+    private boolean isFacetDependency(Object entity) {
+        return entity instanceof Survey || 
+            entity instanceof IndicatorSpecies || entity instanceof TaxonGroup ||
+            entity instanceof CensusMethod || entity instanceof Location ||
+            entity instanceof User;
+    }
+
+    /**
+     * @return true if a modification of the entity may change the facet
+     * counts of records without modifying the records themselves.
+     */
+    private boolean isFacetPropertyDirty(Object entity, Object[] currentState, 
+            Object[] previousState, String[] propertyNames) {
+        String property;
+        if (entity instanceof AttributeValue) {
+            property = "species";
+        } else if (entity instanceof IndicatorSpecies) {
+            property = "taxonGroup";
+        } else if (entity instanceof CensusMethod) {
+            property = "type";
+        } else if (entity instanceof Survey) {
+            // the survey flags determine which records a user can see
+            return true;
+        } else {
+            // only the identity of other entities is counted
+            return false;
+        }
+        if (previousState == null) {
+            return true;
+        }
+        for (int i = 0; i < propertyNames.length; i++) {
+            if (property.equals(propertyNames[i])) {
+                Object current = currentState[i];
+                Object previous = previousState[i];
+                return current == null ? previous != null : !current.equals(previous);
+            }
+        }
+        return false;
+    }
+
+    private Integer getPortalId(Object entity) {
+        if (entity instanceof PortalPersistentImpl) {
+            PortalPersistentImpl ppi = (PortalPersistentImpl) entity;
+            if (ppi.getPortal() != null) {
+                return ppi.getPortal().getId();
+            }
+        }
+        // unknown, all portals are affected
+        return null;
+    }
+
+    private boolean isTaxon(Object entity) {
+        return entity instanceof IndicatorSpecies || entity instanceof TaxonGroup;
+    }
+
+    /**
+     * @return true if the entity is part of the species packs of the surveys.
+     * The managed files of the profile items are also part of the packs, but
+     * a new file is not referred to by a pack until a profile item is saved.
+     */
+    private boolean isSpeciesPackContent(Object entity) {
+        return isTaxon(entity) || entity instanceof SpeciesProfile;
+    }
+
+    /**
+     * Notifies the menu cache if the entity determines the menus or active
+     * theme of a portal, or the menus of a user.
+     */
+    private void menuContentChanged(Object entity) {
+        if (menuCache == null) {
+            return;
+        }
+        if (entity instanceof User) {
+            // the roles of the user
+            menuCache.userChanged(((User) entity).getId());
+        } else if (entity instanceof Survey || entity instanceof CensusMethod ||
+                entity instanceof GeoMap || entity instanceof Theme || entity instanceof Group) {
+            menuCache.portalChanged(getPortalId(entity));
+        }
+    }
+
+    /**
+     * Notifies the survey access resolver if the entity determines which
+     * surveys a user may see.
+     */
+    private void surveyAccessChanged(Object entity) {
+        if (surveyAccessResolver != null && (entity instanceof Survey || entity instanceof Group)) {
+            surveyAccessResolver.accessChanged();
+        }
+    }
+
+    /**
+     * Changes the version of the survey of a changed record, and of the
+     * survey it was moved from. The records of every survey are affected by
+     * a change to the name of a taxon.
+     */
+    private void recordVersionChanged(Object entity, String[] propertyNames, Object[] previousState) {
+        if (surveyRecordVersions == null) {
+            return;
+        }
+        if (entity instanceof Record) {
+            Survey survey = ((Record) entity).getSurvey();
+            surveyRecordVersions.surveyChanged(survey != null ? survey.getId() : null);
+            for (int i = 0; previousState != null && i < propertyNames.length; i++) {
+                if (SURVEY_PROPERTY.equals(propertyNames[i]) && previousState[i] instanceof Survey) {
+                    surveyRecordVersions.surveyChanged(((Survey) previousState[i]).getId());
+                }
+            }
+        } else if (isTaxon(entity)) {
+            surveyRecordVersions.allChanged();
+        }
+    }
+
+    private Integer getLayerId(GeoMapLayer layer) {
+        return layer != null ? layer.getId() : null;
+    }
+
     private boolean updateWhoColumns(Object entity, Serializable id,
             Object[] state, String[] propertyNames, Type[] types) {
         RequestContext context = RequestContextHolder.getContext();
@@ -1,5 +1,8 @@
 package au.com.gaiaresources.bdrs.db;
 
+import java.util.Collection;
+import java.util.Collections;
+
 import org.apache.log4j.Logger;
 import org.hibernate.Filter;
 import org.hibernate.Session;
@@ -50,6 +53,30 @@ public class FilterManager {
         }  
     }
     
+    /**
+     * Enables the appropriate record filter on the supplied hibernate session.
+     * Users that are neither administrators nor moderators are given
+     * {@link Record#USER_SURVEY_ACCESS_FILTER}, which compares the survey of
+     * each record with the given surveys instead of querying the survey
+     * membership of the user for each record.
+     * @param session the hibernate session to apply the filter to.
+     * @param user the currently logged in User
+     * @param accessibleSurveyIds the surveys whose shared records the user
+     * may see, see {@link au.com.gaiaresources.bdrs.service.survey.SurveyAccessResolver}.
+     */
+    public static void enableRecordFilter(Session session, User user, Collection<Integer> accessibleSurveyIds) {
+        if (user != null && (user.isAdmin() || user.isModerator())) {
+            enableRecordFilter(session, user);
+            return;
+        }
+        // an empty list is not valid sql, 0 is never the id of a survey.
+        Collection<Integer> surveyIds = accessibleSurveyIds.isEmpty() ?
+                Collections.singleton(Integer.valueOf(0)) : accessibleSurveyIds;
+        session.enableFilter(Record.USER_SURVEY_ACCESS_FILTER)
+            .setParameter(Record.FILTER_PARAMETER_USER, user == null ? 0 : user.getId())
+            .setParameterList(Record.FILTER_PARAMETER_SURVEYS, surveyIds);
+    }
+    
     /**
      * Disables all of the record filters on the supplied hibernate session.
      * @param session disable filters on this Hibernate filter.
@@ -57,6 +84,7 @@ public class FilterManager {
     public static void disableRecordFilter(Session session) {
         session.disableFilter(Record.ANONYMOUS_RECORD_ACCESS_FILTER);
         session.disableFilter(Record.USER_ACCESS_FILTER);
+        session.disableFilter(Record.USER_SURVEY_ACCESS_FILTER);
         session.disableFilter(Record.MODERATOR_ACCESS_FILTER);
         session.disableFilter(Record.FILTER_PARAMETER_USER);
     }
@@ -112,6 +140,7 @@ public class FilterManager {
     	session.disableFilter(Record.MODERATOR_ACCESS_FILTER);
     	session.disableFilter(Record.PARTIAL_RECORD_COUNT_FILTER);
     	session.disableFilter(Record.USER_ACCESS_FILTER);
+    	session.disableFilter(Record.USER_SURVEY_ACCESS_FILTER);
     }
     
     public static void enableLocationFilter(Session session, User user) {
@@ -0,0 +1,17 @@
+package au.com.gaiaresources.bdrs.db;
+
+/**
+ * Maps a row of a projection query to an object, so that projections can be
+ * returned as {@link ScrollableResults} without loading the entities the
+ * columns are selected from.
+ *
+ * @param <T> the type of object the rows are mapped to.
+ */
+public interface RowMapper<T> {
+
+    /**
+     * @param row the selected columns, in the order of the select clause.
+     * @return the object for the row.
+     */
+    public T mapRow(Object[] row);
+}
@@ -16,4 +16,12 @@ public interface ScrollableResults<T> extends Enumeration<T> {
      * Rewinds the underlying iterator
      */
     public void rewind();
+
+    /**
+     * Returns the token to request the next page of results when the results
+     * are a page of keyset pagination. Must be called after the last element
+     * has been read.
+     * @return the continuation token, or null if there is no next page.
+     */
+    public String getContinuationToken();
 }
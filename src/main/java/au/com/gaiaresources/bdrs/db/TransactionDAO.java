@@ -1,5 +1,8 @@
 package au.com.gaiaresources.bdrs.db;
 
+import java.util.Collection;
+import java.util.List;
+
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 
@@ -91,4 +94,23 @@ public interface TransactionDAO {
      * @param instance persistent object to refresh.
      */
     public <T extends Persistent> void refresh(Session sesh, T instance);
+    
+    /**
+     * Returns the persistent objects with the specified primary keys using as
+     * few queries as possible. Primary keys that do not exist are ignored.
+     * @param sesh Hibernate session.
+     * @param clazz the class of the persistent objects.
+     * @param ids the primary keys of the objects to return.
+     * @return the persistent objects in no particular order.
+     */
+    public <T extends Persistent> List<T> getByIDs(Session sesh, Class<T> clazz, Collection<Integer> ids);
+    
+    /**
+     * Returns the persistent objects with the specified primary keys using as
+     * few queries as possible. Primary keys that do not exist are ignored.
+     * @param clazz the class of the persistent objects.
+     * @param ids the primary keys of the objects to return.
+     * @return the persistent objects in no particular order.
+     */
+    public <T extends Persistent> List<T> getByIDs(Class<T> clazz, Collection<Integer> ids);
 }
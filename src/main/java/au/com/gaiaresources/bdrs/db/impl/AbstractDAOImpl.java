@@ -1,17 +1,22 @@
 package au.com.gaiaresources.bdrs.db.impl;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
+import org.hibernate.Interceptor;
 import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionImplementor;
 import org.hibernate.proxy.HibernateProxyHelper;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import au.com.gaiaresources.bdrs.db.CoreInterceptor;
 import au.com.gaiaresources.bdrs.db.FilterManager;
 import au.com.gaiaresources.bdrs.db.Persistent;
 import au.com.gaiaresources.bdrs.db.QueryCriteria;
@@ -21,6 +26,11 @@ import au.com.gaiaresources.bdrs.servlet.RequestContextHolder;
 
 public abstract class AbstractDAOImpl implements TransactionDAO {
 
+    /**
+     * The maximum number of primary keys bound to a single <code>in</code> clause.
+     */
+    public static final int MAX_IN_CLAUSE_SIZE = 1000;
+
     @SuppressWarnings("unused")
     private Logger log = Logger.getLogger(AbstractDAOImpl.class);
 
@@ -56,6 +66,22 @@ public abstract class AbstractDAOImpl implements TransactionDAO {
         return saveOrUpdate(sessionFactory.getCurrentSession(), instance);
     }
     
+    /**
+     * Notifies the interceptor of the current session that the instance is
+     * about to be deleted by {@link #deleteByQuery(Persistent)}, as it would
+     * be for a delete through the session.
+     * @param instance the instance that is about to be deleted.
+     */
+    protected void beforeDeleteByQuery(Persistent instance) {
+        Session sesh = sessionFactory.getCurrentSession();
+        if (sesh instanceof SessionImplementor) {
+            Interceptor interceptor = ((SessionImplementor) sesh).getInterceptor();
+            if (interceptor instanceof CoreInterceptor) {
+                ((CoreInterceptor) interceptor).onDeleteByQuery(instance);
+            }
+        }
+    }
+
     protected int deleteByQuery(Persistent instance) {
         if(instance.getId() == null) {
             return 0;
@@ -143,6 +169,24 @@ public abstract class AbstractDAOImpl implements TransactionDAO {
         return getByID(sessionFactory.getCurrentSession(), clazz, id);
     }
 
+    @SuppressWarnings("unchecked")
+    public <T extends Persistent> List<T> getByIDs(Session sesh, Class<T> clazz, Collection<Integer> ids) {
+        // Queried rather than fetched with 'get' so that the filters are applied
+        // in the same way as getByID.
+        List<T> result = new ArrayList<T>(ids.size());
+        List<Integer> idList = new ArrayList<Integer>(ids);
+        for (int i = 0; i < idList.size(); i += MAX_IN_CLAUSE_SIZE) {
+            Query q = sesh.createQuery(String.format("from %s where id in (:ids)", clazz.getSimpleName()));
+            q.setParameterList("ids", idList.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, idList.size())));
+            result.addAll(q.list());
+        }
+        return result;
+    }
+
+    public <T extends Persistent> List<T> getByIDs(Class<T> clazz, Collection<Integer> ids) {
+        return getByIDs(sessionFactory.getCurrentSession(), clazz, ids);
+    }
+
     protected <T extends PersistentImpl> QueryCriteria<T> newQueryCriteria(Class<T> persistentClass) {
         return new QueryCriteriaImpl<T>(sessionFactory.getCurrentSession().createCriteria(persistentClass));
     }
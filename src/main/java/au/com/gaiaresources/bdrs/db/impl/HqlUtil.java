@@ -23,4 +23,60 @@ public class HqlUtil {
         m.appendTail(sb);
         return sb.toString();
     }
+
+    private static final Pattern clause = Pattern.compile("\\b(where|group\\s+by|having|order\\s+by)\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Adds a condition to the where clause of the query, creating the where
+     * clause if the query does not have one. Clauses inside sub queries and
+     * string literals are ignored.
+     * @param hql the query.
+     * @param condition the condition to add.
+     * @return the query with the condition.
+     */
+    public static String addCondition(String hql, String condition) {
+        Matcher m = clause.matcher(hql);
+        int start = 0;
+        while (m.find(start)) {
+            if (isTopLevel(hql, m.start())) {
+                if (m.group(1).equalsIgnoreCase("where")) {
+                    int end = findClauseEnd(hql, m.end());
+                    String rest = end < hql.length() ? " " + hql.substring(end) : "";
+                    return hql.substring(0, m.start()) + "where (" + condition + ") and ("
+                            + hql.substring(m.end(), end).trim() + ")" + rest;
+                }
+                return hql.substring(0, m.start()) + "where " + condition + " " + hql.substring(m.start());
+            }
+            start = m.end();
+        }
+        return hql + " where " + condition;
+    }
+
+    private static int findClauseEnd(String hql, int from) {
+        Matcher m = clause.matcher(hql);
+        int start = from;
+        while (m.find(start)) {
+            if (isTopLevel(hql, m.start())) {
+                return m.start();
+            }
+            start = m.end();
+        }
+        return hql.length();
+    }
+
+    private static boolean isTopLevel(String hql, int index) {
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = 0; i < index; i++) {
+            char c = hql.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')') {
+                depth--;
+            }
+        }
+        return depth == 0 && !quoted;
+    }
 }
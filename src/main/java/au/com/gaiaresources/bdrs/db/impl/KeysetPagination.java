@@ -0,0 +1,423 @@
+package au.com.gaiaresources.bdrs.db.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.NullValueInNestedPathException;
+
+/**
+ * Keyset (or seek) pagination. Rather than skipping the rows of the previous
+ * pages with an offset, each page is queried for the rows that sort after
+ * the last row of the previous page. The cost of a page does not depend on
+ * how deep it is.
+ *
+ * The position of the last row is returned to the client as an opaque
+ * continuation token that is passed back to request the next page. The
+ * token also carries the total count of the first page so that the count
+ * query does not need to be repeated for every page.
+ *
+ * The primary key is always added as the last sort column so that every row
+ * has a unique position. Null values are sorted the way PostgreSQL sorts
+ * them by default, last when ascending and first when descending. The sort
+ * columns must be properties of the queried entity (or its associations) so
+ * that their values can be read from the last row of a page.
+ *
+ * Tokens are signed with an HMAC so that a client cannot forge the count or
+ * the position of a page. The key is read from the
+ * <code>bdrs.keyset.secret</code> system property so that the tokens of one
+ * server are accepted by the others. Without the property a random key is
+ * used, and the tokens are only valid until the server is restarted.
+ */
+public class KeysetPagination {
+
+    /**
+     * The count of a token that does not carry the total count.
+     */
+    public static final int COUNT_UNKNOWN = -1;
+
+    /**
+     * The system property holding the secret the tokens are signed with.
+     */
+    public static final String SECRET_PROPERTY = "bdrs.keyset.secret";
+
+    private static final int TOKEN_VERSION = 2;
+    private static final String PARAM_PREFIX = "keyset_";
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 16;
+    private static final SecretKeySpec SIGNING_KEY = createSigningKey();
+
+    /**
+     * Only enums of the application may be sort values.
+     */
+    private static final String ENUM_PACKAGE = "au.com.gaiaresources.bdrs.";
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_BIG_DECIMAL = 5;
+    private static final byte TYPE_DATE = 6;
+    private static final byte TYPE_TIMESTAMP = 7;
+    private static final byte TYPE_BOOLEAN = 8;
+    private static final byte TYPE_ENUM = 9;
+
+    private List<SortingCriteria> sortingCriteria;
+    private String rootAlias;
+    private int pageSize;
+    private Object[] lastValues = null;
+    private int count = COUNT_UNKNOWN;
+
+    /**
+     * Creates a new keyset pagination.
+     * @param sortCriteria the columns to sort by, not including the primary key.
+     * @param rootAlias the alias of the queried entity, may be null. Sort
+     * columns starting with the alias are properties of the entity, other
+     * columns are treated as paths relative to the entity.
+     * @param idColumn the HQL column of the primary key of the entity.
+     * @param token the continuation token returned with the previous page,
+     * or null for the first page.
+     * @param pageSize the maximum number of rows in a page.
+     * @throws IllegalArgumentException if the token is not valid for the sort criteria.
+     */
+    public KeysetPagination(List<SortingCriteria> sortCriteria, String rootAlias,
+            String idColumn, String token, int pageSize) {
+        this.sortingCriteria = new ArrayList<SortingCriteria>(sortCriteria);
+        this.sortingCriteria.add(new SortingCriteria(idColumn, SortOrder.ASCENDING));
+        this.rootAlias = rootAlias;
+        this.pageSize = pageSize;
+        if (token != null && !token.isEmpty()) {
+            decode(token);
+        }
+    }
+
+    /**
+     * @return the sort columns including the primary key.
+     */
+    public List<SortingCriteria> getSortingCriteria() {
+        return Collections.unmodifiableList(sortingCriteria);
+    }
+
+    /**
+     * @return the maximum number of rows in a page.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return true if this is the first page.
+     */
+    public boolean isFirstPage() {
+        return lastValues == null;
+    }
+
+    /**
+     * @return the total count carried by the continuation token or
+     * {@link #COUNT_UNKNOWN}.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param count the total count to carry in the continuation tokens
+     * created by this pagination.
+     */
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    /**
+     * @return the HQL order by clause.
+     */
+    public String getOrderingClause() {
+        StringBuilder builder = new StringBuilder("order by");
+        for (int i = 0; i < sortingCriteria.size(); i++) {
+            SortingCriteria sc = sortingCriteria.get(i);
+            builder.append(i == 0 ? " " : ", ");
+            builder.append(sc.getColumn());
+            builder.append(sc.getOrder() == SortOrder.ASCENDING ? " asc" : " desc");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the HQL condition that selects the rows after the last row of
+     * the previous page.
+     * @param paramMap the named parameters of the query, the values of the
+     * condition are added to it.
+     * @return the condition or an empty string for the first page.
+     */
+    public String getPredicate(Map<String, Object> paramMap) {
+        if (lastValues == null) {
+            return "";
+        }
+        // (c0 after v0) or (c0 = v0 and c1 after v1) or ...
+        List<String> terms = new ArrayList<String>();
+        StringBuilder equal = new StringBuilder();
+        for (int i = 0; i < sortingCriteria.size(); i++) {
+            SortingCriteria sc = sortingCriteria.get(i);
+            String column = sc.getColumn();
+            Object value = lastValues[i];
+            String param = PARAM_PREFIX + i;
+
+            String after;
+            if (sc.getOrder() == SortOrder.ASCENDING) {
+                // nulls are last, nothing comes after a null
+                after = value == null ? null : String.format("(%s > :%s or %s is null)", column, param, column);
+            } else {
+                // nulls are first, everything comes after a null
+                after = value == null ? String.format("%s is not null", column) : String.format("%s < :%s", column, param);
+            }
+            if (after != null) {
+                terms.add(equal.length() == 0 ? after : String.format("(%s and %s)", equal, after));
+            }
+
+            if (equal.length() > 0) {
+                equal.append(" and ");
+            }
+            equal.append(value == null ? String.format("%s is null", column) : String.format("%s = :%s", column, param));
+            if (value != null) {
+                paramMap.put(param, value);
+            }
+        }
+
+        StringBuilder builder = new StringBuilder("(");
+        for (int i = 0; i < terms.size(); i++) {
+            if (i > 0) {
+                builder.append(" or ");
+            }
+            builder.append(terms.get(i));
+        }
+        // the primary key is never null so there is always a term
+        builder.append(")");
+        return builder.toString();
+    }
+
+    /**
+     * Creates the continuation token for the page after the specified row.
+     * @param last the last entity of the current page, or the last row if
+     * the query selects more than the entity, where the entity is the first
+     * column of the row.
+     * @return the continuation token.
+     */
+    public String createToken(Object last) {
+        if (last instanceof Object[]) {
+            last = ((Object[]) last)[0];
+        }
+        BeanWrapperImpl wrapper = new BeanWrapperImpl(last);
+        Object[] values = new Object[sortingCriteria.size()];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                values[i] = wrapper.getPropertyValue(getPropertyPath(sortingCriteria.get(i).getColumn()));
+            } catch (NullValueInNestedPathException nvinpe) {
+                // e.g. sorting by the name of a null location
+                values[i] = null;
+            }
+        }
+        return encode(values);
+    }
+
+    private String getPropertyPath(String column) {
+        if (rootAlias != null && column.startsWith(rootAlias + ".")) {
+            return column.substring(rootAlias.length() + 1);
+        }
+        return column;
+    }
+
+    private int getSignature() {
+        int hash = 0;
+        for (SortingCriteria sc : sortingCriteria) {
+            hash = 31 * hash + sc.getColumn().hashCode();
+            hash = 31 * hash + sc.getOrder().ordinal();
+        }
+        return hash;
+    }
+
+    private String encode(Object[] values) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeByte(TOKEN_VERSION);
+            out.writeInt(getSignature());
+            out.writeInt(count);
+            out.writeShort(values.length);
+            for (Object value : values) {
+                writeValue(out, value);
+            }
+            out.close();
+            byte[] payload = baos.toByteArray();
+            byte[] mac = sign(payload);
+            byte[] signed = Arrays.copyOf(payload, payload.length + mac.length);
+            System.arraycopy(mac, 0, signed, payload.length, mac.length);
+            return Base64.encodeBase64URLSafeString(signed);
+        } catch (IOException ioe) {
+            // cannot happen writing to memory
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    private void decode(String token) {
+        try {
+            byte[] signed = Base64.decodeBase64(token);
+            if (signed.length <= MAC_LENGTH) {
+                throw new IllegalArgumentException("Invalid continuation token: " + token);
+            }
+            byte[] payload = Arrays.copyOf(signed, signed.length - MAC_LENGTH);
+            byte[] mac = Arrays.copyOfRange(signed, payload.length, signed.length);
+            if (!MessageDigest.isEqual(sign(payload), mac)) {
+                throw new IllegalArgumentException("The continuation token has not been issued by this server: " + token);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (in.readByte() != TOKEN_VERSION || in.readInt() != getSignature()) {
+                throw new IllegalArgumentException("The continuation token does not match the sort order: " + token);
+            }
+            count = in.readInt();
+            int length = in.readShort();
+            if (length != sortingCriteria.size()) {
+                throw new IllegalArgumentException("The continuation token does not match the sort order: " + token);
+            }
+            Object[] values = new Object[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = readValue(in);
+            }
+            if (values[length - 1] == null) {
+                throw new IllegalArgumentException("The continuation token does not contain a primary key: " + token);
+            }
+            lastValues = values;
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException("Invalid continuation token: " + token, ioe);
+        } catch (ClassNotFoundException cnfe) {
+            throw new IllegalArgumentException("Invalid continuation token: " + token, cnfe);
+        }
+    }
+
+    /**
+     * @return the truncated HMAC of the token payload.
+     */
+    private static byte[] sign(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(SIGNING_KEY);
+            return Arrays.copyOf(mac.doFinal(payload), MAC_LENGTH);
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalStateException("Cannot sign the continuation token", gse);
+        }
+    }
+
+    private static SecretKeySpec createSigningKey() {
+        String secret = System.getProperty(SECRET_PROPERTY);
+        byte[] key;
+        if (secret != null && !secret.isEmpty()) {
+            try {
+                key = secret.getBytes("UTF-8");
+            } catch (IOException ioe) {
+                // UTF-8 is always supported
+                throw new IllegalStateException(ioe);
+            }
+        } else {
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+        }
+        return new SecretKeySpec(key, MAC_ALGORITHM);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(TYPE_BIG_DECIMAL);
+            out.writeUTF(value.toString());
+        } else if (value instanceof Timestamp) {
+            out.writeByte(TYPE_TIMESTAMP);
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof Date) {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Enum) {
+            out.writeByte(TYPE_ENUM);
+            out.writeUTF(((Enum) value).getDeclaringClass().getName());
+            out.writeUTF(((Enum) value).name());
+        } else {
+            throw new IllegalArgumentException("Cannot sort by a value of type " + value.getClass().getName());
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        switch (type) {
+        case TYPE_NULL:
+            return null;
+        case TYPE_STRING:
+            return in.readUTF();
+        case TYPE_INTEGER:
+            return in.readInt();
+        case TYPE_LONG:
+            return in.readLong();
+        case TYPE_DOUBLE:
+            return in.readDouble();
+        case TYPE_BIG_DECIMAL:
+            return new BigDecimal(in.readUTF());
+        case TYPE_TIMESTAMP:
+            Timestamp timestamp = new Timestamp(in.readLong());
+            timestamp.setNanos(in.readInt());
+            return timestamp;
+        case TYPE_DATE:
+            return new Date(in.readLong());
+        case TYPE_BOOLEAN:
+            return in.readBoolean();
+        case TYPE_ENUM:
+            String className = in.readUTF();
+            if (!className.startsWith(ENUM_PACKAGE)) {
+                throw new IOException("Not an application enum: " + className);
+            }
+            // the class is not initialised unless it is an enum
+            Class enumClass = Class.forName(className, false, KeysetPagination.class.getClassLoader());
+            if (!enumClass.isEnum()) {
+                throw new IOException("Not an enum: " + enumClass.getName());
+            }
+            return Enum.valueOf(enumClass, in.readUTF());
+        default:
+            throw new IOException("Unknown value type " + type);
+        }
+    }
+}
@@ -4,8 +4,14 @@ import java.util.Collections;
 import java.util.List;
 
 public class PagedQueryResult<T> {
+    /**
+     * The count of a result when the count query was skipped.
+     */
+    public static final int COUNT_UNKNOWN = KeysetPagination.COUNT_UNKNOWN;
+
     private List<T> list;
     private int count;
+    private String continuationToken;
 
     @SuppressWarnings("unchecked")
     public List<T> getList() {
@@ -28,4 +34,16 @@ public class PagedQueryResult<T> {
         this.count = count;
     }
 
+    /**
+     * @return the token to request the next page with keyset pagination, or
+     * null if this is the last page.
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public void setContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+    }
+
 }
\ No newline at end of file
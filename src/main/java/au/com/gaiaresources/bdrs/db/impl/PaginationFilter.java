@@ -11,6 +11,9 @@ public class PaginationFilter {
     private int firstResult;
     private int maxResult;
     private List<SortingCriteria> sortingCriterias;
+    private boolean keyset = false;
+    private String continuationToken = null;
+    private boolean countRequired = true;
 
     /**
      * Argument holding class for pagination operations. Ultimately used by
@@ -44,4 +47,63 @@ public class PaginationFilter {
     public List<SortingCriteria> getSortingCriterias() {
         return sortingCriterias;
     }
+
+    /**
+     * @return true if pages are found by their position in the sort order
+     * (keyset pagination) rather than by skipping the previous results.
+     * The first result is ignored when true.
+     */
+    public boolean isKeyset() {
+        return keyset;
+    }
+
+    /**
+     * @param keyset true to use keyset pagination.
+     * @return this filter.
+     */
+    public PaginationFilter setKeyset(boolean keyset) {
+        this.keyset = keyset;
+        return this;
+    }
+
+    /**
+     * @return the continuation token returned with the previous page when
+     * using keyset pagination, or null for the first page.
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    /**
+     * Sets the continuation token returned with the previous page. Setting a
+     * token enables keyset pagination.
+     * @param continuationToken the continuation token.
+     * @return this filter.
+     */
+    public PaginationFilter setContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+        if (continuationToken != null) {
+            this.keyset = true;
+        }
+        return this;
+    }
+
+    /**
+     * @return true if the total count of results is required. With keyset
+     * pagination the count of the first page is carried by the continuation
+     * token, so it is only queried once.
+     */
+    public boolean isCountRequired() {
+        return countRequired;
+    }
+
+    /**
+     * @param countRequired false to skip the count query. The count of the
+     * result is then {@link PagedQueryResult#COUNT_UNKNOWN}.
+     * @return this filter.
+     */
+    public PaginationFilter setCountRequired(boolean countRequired) {
+        this.countRequired = countRequired;
+        return this;
+    }
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package au.com.gaiaresources.bdrs.db.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -81,6 +83,9 @@ public class QueryPaginator<T> {
     @SuppressWarnings("unchecked")
     private PagedQueryResult<T> page(Session session, String hql, Object[] argArray, Map<String, Object> argMap,
                                     PaginationFilter filter, String sortTargetAlias) {
+        if (filter != null && filter.isKeyset()) {
+            return pageKeyset(session, hql, argArray, argMap, filter, sortTargetAlias);
+        }
      // [1] total size
         String countHql = "select count(*) "
                 + HqlUtil.removeSelect(HqlUtil.removeOrders(hql));
@@ -150,6 +155,59 @@ public class QueryPaginator<T> {
         return result;
     }
 
+    /**
+     * Pages the query by the position of the last result of the previous
+     * page. Like offset pagination, any ordering in the HQL is replaced by
+     * the sorting criteria of the filter, followed by the id.
+     */
+    @SuppressWarnings("unchecked")
+    private PagedQueryResult<T> pageKeyset(Session session, String hql, Object[] argArray, Map<String, Object> argMap,
+                                    PaginationFilter filter, String sortTargetAlias) {
+        String prefix = StringUtils.hasLength(sortTargetAlias) ? sortTargetAlias + "." : "";
+        List<SortingCriteria> sortCriteria = new ArrayList<SortingCriteria>(filter.getSortingCriterias().size());
+        for (SortingCriteria sc : filter.getSortingCriterias()) {
+            sortCriteria.add(new SortingCriteria(prefix + sc.getColumn(), sc.getOrder()));
+        }
+        KeysetPagination keyset = new KeysetPagination(sortCriteria, sortTargetAlias, prefix + "id",
+                                                       filter.getContinuationToken(), filter.getMaxResult());
+
+        String noOrderHql = HqlUtil.removeOrders(hql);
+        PagedQueryResult<T> result = new PagedQueryResult<T>();
+        if (keyset.isFirstPage() || keyset.getCount() == KeysetPagination.COUNT_UNKNOWN) {
+            if (filter.isCountRequired()) {
+                String countHql = "select count(*) " + HqlUtil.removeSelect(noOrderHql);
+                @SuppressWarnings("rawtypes")
+                List countlist = argArray != null ? find(session, countHql, argArray) : find(session, countHql, argMap);
+                keyset.setCount(((Long) countlist.get(0)).intValue());
+            }
+        }
+        result.setCount(keyset.getCount());
+        if (result.getCount() == 0) {
+            return result;
+        }
+
+        Map<String, Object> keysetArgs = new HashMap<String, Object>();
+        String predicate = keyset.getPredicate(keysetArgs);
+        String pageHql = predicate.length() > 0 ? HqlUtil.addCondition(noOrderHql, predicate) : noOrderHql;
+        Query query = session.createQuery(pageHql + " " + keyset.getOrderingClause());
+        if (argArray != null) {
+            applyArgToQuery(query, argArray);
+        } else {
+            applyArgToQuery(query, argMap);
+        }
+        applyArgToQuery(query, keysetArgs);
+
+        // one more than a page to tell if there is a next page
+        query.setMaxResults(keyset.getPageSize() + 1);
+        List<T> resultList = query.list();
+        if (resultList.size() > keyset.getPageSize()) {
+            resultList = new ArrayList<T>(resultList.subList(0, keyset.getPageSize()));
+            result.setContinuationToken(keyset.createToken(resultList.get(resultList.size() - 1)));
+        }
+        result.setList(resultList);
+        return result;
+    }
+
     /**
      * to make life easy we are going to strip ordering now....so don't expect
      * any original ordering specified in the HQL to work!
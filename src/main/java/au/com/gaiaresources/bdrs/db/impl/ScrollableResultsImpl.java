@@ -23,6 +23,8 @@ public class ScrollableResultsImpl<T> implements ScrollableResults<T> {
     private int entriesPerPage = -1;
     private int currentPageEntryIndex = INIT_CURRENT_PAGE_ENTRY_INDEX;
     private T result = null;
+    private KeysetPagination keyset = null;
+    private T last = null;
     
     private static final int INIT_CURRENT_PAGE_ENTRY_INDEX = -1;
     public static final boolean INIT_HAS_MORE_ELEMENTS = false;
@@ -64,6 +66,40 @@ public class ScrollableResultsImpl<T> implements ScrollableResults<T> {
         }
     }
 
+    /**
+     * Creates a new instance for a page of keyset pagination. The query must
+     * have been created with the ordering and predicate of the keyset and
+     * select up to one more than the page size.
+     * @param query the query for a page of T.
+     * @param keyset the keyset pagination of the query.
+     */
+    public ScrollableResultsImpl(Query query, KeysetPagination keyset) {
+        this.keyset = keyset;
+        if (query == null) {
+            results = null;
+        } else {
+            results = query.setCacheMode(CacheMode.IGNORE).setFetchSize(ScrollableRecords.RESULTS_BATCH_SIZE).scroll();
+            this.entriesPerPage = keyset.getPageSize();
+            nextRecord();
+        }
+    }
+
+    /**
+     * Returns the token to request the page after this one when using keyset
+     * pagination. Must be called after the last element of the page has been
+     * read.
+     * @return the continuation token, or null if there are no more pages.
+     */
+    @Override
+    public String getContinuationToken() {
+        if (keyset == null || last == null) {
+            return null;
+        }
+        // reads ahead to the extra row past the end of the page
+        hasMoreElements();
+        return currentPageEntryIndex >= entriesPerPage && hasMoreElements ? keyset.createToken(last) : null;
+    }
+
     @Override
     public boolean hasMoreElements() {
         if(result == null) {
@@ -81,6 +117,7 @@ public class ScrollableResultsImpl<T> implements ScrollableResults<T> {
         } else {
             T r = result;
             result = null;
+            last = r;
             return r;
         }
     }
@@ -91,6 +128,7 @@ public class ScrollableResultsImpl<T> implements ScrollableResults<T> {
         hasMoreElements = INIT_HAS_MORE_ELEMENTS;
         // rewind the underlying ScrollableResults
         results.beforeFirst();
+        last = null;
         nextRecord();
     }
     
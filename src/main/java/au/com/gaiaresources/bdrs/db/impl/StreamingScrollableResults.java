@@ -0,0 +1,166 @@
+package au.com.gaiaresources.bdrs.db.impl;
+
+import java.util.NoSuchElementException;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.Session;
+
+import au.com.gaiaresources.bdrs.db.RowMapper;
+import au.com.gaiaresources.bdrs.db.ScrollableResults;
+
+/**
+ * A forward only implementation of the {@link ScrollableResults} for exports.
+ *
+ * The {@link ScrollableResultsImpl} opens a scroll sensitive cursor so that
+ * it can be rewound, which the PostgreSQL driver implements by reading the
+ * entire result set into memory. This implementation opens a forward only
+ * cursor so that the driver only holds {@link ScrollableResults#RESULTS_BATCH_SIZE}
+ * rows at a time, and clears the session periodically so that the entities that
+ * have been read may be garbage collected.
+ *
+ * The session is cleared before the next row is read after every
+ * <code>clearInterval</code> rows. Any entity returned before then is detached, so
+ * consumers that hold on to rows (or rely on other entities of the session
+ * remaining attached) must disable clearing and manage the session themselves.
+ * Clearing the session discards unflushed changes.
+ *
+ * A forward only cursor cannot move backwards. {@link #rewind()} closes the
+ * cursor and executes the query again, for the exports that must read the
+ * results more than once.
+ *
+ * Projection queries may be streamed with a {@link RowMapper} that maps each
+ * row to an object. Projections of scalar columns do not add anything to the
+ * session, so the session does not need to be cleared.
+ */
+public class StreamingScrollableResults<T> implements ScrollableResults<T> {
+
+    private Query query;
+    private Session session;
+    private int clearInterval;
+    private RowMapper<T> rowMapper;
+
+    private org.hibernate.ScrollableResults results;
+    private boolean hasMoreElements = false;
+    private T result = null;
+    private int rowCount = 0;
+
+    /**
+     * Creates a new instance that clears the session every
+     * {@link ScrollableResults#RESULTS_BATCH_SIZE} rows.
+     * @param query the query for a set of T.
+     * @param session the session of the query.
+     */
+    public StreamingScrollableResults(Query query, Session session) {
+        this(query, session, RESULTS_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a new instance.
+     * @param query the query for a set of T.
+     * @param session the session of the query.
+     * @param clearInterval the number of rows read between each clear of the
+     * session, or 0 to never clear the session.
+     */
+    public StreamingScrollableResults(Query query, Session session, int clearInterval) {
+        this(query, session, clearInterval, null);
+    }
+
+    /**
+     * Creates a new instance that maps the rows of a projection query.
+     * @param query the projection query.
+     * @param session the session of the query.
+     * @param clearInterval the number of rows read between each clear of the
+     * session, or 0 to never clear the session.
+     * @param rowMapper maps each row to a T, or null to return the first column
+     * of each row.
+     */
+    public StreamingScrollableResults(Query query, Session session, int clearInterval, RowMapper<T> rowMapper) {
+        if (clearInterval < 0) {
+            throw new IllegalArgumentException("clearInterval cannot be negative: " + clearInterval);
+        }
+        this.query = query;
+        this.session = session;
+        this.clearInterval = clearInterval;
+        this.rowMapper = rowMapper;
+        open();
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+        if (result == null) {
+            nextRecord();
+        }
+        return hasMoreElements;
+    }
+
+    @Override
+    public T nextElement() {
+        if (result == null) {
+            throw new NoSuchElementException();
+        }
+        T r = result;
+        result = null;
+        return r;
+    }
+
+    /**
+     * Closes the cursor and executes the query again. Unlike a scroll
+     * sensitive cursor this does not hold the results in memory, but rows
+     * added or removed since the query was last executed will be visible.
+     */
+    @Override
+    public void rewind() {
+        close();
+        open();
+    }
+
+    /**
+     * Streamed results are never paged.
+     * @return null
+     */
+    @Override
+    public String getContinuationToken() {
+        return null;
+    }
+
+    /**
+     * Closes the cursor before all rows have been read. The cursor is closed
+     * automatically once the last row has been read.
+     */
+    public void close() {
+        if (results != null) {
+            results.close();
+            results = null;
+        }
+        hasMoreElements = false;
+        result = null;
+    }
+
+    private void open() {
+        rowCount = 0;
+        if (query != null) {
+            results = query.setCacheMode(CacheMode.IGNORE).setFetchSize(RESULTS_BATCH_SIZE).scroll(ScrollMode.FORWARD_ONLY);
+            nextRecord();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void nextRecord() {
+        if (results == null) {
+            return;
+        }
+        // evict the rows that have been read to ensure garbage collection
+        if (clearInterval > 0 && rowCount > 0 && rowCount % clearInterval == 0) {
+            session.clear();
+        }
+        hasMoreElements = results.next();
+        if (hasMoreElements) {
+            result = rowMapper != null ? rowMapper.mapRow(results.get()) : (T) results.get(0);
+            rowCount++;
+        } else {
+            close();
+        }
+    }
+}
@@ -280,6 +280,7 @@ public class AttributeDeserializer {
 
                     if (attributeParser.getAttrFile() != null) {
                         fileService.createFile(recAttr, attributeParser.getAttrFile());
+                        fileService.generateThumbnails(recAttr, recAttr.getStringValue());
                     }
                 }
                 // there is only 1 implementation of TypedAttributeValue and that is
@@ -396,6 +397,7 @@ public class AttributeDeserializer {
                             if (attributeParser.getAttrFile() != null
                                     && save) {
                                 fileService.createFile(recAttr, attributeParser.getAttrFile());
+                                fileService.generateThumbnails(recAttr, recAttr.getStringValue());
                             }
 
                             recAttr.setRecords(childRecords);
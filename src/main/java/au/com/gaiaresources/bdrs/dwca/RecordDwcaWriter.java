@@ -1,27 +1,27 @@
 package au.com.gaiaresources.bdrs.dwca;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.lang.reflect.InvocationTargetException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.Date;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.log4j.Logger;
 import org.apache.xml.serialize.OutputFormat;
 import org.apache.xml.serialize.XMLSerializer;
@@ -42,7 +42,9 @@ import au.com.gaiaresources.bdrs.util.CSVUtils;
 import au.com.gaiaresources.bdrs.util.FileUtils;
 import au.com.gaiaresources.bdrs.util.SpatialUtil;
 import au.com.gaiaresources.bdrs.util.StringUtils;
-import au.com.gaiaresources.bdrs.util.ZipUtils;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
 
 public class RecordDwcaWriter {
     
@@ -52,6 +54,13 @@ public class RecordDwcaWriter {
     public static final String OCCURRENCE_FILE = "occurence.txt";
     public static final String MEASUREMENT_OR_FACT_FILE = "measurementorfact.txt";
     
+    /**
+     * The number of records read between each clear of the session when an
+     * archive is streamed, the records of a batch are held by the session
+     * until it is cleared.
+     */
+    public static final int BATCH_SIZE = Integer.getInteger("bdrs.dwca.batch", ScrollableRecords.RESULTS_BATCH_SIZE);
+    
     public static final String SURVEY_EXT_FORMAT = "survey_%s.txt";
     public static final String CENSUS_METHOD_EXT_FORMAT = "census_method_%s.txt";
        
@@ -71,6 +80,9 @@ public class RecordDwcaWriter {
     
     private static final String BYTE_ENCODING = "UTF-8";
     
+    private int recordCount = 0;
+    private int measurementCount = 0;
+    
     public RecordDwcaWriter(LSIDService lsidService, SpatialUtil spatialUtil, RedirectionService redirService) { 
         
         if (lsidService == null) {
@@ -85,18 +97,43 @@ public class RecordDwcaWriter {
 
         // Create mapping. Use a LinkedHashMap to preserve order
         Map<CorePropertyGetter, ConceptTerm> coreMapBuilder = new LinkedHashMap<CorePropertyGetter, ConceptTerm>();
-        coreMapBuilder.put(new CorePathGetter("id"), DwcTerm.catalogNumber);
+        coreMapBuilder.put(new CorePropertyGetter() {
+            @Override
+            public String getValue(Record r) {
+                return r.getId().toString();
+            }
+        }, DwcTerm.catalogNumber);
         coreMapBuilder.put(new CoreScientificNameGetter(), DwcTerm.scientificName);
-        coreMapBuilder.put(new CoreCoordGetter("latitude", spatialUtil), DwcTerm.decimalLatitude);
-        coreMapBuilder.put(new CoreCoordGetter("longitude", spatialUtil), DwcTerm.decimalLongitude);
+        coreMapBuilder.put(new CoreCoordGetter(true, spatialUtil), DwcTerm.decimalLatitude);
+        coreMapBuilder.put(new CoreCoordGetter(false, spatialUtil), DwcTerm.decimalLongitude);
         coreMapBuilder.put(new CoreFixedGetter("HumanObservation"), DwcTerm.basisOfRecord);
         coreMapBuilder.put(new CoreFixedGetter("BDRS"), DwcTerm.institutionCode);
         coreMapBuilder.put(new CoreFixedGetter("BDRS"), DwcTerm.collectionCode);
         coreMapBuilder.put(new CoreSurveyLsidGetter(lsidService), DwcTerm.datasetID);
-        coreMapBuilder.put(new CorePathGetter("survey.name"), DwcTerm.datasetName);
-        coreMapBuilder.put(new CorePathGetter("user.fullName"), DwcTerm.recordedBy);
-        coreMapBuilder.put(new CorePathGetter("number"), DwcTerm.individualCount);
-        coreMapBuilder.put(new CorePathGetter("when"), DwcTerm.eventDate);
+        coreMapBuilder.put(new CorePropertyGetter() {
+            @Override
+            public String getValue(Record r) {
+                return r.getSurvey() != null ? toValue(r.getSurvey().getName()) : "";
+            }
+        }, DwcTerm.datasetName);
+        coreMapBuilder.put(new CorePropertyGetter() {
+            @Override
+            public String getValue(Record r) {
+                return r.getUser() != null ? toValue(r.getUser().getFullName()) : "";
+            }
+        }, DwcTerm.recordedBy);
+        coreMapBuilder.put(new CorePropertyGetter() {
+            @Override
+            public String getValue(Record r) {
+                return toValue(r.getNumber());
+            }
+        }, DwcTerm.individualCount);
+        coreMapBuilder.put(new CorePropertyGetter() {
+            @Override
+            public String getValue(Record r) {
+                return r.getWhen() != null ? ISO8601Local.format(r.getWhen()) : "";
+            }
+        }, DwcTerm.eventDate);
         coreMapBuilder.put(new CoreTaxonLsidGetter(lsidService), DwcTerm.taxonID);
         coreMapBuilder.put(new CoreTaxonLsidGetter(lsidService), DwcTerm.scientificNameID);
         coreMapBuilder.put(new AssociatedMediaGetter(redirService), DwcTerm.associatedMedia);
@@ -115,7 +152,11 @@ public class RecordDwcaWriter {
     }
         
     /**
-     * Does the work of writing the archive
+     * Writes the archive to a temporary file.
+     * 
+     * @param scrollableRecords the records to archive, read twice.
+     * @return the archive, or null if it could not be written.
+     * @see #writeArchive(ScrollableRecords, OutputStream)
      */
     public File writeArchive(ScrollableRecords scrollableRecords) {
         
@@ -123,45 +164,121 @@ public class RecordDwcaWriter {
             throw new IllegalArgumentException("ScrollableRecords, scrollableRecords, cannot be null");
         }
 
+        OutputStream out = null;
         try {
             File targetDir = FileUtils.createTempDirectory("record_dwca");
-                        
-            writeDwcDataFiles(targetDir, scrollableRecords);
-            writeMetaFile(targetDir);
-            
             File outfile = new File(targetDir, "bdrs_dwca.zip");
-            List<File> filesToCompress = new ArrayList<File>();
-
-            filesToCompress.add(FileUtils.getFileFromDir(targetDir, META_FILE));
-            filesToCompress.add(FileUtils.getFileFromDir(targetDir, OCCURRENCE_FILE));
-            filesToCompress.add(FileUtils.getFileFromDir(targetDir, MEASUREMENT_OR_FACT_FILE));
-            
-            ZipUtils.compress(filesToCompress, outfile);
-            
+            out = new BufferedOutputStream(new FileOutputStream(outfile));
+            writeArchive(scrollableRecords, out);
+            out.close();
+            out = null;
             return outfile; 
             
         } catch (IOException e) {
             log.error("failed to write archive", e);
             return null;
+        } finally {
+            closeStream(out);
+        }
+    }
+    
+    /**
+     * Writes the archive to a stream without any intermediate files. The
+     * meta file and the occurrence file are written as the records are read,
+     * then the records are rewound and read a second time to write the
+     * measurement or fact file, as the entries of a zip file cannot be
+     * interleaved. Records that were not read by the first pass (i.e. created
+     * in the meantime) are skipped by the second so that every measurement
+     * or fact has an occurrence.
+     * 
+     * The records should be read from a cursor that clears the session
+     * periodically so that the records that have been written can be
+     * garbage collected.
+     * 
+     * @param scrollableRecords the records to archive, read twice.
+     * @param out the stream to write to. It is not closed.
+     * @throws IOException if the archive could not be written.
+     */
+    public void writeArchive(ScrollableRecords scrollableRecords, OutputStream out) throws IOException {
+        
+        if (scrollableRecords == null) {
+            throw new IllegalArgumentException("ScrollableRecords, scrollableRecords, cannot be null");
+        }
+        if (out == null) {
+            throw new IllegalArgumentException("OutputStream, out, cannot be null");
+        }
+        
+        recordCount = 0;
+        measurementCount = 0;
+        
+        ZipOutputStream zip = new ZipOutputStream(out);
+        // the writer is not closed as that would close the response.
+        Writer writer = new BufferedWriter(new OutputStreamWriter(zip, BYTE_ENCODING));
+        
+        zip.putNextEntry(new ZipEntry(META_FILE));
+        try {
+            writeMetaFile(zip);
         } catch (ParserConfigurationException e) {
-            log.error("failed to write archive", e);
-            return null;
+            throw new IOException("failed to write the meta file", e);
+        }
+        zip.closeEntry();
+        
+        // the ids of the records in the occurrence file
+        BitSet recordIds = new BitSet();
+        
+        zip.putNextEntry(new ZipEntry(OCCURRENCE_FILE));
+        while (scrollableRecords.hasMoreElements()) {
+            Record rec = scrollableRecords.nextElement();
+            writeCoreValues(writer, rec);
+            recordIds.set(rec.getId().intValue());
+            ++recordCount;
         }
+        writer.flush();
+        zip.closeEntry();
+        
+        zip.putNextEntry(new ZipEntry(MEASUREMENT_OR_FACT_FILE));
+        scrollableRecords.rewind();
+        while (scrollableRecords.hasMoreElements()) {
+            Record rec = scrollableRecords.nextElement();
+            if (!recordIds.get(rec.getId().intValue())) {
+                continue;
+            }
+            for (AttributeValue av : rec.getAttributes()) {
+                // only have an entry if the AV value has a meaningful value
+                // and if it is not a census method attribute type
+                if (av.isPopulated() && !AttributeType.isCensusMethodType(av.getAttribute().getType())) {
+                    writeMeasurementOrFactValues(writer, rec, av);
+                }
+            }
+        }
+        writer.flush();
+        zip.closeEntry();
+        
+        zip.finish();
+    }
+    
+    /**
+     * @return the number of records in the occurrence file of the last archive written.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+    
+    /**
+     * @return the number of rows in the measurement or fact file of the last archive written.
+     */
+    public int getMeasurementCount() {
+        return measurementCount;
     }
     
     /**
      * helper method for writing the meta file
      * 
-     * @param targetDir
+     * @param out the stream of the meta file entry, it is not closed.
      * @throws IOException
      * @throws ParserConfigurationException
      */
-    private void writeMetaFile(File targetDir) throws IOException, ParserConfigurationException {
-        File metaFile = new File(targetDir.getAbsolutePath() + "/" + META_FILE);
-        if (!metaFile.createNewFile()) {
-            throw new IOException("Could not create meta file : " + metaFile.getAbsolutePath());
-        }
-        
+    private void writeMetaFile(OutputStream out) throws IOException, ParserConfigurationException {
         DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
         DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
         Document document = documentBuilder.newDocument();
@@ -220,91 +337,14 @@ public class RecordDwcaWriter {
             }
         }
         
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(metaFile);
-            XMLSerializer serializer = new XMLSerializer();
-            serializer.setOutputByteStream(fos);
-            OutputFormat format = new OutputFormat(document);
-            format.setLineWidth(65);
-            format.setIndenting(true);
-            format.setIndent(2);
-            serializer.setOutputFormat(format);
-            serializer.serialize(document);
-        } finally {
-            if (fos != null) {
-                fos.close();
-            }
-        }
-    }
-    
-    /**
-     * Write the data files. Not we use scrollable records object to avoid running out of memory.
-     * 
-     * @param targetDir
-     * @param scrollableRecords
-     * @param surveySet - output
-     * @param cmSet - output
-     * @throws IOException
-     */
-    private void writeDwcDataFiles(File targetDir, ScrollableRecords scrollableRecords) throws IOException {
-        File occurrenceFile = new File(targetDir.getAbsolutePath() + "/" + OCCURRENCE_FILE);
-        File mofFile = new File(targetDir.getAbsolutePath() + "/" + MEASUREMENT_OR_FACT_FILE);
-        
-        if (!occurrenceFile.createNewFile()) {
-            throw new IOException("Could not create occurence file : " + occurrenceFile.getAbsolutePath());
-        }
-        
-        FileOutputStream coreFos = null;
-        FileOutputStream mofFos = null;
-        Writer coreWriter = null;
-        Writer mofWriter = null;
-        try {
-        	coreFos = new FileOutputStream(occurrenceFile);
-        	mofFos = new FileOutputStream(mofFile);
-        	coreWriter = new OutputStreamWriter(coreFos, BYTE_ENCODING);
-            mofWriter = new OutputStreamWriter(mofFos, BYTE_ENCODING);
-            
-            while (scrollableRecords.hasMoreElements()) {
-
-                Record rec = scrollableRecords.nextElement();
-                
-                writeCoreValues(coreWriter, rec);
-
-                for (AttributeValue av : rec.getAttributes()) {
-                    // only have an entry if the AV value has a meaningful value
-                    // and if it is not a census method attribute type
-                    if (av.isPopulated() && !AttributeType.isCensusMethodType(av.getAttribute().getType())) {
-                        writeMeasurementOrFactValues(mofWriter, rec, av);
-                    }
-                }
-            }   
-        } finally {
-        	closeWriter(coreWriter);
-        	closeWriter(mofWriter);
-        	closeStream(coreFos);
-        	closeStream(mofFos);
-        }
-    }
-    
-    /**
-     * Convenience method for closing a writer.
-     * @param writer Writer to close.
-     */
-    private void closeWriter(Writer writer) {
-    	if (writer != null) {
-    		try {
-    			writer.flush();	
-    		} catch (IOException ioe) {
-    			log.error("could not flush writer", ioe);
-    		}
-    		
-    		try {
-    			writer.close();	
-    		} catch (IOException ioe) {
-    			log.error("could not close writer", ioe);
-    		}
-    	}
+        XMLSerializer serializer = new XMLSerializer();
+        serializer.setOutputByteStream(out);
+        OutputFormat format = new OutputFormat(document);
+        format.setLineWidth(65);
+        format.setIndenting(true);
+        format.setIndent(2);
+        serializer.setOutputFormat(format);
+        serializer.serialize(document);
     }
     
     /**
@@ -368,6 +408,7 @@ public class RecordDwcaWriter {
             ++idx;
         }
         writer.write(CSVUtils.toCSVString(mofCsvValues, FIELDS_TERMINATED_BY_CHAR, '\'', false));
+        ++measurementCount;
     }
     
     /**
@@ -430,44 +471,11 @@ public class RecordDwcaWriter {
     }
     
     /**
-     * Return the string representation of the value specified by
-     * the 'path' 
-     * 
-     * @author aaron
-     *
+     * @return the string representation of a property value, or an empty
+     * string if it is null.
      */
-    private static class CorePathGetter implements CorePropertyGetter {
-        private String path;
-        
-        private final DateFormat ISO8601Local = new SimpleDateFormat (ISO_DATE_FORMAT);
-        private Logger log = Logger.getLogger(getClass());
-        
-        public CorePathGetter(String path) {
-            this.path = path;
-        }
-        @Override
-        public String getValue(Record r) {
-            try {
-                Object value = PropertyUtils.getProperty(r, path);
-                if (value == null) {
-                    return "";
-                }
-                if (value instanceof Date) {
-                    return ISO8601Local.format((Date)value);
-                } else {
-                    return value.toString();
-                }
-            } catch (IllegalAccessException iae) {
-                log.error("Error while retrieving property", iae);
-                return "";
-            } catch (InvocationTargetException ite) {
-                log.error("Error while retrieving property", ite);
-                return "";
-            } catch (NoSuchMethodException nsme) {
-                log.error("Error while retrieving property", nsme);
-                return "";
-            }
-        }
+    private static String toValue(Object value) {
+        return value != null ? value.toString() : "";
     }
     
     /**
@@ -544,50 +552,48 @@ public class RecordDwcaWriter {
     }
     
     /**
-     * Truncates coordinates to the correct number of decimal places.
+     * Transforms coordinates to the SRID of the archive and truncates them to
+     * the correct number of decimal places.
      * @author aaron
      *
      */
     private static class CoreCoordGetter implements CorePropertyGetter {
-        private String path;
+        private boolean latitude;
         private SpatialUtil spatialUtil;
         
-        private Logger log = Logger.getLogger(getClass());
-        
-        public CoreCoordGetter(String path, SpatialUtil spatialUtil) {
-            if (path == null) {
-                throw new IllegalArgumentException("String, path, cannot be null");
-            }
+        /**
+         * @param latitude true for the latitude, false for the longitude.
+         * @param spatialUtil transforms the coordinates to the SRID of the archive.
+         */
+        public CoreCoordGetter(boolean latitude, SpatialUtil spatialUtil) {
             if (spatialUtil == null) {
                 throw new IllegalArgumentException("LocationService, locService, cannot be null");
             }
-            this.path = path;
+            this.latitude = latitude;
             this.spatialUtil = spatialUtil;
         }
         
         @Override
         public String getValue(Record r) {
-            try {
-                Object value = PropertyUtils.getProperty(r, path);
-                if (value == null) {
-                    return null;
-                }
-                if (value instanceof Double) {
-                    double truncDouble = this.spatialUtil.truncate(((Double) value).doubleValue());
-                    return String.format("%f", truncDouble);
-                } else {
-                    throw new IllegalStateException("coord must be of type double");
+            Double value;
+            Geometry geom = r.getGeometry() != null ? r.getGeometry() :
+                r.getLocation() != null ? r.getLocation().getLocation() : null;
+            if (geom != null && geom.getSRID() != spatialUtil.getGeometryFactory().getSRID()) {
+                // decimal coordinates are in the srid of the archive
+                Geometry transformed = spatialUtil.transform(geom);
+                if (transformed == null) {
+                    return "";
                 }
-            } catch (IllegalAccessException iae) {
-                log.error("Error while retrieving property", iae);
-                return "";
-            } catch (InvocationTargetException ite) {
-                log.error("Error while retrieving property", ite);
-                return "";
-            } catch (NoSuchMethodException nsme) {
-                log.error("Error while retrieving property", nsme);
-                return "";
+                Point centroid = transformed.getCentroid();
+                value = latitude ? centroid.getY() : centroid.getX();
+            } else {
+                value = latitude ? r.getLatitude() : r.getLongitude();
+            }
+            if (value == null) {
+                return null;
             }
+            double truncDouble = this.spatialUtil.truncate(value.doubleValue());
+            return String.format("%f", truncDouble);
         }
     }
 
@@ -1,7 +1,6 @@
 package au.com.gaiaresources.bdrs.file;
 
 import au.com.gaiaresources.bdrs.db.Persistent;
-import au.com.gaiaresources.bdrs.util.ImageUtil;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
@@ -9,10 +8,9 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.activation.FileDataSource;
-import java.awt.image.BufferedImage;
+import javax.annotation.PreDestroy;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -47,10 +45,23 @@ public class FileService {
 
     public static final String THUMBNAIL_CONTENT_TYPE = "image/png";
     public static final String THUMBNAIL_FILE_EXTENSION = ".png";
+    /**
+     * The sizes of the clipped thumbnails generated as soon as an image is
+     * uploaded, as width and height: the default size, and the size of the
+     * record images in the review gallery.
+     */
+    public static final int[][] STANDARD_THUMBNAIL_SIZES = {
+        { DEFAULT_THUMBNAIL_WIDTH, DEFAULT_THUMBNAIL_HEIGHT },
+        { 70, 80 }
+    };
 
 	private File storageDirectory;
 	private Map<Class<? extends Persistent>, File> persistentFolders;
 	private Logger logger = Logger.getLogger(getClass());
+	private ThumbnailGenerator thumbnailGenerator = new ThumbnailGenerator(
+	        Integer.getInteger("bdrs.thumbnail.workers", Math.min(4, Runtime.getRuntime().availableProcessors())),
+	        Integer.getInteger("bdrs.thumbnail.queue", 200),
+	        Long.getLong("bdrs.thumbnail.timeout", 30000));
 
 	/**
 	 * Constructor.
@@ -357,28 +368,87 @@ public class FileService {
                 throw new IllegalArgumentException("File " + original.getAbsolutePath() + " does not exist!");
             }
 
-            thumb = createThumbnail(original, width, height, clipped);
+            thumb = thumbnailGenerator.getThumbnail(original, thumb, width, height, clipped);
         }
         return new FileDataSource(thumb);
     }
 
     /**
-     * Creates a thumbnail of the specified size from the supplied file.
-     * @param file the file to create a thumbnail of.
-     * @param width the desired width of the thumbnail.
-     * @param height the desired height of the thumbnail.
-     * @param clipped whether the original image should be clipped to fill the thumbnail (if false, the thumbnail
-     *                will contain blank space unless the aspect ratio of the thumbnail matches that of the
-     *                original).
-     * @return the File containing the thumbnail image.
-     * @throws IOException if there is an error reading or writing the file.
+     * Generates the {@link #STANDARD_THUMBNAIL_SIZES standard thumbnails} of
+     * a newly saved file in the background, replacing the thumbnails of any
+     * file it replaced. Files that are not images are ignored.
+     * @param p the persistent object the file is associated with.
+     * @param fileName the name of the file.
+     */
+    public void generateThumbnails(Persistent p, String fileName) {
+        generateThumbnails(p.getClass(), p.getId(), fileName);
+    }
+
+    /**
+     * @see #generateThumbnails(Persistent, String)
+     */
+    public void generateThumbnails(Class<? extends Persistent> clazz, Integer id, String fileName) {
+        File original = new File(getPersistentInstanceFolder(clazz, id), fileName);
+        if (!original.exists()) {
+            return;
+        }
+        List<ThumbnailGenerator.Thumbnail> thumbs = new ArrayList<ThumbnailGenerator.Thumbnail>(STANDARD_THUMBNAIL_SIZES.length);
+        for (int[] size : STANDARD_THUMBNAIL_SIZES) {
+            File thumb = new File(original.getParentFile(), thumbnailName(original, size[0], size[1], true));
+            thumbs.add(thumbnailGenerator.thumbnail(original, thumb, size[0], size[1], true));
+        }
+        thumbnailGenerator.generateLater(original, thumbs);
+    }
+
+    /**
+     * @return the number of thumbnails waiting to be generated.
      */
-    private File createThumbnail(File file, int width, int height, boolean clipped) throws IOException {
-        BufferedImage thumb = ImageUtil.resizeImage(new FileInputStream(file), width, height, clipped);
-        File thumbFile = new File(file.getParentFile(), thumbnailName(file, width, height, clipped));
-        ImageUtil.saveImage(thumbFile, thumb, THUMBNAIL_CONTENT_TYPE);
+    public int getThumbnailQueueDepth() {
+        return thumbnailGenerator.getQueueDepth();
+    }
 
-        return thumbFile;
+    /**
+     * @return the number of thumbnails being generated or waiting to be.
+     */
+    public int getThumbnailInFlightCount() {
+        return thumbnailGenerator.getInFlightCount();
+    }
+
+    /**
+     * @return the number of thumbnails generated.
+     */
+    public long getThumbnailCount() {
+        return thumbnailGenerator.getGeneratedCount();
+    }
+
+    /**
+     * @return the total time spent generating thumbnails in milliseconds.
+     */
+    public long getThumbnailMillis() {
+        return thumbnailGenerator.getGenerationMillis();
+    }
+
+    /**
+     * @return the number of thumbnail requests that waited for the same
+     * thumbnail to be generated by another request.
+     */
+    public long getSharedThumbnailCount() {
+        return thumbnailGenerator.getSharedCount();
+    }
+
+    /**
+     * @return the number of thumbnails that could not be generated.
+     */
+    public long getThumbnailFailureCount() {
+        return thumbnailGenerator.getFailureCount();
+    }
+
+    /**
+     * Stops generating thumbnails.
+     */
+    @PreDestroy
+    public void shutdown() {
+        thumbnailGenerator.shutdown();
     }
 
     /**
@@ -0,0 +1,340 @@
+package au.com.gaiaresources.bdrs.file;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import au.com.gaiaresources.bdrs.util.ImageUtil;
+
+/**
+ * Generates the thumbnails of the {@link FileService} on a bounded pool of
+ * worker threads.
+ *
+ * Only one thumbnail of a given file, size and clipping is generated at a
+ * time, requests for a thumbnail that is already being generated wait for
+ * that thumbnail rather than generating it again. Thumbnails are written to
+ * a temporary file that is renamed into place once complete, so a thumbnail
+ * that exists is always complete. When the queue of the pool is full the
+ * requesting thread generates the thumbnail itself.
+ *
+ * A worker never waits for a thumbnail generated by another task, so the
+ * pool cannot deadlock however few workers it has. The thumbnails of a
+ * background job are registered as being generated when the job is queued,
+ * requests for them wait for the job, and the job generates each of them
+ * itself. Requests wait for a thumbnail for a limited time.
+ */
+class ThumbnailGenerator {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private Logger log = Logger.getLogger(getClass());
+
+    private ThreadPoolExecutor executor;
+    private long timeoutMillis;
+    // the thumbnails being generated by absolute path
+    private ConcurrentMap<String, FutureTask<File>> inFlight = new ConcurrentHashMap<String, FutureTask<File>>();
+
+    private AtomicLong generated = new AtomicLong();
+    private AtomicLong generationNanos = new AtomicLong();
+    private AtomicLong shared = new AtomicLong();
+    private AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param workers the number of worker threads.
+     * @param queueCapacity the number of thumbnails that may wait for a worker.
+     * @param timeoutMillis how long a request waits for a thumbnail.
+     */
+    public ThumbnailGenerator(int workers, int queueCapacity, long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        workers = Math.max(1, workers);
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "thumbnail-worker-" + THREAD_COUNT.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Gets a thumbnail, generating it if it does not exist and waiting until
+     * it has been generated.
+     * @param original the image file.
+     * @param thumb the thumbnail file.
+     * @param width the width of the thumbnail.
+     * @param height the height of the thumbnail.
+     * @param clipped true if the image is clipped to fill the thumbnail.
+     * @return the thumbnail file.
+     * @throws IOException if the thumbnail cannot be generated in time.
+     */
+    public File getThumbnail(File original, File thumb, int width, int height, boolean clipped) throws IOException {
+        if (thumb.exists()) {
+            return thumb;
+        }
+        FutureTask<File> task = submit(new Thumbnail(original, thumb, width, height, clipped));
+        try {
+            try {
+                return task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (CancellationException ce) {
+                // the background job could not read the image, try it here
+                task = submit(new Thumbnail(original, thumb, width, height, clipped));
+                return task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException te) {
+            throw new IOException("Timed out waiting for thumbnail " + thumb.getName());
+        } catch (CancellationException ce) {
+            throw new IOException("Thumbnail " + thumb.getName() + " was not generated");
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for thumbnail " + thumb.getName());
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to create thumbnail " + thumb.getName() + ": " + cause);
+        }
+    }
+
+    /**
+     * Generates thumbnails of an image in the background, replacing any that
+     * exist. The image is decoded once for all of the thumbnails. Requests
+     * for the thumbnails made before the job completes wait for the job.
+     * @param original the image file.
+     * @param thumbs the thumbnails to generate.
+     */
+    public void generateLater(final File original, final List<Thumbnail> thumbs) {
+        if (thumbs.isEmpty()) {
+            return;
+        }
+        // the job owns the thumbnails from now on, a request already
+        // generating one finishes but later requests wait for the job
+        final List<FutureTask<File>> tasks = new ArrayList<FutureTask<File>>(thumbs.size());
+        for (Thumbnail t : thumbs) {
+            FutureTask<File> task = createTask(t);
+            inFlight.put(t.thumb.getAbsolutePath(), task);
+            tasks.add(task);
+        }
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                BufferedImage image = null;
+                try {
+                    int width = 0;
+                    int height = 0;
+                    for (Thumbnail t : thumbs) {
+                        width = Math.max(width, t.width);
+                        height = Math.max(height, t.height);
+                    }
+                    image = ImageUtil.readImage(original, width, height);
+                } catch (IOException ioe) {
+                    log.warn("Unable to read image " + original.getAbsolutePath(), ioe);
+                } catch (RuntimeException re) {
+                    log.warn("Unable to read image " + original.getAbsolutePath(), re);
+                }
+                for (int i = 0; i < thumbs.size(); i++) {
+                    if (image == null) {
+                        // not an image, or not one we can read
+                        tasks.get(i).cancel(false);
+                    } else {
+                        thumbs.get(i).image = image;
+                        // the failure is logged by the thumbnail
+                        tasks.get(i).run();
+                    }
+                }
+            }
+        };
+        if (executor.isShutdown()) {
+            job.run();
+        } else {
+            executor.execute(job);
+        }
+    }
+
+    /**
+     * Starts generating a thumbnail on a worker, or joins the generation of
+     * the same thumbnail if it has already started.
+     */
+    private FutureTask<File> submit(Thumbnail thumbnail) {
+        FutureTask<File> task = createTask(thumbnail);
+        FutureTask<File> existing = inFlight.putIfAbsent(thumbnail.thumb.getAbsolutePath(), task);
+        if (existing != null) {
+            shared.incrementAndGet();
+            return existing;
+        }
+        if (executor.isShutdown()) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+        return task;
+    }
+
+    /**
+     * Creates the task that generates a thumbnail, it is no longer in
+     * flight once it is done.
+     */
+    private FutureTask<File> createTask(Thumbnail thumbnail) {
+        final String key = thumbnail.thumb.getAbsolutePath();
+        return new FutureTask<File>(thumbnail) {
+            @Override
+            protected void done() {
+                inFlight.remove(key, this);
+            }
+        };
+    }
+
+    /**
+     * Stops the workers, the thumbnails waiting for a worker are not generated.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        // release the requests waiting for the thumbnails
+        for (FutureTask<File> task : inFlight.values()) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * @return the number of thumbnails waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of thumbnails being generated or waiting to be.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return the number of thumbnails generated.
+     */
+    public long getGeneratedCount() {
+        return generated.get();
+    }
+
+    /**
+     * @return the total time spent generating thumbnails in milliseconds.
+     */
+    public long getGenerationMillis() {
+        return generationNanos.get() / 1000000;
+    }
+
+    /**
+     * @return the number of requests that waited for a thumbnail already
+     * being generated rather than generating it again.
+     */
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    /**
+     * @return the number of thumbnails that could not be generated.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * A thumbnail of an image.
+     */
+    class Thumbnail implements Callable<File> {
+        private File original;
+        private File thumb;
+        private int width;
+        private int height;
+        private boolean clipped;
+        // the decoded original if it has already been read
+        private BufferedImage image = null;
+
+        public Thumbnail(File original, File thumb, int width, int height, boolean clipped) {
+            this.original = original;
+            this.thumb = thumb;
+            this.width = width;
+            this.height = height;
+            this.clipped = clipped;
+        }
+
+        @Override
+        public File call() throws IOException {
+            // generated while this waited for a worker
+            if (image == null && thumb.exists()) {
+                return thumb;
+            }
+            long start = System.nanoTime();
+            File temp = null;
+            try {
+                BufferedImage source = image;
+                if (source == null) {
+                    source = ImageUtil.readImage(original, width, height);
+                    if (source == null) {
+                        throw new IOException("The image format of " + original.getName() + " is not supported");
+                    }
+                }
+                BufferedImage scaled = ImageUtil.resizeImage(source, width, height, clipped);
+
+                temp = File.createTempFile(thumb.getName(), ".tmp", thumb.getParentFile());
+                ImageUtil.saveImage(temp, scaled, FileService.THUMBNAIL_CONTENT_TYPE);
+                // replacing an existing file fails on some platforms
+                if (!temp.renameTo(thumb) && !(thumb.delete() && temp.renameTo(thumb))) {
+                    throw new IOException("Unable to move thumbnail into place: " + thumb.getAbsolutePath());
+                }
+                temp = null;
+
+                generated.incrementAndGet();
+                generationNanos.addAndGet(System.nanoTime() - start);
+                return thumb;
+            } catch (IOException ioe) {
+                failures.incrementAndGet();
+                log.error("Failed to create thumbnail " + thumb.getAbsolutePath(), ioe);
+                throw ioe;
+            } catch (RuntimeException re) {
+                failures.incrementAndGet();
+                log.error("Failed to create thumbnail " + thumb.getAbsolutePath(), re);
+                throw re;
+            } finally {
+                if (temp != null) {
+                    temp.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the description of a thumbnail.
+     * @see #generateLater(File, List)
+     */
+    Thumbnail thumbnail(File original, File thumb, int width, int height, boolean clipped) {
+        return new Thumbnail(original, thumb, width, height, clipped);
+    }
+}
@@ -0,0 +1,54 @@
+package au.com.gaiaresources.bdrs.geojson;
+
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.mapfish.geo.MfFeature;
+import org.mapfish.geo.MfGeometry;
+
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Serializes a cluster of records as a point at the centre of the
+ * clustered records with the number of records in the cluster.
+ */
+public class RecordClusterMfFeature extends MfFeature {
+
+    private static final String ID_TEMPLATE = "cluster_%d_%d";
+
+    private long column;
+    private long row;
+    private Point centre;
+    private int count;
+
+    /**
+     * @param column the column of the grid cell of the cluster.
+     * @param row the row of the grid cell of the cluster.
+     * @param centre the mean position of the clustered records.
+     * @param count the number of clustered records.
+     */
+    public RecordClusterMfFeature(long column, long row, Point centre, int count) {
+        this.column = column;
+        this.row = row;
+        this.centre = centre;
+        this.count = count;
+    }
+
+    @Override
+    public String getFeatureId() {
+        return String.format(ID_TEMPLATE, column, row);
+    }
+
+    @Override
+    public MfGeometry getMfGeometry() {
+        return new MfGeometry(centre);
+    }
+
+    @Override
+    public void toJSON(JSONWriter jsonWriter) throws JSONException {
+        jsonWriter.key("cluster");
+        jsonWriter.value(true);
+
+        jsonWriter.key("count");
+        jsonWriter.value(count);
+    }
+}
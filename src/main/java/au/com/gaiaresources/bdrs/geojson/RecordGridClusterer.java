@@ -0,0 +1,127 @@
+package au.com.gaiaresources.bdrs.geojson;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mapfish.geo.MfFeature;
+
+import au.com.gaiaresources.bdrs.model.record.RecordProjection;
+import au.com.gaiaresources.bdrs.util.SpatialUtil;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Clusters records into the cells of a grid of longitude and latitude. The
+ * grid is aligned to the origin rather than to the requested area so that
+ * the clusters do not move as the map is panned, and a record is always in
+ * the same cluster no matter which tile it is requested with.
+ *
+ * The cells are sized so that a map tile of 256 pixels at the zoom level
+ * contains {@link #CELLS_PER_TILE} cells in each direction. A cell containing
+ * a single record is written as the record rather than as a cluster.
+ */
+public class RecordGridClusterer {
+
+    /**
+     * The number of grid cells across a map tile.
+     */
+    public static final int CELLS_PER_TILE = 4;
+
+    private static final double TILE_DEGREES_AT_ZOOM_0 = 360d;
+
+    private SpatialUtil spatialUtil;
+    private double cellSize;
+    // insertion ordered so that the features are written in a stable order
+    private Map<String, Cell> cells = new LinkedHashMap<String, Cell>();
+
+    /**
+     * @param zoom the zoom level of the map.
+     * @param spatialUtil transforms the record geometries to the output projection.
+     */
+    public RecordGridClusterer(int zoom, SpatialUtil spatialUtil) {
+        if (zoom < 0) {
+            throw new IllegalArgumentException("zoom cannot be negative: " + zoom);
+        }
+        this.cellSize = getCellSize(zoom);
+        this.spatialUtil = spatialUtil;
+    }
+
+    /**
+     * @param zoom the zoom level of the map.
+     * @return the width and height of a grid cell in degrees.
+     */
+    public static double getCellSize(int zoom) {
+        return TILE_DEGREES_AT_ZOOM_0 / Math.pow(2, zoom) / CELLS_PER_TILE;
+    }
+
+    /**
+     * Adds a record to the cluster of the cell containing its centroid.
+     * Records without a geometry are ignored.
+     * @param record the record to add.
+     */
+    public void add(RecordProjection record) {
+        if (record.getGeometry() == null) {
+            return;
+        }
+        Geometry geom = spatialUtil.transform(record.getGeometry());
+        Coordinate c = geom.getCentroid().getCoordinate();
+        long column = (long) Math.floor(c.x / cellSize);
+        long row = (long) Math.floor(c.y / cellSize);
+        String key = column + "_" + row;
+
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            cell = new Cell(column, row, record);
+            cells.put(key, cell);
+        }
+        cell.add(c);
+    }
+
+    /**
+     * @return the number of clusters, including the cells containing a single record.
+     */
+    public int getClusterCount() {
+        return cells.size();
+    }
+
+    /**
+     * @return a feature for each cell containing a record.
+     */
+    public List<MfFeature> getFeatures() {
+        List<MfFeature> features = new ArrayList<MfFeature>(cells.size());
+        for (Cell cell : cells.values()) {
+            if (cell.count == 1) {
+                features.add(new RecordProjectionMfFeature(cell.first, spatialUtil));
+            } else {
+                Coordinate centre = new Coordinate(cell.sumX / cell.count, cell.sumY / cell.count);
+                features.add(new RecordClusterMfFeature(cell.column, cell.row,
+                        spatialUtil.getGeometryFactory().createPoint(centre), cell.count));
+            }
+        }
+        return features;
+    }
+
+    private static class Cell {
+        private long column;
+        private long row;
+        private RecordProjection first;
+        private int count = 0;
+        private double sumX = 0;
+        private double sumY = 0;
+
+        public Cell(long column, long row, RecordProjection first) {
+            this.column = column;
+            this.row = row;
+            this.first = first;
+        }
+
+        public void add(Coordinate c) {
+            count++;
+            sumX += c.x;
+            sumY += c.y;
+        }
+    }
+}
@@ -71,11 +71,13 @@ public class RecordGroupLineMfFeature extends MfFeature {
         // however, due to time constraints I'm stopping the optimization here.
         // a.low 2013-10-16
         List<Coordinate> coordinateList = new ArrayList<Coordinate>();
+        List<Integer> sridList = new ArrayList<Integer>();
 
         while (scrollableRecords.hasMoreElements()) {
             Record r = scrollableRecords.nextElement();
             if (r.getGeometry() != null) {
                 coordinateList.add(r.getGeometry().getCoordinate());
+                sridList.add(r.getGeometry().getSRID());
             }
             session.clear();
         }
@@ -85,6 +87,20 @@ public class RecordGroupLineMfFeature extends MfFeature {
         // we can only draw a line with 2 or more points.
         if (coordinateList.size() > 1) {
             Coordinate[] coordinateArray = coordinateList.toArray(new Coordinate[0]);
+            // transform each run of coordinates with the same srid in bulk
+            int start = 0;
+            for (int i = 1; i <= coordinateArray.length; i++) {
+                if (i == coordinateArray.length || !sridList.get(i).equals(sridList.get(start))) {
+                    Coordinate[] run = new Coordinate[i - start];
+                    System.arraycopy(coordinateArray, start, run, 0, run.length);
+                    run = spatialUtil.transform(sridList.get(start), run);
+                    if (run == null) {
+                        return null;
+                    }
+                    System.arraycopy(run, 0, coordinateArray, start, run.length);
+                    start = i;
+                }
+            }
             LineString lineString = new LineString(new CoordinateArraySequence(coordinateArray),
                     geomFactory);
 
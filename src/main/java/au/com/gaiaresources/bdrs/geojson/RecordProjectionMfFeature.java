@@ -0,0 +1,70 @@
+package au.com.gaiaresources.bdrs.geojson;
+
+import au.com.gaiaresources.bdrs.model.record.RecordProjection;
+import au.com.gaiaresources.bdrs.util.SpatialUtil;
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.mapfish.geo.MfFeature;
+import org.mapfish.geo.MfGeometry;
+
+/**
+ * Serializes a {@link RecordProjection}. Writes the same properties as
+ * {@link RecordMinimalMfFeature} followed by the date, the species names
+ * and the record group of the record, which are already in the projection.
+ */
+public class RecordProjectionMfFeature extends MfFeature {
+
+    private RecordProjection record;
+    private SpatialUtil spatialUtil;
+
+    public RecordProjectionMfFeature(RecordProjection r, SpatialUtil spatialUtil) {
+        if (r == null) {
+            throw new IllegalArgumentException("Record cannot be null");
+        }
+        if (spatialUtil == null) {
+            throw new IllegalArgumentException("Spatial util cannot be null");
+        }
+        this.record = r;
+        this.spatialUtil = spatialUtil;
+    }
+
+    @Override
+    public String getFeatureId() {
+        if (record.getId() == null) {
+            return "0";
+        }
+        return record.getId().toString();
+    }
+
+    @Override
+    public MfGeometry getMfGeometry() {
+        if (record.getGeometry() == null) {
+            return null;
+        }
+        return new MfGeometry(spatialUtil.transform(record.getGeometry()));
+    }
+
+    @Override
+    public void toJSON(JSONWriter jsonWriter) throws JSONException {
+        jsonWriter.key("user_id");
+        jsonWriter.value(record.getUserId() != null ? record.getUserId() : 0);
+
+        jsonWriter.key("survey_id");
+        jsonWriter.value(record.getSurveyId() != null ? record.getSurveyId() : 0);
+
+        jsonWriter.key("species_id");
+        jsonWriter.value(record.getSpeciesId() != null ? record.getSpeciesId() : 0);
+
+        jsonWriter.key("when");
+        jsonWriter.value(record.getWhen() != null ? record.getWhen().getTime() : null);
+
+        jsonWriter.key("scientific_name");
+        jsonWriter.value(record.getScientificName());
+
+        jsonWriter.key("common_name");
+        jsonWriter.value(record.getCommonName());
+
+        jsonWriter.key("group_id");
+        jsonWriter.value(record.getRecordGroupId() != null ? record.getRecordGroupId() : 0);
+    }
+}
@@ -0,0 +1,182 @@
+package au.com.gaiaresources.bdrs.geometry;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import au.com.gaiaresources.bdrs.model.survey.BdrsCoordReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.util.GeometryEditor;
+
+/**
+ * Transforms coordinates between the coordinate reference systems identified
+ * by their SRID, see {@link BdrsCoordReferenceSystem}.
+ *
+ * Decoding a coordinate reference system and finding the transform between
+ * two of them is far more expensive than the transform itself, so the
+ * coordinate reference systems and the transforms between each pair of SRIDs
+ * are created once and shared. Transforms are immutable and may be used
+ * concurrently.
+ *
+ * Coordinates are transformed in bulk, an array of ordinates at a time, rather
+ * than one coordinate at a time.
+ */
+public class CoordinateTransformService {
+
+    private static final CoordinateTransformService INSTANCE = new CoordinateTransformService();
+
+    private ConcurrentMap<Integer, CoordinateReferenceSystem> crsCache = new ConcurrentHashMap<Integer, CoordinateReferenceSystem>();
+    private ConcurrentMap<Long, MathTransform> transformCache = new ConcurrentHashMap<Long, MathTransform>();
+
+    /**
+     * @return the shared instance.
+     */
+    public static CoordinateTransformService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the coordinate reference system of an SRID.
+     * @param srid the SRID.
+     * @return the coordinate reference system.
+     * @throws IllegalArgumentException if the SRID is not a known EPSG code.
+     */
+    public CoordinateReferenceSystem getCoordinateReferenceSystem(int srid) {
+        CoordinateReferenceSystem crs = crsCache.get(srid);
+        if (crs == null) {
+            try {
+                crs = CRS.decode(BdrsCoordReferenceSystem.sridToEpsg(srid));
+            } catch (FactoryException e) {
+                throw new IllegalArgumentException("Could not decode requested SRID to epsg code : " + srid, e);
+            }
+            CoordinateReferenceSystem existing = crsCache.putIfAbsent(srid, crs);
+            if (existing != null) {
+                crs = existing;
+            }
+        }
+        return crs;
+    }
+
+    /**
+     * Returns the transform between two SRIDs.
+     * @param srcSrid the SRID of the coordinates to transform.
+     * @param dstSrid the SRID to transform the coordinates to.
+     * @return the transform.
+     * @throws IllegalArgumentException if either SRID is not a known EPSG code
+     * or there is no transform between them.
+     */
+    public MathTransform getTransform(int srcSrid, int dstSrid) {
+        Long key = Long.valueOf(((long) srcSrid << 32) | (dstSrid & 0xffffffffL));
+        MathTransform transform = transformCache.get(key);
+        if (transform == null) {
+            try {
+                transform = CRS.findMathTransform(getCoordinateReferenceSystem(srcSrid),
+                        getCoordinateReferenceSystem(dstSrid), false);
+            } catch (FactoryException e) {
+                throw new IllegalArgumentException(String.format("Could not find a transform from SRID %d to %d", srcSrid, dstSrid), e);
+            }
+            MathTransform existing = transformCache.putIfAbsent(key, transform);
+            if (existing != null) {
+                transform = existing;
+            }
+        }
+        return transform;
+    }
+
+    /**
+     * Transforms a geometry to another SRID.
+     * @param geom the geometry to transform, in the SRID of the geometry.
+     * @param dstSrid the SRID to transform the geometry to.
+     * @return the transformed geometry with the destination SRID, or the same
+     * geometry if it already has the destination SRID.
+     * @throws IllegalArgumentException if there is no transform between the SRIDs.
+     * @throws GeometryTransformationFailedException if a coordinate cannot be transformed.
+     */
+    public Geometry transform(Geometry geom, int dstSrid) {
+        if (geom == null || geom.getSRID() == dstSrid) {
+            return geom;
+        }
+        final MathTransform transform = getTransform(geom.getSRID(), dstSrid);
+        Geometry result = new GeometryEditor().edit(geom, new GeometryEditor.CoordinateOperation() {
+            @Override
+            public Coordinate[] edit(Coordinate[] coordinates, Geometry geometry) {
+                return transform(transform, coordinates);
+            }
+        });
+        result.setSRID(dstSrid);
+        return result;
+    }
+
+    /**
+     * Transforms coordinates to another SRID.
+     * @param srcSrid the SRID of the coordinates.
+     * @param dstSrid the SRID to transform the coordinates to.
+     * @param coordinates the coordinates to transform, they are not modified.
+     * @return the transformed coordinates.
+     * @throws IllegalArgumentException if there is no transform between the SRIDs.
+     * @throws GeometryTransformationFailedException if a coordinate cannot be transformed.
+     */
+    public Coordinate[] transform(int srcSrid, int dstSrid, Coordinate[] coordinates) {
+        if (srcSrid == dstSrid) {
+            Coordinate[] copy = new Coordinate[coordinates.length];
+            for (int i = 0; i < coordinates.length; i++) {
+                copy[i] = new Coordinate(coordinates[i]);
+            }
+            return copy;
+        }
+        return transform(getTransform(srcSrid, dstSrid), coordinates);
+    }
+
+    /**
+     * Transforms two dimensional coordinates to another SRID in place.
+     * @param srcSrid the SRID of the coordinates.
+     * @param dstSrid the SRID to transform the coordinates to.
+     * @param ordinates the coordinates as x0, y0, x1, y1, ...
+     * @param offset the index of the first x ordinate to transform.
+     * @param numPoints the number of coordinates to transform.
+     * @throws IllegalArgumentException if there is no transform between the SRIDs.
+     * @throws GeometryTransformationFailedException if a coordinate cannot be transformed.
+     */
+    public void transform(int srcSrid, int dstSrid, double[] ordinates, int offset, int numPoints) {
+        if (srcSrid == dstSrid || numPoints == 0) {
+            return;
+        }
+        try {
+            getTransform(srcSrid, dstSrid).transform(ordinates, offset, ordinates, offset, numPoints);
+        } catch (TransformException te) {
+            throw new GeometryTransformationFailedException(te);
+        }
+    }
+
+    /**
+     * @return the number of transforms held.
+     */
+    public int size() {
+        return transformCache.size();
+    }
+
+    private Coordinate[] transform(MathTransform transform, Coordinate[] coordinates) {
+        double[] ordinates = new double[coordinates.length * 2];
+        for (int i = 0; i < coordinates.length; i++) {
+            ordinates[i * 2] = coordinates[i].x;
+            ordinates[i * 2 + 1] = coordinates[i].y;
+        }
+        try {
+            transform.transform(ordinates, 0, ordinates, 0, coordinates.length);
+        } catch (TransformException te) {
+            throw new GeometryTransformationFailedException(te);
+        }
+        Coordinate[] result = new Coordinate[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            result[i] = new Coordinate(ordinates[i * 2], ordinates[i * 2 + 1], coordinates[i].z);
+        }
+        return result;
+    }
+}
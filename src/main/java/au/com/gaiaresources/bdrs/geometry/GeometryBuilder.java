@@ -40,8 +40,29 @@ public class GeometryBuilder {
         return bufferInKm(p, radiusM / 1000);
     }
     
-    @SuppressWarnings("unchecked")
     public Geometry bufferInKm(Point p, Double radiusKm) {
+        double difference = getBufferDistanceInKm(p, radiusKm);
+        Geometry buffer = p.buffer(difference);
+        if (buffer.getSRID() != p.getSRID()) {
+            buffer.setSRID(p.getSRID());
+        }
+        return buffer;
+    }
+    
+    /**
+     * Returns the distance in degrees used by {@link #bufferInM(Point, Double)}
+     * to buffer a point. A geometry intersects the buffer if it is no further
+     * than this distance from the point.
+     * @param p the point to buffer in decimal degrees.
+     * @param radiusM the radius of the buffer in metres.
+     * @return the radius of the buffer in degrees.
+     */
+    public double getBufferDistanceInM(Point p, double radiusM) {
+        return getBufferDistanceInKm(p, radiusM / 1000);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private double getBufferDistanceInKm(Point p, double radiusKm) {
         GeodeticCalculator c = new GeodeticCalculator();
         c.setStartingGeographicPoint(p.getX(), p.getY());
         
@@ -55,12 +76,7 @@ public class GeometryBuilder {
             
             Point2D p2 = c.getDestinationGeographicPoint();
             
-            double difference = p2.getY() - p.getY();
-            Geometry buffer = p.buffer(difference);
-            if (buffer.getSRID() != p.getSRID()) {
-                buffer.setSRID(p.getSRID());
-            }
-            return buffer;
+            return p2.getY() - p.getY();
         }
         
         throw new IllegalStateException("Unable to convert between " + u + " and " + km);
@@ -95,4 +111,15 @@ public class GeometryBuilder {
     public LineString createLine(double x1, double y1, double x2, double y2) {
         return factory.createLineString(new Coordinate[] { new Coordinate(x1, y1), new Coordinate(x2, y2) } );
     }
+    
+    /**
+     * Transforms a geometry to the SRID of this builder.
+     * @param geom the geometry to transform.
+     * @return the transformed geometry, or the same geometry if it already has
+     * the SRID of this builder.
+     * @throws GeometryTransformationFailedException if the geometry cannot be transformed.
+     */
+    public Geometry transform(Geometry geom) {
+        return CoordinateTransformService.getInstance().transform(geom, factory.getSRID());
+    }
 }
@@ -40,10 +40,11 @@ public class BDRSKMLWriter {
     public static final String KML_CONTENT_TYPE = "application/vnd.google-earth.kml+xml";
 
     private KMLWriter writer;
+    private StreamingKMLWriter streamingWriter;
     private JsonService jsonService;
 
     /**
-     * Create a new BDRSKMLWriter
+     * Create a new BDRSKMLWriter that builds the KML document in memory.
      * @param preferenceDAO PreferenceDAO
      * @param serverURL The serverURL is a combination of domain, tomcat context path and
      * portal context path.
@@ -54,38 +55,61 @@ public class BDRSKMLWriter {
      */
     public BDRSKMLWriter(PreferenceDAO preferenceDAO, String serverURL,
                          String placemarkColorHex) throws JAXBException {
+        this(preferenceDAO, serverURL, placemarkColorHex, null);
+    }
+
+    /**
+     * Create a new BDRSKMLWriter. If an output stream is provided placemarks are written to
+     * the stream as records and locations are written to this writer, after the KML header and
+     * styles. Call {@link #close()} to complete the document.
+     * @param preferenceDAO PreferenceDAO
+     * @param serverURL The serverURL is a combination of domain, tomcat context path and
+     * portal context path.
+     * e.g. http://core.gaiaresources.com.au/bdrs-core/portal/1
+     * e.g. http://core.gaiaresources.com.au/bdrs-core/erwa
+     * @param placemarkColorHex colorhex of the placemark
+     * @param outputStream the stream to write to, or null to build the KML document in memory.
+     * @throws JAXBException
+     */
+    public BDRSKMLWriter(PreferenceDAO preferenceDAO, String serverURL,
+                         String placemarkColorHex, OutputStream outputStream) throws JAXBException {
 
         jsonService = new JsonService(preferenceDAO, serverURL);
 
-        writer = new KMLWriter();
+        if (outputStream == null) {
+            writer = new KMLWriter();
+        } else {
+            streamingWriter = new StreamingKMLWriter(outputStream);
+        }
         String placemark = serverURL + GET_RECORD_PLACEMARK_PNG_URL + "?color=";
 
         placemarkColorHex = placemarkColorHex == null ? DEFAULT_PLACEMARK_COLOR : placemarkColorHex;
         placemark = placemark + placemarkColorHex;
 
-        writer.createStyleIcon(KML_POINT_ICON_ID, placemark, 16, 16);
-        writer.createStylePoly(KML_POLYGON_STYLE, placemarkColorHex.toCharArray());
+        createStyleIcon(KML_POINT_ICON_ID, placemark, 16, 16);
+        createStylePoly(KML_POLYGON_STYLE, placemarkColorHex.toCharArray());
 
         // create a highlighted placemark
         String hlPlacemark = serverURL + GET_RECORD_PLACEMARK_PNG_URL + "?color=";
 
         hlPlacemark = hlPlacemark + HIGHLIGHT_PLACEMARK_COLOR;
 
-        writer.createStyleIcon(KML_POINT_ICON_ID_HIGHLIGHT, hlPlacemark, 16, 16);
-        writer.createStylePoly(KML_POLYGON_STYLE_HIGHLIGHT, HIGHLIGHT_PLACEMARK_COLOR.toCharArray());
+        createStyleIcon(KML_POINT_ICON_ID_HIGHLIGHT, hlPlacemark, 16, 16);
+        createStylePoly(KML_POLYGON_STYLE_HIGHLIGHT, HIGHLIGHT_PLACEMARK_COLOR.toCharArray());
 
-        writer.createFolder(KML_RECORD_FOLDER);
-        writer.createFolder(KML_LOCATION_FOLDER);
+        createFolder(KML_RECORD_FOLDER);
+        createFolder(KML_LOCATION_FOLDER);
     }
 
     /**
      * Write records to the internal KML writer. Does not write to output stream until we call
-     * BDRSKMLWriter.write()
+     * BDRSKMLWriter.write() unless this writer was created with an output stream.
      * @param currentUser The logged in user
      * @param recordList List of records to write
      * @param serializeLazyLoadedValues If true will lazy load all children and write them
+     * @throws JAXBException
      */
-    public void writeRecords(User currentUser, List<Record> recordList, boolean serializeLazyLoadedValues) {
+    public void writeRecords(User currentUser, List<Record> recordList, boolean serializeLazyLoadedValues) throws JAXBException {
 
         String label;
         String description;
@@ -109,7 +133,8 @@ public class BDRSKMLWriter {
     }
 
     /**
-     * Write records to KML to specified output stream
+     * Write records to KML to specified output stream. If this writer was created with
+     * an output stream, nothing may have been written to that stream yet.
      *
      * @param currentUser The logged in user
      * @param recordList List of records to write
@@ -119,28 +144,70 @@ public class BDRSKMLWriter {
      */
     public void writeRecordsToKML(User currentUser, List<Record> recordList, OutputStream outputStream,
                                          boolean serializeAttributes) throws JAXBException {
+        if (streamingWriter != null) {
+            streamingWriter.setOutputStream(outputStream);
+        }
         writeRecords(currentUser, recordList, serializeAttributes);
-        writer.write(false, outputStream);
+        if (streamingWriter != null) {
+            streamingWriter.close();
+        } else {
+            writer.write(false, outputStream);
+        }
     }
 
-    private void writePlacemark(String folderName, String label, String description, String id, Geometry geom) {
+    private void writePlacemark(String folderName, String label, String description, String id, Geometry geom) throws JAXBException {
         if (geom instanceof Point) {
-            writer.createPlacemark(folderName, label, description, id, geom, KML_POINT_ICON_ID);
+            createPlacemark(folderName, label, description, id, geom, KML_POINT_ICON_ID);
         } else if (geom instanceof MultiPolygon) {
-            writer.createPlacemark(folderName, label, description, id, geom, KML_POLYGON_STYLE);
+            createPlacemark(folderName, label, description, id, geom, KML_POLYGON_STYLE);
         } else if (geom instanceof MultiLineString) {
-            writer.createPlacemark(folderName, label, description, id, geom, KML_POLYGON_STYLE);
+            createPlacemark(folderName, label, description, id, geom, KML_POLYGON_STYLE);
         } else {
             log.error("Geometry type not supported : " + geom.getClass().getName());
         }
     }
 
+    private void createStyleIcon(String id, String iconUrl, int hotSpotX, int hotSpotY) throws JAXBException {
+        if (streamingWriter != null) {
+            streamingWriter.createStyleIcon(id, iconUrl, hotSpotX, hotSpotY);
+        } else {
+            writer.createStyleIcon(id, iconUrl, hotSpotX, hotSpotY);
+        }
+    }
+
+    private void createStylePoly(String id, char[] colour) throws JAXBException {
+        if (streamingWriter != null) {
+            streamingWriter.createStylePoly(id, colour);
+        } else {
+            writer.createStylePoly(id, colour);
+        }
+    }
+
+    private void createFolder(String name) {
+        if (streamingWriter != null) {
+            streamingWriter.createFolder(name);
+        } else {
+            writer.createFolder(name);
+        }
+    }
+
+    private void createPlacemark(String folderName, String label, String description,
+                                 String id, Geometry geom, String style) throws JAXBException {
+        if (streamingWriter != null) {
+            streamingWriter.createPlacemark(folderName, label, description, id, geom, style);
+        } else {
+            writer.createPlacemark(folderName, label, description, id, geom, style);
+        }
+    }
+
     /**
      * Write locations to KML. Will not write to output stream until BDRSKMLWrite.write() is called
+     * unless this writer was created with an output stream.
      *
      * @param locationList List of locations to write
+     * @throws JAXBException
      */
-    public void writeLocations(List<Location> locationList) {
+    public void writeLocations(List<Location> locationList) throws JAXBException {
         String label;
         String description;
 
@@ -165,9 +232,24 @@ public class BDRSKMLWriter {
      * @param outputStream Write to this output stream
      */
     public void write(boolean formatted, OutputStream outputStream) throws JAXBException {
+        if (streamingWriter != null) {
+            throw new IllegalStateException("Streaming KML is written as it is created. Use close() instead.");
+        }
         writer.write(formatted, outputStream);
     }
 
+    /**
+     * Completes the KML document when this writer was created with an output stream.
+     * The output stream is flushed but not closed.
+     * @throws JAXBException
+     */
+    public void close() throws JAXBException {
+        if (streamingWriter == null) {
+            throw new IllegalStateException("KML is built in memory. Use write() instead.");
+        }
+        streamingWriter.close();
+    }
+
     /**
      * Write KML to the HTTP response
      * @param response Write to the output stream contained in this HttpServletResponse
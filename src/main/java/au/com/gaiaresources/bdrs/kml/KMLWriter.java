@@ -50,6 +50,14 @@ import com.vividsolutions.jts.geom.Polygon;
  *
  */
 public class KMLWriter {
+    /**
+     * The KML namespace.
+     */
+    public static final String KML_NAMESPACE = "http://www.opengis.net/kml/2.2";
+    
+    // JAXBContexts are thread safe and expensive to create.
+    private static JAXBContext sharedContext;
+    
     private JAXBContext context;
     private ObjectFactory objectFactory;
 
@@ -65,9 +73,7 @@ public class KMLWriter {
      * @throws JAXBException If the JAXBContext cannot be created.
      */
     public KMLWriter() throws JAXBException {
-        context = JAXBContext.newInstance(ObjectFactory.class,
-                                          au.com.gaiaresources.bdrs.kml.org.w3.atom.ObjectFactory.class,
-                                          au.com.gaiaresources.bdrs.kml.oasis.names.tc.ciq.xsdschema.xal.ObjectFactory.class);
+        context = getContext();
         objectFactory = new ObjectFactory();
 
         kmlType = objectFactory.createKmlType();
@@ -76,6 +82,19 @@ public class KMLWriter {
         documentType = objectFactory.createDocumentType();
         kmlType.setAbstractFeatureGroup(objectFactory.createDocument(documentType));
     }
+    
+    /**
+     * @return the JAXBContext for marshalling KML.
+     * @throws JAXBException If the JAXBContext cannot be created.
+     */
+    static synchronized JAXBContext getContext() throws JAXBException {
+        if (sharedContext == null) {
+            sharedContext = JAXBContext.newInstance(ObjectFactory.class,
+                    au.com.gaiaresources.bdrs.kml.org.w3.atom.ObjectFactory.class,
+                    au.com.gaiaresources.bdrs.kml.oasis.names.tc.ciq.xsdschema.xal.ObjectFactory.class);
+        }
+        return sharedContext;
+    }
 
     public void createStyle(String id) {
         StyleType styleType = objectFactory.createStyleType();
@@ -97,6 +116,10 @@ public class KMLWriter {
     }
 
     public void createStyleIcon(String id, String iconUrl, int hotSpotX, int hotSpotY) {
+        documentType.getAbstractStyleSelectorGroup().add(objectFactory.createStyle(buildStyleIcon(id, iconUrl, hotSpotX, hotSpotY)));
+    }
+    
+    StyleType buildStyleIcon(String id, String iconUrl, int hotSpotX, int hotSpotY) {
         StyleType styleType = objectFactory.createStyleType();
         styleType.setId(id);
         IconStyleType iconStyleType = objectFactory.createIconStyleType();
@@ -110,11 +133,14 @@ public class KMLWriter {
         hotSpot.setYunits(UnitsEnumType.PIXELS);
         iconStyleType.setHotSpot(hotSpot);
         styleType.setIconStyle(iconStyleType);
-
-        documentType.getAbstractStyleSelectorGroup().add(objectFactory.createStyle(styleType));
+        return styleType;
     }
 
     public void createStylePoly(String id, char[] colour) {
+        documentType.getAbstractStyleSelectorGroup().add(objectFactory.createStyle(buildStylePoly(id, colour)));
+    }
+    
+    StyleType buildStylePoly(String id, char[] colour) {
         StyleType styleType = objectFactory.createStyleType();
         styleType.setId(id);
 
@@ -128,11 +154,19 @@ public class KMLWriter {
             throw new IllegalArgumentException("Invalid colour.", e);
         }
         styleType.setPolyStyle(polyStyle);
-
-        documentType.getAbstractStyleSelectorGroup().add(objectFactory.createStyle(styleType));
+        return styleType;
     }
 
     public void createStylePoly(String id, Color c) {
+        createStylePoly(id, toColourHex(c));
+    }
+    
+    /**
+     * Converts the colour to the aabbggrr hex representation used by KML.
+     * @param c the colour to convert.
+     * @return the KML colour.
+     */
+    static char[] toColourHex(Color c) {
         String red = Integer.toHexString(c.getRed());
         String green = Integer.toHexString(c.getGreen());
         String blue = Integer.toHexString(c.getBlue());
@@ -143,7 +177,7 @@ public class KMLWriter {
         if (blue.length() == 1) { blue = "0" + blue; }
         if (alpha.length() == 1) { alpha = "0" + alpha; }
 
-        createStylePoly(id, (alpha + blue + green + red).toCharArray());
+        return (alpha + blue + green + red).toCharArray();
     }
 
     /**
@@ -191,6 +225,11 @@ public class KMLWriter {
     
     public void createPlacemark(String folderName, String label,
             String description, String id, Geometry location, String style) {
+        getFolder(folderName).getAbstractFeatureGroup().add(
+                objectFactory.createPlacemark(buildPlacemark(label, description, id, location, style)));
+    }
+    
+    PlacemarkType buildPlacemark(String label, String description, String id, Geometry location, String style) {
     	
     	location = spatialUtil.transform(location);
     	
@@ -204,7 +243,6 @@ public class KMLWriter {
         if (StringUtils.notEmpty(style)) {
             placemarkType.setStyleUrl("#" + style);
         }
-        getFolder(folderName).getAbstractFeatureGroup().add(objectFactory.createPlacemark(placemarkType));
 
         if (location instanceof Point) {
             placemarkType.setAbstractGeometryGroup(createPoint((Point) location));
@@ -215,6 +253,11 @@ public class KMLWriter {
         } else if (location instanceof MultiLineString) {
             placemarkType.setAbstractGeometryGroup(createMultiLineString((MultiLineString)location));
         }
+        return placemarkType;
+    }
+    
+    ObjectFactory getObjectFactory() {
+        return objectFactory;
     }
 
     private JAXBElement<PointType> createPoint(Point p) {
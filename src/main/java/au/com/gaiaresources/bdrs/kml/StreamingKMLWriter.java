@@ -0,0 +1,374 @@
+package au.com.gaiaresources.bdrs.kml;
+
+import java.awt.Color;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.MarshalException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.io.IOUtils;
+
+import au.com.gaiaresources.bdrs.kml.net.opengis.kml.ObjectFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Writes KML files incrementally. Unlike the {@link KMLWriter} which builds
+ * the entire document in memory before marshalling it, each placemark is
+ * marshalled as soon as it is created.
+ *
+ * Styles must be created before the first placemark. The header and styles
+ * are written with the first placemark, or when the writer is flushed or
+ * closed, so nothing is written to the output stream if the placemarks
+ * cannot be produced.
+ *
+ * Folders are written once each, in the order they are created, as the
+ * {@link KMLWriter} writes them. The placemarks of the first folder are
+ * written straight to the output stream. The placemarks of the other folders
+ * are held in a temporary file for each folder and copied to the output
+ * stream when the writer is closed.
+ *
+ * The styles and placemarks are built and marshalled by the same code as the
+ * {@link KMLWriter} so both writers produce the same KML for the same input.
+ */
+public class StreamingKMLWriter {
+
+    private static final String ELEMENT_KML = "kml";
+    private static final String ELEMENT_DOCUMENT = "Document";
+    private static final String ELEMENT_FOLDER = "Folder";
+    private static final String ELEMENT_NAME = "name";
+
+    private static XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+
+    private KMLWriter builder;
+    private ObjectFactory objectFactory;
+    private Marshaller marshaller;
+    private OutputStream outputStream;
+    private XMLStreamWriter xmlWriter;
+
+    private List<JAXBElement<?>> styles = new ArrayList<JAXBElement<?>>();
+    private Set<String> folders = new LinkedHashSet<String>();
+    private Map<String, FolderBuffer> folderBuffers = new HashMap<String, FolderBuffer>();
+    private boolean firstFolderOpen = false;
+    private boolean closed = false;
+
+    /**
+     * Creates a new writer.
+     * @param outputStream the stream to write to. The stream is not closed by this writer.
+     * @throws JAXBException If the KML marshaller cannot be created.
+     */
+    public StreamingKMLWriter(OutputStream outputStream) throws JAXBException {
+        builder = new KMLWriter();
+        objectFactory = builder.getObjectFactory();
+
+        marshaller = KMLWriter.getContext().createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Changes the stream the KML is written to. The stream may only be
+     * changed before anything has been written.
+     * @param outputStream the stream to write to. The stream is not closed by this writer.
+     */
+    public void setOutputStream(OutputStream outputStream) {
+        if (outputStream == this.outputStream) {
+            return;
+        }
+        if (isStarted()) {
+            throw new IllegalStateException("KML has already been written to another stream.");
+        }
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Writes an icon style.
+     * @param id the id of the style.
+     * @param iconUrl the url of the icon.
+     * @param hotSpotX the x offset of the icon in pixels.
+     * @param hotSpotY the y offset of the icon in pixels.
+     * @throws JAXBException If the style cannot be written.
+     */
+    public void createStyleIcon(String id, String iconUrl, int hotSpotX, int hotSpotY) throws JAXBException {
+        checkStylesOpen();
+        styles.add(objectFactory.createStyle(builder.buildStyleIcon(id, iconUrl, hotSpotX, hotSpotY)));
+    }
+
+    /**
+     * Writes a polygon style.
+     * @param id the id of the style.
+     * @param colour the aabbggrr colour of the style.
+     * @throws JAXBException If the style cannot be written.
+     */
+    public void createStylePoly(String id, char[] colour) throws JAXBException {
+        checkStylesOpen();
+        styles.add(objectFactory.createStyle(builder.buildStylePoly(id, colour)));
+    }
+
+    /**
+     * Writes a polygon style.
+     * @param id the id of the style.
+     * @param c the colour of the style.
+     * @throws JAXBException If the style cannot be written.
+     */
+    public void createStylePoly(String id, Color c) throws JAXBException {
+        createStylePoly(id, KMLWriter.toColourHex(c));
+    }
+
+    /**
+     * Create a folder to contain placemarks. Folders are written in the order
+     * they are created, folders that are never written to are written empty.
+     * @param name <code>String</code> the name of the folder.
+     */
+    public void createFolder(String name) {
+        checkOpen();
+        folders.add(name);
+    }
+
+    /**
+     * Write a placemark.
+     * @param folderName The name of the folder.
+     * @param label The label for the placemark.
+     * @param location The location as a JTS <code>Geometry</code>.
+     * @param style The name of the style.
+     * @throws JAXBException If the placemark cannot be written.
+     */
+    public void createPlacemark(String folderName, String label, Geometry location, String style)
+        throws JAXBException {
+        createPlacemark(folderName, label, null, label, location, style);
+    }
+
+    /**
+     * Write a placemark.
+     * @param folderName The name of the folder.
+     * @param label The label for the placemark.
+     * @param description The description of the placemark. May be null.
+     * @param id The id of the placemark.
+     * @param location The location as a JTS <code>Geometry</code>.
+     * @param style The name of the style.
+     * @throws JAXBException If the placemark cannot be written.
+     */
+    public void createPlacemark(String folderName, String label,
+            String description, String id, Geometry location, String style)
+        throws JAXBException {
+
+        // as the KMLWriter, a placemark in an unknown folder creates the folder.
+        createFolder(folderName);
+        start();
+
+        JAXBElement<?> placemark = objectFactory.createPlacemark(
+                builder.buildPlacemark(label, description, id, location, style));
+        if (folderName.equals(folders.iterator().next())) {
+            if (!firstFolderOpen) {
+                writeFolderStart(xmlWriter, folderName, false);
+                firstFolderOpen = true;
+            }
+            marshaller.marshal(placemark, xmlWriter);
+        } else {
+            FolderBuffer buffer = folderBuffers.get(folderName);
+            if (buffer == null) {
+                buffer = new FolderBuffer(folderName);
+                folderBuffers.put(folderName, buffer);
+            }
+            marshaller.marshal(placemark, buffer.xmlWriter);
+        }
+    }
+
+    /**
+     * Flushes any buffered KML to the output stream. Placemarks held for
+     * the folders after the first folder are not written until the writer
+     * is closed.
+     * @throws JAXBException If the KML cannot be flushed.
+     */
+    public void flush() throws JAXBException {
+        start();
+        try {
+            xmlWriter.flush();
+        } catch (XMLStreamException e) {
+            throw new MarshalException(e);
+        }
+    }
+
+    /**
+     * Writes the folders after the first folder and closes the KML document.
+     * The underlying output stream is flushed but not closed.
+     * @throws JAXBException If the document cannot be completed.
+     */
+    public void close() throws JAXBException {
+        if (closed) {
+            return;
+        }
+        start();
+        try {
+            boolean first = true;
+            for (String folderName : folders) {
+                if (first && firstFolderOpen) {
+                    // Folder
+                    xmlWriter.writeEndElement();
+                } else {
+                    FolderBuffer buffer = folderBuffers.remove(folderName);
+                    if (buffer == null) {
+                        writeFolderStart(xmlWriter, folderName, false);
+                        xmlWriter.writeEndElement();
+                    } else {
+                        xmlWriter.flush();
+                        buffer.copyTo(outputStream);
+                    }
+                }
+                first = false;
+            }
+            // Document
+            xmlWriter.writeEndElement();
+            // kml
+            xmlWriter.writeEndElement();
+            xmlWriter.writeEndDocument();
+            xmlWriter.flush();
+            xmlWriter.close();
+        } catch (XMLStreamException e) {
+            throw new MarshalException(e);
+        } catch (IOException e) {
+            throw new MarshalException(e);
+        } finally {
+            for (FolderBuffer buffer : folderBuffers.values()) {
+                buffer.delete();
+            }
+            folderBuffers.clear();
+            closed = true;
+        }
+    }
+
+    private boolean isStarted() {
+        return xmlWriter != null;
+    }
+
+    /**
+     * Writes the header and styles of the document.
+     */
+    private void start() throws JAXBException {
+        checkOpen();
+        if (isStarted()) {
+            return;
+        }
+        try {
+            xmlWriter = xmlOutputFactory.createXMLStreamWriter(outputStream, "UTF-8");
+            xmlWriter.writeStartDocument("UTF-8", "1.0");
+            xmlWriter.setDefaultNamespace(KMLWriter.KML_NAMESPACE);
+            xmlWriter.writeStartElement(KMLWriter.KML_NAMESPACE, ELEMENT_KML);
+            xmlWriter.writeDefaultNamespace(KMLWriter.KML_NAMESPACE);
+            xmlWriter.writeStartElement(KMLWriter.KML_NAMESPACE, ELEMENT_DOCUMENT);
+        } catch (XMLStreamException e) {
+            throw new MarshalException(e);
+        }
+        for (JAXBElement<?> style : styles) {
+            marshaller.marshal(style, xmlWriter);
+        }
+        styles = null;
+    }
+
+    private void checkStylesOpen() {
+        if (isStarted()) {
+            throw new IllegalStateException("Styles must be created before any folders are written.");
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The KML document has already been closed.");
+        }
+    }
+
+    private static void writeFolderStart(XMLStreamWriter writer, String folderName, boolean declareNamespace)
+        throws JAXBException {
+        try {
+            writer.writeStartElement(KMLWriter.KML_NAMESPACE, ELEMENT_FOLDER);
+            if (declareNamespace) {
+                writer.writeDefaultNamespace(KMLWriter.KML_NAMESPACE);
+            }
+            writer.writeStartElement(KMLWriter.KML_NAMESPACE, ELEMENT_NAME);
+            writer.writeCharacters(folderName);
+            writer.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw new MarshalException(e);
+        }
+    }
+
+    /**
+     * Holds a complete folder element in a temporary file until the folders
+     * before it have been written.
+     */
+    private static class FolderBuffer {
+        private File file;
+        private OutputStream out;
+        private XMLStreamWriter xmlWriter;
+
+        public FolderBuffer(String folderName) throws JAXBException {
+            try {
+                file = File.createTempFile("kmlFolder", ".xml");
+                out = new BufferedOutputStream(new FileOutputStream(file));
+                xmlWriter = xmlOutputFactory.createXMLStreamWriter(out, "UTF-8");
+                xmlWriter.setDefaultNamespace(KMLWriter.KML_NAMESPACE);
+                // the folder is copied into the document as it is, so it
+                // declares the namespace of its placemarks itself.
+                writeFolderStart(xmlWriter, folderName, true);
+            } catch (IOException e) {
+                delete();
+                throw new MarshalException(e);
+            } catch (XMLStreamException e) {
+                delete();
+                throw new MarshalException(e);
+            } catch (JAXBException e) {
+                delete();
+                throw e;
+            }
+        }
+
+        /**
+         * Completes the folder and copies it to the output stream.
+         */
+        public void copyTo(OutputStream outputStream) throws IOException, XMLStreamException {
+            try {
+                // Folder
+                xmlWriter.writeEndElement();
+                xmlWriter.flush();
+                xmlWriter.close();
+                out.close();
+                out = null;
+
+                InputStream in = new FileInputStream(file);
+                try {
+                    IOUtils.copy(in, outputStream);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                delete();
+            }
+        }
+
+        public void delete() {
+            IOUtils.closeQuietly(out);
+            out = null;
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package au.com.gaiaresources.bdrs.model.facet;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
+
+/**
+ * The number of records in each facet option of the facets that can be
+ * counted from the properties of a record alone. The counts are accumulated
+ * from a query with a grouping set per property over the records visible to
+ * the current session, or from the changes to individual records.
+ *
+ * Entities are referenced by primary key. Records without a value for a
+ * property are counted under a <code>null</code> key.
+ */
+public class FacetCounts {
+
+    private long recordCount = 0;
+    private long nullCensusMethodCount = 0;
+
+    private Map<Integer, Long> surveys = new HashMap<Integer, Long>();
+    private Map<Integer, Long> users = new HashMap<Integer, Long>();
+    private Map<Integer, Long> locations = new HashMap<Integer, Long>();
+    private Map<Integer, Long> taxonGroups = new HashMap<Integer, Long>();
+    private Map<Long, Long> years = new HashMap<Long, Long>();
+    private Map<Long, Long> months = new HashMap<Long, Long>();
+    private Map<String, Long> censusMethodTypes = new HashMap<String, Long>();
+    private Map<RecordVisibility, Long> visibilities = new HashMap<RecordVisibility, Long>();
+
+    /**
+     * Creates an empty set of counts.
+     */
+    public FacetCounts() {
+    }
+
+    /**
+     * Creates a copy of the specified counts.
+     * @param other the counts to copy.
+     */
+    public FacetCounts(FacetCounts other) {
+        recordCount = other.recordCount;
+        nullCensusMethodCount = other.nullCensusMethodCount;
+        surveys.putAll(other.surveys);
+        users.putAll(other.users);
+        locations.putAll(other.locations);
+        taxonGroups.putAll(other.taxonGroups);
+        years.putAll(other.years);
+        months.putAll(other.months);
+        censusMethodTypes.putAll(other.censusMethodTypes);
+        visibilities.putAll(other.visibilities);
+    }
+
+    /**
+     * Adds the count of a group of records that share the same properties.
+     * A negative count removes records from the totals.
+     * @param surveyId the id of the survey of the records.
+     * @param userId the id of the owner of the records.
+     * @param year the year the records were made.
+     * @param month the month (1-12) the records were made.
+     * @param locationId the id of the location of the records.
+     * @param censusMethodType the type of the census method of the records,
+     * null if the records do not have a census method.
+     * @param visibility the visibility of the records.
+     * @param count the number of records in the group.
+     */
+    public void add(Integer surveyId, Integer userId, Long year, Long month,
+            Integer locationId, String censusMethodType, RecordVisibility visibility, long count) {
+        addVisibility(visibility, count);
+        addSurvey(surveyId, count);
+        addUser(userId, count);
+        addMonth(year, month, count);
+        addLocation(locationId, count);
+        addCensusMethodType(censusMethodType, count);
+    }
+
+    /**
+     * Adds the number of records with a record visibility. Every record has
+     * exactly one visibility so these counts also make up the record count.
+     * @param visibility the visibility of the records.
+     * @param count the number of records.
+     */
+    public void addVisibility(RecordVisibility visibility, long count) {
+        recordCount += count;
+        increment(visibilities, visibility, count);
+    }
+
+    /**
+     * Adds the number of records in a survey.
+     * @param surveyId the id of the survey of the records.
+     * @param count the number of records.
+     */
+    public void addSurvey(Integer surveyId, long count) {
+        increment(surveys, surveyId, count);
+    }
+
+    /**
+     * Adds the number of records owned by a user.
+     * @param userId the id of the owner of the records.
+     * @param count the number of records.
+     */
+    public void addUser(Integer userId, long count) {
+        increment(users, userId, count);
+    }
+
+    /**
+     * Adds the number of records at a location.
+     * @param locationId the id of the location of the records.
+     * @param count the number of records.
+     */
+    public void addLocation(Integer locationId, long count) {
+        increment(locations, locationId, count);
+    }
+
+    /**
+     * Adds the number of records made in a month of a year to both the year
+     * and the month of the year.
+     * @param year the year the records were made.
+     * @param month the month (1-12) the records were made.
+     * @param count the number of records.
+     */
+    public void addMonth(Long year, Long month, long count) {
+        increment(years, year, count);
+        increment(months, month, count);
+    }
+
+    /**
+     * Adds the number of records with a type of census method.
+     * @param censusMethodType the type of the census method of the records,
+     * null if the records do not have a census method.
+     * @param count the number of records.
+     */
+    public void addCensusMethodType(String censusMethodType, long count) {
+        if (censusMethodType == null) {
+            nullCensusMethodCount += count;
+        } else {
+            increment(censusMethodTypes, censusMethodType, count);
+        }
+    }
+
+    /**
+     * Adds the number of records that belong to a taxon group, either by the
+     * species of the record or by the species of one of its attribute values.
+     * A record belonging to more than one group is counted in each of them.
+     * @param taxonGroupId the id of the taxon group.
+     * @param count the number of records in the group.
+     */
+    public void addTaxonGroup(Integer taxonGroupId, long count) {
+        increment(taxonGroups, taxonGroupId, count);
+    }
+
+    /**
+     * @return the total number of records counted.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the number of records that do not have a census method.
+     */
+    public long getNullCensusMethodCount() {
+        return nullCensusMethodCount;
+    }
+
+    /**
+     * @return the number of records for each survey id.
+     */
+    public Map<Integer, Long> getSurveys() {
+        return Collections.unmodifiableMap(surveys);
+    }
+
+    /**
+     * @return the number of records for each user id.
+     */
+    public Map<Integer, Long> getUsers() {
+        return Collections.unmodifiableMap(users);
+    }
+
+    /**
+     * @return the number of records for each location id.
+     */
+    public Map<Integer, Long> getLocations() {
+        return Collections.unmodifiableMap(locations);
+    }
+
+    /**
+     * @return the number of records for each taxon group id.
+     */
+    public Map<Integer, Long> getTaxonGroups() {
+        return Collections.unmodifiableMap(taxonGroups);
+    }
+
+    /**
+     * @return the number of records for each year.
+     */
+    public Map<Long, Long> getYears() {
+        return Collections.unmodifiableMap(years);
+    }
+
+    /**
+     * @return the number of records for each month of the year (1-12).
+     */
+    public Map<Long, Long> getMonths() {
+        return Collections.unmodifiableMap(months);
+    }
+
+    /**
+     * @return the number of records for each census method type.
+     */
+    public Map<String, Long> getCensusMethodTypes() {
+        return Collections.unmodifiableMap(censusMethodTypes);
+    }
+
+    /**
+     * @return the number of records for each record visibility.
+     */
+    public Map<RecordVisibility, Long> getVisibilities() {
+        return Collections.unmodifiableMap(visibilities);
+    }
+
+    private <K> void increment(Map<K, Long> map, K key, long count) {
+        Long current = map.get(key);
+        long total = (current == null ? 0 : current) + count;
+        if (total > 0) {
+            map.put(key, total);
+        } else {
+            map.remove(key);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package au.com.gaiaresources.bdrs.model.file;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.hibernate.Session;
@@ -15,6 +16,14 @@ public interface ManagedFileDAO  extends TransactionDAO {
     
     ManagedFile getManagedFile(Session sesh, String uuid);
 
+    /**
+     * Gets the managed files with the uuids in a single query.
+     * @param sesh the session to use, may be null.
+     * @param uuids the uuids of the files.
+     * @return the files found, in no particular order.
+     */
+    List<ManagedFile> getManagedFiles(Session sesh, Collection<String> uuids);
+
     ManagedFile getManagedFile(Integer id);
 
     List<ManagedFile> getManagedFiles();
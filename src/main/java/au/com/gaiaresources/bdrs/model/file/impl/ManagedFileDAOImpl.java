@@ -1,10 +1,15 @@
 package au.com.gaiaresources.bdrs.model.file.impl;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.PostConstruct;
 
 import org.apache.log4j.Logger;
+import org.hibernate.Query;
 import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
@@ -64,6 +69,24 @@ public class ManagedFileDAOImpl extends AbstractDAOImpl implements ManagedFileDA
         return files.isEmpty() ? null : files.get(0);
     }
     
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<ManagedFile> getManagedFiles(Session sesh, Collection<String> uuids) {
+        if (uuids.isEmpty()) {
+            return new ArrayList<ManagedFile>(0);
+        }
+        if (sesh == null) {
+            sesh = getSession();
+        }
+        Set<String> trimmed = new HashSet<String>(uuids.size());
+        for (String uuid : uuids) {
+            trimmed.add(uuid.trim());
+        }
+        Query q = sesh.createQuery("from ManagedFile f where f.uuid in (:uuids)");
+        q.setParameterList("uuids", trimmed);
+        return q.list();
+    }
+    
     @Override
     public List<ManagedFile> getManagedFiles() {
         List<ManagedFile> files = find("from ManagedFile f order by f.createdAt");
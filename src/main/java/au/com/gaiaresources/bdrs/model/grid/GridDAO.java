@@ -1,7 +1,9 @@
 package au.com.gaiaresources.bdrs.model.grid;
 
 import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
 
@@ -19,5 +21,28 @@ public interface GridDAO {
     
     List<? extends GridEntry> getGridEntries(Grid grid, IndicatorSpecies s);
     
+    /**
+     * Returns the entries of the grid for all of the specified species in a single query.
+     * @param grid the grid containing the entries.
+     * @param speciesIds the primary keys of the species.
+     * @return the entries of the grid for the species.
+     */
+    List<? extends GridEntry> getGridEntries(Grid grid, Collection<Integer> speciesIds);
+    
+    /**
+     * Adds to the number of records of existing entries with one batched update.
+     * The update bypasses the session, entries already loaded are not refreshed.
+     * @param increments the number of records to add keyed by the primary key of the entry.
+     */
+    void incrementGridEntries(Map<Integer, Integer> increments);
+    
+    /**
+     * Inserts new entries with one batched insert. The entries are written
+     * directly and are not added to the session.
+     * @param entries the unsaved entries with their grid, species, portal,
+     * boundary and number of records.
+     */
+    void insertGridEntries(List<GridEntry> entries);
+    
     Grid createGrid(BigDecimal precision);
 }
@@ -1,14 +1,53 @@
-package au.com.gaiaresources.bdrs.model.grid;
-
-import java.util.List;
-
-import au.com.gaiaresources.bdrs.model.record.Record;
-import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
-
-public interface GridService {
-    void handleRecord(Record record);
-    
-    List<? extends Grid> getGrids();
-    
-    List<? extends GridEntry> getGridEntries(Grid grid, IndicatorSpecies s);
-}
+package au.com.gaiaresources.bdrs.model.grid;
+
+import java.util.List;
+
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
+
+public interface GridService {
+    void handleRecord(Record record);
+    
+    List<? extends Grid> getGrids();
+    
+    List<? extends GridEntry> getGridEntries(Grid grid, IndicatorSpecies s);
+    
+    /**
+     * @return the number of records waiting to be added to the grids.
+     */
+    int getQueueDepth();
+    
+    /**
+     * @return the number of milliseconds the oldest waiting record has been queued 
+     * or coalesced, or zero if no records are waiting.
+     */
+    long getQueueLagMillis();
+    
+    /**
+     * @return the number of milliseconds between queueing and applying the oldest
+     * record of the most recently applied batch.
+     */
+    long getLastBatchLagMillis();
+    
+    /**
+     * @return the number of records that have been added to the grids.
+     */
+    long getProcessedRecordCount();
+    
+    /**
+     * @return the number of records that were counted per grid square because
+     * the queue was full.
+     */
+    long getCoalescedRecordCount();
+    
+    /**
+     * @return the number of coalesced records waiting to be added to the grids.
+     */
+    int getPendingCoalescedRecordCount();
+    
+    /**
+     * @return the number of grid squares with coalesced records waiting to be
+     * added to the grids.
+     */
+    int getCoalescedCellCount();
+}
@@ -0,0 +1,100 @@
+package au.com.gaiaresources.bdrs.model.grid.impl;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Identifies a square of a {@link au.com.gaiaresources.bdrs.model.grid.Grid}
+ * for a species by its column and row, counted from the lower left corner
+ * of the gridded extent.
+ */
+public class GridCell {
+    private int gridId;
+    private int speciesId;
+    private int column;
+    private int row;
+
+    public GridCell(int gridId, int speciesId, int column, int row) {
+        this.gridId = gridId;
+        this.speciesId = speciesId;
+        this.column = column;
+        this.row = row;
+    }
+
+    /**
+     * Returns the index of the square containing the coordinate along one axis.
+     * A coordinate lying on the boundary between two squares belongs to the
+     * lower square and coordinates below the origin belong to the first square.
+     * @param coordinate the x or y coordinate.
+     * @param origin the lower bound of the gridded extent along the same axis.
+     * @param precision the width of a square.
+     * @return the zero based index of the square.
+     */
+    public static int getIndex(double coordinate, int origin, BigDecimal precision) {
+        BigDecimal offset = new BigDecimal(coordinate).subtract(new BigDecimal(origin));
+        int index = offset.divide(precision, 0, RoundingMode.CEILING).intValue() - 1;
+        return index < 0 ? 0 : index;
+    }
+
+    /**
+     * Returns the index of the square whose lower bound is <code>lowerBound</code>.
+     * @param lowerBound the lower bound of the square along one axis.
+     * @param origin the lower bound of the gridded extent along the same axis.
+     * @param precision the width of a square.
+     * @return the zero based index of the square.
+     */
+    public static int getIndexOfSquare(double lowerBound, int origin, BigDecimal precision) {
+        return (int) Math.round((lowerBound - origin) / precision.doubleValue());
+    }
+
+    /**
+     * Returns the lower bound of the square with the specified index.
+     * @param index the zero based index of the square.
+     * @param origin the lower bound of the gridded extent.
+     * @param precision the width of a square.
+     * @return the lower bound of the square.
+     */
+    public static double getLowerBound(int index, int origin, BigDecimal precision) {
+        return new BigDecimal(origin).add(precision.multiply(new BigDecimal(index))).doubleValue();
+    }
+
+    public int getGridId() {
+        return gridId;
+    }
+
+    public int getSpeciesId() {
+        return speciesId;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof GridCell)) {
+            return false;
+        }
+        GridCell cell = (GridCell) other;
+        return gridId == cell.gridId && speciesId == cell.speciesId
+                && column == cell.column && row == cell.row;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = gridId;
+        result = 31 * result + speciesId;
+        result = 31 * result + column;
+        result = 31 * result + row;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("GridCell[grid=%d, species=%d, column=%d, row=%d]", gridId, speciesId, column, row);
+    }
+}
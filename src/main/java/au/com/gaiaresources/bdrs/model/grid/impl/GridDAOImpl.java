@@ -1,10 +1,20 @@
 package au.com.gaiaresources.bdrs.model.grid.impl;
 
 import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import au.com.gaiaresources.bdrs.util.TransactionHelper;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
 import org.springframework.stereotype.Repository;
 
 import au.com.gaiaresources.bdrs.db.impl.AbstractDAOImpl;
@@ -13,11 +23,25 @@ import au.com.gaiaresources.bdrs.model.grid.GridDAO;
 import au.com.gaiaresources.bdrs.model.grid.GridEntry;
 import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
 
 @Repository
 public class GridDAOImpl extends AbstractDAOImpl implements GridDAO {
+    /**
+     * The number of rows sent to the database in each JDBC batch.
+     */
+    private static final int ENTRY_BATCH_SIZE = 1000;
+    
+    private static final String INCREMENT_ENTRY_SQL = "update GRID_ENTRY"
+            + " set NUMBER_OF_RECORDS = NUMBER_OF_RECORDS + ?, UPDATED_AT = ?"
+            + " where GRID_ENTRY_ID = ?";
+    
+    private static final String INSERT_ENTRY_SQL = "insert into GRID_ENTRY"
+            + " (GRID_ID, INDICATOR_SPECIES_ID, PORTAL_ID, BOUNDARY, NUMBER_OF_RECORDS, CREATED_AT, UPDATED_AT, WEIGHT)"
+            + " values (?, ?, ?, st_makeenvelope(?, ?, ?, ?, ?), ?, ?, ?, ?)";
+    
     @Override
     public GridEntry createGridEntry(Grid grid, Polygon p, IndicatorSpecies s) {
         GridEntry entry = new GridEntry();
@@ -40,8 +64,18 @@ public class GridDAOImpl extends AbstractDAOImpl implements GridDAO {
 
     @Override
     public List<Grid> getGrids() {
-        //return newQueryCriteria(Grid.class).run();
-        return new ArrayList<Grid>();
+        // The grids are loaded when the grid service starts, outside of any
+        // request, so begin a transaction if there is none.
+        Session sesh = getSession();
+        boolean commitRequired = !sesh.getTransaction().isActive();
+        if (commitRequired) {
+            sesh.beginTransaction();
+        }
+        List<Grid> grids = find(sesh, "from Grid g order by g.precision desc");
+        if (commitRequired) {
+            TransactionHelper.commit(sesh);
+        }
+        return grids;
     }
 
     @Override
@@ -63,6 +97,96 @@ public class GridDAOImpl extends AbstractDAOImpl implements GridDAO {
 //        }
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<GridEntry> getGridEntries(Grid g, Collection<Integer> speciesIds) {
+        if (speciesIds.isEmpty()) {
+            return new ArrayList<GridEntry>();
+        }
+        Query q = getSession().createQuery("from GridEntry e where e.grid = :grid and e.species.id in (:speciesIds)");
+        q.setParameter("grid", g);
+        q.setParameterList("speciesIds", speciesIds);
+        return q.list();
+    }
+
+    @Override
+    public void incrementGridEntries(final Map<Integer, Integer> increments) {
+        if (increments.isEmpty()) {
+            return;
+        }
+        getSession().doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                Timestamp now = new Timestamp(System.currentTimeMillis());
+                PreparedStatement update = connection.prepareStatement(INCREMENT_ENTRY_SQL);
+                try {
+                    int batched = 0;
+                    for (Map.Entry<Integer, Integer> increment : increments.entrySet()) {
+                        update.setInt(1, increment.getValue());
+                        update.setTimestamp(2, now);
+                        update.setInt(3, increment.getKey());
+                        update.addBatch();
+                        if (++batched == ENTRY_BATCH_SIZE) {
+                            update.executeBatch();
+                            batched = 0;
+                        }
+                    }
+                    if (batched > 0) {
+                        update.executeBatch();
+                    }
+                } finally {
+                    update.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void insertGridEntries(final List<GridEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        getSession().doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                Timestamp now = new Timestamp(System.currentTimeMillis());
+                PreparedStatement insert = connection.prepareStatement(INSERT_ENTRY_SQL);
+                try {
+                    int batched = 0;
+                    for (GridEntry entry : entries) {
+                        Envelope env = entry.getBoundary().getEnvelopeInternal();
+                        insert.setInt(1, entry.getGrid().getId());
+                        insert.setInt(2, entry.getSpecies().getId());
+                        if (entry.getPortal() == null) {
+                            insert.setNull(3, Types.INTEGER);
+                        } else {
+                            insert.setInt(3, entry.getPortal().getId());
+                        }
+                        insert.setDouble(4, env.getMinX());
+                        insert.setDouble(5, env.getMinY());
+                        insert.setDouble(6, env.getMaxX());
+                        insert.setDouble(7, env.getMaxY());
+                        insert.setInt(8, entry.getBoundary().getSRID());
+                        insert.setInt(9, entry.getNumberOfRecords());
+                        insert.setTimestamp(10, now);
+                        insert.setTimestamp(11, now);
+                        insert.setInt(12, entry.getWeight());
+                        insert.addBatch();
+                        if (++batched == ENTRY_BATCH_SIZE) {
+                            insert.executeBatch();
+                            batched = 0;
+                        }
+                    }
+                    if (batched > 0) {
+                        insert.executeBatch();
+                    }
+                } finally {
+                    insert.close();
+                }
+            }
+        });
+    }
+
     @Override
     public Grid createGrid(BigDecimal precision) {
     	// Please note, this method is never called from a HttpServletContext, therefore it must do it's own transaction management.
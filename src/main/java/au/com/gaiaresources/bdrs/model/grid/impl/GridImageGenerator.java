@@ -1,6 +1,7 @@
 package au.com.gaiaresources.bdrs.model.grid.impl;
 
 import java.awt.Color;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -35,7 +36,7 @@ import au.com.gaiaresources.bdrs.model.grid.Grid;
 import au.com.gaiaresources.bdrs.model.grid.GridEntry;
 import au.com.gaiaresources.bdrs.model.grid.GridService;
 import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
-import au.com.gaiaresources.bdrs.kml.KMLWriter;
+import au.com.gaiaresources.bdrs.kml.StreamingKMLWriter;
 
 public class GridImageGenerator {
 	private Logger logger = Logger.getLogger(getClass());
@@ -65,31 +66,7 @@ public class GridImageGenerator {
             File targetFile = fileService.createTargetFile(Grid.class, grid.getId(), "gridkml.kml");
             logger.info("Target file is: " + targetFile.getAbsolutePath());
     
-            KMLWriter writer = new KMLWriter();
-            writer.createFolder("Squares");
-    
-            List<? extends GridEntry> entries = gridService.getGridEntries(grid, null);
-            int[] values = new int[entries.size()];
-            for (int i = 0; i < entries.size(); i++) {
-                values[i] = entries.get(i).getNumberOfRecords();
-            }
-    
-            ColourClassifier classifier = new ColourClassifier(values, 10,
-                    new Color(255, 0, 0), 50, 230);
-            for (Color c : classifier.getColours()) {
-                writer.createStylePoly(convertColourToID(c), c);
-            }
-    
-            for (GridEntry entry : entries) {
-                writer.createPlacemark("Squares", "L" + entry.getId(), entry.getBoundary(), convertColourToID(classifier.getColour(entry.getNumberOfRecords())));
-            }
-    
-            FileOutputStream fo = new FileOutputStream(targetFile);
-            try {
-                writer.write(false, fo);
-            } finally {
-                fo.close();
-            }
+            writeGridKML(gridService.getGridEntries(grid, null), targetFile);
             logger.info("Finished writing : " + targetFile.getAbsolutePath());
     
             // Now need to generate species specific one.
@@ -97,28 +74,34 @@ public class GridImageGenerator {
                     + "-gridkml.kml");
             logger.info("Target file is: " + targetFile.getAbsolutePath());
     
-            writer = new KMLWriter();
-            writer.createFolder("Squares");
-    
-            entries = gridService.getGridEntries(grid, s);
-            values = new int[entries.size()];
+            writeGridKML(gridService.getGridEntries(grid, s), targetFile);
+	}
+
+	/**
+	 * Streams the grid squares to the target file as KML placemarks.
+	 */
+	private void writeGridKML(List<? extends GridEntry> entries, File targetFile) throws Exception {
+            int[] values = new int[entries.size()];
             for (int i = 0; i < entries.size(); i++) {
                 values[i] = entries.get(i).getNumberOfRecords();
             }
     
-            classifier = new ColourClassifier(values, 10, new Color(255, 0, 0), 50,
-                    230);
-            for (Color c : classifier.getColours()) {
-                writer.createStylePoly(convertColourToID(c), c);
-            }
-    
-            for (GridEntry entry : entries) {
-                writer.createPlacemark("Squares", "L" + entry.getId(), entry.getBoundary(), convertColourToID(classifier.getColour(entry.getNumberOfRecords())));
-            }
+            ColourClassifier classifier = new ColourClassifier(values, 10,
+                    new Color(255, 0, 0), 50, 230);
     
-            fo = new FileOutputStream(targetFile);
+            OutputStream fo = new BufferedOutputStream(new FileOutputStream(targetFile));
             try {
-                writer.write(false, fo);
+                StreamingKMLWriter writer = new StreamingKMLWriter(fo);
+                // styles must be written before the placemarks.
+                for (Color c : classifier.getColours()) {
+                    writer.createStylePoly(convertColourToID(c), c);
+                }
+                writer.createFolder("Squares");
+    
+                for (GridEntry entry : entries) {
+                    writer.createPlacemark("Squares", "L" + entry.getId(), entry.getBoundary(), convertColourToID(classifier.getColour(entry.getNumberOfRecords())));
+                }
+                writer.close();
             } finally {
                 fo.close();
             }
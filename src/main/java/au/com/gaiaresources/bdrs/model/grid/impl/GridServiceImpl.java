@@ -1,226 +1,660 @@
-package au.com.gaiaresources.bdrs.model.grid.impl;
-
-import java.math.BigDecimal;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-
-import javax.annotation.PostConstruct;
-
-import org.apache.log4j.Logger;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationEvent;
-import org.springframework.context.ApplicationListener;
-import org.springframework.core.task.TaskExecutor;
-import org.springframework.transaction.PlatformTransactionManager;
-import org.springframework.transaction.TransactionStatus;
-import org.springframework.transaction.support.TransactionTemplate;
-
-import au.com.gaiaresources.bdrs.db.TransactionCallback;
-import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
-import au.com.gaiaresources.bdrs.model.grid.Grid;
-import au.com.gaiaresources.bdrs.model.grid.GridDAO;
-import au.com.gaiaresources.bdrs.model.grid.GridEntry;
-import au.com.gaiaresources.bdrs.model.grid.GridService;
-import au.com.gaiaresources.bdrs.model.record.NewRecordEvent;
-import au.com.gaiaresources.bdrs.model.record.Record;
-import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
-
-import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.geom.Polygon;
-
-public class GridServiceImpl implements GridService, ApplicationListener {
-    @Autowired
-    private GridDAO gridDAO;
-    @Autowired 
-    private TaskExecutor executor;
-    @Autowired
-    private GeometryBuilder geometryBuilder;
-    //@Autowired
-    //private GeometryTransformer geometryTransformer;
-//    @Autowired
-//    private FileService fileService;
-    
-    private BlockingQueue<Record> queue;
-    
-    private List<BigDecimal> precisions;
-    private Integer minX;
-    @SuppressWarnings("unused")
-    private Integer maxX;
-    private Integer minY;
-    @SuppressWarnings("unused")
-	private Integer maxY;
-    
-//    private Point transformedBottomLeft;
-//    private Point transformedTopRight;
-    
-    @Autowired
-    private PlatformTransactionManager transactionManager;
-    private TransactionTemplate transactionTemplate;
-    
-    private Logger logger = Logger.getLogger(getClass());
-    
-    @PostConstruct
-    public void init() {
-        queue = new LinkedBlockingQueue<Record>();
-        
-        List<? extends Grid> grids = gridDAO.getGrids();
-        for (BigDecimal p : precisions) {
-            boolean found = false;
-            for (Grid g : grids) {
-                if (g.getPrecision().compareTo(p) == 0) {
-                    found = true;
-                }
-            }
-            if (!found) {
-                gridDAO.createGrid(p);
-            }
-        }
-        
-//        Point bottomLeft = geometryBuilder.createPoint(minX, minY);
-//        Point topRight = geometryBuilder.createPoint(maxX, maxY);
-        
-        //transformedBottomLeft = (Point) geometryTransformer.transform(bottomLeft, 900913);
-        //transformedTopRight = (Point) geometryTransformer.transform(topRight, 900913);
-        
-        executor.execute(new GridUpdaterRunnable());
-    }
-    
-    public void setPrecisions(List<BigDecimal> precisions) {
-        this.precisions = precisions;
-    }
-    
-    @Override
-    public void onApplicationEvent(ApplicationEvent event) {
-        if (event instanceof NewRecordEvent) {
-            this.handleRecord(((NewRecordEvent) event).getRecord());
-        }
-    }
-    
-    @Override
-    public void handleRecord(Record record) {
-        // LinkedBlockingQueue is thread safe.
-        this.queue.add(record);
-    }
-    
-    public List<? extends Grid> getGrids() {
-        return gridDAO.getGrids();
-    }
-    
-    public List<? extends GridEntry> getGridEntries(Grid grid, IndicatorSpecies s) {
-        return gridDAO.getGridEntries(grid, s);
-    }
-    
-    private void generateGridKML(Grid grid, IndicatorSpecies s) throws Exception {
-        new GridImageGenerator().generate(grid, s);
-        new GridImageGenerator().generateKML(grid, s);
-    }
-    
-    private class GridUpdaterRunnable implements Runnable {
-        private Set<Grid> updatedGrids = new HashSet<Grid>();
-        
-        public void run() {
-            try {
-                while (true) {
-                    logger.info("Awaiting new record to process.");
-                    final Record r = queue.take();
-                    logger.info("New record received, starting processing.");
-                    
-                    if (r.getSpecies() == null || r.getNumber() == null) {
-                        // cancel processing, null members not handled properly.
-                        continue;
-                    }
-                    
-                    for (final Grid g : gridDAO.getGrids()) {
-                        doInTransaction(new TransactionCallback<Boolean>() {
-                            @Override
-                            public Boolean doInTransaction(TransactionStatus status) {
-                                GridEntry entry = gridDAO.getGridEntry(g, r.getLocation().getLocation().getCentroid(), r.getSpecies());
-                                if (entry == null) {
-                                    Point location = r.getLocation().getLocation().getCentroid();
-                                    
-                                    BigDecimal gridX = new BigDecimal(GridServiceImpl.this.minX);
-                                    while (location.getX() > gridX.add(g.getPrecision()).doubleValue()) {
-                                        gridX = gridX.add(g.getPrecision());
-                                    }
-                                    
-                                    BigDecimal gridY = new BigDecimal(GridServiceImpl.this.minY);
-                                    while (location.getY() > gridY.add(g.getPrecision()).doubleValue()) {
-                                        gridY = gridY.add(g.getPrecision());
-                                    }
-                                    
-                                    logger.info("Creating new grid entry with lower left corner: " + gridX + " " + gridY);
-                                    
-                                    Polygon p = geometryBuilder.createSquare(gridX.doubleValue(), gridY.doubleValue(), 
-                                            g.getPrecision().doubleValue());
-                                    entry = gridDAO.createGridEntry(g, p, r.getSpecies());
-                                    
-                                }
-                                gridDAO.updateGridEntry(entry, entry.getNumberOfRecords() + 1);
-                                
-                                return true;
-                            }
-                        });
-                        
-                        
-                        updatedGrids.add(g);
-                    }
-                    
-                    if (queue.peek() == null) {
-                        try {
-                            for (Grid g : updatedGrids) {
-                                generateGridKML(g, r.getSpecies());
-                            }
-                            updatedGrids.clear();
-                        } catch (Throwable t) {
-                            logger.error("Grid KML generation failed.", t);
-                        }
-                    }
-                }
-            } catch (InterruptedException ie) {
-                logger.error("Interrupted", ie);
-            }
-            logger.info("Exiting thread.");
-        }
-    }
-
-    public void setMinX(Integer minX) {
-        this.minX = minX;
-    }
-
-    public void setMaxX(Integer maxX) {
-        this.maxX = maxX;
-    }
-    
-    public Integer getMaxX() {
-    	return this.maxX;
-    }
-
-    public void setMinY(Integer minY) {
-        this.minY = minY;
-    }
-
-    public void setMaxY(Integer maxY) {
-        this.maxY = maxY;
-    }
-    
-    public Integer getMaxY() {
-    	return this.maxY;
-    }
-    
-    protected synchronized TransactionTemplate getTransactionTemplate() {
-        if (transactionTemplate == null) {
-            transactionTemplate = new TransactionTemplate(transactionManager);
-        }
-        return transactionTemplate;
-    }
-    
-    @SuppressWarnings("unchecked")
-    protected <C> C doInTransaction(TransactionCallback<C> callback) {
-        return (C) getTransactionTemplate().execute(callback);
-    }
-    
-    
-}
+package au.com.gaiaresources.bdrs.model.grid.impl;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import au.com.gaiaresources.bdrs.db.TransactionCallback;
+import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
+import au.com.gaiaresources.bdrs.model.grid.Grid;
+import au.com.gaiaresources.bdrs.model.grid.GridDAO;
+import au.com.gaiaresources.bdrs.model.grid.GridEntry;
+import au.com.gaiaresources.bdrs.model.grid.GridService;
+import au.com.gaiaresources.bdrs.model.record.NewRecordEvent;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
+import au.com.gaiaresources.bdrs.model.taxa.TaxaDAO;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Maintains the number of records per species in each square of each grid.
+ * New records are queued and applied by a pool of worker threads. Each worker
+ * drains the queue in batches, sums the increments per grid square and applies
+ * the batch to each grid in a single transaction, with one batched update of
+ * the existing grid squares and one batched insert of the new squares. When
+ * the queue is full the record is not dropped and the saving thread does not
+ * wait: the record is added to an in memory count per grid square instead,
+ * which the next worker applies with its batch. The grid KML is regenerated
+ * once the updates for a grid and species have been quiet for
+ * <code>kmlDebounceMillis</code>, or at least every <code>kmlMaxDelayMillis</code>
+ * while updates are still arriving.
+ */
+public class GridServiceImpl implements GridService, ApplicationListener {
+    @Autowired
+    private GridDAO gridDAO;
+    @Autowired
+    private TaxaDAO taxaDAO;
+    @Autowired
+    private GeometryBuilder geometryBuilder;
+    //@Autowired
+    //private GeometryTransformer geometryTransformer;
+//    @Autowired
+//    private FileService fileService;
+    
+    private BlockingQueue<QueuedRecord> queue;
+    private ExecutorService workers;
+    
+    private List<BigDecimal> precisions;
+    private Integer minX;
+    @SuppressWarnings("unused")
+    private Integer maxX;
+    private Integer minY;
+    @SuppressWarnings("unused")
+	private Integer maxY;
+    
+    private int workerCount = 2;
+    private int batchSize = 500;
+    private int queueCapacity = 100000;
+    private long kmlDebounceMillis = 5000;
+    private long kmlMaxDelayMillis = 60000;
+    
+    /**
+     * Serialises the updates to a single grid so that concurrent batches do not
+     * both create the same grid square.
+     */
+    private Map<Integer, Object> gridLocks = new HashMap<Integer, Object>();
+    
+    /**
+     * The grids and species whose KML needs to be regenerated. Guarded by itself.
+     */
+    private Map<Grid, Set<Integer>> dirtyKML = new HashMap<Grid, Set<Integer>>();
+    private long firstDirtyTime = 0;
+    private long lastDirtyTime = 0;
+    private ReentrantLock kmlLock = new ReentrantLock();
+    
+    /**
+     * The grids, loaded once the grids have been created.
+     */
+    private List<Grid> grids = new ArrayList<Grid>();
+    
+    /**
+     * The records that did not fit in the queue, summed per grid square.
+     * Guarded by <code>overflowLock</code>.
+     */
+    private Overflow overflow = new Overflow();
+    private final Object overflowLock = new Object();
+    
+    private AtomicLong processedCount = new AtomicLong();
+    private AtomicLong coalescedCount = new AtomicLong();
+    private volatile long lastBatchLag = 0;
+    
+//    private Point transformedBottomLeft;
+//    private Point transformedTopRight;
+    
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    private TransactionTemplate transactionTemplate;
+    
+    private Logger logger = Logger.getLogger(getClass());
+    
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<QueuedRecord>(queueCapacity);
+        
+        List<? extends Grid> existing = gridDAO.getGrids();
+        for (BigDecimal p : precisions) {
+            boolean found = false;
+            for (Grid g : existing) {
+                if (g.getPrecision().compareTo(p) == 0) {
+                    found = true;
+                }
+            }
+            if (!found) {
+                gridDAO.createGrid(p);
+            }
+        }
+        grids.addAll(gridDAO.getGrids());
+        
+//        Point bottomLeft = geometryBuilder.createPoint(minX, minY);
+//        Point topRight = geometryBuilder.createPoint(maxX, maxY);
+        
+        //transformedBottomLeft = (Point) geometryTransformer.transform(bottomLeft, 900913);
+        //transformedTopRight = (Point) geometryTransformer.transform(topRight, 900913);
+        
+        // The workers never return so they get their own threads rather than
+        // occupying the shared task scheduler.
+        if (workerCount > 0) {
+            workers = Executors.newFixedThreadPool(workerCount, new GridUpdaterThreadFactory());
+            for (int i = 0; i < workerCount; i++) {
+                workers.execute(new GridUpdaterRunnable());
+            }
+        }
+    }
+    
+    @PreDestroy
+    public void destroy() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+    
+    public void setPrecisions(List<BigDecimal> precisions) {
+        this.precisions = precisions;
+    }
+    
+    @Override
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof NewRecordEvent) {
+            this.handleRecord(((NewRecordEvent) event).getRecord());
+        }
+    }
+    
+    @Override
+    public void handleRecord(Record record) {
+        if (record.getSpecies() == null || record.getNumber() == null) {
+            // null members not handled properly.
+            return;
+        }
+        Point centroid = getCentroid(record);
+        if (centroid == null) {
+            return;
+        }
+        
+        // Only the values required to locate the grid squares are queued so
+        // that a backlog does not hold on to records and their sessions.
+        QueuedRecord queued = new QueuedRecord(record.getSpecies().getId(), 
+                                               centroid.getX(), centroid.getY());
+        if (!queue.offer(queued)) {
+            // Never hold up the saving request, the increments of the record
+            // are added to the pending overflow counts instead.
+            List<GridCell> cells = new ArrayList<GridCell>(grids.size());
+            for (Grid g : grids) {
+                cells.add(getCell(g.getId(), g.getPrecision(), queued));
+            }
+            int pending;
+            synchronized (overflowLock) {
+                overflow.add(queued, cells);
+                pending = overflow.recordCount;
+            }
+            if (coalescedCount.incrementAndGet() % queueCapacity == 1) {
+                logger.warn(String.format("Grid update queue is full, %d records pending in %d coalesced grid squares.", 
+                                          pending, getCoalescedCellCount()));
+            }
+        }
+    }
+    
+    public List<? extends Grid> getGrids() {
+        return gridDAO.getGrids();
+    }
+    
+    public List<? extends GridEntry> getGridEntries(Grid grid, IndicatorSpecies s) {
+        return gridDAO.getGridEntries(grid, s);
+    }
+    
+    /**
+     * Applies the queued records and the counts that overflowed the queue to
+     * the grids on the calling thread, in batches of <code>batchSize</code>.
+     * The KML of the updated grids is regenerated by the workers.
+     */
+    public void applyQueuedRecords() {
+        List<QueuedRecord> batch = new ArrayList<QueuedRecord>(batchSize);
+        while (true) {
+            queue.drainTo(batch, batchSize);
+            Overflow pending = takeOverflow();
+            if (batch.isEmpty() && pending.recordCount == 0) {
+                return;
+            }
+            applyBatch(batch, pending);
+            batch.clear();
+        }
+    }
+    
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+    
+    @Override
+    public long getQueueLagMillis() {
+        long oldest = Long.MAX_VALUE;
+        QueuedRecord head = queue.peek();
+        if (head != null) {
+            oldest = head.queuedTime;
+        }
+        synchronized (overflowLock) {
+            if (overflow.recordCount > 0) {
+                oldest = Math.min(oldest, overflow.oldestTime);
+            }
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+    
+    @Override
+    public long getLastBatchLagMillis() {
+        return lastBatchLag;
+    }
+    
+    @Override
+    public long getProcessedRecordCount() {
+        return processedCount.get();
+    }
+    
+    @Override
+    public long getCoalescedRecordCount() {
+        return coalescedCount.get();
+    }
+    
+    @Override
+    public int getPendingCoalescedRecordCount() {
+        synchronized (overflowLock) {
+            return overflow.recordCount;
+        }
+    }
+    
+    @Override
+    public int getCoalescedCellCount() {
+        synchronized (overflowLock) {
+            return overflow.cells.size();
+        }
+    }
+    
+    private Point getCentroid(Record r) {
+        Geometry geom = null;
+        if (r.getLocation() != null && r.getLocation().getLocation() != null) {
+            geom = r.getLocation().getLocation();
+        } else {
+            geom = r.getGeometry();
+        }
+        return geom == null ? null : geom.getCentroid();
+    }
+    
+    private void generateGridKML(Grid grid, IndicatorSpecies s) throws Exception {
+        new GridImageGenerator().generate(grid, s);
+        new GridImageGenerator().generateKML(grid, s);
+    }
+    
+    /**
+     * Sums the records in the batch per grid square, adds the counts that
+     * overflowed the queue and applies the sums to each grid.
+     */
+    private void applyBatch(List<QueuedRecord> batch, Overflow pending) {
+        long oldest = pending.recordCount > 0 ? pending.oldestTime : Long.MAX_VALUE;
+        for (QueuedRecord r : batch) {
+            oldest = Math.min(oldest, r.queuedTime);
+        }
+        
+        for (final Grid g : grids) {
+            final Map<GridCell, Integer> increments = new HashMap<GridCell, Integer>();
+            for (QueuedRecord r : batch) {
+                addIncrement(increments, getCell(g.getId(), g.getPrecision(), r), 1);
+            }
+            for (Map.Entry<GridCell, Integer> cell : pending.cells.entrySet()) {
+                if (cell.getKey().getGridId() == g.getId().intValue()) {
+                    addIncrement(increments, cell.getKey(), cell.getValue());
+                }
+            }
+            if (increments.isEmpty()) {
+                continue;
+            }
+            
+            synchronized (getGridLock(g)) {
+                doInTransaction(new TransactionCallback<Boolean>() {
+                    @Override
+                    public Boolean doInTransaction(TransactionStatus status) {
+                        applyIncrements(g, increments);
+                        return true;
+                    }
+                });
+            }
+            
+            Set<Integer> speciesIds = new HashSet<Integer>();
+            for (GridCell cell : increments.keySet()) {
+                speciesIds.add(cell.getSpeciesId());
+            }
+            markDirty(g, speciesIds);
+        }
+        
+        int count = batch.size() + pending.recordCount;
+        processedCount.addAndGet(count);
+        lastBatchLag = System.currentTimeMillis() - oldest;
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Applied %d records to the grids, lag %d ms, %d queued.", 
+                                       count, lastBatchLag, queue.size()));
+        }
+    }
+    
+    private GridCell getCell(int gridId, BigDecimal precision, QueuedRecord r) {
+        return new GridCell(gridId, r.speciesId, 
+                            GridCell.getIndex(r.x, minX, precision), 
+                            GridCell.getIndex(r.y, minY, precision));
+    }
+    
+    private static void addIncrement(Map<GridCell, Integer> increments, GridCell cell, int amount) {
+        Integer count = increments.get(cell);
+        increments.put(cell, count == null ? amount : count + amount);
+    }
+    
+    /**
+     * @return the counts that overflowed the queue, leaving an empty set of
+     * counts in their place.
+     */
+    private Overflow takeOverflow() {
+        synchronized (overflowLock) {
+            if (overflow.recordCount == 0) {
+                return Overflow.EMPTY;
+            }
+            Overflow pending = overflow;
+            overflow = new Overflow();
+            return pending;
+        }
+    }
+    
+    /**
+     * Loads the existing entries of the grid for every species in the batch
+     * with one query, then adds the increments to the existing entries with
+     * one batched update and inserts the entries of the new squares with one
+     * batched insert.
+     */
+    private void applyIncrements(Grid g, Map<GridCell, Integer> increments) {
+        BigDecimal precision = g.getPrecision();
+        Map<Integer, IndicatorSpecies> species = new HashMap<Integer, IndicatorSpecies>();
+        for (GridCell cell : increments.keySet()) {
+            species.put(cell.getSpeciesId(), null);
+        }
+        
+        Map<GridCell, Integer> entryIds = new HashMap<GridCell, Integer>();
+        for (GridEntry entry : gridDAO.getGridEntries(g, species.keySet())) {
+            Envelope env = entry.getBoundary().getEnvelopeInternal();
+            GridCell cell = new GridCell(g.getId(), entry.getSpecies().getId(), 
+                                         GridCell.getIndexOfSquare(env.getMinX(), minX, precision), 
+                                         GridCell.getIndexOfSquare(env.getMinY(), minY, precision));
+            entryIds.put(cell, entry.getId());
+        }
+        
+        Map<Integer, Integer> updates = new HashMap<Integer, Integer>();
+        List<GridEntry> inserts = new ArrayList<GridEntry>();
+        for (Map.Entry<GridCell, Integer> increment : increments.entrySet()) {
+            GridCell cell = increment.getKey();
+            Integer entryId = entryIds.get(cell);
+            if (entryId != null) {
+                updates.put(entryId, increment.getValue());
+                continue;
+            }
+            
+            IndicatorSpecies s = species.get(cell.getSpeciesId());
+            if (s == null) {
+                s = taxaDAO.getIndicatorSpecies(cell.getSpeciesId());
+                species.put(cell.getSpeciesId(), s);
+            }
+            
+            double gridX = GridCell.getLowerBound(cell.getColumn(), minX, precision);
+            double gridY = GridCell.getLowerBound(cell.getRow(), minY, precision);
+            logger.debug("Creating new grid entry with lower left corner: " + gridX + " " + gridY);
+            
+            GridEntry entry = new GridEntry();
+            entry.setGrid(g);
+            entry.setPortal(g.getPortal());
+            entry.setSpecies(s);
+            entry.setBoundary(geometryBuilder.createSquare(gridX, gridY, precision.doubleValue()));
+            entry.setNumberOfRecords(increment.getValue());
+            inserts.add(entry);
+        }
+        gridDAO.incrementGridEntries(updates);
+        gridDAO.insertGridEntries(inserts);
+    }
+    
+    private synchronized Object getGridLock(Grid g) {
+        Object lock = gridLocks.get(g.getId());
+        if (lock == null) {
+            lock = new Object();
+            gridLocks.put(g.getId(), lock);
+        }
+        return lock;
+    }
+    
+    private void markDirty(Grid g, Set<Integer> speciesIds) {
+        synchronized (dirtyKML) {
+            Set<Integer> dirty = dirtyKML.get(g);
+            if (dirty == null) {
+                dirty = new HashSet<Integer>();
+                dirtyKML.put(g, dirty);
+            }
+            dirty.addAll(speciesIds);
+            
+            long now = System.currentTimeMillis();
+            if (firstDirtyTime == 0) {
+                firstDirtyTime = now;
+            }
+            lastDirtyTime = now;
+        }
+    }
+    
+    /**
+     * Regenerates the KML of the dirty grids and species if the updates have
+     * been quiet for long enough, or have been pending for too long.
+     * Only one worker regenerates the KML at a time.
+     */
+    private void regenerateKML() {
+        Map<Grid, Set<Integer>> toGenerate;
+        synchronized (dirtyKML) {
+            if (dirtyKML.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastDirtyTime < kmlDebounceMillis && now - firstDirtyTime < kmlMaxDelayMillis) {
+                return;
+            }
+            if (!kmlLock.tryLock()) {
+                return;
+            }
+            toGenerate = new HashMap<Grid, Set<Integer>>(dirtyKML);
+            dirtyKML.clear();
+            firstDirtyTime = 0;
+        }
+        
+        try {
+            for (final Map.Entry<Grid, Set<Integer>> dirty : toGenerate.entrySet()) {
+                for (final Integer speciesId : dirty.getValue()) {
+                    try {
+                        doInTransaction(new TransactionCallback<Boolean>() {
+                            @Override
+                            public Boolean doInTransaction(TransactionStatus status) {
+                                try {
+                                    generateGridKML(dirty.getKey(), taxaDAO.getIndicatorSpecies(speciesId));
+                                } catch (Exception e) {
+                                    throw new IllegalStateException(e);
+                                }
+                                return true;
+                            }
+                        });
+                    } catch (Throwable t) {
+                        logger.error("Grid KML generation failed.", t);
+                    }
+                }
+            }
+        } finally {
+            kmlLock.unlock();
+        }
+    }
+    
+    /**
+     * The values of a record required to update the grids.
+     */
+    private static class QueuedRecord {
+        private int speciesId;
+        private double x;
+        private double y;
+        private long queuedTime;
+        
+        public QueuedRecord(int speciesId, double x, double y) {
+            this.speciesId = speciesId;
+            this.x = x;
+            this.y = y;
+            this.queuedTime = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * The records that did not fit in the queue, summed per square of each grid.
+     */
+    private static class Overflow {
+        private static final Overflow EMPTY = new Overflow();
+        
+        private Map<GridCell, Integer> cells = new HashMap<GridCell, Integer>();
+        private int recordCount = 0;
+        private long oldestTime = 0;
+        
+        public void add(QueuedRecord r, List<GridCell> recordCells) {
+            for (GridCell cell : recordCells) {
+                addIncrement(cells, cell, 1);
+            }
+            if (recordCount == 0) {
+                oldestTime = r.queuedTime;
+            }
+            recordCount++;
+        }
+    }
+    
+    private class GridUpdaterRunnable implements Runnable {
+        public void run() {
+            List<QueuedRecord> batch = new ArrayList<QueuedRecord>(batchSize);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    // wake up periodically to regenerate the KML once the updates stop.
+                    QueuedRecord r = queue.poll(kmlDebounceMillis, TimeUnit.MILLISECONDS);
+                    if (r != null) {
+                        batch.add(r);
+                        queue.drainTo(batch, batchSize - 1);
+                    }
+                    // the queue has room again, so take the counts that overflowed it.
+                    Overflow pending = takeOverflow();
+                    if (!batch.isEmpty() || pending.recordCount > 0) {
+                        try {
+                            applyBatch(batch, pending);
+                        } catch (Throwable t) {
+                            logger.error("Grid update failed for a batch of " + 
+                                         (batch.size() + pending.recordCount) + " records.", t);
+                        }
+                        batch.clear();
+                    }
+                    regenerateKML();
+                }
+            } catch (InterruptedException ie) {
+                logger.info("Interrupted");
+            }
+            logger.info("Exiting thread.");
+        }
+    }
+    
+    private static class GridUpdaterThreadFactory implements ThreadFactory {
+        private AtomicInteger threadNumber = new AtomicInteger(1);
+        
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "grid-updater-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    public void setMinX(Integer minX) {
+        this.minX = minX;
+    }
+
+    public void setMaxX(Integer maxX) {
+        this.maxX = maxX;
+    }
+    
+    public Integer getMaxX() {
+    	return this.maxX;
+    }
+
+    public void setMinY(Integer minY) {
+        this.minY = minY;
+    }
+
+    public void setMaxY(Integer maxY) {
+        this.maxY = maxY;
+    }
+    
+    public Integer getMaxY() {
+    	return this.maxY;
+    }
+    
+    /**
+     * @param workerCount the number of threads applying queued records to the grids.
+     * With no workers the queued records are only applied by {@link #applyQueuedRecords()}.
+     */
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = workerCount;
+    }
+    
+    /**
+     * @param batchSize the maximum number of queued records applied in one transaction.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+    
+    /**
+     * @param queueCapacity the maximum number of records queued to be applied. 
+     * Records beyond the capacity are counted per grid square until a worker applies them.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+    
+    /**
+     * @param kmlDebounceMillis how long the updates must be quiet before the KML is regenerated.
+     */
+    public void setKmlDebounceMillis(long kmlDebounceMillis) {
+        this.kmlDebounceMillis = kmlDebounceMillis;
+    }
+    
+    /**
+     * @param kmlMaxDelayMillis the longest the KML regeneration is deferred while updates keep arriving.
+     */
+    public void setKmlMaxDelayMillis(long kmlMaxDelayMillis) {
+        this.kmlMaxDelayMillis = kmlMaxDelayMillis;
+    }
+    
+    protected synchronized TransactionTemplate getTransactionTemplate() {
+        if (transactionTemplate == null) {
+            transactionTemplate = new TransactionTemplate(transactionManager);
+        }
+        return transactionTemplate;
+    }
+    
+    @SuppressWarnings("unchecked")
+    protected <C> C doInTransaction(TransactionCallback<C> callback) {
+        return (C) getTransactionTemplate().execute(callback);
+    }
+    
+    
+}
@@ -12,8 +12,8 @@ import au.com.gaiaresources.bdrs.search.SearchService;
 import au.com.gaiaresources.bdrs.util.TransactionHelper;
 
 /**
- * Provides an indexing task which will (optionally) delete indexes and 
- * rebuild them and can be scheduled.
+ * Provides an indexing task which will (optionally) fully rebuild indexes 
+ * and can be scheduled.
  * 
  * @author stephanie
  *
@@ -60,13 +60,14 @@ public class IndexTask implements Runnable {
                     log.warn("Could not find requested index class: "+schedule.getClassName()+", rebuilding indexes for all classes", e);
                 }
                 if (schedule.isFullRebuild()) {
+                    // rebuild in parallel, replacing the documents in place
+                    // so the index can still be searched during the rebuild
                     if (clazz != null) {
-                        searchService.deleteIndex(sesh, clazz, schedule.getPortal());
+                        searchService.rebuildIndex(sesh, clazz, schedule.getPortal());
                     } else {
-                        searchService.deleteIndexes(sesh, schedule.getPortal());
+                        searchService.rebuildIndexes(sesh, schedule.getPortal());
                     }
-                }
-                if (clazz != null) {
+                } else if (clazz != null) {
                     searchService.createIndex(sesh, clazz, schedule.getPortal());
                 } else {
                     searchService.createIndexes(sesh, schedule.getPortal());
@@ -0,0 +1,292 @@
+package au.com.gaiaresources.bdrs.model.job;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.AttributeOverride;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.FetchType;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+import org.hibernate.annotations.Filter;
+import org.hibernate.annotations.FilterDef;
+import org.hibernate.annotations.ForeignKey;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.ParamDef;
+import org.hibernate.annotations.Type;
+
+import au.com.gaiaresources.bdrs.db.impl.PortalPersistentImpl;
+import au.com.gaiaresources.bdrs.json.JSONObject;
+import au.com.gaiaresources.bdrs.model.user.User;
+
+/**
+ * A unit of long running work, such as a bulk upload or a download of
+ * records, that is run in the background by a consumer of the job queue.
+ * The job records who asked for the work and what was asked for, so that
+ * a job queued before a restart can be queued again, as well as the
+ * progress and the result of the work.
+ *
+ * The files of a job, the uploaded input and the result, are stored by the
+ * {@link au.com.gaiaresources.bdrs.file.FileService} with the job.
+ *
+ * A running job records the server running it and a heartbeat that the
+ * server updates while the job runs, so that a job whose server has stopped
+ * can be told apart from a job that is still running on another server.
+ */
+@Entity
+@FilterDef(name=PortalPersistentImpl.PORTAL_FILTER_NAME, parameters=@ParamDef( name="portalId", type="integer" ) )
+@Filter(name=PortalPersistentImpl.PORTAL_FILTER_NAME, condition=":portalId = PORTAL_ID")
+@Table(name = "JOB")
+@AttributeOverride(name = "id", column = @Column(name = "JOB_ID"))
+public class Job extends PortalPersistentImpl {
+
+    private JobType type;
+    private JobStatus status = JobStatus.QUEUED;
+    private User owner;
+    private String parameters;
+    private int progress = 0;
+    private int progressTotal = 0;
+    private String message;
+    private String resultFileName;
+    private Date startTime;
+    private Date endTime;
+    private String node;
+    private Date heartbeat;
+
+    /**
+     * Default constructor.
+     */
+    public Job() {
+    }
+
+    /**
+     * Creates a queued job.
+     * @param type the kind of work.
+     * @param owner the user the work is done for.
+     * @param parameters what was asked for, see {@link #getParameterMap()}.
+     */
+    public Job(JobType type, User owner, Map<String, Object> parameters) {
+        setType(type);
+        setOwner(owner);
+        setParameterMap(parameters);
+    }
+
+    /**
+     * @return the kind of work.
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "JOB_TYPE", nullable=false)
+    public JobType getType() {
+        return type;
+    }
+
+    /**
+     * @param type the kind of work.
+     */
+    public void setType(JobType type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the state of the job.
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "JOB_STATUS", nullable=false)
+    @Index(name="job_status_index")
+    public JobStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @param status the state of the job.
+     */
+    public void setStatus(JobStatus status) {
+        this.status = status;
+    }
+
+    /**
+     * @return the user the work is done for.
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "OWNER_ID", nullable = false)
+    @ForeignKey(name = "JOB_OWNER_FK")
+    public User getOwner() {
+        return owner;
+    }
+
+    /**
+     * @param owner the user the work is done for.
+     */
+    public void setOwner(User owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return what was asked for as a JSON object.
+     */
+    @Column(name = "PARAMETERS", nullable=true)
+    @Type(type = "text")
+    public String getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @param parameters what was asked for as a JSON object.
+     */
+    public void setParameters(String parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * @return what was asked for, e.g. the survey of a download.
+     */
+    @Transient
+    public JSONObject getParameterMap() {
+        if (parameters == null || parameters.isEmpty()) {
+            return new JSONObject();
+        }
+        return JSONObject.fromStringToJSONObject(parameters);
+    }
+
+    /**
+     * @param parameters what was asked for, the values must be strings,
+     * numbers or booleans.
+     */
+    public void setParameterMap(Map<String, Object> parameters) {
+        this.parameters = JSONObject.fromMapToString(parameters == null ? new HashMap<String, Object>() : parameters);
+    }
+
+    /**
+     * @return the amount of the work that has been done, e.g. the number
+     * of records saved so far.
+     */
+    @Column(name = "PROGRESS", nullable=false)
+    public int getProgress() {
+        return progress;
+    }
+
+    /**
+     * @param progress the amount of the work that has been done.
+     */
+    public void setProgress(int progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * @return the amount of work to do, or zero if it is not known.
+     */
+    @Column(name = "PROGRESS_TOTAL", nullable=false)
+    public int getProgressTotal() {
+        return progressTotal;
+    }
+
+    /**
+     * @param progressTotal the amount of work to do.
+     */
+    public void setProgressTotal(int progressTotal) {
+        this.progressTotal = progressTotal;
+    }
+
+    /**
+     * @return a description of the outcome of the job, or of the error that
+     * stopped it.
+     */
+    @Column(name = "MESSAGE", nullable=true)
+    @Type(type = "text")
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @param message a description of the outcome of the job.
+     */
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * @return the name of the file written by the job, or null if the job
+     * does not write a file.
+     */
+    @Column(name = "RESULT_FILENAME", nullable=true)
+    @Type(type = "text")
+    public String getResultFileName() {
+        return resultFileName;
+    }
+
+    /**
+     * @param resultFileName the name of the file written by the job.
+     */
+    public void setResultFileName(String resultFileName) {
+        this.resultFileName = resultFileName;
+    }
+
+    /**
+     * @return the time a consumer started the job, or null if it is still queued.
+     */
+    @Column(name = "START_TIME", nullable=true)
+    public Date getStartTime() {
+        return startTime != null ? (Date) startTime.clone() : null;
+    }
+
+    /**
+     * @param startTime the time a consumer started the job.
+     */
+    public void setStartTime(Date startTime) {
+        this.startTime = startTime != null ? (Date) startTime.clone() : null;
+    }
+
+    /**
+     * @return the time the job completed or failed, or null if it has not finished.
+     */
+    @Column(name = "END_TIME", nullable=true)
+    public Date getEndTime() {
+        return endTime != null ? (Date) endTime.clone() : null;
+    }
+
+    /**
+     * @param endTime the time the job completed or failed.
+     */
+    public void setEndTime(Date endTime) {
+        this.endTime = endTime != null ? (Date) endTime.clone() : null;
+    }
+
+    /**
+     * @return the name of the server that ran the job, or null if it has
+     * not been started by a consumer of the job queue.
+     */
+    @Column(name = "NODE", nullable=true)
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * @param node the name of the server that ran the job.
+     */
+    public void setNode(String node) {
+        this.node = node;
+    }
+
+    /**
+     * @return the last time the server running the job reported that the
+     * job was still running, or null if the job has not been started.
+     */
+    @Column(name = "HEARTBEAT", nullable=true)
+    public Date getHeartbeat() {
+        return heartbeat != null ? (Date) heartbeat.clone() : null;
+    }
+
+    /**
+     * @param heartbeat the last time the job was known to be running.
+     */
+    public void setHeartbeat(Date heartbeat) {
+        this.heartbeat = heartbeat != null ? (Date) heartbeat.clone() : null;
+    }
+}
@@ -0,0 +1,82 @@
+package au.com.gaiaresources.bdrs.model.job;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.hibernate.Session;
+
+import au.com.gaiaresources.bdrs.db.TransactionDAO;
+import au.com.gaiaresources.bdrs.model.user.User;
+
+/**
+ * Provides a mechanism for retrieving {@link Job}s.
+ */
+public interface JobDAO extends TransactionDAO {
+
+    /**
+     * Gets the {@link Job} with the given id.
+     * @param id the primary key of the job.
+     * @return the job or null if it does not exist.
+     */
+    public Job getJob(int id);
+
+    /**
+     * Gets the {@link Job} with the given id.
+     * @param sesh the session to use for the retrieval
+     * @param id the primary key of the job.
+     * @return the job or null if it does not exist.
+     */
+    public Job getJob(Session sesh, int id);
+
+    /**
+     * Gets the most recent jobs of a user in the current portal.
+     * @param owner the user the jobs were run for.
+     * @param limit the maximum number of jobs to return.
+     * @return the jobs, the most recently created first.
+     */
+    public List<Job> getJobs(User owner, int limit);
+
+    /**
+     * Gets the jobs in the given state in every portal, the portal filter
+     * must not be enabled on the session.
+     * @param sesh the session to use for the retrieval
+     * @param status the state of the jobs.
+     * @return the jobs, the first created first.
+     */
+    public List<Job> getJobs(Session sesh, JobStatus status);
+
+    /**
+     * Marks a queued job as running on a server, unless another server has
+     * already taken it. The status is checked and set by one statement so
+     * that a job is only ever claimed once.
+     * @param sesh the session to use for the update.
+     * @param id the primary key of the job.
+     * @param node the name of the server that will run the job.
+     * @param startTime the time the job starts, also its first heartbeat.
+     * @return true if the job was claimed, false if it is not queued.
+     */
+    public boolean claimJob(Session sesh, int id, String node, Date startTime);
+
+    /**
+     * Sets the heartbeat of the running jobs with the given ids, without
+     * loading the jobs.
+     * @param sesh the session to use for the update.
+     * @param ids the primary keys of the jobs.
+     * @param heartbeat the time the jobs were known to be running.
+     * @return the number of jobs updated.
+     */
+    public int updateHeartbeat(Session sesh, Collection<Integer> ids, Date heartbeat);
+
+    /**
+     * Fails the running jobs in every portal whose heartbeat is older than
+     * the given time, or that have no heartbeat.
+     * @param sesh the session to use for the update.
+     * @param staleBefore the time before which a heartbeat is stale.
+     * @param node if not null the running jobs of this server are failed
+     * whatever their heartbeat.
+     * @param message the message of the failed jobs.
+     * @return the number of jobs failed.
+     */
+    public int failStaleJobs(Session sesh, Date staleBefore, String node, String message);
+}
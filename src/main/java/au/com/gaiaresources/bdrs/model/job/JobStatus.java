@@ -0,0 +1,30 @@
+package au.com.gaiaresources.bdrs.model.job;
+
+/**
+ * The state of a {@link Job}.
+ */
+public enum JobStatus {
+    /**
+     * Waiting for a consumer of its type to become free.
+     */
+    QUEUED,
+    /**
+     * Being run by a consumer.
+     */
+    RUNNING,
+    /**
+     * Finished, the result file, if any, may be downloaded.
+     */
+    COMPLETE,
+    /**
+     * Stopped by an error, the message of the job describes the error.
+     */
+    FAILED;
+
+    /**
+     * @return true if the job will not change again.
+     */
+    public boolean isFinished() {
+        return this == COMPLETE || this == FAILED;
+    }
+}
@@ -0,0 +1,26 @@
+package au.com.gaiaresources.bdrs.model.job;
+
+/**
+ * The kinds of work that are run as a {@link Job} in the background rather
+ * than on the request thread. Each type has its own queue and pool of
+ * consumers so that a backlog of one type does not hold up the others.
+ */
+public enum JobType {
+    /**
+     * Saves the records of an uploaded .xls or .xlsx spreadsheet.
+     */
+    BULK_DATA_UPLOAD,
+    /**
+     * Saves the records of an uploaded shapefile.
+     */
+    SHAPEFILE_UPLOAD,
+    /**
+     * Writes the public records to a Darwin Core archive.
+     */
+    DWCA_DOWNLOAD,
+    /**
+     * Writes the records of a survey that the owner of the job may access
+     * as KML, a shapefile, .xls or .xlsx.
+     */
+    RECORD_DOWNLOAD
+}
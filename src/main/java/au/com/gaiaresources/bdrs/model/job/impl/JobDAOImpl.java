@@ -0,0 +1,122 @@
+package au.com.gaiaresources.bdrs.model.job.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.springframework.stereotype.Repository;
+
+import au.com.gaiaresources.bdrs.db.impl.AbstractDAOImpl;
+import au.com.gaiaresources.bdrs.model.job.Job;
+import au.com.gaiaresources.bdrs.model.job.JobDAO;
+import au.com.gaiaresources.bdrs.model.job.JobStatus;
+import au.com.gaiaresources.bdrs.model.user.User;
+
+/**
+ * Implementation that provides a mechanism for retrieving {@link Job}s.
+ */
+@Repository
+public class JobDAOImpl extends AbstractDAOImpl implements JobDAO {
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.model.job.JobDAO#getJob(int)
+     */
+    @Override
+    public Job getJob(int id) {
+        return getByID(Job.class, id);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.model.job.JobDAO#getJob(org.hibernate.Session, int)
+     */
+    @Override
+    public Job getJob(Session sesh, int id) {
+        return getByID(sesh, Job.class, id);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.model.job.JobDAO#getJobs(au.com.gaiaresources.bdrs.model.user.User, int)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<Job> getJobs(User owner, int limit) {
+        Query q = getSession().createQuery("from Job where owner = :owner order by createdAt desc, id desc");
+        q.setParameter("owner", owner);
+        q.setMaxResults(limit);
+        return q.list();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.model.job.JobDAO#getJobs(org.hibernate.Session, au.com.gaiaresources.bdrs.model.job.JobStatus)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<Job> getJobs(Session sesh, JobStatus status) {
+        Query q = sesh.createQuery("from Job where status = :status order by id asc");
+        q.setParameter("status", status);
+        return q.list();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.model.job.JobDAO#claimJob(org.hibernate.Session, int, java.lang.String, java.util.Date)
+     */
+    @Override
+    public boolean claimJob(Session sesh, int id, String node, Date startTime) {
+        Query q = sesh.createQuery("update Job set status = :running, node = :node, startTime = :startTime," +
+                " heartbeat = :startTime where id = :id and status = :queued");
+        q.setParameter("running", JobStatus.RUNNING);
+        q.setParameter("node", node);
+        q.setParameter("startTime", startTime);
+        q.setParameter("id", id);
+        q.setParameter("queued", JobStatus.QUEUED);
+        return q.executeUpdate() == 1;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.model.job.JobDAO#updateHeartbeat(org.hibernate.Session, java.util.Collection, java.util.Date)
+     */
+    @Override
+    public int updateHeartbeat(Session sesh, Collection<Integer> ids, Date heartbeat) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        Query q = sesh.createQuery("update Job set heartbeat = :heartbeat where id in (:ids) and status = :status");
+        q.setParameter("heartbeat", heartbeat);
+        q.setParameterList("ids", new ArrayList<Integer>(ids));
+        q.setParameter("status", JobStatus.RUNNING);
+        return q.executeUpdate();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.model.job.JobDAO#failStaleJobs(org.hibernate.Session, java.util.Date, java.lang.String, java.lang.String)
+     */
+    @Override
+    public int failStaleJobs(Session sesh, Date staleBefore, String node, String message) {
+        StringBuilder hql = new StringBuilder("update Job set status = :failed, endTime = :now, message = :message");
+        hql.append(" where status = :running and (heartbeat is null or heartbeat < :staleBefore");
+        if (node != null) {
+            hql.append(" or node = :node");
+        }
+        hql.append(")");
+        Query q = sesh.createQuery(hql.toString());
+        if (node != null) {
+            q.setParameter("node", node);
+        }
+        q.setParameter("failed", JobStatus.FAILED);
+        q.setParameter("now", new Date());
+        q.setParameter("message", message);
+        q.setParameter("running", JobStatus.RUNNING);
+        q.setParameter("staleBefore", staleBefore);
+        return q.executeUpdate();
+    }
+}
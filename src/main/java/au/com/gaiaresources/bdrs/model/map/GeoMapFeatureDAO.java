@@ -1,6 +1,7 @@
 package au.com.gaiaresources.bdrs.model.map;
 
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.Session;
 
@@ -30,4 +31,11 @@ public interface GeoMapFeatureDAO extends TransactionDAO {
     List<GeoMapFeature> find(Session sesh, Integer mapLayerId);
     List<GeoMapFeature> find(Session sesh, Integer[] mapLayerId, Geometry pointIntersect);
     PagedQueryResult<GeoMapFeature> find(Session sesh, Integer[] mapLayerId, Geometry pointIntersect, PaginationFilter filter);
+    
+    /**
+     * Gets the geometries of the features of a layer without loading the features.
+     * @param mapLayerId the id of the layer.
+     * @return the geometry of each feature keyed by the id of the feature.
+     */
+    Map<Integer, Geometry> getGeometries(Integer mapLayerId);
 }
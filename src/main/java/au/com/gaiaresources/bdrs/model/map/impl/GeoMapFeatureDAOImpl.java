@@ -3,11 +3,13 @@ package au.com.gaiaresources.bdrs.model.map.impl;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
+import org.hibernate.Query;
 import org.hibernate.Session;
 import org.springframework.stereotype.Repository;
 
@@ -134,4 +136,16 @@ public class GeoMapFeatureDAOImpl extends AbstractDAOImpl implements GeoMapFeatu
         }
         return new QueryPaginator<GeoMapFeature>().page(sesh, hb.toString(), params, filter, "gmf");
     }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<Integer, Geometry> getGeometries(Integer mapLayerId) {
+        Query q = getSession().createQuery("select gmf.id, gmf.geometry from GeoMapFeature gmf where gmf.layer.id = :layerId");
+        q.setParameter("layerId", mapLayerId);
+        Map<Integer, Geometry> geometries = new LinkedHashMap<Integer, Geometry>();
+        for (Object[] row : (List<Object[]>) q.list()) {
+            geometries.put((Integer) row[0], (Geometry) row[1]);
+        }
+        return geometries;
+    }
 }
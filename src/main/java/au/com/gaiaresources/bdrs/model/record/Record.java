@@ -5,6 +5,7 @@ import au.com.gaiaresources.bdrs.controller.attribute.formfield.RecordPropertyTy
 import au.com.gaiaresources.bdrs.db.impl.PortalPersistentImpl;
 import au.com.gaiaresources.bdrs.model.attribute.Attributable;
 import au.com.gaiaresources.bdrs.model.expert.ReviewRequest;
+import au.com.gaiaresources.bdrs.model.index.IndexingConstants;
 import au.com.gaiaresources.bdrs.model.location.Location;
 import au.com.gaiaresources.bdrs.model.metadata.Metadata;
 import au.com.gaiaresources.bdrs.model.method.CensusMethod;
@@ -20,6 +21,11 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Point;
 import org.apache.log4j.Logger;
 import org.hibernate.annotations.*;
+import org.hibernate.search.annotations.Analyzer;
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Indexed;
+import org.hibernate.search.annotations.IndexedEmbedded;
+import org.hibernate.search.annotations.Store;
 
 import javax.persistence.AttributeOverride;
 import javax.persistence.CascadeType;
@@ -52,6 +58,11 @@ import java.util.TimeZone;
         // users role.
         @FilterDef(name = Record.ANONYMOUS_RECORD_ACCESS_FILTER),
         @FilterDef(name = Record.USER_ACCESS_FILTER, parameters = @ParamDef(name = "userId", type = "integer")),
+        // The same as the user access filter but with the surveys the user
+        // may see resolved beforehand, see SurveyAccessResolver.
+        @FilterDef(name = Record.USER_SURVEY_ACCESS_FILTER, parameters = {
+                @ParamDef(name = "userId", type = "integer"),
+                @ParamDef(name = "surveyIds", type = "integer") }),
         @FilterDef(name = Record.MODERATOR_ACCESS_FILTER, parameters = @ParamDef(name = "userId", type = "integer")),
         // This filter is to restrict queries to records that have attached
         // images.
@@ -64,6 +75,9 @@ import java.util.TimeZone;
                 + " or INDICATOR_SURVEY_ID in (select sud2.survey_survey_id from survey_user_definition sud2 where sud2.users_user_definition_id = :userId)"
                 + " or INDICATOR_SURVEY_ID in (select sg3.survey_survey_id from survey_usergroup sg3 join group_users gu3 on sg3.groups_group_id=gu3.usergroup_group_id where gu3.users_user_definition_id = :userId ))"
                 + " and RECORD_VISIBILITY IN ('PUBLIC','CONTROLLED') and not HELD)))"),
+        @Filter(name = Record.USER_SURVEY_ACCESS_FILTER, condition = "(INDICATOR_USER_ID = :userId OR ("
+                + " INDICATOR_SURVEY_ID in (:surveyIds)"
+                + " and RECORD_VISIBILITY IN ('PUBLIC','CONTROLLED') and not HELD))"),
         @Filter(name = Record.MODERATOR_ACCESS_FILTER, condition = "(INDICATOR_USER_ID = :userId or RECORD_VISIBILITY IN ('PUBLIC','CONTROLLED'))"),
         @Filter(name = Record.IMAGE_FILTER, condition = "RECORD_ID in "
                 + "(select r.RECORD_ID from RECORD r "
@@ -74,15 +88,18 @@ import java.util.TimeZone;
         @Filter(name = Record.PARTIAL_RECORD_COUNT_FILTER, condition = "PARENT_ATTRIBUTE_VALUE is null") })
 @Table(name = "RECORD")
 @AttributeOverride(name = "id", column = @Column(name = "RECORD_ID"))
+@Indexed
 public class Record extends PortalPersistentImpl implements ReadOnlyRecord,
         Attributable<AttributeValue> {
 
     public static final String ANONYMOUS_RECORD_ACCESS_FILTER = "anonymousRecordAccessFilter";
     public static final String USER_ACCESS_FILTER = "userRecordAccessFilter";
+    public static final String USER_SURVEY_ACCESS_FILTER = "userSurveyRecordAccessFilter";
     public static final String MODERATOR_ACCESS_FILTER = "moderatorRecordAccessFilter";
     public static final String IMAGE_FILTER = "imageFilter";
     public static final String PARTIAL_RECORD_COUNT_FILTER = "partialRecordCountFilter";
     public static final String FILTER_PARAMETER_USER = "userId";
+    public static final String FILTER_PARAMETER_SURVEYS = "surveyIds";
 
     // no species and number seen
     public static final List<RecordPropertyType> NON_TAXONOMIC_RECORD_PROPERTY_NAMES;
@@ -154,6 +171,7 @@ public class Record extends PortalPersistentImpl implements ReadOnlyRecord,
     @JoinColumn(name = "INDICATOR_SPECIES_ID", nullable = true)
     @ForeignKey(name = "RECORD_SPECIES_FK")
     @Index(name = "RECORD_N1")
+    @IndexedEmbedded(depth = 1)
     /**
      * Get the species that the record relates to.
      * @return {@link IndicatorSpecies}
@@ -265,6 +283,7 @@ public class Record extends PortalPersistentImpl implements ReadOnlyRecord,
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "INDICATOR_USER_ID", nullable = false)
     @ForeignKey(name = "RECORD_USER_FK")
+    @IndexedEmbedded(depth = 1)
     /**
      * Get the user that owns the record.
      * @return {@link User}
@@ -503,6 +522,8 @@ public class Record extends PortalPersistentImpl implements ReadOnlyRecord,
     @OneToMany
     @Override
     @JoinTable(name = "record_attribute_value", joinColumns = { @JoinColumn(name = "record_record_id") }, inverseJoinColumns = { @JoinColumn(name = "attributes_attribute_value_id") })
+    // the text values and the names of the species of the attributes
+    @IndexedEmbedded(depth = 2)
     public Set<AttributeValue> getAttributes() {
         return attributes;
     }
@@ -519,6 +540,7 @@ public class Record extends PortalPersistentImpl implements ReadOnlyRecord,
     @CompactAttribute
     @Column(name = "NOTES")
     @Type(type = "text")
+    @Field(index = org.hibernate.search.annotations.Index.TOKENIZED, store = Store.NO, analyzer=@Analyzer(definition=IndexingConstants.FULL_TEXT_ANALYZER))
     public String getNotes() {
         return notes;
     }
@@ -1,6 +1,7 @@
 package au.com.gaiaresources.bdrs.model.record;
 
 import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -9,14 +10,18 @@ import java.util.Set;
 
 import org.hibernate.Session;
 
+import au.com.gaiaresources.bdrs.db.ScrollableResults;
 import au.com.gaiaresources.bdrs.db.impl.PagedQueryResult;
 import au.com.gaiaresources.bdrs.db.impl.PaginationFilter;
 import au.com.gaiaresources.bdrs.db.impl.PersistentImpl;
+import au.com.gaiaresources.bdrs.db.impl.Predicate;
 import au.com.gaiaresources.bdrs.db.impl.SortingCriteria;
+import au.com.gaiaresources.bdrs.model.facet.FacetCounts;
 import au.com.gaiaresources.bdrs.model.facet.FacetDAO;
 import au.com.gaiaresources.bdrs.model.location.Location;
 import au.com.gaiaresources.bdrs.model.metadata.Metadata;
 import au.com.gaiaresources.bdrs.model.record.impl.RecordFilter;
+import au.com.gaiaresources.bdrs.model.record.impl.StreamingScrollableRecords;
 import au.com.gaiaresources.bdrs.model.survey.Survey;
 import au.com.gaiaresources.bdrs.model.taxa.AttributeValue;
 import au.com.gaiaresources.bdrs.model.taxa.AttributeValueDAO;
@@ -24,6 +29,7 @@ import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
 import au.com.gaiaresources.bdrs.model.taxa.TaxaService;
 import au.com.gaiaresources.bdrs.model.taxa.TypedAttributeValue;
 import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.util.Pair;
 
 import com.vividsolutions.jts.geom.Geometry;
 
@@ -170,6 +176,42 @@ public interface RecordDAO extends FacetDAO {
                                            List<Integer> species,
                                            Date startDate, Date endDate,
                                            int pageNumber, int entriesPerPage);
+
+    /**
+     * Streams the records matching the criteria of
+     * {@link #getScrollableRecords(User, List, List, Date, Date, int, int)}
+     * with a forward only cursor. The session is cleared every
+     * {@link ScrollableRecords#RESULTS_BATCH_SIZE} records.
+     *
+     * @param user Record owner
+     * @param surveys Survey of the record
+     * @param species Primary species of the record
+     * @param startDate Start date range
+     * @param endDate End date range
+     * @param limit Limits the number of returned records
+     * @return the records, in descending date order
+     */
+    ScrollableRecords getStreamingRecords(User user, List<Survey> surveys,
+                                          List<Integer> species,
+                                          Date startDate, Date endDate, int limit);
+
+    /**
+     * Gets the columns needed to draw the records matching the parameters on
+     * a map, without loading the records. The rows are read with a forward
+     * only cursor and the filters enabled on the session are applied as they
+     * are to {@link #getStreamingRecords(User, List, List, Date, Date, int)}.
+     *
+     * @param user Record owner
+     * @param surveys Survey of the record
+     * @param species Primary species of the record
+     * @param startDate Start date range
+     * @param endDate End date range
+     * @param limit Limits the number of returned records
+     * @return the projections of the records, in descending date order
+     */
+    ScrollableResults<RecordProjection> getRecordProjections(User user, List<Survey> surveys,
+                                                            List<Integer> species,
+                                                            Date startDate, Date endDate, int limit);
 	
 	/**
 	 * Stopping the madness of too many args when filtering for records. Encapsulate all
@@ -191,6 +233,48 @@ public interface RecordDAO extends FacetDAO {
          */
 	ScrollableRecords getScrollableRecords(RecordFilter recFilter,
 	            List<SortingCriteria> sortCriteria);
+
+	/**
+	 * Queries for a single page of Records based on the filter arguments and
+	 * the sorting criteria of the pagination filter. When the pagination
+	 * filter uses keyset pagination, the page starts after its continuation
+	 * token and the token for the next page is returned by
+	 * {@link ScrollableRecords#getContinuationToken()} once the page has been
+	 * read. Otherwise the first result of the pagination filter is skipped.
+	 * Records are sorted by date descending if no sorting criteria are set.
+	 * 
+	 * @param recFilter the record filter.
+	 * @param filter the pagination filter, sort columns are HQL columns of
+	 * the record filter query, e.g. record.when or species.scientificName.
+	 * @return a scrollable page of records.
+	 */
+	ScrollableRecords getScrollableRecords(RecordFilter recFilter, PaginationFilter filter);
+
+	/**
+	 * Streams the records matching the filter with a forward only cursor for
+	 * exports. Unlike {@link #getScrollableRecords(RecordFilter)} the results
+	 * are not held in memory by the JDBC driver, and the session is cleared
+	 * every {@link ScrollableRecords#RESULTS_BATCH_SIZE} records.
+	 * 
+	 * @param recFilter the record filter.
+	 * @return the records, see {@link StreamingScrollableRecords}.
+	 */
+	ScrollableRecords getStreamingRecords(RecordFilter recFilter);
+
+	/**
+	 * Streams the records matching the filter with a forward only cursor for
+	 * exports, applying the sort options specified by <code>sortCriteria</code>.
+	 * The page of the filter, if any, is applied to the query.
+	 * 
+	 * @param recFilter the record filter.
+	 * @param sortCriteria a list of column name, order type 
+	 * (ascending or descending) pairs to apply to the query.
+	 * @param clearInterval the number of records read between each clear of
+	 * the session, or 0 if the caller manages the session.
+	 * @return the records, see {@link StreamingScrollableRecords}.
+	 */
+	ScrollableRecords getStreamingRecords(RecordFilter recFilter,
+	            List<SortingCriteria> sortCriteria, int clearInterval);
 	
 	/**
 	 * Returns the number of records that match the specified filter.
@@ -270,6 +354,44 @@ public interface RecordDAO extends FacetDAO {
 			int calendarField, int extendTime, Integer[] excludeRecordIds,
 			Integer[] includeRecordIds);
 
+	/**
+	 * Finds potential duplicates for a batch of records, such as the records
+	 * of a bulk upload, using the same criteria as
+	 * {@link #getDuplicateRecords(Record, double, int, int, Integer[], Integer[])}.
+	 * The existing records near the batch are loaded with a few spatially
+	 * indexed queries rather than one query per record, and the records in
+	 * the batch are also compared with each other so they need not be saved.
+	 * 
+	 * @param records Find duplicates of these records
+	 * @param extendMetres
+	 *            - how far to buffer around each record
+	 * @param calendarField
+	 *            - the Calendar field type to buffer time by
+	 * @param extendTime
+	 *            - Amount of time to buffer by
+	 * @param excludeRecordIds
+	 *            - an array of record ids that you want to specifically exclude
+	 *            from search
+	 * @param includeRecordIds
+	 *            - if not empty, the ids of the only saved records to search
+	 * @return the duplicates of each record that has any duplicates
+	 */
+	Map<Record, Set<Record>> getDuplicateRecords(Collection<Record> records,
+			double extendMetres, int calendarField, int extendTime,
+			Integer[] excludeRecordIds, Integer[] includeRecordIds);
+
+	/**
+	 * Finds clusters of records that duplicate each other, directly or
+	 * through another record, using
+	 * {@link #getDuplicateRecords(Collection, double, int, int, Integer[], Integer[])}.
+	 * 
+	 * @return the clusters of duplicates, each containing at least one of the
+	 *         specified records and at least two records.
+	 */
+	List<Set<Record>> getDuplicateRecordClusters(Collection<Record> records,
+			double extendMetres, int calendarField, int extendTime,
+			Integer[] excludeRecordIds, Integer[] includeRecordIds);
+
 	Metadata getRecordMetadataForKey(Record record, String metadataKey);
 
 	/**
@@ -339,6 +461,32 @@ public interface RecordDAO extends FacetDAO {
      * @return query result
      */
     List<Record> find(Integer[] mapLayerId, Geometry intersectGeom, Boolean isPrivate, Integer userId);
+
+    /**
+     * spatial query for the projections of records, read with a forward only
+     * cursor. Matches the same records as {@link #find(Integer[], Geometry, Boolean, Integer)}.
+     * 
+     * @param mapLayerId - the map layer id
+     * @param intersectGeom - the geometry to intersect with
+     * @param isPrivate - whether the record has to be private. true: publish is OWNER_ONLY
+     * false: publish is anything but OWNER_ONLY. null: don't care
+     * @param userId - The id of the owner of the record. If the user passed here matches the owner of the record
+     * the record will be returned regardless of the isPrivate flag.
+     * @return the projections of the records
+     */
+    ScrollableResults<RecordProjection> getRecordProjections(Integer[] mapLayerId, Geometry intersectGeom,
+            Boolean isPrivate, Integer userId);
+
+    /**
+     * Returns the number of records of a survey visible to the session and
+     * the last time one of them was updated. Together they change whenever
+     * a record of the survey is saved, updated or deleted, by any server
+     * sharing the database.
+     * @param surveyId the id of the survey.
+     * @return the number of records and the last update time, which is null
+     * if the survey has no records.
+     */
+    Pair<Long, Date> getSurveyRecordState(Integer surveyId);
     
     /**
      * Basic pagination: Returns a count number of records, ordered by id, starting with offset.
@@ -356,6 +504,53 @@ public interface RecordDAO extends FacetDAO {
      */
     public Record getRecordByClientID(String clientID);
 
+    /**
+     * Returns the primary keys of the records associated with the specified
+     * client ids using as few queries as possible.
+     * @param clientIDs the client identifiers.
+     * @return the record primary key keyed by client id. Client ids without
+     * a record are not included.
+     */
+    public Map<String, Integer> getRecordIdsByClientID(Collection<String> clientIDs);
+
+    /**
+     * Returns the records with the specified primary keys with their metadata 
+     * and attribute values already initialised.
+     * @param ids the primary keys of the records.
+     * @return the records in no particular order.
+     */
+    public List<Record> getRecordsWithAttributes(Collection<Integer> ids);
+
+    /**
+     * Returns the records with the specified primary keys with their metadata 
+     * and attribute values already initialised using the session provided.
+     * @param sesh the session to be used to perform the query.
+     * @param ids the primary keys of the records.
+     * @return the records in no particular order.
+     */
+    public List<Record> getRecordsWithAttributes(Session sesh, Collection<Integer> ids);
+
+    /**
+     * Returns the census methods of the records with the specified primary
+     * keys without loading the records.
+     * @param sesh the session to be used to perform the query.
+     * @param ids the primary keys of the records.
+     * @return the census method primary key, or null, keyed by record primary
+     * key. Primary keys without a record are not included.
+     */
+    public Map<Integer, Integer> getCensusMethodIds(Session sesh, Collection<Integer> ids);
+
+    /**
+     * Counts the records visible to the session for the survey, user, year,
+     * month, location, census method type, visibility and taxon group facets.
+     * The counts are accumulated from a single pass over the records with
+     * grouping sets, and the taxon groups of the attribute value species
+     * from a second query.
+     * @param sesh the session to use for this query.
+     * @return the record counts for each facet option.
+     */
+    public FacetCounts getFacetCounts(Session sesh);
+
     /**
      * Counts all of the records that this user has access to view.
      * @param accessor the account that is accessing the records
@@ -424,4 +619,31 @@ public interface RecordDAO extends FacetDAO {
      */
     ScrollableRecords getRecordByGroup(RecordGroup group);
 
+    /**
+     * Searches the full text index of the records of the current portal for
+     * the words of a search. Each word must appear in the notes, the owner's
+     * name, the names of the species or the text values or species names of
+     * the attributes of a record, either as a word or the start of a word.
+     * @param searchText the words to search for.
+     * @return the ids of the matching records, or null if the search cannot be
+     * answered by the index because it contains no words or the records of the
+     * portal have not been indexed.
+     */
+    List<Integer> searchRecordIds(String searchText);
+
+    /**
+     * Creates a predicate that restricts a query to the records matching a
+     * search of the full text index, as {@link #searchRecordIds(String)}.
+     * The ids of the matching records are written to a temporary
+     * {@link RecordSearchHit} table of the current transaction that is
+     * dropped when it completes, so any number of records may match. The index is
+     * only searched once for each search text in a transaction.
+     * @param recordIdExpression the expression of the record id in the query,
+     * such as <code>record.id</code>.
+     * @param searchText the words to search for.
+     * @return the predicate, or null if the search cannot be answered by the
+     * index.
+     * @throws IllegalStateException if there is no active transaction.
+     */
+    Predicate createSearchPredicate(String recordIdExpression, String searchText);
 }
\ No newline at end of file
@@ -1,5 +1,8 @@
 package au.com.gaiaresources.bdrs.model.record;
 
+import java.util.Collection;
+import java.util.Map;
+
 import au.com.gaiaresources.bdrs.db.TransactionDAO;
 import au.com.gaiaresources.bdrs.model.metadata.Metadata;
 
@@ -27,6 +30,15 @@ public interface RecordGroupDAO extends TransactionDAO {
      */
     public RecordGroup getRecordGroupByClientID(String clientID);
 
+    /**
+     * Returns the primary keys of the record groups associated with the
+     * specified client ids using as few queries as possible.
+     * @param clientIDs the client identifiers
+     * @return the record group primary key keyed by client id. Client ids 
+     * without a record group are not included.
+     */
+    public Map<String, Integer> getRecordGroupIdsByClientID(Collection<String> clientIDs);
+
 
     /**
      * Gets the specified record group meta data or lazy creates it.
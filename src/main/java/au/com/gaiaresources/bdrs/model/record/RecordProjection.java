@@ -0,0 +1,104 @@
+package au.com.gaiaresources.bdrs.model.record;
+
+import java.util.Date;
+
+import au.com.gaiaresources.bdrs.db.RowMapper;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * The columns of a {@link Record} needed to draw it on a map, read by a
+ * projection query rather than by loading the record and its associations.
+ */
+public class RecordProjection {
+
+    /**
+     * Returns the HQL select clause of the projection.
+     * @param recordAlias the alias of the record.
+     * @param speciesAlias the alias of the species of the record, which must
+     * be left joined.
+     * @return the select clause.
+     */
+    public static String getSelect(String recordAlias, String speciesAlias) {
+        return String.format("select %1$s.id, %1$s.geometry, %1$s.when, %1$s.user.id, %1$s.survey.id, " +
+                "%2$s.id, %2$s.scientificName, %2$s.commonName, %1$s.recordGroup.id", recordAlias, speciesAlias);
+    }
+
+    /**
+     * Maps the rows selected by {@link #getSelect(String, String)}.
+     */
+    public static final RowMapper<RecordProjection> ROW_MAPPER = new RowMapper<RecordProjection>() {
+        @Override
+        public RecordProjection mapRow(Object[] row) {
+            return new RecordProjection((Integer) row[0], (Geometry) row[1], (Date) row[2],
+                    (Integer) row[3], (Integer) row[4], (Integer) row[5],
+                    (String) row[6], (String) row[7], (Integer) row[8]);
+        }
+    };
+
+    private Integer id;
+    private Geometry geometry;
+    private Date when;
+    private Integer userId;
+    private Integer surveyId;
+    private Integer speciesId;
+    private String scientificName;
+    private String commonName;
+    private Integer recordGroupId;
+
+    public RecordProjection(Integer id, Geometry geometry, Date when,
+            Integer userId, Integer surveyId, Integer speciesId,
+            String scientificName, String commonName, Integer recordGroupId) {
+        this.id = id;
+        this.geometry = geometry;
+        this.when = when;
+        this.userId = userId;
+        this.surveyId = surveyId;
+        this.speciesId = speciesId;
+        this.scientificName = scientificName;
+        this.commonName = commonName;
+        this.recordGroupId = recordGroupId;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    public Date getWhen() {
+        return when;
+    }
+
+    public Integer getUserId() {
+        return userId;
+    }
+
+    public Integer getSurveyId() {
+        return surveyId;
+    }
+
+    /**
+     * @return the id of the primary species, or null if the record has no species.
+     */
+    public Integer getSpeciesId() {
+        return speciesId;
+    }
+
+    public String getScientificName() {
+        return scientificName;
+    }
+
+    public String getCommonName() {
+        return commonName;
+    }
+
+    /**
+     * @return the id of the record group, or null if the record is not in a group.
+     */
+    public Integer getRecordGroupId() {
+        return recordGroupId;
+    }
+}
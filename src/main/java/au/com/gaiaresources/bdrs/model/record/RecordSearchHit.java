@@ -0,0 +1,102 @@
+package au.com.gaiaresources.bdrs.model.record;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+/**
+ * A record that matched a full text search of the record index, see
+ * {@link RecordDAO#createSearchPredicate(String, String)}. The hits of a
+ * search are written to a temporary table with the same name, created by
+ * the transaction that made the search and dropped when it completes, so
+ * they are never seen by another transaction. The table of this entity
+ * stays empty, it is only there so that the hits can be queried with HQL.
+ */
+@Entity
+@Table(name = "RECORD_SEARCH_HIT")
+public class RecordSearchHit implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The table the hits are written to.
+     */
+    public static final String TABLE_NAME = "RECORD_SEARCH_HIT";
+    /**
+     * The column of the id of the search.
+     */
+    public static final String SEARCH_ID_COLUMN = "SEARCH_ID";
+    /**
+     * The column of the id of the record.
+     */
+    public static final String RECORD_ID_COLUMN = "RECORD_ID";
+
+    private Key id;
+
+    /**
+     * @return the search and the record.
+     */
+    @EmbeddedId
+    public Key getId() {
+        return id;
+    }
+
+    public void setId(Key id) {
+        this.id = id;
+    }
+
+    /**
+     * The id of a search and of a record that matched it.
+     */
+    @Embeddable
+    public static class Key implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String searchId;
+        private Integer recordId;
+
+        /**
+         * @return the id of the search.
+         */
+        @Column(name = SEARCH_ID_COLUMN, length = 36, nullable = false)
+        public String getSearchId() {
+            return searchId;
+        }
+
+        public void setSearchId(String searchId) {
+            this.searchId = searchId;
+        }
+
+        /**
+         * @return the id of the matching record.
+         */
+        @Column(name = RECORD_ID_COLUMN, nullable = false)
+        public Integer getRecordId() {
+            return recordId;
+        }
+
+        public void setRecordId(Integer recordId) {
+            this.recordId = recordId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return (searchId == null ? key.searchId == null : searchId.equals(key.searchId))
+                && (recordId == null ? key.recordId == null : recordId.equals(key.recordId));
+        }
+
+        @Override
+        public int hashCode() {
+            return (searchId == null ? 0 : searchId.hashCode()) * 31 + (recordId == null ? 0 : recordId.hashCode());
+        }
+    }
+}
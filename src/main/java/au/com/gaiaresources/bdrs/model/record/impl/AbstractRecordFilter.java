@@ -12,6 +12,7 @@ import org.apache.log4j.Logger;
 import org.hibernate.Query;
 import org.hibernate.Session;
 
+import au.com.gaiaresources.bdrs.db.impl.KeysetPagination;
 import au.com.gaiaresources.bdrs.db.impl.SortingCriteria;
 import au.com.gaiaresources.bdrs.model.method.CensusMethod;
 import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
@@ -359,6 +360,19 @@ public abstract class AbstractRecordFilter implements RecordFilter {
      */
     @Override
     public Query getRecordQuery(Session sesh, List<SortingCriteria> sortCriteria) {
+        return createRecordQuery(sesh, sortCriteria, null);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.model.record.impl.RecordFilter#getRecordQuery(org.hibernate.Session, au.com.gaiaresources.bdrs.db.impl.KeysetPagination)
+     */
+    @Override
+    public Query getRecordQuery(Session sesh, KeysetPagination keyset) {
+        return createRecordQuery(sesh, null, keyset);
+    }
+
+    private Query createRecordQuery(Session sesh, List<SortingCriteria> sortCriteria, KeysetPagination keyset) {
     
         Map<String, Object> paramMap = new HashMap<String, Object>();
         StringBuilder builder = new StringBuilder(getQueryPredicate());
@@ -460,16 +474,28 @@ public abstract class AbstractRecordFilter implements RecordFilter {
             }
         }
         
+        if (keyset != null) {
+            // only the records after the last record of the previous page
+            String keysetPredicate = keyset.getPredicate(paramMap);
+            if (keysetPredicate.length() > 0) {
+                builder.append(" and ");
+                builder.append(keysetPredicate);
+            }
+        }
+        
         // make sure there is a space before the ordering clause
         builder.append(" ");
-        builder.append(getOrderingClause(sortCriteria));
+        builder.append(keyset != null ? keyset.getOrderingClause() : getOrderingClause(sortCriteria));
         
         Query q = sesh.createQuery(builder.toString());
         for (Map.Entry<String, Object> entry : paramMap.entrySet()) {
             q.setParameter(entry.getKey(), entry.getValue());
         }
     
-        if (getEntriesPerPage() != null) {
+        if (keyset != null) {
+            // one more than a page to tell if there is a next page
+            q.setMaxResults(keyset.getPageSize() + 1);
+        } else if (getEntriesPerPage() != null) {
             q.setMaxResults(getEntriesPerPage());
         }
         
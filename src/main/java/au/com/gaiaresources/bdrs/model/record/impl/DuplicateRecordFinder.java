@@ -0,0 +1,442 @@
+package au.com.gaiaresources.bdrs.model.record.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.survey.BdrsCoordReferenceSystem;
+import au.com.gaiaresources.bdrs.util.SpatialUtil;
+import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Finds the duplicates of a batch of candidate records using the same
+ * criteria as {@link RecordDAOImpl#getDuplicateRecords(Record, double, int, int, Integer[], Integer[])}.
+ * A duplicate is a record with the same species, made within the time window
+ * of the candidate and within the buffer distance of the candidate.
+ *
+ * The candidates are grouped into {@link SearchWindow}s that are close in
+ * space and time so that the existing records near all of the candidates in
+ * a window can be loaded with a single query. The loaded records and the
+ * candidates themselves are then placed in an in memory spatial index and
+ * the exact distance and time of each pair is checked.
+ */
+public class DuplicateRecordFinder {
+
+    /**
+     * The maximum number of candidates in a search window.
+     */
+    public static final int MAX_WINDOW_SIZE = 100;
+    /**
+     * The size of the grid cells in degrees used to keep search windows
+     * small. Windows never span more than one cell (plus the buffer).
+     */
+    public static final double WINDOW_CELL_DEGREES = 1.0;
+
+    private Logger log = Logger.getLogger(getClass());
+
+    private GeometryBuilder geometryBuilder;
+    private SpatialUtilFactory spatialUtilFactory = new SpatialUtilFactory();
+    private double bufferMetre;
+    private int calendarField;
+    private int extendTime;
+    private Set<Integer> excludeRecordIds = new HashSet<Integer>();
+    private Set<Integer> includeRecordIds = new HashSet<Integer>();
+
+    private Map<Record, Candidate> candidates = new LinkedHashMap<Record, Candidate>();
+    // existing records keyed by primary key so that a record loaded by more
+    // than one window is only indexed once.
+    private Map<Integer, Target> targets = new LinkedHashMap<Integer, Target>();
+    private List<Target> unsavedTargets = new ArrayList<Target>();
+
+    /**
+     * @param geometryBuilder used to calculate the buffer around each candidate.
+     * @param bufferMetre the distance in metres around each candidate to search.
+     * @param calendarField the {@link Calendar} field to extend the time of each candidate by.
+     * @param extendTime the amount of the calendar field to extend the time by.
+     * @param excludeRecordIds ids of records that are never duplicates, may be null.
+     * @param includeRecordIds if not empty, the ids of the only saved records
+     * that may be duplicates, may be null.
+     */
+    public DuplicateRecordFinder(GeometryBuilder geometryBuilder, double bufferMetre,
+            int calendarField, int extendTime, Integer[] excludeRecordIds, Integer[] includeRecordIds) {
+        if (Calendar.FIELD_COUNT < calendarField) {
+            throw new ArrayIndexOutOfBoundsException(calendarField);
+        }
+        this.geometryBuilder = geometryBuilder;
+        this.bufferMetre = bufferMetre;
+        this.calendarField = calendarField;
+        this.extendTime = extendTime;
+        if (excludeRecordIds != null) {
+            Collections.addAll(this.excludeRecordIds, excludeRecordIds);
+        }
+        if (includeRecordIds != null) {
+            Collections.addAll(this.includeRecordIds, includeRecordIds);
+        }
+    }
+
+    /**
+     * Adds records to find the duplicates of. Records without a date or a
+     * point or location are ignored.
+     * @param records the candidate records.
+     */
+    public void addCandidates(Collection<Record> records) {
+        for (Record record : records) {
+            if (candidates.containsKey(record)) {
+                continue;
+            }
+            Point point = getPoint(record);
+            if (point == null || record.getWhen() == null) {
+                log.warn("Record needs to have a date and a point or a location associated with it");
+                continue;
+            }
+            Candidate candidate = new Candidate(record, point);
+            candidates.put(record, candidate);
+            // like the existing records, only the geometry of the record is
+            // compared and not its location.
+            addTarget(record);
+        }
+    }
+
+    /**
+     * Groups the candidates into windows that are close in space and time.
+     * Each window must be searched for existing records with
+     * {@link #addRecords(Collection)}.
+     * @return the search windows.
+     */
+    public List<SearchWindow> getSearchWindows() {
+        List<Candidate> sorted = new ArrayList<Candidate>(candidates.values());
+        Collections.sort(sorted, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate c1, Candidate c2) {
+                int result = compareInt(c1.cellX, c2.cellX);
+                if (result == 0) {
+                    result = compareInt(c1.cellY, c2.cellY);
+                }
+                if (result == 0) {
+                    result = c1.from.compareTo(c2.from);
+                }
+                return result;
+            }
+        });
+
+        List<SearchWindow> windows = new ArrayList<SearchWindow>();
+        SearchWindow window = null;
+        for (Candidate candidate : sorted) {
+            if (window == null || !window.accepts(candidate)) {
+                window = new SearchWindow(candidate);
+                windows.add(window);
+            } else {
+                window.add(candidate);
+            }
+        }
+        return windows;
+    }
+
+    /**
+     * Adds existing records that may be duplicates of the candidates, such as
+     * the records loaded for a {@link SearchWindow}.
+     * @param records the existing records.
+     */
+    public void addRecords(Collection<Record> records) {
+        for (Record record : records) {
+            if (!candidates.containsKey(record) && (record.getId() == null || !targets.containsKey(record.getId()))) {
+                addTarget(record);
+            }
+        }
+    }
+
+    /**
+     * Returns the duplicates of each candidate. Candidates are also checked
+     * against each other, so the candidates need not have been saved.
+     * @return the duplicates of each candidate that has at least one duplicate.
+     */
+    public Map<Record, Set<Record>> getDuplicates() {
+        STRtree index = new STRtree();
+        for (Target target : targets.values()) {
+            index.insert(target.geometry.getEnvelopeInternal(), target);
+        }
+        for (Target target : unsavedTargets) {
+            index.insert(target.geometry.getEnvelopeInternal(), target);
+        }
+
+        Map<Record, Set<Record>> duplicates = new LinkedHashMap<Record, Set<Record>>();
+        for (Candidate candidate : candidates.values()) {
+            Set<Record> found = new HashSet<Record>();
+            for (Object item : index.query(candidate.getSearchEnvelope())) {
+                Target target = (Target) item;
+                if (candidate.isDuplicate(target)) {
+                    found.add(target.record);
+                }
+            }
+            if (!found.isEmpty()) {
+                duplicates.put(candidate.record, found);
+            }
+        }
+        return duplicates;
+    }
+
+    /**
+     * Joins records that are duplicates of each other, directly or through
+     * another record, into clusters.
+     * @param duplicates the duplicates of each record.
+     * @return the clusters, each containing at least two records.
+     */
+    public static List<Set<Record>> getClusters(Map<Record, Set<Record>> duplicates) {
+        Map<Record, Set<Record>> clusters = new IdentityHashMap<Record, Set<Record>>();
+        for (Map.Entry<Record, Set<Record>> entry : duplicates.entrySet()) {
+            Set<Record> cluster = getCluster(clusters, entry.getKey());
+            for (Record duplicate : entry.getValue()) {
+                Set<Record> other = getCluster(clusters, duplicate);
+                if (other != cluster) {
+                    // merge the smaller cluster into the larger one
+                    if (other.size() > cluster.size()) {
+                        Set<Record> tmp = cluster;
+                        cluster = other;
+                        other = tmp;
+                    }
+                    cluster.addAll(other);
+                    for (Record r : other) {
+                        clusters.put(r, cluster);
+                    }
+                }
+            }
+        }
+
+        List<Set<Record>> result = new ArrayList<Set<Record>>();
+        Set<Set<Record>> seen = Collections.newSetFromMap(new IdentityHashMap<Set<Record>, Boolean>());
+        for (Set<Record> cluster : clusters.values()) {
+            if (cluster.size() > 1 && seen.add(cluster)) {
+                result.add(cluster);
+            }
+        }
+        return result;
+    }
+
+    private static Set<Record> getCluster(Map<Record, Set<Record>> clusters, Record record) {
+        Set<Record> cluster = clusters.get(record);
+        if (cluster == null) {
+            cluster = new HashSet<Record>();
+            cluster.add(record);
+            clusters.put(record, cluster);
+        }
+        return cluster;
+    }
+
+    private void addTarget(Record record) {
+        if (record.getGeometry() == null || record.getWhen() == null) {
+            return;
+        }
+        Geometry geometry = toDefaultSrid(record.getGeometry());
+        if (geometry == null) {
+            return;
+        }
+        Target target = new Target(record, geometry);
+        if (record.getId() == null) {
+            unsavedTargets.add(target);
+        } else {
+            targets.put(record.getId(), target);
+        }
+    }
+
+    private Point getPoint(Record record) {
+        Point point;
+        if (record.getPoint() != null) {
+            point = record.getPoint();
+        } else if (record.getLocation() != null && record.getLocation().getLocation() != null) {
+            point = record.getLocation().getLocation().getCentroid();
+        } else {
+            return null;
+        }
+        Geometry transformed = toDefaultSrid(point);
+        return transformed == null ? null : transformed.getCentroid();
+    }
+
+    private Geometry toDefaultSrid(Geometry geometry) {
+        if (geometry.getSRID() == 0 || geometry.getSRID() == BdrsCoordReferenceSystem.DEFAULT_SRID) {
+            return geometry;
+        }
+        SpatialUtil spatialUtil = spatialUtilFactory.getLocationUtil();
+        return spatialUtil.transform(geometry);
+    }
+
+    private Date add(Date date, int amount) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        calendar.add(calendarField, amount);
+        return calendar.getTime();
+    }
+
+    private static int compareInt(int i1, int i2) {
+        return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+    }
+
+    private static Integer getSpeciesId(Record record) {
+        return record.getSpecies() == null ? null : record.getSpecies().getId();
+    }
+
+    /**
+     * A group of candidates that are close in space and time. The existing
+     * records that may be duplicates of the candidates all intersect the
+     * envelope of the window, were made between the start and end of the
+     * window and have one of the species of the window.
+     */
+    public static class SearchWindow {
+        private Envelope envelope;
+        private Date from;
+        private Date until;
+        private Set<Integer> speciesIds = new HashSet<Integer>();
+        private boolean nullSpecies = false;
+        private int cellX;
+        private int cellY;
+        private int size = 0;
+
+        private SearchWindow(Candidate first) {
+            this.envelope = new Envelope(first.getSearchEnvelope());
+            this.from = first.from;
+            this.until = first.until;
+            this.cellX = first.cellX;
+            this.cellY = first.cellY;
+            add(first);
+        }
+
+        private boolean accepts(Candidate candidate) {
+            return size < MAX_WINDOW_SIZE && cellX == candidate.cellX && cellY == candidate.cellY &&
+                !candidate.from.after(until);
+        }
+
+        private void add(Candidate candidate) {
+            envelope.expandToInclude(candidate.getSearchEnvelope());
+            if (candidate.until.after(until)) {
+                until = candidate.until;
+            }
+            if (candidate.speciesId == null) {
+                nullSpecies = true;
+            } else {
+                speciesIds.add(candidate.speciesId);
+            }
+            size++;
+        }
+
+        /**
+         * @return the envelope in the default SRID that contains the buffers of the candidates.
+         */
+        public Envelope getEnvelope() {
+            return envelope;
+        }
+
+        /**
+         * @return the start of the earliest time window of the candidates.
+         */
+        public Date getFrom() {
+            return from;
+        }
+
+        /**
+         * @return the end of the latest time window of the candidates.
+         */
+        public Date getUntil() {
+            return until;
+        }
+
+        /**
+         * @return the ids of the species of the candidates.
+         */
+        public Set<Integer> getSpeciesIds() {
+            return speciesIds;
+        }
+
+        /**
+         * @return true if one or more of the candidates do not have a species.
+         */
+        public boolean hasNullSpecies() {
+            return nullSpecies;
+        }
+
+        /**
+         * @return the number of candidates in this window.
+         */
+        public int size() {
+            return size;
+        }
+    }
+
+    private class Candidate {
+        private Record record;
+        private Point point;
+        private double distance;
+        private Date from;
+        private Date until;
+        private Integer speciesId;
+        private int cellX;
+        private int cellY;
+
+        public Candidate(Record record, Point point) {
+            this.record = record;
+            this.point = point;
+            this.distance = geometryBuilder.getBufferDistanceInM(point, bufferMetre);
+            this.from = add(record.getWhen(), -extendTime);
+            this.until = add(record.getWhen(), extendTime);
+            this.speciesId = getSpeciesId(record);
+            this.cellX = (int) Math.floor(point.getX() / WINDOW_CELL_DEGREES);
+            this.cellY = (int) Math.floor(point.getY() / WINDOW_CELL_DEGREES);
+        }
+
+        public Envelope getSearchEnvelope() {
+            Envelope env = new Envelope(point.getCoordinate());
+            env.expandBy(distance);
+            return env;
+        }
+
+        public boolean isDuplicate(Target target) {
+            Record other = target.record;
+            if (other == record || (record.getId() != null && record.getId().equals(other.getId()))) {
+                return false;
+            }
+            if (other.getId() != null) {
+                if (excludeRecordIds.contains(other.getId())) {
+                    return false;
+                }
+                if (!includeRecordIds.isEmpty() && !includeRecordIds.contains(other.getId())) {
+                    return false;
+                }
+            }
+            Integer otherSpeciesId = getSpeciesId(other);
+            if (speciesId == null ? otherSpeciesId != null : !speciesId.equals(otherSpeciesId)) {
+                return false;
+            }
+            Date when = other.getWhen();
+            if (when.before(from) || when.after(until)) {
+                return false;
+            }
+            return point.distance(target.geometry) <= distance;
+        }
+    }
+
+    private static class Target {
+        private Record record;
+        private Geometry geometry;
+
+        public Target(Record record, Geometry geometry) {
+            this.record = record;
+            this.geometry = geometry;
+        }
+    }
+}
@@ -25,4 +25,9 @@ public class EmptyScrollableRecords implements ScrollableRecords {
     public void rewind() {
         // does nothing
     }
+
+    @Override
+    public String getContinuationToken() {
+        return null;
+    }
 }
@@ -2,34 +2,62 @@ package au.com.gaiaresources.bdrs.model.record.impl;
 
 import java.beans.PropertyDescriptor;
 import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
+import java.util.regex.Pattern;
 
 import javax.annotation.PostConstruct;
 import javax.persistence.Transient;
+import javax.transaction.Synchronization;
 
 import au.com.gaiaresources.bdrs.db.QueryCriteria;
 import au.com.gaiaresources.bdrs.model.record.*;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanQuery;
+import org.hibernate.Hibernate;
 import org.hibernate.Query;
+import org.hibernate.SQLQuery;
 import org.hibernate.Session;
+import org.hibernate.Transaction;
 import org.hibernate.annotations.ForeignKey;
+import org.hibernate.engine.FilterDefinition;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.impl.FilterImpl;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.Joinable;
+import org.hibernate.search.FullTextQuery;
+import org.hibernate.search.Search;
 import org.hibernate.type.CustomType;
+import org.hibernate.type.Type;
 import org.hibernatespatial.GeometryUserType;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
+import au.com.gaiaresources.bdrs.db.FilterManager;
 import au.com.gaiaresources.bdrs.db.QueryOperation;
+import au.com.gaiaresources.bdrs.db.ScrollableResults;
 import au.com.gaiaresources.bdrs.db.impl.AbstractDAOImpl;
 import au.com.gaiaresources.bdrs.db.impl.HqlQuery;
+import au.com.gaiaresources.bdrs.db.impl.KeysetPagination;
 import au.com.gaiaresources.bdrs.db.impl.PagedQueryResult;
 import au.com.gaiaresources.bdrs.db.impl.PaginationFilter;
 import au.com.gaiaresources.bdrs.db.impl.PersistentImpl;
 import au.com.gaiaresources.bdrs.db.impl.Predicate;
 import au.com.gaiaresources.bdrs.db.impl.QueryPaginator;
+import au.com.gaiaresources.bdrs.db.impl.SortOrder;
 import au.com.gaiaresources.bdrs.db.impl.SortingCriteria;
+import au.com.gaiaresources.bdrs.db.impl.StreamingScrollableResults;
 import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
+import au.com.gaiaresources.bdrs.model.facet.FacetCounts;
+import au.com.gaiaresources.bdrs.model.index.IndexingConstants;
 import au.com.gaiaresources.bdrs.model.location.Location;
 import au.com.gaiaresources.bdrs.model.metadata.Metadata;
 import au.com.gaiaresources.bdrs.model.metadata.MetadataDAO;
@@ -44,17 +72,53 @@ import au.com.gaiaresources.bdrs.model.taxa.TaxaService;
 import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
 import au.com.gaiaresources.bdrs.model.taxa.TypedAttributeValue;
 import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.search.SearchService;
 import au.com.gaiaresources.bdrs.service.db.DeleteCascadeHandler;
 import au.com.gaiaresources.bdrs.service.db.DeletionService;
 import au.com.gaiaresources.bdrs.servlet.RequestContextHolder;
 import au.com.gaiaresources.bdrs.util.Pair;
+import au.com.gaiaresources.bdrs.util.SpatialUtil;
+import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
 import au.com.gaiaresources.bdrs.util.StringUtils;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Point;
 
 @Repository
 public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
+    /**
+     * The indexed fields searched by {@link #searchRecordIds(String)}.
+     */
+    private static final String[] RECORD_SEARCH_FIELDS = {
+        "notes", "user.name", "species.scientificName", "species.commonName",
+        "attributes.stringValue", "attributes.species.scientificName", "attributes.species.commonName"
+    };
+    /**
+     * Shorter words only match whole words, the start of a short word matches
+     * too many words to search for.
+     */
+    private static final int MIN_SEARCH_PREFIX_LENGTH = 3;
+    private static final Pattern SEARCH_WORD_PATTERN = Pattern.compile("[\\p{L}\\p{N}]");
+    private static final int SEARCH_HIT_BATCH_SIZE = 1000;
+    /**
+     * The largest width or height in degrees of an intersect geometry that
+     * is transformed into the SRIDs of the records to use the spatial index.
+     * It is about the width of a zone of a projected system.
+     */
+    private static final double MAX_PREFILTER_DEGREES = 6;
+    /**
+     * The search hits are written to a temporary table of the transaction
+     * with the same name as the RecordSearchHit table, which it hides from
+     * the queries of the transaction. A temporary table is not written to the
+     * write ahead log, and it is dropped with its rows when the transaction
+     * completes rather than leaving dead rows in a shared table.
+     */
+    private static final String CREATE_SEARCH_HIT_TABLE = String.format(
+            "create temporary table %s (%s varchar(36) not null, %s integer not null) on commit drop",
+            RecordSearchHit.TABLE_NAME, RecordSearchHit.SEARCH_ID_COLUMN, RecordSearchHit.RECORD_ID_COLUMN);
+    private static final String SEARCH_ID_PARAM = "recordSearchId";
+
     private Logger log = Logger.getLogger(getClass());
 
     @Autowired
@@ -69,6 +133,12 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
     @Autowired
     private MetadataDAO metaDAO;
     
+    @Autowired
+    private SearchService searchService;
+
+    // the searches made by the transaction of each thread
+    private ThreadLocal<TransactionSearches> searches = new ThreadLocal<TransactionSearches>();
+    
     @PostConstruct
     public void init() throws Exception {
         delService.registerDeleteCascadeHandler(Record.class, new DeleteCascadeHandler() {
@@ -382,6 +452,102 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
         return new HashSet(q.list());
     }
 
+    @Override
+    public Map<Record, Set<Record>> getDuplicateRecords(Collection<Record> records, double bufferMetre, int calendarField, int extendTime, Integer[] excludeRecordIds, Integer[] includeRecordIds) {
+        DuplicateRecordFinder finder = new DuplicateRecordFinder(geometryBuilder, bufferMetre, calendarField, extendTime, excludeRecordIds, includeRecordIds);
+        finder.addCandidates(records);
+        List<DuplicateRecordFinder.SearchWindow> windows = finder.getSearchWindows();
+        if (windows.isEmpty()) {
+            return new HashMap<Record, Set<Record>>();
+        }
+
+        Date from = null;
+        Date until = null;
+        for (DuplicateRecordFinder.SearchWindow window : windows) {
+            from = from == null || window.getFrom().before(from) ? window.getFrom() : from;
+            until = until == null || window.getUntil().after(until) ? window.getUntil() : until;
+        }
+        // The geometries are compared in their stored SRID so that the 
+        // spatial index on the geometry can be used.
+        for (Integer srid : getRecordSrids(from, until)) {
+            SpatialUtil spatialUtil = srid == BdrsCoordReferenceSystem.DEFAULT_SRID ? null : new SpatialUtilFactory().getLocationUtil(srid);
+            for (DuplicateRecordFinder.SearchWindow window : windows) {
+                Geometry envelope = geometryBuilder.getFactory().toGeometry(window.getEnvelope());
+                if (spatialUtil != null) {
+                    envelope = spatialUtil.transform(envelope);
+                    if (envelope == null) {
+                        continue;
+                    }
+                    // the edges of the window may curve when transformed
+                    Envelope env = new Envelope(envelope.getEnvelopeInternal());
+                    env.expandBy(env.getWidth() * 0.01, env.getHeight() * 0.01);
+                    envelope = spatialUtil.getGeometryFactory().toGeometry(env);
+                }
+                envelope.setSRID(srid);
+                finder.addRecords(getRecordsInWindow(window, srid, envelope, excludeRecordIds, includeRecordIds));
+            }
+        }
+        return finder.getDuplicates();
+    }
+
+    @Override
+    public List<Set<Record>> getDuplicateRecordClusters(Collection<Record> records, double bufferMetre, int calendarField, int extendTime, Integer[] excludeRecordIds, Integer[] includeRecordIds) {
+        return DuplicateRecordFinder.getClusters(getDuplicateRecords(records, bufferMetre, calendarField, extendTime, excludeRecordIds, includeRecordIds));
+    }
+
+    /**
+     * Returns the SRIDs of the geometries of the records made in a time range.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Integer> getRecordSrids(Date from, Date until) {
+        SQLQuery q = getSession().createSQLQuery("select distinct st_srid(geom) as srid from record where geom is not null and when_date >= :timeFrom and when_date <= :timeUntil");
+        q.addScalar("srid", Hibernate.INTEGER);
+        q.setParameter("timeFrom", from);
+        q.setParameter("timeUntil", until);
+        return q.list();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Record> getRecordsInWindow(DuplicateRecordFinder.SearchWindow window, int srid, Geometry envelope, Integer[] excludeRecordIds, Integer[] includeRecordIds) {
+        StringBuilder sb = new StringBuilder("from Record r where");
+        sb.append(" r.when >= :timeFrom");
+        sb.append(" and r.when <= :timeUntil");
+        // the SRID is checked first so that geometries in other SRIDs are 
+        // never compared with the envelope
+        sb.append(" and st_srid(r.geometry) = :srid");
+        sb.append(" and st_intersects(r.geometry, :envelope) = true");
+        
+        if (window.getSpeciesIds().isEmpty()) {
+            sb.append(" and r.species is null");
+        } else if (window.hasNullSpecies()) {
+            sb.append(" and (r.species.id in (:speciesIds) or r.species is null)");
+        } else {
+            sb.append(" and r.species.id in (:speciesIds)");
+        }
+        if (excludeRecordIds != null && excludeRecordIds.length > 0) {
+            sb.append(" and r.id not in (:excludeRecordIds)");
+        }
+        if (includeRecordIds != null && includeRecordIds.length > 0) {
+            sb.append(" and r.id in (:includeRecordIds)");
+        }
+        
+        Query q = getSession().createQuery(sb.toString());
+        q.setParameter("timeFrom", window.getFrom());
+        q.setParameter("timeUntil", window.getUntil());
+        q.setParameter("srid", srid);
+        q.setParameter("envelope", envelope, new CustomType(GeometryUserType.class, null));
+        if (!window.getSpeciesIds().isEmpty()) {
+            q.setParameterList("speciesIds", window.getSpeciesIds());
+        }
+        if (excludeRecordIds != null && excludeRecordIds.length > 0) {
+            q.setParameterList("excludeRecordIds", excludeRecordIds);
+        }
+        if (includeRecordIds != null && includeRecordIds.length > 0) {
+            q.setParameterList("includeRecordIds", includeRecordIds);
+        }
+        return q.list();
+    }
+
     @Override
     public List<Record> getRecord(User user, int groupId, int surveyId,
             int taxonGroupId, Date startDate, Date endDate,
@@ -470,6 +636,56 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
         }
     }
 
+    @Override
+    public ScrollableRecords getScrollableRecords(RecordFilter recFilter, PaginationFilter filter) {
+        List<SortingCriteria> sortCriteria = filter.getSortingCriterias();
+        if (sortCriteria.isEmpty()) {
+            sortCriteria = Collections.singletonList(new SortingCriteria("record.when", SortOrder.DESCENDING));
+        }
+        
+        // Scrollable Records cannot have a max limit set.
+        Integer pageNumber = recFilter.getPageNumber();
+        Integer entriesPerPage = recFilter.getEntriesPerPage();
+        recFilter.setPageNumber(null);
+        recFilter.setEntriesPerPage(null);
+        
+        ScrollableRecords sr;
+        if (filter.isKeyset()) {
+            KeysetPagination keyset = new KeysetPagination(sortCriteria, "record", "record.id",
+                                                           filter.getContinuationToken(), filter.getMaxResult());
+            sr = new ScrollableRecordsImpl(recFilter.getRecordQuery(getSession(), keyset), keyset);
+        } else {
+            Query q = getRecordQuery(recFilter, sortCriteria);
+            q.setFirstResult(filter.getFirstResult());
+            q.setMaxResults(filter.getMaxResult());
+            sr = new ScrollableRecordsImpl(q);
+        }
+        
+        recFilter.setPageNumber(pageNumber);
+        recFilter.setEntriesPerPage(entriesPerPage);
+        return sr;
+    }
+
+    @Override
+    public ScrollableRecords getStreamingRecords(RecordFilter recFilter) {
+        List<SortingCriteria> sortCriteria = Collections.emptyList();
+        return getStreamingRecords(recFilter, sortCriteria, ScrollableRecords.RESULTS_BATCH_SIZE);
+    }
+
+    @Override
+    public ScrollableRecords getStreamingRecords(RecordFilter recFilter,
+            List<SortingCriteria> sortCriteria, int clearInterval) {
+        // The filter limits the query to the page size, the offset is applied here
+        // since the forward only cursor cannot skip to the first record of the page.
+        Query q = getRecordQuery(recFilter, sortCriteria);
+        Integer pageNumber = recFilter.getPageNumber();
+        Integer entriesPerPage = recFilter.getEntriesPerPage();
+        if (pageNumber != null && entriesPerPage != null) {
+            q.setFirstResult((pageNumber - 1) * entriesPerPage);
+        }
+        return new StreamingScrollableRecords(q, getSession(), clearInterval);
+    }
+
     private Query getRecordQuery(RecordFilter recFilter,
             List<SortingCriteria> sortCriteria) {
         Query q = recFilter.getRecordQuery(getSession(), sortCriteria);
@@ -543,7 +759,7 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
 
     @Override
     public Record saveRecord(Record r) {
-        return save(r);
+        return index(save(r));
     }
 
     @Override
@@ -565,7 +781,19 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
 
     @Override
     public Record updateRecord(Record r) {
-        return update(r);
+        return index(update(r));
+    }
+
+    /**
+     * Queues the record to be indexed when the transaction commits. Changes to
+     * the values of the attributes of a record do not modify the record, so
+     * they are not seen by the indexing event listeners.
+     */
+    private Record index(Record r) {
+        if (r.getId() != null) {
+            Search.getFullTextSession(getSession()).index(r);
+        }
+        return r;
     }
     
     @Override
@@ -625,6 +853,10 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
     
     @Override
     public void delete(Record record) {
+        // the record is deleted with a query which is not seen by the 
+        // interceptor, and its attributes are cleared first.
+        beforeDeleteByQuery(record);
+        
         // have to delete child records first
         Set<Record> children = record.getChildRecords();
         for (Record record2 : children) {
@@ -658,6 +890,8 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
         // Force the deletion of the comments before we delete the Record using a query.
         RequestContextHolder.getContext().getHibernate().flush();
 
+        // the query is not seen by the indexing event listeners either
+        Search.getFullTextSession(getSession()).purge(Record.class, record.getId());
         deleteByQuery(record);
     }
     
@@ -1143,22 +1377,208 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
         }
         return results;
     }
-    
+
+    /**
+     * Replaced by the conditions of the record filters enabled on the
+     * session, see {@link #createFilteredRecordQuery(Session, String)}.
+     */
+    private static final String RECORD_FILTERS = "$RECORD_FILTERS$";
+
+    private static final int FACET_SURVEY = 0;
+    private static final int FACET_USER = 1;
+    private static final int FACET_LOCATION = 2;
+    private static final int FACET_MONTH = 3;
+    private static final int FACET_CENSUS_METHOD_TYPE = 4;
+    private static final int FACET_VISIBILITY = 5;
+    private static final int FACET_TAXON_GROUP = 6;
+
+    /**
+     * Counts the records in each option of the facets that depend only on
+     * the record and its many to one associations, in one pass over the
+     * records. Each row is the count of one option of the facet in the
+     * facet column. HQL has no GROUPING SETS so this is native SQL, the
+     * record filters of the session are added by
+     * {@link #createFilteredRecordQuery(Session, String)}.
+     */
+    private static final String FACET_COUNT_QUERY =
+        "select case" +
+        " when grouping(r.INDICATOR_SURVEY_ID) = 0 then " + FACET_SURVEY +
+        " when grouping(r.INDICATOR_USER_ID) = 0 then " + FACET_USER +
+        " when grouping(r.LOCATION_ID) = 0 then " + FACET_LOCATION +
+        " when grouping(extract(year from r.WHEN_DATE)) = 0 then " + FACET_MONTH +
+        " when grouping(cm.TYPE) = 0 then " + FACET_CENSUS_METHOD_TYPE +
+        " when grouping(r.RECORD_VISIBILITY) = 0 then " + FACET_VISIBILITY +
+        " else " + FACET_TAXON_GROUP + " end as facet," +
+        " r.INDICATOR_SURVEY_ID as survey_id, r.INDICATOR_USER_ID as user_id, r.LOCATION_ID as location_id," +
+        " cast(extract(year from r.WHEN_DATE) as bigint) as year," +
+        " cast(extract(month from r.WHEN_DATE) as bigint) as month," +
+        " cm.TYPE as census_method_type, r.RECORD_VISIBILITY as visibility," +
+        " sp.TAXON_GROUP_ID as taxon_group_id, count(*) as record_count" +
+        " from RECORD r" +
+        " left join CENSUS_METHOD cm on cm.CENSUS_METHOD_ID = r.INDICATOR_CENSUSMETHOD_ID" +
+        " left join INDICATOR_SPECIES sp on sp.INDICATOR_SPECIES_ID = r.INDICATOR_SPECIES_ID" +
+        " where 1 = 1" + RECORD_FILTERS +
+        " group by grouping sets ((r.INDICATOR_SURVEY_ID), (r.INDICATOR_USER_ID), (r.LOCATION_ID)," +
+        " (extract(year from r.WHEN_DATE), extract(month from r.WHEN_DATE)), (cm.TYPE)," +
+        " (r.RECORD_VISIBILITY), (sp.TAXON_GROUP_ID))";
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.model.record.RecordDAO#getFacetCounts(org.hibernate.Session)
+     */
+    @Override
+    public FacetCounts getFacetCounts(Session sesh) {
+        if(sesh == null) {
+            sesh = super.getSessionFactory().getCurrentSession();
+        }
+        FacetCounts counts = new FacetCounts();
+
+        SQLQuery q = createFilteredRecordQuery(sesh, FACET_COUNT_QUERY);
+        q.addScalar("facet", Hibernate.INTEGER);
+        q.addScalar("survey_id", Hibernate.INTEGER);
+        q.addScalar("user_id", Hibernate.INTEGER);
+        q.addScalar("location_id", Hibernate.INTEGER);
+        q.addScalar("year", Hibernate.LONG);
+        q.addScalar("month", Hibernate.LONG);
+        q.addScalar("census_method_type", Hibernate.STRING);
+        q.addScalar("visibility", Hibernate.STRING);
+        q.addScalar("taxon_group_id", Hibernate.INTEGER);
+        q.addScalar("record_count", Hibernate.LONG);
+        for(Object rowObj : q.list()) {
+            Object[] row = (Object[])rowObj;
+            long count = (Long)row[9];
+            switch((Integer)row[0]) {
+            case FACET_SURVEY:
+                counts.addSurvey((Integer)row[1], count);
+                break;
+            case FACET_USER:
+                counts.addUser((Integer)row[2], count);
+                break;
+            case FACET_LOCATION:
+                counts.addLocation((Integer)row[3], count);
+                break;
+            case FACET_MONTH:
+                counts.addMonth((Long)row[4], (Long)row[5], count);
+                break;
+            case FACET_CENSUS_METHOD_TYPE:
+                counts.addCensusMethodType((String)row[6], count);
+                break;
+            case FACET_VISIBILITY:
+                counts.addVisibility(row[7] == null ? null : RecordVisibility.valueOf((String)row[7]), count);
+                break;
+            default:
+                // records without a species are not in a taxon group
+                if(row[8] != null) {
+                    counts.addTaxonGroup((Integer)row[8], count);
+                }
+                break;
+            }
+        }
+
+        // A record may also be in the taxon groups of the species of its
+        // attribute values. Only the groups the species of the record itself
+        // is not in are counted here, so a record is counted once per group.
+        StringBuilder b = new StringBuilder();
+        b.append(" select g.id, count(distinct r.id) from Record r");
+        b.append(" left join r.species recSpecies");
+        b.append(" join r.attributes av join av.species avSpecies join avSpecies.taxonGroup g");
+        b.append(" where recSpecies.id is null or recSpecies.taxonGroup.id <> g.id");
+        b.append(" group by g.id");
+        for(Object rowObj : sesh.createQuery(b.toString()).list()) {
+            Object[] row = (Object[])rowObj;
+            counts.addTaxonGroup((Integer)row[0], (Long)row[1]);
+        }
+        return counts;
+    }
+
+    /**
+     * Creates a native SQL query over the records that sees the same records
+     * as an HQL query in the session. The conditions of the record filters
+     * enabled on the session are appended to the SQL in place of
+     * {@link #RECORD_FILTERS}, the RECORD table must have the alias r.
+     */
+    private SQLQuery createFilteredRecordQuery(Session sesh, String sql) {
+        SessionImplementor si = (SessionImplementor)sesh;
+        Map<?, ?> enabledFilters = si.getEnabledFilters();
+        Joinable persister = (Joinable)si.getFactory().getEntityPersister(Record.class.getName());
+        // each condition is rendered as " and (...)" with the parameters
+        // named :filterName.parameterName
+        String filterSql = persister.filterFragment("r", enabledFilters);
+        SQLQuery q = sesh.createSQLQuery(sql.replace(RECORD_FILTERS, filterSql));
+        for(Object value : enabledFilters.values()) {
+            FilterImpl filter = (FilterImpl)value;
+            FilterDefinition def = filter.getFilterDefinition();
+            for(Object paramName : def.getParameterNames()) {
+                String name = filter.getName() + "." + paramName;
+                if(!filterSql.contains(":" + name)) {
+                    // the filter does not apply to records
+                    continue;
+                }
+                Object param = filter.getParameter((String)paramName);
+                Type type = def.getParameterType((String)paramName);
+                if(param instanceof Collection) {
+                    q.setParameterList(name, (Collection<?>)param, type);
+                } else {
+                    q.setParameter(name, param, type);
+                }
+            }
+        }
+        return q;
+    }
+
     @Override
     public List<Record> find(Integer[] mapLayerId, Geometry intersectGeom, Boolean isPrivate, Integer userId) {
+        Query q = createLayerQuery("select distinct rec from Record rec inner join rec.survey survey",
+                mapLayerId, intersectGeom, isPrivate, userId);
+        return (List<Record>)q.list();
+    }
+
+    @Override
+    public ScrollableResults<RecordProjection> getRecordProjections(Integer[] mapLayerId, Geometry intersectGeom,
+            Boolean isPrivate, Integer userId) {
+        Query q = createLayerQuery(RecordProjection.getSelect("rec", "sp") +
+                " from Record rec inner join rec.survey survey left join rec.species sp",
+                mapLayerId, intersectGeom, isPrivate, userId);
+        // only scalars are selected so there is nothing to clear from the session
+        return new StreamingScrollableResults<RecordProjection>(q, getSession(), 0, RecordProjection.ROW_MAPPER);
+    }
+
+    /**
+     * Creates the query for the records of map layers. The record must be
+     * aliased <code>rec</code> and its survey joined as <code>survey</code>.
+     */
+    private Query createLayerQuery(String selectFrom, Integer[] mapLayerId, Geometry intersectGeom,
+            Boolean isPrivate, Integer userId) {
         // To avoid having an empty array which will cause an exception during the query.
         if (mapLayerId.length == 0) {
             mapLayerId = new Integer[] { 0 };
         }
         
-        StringBuilder hb = new StringBuilder();
-        hb.append("select distinct rec from Record rec inner join rec.survey survey where survey.id in ");
+        List<Geometry> envelopes = null;
+        StringBuilder hb = new StringBuilder(selectFrom);
+        hb.append(" where survey.id in ");
         hb.append(" (select s.id from GeoMapLayer layer inner join layer.survey s where layer.id in (:layerIds)) ");
         if (intersectGeom != null) {
         	if (intersectGeom.getSRID() != BdrsCoordReferenceSystem.DEFAULT_SRID) {
         		throw new IllegalArgumentException("intersect geom must have srid = " + 
         				BdrsCoordReferenceSystem.DEFAULT_SRID +" but was " + intersectGeom.getSRID());
         	}
+            envelopes = getRecordSridEnvelopes(intersectGeom);
+            // The geometries are first compared with the envelope of the
+            // intersect geometry in their own SRID, which can use the
+            // spatial index, so only the records within the envelope are
+            // transformed for the exact test.
+            if (envelopes != null) {
+                hb.append(" and (");
+                for (int i = 0; i < envelopes.size(); i++) {
+                    if (i > 0) {
+                        hb.append(" or ");
+                    }
+                    hb.append("(st_srid(rec.geometry) = " + envelopes.get(i).getSRID());
+                    hb.append(" and st_intersects(rec.geometry, :envelope" + i + ") = true)");
+                }
+                hb.append(")");
+            }
             // use st_ prefix in spatial funcs for macos compatibility
             hb.append(" and st_intersects(:geom,  st_transform(rec.geometry," + BdrsCoordReferenceSystem.DEFAULT_SRID +")) = true");
         }
@@ -1193,7 +1613,62 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
         if (intersectGeom != null) {
             q.setParameter("geom", intersectGeom, GeometryUserType.TYPE);
         }
-        return (List<Record>)q.list();
+        if (envelopes != null) {
+            for (int i = 0; i < envelopes.size(); i++) {
+                q.setParameter("envelope" + i, envelopes.get(i), GeometryUserType.TYPE);
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Returns the envelope of a geometry in each SRID that records are stored
+     * in, the SRIDs of the {@link BdrsCoordReferenceSystem}s.
+     * @param geom a geometry in the default SRID.
+     * @return the envelopes, slightly enlarged since the edges of the
+     * envelope may curve when transformed, or null if the geometry is too
+     * large to be transformed accurately into the zones of a projected
+     * system. A large geometry contains most records anyway.
+     */
+    private List<Geometry> getRecordSridEnvelopes(Geometry geom) {
+        Envelope bounds = geom.getEnvelopeInternal();
+        if (bounds.getWidth() > MAX_PREFILTER_DEGREES || bounds.getHeight() > MAX_PREFILTER_DEGREES) {
+            return null;
+        }
+        List<Geometry> envelopes = new ArrayList<Geometry>();
+        SpatialUtilFactory spatialUtilFactory = new SpatialUtilFactory();
+        for (BdrsCoordReferenceSystem crs : BdrsCoordReferenceSystem.values()) {
+            if (crs.getSrid() == BdrsCoordReferenceSystem.NO_SPECIFIED_ZONE) {
+                continue;
+            }
+            Geometry envelope = geom.getEnvelope();
+            if (crs.getSrid() != geom.getSRID()) {
+                SpatialUtil spatialUtil = spatialUtilFactory.getLocationUtil(crs.getSrid());
+                envelope = spatialUtil.transform(envelope);
+                if (envelope == null) {
+                    // the records in this SRID could not be prefiltered
+                    return null;
+                }
+                Envelope env = new Envelope(envelope.getEnvelopeInternal());
+                env.expandBy(env.getWidth() * 0.01, env.getHeight() * 0.01);
+                envelope = spatialUtil.getGeometryFactory().toGeometry(env);
+            }
+            envelope.setSRID(crs.getSrid());
+            envelopes.add(envelope);
+        }
+        return envelopes;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.model.record.RecordDAO#getSurveyRecordState(java.lang.Integer)
+     */
+    @Override
+    public Pair<Long, Date> getSurveyRecordState(Integer surveyId) {
+        Query q = getSession().createQuery("select count(r), max(r.updatedAt) from Record r where r.survey.id = :surveyId");
+        q.setParameter("surveyId", surveyId);
+        Object[] row = (Object[]) q.uniqueResult();
+        return new Pair<Long, Date>((Long) row[0], (Date) row[1]);
     }
     
     public List<Record> getRecords(int count, int offset) {
@@ -1217,6 +1692,58 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
         q.setMaxResults(1);
         return (Record)q.uniqueResult();
     }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<String, Integer> getRecordIdsByClientID(Collection<String> clientIDs) {
+        Map<String, Integer> result = new HashMap<String, Integer>(clientIDs.size());
+        List<String> clientIDList = new ArrayList<String>(clientIDs);
+        Session sesh = super.getSessionFactory().getCurrentSession();
+        for (int i = 0; i < clientIDList.size(); i += MAX_IN_CLAUSE_SIZE) {
+            Query q = sesh.createQuery("select md.value, r.id from Record r join r.metadata md where md.key = :key and md.value in (:values) order by r.id");
+            q.setParameter("key", Metadata.RECORD_CLIENT_ID_KEY);
+            q.setParameterList("values", clientIDList.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, clientIDList.size())));
+            for (Object[] row : (List<Object[]>) q.list()) {
+                if (!result.containsKey(row[0])) {
+                    result.put((String) row[0], (Integer) row[1]);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Record> getRecordsWithAttributes(Collection<Integer> ids) {
+        return getRecordsWithAttributes(super.getSessionFactory().getCurrentSession(), ids);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<Record> getRecordsWithAttributes(Session sesh, Collection<Integer> ids) {
+        List<Record> result = new ArrayList<Record>(ids.size());
+        List<Integer> idList = new ArrayList<Integer>(ids);
+        for (int i = 0; i < idList.size(); i += MAX_IN_CLAUSE_SIZE) {
+            Query q = sesh.createQuery("select distinct r from Record r left join fetch r.metadata left join fetch r.attributes where r.id in (:ids)");
+            q.setParameterList("ids", idList.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, idList.size())));
+            result.addAll(q.list());
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<Integer, Integer> getCensusMethodIds(Session sesh, Collection<Integer> ids) {
+        Map<Integer, Integer> result = new HashMap<Integer, Integer>(ids.size());
+        List<Integer> idList = new ArrayList<Integer>(ids);
+        for (int i = 0; i < idList.size(); i += MAX_IN_CLAUSE_SIZE) {
+            Query q = sesh.createQuery("select r.id, cm.id from Record r left join r.censusMethod cm where r.id in (:ids)");
+            q.setParameterList("ids", idList.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, idList.size())));
+            for (Object[] row : (List<Object[]>) q.list()) {
+                result.put((Integer) row[0], (Integer) row[1]);
+            }
+        }
+        return result;
+    }
     
     @Override
     public PagedQueryResult<Record> getChildRecords(PaginationFilter filter, Integer parentId, Integer censusMethodId, User accessingUser) {
@@ -1343,8 +1870,32 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
                                                   List<Integer> species,
                                            Date startDate, Date endDate,
                                            int pageNumber, int entriesPerPage) {
+        return new ScrollableRecordsImpl(createRecordQuery("select r from Record r",
+                user, surveys, species, startDate, endDate, entriesPerPage));
+    }
 
-        HqlQuery hqlQuery = new HqlQuery("select r from Record r");
+    @Override
+    public ScrollableRecords getStreamingRecords(User user, List<Survey> surveys,
+                                                 List<Integer> species,
+                                                 Date startDate, Date endDate, int limit) {
+        Query query = createRecordQuery("select r from Record r",
+                user, surveys, species, startDate, endDate, limit);
+        return new StreamingScrollableRecords(query, getSession());
+    }
+
+    @Override
+    public ScrollableResults<RecordProjection> getRecordProjections(User user, List<Survey> surveys,
+                                                                   List<Integer> species,
+                                                                   Date startDate, Date endDate, int limit) {
+        Query query = createRecordQuery(RecordProjection.getSelect("r", "sp") + " from Record r left join r.species sp",
+                user, surveys, species, startDate, endDate, limit);
+        // only scalars are selected so there is nothing to clear from the session
+        return new StreamingScrollableResults<RecordProjection>(query, getSession(), 0, RecordProjection.ROW_MAPPER);
+    }
+
+    private Query createRecordQuery(String selectFrom, User user, List<Survey> surveys, List<Integer> species,
+                                    Date startDate, Date endDate, int limit) {
+        HqlQuery hqlQuery = new HqlQuery(selectFrom);
 
         if (user != null) {
             hqlQuery.and(Predicate.eq("r.user", user, "user"));
@@ -1366,11 +1917,11 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
 
         Query query = getSession().createQuery(hqlQuery.getQueryString());
 
-        query.setMaxResults(entriesPerPage);
+        query.setMaxResults(limit);
 
         hqlQuery.applyNamedArgsToQuery(query);
 
-        return new ScrollableRecordsImpl(query);
+        return query;
     }
 
     @Override
@@ -1383,6 +1934,174 @@ public class RecordDAOImpl extends AbstractDAOImpl implements RecordDAO {
         hqlQuery.applyNamedArgsToQuery(query);
         return new ScrollableRecordsImpl(query);
     }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Integer> searchRecordIds(String searchText) {
+        String searchTerm = toSearchTerm(searchText);
+        Session sesh = getSession();
+        if (searchTerm == null || FilterManager.getFilteredPortalId(sesh) == null) {
+            return null;
+        }
+        Analyzer analyzer = Search.getFullTextSession(sesh).getSearchFactory().getAnalyzer(IndexingConstants.FULL_TEXT_ANALYZER);
+        try {
+            // the records of the portal are not searchable until its index has been built
+            FullTextQuery portalQuery = searchService.getQuery(sesh, RECORD_SEARCH_FIELDS, analyzer, "", Record.class);
+            if (portalQuery.setMaxResults(1).getResultSize() == 0) {
+                return null;
+            }
+
+            FullTextQuery query = searchService.getQuery(sesh, RECORD_SEARCH_FIELDS, analyzer, searchTerm, Record.class);
+            query.setProjection(FullTextQuery.ID);
+            List<Object[]> rows = query.list();
+            List<Integer> ids = new ArrayList<Integer>(rows.size());
+            for (Object[] row : rows) {
+                ids.add((Integer) row[0]);
+            }
+            return ids;
+        } catch (ParseException pe) {
+            log.warn("Unable to search the record index for : " + searchText, pe);
+            return null;
+        } catch (BooleanQuery.TooManyClauses tmc) {
+            // a short word that is the start of too many words
+            return null;
+        }
+    }
+
+    @Override
+    public Predicate createSearchPredicate(String recordIdExpression, String searchText) {
+        String searchTerm = toSearchTerm(searchText);
+        if (searchTerm == null) {
+            return null;
+        }
+        Session sesh = getSession();
+        Transaction tx = sesh.getTransaction();
+        if (!tx.isActive()) {
+            throw new IllegalStateException("The search hits can only be written within a transaction.");
+        }
+        TransactionSearches txSearches = searches.get();
+        if (txSearches == null || txSearches.tx != tx) {
+            txSearches = new TransactionSearches(tx);
+            searches.set(txSearches);
+            tx.registerSynchronization(txSearches);
+        }
+        if (!txSearches.searchIds.containsKey(searchTerm)) {
+            List<Integer> ids = searchRecordIds(searchText);
+            String searchId = null;
+            if (ids != null) {
+                searchId = UUID.randomUUID().toString();
+                boolean createTable = !txSearches.tableCreated;
+                txSearches.tableCreated = true;
+                insertSearchHits(sesh, searchId, ids, createTable);
+            }
+            txSearches.searchIds.put(searchTerm, searchId);
+        }
+        String searchId = txSearches.searchIds.get(searchTerm);
+        if (searchId == null) {
+            return null;
+        }
+        return Predicate.expr(recordIdExpression + " in (select hit.id.recordId from RecordSearchHit hit"
+                + " where hit.id.searchId = :" + SEARCH_ID_PARAM + ")", searchId, SEARCH_ID_PARAM);
+    }
+
+    private void insertSearchHits(Session sesh, final String searchId, final List<Integer> recordIds,
+            final boolean createTable) {
+        sesh.doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                if (createTable) {
+                    Statement create = connection.createStatement();
+                    try {
+                        create.execute(CREATE_SEARCH_HIT_TABLE);
+                    } finally {
+                        create.close();
+                    }
+                }
+                PreparedStatement insert = connection.prepareStatement(String.format(
+                        "insert into %s (%s, %s) values (?, ?)", RecordSearchHit.TABLE_NAME,
+                        RecordSearchHit.SEARCH_ID_COLUMN, RecordSearchHit.RECORD_ID_COLUMN));
+                try {
+                    int batched = 0;
+                    for (Integer recordId : recordIds) {
+                        insert.setString(1, searchId);
+                        insert.setInt(2, recordId);
+                        insert.addBatch();
+                        if (++batched == SEARCH_HIT_BATCH_SIZE) {
+                            insert.executeBatch();
+                            batched = 0;
+                        }
+                    }
+                    if (batched > 0) {
+                        insert.executeBatch();
+                    }
+                } finally {
+                    insert.close();
+                }
+                // a temporary table is never analyzed automatically, the
+                // planner needs the number of hits to choose the join.
+                Statement analyze = connection.createStatement();
+                try {
+                    analyze.execute("analyze " + RecordSearchHit.TABLE_NAME);
+                } finally {
+                    analyze.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * The searches made by a transaction, keyed by search term. The value is
+     * the id of the search hits, or null if the index could not answer the
+     * search. The hits are dropped with the temporary table when the
+     * transaction completes.
+     */
+    private class TransactionSearches implements Synchronization {
+        private Transaction tx;
+        private Map<String, String> searchIds = new HashMap<String, String>();
+        private boolean tableCreated = false;
+
+        public TransactionSearches(Transaction tx) {
+            this.tx = tx;
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (searches.get() == this) {
+                searches.remove();
+            }
+        }
+    }
+
+    /**
+     * Creates a query that requires each word of the search text to match one
+     * of the search fields, as a word or the start of a word.
+     * @return the query or null if the search text contains no words.
+     */
+    private String toSearchTerm(String searchText) {
+        if (searchText == null) {
+            return null;
+        }
+        StringBuilder term = new StringBuilder();
+        for (String word : searchText.trim().split("\\s+")) {
+            if (!SEARCH_WORD_PATTERN.matcher(word).find()) {
+                continue;
+            }
+            String escaped = QueryParser.escape(word.toLowerCase());
+            term.append(" +(");
+            for (String field : RECORD_SEARCH_FIELDS) {
+                term.append(' ').append(field).append(':').append(escaped);
+                if (word.length() >= MIN_SEARCH_PREFIX_LENGTH) {
+                    term.append(' ').append(field).append(':').append(escaped).append('*');
+                }
+            }
+            term.append(')');
+        }
+        return term.length() == 0 ? null : term.toString();
+    }
 }
 
 
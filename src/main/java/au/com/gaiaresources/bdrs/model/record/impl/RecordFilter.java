@@ -7,6 +7,7 @@ import java.util.Map;
 import org.hibernate.Query;
 import org.hibernate.Session;
 
+import au.com.gaiaresources.bdrs.db.impl.KeysetPagination;
 import au.com.gaiaresources.bdrs.db.impl.SortingCriteria;
 import au.com.gaiaresources.bdrs.model.method.CensusMethod;
 import au.com.gaiaresources.bdrs.model.record.Record;
@@ -40,6 +41,17 @@ public interface RecordFilter {
     public Query getRecordQuery(Session session,
             List<SortingCriteria> sortCriteria);
 
+    /**
+     * Get a query for a single page of {@link Record} objects based on all set
+     * parameters. The page starts after the position of the continuation token
+     * of the keyset and contains up to one more record than the page size, so
+     * that the caller can tell if there is a next page.
+     * @param session The {@link Session} to create the query in.
+     * @param keyset The ordering and position of the page.
+     * @return A {@link Query} object that can be used to get results.
+     */
+    public Query getRecordQuery(Session session, KeysetPagination keyset);
+
     /**
      * Set the {@link User} who is making the query.  This will filter records based on 
      * record visibility.
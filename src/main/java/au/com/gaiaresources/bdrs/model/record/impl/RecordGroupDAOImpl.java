@@ -9,6 +9,12 @@ import org.hibernate.Query;
 import org.hibernate.Session;
 import org.springframework.stereotype.Repository;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Created with IntelliJ IDEA.
  * User: aaron
@@ -38,6 +44,25 @@ public class RecordGroupDAOImpl extends AbstractDAOImpl implements RecordGroupDA
         return (RecordGroup)q.uniqueResult();
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<String, Integer> getRecordGroupIdsByClientID(Collection<String> clientIDs) {
+        Map<String, Integer> result = new HashMap<String, Integer>(clientIDs.size());
+        List<String> clientIDList = new ArrayList<String>(clientIDs);
+        Session sesh = super.getSessionFactory().getCurrentSession();
+        for (int i = 0; i < clientIDList.size(); i += MAX_IN_CLAUSE_SIZE) {
+            Query q = sesh.createQuery("select md.value, r.id from RecordGroup r join r.metadata md where md.key = :key and md.value in (:values) order by r.id");
+            q.setParameter("key", Metadata.RECORD_GROUP_CLIENT_ID_KEY);
+            q.setParameterList("values", clientIDList.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, clientIDList.size())));
+            for (Object[] row : (List<Object[]>) q.list()) {
+                if (!result.containsKey(row[0])) {
+                    result.put((String) row[0], (Integer) row[1]);
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
     public  Metadata getRecordGroupMetadataForKey(RecordGroup recordGroup, String metadataKey){
         for(Metadata md: recordGroup.getMetadata()){
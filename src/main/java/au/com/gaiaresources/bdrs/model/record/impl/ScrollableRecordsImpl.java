@@ -3,6 +3,7 @@ package au.com.gaiaresources.bdrs.model.record.impl;
 import org.hibernate.Query;
 import org.hibernate.ScrollableResults;
 
+import au.com.gaiaresources.bdrs.db.impl.KeysetPagination;
 import au.com.gaiaresources.bdrs.db.impl.ScrollableResultsImpl;
 import au.com.gaiaresources.bdrs.model.record.Record;
 import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
@@ -28,4 +29,13 @@ public class ScrollableRecordsImpl extends ScrollableResultsImpl<Record> impleme
         super(query, pageNumber, entriesPerPage);
     }
 
+    /**
+     * Creates a new instance for a page of keyset pagination.
+     * @param query the query for a page of Records created with the keyset.
+     * @param keyset the keyset pagination of the query.
+     */
+    public ScrollableRecordsImpl(Query query, KeysetPagination keyset) {
+        super(query, keyset);
+    }
+
 }
@@ -34,4 +34,9 @@ public class ScrollableRecordsList implements ScrollableRecords {
     public void rewind() {
         currentIndex = 0;
     }
+
+    @Override
+    public String getContinuationToken() {
+        return null;
+    }
 }
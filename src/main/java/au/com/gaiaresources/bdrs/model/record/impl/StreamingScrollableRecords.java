@@ -0,0 +1,36 @@
+package au.com.gaiaresources.bdrs.model.record.impl;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+
+import au.com.gaiaresources.bdrs.db.impl.StreamingScrollableResults;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
+
+/**
+ * Forward only implementation of the {@link ScrollableRecords} for exports.
+ * @see StreamingScrollableResults
+ */
+public class StreamingScrollableRecords extends StreamingScrollableResults<Record> implements ScrollableRecords {
+
+    /**
+     * Creates a new instance that clears the session every
+     * {@link ScrollableRecords#RESULTS_BATCH_SIZE} records.
+     * @param query the query for a set of Records.
+     * @param session the session of the query.
+     */
+    public StreamingScrollableRecords(Query query, Session session) {
+        super(query, session);
+    }
+
+    /**
+     * Creates a new instance.
+     * @param query the query for a set of Records.
+     * @param session the session of the query.
+     * @param clearInterval the number of records read between each clear of
+     * the session, or 0 to never clear the session.
+     */
+    public StreamingScrollableRecords(Query query, Session session, int clearInterval) {
+        super(query, session, clearInterval);
+    }
+}
@@ -22,6 +22,7 @@ import org.hibernate.annotations.Index;
 import org.hibernate.annotations.ParamDef;
 import org.hibernate.search.annotations.Analyzer;
 import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.IndexedEmbedded;
 import org.hibernate.search.annotations.Store;
 import org.springframework.util.StringUtils;
 
@@ -161,6 +162,7 @@ public class AttributeValue extends AbstractTypedAttributeValue implements Typed
     @ManyToOne
     @JoinColumn(name = "indicator_species_id")
     @ForeignKey(name = "attribute_value_indicator_species_fk")
+    @IndexedEmbedded(depth = 1)
     public IndicatorSpecies getSpecies() {
     	return this.species;
     }
@@ -12,6 +12,7 @@ import org.hibernate.Session;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public interface TaxaDAO extends TransactionDAO {
@@ -164,6 +165,7 @@ public interface TaxaDAO extends TransactionDAO {
      */
     List<IndicatorSpecies> getIndicatorSpeciesByNameSearch(String name, boolean includeFieldSpecies);
     
+    
     /**
 	 * Search for the indicator species by scientific name or common name. 
      * 
@@ -243,6 +245,34 @@ public interface TaxaDAO extends TransactionDAO {
      */
     List<IndicatorSpecies> getIndicatorSpeciesByScientificName(Session sesh, Collection<Survey> surveys, String scientificName);
 
+    /**
+     * Performs a case insensitive exact match on the indicator species within one of the surveys
+     * for each of the common names using the session provided. The result is the same as calling
+     * {@link #getIndicatorSpeciesByCommonName(Session, Collection, String)} for each name but the
+     * names are matched in blocks rather than one query at a time.
+     *
+     * @param sesh the session to be used to perform the query.
+     * @param surveys the candidate surveys containing the species.
+     * @param commonNames the common names of the indicator species to be retrieved.
+     * @return the matching indicator species keyed by the name as it was given. Names without
+     * a match are not included.
+     */
+    Map<String, List<IndicatorSpecies>> getIndicatorSpeciesByCommonNames(Session sesh, Collection<Survey> surveys, Collection<String> commonNames);
+
+    /**
+     * Performs a case insensitive exact match on the indicator species within one of the surveys
+     * for each of the scientific names using the session provided. The result is the same as calling
+     * {@link #getIndicatorSpeciesByScientificName(Session, Collection, String)} for each name but the
+     * names are matched in blocks rather than one query at a time.
+     *
+     * @param sesh the session to be used to perform the query.
+     * @param surveys the candidate surveys containing the species.
+     * @param scientificNames the scientific names of the indicator species to be retrieved.
+     * @return the matching indicator species keyed by the name as it was given. Names without
+     * a match are not included.
+     */
+    Map<String, List<IndicatorSpecies>> getIndicatorSpeciesByScientificNames(Session sesh, Collection<Survey> surveys, Collection<String> scientificNames);
+
     /**
      * Refreshes the IndicatorSpecies object
      * @param s IndicatorSpecies to refresh.
@@ -467,6 +497,28 @@ public interface TaxaDAO extends TransactionDAO {
      */
     List<IndicatorSpecies> getIndicatorSpeciesBySurvey(Session sesh, Survey survey, int start, int maxSize, List<Survey> excludeSpeciesInSurveys);
 
+    /**
+     * Returns the ids of the indicator species for the specified survey, in
+     * ascending order, excluding the field species. If the survey does not
+     * have any attached indicator species, the ids of all indicator species
+     * are returned.
+     * @param sesh the session to use to retrieve the ids, may be null.
+     * @param survey the survey associated with the indicator species.
+     * @return the ids of the indicator species of the survey.
+     */
+    List<Integer> getIndicatorSpeciesIdsBySurvey(Session sesh, Survey survey);
+
+    /**
+     * Returns the indicator species with the specified ids with their taxon
+     * group and secondary groups, and optionally their profile items, fetched
+     * by joins rather than loaded for each species.
+     * @param sesh the session to use to retrieve the IndicatorSpecies, may be null.
+     * @param ids the ids of the indicator species.
+     * @param fetchInfoItems true if the profile items should also be fetched.
+     * @return the indicator species ordered by id.
+     */
+    List<IndicatorSpecies> getIndicatorSpeciesWithGroups(Session sesh, Collection<Integer> ids, boolean fetchInfoItems);
+
     /**
      * Get IndicatorSpecies by scientific name. Case sensitive.
      * Wild cards not allowed. Requires exact match.
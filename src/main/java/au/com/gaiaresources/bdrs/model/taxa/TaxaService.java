@@ -140,6 +140,28 @@ public interface TaxaService {
 
     List<? extends IndicatorSpecies> getIndicatorSpeciesByNameSearch(String name);
 
+    /**
+     * Search for the indicator species by scientific name or common name.
+     * The search is answered by the taxon name index of the portal when it
+     * can be, otherwise as {@link TaxaDAO#getIndicatorSpeciesByNameSearch(String, boolean)}.
+     * 
+     * Exact matches are returned first, then names starting with the search
+     * and then names containing it.
+     * 
+     * @param name Name to search for.
+     * @param includeFieldSpecies If true will return the special 'Field Species' in the query.
+     * @return List of indicator species that match the search string.
+     */
+    List<IndicatorSpecies> getIndicatorSpeciesByNameSearch(String name, boolean includeFieldSpecies);
+
+    /**
+     * Get taxon groups by name, using the taxon name index of the portal
+     * when it can answer the search, otherwise as {@link TaxaDAO#getTaxonGroupSearch(String)}.
+     * @param nameFragment Name fragment to search for.
+     * @return List of matching TaxonGroups
+     */
+    List<TaxonGroup> getTaxonGroupSearch(String nameFragment);
+
     Map<TaxonGroup, List<IndicatorSpecies>> getGroupedIndicatorSpecies();
 
     Map<TaxonGroup, List<IndicatorSpecies>> getGroupedIndicatorSpecies(Region region);
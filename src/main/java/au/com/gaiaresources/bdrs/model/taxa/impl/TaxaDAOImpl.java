@@ -41,6 +41,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -253,8 +254,7 @@ public class TaxaDAOImpl extends AbstractDAOImpl implements TaxaDAO {
      */
     @Override
     public List<TaxonGroup> getTaxonGroupSearch(String nameFragment) {
-        return this.find("from TaxonGroup g where UPPER(name) like UPPER('%"
-                + nameFragment + "%')");
+        return this.find("from TaxonGroup g where UPPER(name) like UPPER(?)", "%" + nameFragment + "%");
     }
 
     /**
@@ -679,6 +679,43 @@ public class TaxaDAOImpl extends AbstractDAOImpl implements TaxaDAO {
         return q.list();
     }
 
+    @Override
+    public List<Integer> getIndicatorSpeciesIdsBySurvey(Session sesh, Survey survey) {
+        if (sesh == null) {
+            sesh = getSession();
+        }
+        Query q;
+        if (countSpeciesForSurvey(survey) == 0) {
+            q = sesh.createQuery("select sp.id from IndicatorSpecies sp where sp != :fieldSpecies" + ORDER_SPECIES_BY_ID);
+        } else {
+            q = sesh.createQuery("select sp.id from Survey surv join surv.species sp where surv = :survey and sp != :fieldSpecies" + ORDER_SPECIES_BY_ID);
+            q.setParameter("survey", survey);
+        }
+        q.setParameter("fieldSpecies", taxaService.getFieldSpecies());
+        return q.list();
+    }
+
+    @Override
+    public List<IndicatorSpecies> getIndicatorSpeciesWithGroups(Session sesh, Collection<Integer> ids, boolean fetchInfoItems) {
+        if (ids.isEmpty()) {
+            return new ArrayList<IndicatorSpecies>(0);
+        }
+        if (sesh == null) {
+            sesh = getSession();
+        }
+        // two bags cannot be fetched at once, the profile items are fetched
+        // into the same instances by a second query
+        Query q = sesh.createQuery("select distinct sp from IndicatorSpecies sp left join fetch sp.taxonGroup left join fetch sp.secondaryGroups where sp.id in (:ids)" + ORDER_SPECIES_BY_ID);
+        q.setParameterList("ids", ids);
+        List<IndicatorSpecies> result = q.list();
+        if (fetchInfoItems) {
+            q = sesh.createQuery("select distinct sp from IndicatorSpecies sp left join fetch sp.infoItems where sp.id in (:ids)");
+            q.setParameterList("ids", ids);
+            q.list();
+        }
+        return result;
+    }
+
     @Override
     public List<IndicatorSpecies> getIndicatorSpecies(Region region) {
         return this.find(
@@ -797,6 +834,73 @@ public class TaxaDAOImpl extends AbstractDAOImpl implements TaxaDAO {
         return speciesList;
     }
 
+    @Override
+    public Map<String, List<IndicatorSpecies>> getIndicatorSpeciesByCommonNames(Session sesh, Collection<Survey> surveys, Collection<String> commonNames) {
+        return getIndicatorSpeciesByNames(sesh, surveys, commonNames, false);
+    }
+
+    @Override
+    public Map<String, List<IndicatorSpecies>> getIndicatorSpeciesByScientificNames(Session sesh, Collection<Survey> surveys, Collection<String> scientificNames) {
+        return getIndicatorSpeciesByNames(sesh, surveys, scientificNames, true);
+    }
+
+    private Map<String, List<IndicatorSpecies>> getIndicatorSpeciesByNames(Session sesh, Collection<Survey> surveys,
+            Collection<String> names, boolean scientific) {
+        String property = scientific ? "scientificName" : "commonName";
+        String allSpeciesQuery = String.format("from IndicatorSpecies i where UPPER(i.%s) in (:names)", property);
+        String surveySpeciesQuery = String.format("select i from Survey s left join s.species i where UPPER(i.%s) in (:names) and s.id = :surveyId", property);
+
+        // The names as they were given by their upper case form.
+        Map<String, List<String>> namesByKey = new HashMap<String, List<String>>();
+        for (String name : names) {
+            String key = name.toUpperCase();
+            List<String> given = namesByKey.get(key);
+            if (given == null) {
+                given = new ArrayList<String>(1);
+                namesByKey.put(key, given);
+            }
+            if (!given.contains(name)) {
+                given.add(name);
+            }
+        }
+        List<String> keys = new ArrayList<String>(namesByKey.keySet());
+
+        if(sesh == null) {
+            sesh = getSession();
+        }
+        Map<String, List<IndicatorSpecies>> result = new HashMap<String, List<IndicatorSpecies>>();
+        for(Survey survey : surveys) {
+            for (int i = 0; i < keys.size(); i += MAX_IN_CLAUSE_SIZE) {
+                Query q = null;
+                if(survey.getSpecies().isEmpty()) {
+                    // All species
+                    q = sesh.createQuery(allSpeciesQuery);
+                } else {
+                    // Species Subset
+                    q = sesh.createQuery(surveySpeciesQuery);
+                    q.setParameter("surveyId", survey.getId());
+                }
+                q.setParameterList("names", keys.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, keys.size())));
+
+                for (IndicatorSpecies species : (List<IndicatorSpecies>) q.list()) {
+                    String value = scientific ? species.getScientificName() : species.getCommonName();
+                    List<String> given = value == null ? null : namesByKey.get(value.toUpperCase());
+                    if (given != null) {
+                        for (String name : given) {
+                            List<IndicatorSpecies> speciesList = result.get(name);
+                            if (speciesList == null) {
+                                speciesList = new ArrayList<IndicatorSpecies>(1);
+                                result.put(name, speciesList);
+                            }
+                            speciesList.add(species);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
     public IndicatorSpecies getIndicatorSpeciesByCommonName(Session sesh,
             String commonName) {
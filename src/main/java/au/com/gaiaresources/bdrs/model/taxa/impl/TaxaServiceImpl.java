@@ -12,6 +12,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import au.com.gaiaresources.bdrs.model.region.Region;
+import au.com.gaiaresources.bdrs.db.impl.PersistentImpl;
 import au.com.gaiaresources.bdrs.model.region.RegionDAO;
 import au.com.gaiaresources.bdrs.model.taxa.Attribute;
 import au.com.gaiaresources.bdrs.model.taxa.AttributeDAO;
@@ -25,6 +26,7 @@ import au.com.gaiaresources.bdrs.model.taxa.TaxaService;
 import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
 import au.com.gaiaresources.bdrs.model.taxa.TaxonRank;
 import au.com.gaiaresources.bdrs.model.taxa.TypedAttributeValue;
+import au.com.gaiaresources.bdrs.service.taxonomy.TaxonNameIndex;
 
 /**
  * Implementation of <code>TaxaService</code>.
@@ -43,6 +45,8 @@ public class TaxaServiceImpl implements TaxaService {
     private SpeciesProfileDAO speciesProfileDAO;
     @Autowired
     private AttributeDAO attributeDAO;  
+    @Autowired
+    private TaxonNameIndex nameIndex;
     
     
     @Override
@@ -231,9 +235,52 @@ public class TaxaServiceImpl implements TaxaService {
 	@Override
 	public List<? extends IndicatorSpecies> getIndicatorSpeciesByNameSearch(
 			String name) {
-		return taxaDAO.getIndicatorSpeciesByNameSearch(name, false);
+		return getIndicatorSpeciesByNameSearch(name, false);
 	}
 
+    @Override
+    public List<IndicatorSpecies> getIndicatorSpeciesByNameSearch(String name, boolean includeFieldSpecies) {
+        Session sesh = taxaDAO.getSessionFactory().getCurrentSession();
+        Integer fieldSpeciesId = includeFieldSpecies ? null : getFieldSpecies(sesh).getId();
+        List<Integer> ids = nameIndex.searchSpecies(sesh, name, fieldSpeciesId, TaxaDAO.AUTOCOMPLETE_RESULTS_COUNT);
+        if (ids != null) {
+            return getInOrder(sesh, IndicatorSpecies.class, ids);
+        }
+        // not filtered by portal or the name contains wild cards the index does not support
+        return taxaDAO.getIndicatorSpeciesByNameSearch(name, includeFieldSpecies);
+    }
+
+    @Override
+    public List<TaxonGroup> getTaxonGroupSearch(String nameFragment) {
+        Session sesh = taxaDAO.getSessionFactory().getCurrentSession();
+        List<Integer> ids = nameIndex.searchTaxonGroups(sesh, nameFragment, Integer.MAX_VALUE);
+        if (ids != null) {
+            return getInOrder(sesh, TaxonGroup.class, ids);
+        }
+        return taxaDAO.getTaxonGroupSearch(nameFragment);
+    }
+
+    /**
+     * Gets the instances with the ids, in the order of the ids.
+     */
+    private <T extends PersistentImpl> List<T> getInOrder(Session sesh, Class<T> clazz, List<Integer> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<T>(0);
+        }
+        Map<Integer, T> byId = new HashMap<Integer, T>(ids.size());
+        for (T instance : taxaDAO.getByIDs(sesh, clazz, ids)) {
+            byId.put(instance.getId(), instance);
+        }
+        List<T> result = new ArrayList<T>(ids.size());
+        for (Integer id : ids) {
+            T instance = byId.get(id);
+            if (instance != null) {
+                result.add(instance);
+            }
+        }
+        return result;
+    }
+
 	@Override
 	public SpeciesProfile createSpeciesProfile(String header, String content, String type) {
 		return speciesProfileDAO.createSpeciesProfile(header, content, type);
@@ -6,7 +6,6 @@ import au.com.gaiaresources.bdrs.json.JSONArray;
 
 import au.com.gaiaresources.bdrs.model.taxa.*;
 import org.apache.log4j.Logger;
-import org.hibernate.Session;
 
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.io.ParseException;
@@ -19,7 +18,6 @@ import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
 import au.com.gaiaresources.bdrs.model.record.impl.AdvancedRecordFilter;
 import au.com.gaiaresources.bdrs.model.record.impl.RecordFilter;
 import au.com.gaiaresources.bdrs.model.user.User;
-import au.com.gaiaresources.bdrs.servlet.RequestContextHolder;
 
 /**
  * Represents a facade over the {@link RecordDAO} ensuring that any data
@@ -83,10 +81,9 @@ public class PyRecordDAO extends AbstractPyDAO {
         filter.setSurveyPk(surveyId);
         filter.setAccessor(accessor);
 
-        ScrollableRecords sr = recordDAO.getScrollableRecords(filter);
+        // the session is cleared as the records are streamed
+        ScrollableRecords sr = recordDAO.getStreamingRecords(filter);
 
-        int count = 0;
-        Session sesh = RequestContextHolder.getContext().getHibernate();
         JSONArray array = new JSONArray();
         while (sr.hasMoreElements()) {
             Record rec = sr.nextElement();
@@ -107,11 +104,6 @@ public class PyRecordDAO extends AbstractPyDAO {
             }
 
             array.add(recFlatten);
-
-            // evict to ensure garbage collection
-            if (++count % ScrollableRecords.RESULTS_BATCH_SIZE == 0) {
-                sesh.clear();
-            }
         }
         return array.toString();
     }
@@ -136,7 +128,7 @@ public class PyRecordDAO extends AbstractPyDAO {
         filter.setSurveyPk(surveyId);
         filter.setAccessor(accessor);
 
-        return new PyScrollableRecords(recordDAO.getScrollableRecords(filter),
+        return new PyScrollableRecords(recordDAO.getStreamingRecords(filter),
                 includeTaxon, includeLocation);
     }
 
@@ -164,7 +156,7 @@ public class PyRecordDAO extends AbstractPyDAO {
         filter.setSurveyPk(surveyId);
         filter.setAccessor(accessor);
 
-        return new PyScrollableRecords(recordDAO.getScrollableRecords(filter),
+        return new PyScrollableRecords(recordDAO.getStreamingRecords(filter),
                 includeTaxon, includeLocation, includeAttributeValues);
     }
 
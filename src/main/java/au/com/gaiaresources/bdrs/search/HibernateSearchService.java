@@ -9,6 +9,7 @@ import au.com.gaiaresources.bdrs.model.index.IndexUtil;
 import au.com.gaiaresources.bdrs.model.portal.Portal;
 import au.com.gaiaresources.bdrs.model.portal.PortalDAO;
 import au.com.gaiaresources.bdrs.search.criteriaBuilder.IndicatorSpeciesHibernateSearchCriteriaBuilder;
+import au.com.gaiaresources.bdrs.search.criteriaBuilder.RecordHibernateSearchCriteriaBuilder;
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -23,10 +24,12 @@ import org.hibernate.search.Search;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Service that implements a Hibernate Search Service.  Handles the creation and  
@@ -41,7 +44,8 @@ public class HibernateSearchService implements SearchService {
     private static Map<Class<?>, HibernateSearchCriteriaBuilder> INDEX_CANDIDATE_MAP;
     static {
         HibernateSearchCriteriaBuilder[] builders = {
-            new IndicatorSpeciesHibernateSearchCriteriaBuilder()
+            new IndicatorSpeciesHibernateSearchCriteriaBuilder(),
+            new RecordHibernateSearchCriteriaBuilder()
         };
 
         Map<Class<?>, HibernateSearchCriteriaBuilder> temp = new HashMap<Class<?>, HibernateSearchCriteriaBuilder>(2);
@@ -53,11 +57,33 @@ public class HibernateSearchService implements SearchService {
     }
 
     /** Identifies the portal id field in indexes entities */
-    private static final String PORTAL_ID_FIELD_NAME = "portal.id";
+    static final String PORTAL_ID_FIELD_NAME = "portal.id";
     private Logger log = Logger.getLogger(getClass());
     
     @Autowired
     private PortalDAO portalDAO;
+
+    // the number of threads rebuilding an index, may be set with a system property
+    private int indexWorkers = Integer.getInteger("bdrs.lucene.index.workers",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // the progress of the latest rebuild of each class and portal
+    private Map<String, IndexProgress> indexProgress = new ConcurrentHashMap<String, IndexProgress>();
+
+    /**
+     * @return the number of threads used to rebuild an index.
+     */
+    public int getIndexWorkers() {
+        return indexWorkers;
+    }
+
+    /**
+     * @param indexWorkers the number of threads used to rebuild an index, if
+     * less than one an index is rebuilt by the calling thread.
+     */
+    public void setIndexWorkers(int indexWorkers) {
+        this.indexWorkers = indexWorkers;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -269,4 +295,73 @@ public class HibernateSearchService implements SearchService {
         buildIndex(fullTextSession, indexedClass, portal);
     }
 
-}
\ No newline at end of file
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rebuildIndexes(Session sesh, Portal portal) {
+        for (Class indexedClass : IndexUtil.getIndexedClasses()) {
+            rebuildIndex(sesh, indexedClass, portal);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rebuildIndex(Session sesh, Class<?> indexedClass, Portal portal) {
+        if (sesh == null) {
+            sesh = portalDAO.getSessionFactory().getCurrentSession();
+        }
+        String key = indexedClass.getName() + "#" + portal.getId();
+        IndexProgress progress;
+        synchronized (indexProgress) {
+            progress = indexProgress.get(key);
+            if (progress != null && IndexProgress.State.RUNNING.equals(progress.getState())) {
+                log.warn("The index of " + indexedClass.getSimpleName() + " for portal " + portal.getId() + " is already being rebuilt");
+                return;
+            }
+            progress = new IndexProgress(indexedClass, portal.getId(), indexWorkers);
+            indexProgress.put(key, progress);
+        }
+
+        MassIndexer indexer = new MassIndexer(portalDAO.getSessionFactory(), INDEX_CANDIDATE_MAP.get(indexedClass),
+                indexedClass, portal, indexWorkers, progress);
+        indexer.run(sesh);
+        log.info(String.format("Rebuilt the index of %s for portal %d: %d entities with %d workers in %d ms",
+                indexedClass.getSimpleName(), portal.getId(), progress.getIndexed(), progress.getWorkers(),
+                progress.getElapsedMillis()));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.search.SearchService#rebuildIndexes(au.com.gaiaresources.bdrs.model.portal.Portal)
+     */
+    @Override
+    public void rebuildIndexes(Portal portal) {
+        rebuildIndexes(null, portal);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see au.com.gaiaresources.bdrs.search.SearchService#rebuildIndex(java.lang.Class, au.com.gaiaresources.bdrs.model.portal.Portal)
+     */
+    @Override
+    public void rebuildIndex(Class<?> clazz, Portal portal) {
+        rebuildIndex(null, clazz, portal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<IndexProgress> getIndexProgress(Portal portal) {
+        List<IndexProgress> result = new ArrayList<IndexProgress>();
+        for (IndexProgress progress : indexProgress.values()) {
+            if (portal.getId().equals(progress.getPortalId())) {
+                result.add(progress);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,159 @@
+package au.com.gaiaresources.bdrs.search;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The progress of a rebuild of the index of a class for a portal, see
+ * {@link SearchService#rebuildIndex(org.hibernate.Session, Class, au.com.gaiaresources.bdrs.model.portal.Portal)}.
+ * The progress is updated by the threads building the index and may be read
+ * from any thread.
+ */
+public class IndexProgress {
+
+    /**
+     * The state of a rebuild.
+     */
+    public enum State {
+        RUNNING,
+        COMPLETE,
+        FAILED
+    }
+
+    private String className;
+    private Integer portalId;
+    private int workers;
+    private long startTime;
+    private volatile long endTime = 0;
+    private volatile State state = State.RUNNING;
+    private volatile int total = 0;
+    private AtomicInteger indexed = new AtomicInteger();
+    private AtomicInteger purged = new AtomicInteger();
+
+    /**
+     * Creates the progress of a rebuild starting now.
+     * @param clazz the class being indexed.
+     * @param portalId the id of the portal being indexed.
+     * @param workers the number of threads building the index, zero if it is
+     * built by the calling thread.
+     */
+    public IndexProgress(Class<?> clazz, Integer portalId, int workers) {
+        this.className = clazz.getSimpleName();
+        this.portalId = portalId;
+        this.workers = workers;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the simple name of the class being indexed.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return the id of the portal being indexed.
+     */
+    public Integer getPortalId() {
+        return portalId;
+    }
+
+    /**
+     * @return the number of threads building the index.
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return the state of the rebuild.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of entities to index.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    void setTotal(int total) {
+        this.total = total;
+    }
+
+    /**
+     * @return the number of entities indexed so far.
+     */
+    public int getIndexed() {
+        return indexed.get();
+    }
+
+    void addIndexed(int count) {
+        indexed.addAndGet(count);
+    }
+
+    /**
+     * @return the number of documents of deleted entities removed from the
+     * index once the entities were indexed.
+     */
+    public int getPurged() {
+        return purged.get();
+    }
+
+    void addPurged(int count) {
+        purged.addAndGet(count);
+    }
+
+    void complete() {
+        endTime = System.currentTimeMillis();
+        state = State.COMPLETE;
+    }
+
+    void fail() {
+        endTime = System.currentTimeMillis();
+        state = State.FAILED;
+    }
+
+    /**
+     * @return the time taken by the rebuild so far in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    /**
+     * @return the estimated time until the rebuild completes in milliseconds,
+     * based on the rate of indexing so far, or -1 if it cannot be estimated yet.
+     */
+    public long getEtaMillis() {
+        if (state != State.RUNNING) {
+            return 0;
+        }
+        int done = indexed.get();
+        if (done == 0) {
+            return -1;
+        }
+        return getElapsedMillis() * Math.max(0, total - done) / done;
+    }
+
+    /**
+     * @return the progress as a map for JSON serialization.
+     */
+    public Map<String, Object> flatten() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("className", className);
+        map.put("portalId", portalId);
+        map.put("workers", workers);
+        map.put("state", state.toString());
+        map.put("total", total);
+        map.put("indexed", indexed.get());
+        map.put("purged", purged.get());
+        map.put("startTime", startTime);
+        map.put("elapsed", getElapsedMillis());
+        map.put("eta", getEtaMillis());
+        return map;
+    }
+}
@@ -0,0 +1,383 @@
+package au.com.gaiaresources.bdrs.search;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.hibernate.Criteria;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.search.FullTextQuery;
+import org.hibernate.search.FullTextSession;
+import org.hibernate.search.Search;
+import org.hibernate.search.SearchException;
+
+import au.com.gaiaresources.bdrs.model.portal.Portal;
+import au.com.gaiaresources.bdrs.util.TransactionHelper;
+
+/**
+ * Rebuilds the index of a class for a portal using a pool of worker threads.
+ *
+ * The calling thread reads the ids of the entities to index in ascending
+ * order and queues them as ranges of ids. Each worker has its own session and
+ * loads, indexes and commits a range at a time, so the slow part of indexing,
+ * loading the entities and building their documents, is done in parallel.
+ *
+ * The entities are not loaded by one set of threads and queued for another
+ * set to build their documents. Building a document reads the embedded
+ * associations of the entity, which are loaded lazily by the session that
+ * loaded the entity. An entity handed to another thread would have to be
+ * reattached to that thread's session, and its uninitialised proxies would
+ * still belong to the session that loaded it. Partitioning by id gives the
+ * same properties as a bounded queue between the two stages:
+ * <ul>
+ * <li>Memory is bounded. The queue holds at most two ranges of ids for each
+ * worker, and each worker holds at most
+ * {@link SearchService#INDEX_BATCH_SIZE} entities in its session before it
+ * flushes them to the index and clears the session.</li>
+ * <li>Loading and building overlap. While one worker waits for the database
+ * the others build documents, so with more than one worker both stages run
+ * at once.</li>
+ * <li>The reader is throttled. The calling thread blocks when the queue is
+ * full, so it never reads further ahead of the workers than the queue.</li>
+ * </ul>
+ *
+ * The documents of the entities are replaced in place rather than deleting
+ * the index first, so the index can be searched throughout the rebuild. Once
+ * every entity has been indexed the documents of entities that no longer
+ * exist are purged.
+ */
+class MassIndexer {
+
+    /** The number of ids in each range handed to a worker. */
+    static final int PARTITION_SIZE = SearchService.INDEX_BATCH_SIZE * 10;
+
+    private static final Range END = new Range(0, -1);
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private Logger log = Logger.getLogger(getClass());
+
+    private SessionFactory sessionFactory;
+    private HibernateSearchCriteriaBuilder builder;
+    private Class<?> clazz;
+    private Portal portal;
+    private int workers;
+    private IndexProgress progress;
+
+    private BlockingQueue<Range> queue;
+    private volatile Throwable failure = null;
+
+    /**
+     * Creates an indexer for the entities of a class in a portal.
+     * @param sessionFactory opens the sessions of the workers.
+     * @param builder creates the criteria that loads the entities, may be null.
+     * @param clazz the class to index.
+     * @param portal the portal to index.
+     * @param workers the number of worker threads, if less than one the
+     * entities are indexed by the calling thread.
+     * @param progress updated as the entities are indexed.
+     */
+    public MassIndexer(SessionFactory sessionFactory, HibernateSearchCriteriaBuilder builder,
+            Class<?> clazz, Portal portal, int workers, IndexProgress progress) {
+        this.sessionFactory = sessionFactory;
+        this.builder = builder;
+        this.clazz = clazz;
+        this.portal = portal;
+        this.workers = Math.max(0, workers);
+        this.progress = progress;
+    }
+
+    /**
+     * Rebuilds the index.
+     * WARNING: this method has the side effect of clearing the session.
+     * @param sesh the session used to read the ids of the entities, and to
+     * index them if there are no workers.
+     * @throws SearchException if the index could not be rebuilt, in which
+     * case no documents are purged.
+     */
+    public void run(Session sesh) {
+        FullTextSession fullTextSession = Search.getFullTextSession(sesh);
+        try {
+            Criteria count = sesh.createCriteria(clazz)
+                    .add(Restrictions.eq("portal", portal))
+                    .setProjection(Projections.rowCount());
+            progress.setTotal(((Number) count.uniqueResult()).intValue());
+
+            IdList ids;
+            if (workers == 0) {
+                ids = produce(fullTextSession);
+            } else {
+                ids = produceForWorkers(fullTextSession);
+            }
+            purgeStale(fullTextSession, ids);
+            progress.complete();
+        } catch (InterruptedException ie) {
+            progress.fail();
+            Thread.currentThread().interrupt();
+            throw new SearchException("Interrupted rebuilding the index of " + clazz.getSimpleName(), ie);
+        } catch (RuntimeException e) {
+            progress.fail();
+            throw e;
+        }
+    }
+
+    private IdList produceForWorkers(FullTextSession fullTextSession) {
+        // bounds the ids read ahead of the workers, see the class comment
+        queue = new ArrayBlockingQueue<Range>(workers * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "index-worker-" + THREAD_COUNT.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(workers);
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(new Worker()));
+            }
+            IdList ids = produce(fullTextSession);
+            for (int i = 0; i < workers; i++) {
+                submit(fullTextSession, END);
+            }
+            for (Future<Object> future : futures) {
+                if (failure != null) {
+                    break;
+                }
+                future.get();
+            }
+            if (failure != null) {
+                throw new SearchException("Failed to rebuild the index of " + clazz.getSimpleName(), failure);
+            }
+            return ids;
+        } catch (ExecutionException ee) {
+            throw new SearchException("Failed to rebuild the index of " + clazz.getSimpleName(), ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SearchException("Interrupted rebuilding the index of " + clazz.getSimpleName(), ie);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the ids of the entities in ascending order and submits them a
+     * range at a time.
+     * @return the ids of the entities.
+     */
+    private IdList produce(FullTextSession fullTextSession) throws InterruptedException {
+        IdList ids = new IdList();
+        ScrollableResults results = fullTextSession.createCriteria(clazz)
+                .add(Restrictions.eq("portal", portal))
+                .setProjection(Projections.id())
+                .addOrder(Order.asc("id"))
+                .setFetchSize(PARTITION_SIZE)
+                .scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            int first = 0;
+            int count = 0;
+            while (failure == null && results.next()) {
+                int id = ((Number) results.get(0)).intValue();
+                ids.add(id);
+                if (count == 0) {
+                    first = id;
+                }
+                count++;
+                if (count == PARTITION_SIZE) {
+                    submit(fullTextSession, new Range(first, id));
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                submit(fullTextSession, new Range(first, ids.last()));
+            }
+        } finally {
+            results.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Queues a range for the workers, or indexes it if there are no workers.
+     * Gives up if a worker has failed.
+     */
+    private void submit(FullTextSession fullTextSession, Range range) throws InterruptedException {
+        if (queue == null) {
+            indexRange(fullTextSession, range);
+            return;
+        }
+        while (failure == null && !queue.offer(range, 1, TimeUnit.SECONDS)) {
+            // wait for a worker to take a range
+        }
+    }
+
+    private void indexRange(FullTextSession fullTextSession, Range range) {
+        Criteria criteria;
+        if (builder == null) {
+            criteria = fullTextSession.createCriteria(clazz);
+        } else {
+            criteria = builder.createCriteria(fullTextSession);
+        }
+        criteria.add(Restrictions.eq("portal", portal))
+                .add(Restrictions.between("id", range.first, range.last))
+                .addOrder(Order.asc("id"));
+        ScrollableResults results = criteria.setFetchSize(SearchService.INDEX_BATCH_SIZE).scroll(ScrollMode.FORWARD_ONLY);
+        int count = 0;
+        Serializable lastId = null;
+        try {
+            while (results.next()) {
+                Object entity = results.get(0);
+                Serializable id = fullTextSession.getIdentifier(entity);
+                // fetching a collection returns a row for each element
+                if (id.equals(lastId)) {
+                    continue;
+                }
+                lastId = id;
+                fullTextSession.index(entity);
+                count++;
+                if (count % SearchService.INDEX_BATCH_SIZE == 0) {
+                    fullTextSession.flushToIndexes();
+                    fullTextSession.clear();
+                    progress.addIndexed(SearchService.INDEX_BATCH_SIZE);
+                }
+            }
+        } finally {
+            results.close();
+        }
+        fullTextSession.flushToIndexes();
+        fullTextSession.clear();
+        progress.addIndexed(count % SearchService.INDEX_BATCH_SIZE);
+    }
+
+    /**
+     * Purges the documents of entities that were not indexed by this rebuild
+     * and no longer exist.
+     */
+    private void purgeStale(FullTextSession fullTextSession, IdList ids) {
+        FullTextQuery query = fullTextSession.createFullTextQuery(
+                new TermQuery(new Term(HibernateSearchService.PORTAL_ID_FIELD_NAME, portal.getId().toString())), clazz);
+        query.setProjection(FullTextQuery.ID);
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (Object row : query.list()) {
+            Integer id = (Integer) ((Object[]) row)[0];
+            if (!ids.contains(id)) {
+                candidates.add(id);
+            }
+        }
+
+        int purged = 0;
+        for (int i = 0; i < candidates.size(); i += SearchService.INDEX_BATCH_SIZE) {
+            List<Integer> batch = candidates.subList(i, Math.min(candidates.size(), i + SearchService.INDEX_BATCH_SIZE));
+            // entities saved since their ids were read were indexed as they were saved
+            List<?> existing = fullTextSession.createCriteria(clazz)
+                    .add(Restrictions.in("id", batch))
+                    .setProjection(Projections.id())
+                    .list();
+            for (Integer id : batch) {
+                if (!existing.contains(id)) {
+                    fullTextSession.purge(clazz, id);
+                    purged++;
+                }
+            }
+            fullTextSession.flushToIndexes();
+            fullTextSession.clear();
+        }
+        progress.addPurged(purged);
+        if (purged > 0) {
+            log.info(String.format("Purged %d stale documents from the index of %s for portal %d",
+                    purged, clazz.getSimpleName(), portal.getId()));
+        }
+    }
+
+    /**
+     * Indexes the ranges taken from the queue in its own session, committing
+     * after each range, until it takes the end of the queue.
+     */
+    private class Worker implements Callable<Object> {
+        @Override
+        public Object call() throws Exception {
+            Session sesh = sessionFactory.openSession();
+            try {
+                FullTextSession fullTextSession = Search.getFullTextSession(sesh);
+                for (Range range = queue.take(); range != END; range = queue.take()) {
+                    Transaction tx = sesh.beginTransaction();
+                    try {
+                        indexRange(fullTextSession, range);
+                        TransactionHelper.commit(tx, sesh);
+                    } catch (RuntimeException e) {
+                        if (tx.isActive()) {
+                            tx.rollback();
+                        }
+                        throw e;
+                    }
+                }
+                return null;
+            } catch (Exception e) {
+                log.error("Failed to index " + clazz.getSimpleName(), e);
+                failure = e;
+                throw e;
+            } finally {
+                if (sesh.isOpen()) {
+                    sesh.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * An inclusive range of ids.
+     */
+    private static class Range {
+        private int first;
+        private int last;
+
+        public Range(int first, int last) {
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    /**
+     * The ids read in ascending order.
+     */
+    private static class IdList {
+        private int[] ids = new int[1024];
+        private int size = 0;
+
+        public void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        public int last() {
+            return ids[size - 1];
+        }
+
+        public boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+    }
+}
@@ -125,4 +125,51 @@ public interface SearchService {
      * @param clazz the {@link Class} to index
      */
     public void createIndex(Class<?> clazz, Portal portal);
+
+    /**
+     * Rebuilds the indexes of all indexed classes returned by {@link IndexUtil::getIndexedClasses()},
+     * see {@link #rebuildIndex(Session, Class, Portal)}.
+     * WARNING: this method is non-transactional and has the side effect of clearing the current Hibernate Session.
+     * Designed for administrative use only.
+     * @param sesh the {@link Session} to use for the indexing
+     * @param portal the {@link Portal} of the indexes to rebuild
+     */
+    public void rebuildIndexes(Session sesh, Portal portal);
+
+    /**
+     * Rebuilds the index for the specified class using a pool of worker threads.
+     * The documents in the index are replaced as the entities are indexed and
+     * the documents of entities that no longer exist are removed once every
+     * entity has been indexed, so the index may be searched during the rebuild.
+     * WARNING: this method is non-transactional and has the side effect of clearing the current Hibernate Session.
+     * Designed for administrative use only.
+     * @param sesh the {@link Session} to use for the indexing
+     * @param clazz the {@link Class} to index
+     * @param portal the {@link Portal} of the index to rebuild
+     */
+    public void rebuildIndex(Session sesh, Class<?> clazz, Portal portal);
+
+    /**
+     * Rebuilds the indexes of all indexed classes.
+     * WARNING: this method is non-transactional and has the side effect of clearing the current Hibernate Session.
+     * Designed for administrative use only.
+     * @param portal the {@link Portal} of the indexes to rebuild
+     */
+    public void rebuildIndexes(Portal portal);
+
+    /**
+     * Rebuilds the index for the specified class.
+     * WARNING: this method is non-transactional and has the side effect of clearing the current Hibernate Session.
+     * Designed for administrative use only.
+     * @param clazz the {@link Class} to index
+     * @param portal the {@link Portal} of the index to rebuild
+     */
+    public void rebuildIndex(Class<?> clazz, Portal portal);
+
+    /**
+     * Returns the progress of the latest rebuild of each index of a portal.
+     * @param portal the {@link Portal} of the indexes
+     * @return the progress of the running and completed rebuilds
+     */
+    public List<IndexProgress> getIndexProgress(Portal portal);
 }
@@ -0,0 +1,29 @@
+package au.com.gaiaresources.bdrs.search.criteriaBuilder;
+
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.search.HibernateSearchCriteriaBuilder;
+import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
+import org.hibernate.search.FullTextSession;
+
+/**
+ * Creates a targeted criteria instance for <code>Record</code> eager fetching the
+ * owner and the species of each record. The attributes are loaded for each record
+ * since fetching a collection would return a row for each attribute.
+ */
+public class RecordHibernateSearchCriteriaBuilder implements HibernateSearchCriteriaBuilder {
+
+    public static final Class<?> INDEXED_CLASS = Record.class;
+
+    @Override
+    public Criteria createCriteria(FullTextSession fullTextSession) {
+        return fullTextSession.createCriteria(INDEXED_CLASS)
+                .setFetchMode("user", FetchMode.JOIN)
+                .setFetchMode("species", FetchMode.JOIN);
+    }
+
+    @Override
+    public Class<?> getIndexedClass() {
+        return INDEXED_CLASS;
+    }
+}
@@ -216,7 +216,9 @@ public class RecordCsvWriter {
         filter.setSurveyPk(survey.getId());
         filter.setCensusMethod(censusMethod);
         filter.setHeld(false);
-        ScrollableRecords scrollableRecords = recordDAO.getScrollableRecords(filter);
+        // the session is cleared as the records are streamed, so entities
+        // are compared by id rather than by identity.
+        ScrollableRecords scrollableRecords = recordDAO.getStreamingRecords(filter);
 
         CSVWriter csvWriter = null;
         try {
@@ -228,7 +230,7 @@ public class RecordCsvWriter {
             // iterate over our records and write our values...
             while (scrollableRecords.hasMoreElements()) {
                 Record r = scrollableRecords.nextElement();
-                if (r.getCensusMethod() == censusMethod) {
+                if (censusMethod == null ? r.getCensusMethod() == null : censusMethod.equals(r.getCensusMethod())) {
                     List<String> values = new ArrayList<String>(headers.size());
 
                     // Add compulsory fields in the correct order...
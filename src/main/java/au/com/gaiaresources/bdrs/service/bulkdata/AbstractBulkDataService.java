@@ -1,13 +1,17 @@
 package au.com.gaiaresources.bdrs.service.bulkdata;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.math.BigDecimal;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -17,9 +21,12 @@ import java.util.Set;
 
 import javax.security.sasl.AuthenticationException;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
+import org.apache.poi.POIXMLDocument;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Row;
@@ -27,6 +34,10 @@ import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
@@ -39,6 +50,7 @@ import au.com.gaiaresources.bdrs.model.group.Group;
 import au.com.gaiaresources.bdrs.model.group.GroupDAO;
 import au.com.gaiaresources.bdrs.model.location.Location;
 import au.com.gaiaresources.bdrs.model.location.LocationDAO;
+import au.com.gaiaresources.bdrs.model.metadata.Metadata;
 import au.com.gaiaresources.bdrs.model.method.CensusMethod;
 import au.com.gaiaresources.bdrs.model.method.CensusMethodDAO;
 import au.com.gaiaresources.bdrs.model.record.Record;
@@ -67,13 +79,27 @@ import au.com.gaiaresources.bdrs.util.StringUtils;
 
 public abstract class AbstractBulkDataService {
     public static final String XLS_CONTENT_TYPE = "application/vnd.ms-excel";
+    public static final String XLSX_CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
 
     // http://support.microsoft.com/kb/120596
     public static final int MAX_EXCEL_ROW_COUNT = 65536;
     // http://wiki.services.openoffice.org/wiki/Documentation/FAQ/Calc/Miscellaneous/What's_the_maximum_number_of_rows_and_cells_for_a_spreadsheet_file%3F
     public static final int MAX_OO_ROW_COUNT = 65536;
+    // the row limit of the .xls templates, the rows of an .xlsx upload are not limited
     public static final int MAX_ROW_COUNT = Math.min(MAX_EXCEL_ROW_COUNT, MAX_OO_ROW_COUNT);
     public static final int PARSE_ERROR_LIMIT = 50;
+    /**
+     * The number of observation rows of an .xlsx export that are held in
+     * memory before they are written out.
+     */
+    public static final int XLSX_ROW_WINDOW = Integer.getInteger("bdrs.xlsx.window", 100);
+    /**
+     * The default number of rows of a bulk upload that are committed in each
+     * transaction, zero or less to save all of the rows in one transaction.
+     * An upload may also be saved in one transaction by passing a chunk size
+     * of zero to {@link #saveRecords(User, BulkUpload, boolean, int, BulkUploadCheckpoint)}.
+     */
+    public static final int SAVE_CHUNK_SIZE = Integer.getInteger("bdrs.bulkdata.chunk", 500);
     
     public static final String RECORD_SHEET_NAME = "Observations";
     public static final String HELP_SHEET_NAME = "Help";
@@ -168,81 +194,151 @@ public abstract class AbstractBulkDataService {
 
     public void exportSurveyRecords(Session sesh, Survey survey, ScrollableResults<Record> sc, long limit,
             OutputStream outputStream) throws IOException {
+        this.exportSurveyRecords(sesh, survey, sc, limit, outputStream, false);
+    }
+
+    /**
+     * Exports the records of a survey to an .xlsx workbook with the same
+     * sheets as the .xls export. The observation rows are written out as
+     * they are created so the number of records is not limited by memory
+     * or by the row limit of the .xls format.
+     * 
+     * @param sesh the session of the records.
+     * @param survey the survey of the records.
+     * @param sc the records to export.
+     * @param outputStream the stream to write the workbook to, it is not closed.
+     * @throws IOException if the workbook cannot be written.
+     */
+    public void exportSurveyRecordsXlsx(Session sesh, Survey survey, ScrollableResults<Record> sc,
+            OutputStream outputStream) throws IOException {
+        this.exportSurveyRecords(sesh, survey, sc, Long.MAX_VALUE, outputStream, true);
+    }
+
+    public void exportSurveyRecordsXlsx(Session sesh, Survey survey, ScrollableResults<Record> sc, long limit,
+            OutputStream outputStream) throws IOException {
+        this.exportSurveyRecords(sesh, survey, sc, limit, outputStream, true);
+    }
+
+    private void exportSurveyRecords(Session sesh, Survey survey, ScrollableResults<Record> sc, long limit,
+            OutputStream outputStream, boolean xlsx) throws IOException {
         if(limit < 0) {
             limit = Long.MAX_VALUE;
         }
         User accessor = RequestContextHolder.getContext().getUser();
         
         RecordRow rowPrinter = getRecordRow(survey);
-        Workbook wb = new HSSFWorkbook();
-        if (survey != null) {
-            rowPrinter.createCellStyles(wb);
-            
-            // Be careful not to reorder the sheets. This will break the formulas.
-            // First create a placeholder sheet for the observations.
-            // Then create the census method sheet and location sheet.
-            // These sheets will be referenced by the observation sheet.
-            Sheet observationSheet = wb.createSheet(RECORD_SHEET_NAME);
-            writeCensusMethodSheet(survey, wb, rowPrinter);
-
-            XlsLocationRow locationRow = new XlsLocationRow(
-                    bulkDataReadWriteService, survey);
-            locationRow.writeLocationHeader(wb);
-            locationRow.writeSurveyLocations(wb);
-
-            int rowIndex = 0;
-            // Survey Description
-            Row surveyDescriptionRow = observationSheet.createRow(rowIndex++);
-            Cell surveyDescriptionCell = surveyDescriptionRow.createCell(0);
-            surveyDescriptionCell.setCellStyle(rowPrinter.getCellStyleByKey(XlsRecordRow.STYLE_RECORD_HEADER));
-            surveyDescriptionCell.setCellValue(String.format("%s: %s", survey.getName(), survey.getDescription()));
-
-            // placeholder for census method names etc
-            Row censusMethodTitleRow = observationSheet.createRow(rowIndex++);
-
-            // Record Header
-            Row headerRow = observationSheet.createRow(rowIndex++);
-            rowPrinter.writeHeader(censusMethodTitleRow, headerRow, survey);
-
-            // Merge the survey description cell to occupy the width of the
-            // spreadsheet
-            observationSheet.addMergedRegion(new CellRangeAddress(
-                    surveyDescriptionRow.getRowNum(), // first row (0-based)
-                    surveyDescriptionRow.getRowNum(), // last row (0-based)
-                    surveyDescriptionCell.getColumnIndex(), // first column (0-based)
-                    headerRow.getLastCellNum() - 1 // last column (0-based)
-            ));
-
-            Record r;
-            int recordCount = 0;
-            
-            while(sc.hasMoreElements() && recordCount < limit) {
-                r = sc.nextElement();
-                // it's not guaranteed that the scrollable records will only contain records for the
-                // requested survey.
-                if (r.getSurvey() == survey) {
-                    if(r.getLocation() != null && !survey.getLocations().contains(r.getLocation())) {
-                        locationRow.writeUserLocation(wb, r.getLocation());
+        Workbook wb = xlsx ? new XSSFWorkbook() : new HSSFWorkbook();
+        StreamingXlsxWriter observationWriter = null;
+        try {
+            if (survey != null) {
+                rowPrinter.createCellStyles(wb);
+                
+                // Be careful not to reorder the sheets. This will break the formulas.
+                // First create a placeholder sheet for the observations.
+                // Then create the census method sheet and location sheet.
+                // These sheets will be referenced by the observation sheet.
+                Sheet observationSheet = wb.createSheet(RECORD_SHEET_NAME);
+                writeCensusMethodSheet(survey, wb, rowPrinter);
+    
+                XlsLocationRow locationRow = new XlsLocationRow(
+                        bulkDataReadWriteService, survey);
+                locationRow.writeLocationHeader(wb);
+                locationRow.writeSurveyLocations(wb);
+    
+                int rowIndex = 0;
+                // Survey Description
+                Row surveyDescriptionRow = observationSheet.createRow(rowIndex++);
+                Cell surveyDescriptionCell = surveyDescriptionRow.createCell(0);
+                surveyDescriptionCell.setCellStyle(rowPrinter.getCellStyleByKey(XlsRecordRow.STYLE_RECORD_HEADER));
+                surveyDescriptionCell.setCellValue(String.format("%s: %s", survey.getName(), survey.getDescription()));
+    
+                // placeholder for census method names etc
+                Row censusMethodTitleRow = observationSheet.createRow(rowIndex++);
+    
+                // Record Header
+                Row headerRow = observationSheet.createRow(rowIndex++);
+                rowPrinter.writeHeader(censusMethodTitleRow, headerRow, survey);
+    
+                // Merge the survey description cell to occupy the width of the
+                // spreadsheet
+                observationSheet.addMergedRegion(new CellRangeAddress(
+                        surveyDescriptionRow.getRowNum(), // first row (0-based)
+                        surveyDescriptionRow.getRowNum(), // last row (0-based)
+                        surveyDescriptionCell.getColumnIndex(), // first column (0-based)
+                        headerRow.getLastCellNum() - 1 // last column (0-based)
+                ));
+    
+                if (xlsx) {
+                    // the records are written out after the header as they are created
+                    observationWriter = new StreamingXlsxWriter((XSSFSheet) observationSheet, XLSX_ROW_WINDOW);
+                }
+    
+                Record r;
+                int recordCount = 0;
+                List<Record> batch = new ArrayList<Record>(ScrollableResults.RESULTS_BATCH_SIZE);
+                
+                while(sc.hasMoreElements() && recordCount < limit) {
+                    r = sc.nextElement();
+                    // it's not guaranteed that the scrollable records will only contain records for the
+                    // requested survey.
+                    if (r.getSurvey() == survey) {
+                        if(r.getLocation() != null && !survey.getLocations().contains(r.getLocation())) {
+                            locationRow.writeUserLocation(wb, r.getLocation());
+                        }
+                        // only write the row if the record is visible
+                        if (!r.hideDetails(accessor)) {
+                            Row row = observationWriter != null ?
+                                    observationWriter.createRow(rowIndex++) : observationSheet.createRow(rowIndex++);
+                            rowPrinter.writeRow(lsidService, row, r);
+                            ++recordCount;
+                        }
                     }
-                    // only write the row if the record is visible
-                    if (!r.hideDetails(accessor)) {
-                        rowPrinter.writeRow(lsidService, observationSheet.createRow(rowIndex++), r);
-                        ++recordCount;
+    
+                    // evict records in batches as we use them. We don't evict (aka clear) the entire session
+                    // as we need some of the collections internal to the requested survey
+                    // to stay in the cache
+                    batch.add(r);
+                    if (batch.size() >= ScrollableResults.RESULTS_BATCH_SIZE) {
+                        evictRecords(sesh, batch);
                     }
                 }
-
-                // evict records as we use them. Possibly as an optimization we could batch evict
-                // items. We don't evict (aka clear) the entire session
-                // as we need some of the collections internal to the requested survey
-                // to stay in the cache
-                sesh.evict(r);
+                evictRecords(sesh, batch);
+    
+                writeTaxonomySheet(survey, wb, rowPrinter);
+                writeCrsSheet(wb, rowPrinter);
+                writeHelpSheet(survey, wb, rowPrinter);
+            }
+            if (observationWriter != null) {
+                observationWriter.write((XSSFWorkbook) wb, outputStream);
+            } else {
+                wb.write(outputStream);
+            }
+        } finally {
+            if (observationWriter != null) {
+                observationWriter.dispose();
             }
+        }
+    }
 
-            writeTaxonomySheet(survey, wb, rowPrinter);
-            writeCrsSheet(wb, rowPrinter);
-            writeHelpSheet(survey, wb, rowPrinter);
+    /**
+     * Evicts a batch of records and the attribute values and metadata that
+     * were loaded with them from the session.
+     */
+    private void evictRecords(Session sesh, List<Record> batch) {
+        for (Record rec : batch) {
+            if (Hibernate.isInitialized(rec.getAttributes())) {
+                for (AttributeValue av : rec.getAttributes()) {
+                    sesh.evict(av);
+                }
+            }
+            if (Hibernate.isInitialized(rec.getMetadata())) {
+                for (Metadata md : rec.getMetadata()) {
+                    sesh.evict(md);
+                }
+            }
+            sesh.evict(rec);
         }
-        wb.write(outputStream);
+        batch.clear();
     }
 
     /**
@@ -254,7 +350,24 @@ public abstract class AbstractBulkDataService {
      */
     public void exportLocations(Session sesh, ScrollableResults<Location> sc,
             OutputStream outputStream) throws IOException {
-        Workbook wb = new HSSFWorkbook();
+        this.exportLocations(sesh, sc, outputStream, false);
+    }
+
+    /**
+     * Exports locations to an .xlsx spreadsheet.
+     * @param sesh the current session
+     * @param sc the scrollable list of locations to write
+     * @param outputStream the output stream to write to
+     * @throws IOException
+     */
+    public void exportLocationsXlsx(Session sesh, ScrollableResults<Location> sc,
+            OutputStream outputStream) throws IOException {
+        this.exportLocations(sesh, sc, outputStream, true);
+    }
+
+    private void exportLocations(Session sesh, ScrollableResults<Location> sc,
+            OutputStream outputStream, boolean xlsx) throws IOException {
+        Workbook wb = xlsx ? new XSSFWorkbook() : new HSSFWorkbook();
         
         XlsLocationRow locationRow = new XlsLocationRow(
                 bulkDataReadWriteService);
@@ -536,8 +649,23 @@ public abstract class AbstractBulkDataService {
         }
     }
 
+    /**
+     * Reads the locations and records of a spreadsheet. An .xlsx workbook is
+     * read one row at a time so that large uploads do not need to be held in
+     * memory, an .xls workbook is loaded whole.
+     * 
+     * @param survey the survey of the records.
+     * @param inp the .xls or .xlsx workbook.
+     * @return the locations and records read from the spreadsheet.
+     */
     public BulkUpload importBulkData(Survey survey, InputStream inp)
             throws IOException, ParseException {
+        if (!inp.markSupported()) {
+            inp = new PushbackInputStream(inp, 8);
+        }
+        if (POIXMLDocument.hasOOXMLHeader(inp)) {
+            return importStreamingBulkData(survey, inp);
+        }
         try {
             BulkUpload bulkUpload = new BulkUpload();
             Workbook wb = WorkbookFactory.create(inp);
@@ -565,8 +693,8 @@ public abstract class AbstractBulkDataService {
                                 + LOCATION_SHEET_NAME);
             } else {
                 // Order is important because the record will attempt to resolve locations.
-                importBulkLocations(survey, bulkUpload, locationSheet);
-                importBulkRecords(survey, bulkUpload, recordSheet);
+                importBulkLocations(survey, bulkUpload, locationSheet.rowIterator());
+                importBulkRecords(survey, bulkUpload, recordSheet.rowIterator());
             }
 
             bulkUpload.addSurvey(survey);
@@ -577,12 +705,57 @@ public abstract class AbstractBulkDataService {
         }
     }
 
+    /**
+     * Reads the locations and records of an .xlsx workbook one row at a time.
+     * The workbook is copied to a temporary file as the parts of the workbook
+     * are not read in the order that they are stored.
+     */
+    private BulkUpload importStreamingBulkData(Survey survey, InputStream inp)
+            throws IOException, ParseException {
+        File workbookFile = File.createTempFile("bulkdata", ".xlsx");
+        try {
+            OutputStream out = new FileOutputStream(workbookFile);
+            try {
+                IOUtils.copy(inp, out);
+            } finally {
+                out.close();
+            }
+
+            StreamingXlsxReader reader = new StreamingXlsxReader(workbookFile);
+            try {
+                if (!reader.hasSheet(RECORD_SHEET_NAME)) {
+                    throw new IllegalArgumentException(
+                            "Cannot find record sheet. The sheet must be named: "
+                                    + RECORD_SHEET_NAME);
+                } else if (!reader.hasSheet(LOCATION_SHEET_NAME)) {
+                    throw new IllegalArgumentException(
+                            "Cannot find record sheet. The sheet must be named: "
+                                    + LOCATION_SHEET_NAME);
+                }
+
+                BulkUpload bulkUpload = new BulkUpload();
+                // Order is important because the record will attempt to resolve locations.
+                importBulkLocations(survey, bulkUpload, reader.rowIterator(LOCATION_SHEET_NAME));
+                importBulkRecords(survey, bulkUpload, reader.rowIterator(RECORD_SHEET_NAME));
+
+                bulkUpload.addSurvey(survey);
+                return bulkUpload;
+            } finally {
+                reader.close();
+            }
+        } catch (OpenXML4JException oe) {
+            throw new IllegalArgumentException(oe);
+        } finally {
+            workbookFile.delete();
+        }
+    }
+
     private void importBulkLocations(Survey survey, BulkUpload bulkUpload,
-            Sheet locationSheet) {
+            Iterator<Row> rowIter) {
         Row row;
         XlsLocationRow locationRow = new XlsLocationRow(
                 bulkDataReadWriteService, survey);
-        for (Iterator<Row> rowIter = locationSheet.rowIterator(); rowIter.hasNext();) {
+        while (rowIter.hasNext()) {
             row = rowIter.next();
 
             // Skip the header row
@@ -598,13 +771,12 @@ public abstract class AbstractBulkDataService {
     }
 
     private void importBulkRecords(Survey survey, BulkUpload bulkUpload,
-            Sheet recordSheet) throws ParseException {
+            Iterator<Row> rowIterator) throws ParseException {
         boolean headerParsed = false;
         RecordRow recordRow = getRecordRow(survey);
         RecordUpload recordUpload;
         Row row = null;
         Row superRow = null;
-        Iterator<Row> rowIterator = recordSheet.rowIterator();
         int errorCount = 0;
         boolean headerReached = false;
         while (rowIterator.hasNext() && errorCount < PARSE_ERROR_LIMIT) {
@@ -724,16 +896,51 @@ public abstract class AbstractBulkDataService {
     // Converting BulkUpload to Persisted Objects
     // ------------------------------------------------------
 
-    public List<Record> saveRecords(User owner, BulkUpload bulkUpload,
+    /**
+     * Saves the records of a bulk upload, committing {@link #SAVE_CHUNK_SIZE}
+     * rows at a time.
+     * @see #saveRecords(User, BulkUpload, boolean, int, BulkUploadCheckpoint)
+     */
+    public int saveRecords(User owner, BulkUpload bulkUpload,
             boolean createMissingData) throws MissingDataException,
             AuthenticationException, InvalidSurveySpeciesException,
             DataReferenceException, AmbiguousDataException {
+        return saveRecords(owner, bulkUpload, createMissingData, SAVE_CHUNK_SIZE, new BulkUploadCheckpoint());
+    }
+
+    /**
+     * Saves the records of a bulk upload. Everything referred to by the rows
+     * of the upload is loaded up front with one query per class rather than
+     * one query per row. The references of every row are checked before the
+     * first chunk is saved, so an invalid record, parent record, census
+     * method or species fails the upload before anything is committed. The
+     * rows are then saved in chunks, each chunk is committed in its own
+     * transaction and its records are evicted from the session.
+     * 
+     * If a chunk fails to commit, the chunks before it remain saved and the
+     * checkpoint records how far the upload got. Saving the same upload again
+     * with the checkpoint continues from the first row that was not committed.
+     * 
+     * @param owner the user uploading the spreadsheet.
+     * @param bulkUpload the rows of the spreadsheet.
+     * @param createMissingData true if missing surveys, groups and users may be created.
+     * @param chunkSize the number of rows committed in each transaction. If
+     * zero or less all of the rows are saved in a single transaction so that
+     * either all or none of the rows are saved.
+     * @param checkpoint the progress of the upload, advanced after each chunk
+     * is committed.
+     * @return the number of records saved by this call.
+     */
+    public int saveRecords(User owner, BulkUpload bulkUpload,
+            boolean createMissingData, int chunkSize, BulkUploadCheckpoint checkpoint)
+            throws MissingDataException, AuthenticationException,
+            InvalidSurveySpeciesException, DataReferenceException,
+            AmbiguousDataException {
 
         if (bulkUpload.hasError()) {
-            return null;
+            return 0;
         }
 
-        List<Record> records = new ArrayList<Record>();
         // IMPORTANT!!
         // because we are using a new hibernate session here all DAO usage
         // MUST REFER TO THIS NEW SESSION!!  If you don't follow this rule
@@ -741,18 +948,22 @@ public abstract class AbstractBulkDataService {
         // I assume this has something to do
         // with the sessions deadlocking each other.
         Session sesh = sessionFactory.openSession();
+        Transaction tx = null;
         try {
-            Transaction tx = sesh.beginTransaction();
+            long start = System.currentTimeMillis();
+            tx = sesh.beginTransaction();
 
             User ownerForSesh = (User) sesh.merge(owner);
 
+            Map<Integer, CensusMethod> censusMethods = preloadCensusMethods(sesh, bulkUpload);
+
             // Set up all the src data
             bulkUpload.setMissingGroups(populateGroups(sesh, ownerForSesh, bulkUpload, createMissingData));
             bulkUpload.setMissingUsers(populateUsers(sesh, ownerForSesh, bulkUpload, createMissingData));
             // It is imperative that the surveys are populated before the indicator species because the surveys
             // will inform what species are eligible for lookup.
             bulkUpload.setMissingSurveys(populateSurveys(sesh, ownerForSesh, bulkUpload, createMissingData));
-            bulkUpload.setMissingIndicatorSpecies(populateIndicatorSpecies(sesh, bulkUpload));
+            bulkUpload.setMissingIndicatorSpecies(populateIndicatorSpecies(sesh, bulkUpload, censusMethods));
 
             if (bulkUpload.isMissingData()) {
                 tx.rollback();
@@ -769,13 +980,27 @@ public abstract class AbstractBulkDataService {
                 tx.rollback();
                 throw new AmbiguousDataException();
             }
+
+            List<RecordUpload> recordUploads = bulkUpload.getRecordUploadList();
+            validateRecords(sesh, bulkUpload, censusMethods,
+                    recordUploads.subList(checkpoint.getCommittedRowCount(), recordUploads.size()), checkpoint);
             
             SpatialUtilFactory spatialUtilFactory = new SpatialUtilFactory();
+            Map<Integer, BdrsCoordReferenceSystem> surveyCrs = new HashMap<Integer, BdrsCoordReferenceSystem>();
+
+            // Locations created by a chunk that has already been committed
+            // must not be created again.
+            for (LocationUpload locUpload : bulkUpload.getLocationUploads()) {
+                Integer locationId = checkpoint.getLocationIds().get(locUpload.getLocationName());
+                if (locUpload.getPk() == LocationUpload.DEFAULT_PK && locationId != null) {
+                    locUpload.setPk(locationId);
+                }
+            }
 
             // Create the locations
             Map<Integer, Location> locationPkMap = new HashMap<Integer, Location>();
             Map<String, Location> locationNameMap = new HashMap<String, Location>();
-            populateLocation(sesh, ownerForSesh, bulkUpload, locationPkMap, locationNameMap, spatialUtilFactory);
+            populateLocation(sesh, ownerForSesh, bulkUpload, locationPkMap, locationNameMap, spatialUtilFactory, surveyCrs);
 
             // Create the records
             Survey survey;
@@ -784,276 +1009,568 @@ public abstract class AbstractBulkDataService {
             User recordedBy;
             Record rec;
             IndicatorSpecies species;
+            // The new records of the current chunk by spreadsheet id.
             Map<String, Record> newRecords = new HashMap<String, Record>();
 
+            int rowCount = recordUploads.size();
+            int rowIndex = checkpoint.getCommittedRowCount();
             int count = 0;
-            log.info("Saving Records");
-            for (RecordUpload recordUpload : bulkUpload.getRecordUploadList()) {
-
-                // Put the class in the survey
-                survey = bulkUpload.getSurveyByName(recordUpload.getSurveyName());
-                klass = bulkUpload.getGroupByName(recordUpload.getClassName());
-                group = bulkUpload.getGroupByName(recordUpload.getGroupName());
-
-                // If there is no user for this record, then they will be assigned
-                // to the person who uploaded the spreadsheet.
-                recordedBy = bulkUpload.getUserByUsername(recordUpload.getRecordedByUsername());
-                recordedBy = recordedBy == null ? owner : recordedBy;
-
-                if (klass != null) {
-                    survey.getGroups().add(klass);
-                    survey.getUsers().add(ownerForSesh);
-                    surveyDAO.update(sesh, survey);
-
-                    // Put the group in the class
-                    if (group != null) {
-                        klass.getGroups().add(group);
-                        klass.getAdmins().add(ownerForSesh);
-                        groupDAO.update(sesh, klass);
-
-                        // Put the user in the group
-                        group.getUsers().add(recordedBy);
-                        groupDAO.update(sesh, group);
-                    }
+            log.info(String.format("Saving Records %d to %d", rowIndex + 1, rowCount));
+            while (rowIndex < rowCount) {
+                int chunkEnd = chunkSize > 0 ? Math.min(rowIndex + chunkSize, rowCount) : rowCount;
+                List<RecordUpload> chunk = recordUploads.subList(rowIndex, chunkEnd);
+                if (tx == null) {
+                    tx = sesh.beginTransaction();
                 }
 
-                try {
-                    Lsid lsid = lsidService.fromLSID(recordUpload.getId());
-                    rec = recordDAO.getRecord(sesh, lsid.getObjectId());
-                } catch (IllegalArgumentException iae) {
-                    rec = new Record();
-                    if (org.springframework.util.StringUtils.hasLength(recordUpload.getId())) {
-                        newRecords.put(recordUpload.getId().trim(), rec);
+                Map<Integer, Record> existingRecords = preloadRecords(sesh, chunk, checkpoint);
+                List<Record> chunkRecords = new ArrayList<Record>(chunk.size());
+                // Surveys and groups are updated once per chunk rather than once per row.
+                Set<Survey> updatedSurveys = new HashSet<Survey>();
+                Set<Group> updatedGroups = new HashSet<Group>();
+
+                for (RecordUpload recordUpload : chunk) {
+
+                    // Put the class in the survey
+                    survey = bulkUpload.getSurveyByName(recordUpload.getSurveyName());
+                    klass = bulkUpload.getGroupByName(recordUpload.getClassName());
+                    group = bulkUpload.getGroupByName(recordUpload.getGroupName());
+
+                    // If there is no user for this record, then they will be assigned
+                    // to the person who uploaded the spreadsheet.
+                    recordedBy = bulkUpload.getUserByUsername(recordUpload.getRecordedByUsername());
+                    recordedBy = recordedBy == null ? owner : recordedBy;
+
+                    if (klass != null) {
+                        survey.getGroups().add(klass);
+                        survey.getUsers().add(ownerForSesh);
+                        updatedSurveys.add(survey);
+
+                        // Put the group in the class
+                        if (group != null) {
+                            klass.getGroups().add(group);
+                            klass.getAdmins().add(ownerForSesh);
+                            updatedGroups.add(klass);
+
+                            // Put the user in the group
+                            group.getUsers().add(recordedBy);
+                            updatedGroups.add(group);
+                        }
                     }
-                }
 
-                Integer censusMethodId = recordUpload.getCensusMethodId();
-                CensusMethod cm = null;
-                if (censusMethodId != null) {
-                    cm = censusMethodDAO.get(sesh, censusMethodId);
-                }
-                rec.setCensusMethod(cm);
-                
-                if (cm == null && recordUpload.getCensusMethodId() != null) {
-                    // a census method has been requested but it is invalid!
-                    String err = formatErrorString(recordUpload, "You have requested a census method id = "
-                            + recordUpload.getCensusMethodId()
-                            + " but it is invalid. Only use the ID's exactly as they appear on provided Census Method list bundled with your template");
-                    throw new DataReferenceException(err);
-                }
-                // Set parent record if requested...
-                if (org.springframework.util.StringUtils.hasLength(recordUpload.getParentId())) {
-                    Record parentRecord;
                     try {
-                        Lsid lsid = lsidService.fromLSID(recordUpload.getParentId());
-                        parentRecord = recordDAO.getRecord(sesh, lsid.getObjectId());
+                        Lsid lsid = lsidService.fromLSID(recordUpload.getId());
+                        rec = existingRecords.get(lsid.getObjectId());
+                        if (rec == null) {
+                            throw recordNotFound(recordUpload);
+                        }
                     } catch (IllegalArgumentException iae) {
-                        // The parent record must be a newly formed record.
-                        parentRecord = newRecords.get(recordUpload.getParentId());
-                    }
-                    if (parentRecord == null) {
-                        // error!
-                        log.error("Parent record id : "
-                                + recordUpload.getParentId()
-                                + " was requested but was not found in the list of added records. Can't assign parent record!");
-                        throw new DataReferenceException(
-                                formatErrorString(recordUpload, "Cannot find the parent id = "
-                                        + recordUpload.getParentId()
-                                        + ". The ID does not exist in the database nor does it reference a newly created ID in the uploaded data"));
+                        rec = new Record();
+                        if (org.springframework.util.StringUtils.hasLength(recordUpload.getId())) {
+                            newRecords.put(recordUpload.getId().trim(), rec);
+                        }
                     }
-                    // check if the parent record is a valid one i.e. does it fulfill the census method rules.
-                    if (rec.getCensusMethod() == null) {
-                        String err = formatErrorString(recordUpload, "The census method of the row is null, unable to assign a parent record. Review the census method listing for valid combinations.");
-                        throw new DataReferenceException(err);
+
+                    Integer censusMethodId = recordUpload.getCensusMethodId();
+                    CensusMethod cm = null;
+                    if (censusMethodId != null) {
+                        cm = censusMethods.get(censusMethodId);
                     }
-                    if (parentRecord.getCensusMethod() == null) {
-                        throw new DataReferenceException(
-                                formatErrorString(recordUpload, "The census method of the parent record of the row is null, unable to assign a parent record. Review the census method listing for valid combinations."));
+                    rec.setCensusMethod(cm);
+                    
+                    if (cm == null && recordUpload.getCensusMethodId() != null) {
+                        // a census method has been requested but it is invalid!
+                        throw invalidCensusMethod(recordUpload);
                     }
-                    if (!parentRecord.getCensusMethod().getCensusMethods().contains(rec.getCensusMethod())) {
-                        throw new DataReferenceException(
-                                formatErrorString(recordUpload, "The census method of the child record record is not a valid child census method of the parent record. Review the census method listing for valid combinations."));
+                    // Set parent record if requested...
+                    if (org.springframework.util.StringUtils.hasLength(recordUpload.getParentId())) {
+                        Record parentRecord;
+                        try {
+                            Lsid lsid = lsidService.fromLSID(recordUpload.getParentId());
+                            parentRecord = existingRecords.get(lsid.getObjectId());
+                        } catch (IllegalArgumentException iae) {
+                            // The parent record must be a newly formed record,
+                            // either in this chunk or in a chunk that has been committed.
+                            parentRecord = newRecords.get(recordUpload.getParentId());
+                            if (parentRecord == null) {
+                                Integer parentPk = checkpoint.getNewRecordIds().get(recordUpload.getParentId());
+                                parentRecord = parentPk == null ? null : existingRecords.get(parentPk);
+                            }
+                        }
+                        if (parentRecord == null) {
+                            throw parentNotFound(recordUpload);
+                        }
+                        // check if the parent record is a valid one i.e. does it fulfill the census method rules.
+                        checkParentCensusMethod(recordUpload, parentRecord.getCensusMethod(), rec.getCensusMethod());
+                        rec.setParentRecord(parentRecord);
+                    } else {
+                        rec.setParentRecord(null);
                     }
-                    rec.setParentRecord(parentRecord);
-                } else {
-                    rec.setParentRecord(null);
-                }
 
-                rec.setSurvey(bulkUpload.getSurveyByName(recordUpload.getSurveyName()));
+                    rec.setSurvey(bulkUpload.getSurveyByName(recordUpload.getSurveyName()));
 
-                if (recordUpload.getScientificName() != null
-                        && !recordUpload.getScientificName().isEmpty()) {
-                    species = bulkUpload.getIndicatorSpeciesByScientificName(recordUpload.getScientificName());
-                } else {
-                    species = bulkUpload.getIndicatorSpeciesByCommonName(recordUpload.getCommonName());
-                }
+                    if (recordUpload.getScientificName() != null
+                            && !recordUpload.getScientificName().isEmpty()) {
+                        species = bulkUpload.getIndicatorSpeciesByScientificName(recordUpload.getScientificName());
+                    } else {
+                        species = bulkUpload.getIndicatorSpeciesByCommonName(recordUpload.getCommonName());
+                    }
 
-                // it's possible to have an empty species.
-                // a survey with no species actually includes everything
-            	if (isInvalidSurveySpecies(survey, species)) {
-                    bulkUpload.getInvalidSurveySpecies().put(species, survey);
-                }
-                
-                // always set the record species even if it's null.
-                rec.setSpecies(species);
+                    // it's possible to have an empty species.
+                    // a survey with no species actually includes everything
+                    if (isInvalidSurveySpecies(survey, species)) {
+                        bulkUpload.getInvalidSurveySpecies().put(species, survey);
+                    }
+                    
+                    // always set the record species even if it's null.
+                    rec.setSpecies(species);
 
-                rec.setUser(recordedBy);
+                    rec.setUser(recordedBy);
+
+                    // the location name of an exported workbook is a formula that
+                    // looks up the id, it is blank if the workbook was saved
+                    // without the results of its formulas.
+                    if (recordUpload.getLocationId() != null || !recordUpload.isGPSLocationName()) {
+                        
+                        Location loc;
+                        if (recordUpload.getLocationId() != null) {
+                            loc = locationPkMap.get(recordUpload.getLocationId());
+                        } else {
+                            loc = locationNameMap.get(recordUpload.getLocationName());
+                        }
+                        
+                        rec.setLocation(loc);
+                    }
+                    if (recordUpload.hasLatitudeLongitude()) {
+                        BdrsCoordReferenceSystem crs = BdrsCoordReferenceSystem.getByText(recordUpload.getEpsg());
+                        if (crs == null) {
+                            crs = getSurveyCrs(sesh, survey, surveyCrs);
+                        }
+                        SpatialUtil spatialUtil = spatialUtilFactory.getLocationUtil(crs.getSrid());
+                        rec.setPoint(spatialUtil.createPoint(recordUpload.getLatitude(), recordUpload.getLongitude()));
+                    }
 
-                if (!recordUpload.isGPSLocationName()) {
-                    // log.info("Not a gps location");
+                    rec.setHeld(recordUpload.isHeld());
+                    rec.setWhen(recordUpload.getWhen());
+                    Long recordUploadTime = recordUpload.getTime() != null ? recordUpload.getTime().getTime() : null;
+                    rec.setTime(recordUploadTime);
+                    rec.setLastDate(recordUpload.getLastDate() != null ? recordUpload.getLastDate()
+                            : recordUpload.getWhen());
                     
-                    Location loc;
-                    if (recordUpload.getLocationId() != null) {
-                        loc = locationPkMap.get(recordUpload.getLocationId());
+                    // Setting of rec.setLastTime was previously done by using a ternary operator
+                    // however it caused a null pointer exception when recordUploadTime was null.
+                    // Not sure why this occured by implementing the if logic as follows fixes
+                    // the issue.
+                    if (recordUpload.getLastTime() != null) {
+                        rec.setLastTime(recordUpload.getLastTime().getTime());
                     } else {
-                        loc = locationNameMap.get(recordUpload.getLocationName());
+                        rec.setLastTime(recordUploadTime);
                     }
-                    
-                    rec.setLocation(loc);
-                }
-                if (recordUpload.hasLatitudeLongitude()) {
-                	BdrsCoordReferenceSystem crs = BdrsCoordReferenceSystem.getByText(recordUpload.getEpsg());
-                	if (crs == null) {
-                		crs = geoMapService.getForSurvey(sesh, survey).getCrs();
-                	}
-                	SpatialUtil spatialUtil = spatialUtilFactory.getLocationUtil(crs.getSrid());
-                    rec.setPoint(spatialUtil.createPoint(recordUpload.getLatitude(), recordUpload.getLongitude()));
-                }
-
-                rec.setHeld(recordUpload.isHeld());
-                rec.setWhen(recordUpload.getWhen());
-                Long recordUploadTime = recordUpload.getTime() != null ? recordUpload.getTime().getTime() : null;
-                rec.setTime(recordUploadTime);
-                rec.setLastDate(recordUpload.getLastDate() != null ? recordUpload.getLastDate()
-                        : recordUpload.getWhen());
-                
-                // Setting of rec.setLastTime was previously done by using a ternary operator
-                // however it caused a null pointer exception when recordUploadTime was null.
-                // Not sure why this occured by implementing the if logic as follows fixes
-                // the issue.
-                if (recordUpload.getLastTime() != null) {
-                	rec.setLastTime(recordUpload.getLastTime().getTime());
-                } else {
-                	rec.setLastTime(recordUploadTime);
-                }
 
-                rec.setNotes(recordUpload.getNotes());
-                rec.setFirstAppearance(recordUpload.getFirstAppearance());
-                rec.setLastAppearance(recordUpload.getLastAppearance());
-                rec.setBehaviour(recordUpload.getBehaviour());
-                rec.setHabitat(recordUpload.getHabitat());
-                rec.setNumber(recordUpload.getNumberSeen());
-
-                // Insert the current attributes into a lookup.
-                // We will remove attributes that we retain out of this lookup.
-                // At the end, any attribute remaining in the lookup will be
-                // deleted.
-                Map<Attribute, AttributeValue> recordAttributeMap = new HashMap<Attribute, AttributeValue>();
-                for (AttributeValue curAttr : rec.getAttributes()) {
-                    recordAttributeMap.put(curAttr.getAttribute(), curAttr);
-                }
+                    rec.setNotes(recordUpload.getNotes());
+                    rec.setFirstAppearance(recordUpload.getFirstAppearance());
+                    rec.setLastAppearance(recordUpload.getLastAppearance());
+                    rec.setBehaviour(recordUpload.getBehaviour());
+                    rec.setHabitat(recordUpload.getHabitat());
+                    rec.setNumber(recordUpload.getNumberSeen());
+
+                    // Insert the current attributes into a lookup.
+                    // We will remove attributes that we retain out of this lookup.
+                    // At the end, any attribute remaining in the lookup will be
+                    // deleted.
+                    Map<Attribute, AttributeValue> recordAttributeMap = new HashMap<Attribute, AttributeValue>();
+                    for (AttributeValue curAttr : rec.getAttributes()) {
+                        recordAttributeMap.put(curAttr.getAttribute(), curAttr);
+                    }
 
-                Set<AttributeValue> recAttrSet = new HashSet<AttributeValue>();
-                Set<AttributeValue> delAttrSet = new HashSet<AttributeValue>();
-                
-                if (species != null) {
-                    for (Attribute taxonAttr : species.getTaxonGroup().getAttributes()) {
-                        String recAttrValue = recordUpload.getNamedAttribute(XlsRecordRow.SURVEY_ATTR_NAMESPACE, taxonAttr.getName());
-                        if (!taxonAttr.isTag()
-                                && org.springframework.util.StringUtils.hasLength(recAttrValue)) {
-                            AttributeValue recAttr = createAttributeValue(sesh, recordAttributeMap, taxonAttr, recAttrValue, survey, bulkUpload);
-                            recAttrSet.add(recAttr);
+                    Set<AttributeValue> recAttrSet = new HashSet<AttributeValue>();
+                    Set<AttributeValue> delAttrSet = new HashSet<AttributeValue>();
+                    
+                    if (species != null) {
+                        for (Attribute taxonAttr : species.getTaxonGroup().getAttributes()) {
+                            String recAttrValue = recordUpload.getNamedAttribute(XlsRecordRow.SURVEY_ATTR_NAMESPACE, taxonAttr.getName());
+                            if (!taxonAttr.isTag()
+                                    && org.springframework.util.StringUtils.hasLength(recAttrValue)) {
+                                AttributeValue recAttr = createAttributeValue(sesh, recordAttributeMap, taxonAttr, recAttrValue, survey, bulkUpload);
+                                recAttrSet.add(recAttr);
+                            }
                         }
                     }
-                }
 
-                for (Attribute surveyAttr : survey.getAttributes()) {
-                    if (!AttributeScope.LOCATION.equals(surveyAttr.getScope())) {
-                        String recAttrValue = recordUpload.getNamedAttribute(XlsRecordRow.SURVEY_ATTR_NAMESPACE, surveyAttr.getDescription());
-                        // If there is no column for the attribute, recAttrValue will be null.
-                        // For certain attribute types e.g. image, audio, file there will be no column in the exported spreadsheet, 
-                        // these will be ignored when writing to the record.
-                        // There are also special 'orphan' attributes like Field Name which won't be on the exported spreadsheet.
-                        if (recAttrValue != null) {
-                            // There is a column for the attribute.
-                            // Delete if the value is an empty string!
-                            if (!recAttrValue.isEmpty()) {
-                                AttributeValue recAttr = createAttributeValue(sesh, recordAttributeMap, surveyAttr, recAttrValue, survey, bulkUpload);
-                                recAttrSet.add(recAttr);
-                            } else {
-                                AttributeValue av = recordAttributeMap.get(surveyAttr);
-                                if (av != null) {
-                                    delAttrSet.add(av);
+                    for (Attribute surveyAttr : survey.getAttributes()) {
+                        if (!AttributeScope.LOCATION.equals(surveyAttr.getScope())) {
+                            String recAttrValue = recordUpload.getNamedAttribute(XlsRecordRow.SURVEY_ATTR_NAMESPACE, surveyAttr.getDescription());
+                            // If there is no column for the attribute, recAttrValue will be null.
+                            // For certain attribute types e.g. image, audio, file there will be no column in the exported spreadsheet, 
+                            // these will be ignored when writing to the record.
+                            // There are also special 'orphan' attributes like Field Name which won't be on the exported spreadsheet.
+                            if (recAttrValue != null) {
+                                // There is a column for the attribute.
+                                // Delete if the value is an empty string!
+                                if (!recAttrValue.isEmpty()) {
+                                    AttributeValue recAttr = createAttributeValue(sesh, recordAttributeMap, surveyAttr, recAttrValue, survey, bulkUpload);
+                                    recAttrSet.add(recAttr);
+                                } else {
+                                    AttributeValue av = recordAttributeMap.get(surveyAttr);
+                                    if (av != null) {
+                                        delAttrSet.add(av);
+                                    }
                                 }
                             }
                         }
                     }
-                }
 
-                if (cm != null) {
-                    for (Attribute censusMethodAttr : cm.getAttributes()) {
-                        String cmNamespace = bulkDataReadWriteService.formatCensusMethodNameId(cm);
-                        String cmAttrValue = recordUpload.getNamedAttribute(cmNamespace, censusMethodAttr.getDescription());
-                        // If there is no column for the attribute, recAttrValue will be null.
-                        // For certain attribute types e.g. image, audio, file there will be no column in the exported spreadsheet, 
-                        // these will be ignored when writing to the record.
-                        // There are also special 'orphan' attributes like Field Name which won't be on the exported spreadsheet.
-                        if (cmAttrValue != null) {
-                            // There is a column for the attribute.
-                            // Delete if the value is an empty string!
-                            if (!cmAttrValue.isEmpty()) {
-                                AttributeValue recAttr = createAttributeValue(sesh, recordAttributeMap, censusMethodAttr, cmAttrValue, survey, bulkUpload);
-                                recAttrSet.add(recAttr);
-                            } else {
-                                AttributeValue av = recordAttributeMap.get(censusMethodAttr);
-                                if (av != null) {
-                                    delAttrSet.add(av);
+                    if (cm != null) {
+                        for (Attribute censusMethodAttr : cm.getAttributes()) {
+                            String cmNamespace = bulkDataReadWriteService.formatCensusMethodNameId(cm);
+                            String cmAttrValue = recordUpload.getNamedAttribute(cmNamespace, censusMethodAttr.getDescription());
+                            // If there is no column for the attribute, recAttrValue will be null.
+                            // For certain attribute types e.g. image, audio, file there will be no column in the exported spreadsheet, 
+                            // these will be ignored when writing to the record.
+                            // There are also special 'orphan' attributes like Field Name which won't be on the exported spreadsheet.
+                            if (cmAttrValue != null) {
+                                // There is a column for the attribute.
+                                // Delete if the value is an empty string!
+                                if (!cmAttrValue.isEmpty()) {
+                                    AttributeValue recAttr = createAttributeValue(sesh, recordAttributeMap, censusMethodAttr, cmAttrValue, survey, bulkUpload);
+                                    recAttrSet.add(recAttr);
+                                } else {
+                                    AttributeValue av = recordAttributeMap.get(censusMethodAttr);
+                                    if (av != null) {
+                                        delAttrSet.add(av);
+                                    }
                                 }
                             }
                         }
                     }
-                }
 
-                // We still want to preserve all of the old attribute values.
-                // Since we are using a set, this should avoid duplicates.
-                // If attribute values are marked for deletion then don't add them!
-                for (AttributeValue av : rec.getAttributes()) {
-                    if (!delAttrSet.contains(av)) {
-                        recAttrSet.add(av);
+                    // We still want to preserve all of the old attribute values.
+                    // Since we are using a set, this should avoid duplicates.
+                    // If attribute values are marked for deletion then don't add them!
+                    for (AttributeValue av : rec.getAttributes()) {
+                        if (!delAttrSet.contains(av)) {
+                            recAttrSet.add(av);
+                        }
                     }
-                }
-                rec.setAttributes(recAttrSet);
+                    rec.setAttributes(recAttrSet);
 
-                // Set record visibility to survey default. Setting via web form not supported.
-                // Survey's default record visibility can be set in the 'admin -> projects' interface
-                rec.setRecordVisibility(survey.getDefaultRecordVisibility());
+                    // Set record visibility to survey default. Setting via web form not supported.
+                    // Survey's default record visibility can be set in the 'admin -> projects' interface
+                    rec.setRecordVisibility(survey.getDefaultRecordVisibility());
 
-                rec = recordDAO.save(sesh, rec);
-                records.add(rec);
+                    rec = recordDAO.save(sesh, rec);
+                    chunkRecords.add(rec);
 
-                // Delete any remaining RecordAttributes
-                for (AttributeValue av : delAttrSet) {
-                    recordDAO.delete(sesh, av);
+                    // Delete any remaining RecordAttributes
+                    for (AttributeValue av : delAttrSet) {
+                        recordDAO.delete(sesh, av);
+                    }
+                    
+                    count += 1;
+                    if(count % 100 == 0) {
+                        log.info(String.format("%d records saved", count));
+                    }
                 }
-                
-                count += 1;
-                if(count % 100 == 0) {
-                    log.info(String.format("%d records saved", count));
+
+                for (Survey updated : updatedSurveys) {
+                    surveyDAO.update(sesh, updated);
+                }
+                for (Group updated : updatedGroups) {
+                    groupDAO.update(sesh, updated);
                 }
-            }
 
-            if (bulkUpload.hasInvalidSurveySpecies()) {
-                tx.rollback();
+                if (bulkUpload.hasInvalidSurveySpecies()) {
+                    tx.rollback();
+
+                    throw new InvalidSurveySpeciesException();
+                }
 
-                throw new InvalidSurveySpeciesException();
-            } else {
                 log.info("Committing records...");
                 tx.commit();
+                tx = null;
+
+                // Remember what the remaining rows may refer to.
+                for (Map.Entry<String, Record> entry : newRecords.entrySet()) {
+                    checkpoint.putNewRecordId(entry.getKey(), entry.getValue().getId());
+                }
+                newRecords.clear();
+                for (Location loc : locationNameMap.values()) {
+                    checkpoint.putLocationId(loc.getName(), loc.getId());
+                }
+                long now = System.currentTimeMillis();
+                checkpoint.chunkCommitted(chunkEnd, now - start);
+                start = now;
+                log.info(String.format("Committed records %d to %d of %d (%.0f records/s)",
+                        rowIndex + 1, chunkEnd, rowCount, checkpoint.getRowsPerSecond()));
+
+                // Only the surveys, species, locations and other data shared
+                // by the rows remain in the session.
+                chunkRecords.addAll(existingRecords.values());
+                evictRecords(sesh, chunkRecords);
+                rowIndex = chunkEnd;
+            }
+
+            if (tx != null) {
+                // There were no records left to save.
+                tx.commit();
+                tx = null;
             }
         } finally {
+            if (tx != null && tx.isActive()) {
+                try {
+                    tx.rollback();
+                } catch (HibernateException he) {
+                    log.error("Unable to roll back the bulk upload", he);
+                }
+            }
             sesh.close();
         }
-        return records;
+        return count;
+    }
+
+    /**
+     * Checks the references of the rows of an upload before any of them are
+     * saved, so that a row that cannot be saved fails the upload before the
+     * rows before it are committed. The checks are the same as those made
+     * when each row is saved.
+     * @param recordUploads the rows that have not been committed.
+     * @throws DataReferenceException if a row refers to a record or census
+     * method that does not exist, or to a parent record that it cannot be a
+     * child of.
+     * @throws InvalidSurveySpeciesException if a row refers to a species that
+     * is not in its survey.
+     */
+    private void validateRecords(Session sesh, BulkUpload bulkUpload,
+            Map<Integer, CensusMethod> censusMethods, List<RecordUpload> recordUploads,
+            BulkUploadCheckpoint checkpoint) throws DataReferenceException, InvalidSurveySpeciesException {
+
+        // The census methods of the existing records referred to by the rows,
+        // only the census methods are loaded rather than the records.
+        Set<Integer> ids = new HashSet<Integer>();
+        for (RecordUpload recordUpload : recordUploads) {
+            Integer pk = getRecordPk(recordUpload.getId());
+            if (pk != null) {
+                ids.add(pk);
+            }
+            if (org.springframework.util.StringUtils.hasLength(recordUpload.getParentId())) {
+                pk = getRecordPk(recordUpload.getParentId());
+                if (pk == null) {
+                    pk = checkpoint.getNewRecordIds().get(recordUpload.getParentId());
+                }
+                if (pk != null) {
+                    ids.add(pk);
+                }
+            }
+        }
+        Map<Integer, Integer> existingCensusMethodIds = recordDAO.getCensusMethodIds(sesh, ids);
+        Map<Integer, CensusMethod> parentCensusMethods = new HashMap<Integer, CensusMethod>(censusMethods);
+        Set<Integer> missingCensusMethodIds = new HashSet<Integer>(existingCensusMethodIds.values());
+        missingCensusMethodIds.remove(null);
+        missingCensusMethodIds.removeAll(censusMethods.keySet());
+        if (!missingCensusMethodIds.isEmpty()) {
+            for (CensusMethod cm : censusMethodDAO.getByIDs(sesh, CensusMethod.class, missingCensusMethodIds)) {
+                parentCensusMethods.put(cm.getId(), cm);
+            }
+        }
+
+        // The census methods of the new records of the rows that have been checked.
+        Map<String, CensusMethod> newRecordCensusMethods = new HashMap<String, CensusMethod>();
+        for (RecordUpload recordUpload : recordUploads) {
+            Integer pk = getRecordPk(recordUpload.getId());
+            if (pk != null && !existingCensusMethodIds.containsKey(pk)) {
+                throw recordNotFound(recordUpload);
+            }
+
+            CensusMethod cm = null;
+            if (recordUpload.getCensusMethodId() != null) {
+                cm = censusMethods.get(recordUpload.getCensusMethodId());
+                if (cm == null) {
+                    throw invalidCensusMethod(recordUpload);
+                }
+            }
+            if (pk == null && org.springframework.util.StringUtils.hasLength(recordUpload.getId())) {
+                newRecordCensusMethods.put(recordUpload.getId().trim(), cm);
+            }
+
+            String parentId = recordUpload.getParentId();
+            if (org.springframework.util.StringUtils.hasLength(parentId)) {
+                Integer parentPk = getRecordPk(parentId);
+                CensusMethod parentCm;
+                if (parentPk == null && newRecordCensusMethods.containsKey(parentId)) {
+                    parentCm = newRecordCensusMethods.get(parentId);
+                } else {
+                    if (parentPk == null) {
+                        parentPk = checkpoint.getNewRecordIds().get(parentId);
+                    }
+                    if (parentPk == null || !existingCensusMethodIds.containsKey(parentPk)) {
+                        throw parentNotFound(recordUpload);
+                    }
+                    Integer parentCmId = existingCensusMethodIds.get(parentPk);
+                    parentCm = parentCmId == null ? null : parentCensusMethods.get(parentCmId);
+                }
+                checkParentCensusMethod(recordUpload, parentCm, cm);
+            }
+
+            Survey survey = bulkUpload.getSurveyByName(recordUpload.getSurveyName());
+            IndicatorSpecies species;
+            if (recordUpload.getScientificName() != null
+                    && !recordUpload.getScientificName().isEmpty()) {
+                species = bulkUpload.getIndicatorSpeciesByScientificName(recordUpload.getScientificName());
+            } else {
+                species = bulkUpload.getIndicatorSpeciesByCommonName(recordUpload.getCommonName());
+            }
+            if (isInvalidSurveySpecies(survey, species)) {
+                bulkUpload.getInvalidSurveySpecies().put(species, survey);
+            }
+            if (survey == null) {
+                continue;
+            }
+
+            // the species of the species attributes must also be in the survey
+            if (species != null) {
+                for (Attribute taxonAttr : species.getTaxonGroup().getAttributes()) {
+                    if (!taxonAttr.isTag()) {
+                        checkSpeciesAttribute(bulkUpload, survey, taxonAttr,
+                                recordUpload.getNamedAttribute(XlsRecordRow.SURVEY_ATTR_NAMESPACE, taxonAttr.getName()));
+                    }
+                }
+            }
+            for (Attribute surveyAttr : survey.getAttributes()) {
+                if (!AttributeScope.LOCATION.equals(surveyAttr.getScope())) {
+                    checkSpeciesAttribute(bulkUpload, survey, surveyAttr,
+                            recordUpload.getNamedAttribute(XlsRecordRow.SURVEY_ATTR_NAMESPACE, surveyAttr.getDescription()));
+                }
+            }
+            if (cm != null) {
+                String cmNamespace = bulkDataReadWriteService.formatCensusMethodNameId(cm);
+                for (Attribute censusMethodAttr : cm.getAttributes()) {
+                    checkSpeciesAttribute(bulkUpload, survey, censusMethodAttr,
+                            recordUpload.getNamedAttribute(cmNamespace, censusMethodAttr.getDescription()));
+                }
+            }
+        }
+
+        if (bulkUpload.hasInvalidSurveySpecies()) {
+            throw new InvalidSurveySpeciesException();
+        }
+    }
+
+    private void checkSpeciesAttribute(BulkUpload bulkUpload, Survey survey, Attribute attr, String value) {
+        if (!AttributeType.SPECIES.equals(attr.getType())
+                || !org.springframework.util.StringUtils.hasLength(value)) {
+            return;
+        }
+        IndicatorSpecies species = bulkUpload.getIndicatorSpeciesByScientificName(value);
+        if (species == null) {
+            species = bulkUpload.getIndicatorSpeciesByCommonName(value);
+        }
+        if (species != null && isInvalidSurveySpecies(survey, species)) {
+            bulkUpload.getInvalidSurveySpecies().put(species, survey);
+        }
+    }
+
+    /**
+     * @return the primary key of the record of an LSID, or null if the id
+     * is not an LSID and so refers to a new record.
+     */
+    private Integer getRecordPk(String id) {
+        try {
+            return lsidService.fromLSID(id).getObjectId();
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    private void checkParentCensusMethod(RecordUpload recordUpload, CensusMethod parentCm, CensusMethod cm)
+            throws DataReferenceException {
+        if (cm == null) {
+            throw new DataReferenceException(
+                    formatErrorString(recordUpload, "The census method of the row is null, unable to assign a parent record. Review the census method listing for valid combinations."));
+        }
+        if (parentCm == null) {
+            throw new DataReferenceException(
+                    formatErrorString(recordUpload, "The census method of the parent record of the row is null, unable to assign a parent record. Review the census method listing for valid combinations."));
+        }
+        if (!parentCm.getCensusMethods().contains(cm)) {
+            throw new DataReferenceException(
+                    formatErrorString(recordUpload, "The census method of the child record record is not a valid child census method of the parent record. Review the census method listing for valid combinations."));
+        }
+    }
+
+    private DataReferenceException recordNotFound(RecordUpload recordUpload) {
+        return new DataReferenceException(
+                formatErrorString(recordUpload, "Cannot find the record id = "
+                        + recordUpload.getId()
+                        + ". The ID does not exist in the database"));
+    }
+
+    private DataReferenceException invalidCensusMethod(RecordUpload recordUpload) {
+        return new DataReferenceException(
+                formatErrorString(recordUpload, "You have requested a census method id = "
+                        + recordUpload.getCensusMethodId()
+                        + " but it is invalid. Only use the ID's exactly as they appear on provided Census Method list bundled with your template"));
+    }
+
+    private DataReferenceException parentNotFound(RecordUpload recordUpload) {
+        log.error("Parent record id : "
+                + recordUpload.getParentId()
+                + " was requested but was not found in the list of added records. Can't assign parent record!");
+        return new DataReferenceException(
+                formatErrorString(recordUpload, "Cannot find the parent id = "
+                        + recordUpload.getParentId()
+                        + ". The ID does not exist in the database nor does it reference a newly created ID in the uploaded data"));
+    }
+
+    /**
+     * Loads the census methods referred to by the rows of an upload.
+     * @return the census methods by primary key.
+     */
+    private Map<Integer, CensusMethod> preloadCensusMethods(Session sesh, BulkUpload bulkUpload) {
+        Set<Integer> ids = new HashSet<Integer>();
+        for (RecordUpload recordUpload : bulkUpload.getRecordUploadList()) {
+            if (recordUpload.getCensusMethodId() != null) {
+                ids.add(recordUpload.getCensusMethodId());
+            }
+        }
+        Map<Integer, CensusMethod> censusMethods = new HashMap<Integer, CensusMethod>(ids.size());
+        for (CensusMethod cm : censusMethodDAO.getByIDs(sesh, CensusMethod.class, ids)) {
+            censusMethods.put(cm.getId(), cm);
+        }
+        return censusMethods;
+    }
+
+    /**
+     * Loads the existing records referred to by a chunk of rows, either as
+     * the record to be updated or as the parent record, with their attribute
+     * values.
+     * @return the records by primary key.
+     */
+    private Map<Integer, Record> preloadRecords(Session sesh, List<RecordUpload> chunk,
+            BulkUploadCheckpoint checkpoint) {
+        Set<Integer> ids = new HashSet<Integer>();
+        for (RecordUpload recordUpload : chunk) {
+            try {
+                ids.add(lsidService.fromLSID(recordUpload.getId()).getObjectId());
+            } catch (IllegalArgumentException iae) {
+                // A new record
+            }
+            if (org.springframework.util.StringUtils.hasLength(recordUpload.getParentId())) {
+                try {
+                    ids.add(lsidService.fromLSID(recordUpload.getParentId()).getObjectId());
+                } catch (IllegalArgumentException iae) {
+                    // A new record, that may have been saved by a previous chunk
+                    Integer parentPk = checkpoint.getNewRecordIds().get(recordUpload.getParentId());
+                    if (parentPk != null) {
+                        ids.add(parentPk);
+                    }
+                }
+            }
+        }
+        Map<Integer, Record> existingRecords = new HashMap<Integer, Record>(ids.size());
+        for (Record rec : recordDAO.getRecordsWithAttributes(sesh, ids)) {
+            existingRecords.put(rec.getId(), rec);
+        }
+        return existingRecords;
     }
 
     private AttributeValue createAttributeValue(Session sesh,
@@ -1141,7 +1658,20 @@ public abstract class AbstractBulkDataService {
 
     private void populateLocation(Session sesh, User owner,
             BulkUpload bulkUpload, Map<Integer, Location> locationPkMap,
-            Map<String, Location> locationNameMap, SpatialUtilFactory spatialUtilFactory) {
+            Map<String, Location> locationNameMap, SpatialUtilFactory spatialUtilFactory,
+            Map<Integer, BdrsCoordReferenceSystem> surveyCrs) {
+
+        // The existing locations are loaded together rather than one at a time.
+        Set<Integer> locationIds = new HashSet<Integer>();
+        for (LocationUpload locUpload : bulkUpload.getLocationUploads()) {
+            if (locUpload.getPk() != LocationUpload.DEFAULT_PK) {
+                locationIds.add(locUpload.getPk());
+            }
+        }
+        Map<Integer, Location> existingLocations = new HashMap<Integer, Location>(locationIds.size());
+        for (Location loc : locationDAO.getByIDs(sesh, Location.class, locationIds)) {
+            existingLocations.put(loc.getId(), loc);
+        }
 
         for (LocationUpload locUpload : bulkUpload.getLocationUploads()) {
             Location location = null;
@@ -1150,7 +1680,7 @@ public abstract class AbstractBulkDataService {
                     && !RecordRow.GPS_LOCATION.equals(locUpload.getLocationName())
                     && !locUpload.getLocationName().isEmpty()) {
 
-                location = locationDAO.getLocation(sesh, locUpload.getPk());
+                location = existingLocations.get(locUpload.getPk());
                 if (location == null) {
                     log.debug("Creating location: " + locUpload.getSurveyName()
                             + " - " + locUpload.getLocationName());
@@ -1164,7 +1694,7 @@ public abstract class AbstractBulkDataService {
                         
                         BdrsCoordReferenceSystem crs = BdrsCoordReferenceSystem.getByText(locUpload.getEpsg());
                     	if (crs == null) {
-                    		crs = geoMapService.getForSurvey(sesh, survey).getCrs();
+                    		crs = getSurveyCrs(sesh, survey, surveyCrs);
                     	}
                     	SpatialUtil spatialUtil = spatialUtilFactory.getLocationUtil(crs.getSrid());
                         location.setLocation(spatialUtil.createPoint(locUpload.getLatitude(), locUpload.getLongitude()));
@@ -1172,8 +1702,6 @@ public abstract class AbstractBulkDataService {
                         survey.getLocations().add(location);
                         
                         location = locationDAO.save(sesh, location);
-                        
-                        sesh.flush();
 
                         locationPkMap.put(location.getId(), location);
                         locationNameMap.put(location.getName(), location);
@@ -1213,6 +1741,20 @@ public abstract class AbstractBulkDataService {
         }
     }
     
+    /**
+     * @return the coordinate reference system of the survey map, looked up
+     * once for each survey.
+     */
+    private BdrsCoordReferenceSystem getSurveyCrs(Session sesh, Survey survey,
+            Map<Integer, BdrsCoordReferenceSystem> surveyCrs) {
+        BdrsCoordReferenceSystem crs = surveyCrs.get(survey.getId());
+        if (crs == null) {
+            crs = geoMapService.getForSurvey(sesh, survey).getCrs();
+            surveyCrs.put(survey.getId(), crs);
+        }
+        return crs;
+    }
+
     private boolean isInvalidSurveySpecies(Survey survey, IndicatorSpecies species) {
     	return survey == null || 
     			(species != null && !survey.getSpecies().isEmpty() && !survey.getSpecies().contains(species));
@@ -1319,93 +1861,113 @@ public abstract class AbstractBulkDataService {
         return missingItems;
     }
     
-    private List<IndicatorSpecies> searchForSpeciesName(Session sesh, Collection<Survey> surveys, String speciesName) {
-    	List<IndicatorSpecies> matchingSpecies = taxaDAO.getIndicatorSpeciesByScientificName(sesh, surveys, speciesName);
-    	if (matchingSpecies.isEmpty()) {
-    		matchingSpecies = taxaDAO.getIndicatorSpeciesByCommonName(sesh, surveys, speciesName);
-    	}
-    	return matchingSpecies;
-    }
-
     private List<String> populateIndicatorSpecies(Session sesh,
-            BulkUpload bulkUpload) {
+            BulkUpload bulkUpload, Map<Integer, CensusMethod> censusMethods) {
         List<String> missingItems = new ArrayList<String>();
-        for (String scientificName : bulkUpload.getIndicatorSpeciesScientificName()) {
-        	scientificName = scientificName != null ? scientificName.trim() : "";
-        	if (!scientificName.isEmpty()) {
-                List<IndicatorSpecies> matchingSpecies =
-                        taxaDAO.getIndicatorSpeciesByScientificName(sesh, bulkUpload.getSurveys(), scientificName);
-                if (matchingSpecies.isEmpty()) {
-                    log.debug("Cannot find Indicator Species with scientific name: "
-                            + scientificName);
-                    missingItems.add(scientificName);
-                } else if(matchingSpecies.size() > 1) {
-                    log.debug("Multiple matching taxa found for the scientific name: " + scientificName);
-                    bulkUpload.addAmbiguousName(scientificName);
-                } else {
-                    log.debug("Retrieved Indicator Species: " + scientificName);
-                    bulkUpload.addIndicatorSpecies(matchingSpecies.get(0));
-                }	
-        	}
+        // All of the names in the spreadsheet are looked up together rather than one at a time.
+        List<String> scientificNames = trimNames(bulkUpload.getIndicatorSpeciesScientificName());
+        Map<String, List<IndicatorSpecies>> scientificNameMatches =
+                taxaDAO.getIndicatorSpeciesByScientificNames(sesh, bulkUpload.getSurveys(), scientificNames);
+        for (String scientificName : scientificNames) {
+            List<IndicatorSpecies> matchingSpecies = getMatchingSpecies(scientificNameMatches, scientificName);
+            if (matchingSpecies.isEmpty()) {
+                log.debug("Cannot find Indicator Species with scientific name: "
+                        + scientificName);
+                missingItems.add(scientificName);
+            } else if(matchingSpecies.size() > 1) {
+                log.debug("Multiple matching taxa found for the scientific name: " + scientificName);
+                bulkUpload.addAmbiguousName(scientificName);
+            } else {
+                log.debug("Retrieved Indicator Species: " + scientificName);
+                bulkUpload.addIndicatorSpecies(matchingSpecies.get(0));
+            }
         }
 
-        for (String commonName : bulkUpload.getIndicatorSpeciesCommonName()) {
-        	commonName = commonName != null ? commonName.trim() : "";
-        	if (!commonName.isEmpty()) {
-                List<IndicatorSpecies> matchingSpecies =
-                    taxaDAO.getIndicatorSpeciesByCommonName(sesh, bulkUpload.getSurveys(), commonName);
-                if (matchingSpecies.isEmpty()) {
-                    log.debug("Cannot find Indicator Species with common name: "
-                            + commonName);
-                    missingItems.add(commonName);
-                } else if(matchingSpecies.size() > 1) {
-                    log.debug("Multiple matching taxa found for the common name: " + commonName);
-                    bulkUpload.addAmbiguousName(commonName);
-                } else {
-                    log.debug("Retrieved Indicator Species: " + commonName);
-                    bulkUpload.addIndicatorSpecies(matchingSpecies.get(0));
-                }	
-        	}
+        List<String> commonNames = trimNames(bulkUpload.getIndicatorSpeciesCommonName());
+        Map<String, List<IndicatorSpecies>> commonNameMatches =
+                taxaDAO.getIndicatorSpeciesByCommonNames(sesh, bulkUpload.getSurveys(), commonNames);
+        for (String commonName : commonNames) {
+            List<IndicatorSpecies> matchingSpecies = getMatchingSpecies(commonNameMatches, commonName);
+            if (matchingSpecies.isEmpty()) {
+                log.debug("Cannot find Indicator Species with common name: "
+                        + commonName);
+                missingItems.add(commonName);
+            } else if(matchingSpecies.size() > 1) {
+                log.debug("Multiple matching taxa found for the common name: " + commonName);
+                bulkUpload.addAmbiguousName(commonName);
+            } else {
+                log.debug("Retrieved Indicator Species: " + commonName);
+                bulkUpload.addIndicatorSpecies(matchingSpecies.get(0));
+            }
         }
         
         // for taxon type attributes we first search by sci name then common name.
         // if we still can't find a matching indicator species we mark it as missing.
+        List<String> attributeNames = new ArrayList<String>();
         for (RecordUpload recordUpload : bulkUpload.getRecordUploadList()) {
         	Survey survey = bulkUpload.getSurveyByName(recordUpload.getSurveyName());
         	Integer censusMethodId = recordUpload.getCensusMethodId();
         	CensusMethod cm = null;
             if (censusMethodId != null) {
-                cm = censusMethodDAO.get(sesh, censusMethodId);
+                cm = censusMethods.get(censusMethodId);
             }
             for (Attribute surveyAttr : survey.getAttributes()) {
-            	populateSpeciesAttribute(sesh, surveyAttr, XlsRecordRow.SURVEY_ATTR_NAMESPACE, recordUpload, bulkUpload, missingItems);
+            	addSpeciesAttributeName(surveyAttr, XlsRecordRow.SURVEY_ATTR_NAMESPACE, recordUpload, attributeNames);
             }
 
             if (cm != null) {
                 for (Attribute censusMethodAttr : cm.getAttributes()) {
                 	String cmNamespace = bulkDataReadWriteService.formatCensusMethodNameId(cm);
-                	populateSpeciesAttribute(sesh, censusMethodAttr, cmNamespace, recordUpload, bulkUpload, missingItems);
+                	addSpeciesAttributeName(censusMethodAttr, cmNamespace, recordUpload, attributeNames);
                 }
             }
         }
+
+        Set<String> attributeNameSet = new HashSet<String>(attributeNames);
+        Map<String, List<IndicatorSpecies>> attributeMatches =
+                taxaDAO.getIndicatorSpeciesByScientificNames(sesh, bulkUpload.getSurveys(), attributeNameSet);
+        attributeNameSet.removeAll(attributeMatches.keySet());
+        attributeMatches.putAll(taxaDAO.getIndicatorSpeciesByCommonNames(sesh, bulkUpload.getSurveys(), attributeNameSet));
+        for (String speciesName : attributeNames) {
+            List<IndicatorSpecies> matchingSpecies = getMatchingSpecies(attributeMatches, speciesName);
+            if (matchingSpecies.isEmpty()) {
+                missingItems.add(speciesName);
+            } else if(matchingSpecies.size() > 1) {
+                bulkUpload.addAmbiguousName(speciesName);
+                log.debug("Multiple matching taxa found for the name: " + speciesName);
+            } else {
+                bulkUpload.addIndicatorSpecies(matchingSpecies.get(0));
+            }
+        }
         return missingItems;
     }
+
+    private List<String> trimNames(Collection<String> names) {
+        List<String> trimmed = new ArrayList<String>(names.size());
+        for (String name : names) {
+            name = name != null ? name.trim() : "";
+            if (!name.isEmpty()) {
+                trimmed.add(name);
+            }
+        }
+        return trimmed;
+    }
+
+    private List<IndicatorSpecies> getMatchingSpecies(Map<String, List<IndicatorSpecies>> matches, String name) {
+        List<IndicatorSpecies> matchingSpecies = matches.get(name);
+        if (matchingSpecies == null) {
+            matchingSpecies = Collections.emptyList();
+        }
+        return matchingSpecies;
+    }
     
-    private void populateSpeciesAttribute(Session sesh, Attribute attr, String namespace, 
-    		RecordUpload recordUpload, BulkUpload bulkUpload, List<String> missingItems) {
+    private void addSpeciesAttributeName(Attribute attr, String namespace, 
+    		RecordUpload recordUpload, List<String> speciesNames) {
     	if (AttributeType.SPECIES.equals(attr.getType()) && !AttributeScope.LOCATION.equals(attr.getScope())) {
             String speciesName = recordUpload.getNamedAttribute(namespace, attr.getDescription());
             speciesName = speciesName != null ? speciesName.trim() : "";
             if (!speciesName.isEmpty()) {
-            	List<IndicatorSpecies> matchingSpecies = searchForSpeciesName(sesh, bulkUpload.getSurveys(), speciesName);
-            	if (matchingSpecies.isEmpty()) {
-                    missingItems.add(speciesName);
-                } else if(matchingSpecies.size() > 1) {
-                    bulkUpload.addAmbiguousName(speciesName);
-                    log.debug("Multiple matching taxa found for the name: " + speciesName);
-                } else {
-                    bulkUpload.addIndicatorSpecies(matchingSpecies.get(0));
-                }
+                speciesNames.add(speciesName);
             }	
     	}
     }
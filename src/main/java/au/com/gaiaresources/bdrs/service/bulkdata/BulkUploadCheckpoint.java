@@ -0,0 +1,157 @@
+package au.com.gaiaresources.bdrs.service.bulkdata;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The progress of a {@link BulkUpload} that is saved in chunks. Each chunk of
+ * rows is committed in its own transaction and the checkpoint is advanced
+ * after the commit. If the upload fails, the rows before the checkpoint
+ * remain saved and the upload can be resumed by saving the same spreadsheet
+ * again with the same checkpoint, skipping the rows that were committed.
+ * A spreadsheet is the same if it has the same content and number of rows,
+ * whatever its name.
+ *
+ * The checkpoint also remembers the records and locations created by the
+ * committed rows so that the remaining rows can refer to them.
+ */
+public class BulkUploadCheckpoint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private Integer surveyId;
+    private String fileName;
+    private String contentHash;
+    private int rowCount = -1;
+
+    private int committedRowCount = 0;
+    // Spreadsheet record id : Record primary key
+    private Map<String, Integer> newRecordIds = new HashMap<String, Integer>();
+    // Location name : Location primary key
+    private Map<String, Integer> locationIds = new HashMap<String, Integer>();
+
+    private int chunkCount = 0;
+    private int savedRowCount = 0;
+    private long saveMillis = 0;
+
+    public BulkUploadCheckpoint() {
+    }
+
+    /**
+     * @param surveyId the survey the spreadsheet was uploaded to.
+     * @param fileName the name of the uploaded spreadsheet.
+     * @param contentHash a hash of the content of the uploaded spreadsheet.
+     * @param rowCount the number of record rows of the spreadsheet.
+     */
+    public BulkUploadCheckpoint(Integer surveyId, String fileName, String contentHash, int rowCount) {
+        this.surveyId = surveyId;
+        this.fileName = fileName;
+        this.contentHash = contentHash;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * @param surveyId the survey the spreadsheet was uploaded to.
+     * @param contentHash a hash of the content of the uploaded spreadsheet.
+     * @param rowCount the number of record rows of the spreadsheet.
+     * @return true if this checkpoint is the progress of the same spreadsheet.
+     */
+    public boolean matches(Integer surveyId, String contentHash, int rowCount) {
+        return this.surveyId != null && this.surveyId.equals(surveyId)
+                && this.contentHash != null && this.contentHash.equals(contentHash)
+                && this.rowCount == rowCount;
+    }
+
+    public Integer getSurveyId() {
+        return surveyId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * @return the number of record rows of the spreadsheet, -1 if unknown.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the number of rows, from the first row of the upload, that
+     * have been committed.
+     */
+    public int getCommittedRowCount() {
+        return committedRowCount;
+    }
+
+    /**
+     * @return the primary keys of the records created by the committed rows
+     * keyed by the record id in the spreadsheet.
+     */
+    public Map<String, Integer> getNewRecordIds() {
+        return Collections.unmodifiableMap(newRecordIds);
+    }
+
+    /**
+     * @return the primary keys of the locations of the upload keyed by name.
+     */
+    public Map<String, Integer> getLocationIds() {
+        return Collections.unmodifiableMap(locationIds);
+    }
+
+    /**
+     * @return the number of chunks committed since this checkpoint was created.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return the number of rows committed since this checkpoint was created.
+     */
+    public int getSavedRowCount() {
+        return savedRowCount;
+    }
+
+    /**
+     * @return the time spent saving the committed rows in milliseconds.
+     */
+    public long getSaveMillis() {
+        return saveMillis;
+    }
+
+    /**
+     * @return the number of rows committed per second.
+     */
+    public double getRowsPerSecond() {
+        return savedRowCount * 1000d / Math.max(1, saveMillis);
+    }
+
+    void putNewRecordId(String recordId, Integer pk) {
+        newRecordIds.put(recordId, pk);
+    }
+
+    void putLocationId(String locationName, Integer pk) {
+        locationIds.put(locationName, pk);
+    }
+
+    /**
+     * Advances the checkpoint after a chunk has been committed. May be
+     * overridden to report the progress of the upload as it is saved.
+     * @param committedRowCount the number of rows committed from the first row of the upload.
+     * @param millis the time spent saving the chunk.
+     */
+    protected void chunkCommitted(int committedRowCount, long millis) {
+        savedRowCount += committedRowCount - this.committedRowCount;
+        this.committedRowCount = committedRowCount;
+        saveMillis += millis;
+        chunkCount++;
+    }
+}
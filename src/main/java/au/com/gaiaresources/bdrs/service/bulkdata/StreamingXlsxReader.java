@@ -0,0 +1,359 @@
+package au.com.gaiaresources.bdrs.service.bulkdata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.ErrorConstants;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorkbook;
+
+/**
+ * Reads the sheets of an Office Open XML (.xlsx) workbook one row at a time
+ * without building the object model of the workbook.
+ *
+ * The parts of the workbook are read from the file by the {@link XSSFReader}
+ * and parsed with a streaming XML parser. Each row that is read is copied to
+ * a small scratch sheet so that it can be read by the {@link XlsRecordRow}
+ * and {@link XlsLocationRow} like a row of a workbook that has been loaded.
+ * Only the shared strings of the workbook and the most recent rows are held
+ * in memory, so unlike the .xls format the number of rows is not limited.
+ *
+ * Formulas are not evaluated, the result cached by the application that
+ * saved the workbook is read instead. A formula without a cached result is
+ * read as a blank cell, the location and census method names of an exported
+ * workbook are such formulas and are resolved from their ids instead.
+ */
+class StreamingXlsxReader {
+
+    /**
+     * The number of rows copied to a scratch sheet before it is replaced.
+     * The strings of a scratch sheet are held by its workbook until the
+     * workbook is discarded.
+     */
+    static final int SCRATCH_ROW_COUNT = 500;
+
+    private static final String RELATIONSHIP_NAMESPACE = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    private Logger log = Logger.getLogger(getClass());
+
+    private XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    private OPCPackage pkg;
+    private XSSFReader reader;
+    // the relationship id of each sheet by name
+    private Map<String, String> sheetIds = new HashMap<String, String>();
+    private List<String> sharedStrings = new ArrayList<String>();
+    private boolean date1904 = false;
+
+    /**
+     * Opens a workbook. The reader must be closed.
+     * @param file the workbook.
+     * @throws IOException if the workbook cannot be read.
+     * @throws OpenXML4JException if the file is not an Office Open XML workbook.
+     */
+    public StreamingXlsxReader(File file) throws IOException, OpenXML4JException {
+        pkg = OPCPackage.open(file.getAbsolutePath(), PackageAccess.READ);
+        try {
+            reader = new XSSFReader(pkg);
+            readWorkbook();
+            readSharedStrings();
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        } catch (OpenXML4JException oe) {
+            close();
+            throw oe;
+        } catch (RuntimeException re) {
+            close();
+            throw re;
+        }
+    }
+
+    /**
+     * @param sheetName the name of a sheet.
+     * @return true if the workbook has a sheet with the name.
+     */
+    public boolean hasSheet(String sheetName) {
+        return sheetIds.containsKey(sheetName);
+    }
+
+    /**
+     * Reads the rows of a sheet. Blank rows that are not stored by the
+     * workbook are skipped, as they are by {@link org.apache.poi.ss.usermodel.Sheet#rowIterator()}.
+     * A row, and the row before it, may be read until the next row is read.
+     * @param sheetName the name of the sheet.
+     * @return the rows of the sheet.
+     * @throws IOException if the sheet cannot be read.
+     */
+    public Iterator<Row> rowIterator(String sheetName) throws IOException {
+        String sheetId = sheetIds.get(sheetName);
+        if (sheetId == null) {
+            throw new IllegalArgumentException("The workbook does not have a sheet named " + sheetName);
+        }
+        try {
+            return new RowIterator(sheetName, reader.getSheet(sheetId));
+        } catch (OpenXML4JException oe) {
+            throw new IllegalArgumentException(oe);
+        }
+    }
+
+    /**
+     * Closes the workbook, the rows that have been read remain readable.
+     */
+    public void close() {
+        // a package that is open for reading is closed without saving by reverting it.
+        pkg.revert();
+    }
+
+    private void readWorkbook() throws IOException, OpenXML4JException {
+        InputStream in = reader.getWorkbookData();
+        try {
+            XMLStreamReader xml = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                while (xml.hasNext()) {
+                    if (xml.next() == XMLStreamConstants.START_ELEMENT) {
+                        String name = xml.getLocalName();
+                        if ("sheet".equals(name)) {
+                            sheetIds.put(xml.getAttributeValue(null, "name"),
+                                    xml.getAttributeValue(RELATIONSHIP_NAMESPACE, "id"));
+                        } else if ("workbookPr".equals(name)) {
+                            String value = xml.getAttributeValue(null, "date1904");
+                            date1904 = "1".equals(value) || "true".equals(value);
+                        }
+                    }
+                }
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException xse) {
+            throw new IllegalArgumentException("Unable to read the workbook", xse);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readSharedStrings() throws IOException, OpenXML4JException {
+        InputStream in = reader.getSharedStringsData();
+        if (in == null) {
+            // a workbook without any strings
+            return;
+        }
+        try {
+            XMLStreamReader xml = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                StringBuilder text = null;
+                // the phonetic runs of a string are not part of its text
+                boolean phonetic = false;
+                while (xml.hasNext()) {
+                    int event = xml.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = xml.getLocalName();
+                        if ("si".equals(name)) {
+                            text = new StringBuilder();
+                        } else if ("rPh".equals(name)) {
+                            phonetic = true;
+                        } else if ("t".equals(name) && text != null && !phonetic) {
+                            text.append(xml.getElementText());
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        String name = xml.getLocalName();
+                        if ("si".equals(name)) {
+                            sharedStrings.add(text.toString());
+                            text = null;
+                        } else if ("rPh".equals(name)) {
+                            phonetic = false;
+                        }
+                    }
+                }
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException xse) {
+            throw new IllegalArgumentException("Unable to read the shared strings of the workbook", xse);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the rows of a sheet into scratch sheets of the same name.
+     */
+    private class RowIterator implements Iterator<Row> {
+
+        private String sheetName;
+        private InputStream in;
+        private XMLStreamReader xml;
+
+        private XSSFSheet scratch = null;
+        private int scratchRowCount = 0;
+        private int rowIndex = -1;
+        private Row next = null;
+
+        public RowIterator(String sheetName, InputStream in) throws IOException {
+            this.sheetName = sheetName;
+            this.in = in;
+            try {
+                this.xml = xmlInputFactory.createXMLStreamReader(in);
+                next = readRow();
+            } catch (XMLStreamException xse) {
+                close();
+                throw new IllegalArgumentException("Unable to read the sheet " + sheetName, xse);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Row next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Row row = next;
+            try {
+                next = readRow();
+            } catch (XMLStreamException xse) {
+                close();
+                throw new IllegalArgumentException("Unable to read the sheet " + sheetName, xse);
+            }
+            return row;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return the next row of the sheet or null if there are no more rows.
+         */
+        private Row readRow() throws XMLStreamException {
+            if (xml == null) {
+                return null;
+            }
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT && "row".equals(xml.getLocalName())) {
+                    String r = xml.getAttributeValue(null, "r");
+                    rowIndex = r != null ? Integer.parseInt(r) - 1 : rowIndex + 1;
+                    Row row = createScratchRow(rowIndex);
+                    readCells(row);
+                    return row;
+                }
+            }
+            close();
+            return null;
+        }
+
+        private void readCells(Row row) throws XMLStreamException {
+            int columnIndex = -1;
+            String type = null;
+            String value = null;
+            boolean formula = false;
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = xml.getLocalName();
+                    if ("c".equals(name)) {
+                        String r = xml.getAttributeValue(null, "r");
+                        columnIndex = r != null ? new CellReference(r).getCol() : columnIndex + 1;
+                        type = xml.getAttributeValue(null, "t");
+                        value = null;
+                        formula = false;
+                    } else if ("v".equals(name)) {
+                        value = xml.getElementText();
+                    } else if ("f".equals(name)) {
+                        formula = true;
+                    } else if ("t".equals(name)) {
+                        // the text of an inline string
+                        value = value == null ? xml.getElementText() : value + xml.getElementText();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = xml.getLocalName();
+                    if ("c".equals(name)) {
+                        setCellValue(row, columnIndex, type, value, formula);
+                    } else if ("row".equals(name)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void setCellValue(Row row, int columnIndex, String type, String value, boolean formula) {
+            if (value == null) {
+                if (formula) {
+                    log.warn(String.format("Cell %s!%s has a formula without a result, it is read as a blank cell.",
+                            sheetName, new CellReference(row.getRowNum(), columnIndex).formatAsString()));
+                }
+                // a cell with only a style is blank
+                return;
+            }
+            Cell cell = row.createCell(columnIndex);
+            if ("s".equals(type)) {
+                cell.setCellValue(sharedStrings.get(Integer.parseInt(value)));
+            } else if ("inlineStr".equals(type) || "str".equals(type)) {
+                cell.setCellValue(value);
+            } else if ("b".equals(type)) {
+                cell.setCellValue("1".equals(value) || "true".equals(value));
+            } else if ("e".equals(type)) {
+                cell.setCellErrorValue((byte) ErrorConstants.ERROR_VALUE);
+            } else {
+                cell.setCellValue(Double.parseDouble(value));
+            }
+        }
+
+        private Row createScratchRow(int rowIndex) {
+            if (scratch == null || scratchRowCount >= SCRATCH_ROW_COUNT) {
+                // the rows of the previous scratch sheet remain readable until
+                // they are no longer referenced.
+                XSSFWorkbook wb = new XSSFWorkbook();
+                if (date1904) {
+                    CTWorkbook ct = wb.getCTWorkbook();
+                    (ct.isSetWorkbookPr() ? ct.getWorkbookPr() : ct.addNewWorkbookPr()).setDate1904(true);
+                }
+                scratch = wb.createSheet(sheetName);
+                scratchRowCount = 0;
+            }
+            scratchRowCount++;
+            return scratch.createRow(rowIndex);
+        }
+
+        private void close() {
+            try {
+                if (xml != null) {
+                    xml.close();
+                }
+            } catch (XMLStreamException xse) {
+                log.warn("Unable to close the sheet " + sheetName, xse);
+            }
+            xml = null;
+            try {
+                in.close();
+            } catch (IOException ioe) {
+                log.warn("Unable to close the sheet " + sheetName, ioe);
+            }
+        }
+    }
+}
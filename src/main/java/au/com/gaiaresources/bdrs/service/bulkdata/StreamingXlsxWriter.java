@@ -0,0 +1,781 @@
+package au.com.gaiaresources.bdrs.service.bulkdata;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.ErrorConstants;
+import org.apache.poi.ss.usermodel.Hyperlink;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Writes the rows of a sheet of an Office Open XML (.xlsx) workbook to a
+ * temporary file as they are created rather than holding them in the
+ * workbook.
+ *
+ * The rows created by the writer only hold their cell values. Once more than
+ * the window size of rows have been created the rows are written out and
+ * can no longer be read. Strings are written inline so that they are not
+ * added to the shared strings of the workbook. The rest of the workbook,
+ * including any rows created directly on the sheet, is written as usual and
+ * the streamed rows are inserted after the rows of the sheet when the
+ * workbook is written.
+ *
+ * A formula is written with the result set as its cell value after the
+ * formula, as a workbook cell holds the cached result of its formula, and
+ * without a result otherwise. Spreadsheet applications calculate formulas
+ * when the workbook is opened but readers that do not evaluate formulas only
+ * see the result. Comments and hyperlinks are not written.
+ */
+class StreamingXlsxWriter {
+
+    private static final String SHEET_DATA_START = "<sheetData>";
+    private static final String SHEET_DATA_EMPTY = "<sheetData/>";
+    private static final String SHEET_DATA_END = "</sheetData>";
+
+    private Logger log = Logger.getLogger(getClass());
+
+    private XSSFSheet sheet;
+    private int windowSize;
+
+    private File rowFile;
+    private Writer rowWriter;
+    private List<StreamingRow> window;
+    private int lastRowNum = -1;
+    // the last row before the rows in the window
+    private int lastWrittenRowNum = -1;
+    private int rowCount = 0;
+
+    /**
+     * Creates a writer for the rows of a sheet. The writer must be disposed.
+     * @param sheet the sheet of the rows.
+     * @param windowSize the number of rows that are held before they are
+     * written out.
+     * @throws IOException if the temporary file cannot be created.
+     */
+    public StreamingXlsxWriter(XSSFSheet sheet, int windowSize) throws IOException {
+        this.sheet = sheet;
+        this.windowSize = Math.max(1, windowSize);
+        this.window = new ArrayList<StreamingRow>(this.windowSize);
+        this.lastRowNum = sheet.getPhysicalNumberOfRows() > 0 ? sheet.getLastRowNum() : -1;
+        this.lastWrittenRowNum = this.lastRowNum;
+
+        rowFile = File.createTempFile("xlsxrows", ".xml");
+        rowWriter = new BufferedWriter(new OutputStreamWriter(
+                new BufferedOutputStream(new FileOutputStream(rowFile)), "UTF-8"));
+    }
+
+    /**
+     * Creates a row after the rows of the sheet and the rows that have
+     * already been created, writing out the oldest rows if the window is full.
+     * @param rowIndex the 0 based index of the row.
+     * @return the new row.
+     * @throws IOException if the rows cannot be written out.
+     */
+    public Row createRow(int rowIndex) throws IOException {
+        if (rowIndex <= lastRowNum) {
+            throw new IllegalArgumentException(String.format(
+                    "Row %d must be after the last row %d", rowIndex, lastRowNum));
+        }
+        if (window.size() >= windowSize) {
+            flush();
+        }
+        StreamingRow row = new StreamingRow(rowIndex);
+        window.add(row);
+        lastRowNum = rowIndex;
+        rowCount++;
+        return row;
+    }
+
+    /**
+     * @return the number of rows created by the writer.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Writes out the rows in the window.
+     * @throws IOException if the rows cannot be written.
+     */
+    public void flush() throws IOException {
+        for (StreamingRow row : window) {
+            writeRow(row);
+        }
+        window.clear();
+        lastWrittenRowNum = lastRowNum;
+    }
+
+    /**
+     * Changes the index of a row that has not been written out, the rows
+     * must stay in order.
+     */
+    private void moveRow(StreamingRow row, int rowNum) {
+        int index = window.indexOf(row);
+        if (index < 0) {
+            throw new IllegalStateException(String.format(
+                    "Row %d has already been written out", row.rowNum));
+        }
+        int previous = index > 0 ? window.get(index - 1).rowNum : lastWrittenRowNum;
+        if (rowNum <= previous || (index < window.size() - 1 && rowNum >= window.get(index + 1).rowNum)) {
+            throw new IllegalArgumentException(String.format(
+                    "Row %d cannot be moved to %d out of the order of the rows", row.rowNum, rowNum));
+        }
+        row.rowNum = rowNum;
+        if (index == window.size() - 1) {
+            lastRowNum = rowNum;
+        }
+    }
+
+    /**
+     * Writes the workbook of the sheet with the rows created by this writer.
+     * The output stream is not closed.
+     * @param wb the workbook of the sheet.
+     * @param out the stream to write the workbook to.
+     * @throws IOException if the workbook cannot be written.
+     */
+    public void write(XSSFWorkbook wb, OutputStream out) throws IOException {
+        flush();
+        rowWriter.close();
+
+        File workbookFile = File.createTempFile("xlsxworkbook", ".xlsx");
+        try {
+            OutputStream workbookOut = new BufferedOutputStream(new FileOutputStream(workbookFile));
+            try {
+                wb.write(workbookOut);
+            } finally {
+                workbookOut.close();
+            }
+
+            String sheetEntryName = sheet.getPackagePart().getPartName().getName().substring(1);
+            ZipFile zip = new ZipFile(workbookFile);
+            try {
+                ZipOutputStream zos = new ZipOutputStream(out);
+                for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+                    ZipEntry entry = entries.nextElement();
+                    zos.putNextEntry(new ZipEntry(entry.getName()));
+                    InputStream in = zip.getInputStream(entry);
+                    try {
+                        if (sheetEntryName.equals(entry.getName())) {
+                            writeSheet(in, zos);
+                        } else {
+                            IOUtils.copy(in, zos);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    zos.closeEntry();
+                }
+                zos.finish();
+            } finally {
+                zip.close();
+            }
+        } finally {
+            workbookFile.delete();
+        }
+    }
+
+    /**
+     * Deletes the temporary file of the rows.
+     */
+    public void dispose() {
+        try {
+            rowWriter.close();
+        } catch (IOException ioe) {
+            log.warn("Unable to close " + rowFile.getAbsolutePath(), ioe);
+        }
+        rowFile.delete();
+    }
+
+    /**
+     * Copies the sheet as written by the workbook, inserting the rows that
+     * have been written out at the end of its sheet data.
+     */
+    private void writeSheet(InputStream in, OutputStream out) throws IOException {
+        // the sheet only holds the rows that were created directly on it
+        String xml = IOUtils.toString(in, "UTF-8");
+        String head;
+        String tail;
+        int end = xml.indexOf(SHEET_DATA_END);
+        if (end > -1) {
+            head = xml.substring(0, end);
+            tail = xml.substring(end);
+        } else {
+            int empty = xml.indexOf(SHEET_DATA_EMPTY);
+            if (empty < 0) {
+                throw new IllegalStateException("Cannot find the sheet data of " + sheet.getSheetName());
+            }
+            head = xml.substring(0, empty) + SHEET_DATA_START;
+            tail = SHEET_DATA_END + xml.substring(empty + SHEET_DATA_EMPTY.length());
+        }
+
+        out.write(head.getBytes("UTF-8"));
+        InputStream rows = new FileInputStream(rowFile);
+        try {
+            IOUtils.copy(rows, out);
+        } finally {
+            rows.close();
+        }
+        out.write(tail.getBytes("UTF-8"));
+    }
+
+    private void writeRow(StreamingRow row) throws IOException {
+        rowWriter.write("<row r=\"");
+        rowWriter.write(String.valueOf(row.rowNum + 1));
+        rowWriter.write("\">");
+        for (StreamingCell cell : row.cells) {
+            if (cell != null) {
+                writeCell(cell);
+            }
+        }
+        rowWriter.write("</row>");
+    }
+
+    private void writeCell(StreamingCell cell) throws IOException {
+        int type = cell.type;
+        if (type == Cell.CELL_TYPE_NUMERIC && (Double.isNaN(cell.numericValue) || Double.isInfinite(cell.numericValue))) {
+            // not a number that can be written
+            type = Cell.CELL_TYPE_BLANK;
+        }
+        if (type == Cell.CELL_TYPE_BLANK && cell.style == null) {
+            return;
+        }
+
+        rowWriter.write("<c r=\"");
+        rowWriter.write(new CellReference(cell.row.rowNum, cell.columnIndex).formatAsString());
+        rowWriter.write('"');
+        if (cell.style != null && cell.style.getIndex() != 0) {
+            rowWriter.write(" s=\"");
+            rowWriter.write(String.valueOf(cell.style.getIndex()));
+            rowWriter.write('"');
+        }
+        switch (type) {
+        case Cell.CELL_TYPE_STRING:
+            rowWriter.write(" t=\"inlineStr\"><is><t");
+            if (cell.stringValue.length() > 0 &&
+                    (Character.isWhitespace(cell.stringValue.charAt(0)) ||
+                     Character.isWhitespace(cell.stringValue.charAt(cell.stringValue.length() - 1)))) {
+                rowWriter.write(" xml:space=\"preserve\"");
+            }
+            rowWriter.write('>');
+            writeEscaped(cell.stringValue);
+            rowWriter.write("</t></is></c>");
+            break;
+        case Cell.CELL_TYPE_NUMERIC:
+            rowWriter.write("><v>");
+            rowWriter.write(String.valueOf(cell.numericValue));
+            rowWriter.write("</v></c>");
+            break;
+        case Cell.CELL_TYPE_BOOLEAN:
+            rowWriter.write(" t=\"b\"><v>");
+            rowWriter.write(cell.booleanValue ? "1" : "0");
+            rowWriter.write("</v></c>");
+            break;
+        case Cell.CELL_TYPE_ERROR:
+            rowWriter.write(" t=\"e\"><v>");
+            writeEscaped(ErrorConstants.getText(cell.errorValue));
+            rowWriter.write("</v></c>");
+            break;
+        case Cell.CELL_TYPE_FORMULA:
+            writeFormula(cell);
+            break;
+        default:
+            rowWriter.write("/>");
+            break;
+        }
+    }
+
+    private void writeFormula(StreamingCell cell) throws IOException {
+        int resultType = cell.resultType;
+        if (resultType == Cell.CELL_TYPE_NUMERIC && (Double.isNaN(cell.numericValue) || Double.isInfinite(cell.numericValue))) {
+            resultType = Cell.CELL_TYPE_BLANK;
+        }
+        if (resultType == Cell.CELL_TYPE_STRING) {
+            rowWriter.write(" t=\"str\"");
+        } else if (resultType == Cell.CELL_TYPE_BOOLEAN) {
+            rowWriter.write(" t=\"b\"");
+        }
+        rowWriter.write("><f>");
+        writeEscaped(cell.formula);
+        rowWriter.write("</f>");
+        switch (resultType) {
+        case Cell.CELL_TYPE_STRING:
+            rowWriter.write("<v>");
+            writeEscaped(cell.stringValue);
+            rowWriter.write("</v>");
+            break;
+        case Cell.CELL_TYPE_NUMERIC:
+            rowWriter.write("<v>");
+            rowWriter.write(String.valueOf(cell.numericValue));
+            rowWriter.write("</v>");
+            break;
+        case Cell.CELL_TYPE_BOOLEAN:
+            rowWriter.write("<v>");
+            rowWriter.write(cell.booleanValue ? "1" : "0");
+            rowWriter.write("</v>");
+            break;
+        default:
+            break;
+        }
+        rowWriter.write("</c>");
+    }
+
+    private void writeEscaped(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '<':
+                rowWriter.write("&lt;");
+                break;
+            case '>':
+                rowWriter.write("&gt;");
+                break;
+            case '&':
+                rowWriter.write("&amp;");
+                break;
+            case '"':
+                rowWriter.write("&quot;");
+                break;
+            default:
+                // control characters cannot be written in XML 1.0
+                if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+                    rowWriter.write(c);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * A row that only holds the values of its cells until it is written out.
+     */
+    private class StreamingRow implements Row {
+
+        private int rowNum;
+        private List<StreamingCell> cells = new ArrayList<StreamingCell>();
+
+        public StreamingRow(int rowNum) {
+            this.rowNum = rowNum;
+        }
+
+        @Override
+        public Cell createCell(int column) {
+            return createCell(column, Cell.CELL_TYPE_BLANK);
+        }
+
+        @Override
+        public Cell createCell(int column, int type) {
+            while (cells.size() <= column) {
+                cells.add(null);
+            }
+            StreamingCell cell = new StreamingCell(this, column);
+            cell.setCellType(type);
+            cells.set(column, cell);
+            return cell;
+        }
+
+        @Override
+        public void removeCell(Cell cell) {
+            int column = cell.getColumnIndex();
+            if (column < cells.size() && cells.get(column) == cell) {
+                cells.set(column, null);
+            }
+        }
+
+        @Override
+        public void setRowNum(int rowNum) {
+            moveRow(this, rowNum);
+        }
+
+        @Override
+        public int getRowNum() {
+            return rowNum;
+        }
+
+        @Override
+        public Cell getCell(int cellnum) {
+            return cellnum >= 0 && cellnum < cells.size() ? cells.get(cellnum) : null;
+        }
+
+        @Override
+        public Cell getCell(int cellnum, MissingCellPolicy policy) {
+            Cell cell = getCell(cellnum);
+            if (policy == RETURN_BLANK_AS_NULL) {
+                return cell != null && cell.getCellType() == Cell.CELL_TYPE_BLANK ? null : cell;
+            } else if (policy == CREATE_NULL_AS_BLANK) {
+                return cell == null ? createCell(cellnum) : cell;
+            }
+            return cell;
+        }
+
+        @Override
+        public short getFirstCellNum() {
+            for (int i = 0; i < cells.size(); i++) {
+                if (cells.get(i) != null) {
+                    return (short) i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public short getLastCellNum() {
+            for (int i = cells.size() - 1; i >= 0; i--) {
+                if (cells.get(i) != null) {
+                    return (short) (i + 1);
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int getPhysicalNumberOfCells() {
+            int count = 0;
+            for (StreamingCell cell : cells) {
+                if (cell != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void setHeight(short height) {
+            // the default height is used
+        }
+
+        @Override
+        public void setZeroHeight(boolean zHeight) {
+            // the rows are always shown
+        }
+
+        @Override
+        public boolean getZeroHeight() {
+            return false;
+        }
+
+        @Override
+        public void setHeightInPoints(float height) {
+            // the default height is used
+        }
+
+        @Override
+        public short getHeight() {
+            return sheet.getDefaultRowHeight();
+        }
+
+        @Override
+        public float getHeightInPoints() {
+            return sheet.getDefaultRowHeightInPoints();
+        }
+
+        @Override
+        public Iterator<Cell> cellIterator() {
+            List<Cell> physical = new ArrayList<Cell>(cells.size());
+            for (StreamingCell cell : cells) {
+                if (cell != null) {
+                    physical.add(cell);
+                }
+            }
+            return Collections.unmodifiableList(physical).iterator();
+        }
+
+        @Override
+        public Iterator<Cell> iterator() {
+            return cellIterator();
+        }
+
+        @Override
+        public Sheet getSheet() {
+            return sheet;
+        }
+
+        // not declared by every version of the row interface
+        public boolean isFormatted() {
+            return false;
+        }
+
+        public CellStyle getRowStyle() {
+            return null;
+        }
+
+        public void setRowStyle(CellStyle style) {
+            // the rows are not styled
+        }
+    }
+
+    /**
+     * A cell that only holds its value and style.
+     */
+    private class StreamingCell implements Cell {
+
+        private StreamingRow row;
+        private int columnIndex;
+
+        private int type = CELL_TYPE_BLANK;
+        private double numericValue;
+        private String stringValue;
+        private boolean booleanValue;
+        private byte errorValue;
+        private String formula;
+        // the type of the cached result of the formula
+        private int resultType = CELL_TYPE_BLANK;
+        private CellStyle style;
+
+        public StreamingCell(StreamingRow row, int columnIndex) {
+            this.row = row;
+            this.columnIndex = columnIndex;
+        }
+
+        @Override
+        public boolean getBooleanCellValue() {
+            if (getValueType() == CELL_TYPE_BLANK) {
+                return false;
+            }
+            checkType(CELL_TYPE_BOOLEAN);
+            return booleanValue;
+        }
+
+        @Override
+        public int getCachedFormulaResultType() {
+            checkFormula();
+            return resultType;
+        }
+
+        @Override
+        public Comment getCellComment() {
+            return null;
+        }
+
+        @Override
+        public String getCellFormula() {
+            checkFormula();
+            return formula;
+        }
+
+        @Override
+        public CellStyle getCellStyle() {
+            return style != null ? style : row.getSheet().getWorkbook().getCellStyleAt((short) 0);
+        }
+
+        @Override
+        public int getCellType() {
+            return type;
+        }
+
+        @Override
+        public int getColumnIndex() {
+            return columnIndex;
+        }
+
+        @Override
+        public Date getDateCellValue() {
+            if (getValueType() == CELL_TYPE_BLANK) {
+                return null;
+            }
+            return DateUtil.getJavaDate(getNumericCellValue());
+        }
+
+        @Override
+        public byte getErrorCellValue() {
+            checkType(CELL_TYPE_ERROR);
+            return errorValue;
+        }
+
+        @Override
+        public Hyperlink getHyperlink() {
+            return null;
+        }
+
+        @Override
+        public double getNumericCellValue() {
+            if (getValueType() == CELL_TYPE_BLANK) {
+                return 0;
+            }
+            checkType(CELL_TYPE_NUMERIC);
+            return numericValue;
+        }
+
+        @Override
+        public RichTextString getRichStringCellValue() {
+            return new XSSFRichTextString(getStringCellValue());
+        }
+
+        @Override
+        public Row getRow() {
+            return row;
+        }
+
+        @Override
+        public int getRowIndex() {
+            return row.rowNum;
+        }
+
+        @Override
+        public Sheet getSheet() {
+            return row.getSheet();
+        }
+
+        @Override
+        public String getStringCellValue() {
+            if (getValueType() == CELL_TYPE_BLANK) {
+                return "";
+            }
+            checkType(CELL_TYPE_STRING);
+            return stringValue;
+        }
+
+        @Override
+        public void removeCellComment() {
+            // comments are not written
+        }
+
+        @Override
+        public void setAsActiveCell() {
+            sheet.setActiveCell(new CellReference(row.rowNum, columnIndex).formatAsString());
+        }
+
+        @Override
+        public void setCellComment(Comment comment) {
+            // comments are not written
+        }
+
+        @Override
+        public void setCellErrorValue(byte value) {
+            type = CELL_TYPE_ERROR;
+            errorValue = value;
+        }
+
+        @Override
+        public void setCellFormula(String formula) {
+            if (formula == null) {
+                type = CELL_TYPE_BLANK;
+            } else {
+                type = CELL_TYPE_FORMULA;
+                this.formula = formula;
+                resultType = CELL_TYPE_BLANK;
+            }
+        }
+
+        @Override
+        public void setCellStyle(CellStyle style) {
+            this.style = style;
+        }
+
+        @Override
+        public void setCellType(int cellType) {
+            if (cellType == CELL_TYPE_STRING && stringValue == null) {
+                stringValue = "";
+            }
+            type = cellType;
+        }
+
+        @Override
+        public void setCellValue(double value) {
+            setValueType(CELL_TYPE_NUMERIC);
+            numericValue = value;
+        }
+
+        @Override
+        public void setCellValue(Date value) {
+            if (value == null) {
+                type = CELL_TYPE_BLANK;
+            } else {
+                setCellValue(DateUtil.getExcelDate(value, false));
+            }
+        }
+
+        @Override
+        public void setCellValue(Calendar value) {
+            if (value == null) {
+                type = CELL_TYPE_BLANK;
+            } else {
+                setCellValue(DateUtil.getExcelDate(value, false));
+            }
+        }
+
+        @Override
+        public void setCellValue(RichTextString value) {
+            setCellValue(value != null ? value.getString() : null);
+        }
+
+        @Override
+        public void setCellValue(String value) {
+            if (value == null) {
+                type = CELL_TYPE_BLANK;
+            } else {
+                setValueType(CELL_TYPE_STRING);
+                stringValue = value;
+            }
+        }
+
+        @Override
+        public void setCellValue(boolean value) {
+            setValueType(CELL_TYPE_BOOLEAN);
+            booleanValue = value;
+        }
+
+        @Override
+        public void setHyperlink(Hyperlink link) {
+            // hyperlinks are not written
+        }
+
+        /**
+         * The value of a formula cell is the cached result of its formula.
+         */
+        private void setValueType(int valueType) {
+            if (type == CELL_TYPE_FORMULA) {
+                resultType = valueType;
+            } else {
+                type = valueType;
+            }
+        }
+
+        private int getValueType() {
+            return type == CELL_TYPE_FORMULA ? resultType : type;
+        }
+
+        private void checkType(int expected) {
+            if (getValueType() != expected) {
+                throw new IllegalStateException(String.format(
+                        "Cannot get a value of type %d from a cell of type %d", expected, getValueType()));
+            }
+        }
+
+        private void checkFormula() {
+            if (type != CELL_TYPE_FORMULA) {
+                throw new IllegalStateException(String.format(
+                        "Cannot get a formula from a cell of type %d", type));
+            }
+        }
+    }
+}
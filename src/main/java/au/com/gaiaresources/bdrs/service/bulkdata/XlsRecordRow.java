@@ -345,7 +345,7 @@ public class XlsRecordRow extends StyledRowImpl implements RecordRow {
                                            topLeft, 
                                            bottomRight,
                                            2);
-            row.createCell(colIndex++).setCellFormula(formula);
+            writeLookup(row.createCell(colIndex++), formula, cm.getName());
         }
         
         return colIndex;
@@ -458,10 +458,22 @@ public class XlsRecordRow extends StyledRowImpl implements RecordRow {
                                            topLeft, 
                                            bottomRight,
                                            3);
-            row.createCell(colIndex++).setCellFormula(formula);
+            writeLookup(row.createCell(colIndex++), formula, rec.getLocation().getName());
         }
         return colIndex;
     }
+
+    /**
+     * Writes a lookup formula with its result so that the result can be read
+     * without evaluating the formula.
+     */
+    private void writeLookup(Cell cell, String formula, String result) {
+        cell.setCellFormula(formula);
+        if (result != null) {
+            // the value of a formula cell is the cached result of the formula
+            cell.setCellValue(result);
+        }
+    }
     
     protected int writeRowTaxonomy(Row row, Record rec, int colIndex) {
         IndicatorSpecies species = rec.getSpecies();
@@ -0,0 +1,449 @@
+package au.com.gaiaresources.bdrs.service.facet;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+import au.com.gaiaresources.bdrs.db.Persistent;
+import au.com.gaiaresources.bdrs.db.impl.AbstractDAOImpl;
+import au.com.gaiaresources.bdrs.db.impl.PersistentImpl;
+import au.com.gaiaresources.bdrs.model.facet.FacetCounts;
+import au.com.gaiaresources.bdrs.model.facet.FacetDAO;
+import au.com.gaiaresources.bdrs.model.location.Location;
+import au.com.gaiaresources.bdrs.model.record.RecordDAO;
+import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
+import au.com.gaiaresources.bdrs.model.record.impl.RecordFilter;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeType;
+import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.util.Pair;
+
+/**
+ * A {@link FacetDAO} for records that answers the survey, user, month, year,
+ * location, census method type, visibility and taxon group queries from a
+ * single {@link FacetCounts} instead of running one aggregate query per facet.
+ * The counts are retrieved the first time one of these facets is created and
+ * the options are returned in the same order as the {@link RecordDAO}.
+ *
+ * If a {@link FacetCountCache} is provided the counts are shared with all
+ * other requests that use the same record filter.
+ *
+ * All other queries are delegated to the {@link RecordDAO}. An instance
+ * should only be used to build a single list of facets since the counts are
+ * not refreshed.
+ */
+public class CountingFacetDAO implements FacetDAO {
+
+    private RecordDAO recordDAO;
+    private FacetCountCache cache;
+    private FacetCounts counts;
+
+    /**
+     * @param recordDAO used to count the records and load the faceted entities.
+     */
+    public CountingFacetDAO(RecordDAO recordDAO) {
+        this(recordDAO, null);
+    }
+
+    /**
+     * @param recordDAO used to count the records and load the faceted entities.
+     * @param cache the cache of record counts, may be null.
+     */
+    public CountingFacetDAO(RecordDAO recordDAO, FacetCountCache cache) {
+        this.recordDAO = recordDAO;
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the record counts, retrieving them the first time they are required.
+     * @param sesh the session to use for the query.
+     * @return the record counts for each facet option.
+     */
+    public FacetCounts getFacetCounts(Session sesh) {
+        if (counts == null) {
+            if (sesh == null) {
+                sesh = recordDAO.getSessionFactory().getCurrentSession();
+            }
+            // uncommitted changes would be included in the counts
+            FacetCountCache.Key key = cache == null || cache.hasPendingChanges() ? null : cache.getKey(sesh);
+            if (key != null) {
+                counts = cache.get(key);
+            }
+            if (counts == null) {
+                long generation = key == null ? -1 : cache.getGeneration(key.getPortalId());
+                counts = recordDAO.getFacetCounts(sesh);
+                if (key != null) {
+                    cache.put(key, counts, generation);
+                }
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public List<Pair<User, Long>> getDistinctUsers(Session sesh) {
+        Map<Integer, Long> userCounts = getFacetCounts(sesh).getUsers();
+        List<Pair<User, Long>> results = toPairs(sesh, User.class, userCounts);
+        // order by count desc, name asc
+        Collections.sort(results, new PairComparator<User>(true, false));
+        return results;
+    }
+
+    @Override
+    public List<Pair<Survey, Long>> getDistinctSurveys(Session sesh) {
+        Map<Integer, Long> surveyCounts = getFacetCounts(sesh).getSurveys();
+        List<Pair<Survey, Long>> results = toPairs(sesh, Survey.class, surveyCounts);
+        // order by weight asc, name asc
+        Collections.sort(results, new PairComparator<Survey>(false, true));
+        return results;
+    }
+
+    @Override
+    public List<Pair<TaxonGroup, Long>> getDistinctTaxonGroups(Session sesh) {
+        Map<Integer, Long> groupCounts = getFacetCounts(sesh).getTaxonGroups();
+        List<Pair<TaxonGroup, Long>> results = toPairs(sesh, TaxonGroup.class, groupCounts);
+        // order by weight asc, name asc
+        Collections.sort(results, new PairComparator<TaxonGroup>(false, true));
+        return results;
+    }
+
+    @Override
+    public List<Pair<Location, Long>> getDistinctLocations(Session sesh, int limit) {
+        return getDistinctLocations(sesh, limit, null);
+    }
+
+    @Override
+    public List<Pair<Location, Long>> getDistinctLocations(Session sesh, int limit, Integer[] selectedOptions) {
+        if (sesh == null) {
+            sesh = recordDAO.getSessionFactory().getCurrentSession();
+        }
+        Map<Integer, Long> locationCounts = getFacetCounts(sesh).getLocations();
+
+        Set<Integer> selectedIds = new HashSet<Integer>();
+        if (selectedOptions != null) {
+            Collections.addAll(selectedIds, selectedOptions);
+        }
+
+        // the selected locations are always included, the limit only applies
+        // to the locations that are not selected.
+        List<Integer> selected = new ArrayList<Integer>();
+        List<Integer> others = new ArrayList<Integer>();
+        for (Integer id : locationCounts.keySet()) {
+            if (id == null) {
+                continue;
+            }
+            if (selectedIds.contains(id)) {
+                selected.add(id);
+            } else {
+                others.add(id);
+            }
+        }
+
+        // order by count desc, weight asc, name asc
+        List<Pair<Location, Long>> results = toPairs(sesh, Location.class, locationCounts, selected);
+        Collections.sort(results, new PairComparator<Location>(true, true));
+        results.addAll(getTopLocations(sesh, locationCounts, others, limit));
+        Collections.sort(results, new Comparator<Pair<Location, Long>>() {
+            @Override
+            public int compare(Pair<Location, Long> o1, Pair<Location, Long> o2) {
+                // reverse sort the counts
+                return o2.getSecond().compareTo(o1.getSecond());
+            }
+        });
+        return results;
+    }
+
+    @Override
+    public List<Pair<Long, Long>> getDistinctMonths(Session sesh) {
+        return toSortedPairs(getFacetCounts(sesh).getMonths());
+    }
+
+    @Override
+    public List<Pair<Long, Long>> getDistinctYears(Session sesh) {
+        return toSortedPairs(getFacetCounts(sesh).getYears());
+    }
+
+    @Override
+    public List<Pair<String, Long>> getDistinctCensusMethodTypes(Session sesh) {
+        return toSortedPairs(getFacetCounts(sesh).getCensusMethodTypes());
+    }
+
+    @Override
+    public Integer countNullCensusMethodRecords() {
+        return Long.valueOf(getFacetCounts(null).getNullCensusMethodCount()).intValue();
+    }
+
+    @Override
+    public List<Pair<RecordVisibility, Long>> getDistinctRecordVisibilities() {
+        Map<RecordVisibility, Long> visibilityCounts = getFacetCounts(null).getVisibilities();
+        List<Pair<RecordVisibility, Long>> results = new ArrayList<Pair<RecordVisibility, Long>>();
+        for (Map.Entry<RecordVisibility, Long> entry : visibilityCounts.entrySet()) {
+            if (entry.getKey() != null) {
+                results.add(new Pair<RecordVisibility, Long>(entry.getKey(), entry.getValue()));
+            }
+        }
+        // the visibility is stored by name so the database orders by name.
+        Collections.sort(results, new Comparator<Pair<RecordVisibility, Long>>() {
+            @Override
+            public int compare(Pair<RecordVisibility, Long> o1, Pair<RecordVisibility, Long> o2) {
+                return o1.getFirst().name().compareTo(o2.getFirst().name());
+            }
+        });
+        return results;
+    }
+
+    @Override
+    public List<Pair<String, Long>> getDistinctLocationAttributeValues(Session sesh, String attributeName, int limit) {
+        return recordDAO.getDistinctLocationAttributeValues(sesh, attributeName, limit);
+    }
+
+    @Override
+    public List<Pair<String, Long>> getDistinctAttributeValues(Session sesh, String attributeName, int limit) {
+        return recordDAO.getDistinctAttributeValues(sesh, attributeName, limit);
+    }
+
+    @Override
+    public List<Pair<String, Long>> getDistinctAttributeTypes(Session sesh, AttributeType[] attributeTypes) {
+        return recordDAO.getDistinctAttributeTypes(sesh, attributeTypes);
+    }
+
+    @Override
+    public int countRecords(RecordFilter filter) {
+        return recordDAO.countRecords(filter);
+    }
+
+    @Override
+    public <T extends Persistent> T save(Session sesh, T instance) {
+        return recordDAO.save(sesh, instance);
+    }
+
+    @Override
+    public <T extends Persistent> T update(Session sesh, T instance) {
+        return recordDAO.update(sesh, instance);
+    }
+
+    @Override
+    public <T extends Persistent> T saveOrUpdate(Session sesh, T instance) {
+        return recordDAO.saveOrUpdate(sesh, instance);
+    }
+
+    @Override
+    public <T extends Persistent> void delete(Session sesh, T instance) {
+        recordDAO.delete(sesh, instance);
+    }
+
+    @Override
+    public <T extends Persistent> Long count(Class<T> clazz) {
+        return recordDAO.count(clazz);
+    }
+
+    @Override
+    public SessionFactory getSessionFactory() {
+        return recordDAO.getSessionFactory();
+    }
+
+    @Override
+    public <T extends Persistent> T save(T instance) {
+        return recordDAO.save(instance);
+    }
+
+    @Override
+    public <T extends Persistent> T update(T instance) {
+        return recordDAO.update(instance);
+    }
+
+    @Override
+    public <T extends Persistent> T saveOrUpdate(T instance) {
+        return recordDAO.saveOrUpdate(instance);
+    }
+
+    @Override
+    public <T extends Persistent> void delete(T instance) {
+        recordDAO.delete(instance);
+    }
+
+    @Override
+    public <T extends Persistent> void refresh(T instance) {
+        recordDAO.refresh(instance);
+    }
+
+    @Override
+    public <T extends Persistent> void refresh(Session sesh, T instance) {
+        recordDAO.refresh(sesh, instance);
+    }
+
+    @Override
+    public <T extends Persistent> List<T> getByIDs(Session sesh, Class<T> clazz, Collection<Integer> ids) {
+        return recordDAO.getByIDs(sesh, clazz, ids);
+    }
+
+    @Override
+    public <T extends Persistent> List<T> getByIDs(Class<T> clazz, Collection<Integer> ids) {
+        return recordDAO.getByIDs(clazz, ids);
+    }
+
+    /**
+     * Loads the locations with the most records, ordered by count desc,
+     * weight asc and name asc. Only the locations that can be within the
+     * limit are loaded: the locations with more records than the location at
+     * the limit, and the first of the locations with as many records as it
+     * by weight and name.
+     * @param ids the ids of the locations to choose from.
+     * @param limit the maximum number of locations, or 0 for no limit.
+     */
+    private List<Pair<Location, Long>> getTopLocations(Session sesh, final Map<Integer, Long> locationCounts,
+            List<Integer> ids, int limit) {
+        if (limit <= 0 || ids.size() <= limit) {
+            List<Pair<Location, Long>> results = toPairs(sesh, Location.class, locationCounts, ids);
+            Collections.sort(results, new PairComparator<Location>(true, true));
+            return results;
+        }
+
+        Collections.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return locationCounts.get(o2).compareTo(locationCounts.get(o1));
+            }
+        });
+        Long lastCount = locationCounts.get(ids.get(limit - 1));
+        List<Integer> above = new ArrayList<Integer>();
+        List<Integer> tied = new ArrayList<Integer>();
+        for (Integer id : ids) {
+            int cmp = locationCounts.get(id).compareTo(lastCount);
+            if (cmp > 0) {
+                above.add(id);
+            } else if (cmp == 0) {
+                tied.add(id);
+            } else {
+                break;
+            }
+        }
+
+        List<Pair<Location, Long>> results = toPairs(sesh, Location.class, locationCounts, above);
+        int remaining = limit - above.size();
+        // at most the remaining number of the tied locations is loaded from
+        // each batch of ids.
+        List<Pair<Location, Long>> candidates = new ArrayList<Pair<Location, Long>>();
+        for (int i = 0; i < tied.size(); i += AbstractDAOImpl.MAX_IN_CLAUSE_SIZE) {
+            Query q = sesh.createQuery("from Location l where l.id in (:ids) order by l.weight asc, l.name asc");
+            q.setParameterList("ids", tied.subList(i, Math.min(tied.size(), i + AbstractDAOImpl.MAX_IN_CLAUSE_SIZE)));
+            q.setMaxResults(remaining);
+            for (Object location : q.list()) {
+                candidates.add(new Pair<Location, Long>((Location) location, lastCount));
+            }
+        }
+        Collections.sort(candidates, new PairComparator<Location>(true, true));
+        results.addAll(candidates.subList(0, Math.min(remaining, candidates.size())));
+        Collections.sort(results, new PairComparator<Location>(true, true));
+        return results;
+    }
+
+    /**
+     * Loads the entities for the counted ids. Records without the entity
+     * (the null key) are not included.
+     */
+    private <T extends PersistentImpl> List<Pair<T, Long>> toPairs(Session sesh, Class<T> clazz, Map<Integer, Long> idCounts) {
+        Set<Integer> ids = new HashSet<Integer>(idCounts.keySet());
+        ids.remove(null);
+        return toPairs(sesh, clazz, idCounts, ids);
+    }
+
+    /**
+     * Loads the entities for some of the counted ids.
+     */
+    private <T extends PersistentImpl> List<Pair<T, Long>> toPairs(Session sesh, Class<T> clazz,
+            Map<Integer, Long> idCounts, Collection<Integer> ids) {
+        List<Pair<T, Long>> results = new ArrayList<Pair<T, Long>>(ids.size());
+        if (ids.isEmpty()) {
+            return results;
+        }
+        List<T> loaded = sesh == null ? recordDAO.getByIDs(clazz, ids) : recordDAO.getByIDs(sesh, clazz, ids);
+        for (T entity : loaded) {
+            results.add(new Pair<T, Long>(entity, idCounts.get(entity.getId())));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the counts in ascending order of their keys, excluding the null key.
+     */
+    private <K extends Comparable<K>> List<Pair<K, Long>> toSortedPairs(Map<K, Long> keyCounts) {
+        List<K> keys = new ArrayList<K>(keyCounts.keySet());
+        keys.remove(null);
+        Collections.sort(keys);
+        List<Pair<K, Long>> results = new ArrayList<Pair<K, Long>>(keys.size());
+        for (K key : keys) {
+            results.add(new Pair<K, Long>(key, keyCounts.get(key)));
+        }
+        return results;
+    }
+
+    /**
+     * Orders pairs of entities and counts like the equivalent aggregate
+     * queries, optionally by count descending, then optionally by weight and
+     * finally by name. Null weights and names sort last as they do in the
+     * database.
+     */
+    private static class PairComparator<T extends PersistentImpl> implements Comparator<Pair<T, Long>> {
+        private boolean byCount;
+        private boolean byWeight;
+        private Collator collator = Collator.getInstance();
+
+        public PairComparator(boolean byCount, boolean byWeight) {
+            this.byCount = byCount;
+            this.byWeight = byWeight;
+        }
+
+        @Override
+        public int compare(Pair<T, Long> o1, Pair<T, Long> o2) {
+            int result = 0;
+            if (byCount) {
+                result = o2.getSecond().compareTo(o1.getSecond());
+            }
+            if (result == 0 && byWeight) {
+                result = compareNullsLast(o1.getFirst().getWeight(), o2.getFirst().getWeight());
+            }
+            if (result == 0) {
+                String name1 = getName(o1.getFirst());
+                String name2 = getName(o2.getFirst());
+                if (name1 == null || name2 == null) {
+                    result = compareNullsLast(name1, name2);
+                } else {
+                    result = collator.compare(name1, name2);
+                }
+            }
+            return result;
+        }
+
+        private <C extends Comparable<C>> int compareNullsLast(C c1, C c2) {
+            if (c1 == null) {
+                return c2 == null ? 0 : 1;
+            }
+            return c2 == null ? -1 : c1.compareTo(c2);
+        }
+
+        private String getName(T entity) {
+            if (entity instanceof User) {
+                return ((User) entity).getName();
+            } else if (entity instanceof Survey) {
+                return ((Survey) entity).getName();
+            } else if (entity instanceof TaxonGroup) {
+                return ((TaxonGroup) entity).getName();
+            } else if (entity instanceof Location) {
+                return ((Location) entity).getName();
+            }
+            return null;
+        }
+    }
+}
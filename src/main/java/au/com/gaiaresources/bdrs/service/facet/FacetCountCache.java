@@ -0,0 +1,683 @@
+package au.com.gaiaresources.bdrs.service.facet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Filter;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.impl.FilterImpl;
+import org.springframework.stereotype.Service;
+
+import au.com.gaiaresources.bdrs.db.FilterManager;
+import au.com.gaiaresources.bdrs.model.facet.FacetCounts;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeValue;
+
+/**
+ * Caches the {@link FacetCounts} of each portal for each record filter. Most
+ * requests for the advanced review pages are made by anonymous users who all
+ * share the same record filter, so the counts only need to be queried once
+ * for all of them.
+ *
+ * Cached counts are kept up to date incrementally. Records that are saved,
+ * updated or deleted are collected for the current transaction and, once the
+ * transaction commits, the record is removed from the counts with its
+ * previous state and added with its new state. Only the cached counts that
+ * the record is visible to are adjusted. Where a change cannot be applied
+ * incrementally, for example when a survey is modified and the visibility of
+ * all of its records may change, the counts of the portal are discarded
+ * instead.
+ *
+ * The number of cached counts is bounded and the least recently used counts
+ * are evicted first. Counts older than the maximum age are discarded in case
+ * records were modified without Hibernate.
+ */
+@Service
+public class FacetCountCache {
+
+    /**
+     * The default maximum number of cached counts.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 500;
+    /**
+     * The default maximum age of cached counts in milliseconds.
+     */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 15 * 60 * 1000;
+
+    private Logger log = Logger.getLogger(getClass());
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    // access ordered so that the least recently used counts are evicted first
+    private LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private Map<Integer, PortalState> portals = new HashMap<Integer, PortalState>();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+    private AtomicLong adjustments = new AtomicLong();
+    private AtomicLong invalidations = new AtomicLong();
+
+    private ThreadLocal<LinkedList<PendingTransaction>> transactions = new ThreadLocal<LinkedList<PendingTransaction>>() {
+        @Override
+        protected LinkedList<PendingTransaction> initialValue() {
+            return new LinkedList<PendingTransaction>();
+        }
+    };
+
+    /**
+     * Returns the key of the counts for the record filters enabled on the
+     * session.
+     * @param sesh the session that will be used to query the counts.
+     * @return the cache key or null if the counts cannot be cached, for
+     * example because the portal filter is not enabled or a filter that is
+     * not understood by this cache is enabled.
+     */
+    public Key getKey(Session sesh) {
+        Integer portalId = FilterManager.getFilteredPortalId(sesh);
+        if (portalId == null) {
+            return null;
+        }
+        if (sesh.getEnabledFilter(Record.IMAGE_FILTER) != null ||
+                sesh.getEnabledFilter(Record.ANONYMOUS_RECORD_ACCESS_FILTER) != null) {
+            return null;
+        }
+        boolean partialRecordsExcluded = sesh.getEnabledFilter(Record.PARTIAL_RECORD_COUNT_FILTER) != null;
+
+        Filter userFilter = sesh.getEnabledFilter(Record.USER_ACCESS_FILTER);
+        Filter userSurveyFilter = sesh.getEnabledFilter(Record.USER_SURVEY_ACCESS_FILTER);
+        Filter moderatorFilter = sesh.getEnabledFilter(Record.MODERATOR_ACCESS_FILTER);
+        int enabledCount = (userFilter != null ? 1 : 0) + (userSurveyFilter != null ? 1 : 0) + (moderatorFilter != null ? 1 : 0);
+        if (enabledCount > 1) {
+            return null;
+        }
+        Filter filter = userFilter != null ? userFilter : userSurveyFilter != null ? userSurveyFilter : moderatorFilter;
+        if (filter == null) {
+            return new Key(portalId, partialRecordsExcluded, null, null);
+        }
+        if (!(filter instanceof FilterImpl)) {
+            return null;
+        }
+        Object userId = ((FilterImpl) filter).getParameter(Record.FILTER_PARAMETER_USER);
+        if (!(userId instanceof Integer)) {
+            return null;
+        }
+        // the user survey filter returns the same records as the user filter,
+        // so the counts are shared.
+        String filterName = filter == userSurveyFilter ? Record.USER_ACCESS_FILTER : filter.getName();
+        return new Key(portalId, partialRecordsExcluded, filterName, (Integer) userId);
+    }
+
+    /**
+     * Returns the cached counts.
+     * @param key the key of the counts.
+     * @return the counts or null if the counts are not cached. The counts
+     * must not be modified.
+     */
+    public synchronized FacetCounts get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.created > maxAgeMillis) {
+            entries.remove(key);
+            evictions.incrementAndGet();
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.counts;
+    }
+
+    /**
+     * Returns the current generation of the counts of a portal. The
+     * generation must be retrieved before the counts are queried and passed
+     * to {@link #put(Key, FacetCounts, long)} so that counts that may have
+     * missed a concurrent change are not cached.
+     * @param portalId the id of the portal.
+     * @return the generation, or -1 if records of the portal are being
+     * committed and the counts cannot be cached.
+     */
+    public synchronized long getGeneration(Integer portalId) {
+        // the null portal tracks changes that affect every portal
+        PortalState state = getPortalState(portalId);
+        PortalState all = getPortalState(null);
+        if (state.inFlight > 0 || all.inFlight > 0) {
+            return -1;
+        }
+        return state.generation + all.generation;
+    }
+
+    /**
+     * Caches the counts if no records of the portal have changed since the
+     * generation was retrieved.
+     * @param key the key of the counts.
+     * @param counts the counts to cache.
+     * @param generation the generation of the portal before the counts were queried.
+     */
+    public synchronized void put(Key key, FacetCounts counts, long generation) {
+        if (generation < 0 || generation != getGeneration(key.getPortalId())) {
+            return;
+        }
+        entries.put(key, new Entry(counts));
+        while (entries.size() > maxEntries) {
+            Iterator<Key> iter = entries.keySet().iterator();
+            iter.next();
+            iter.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Discards the cached counts of a portal.
+     * @param portalId the id of the portal, or null to discard all cached counts.
+     */
+    public synchronized void invalidate(Integer portalId) {
+        for (Iterator<Key> iter = entries.keySet().iterator(); iter.hasNext();) {
+            Key key = iter.next();
+            if (portalId == null || portalId.equals(key.getPortalId())) {
+                iter.remove();
+                invalidations.incrementAndGet();
+            }
+        }
+        getPortalState(portalId).generation++;
+    }
+
+    /**
+     * Discards all cached counts.
+     */
+    public void clear() {
+        invalidate(null);
+    }
+
+    /**
+     * Begins collecting the records changed by a transaction.
+     * @param tx the transaction.
+     */
+    public void transactionBegun(Object tx) {
+        LinkedList<PendingTransaction> stack = transactions.get();
+        // discard transactions that were abandoned without completing
+        for (Iterator<PendingTransaction> iter = stack.iterator(); iter.hasNext();) {
+            Object other = iter.next().tx;
+            if (other instanceof Transaction && !((Transaction) other).isActive()) {
+                iter.remove();
+            }
+        }
+        stack.addFirst(new PendingTransaction(tx));
+    }
+
+    /**
+     * @return true if the transaction of the current thread has changed
+     * records that have not been committed yet. Counts queried by the
+     * transaction include these changes and must not be cached.
+     */
+    public boolean hasPendingChanges() {
+        PendingTransaction pending = transactions.get().peek();
+        return pending != null && !pending.isEmpty();
+    }
+
+    /**
+     * Collects a new record.
+     * @param record the record that has been saved.
+     */
+    public void recordSaved(Record record) {
+        PendingTransaction pending = transactions.get().peek();
+        if (pending == null) {
+            invalidate(getPortalId(record));
+        } else {
+            pending.change(record, null);
+        }
+    }
+
+    /**
+     * Collects a modified record.
+     * @param record the record that has been modified.
+     * @param propertyNames the names of the properties of the record.
+     * @param previousState the state of the record when it was loaded, may be null.
+     */
+    public void recordUpdated(Record record, String[] propertyNames, Object[] previousState) {
+        PendingTransaction pending = transactions.get().peek();
+        if (pending == null) {
+            invalidate(getPortalId(record));
+        } else if (previousState == null) {
+            pending.invalidate(getPortalId(record));
+        } else {
+            pending.change(record, RecordFacetState.fromState(record, propertyNames, previousState));
+        }
+    }
+
+    /**
+     * Collects a modified collection of attribute values of a record.
+     * @param record the record that owns the attribute values.
+     * @param previousAttributes the attribute values when the record was
+     * loaded, or null if they are not known.
+     */
+    public void recordAttributesUpdated(Record record, Collection<AttributeValue> previousAttributes) {
+        PendingTransaction pending = transactions.get().peek();
+        if (pending == null) {
+            invalidate(getPortalId(record));
+        } else if (!pending.changes.containsKey(record)) {
+            // none of the other properties have changed
+            RecordFacetState previous = RecordFacetState.fromRecord(record);
+            previous.setAttributes(previousAttributes);
+            pending.change(record, previous);
+        } else {
+            // a replaced collection is recreated and the previous collection
+            // removed in no particular order, only the removal knows the
+            // previous attribute values.
+            RecordFacetState previous = pending.changes.get(record).previous;
+            if (previous != null && !previous.isKnown() && previousAttributes != null) {
+                previous.setAttributes(previousAttributes);
+            }
+        }
+    }
+
+    /**
+     * Collects a record that is about to be deleted. The state of the record
+     * is resolved immediately, so this must not be called during a flush.
+     * @param record the record that is about to be deleted.
+     */
+    public void recordDeleted(Record record) {
+        recordDeleted(record, RecordFacetState.fromRecord(record), true);
+    }
+
+    /**
+     * Collects a record that has been deleted during a flush.
+     * @param record the record that has been deleted.
+     * @param propertyNames the names of the properties of the record.
+     * @param state the state of the record when it was deleted.
+     */
+    public void recordDeleted(Record record, String[] propertyNames, Object[] state) {
+        recordDeleted(record, RecordFacetState.fromState(record, propertyNames, state), false);
+    }
+
+    private void recordDeleted(Record record, RecordFacetState previous, boolean resolve) {
+        PendingTransaction pending = transactions.get().peek();
+        if (pending == null) {
+            invalidate(getPortalId(record));
+            return;
+        }
+        if (resolve) {
+            try {
+                previous.resolve();
+            } catch (RuntimeException re) {
+                log.warn("Failed to resolve the facet state of deleted record " + record.getId(), re);
+                pending.invalidate(getPortalId(record));
+                return;
+            }
+        }
+        pending.change(record, previous);
+        pending.changes.get(record).deleted = true;
+    }
+
+    /**
+     * Discards the cached counts of a portal when the current transaction
+     * commits. Used for changes that may affect the counts of many records.
+     * @param portalId the id of the portal, or null for all portals.
+     */
+    public void invalidateOnCommit(Integer portalId) {
+        PendingTransaction pending = transactions.get().peek();
+        if (pending == null) {
+            invalidate(portalId);
+        } else {
+            pending.invalidate(portalId);
+        }
+    }
+
+    /**
+     * Resolves the state of the records changed by the transaction. Must be
+     * called after the transaction has been flushed and before it commits.
+     * @param tx the transaction that is completing.
+     */
+    public void beforeTransactionCompletion(Object tx) {
+        PendingTransaction pending = find(tx);
+        if (pending == null || pending.isEmpty()) {
+            return;
+        }
+        for (Iterator<Change> iter = pending.changes.values().iterator(); iter.hasNext();) {
+            Change change = iter.next();
+            Record record = change.record;
+            try {
+                if (!change.deleted) {
+                    change.current = RecordFacetState.fromRecord(record);
+                    change.current.resolve();
+                }
+                if (change.previous != null) {
+                    if (!change.previous.isKnown()) {
+                        throw new IllegalStateException("The previous attribute values are not known.");
+                    }
+                    change.previous.resolve();
+                }
+            } catch (RuntimeException re) {
+                log.debug("Cannot update the facet counts incrementally for record " + record.getId(), re);
+                pending.invalidated.add(getPortalId(record));
+                iter.remove();
+            }
+        }
+
+        // prevent counts being cached while the changes are committed
+        synchronized (this) {
+            for (Integer portalId : pending.getPortalIds()) {
+                PortalState state = getPortalState(portalId);
+                state.inFlight++;
+                state.generation++;
+            }
+            pending.inFlight = true;
+        }
+    }
+
+    /**
+     * Applies the changes of the transaction to the cached counts if it was
+     * committed.
+     * @param tx the transaction that has completed.
+     * @param committed true if the transaction was committed.
+     */
+    public void afterTransactionCompletion(Object tx, boolean committed) {
+        PendingTransaction pending = find(tx);
+        if (pending == null) {
+            return;
+        }
+        transactions.get().remove(pending);
+        if (pending.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (committed) {
+                if (pending.invalidated.contains(null)) {
+                    invalidate(null);
+                } else {
+                    for (Integer portalId : pending.invalidated) {
+                        invalidate(portalId);
+                    }
+                    for (Change change : pending.changes.values()) {
+                        apply(change);
+                    }
+                }
+            }
+            if (pending.inFlight) {
+                for (Integer portalId : pending.getPortalIds()) {
+                    PortalState state = getPortalState(portalId);
+                    state.inFlight--;
+                    state.generation++;
+                }
+            }
+        }
+    }
+
+    private void apply(Change change) {
+        List<Key> invalid = new ArrayList<Key>();
+        for (Map.Entry<Key, Entry> mapEntry : entries.entrySet()) {
+            Key key = mapEntry.getKey();
+            Boolean wasVisible = change.previous == null ? Boolean.FALSE : change.previous.isVisibleTo(key);
+            Boolean isVisible = change.current == null ? Boolean.FALSE : change.current.isVisibleTo(key);
+            if (wasVisible == null || isVisible == null) {
+                invalid.add(key);
+            } else if (wasVisible || isVisible) {
+                // the cached counts are shared with readers so they are copied
+                FacetCounts counts = new FacetCounts(mapEntry.getValue().counts);
+                if (wasVisible) {
+                    change.previous.addTo(counts, -1);
+                }
+                if (isVisible) {
+                    change.current.addTo(counts, 1);
+                }
+                mapEntry.getValue().counts = counts;
+                adjustments.incrementAndGet();
+            }
+        }
+        for (Key key : invalid) {
+            entries.remove(key);
+            invalidations.incrementAndGet();
+        }
+    }
+
+    private PendingTransaction find(Object tx) {
+        for (PendingTransaction pending : transactions.get()) {
+            if (pending.tx == tx) {
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    private PortalState getPortalState(Integer portalId) {
+        PortalState state = portals.get(portalId);
+        if (state == null) {
+            state = new PortalState();
+            portals.put(portalId, state);
+        }
+        return state;
+    }
+
+    private Integer getPortalId(Record record) {
+        // new records do not have a portal until they are inserted
+        return record.getPortal() == null ? null : record.getPortal().getId();
+    }
+
+    /**
+     * @return the number of cached counts.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of requests for counts that were cached.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests for counts that were not cached.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the proportion of requests for counts that were cached.
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : h / (double) total;
+    }
+
+    /**
+     * @return the number of counts evicted because the cache was full or they expired.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of times cached counts were adjusted for a changed record.
+     */
+    public long getAdjustmentCount() {
+        return adjustments.get();
+    }
+
+    /**
+     * @return the number of counts discarded because they could not be adjusted.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * @param maxEntries the maximum number of cached counts.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param maxAgeMillis the maximum age of cached counts in milliseconds.
+     */
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FacetCountCache[size=%d, hits=%d, misses=%d, hitRatio=%.2f, evictions=%d, adjustments=%d, invalidations=%d]",
+                size(), getHitCount(), getMissCount(), getHitRatio(), getEvictionCount(), getAdjustmentCount(), getInvalidationCount());
+    }
+
+    /**
+     * Identifies a set of counts by portal and record filter.
+     */
+    public static class Key {
+        private Integer portalId;
+        private boolean partialRecordsExcluded;
+        private String filterName;
+        private Integer userId;
+
+        /**
+         * @param portalId the id of the portal.
+         * @param partialRecordsExcluded true if records created by attribute
+         * values are excluded.
+         * @param filterName the name of the record access filter, null if
+         * records are not filtered.
+         * @param userId the user id parameter of the filter.
+         */
+        public Key(Integer portalId, boolean partialRecordsExcluded, String filterName, Integer userId) {
+            this.portalId = portalId;
+            this.partialRecordsExcluded = partialRecordsExcluded;
+            this.filterName = filterName;
+            this.userId = userId;
+        }
+
+        public Integer getPortalId() {
+            return portalId;
+        }
+
+        public boolean isPartialRecordsExcluded() {
+            return partialRecordsExcluded;
+        }
+
+        public String getFilterName() {
+            return filterName;
+        }
+
+        public Integer getUserId() {
+            return userId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) other;
+            return equal(portalId, that.portalId) && partialRecordsExcluded == that.partialRecordsExcluded &&
+                equal(filterName, that.filterName) && equal(userId, that.userId);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = portalId == null ? 0 : portalId.hashCode();
+            hash = 31 * hash + (partialRecordsExcluded ? 1 : 0);
+            hash = 31 * hash + (filterName == null ? 0 : filterName.hashCode());
+            return 31 * hash + (userId == null ? 0 : userId.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Key[portal=%s, excludePartial=%s, filter=%s, user=%s]", portalId, partialRecordsExcluded, filterName, userId);
+        }
+
+        private static boolean equal(Object o1, Object o2) {
+            return o1 == null ? o2 == null : o1.equals(o2);
+        }
+    }
+
+    private static class Entry {
+        private FacetCounts counts;
+        private long created = System.currentTimeMillis();
+
+        public Entry(FacetCounts counts) {
+            this.counts = counts;
+        }
+    }
+
+    private static class PortalState {
+        private long generation = 0;
+        private int inFlight = 0;
+    }
+
+    private static class Change {
+        private Record record;
+        private RecordFacetState previous;
+        private RecordFacetState current;
+        private boolean deleted = false;
+
+        public Change(Record record, RecordFacetState previous) {
+            this.record = record;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * The records changed by a transaction, keyed by instance since new
+     * records do not have an id when they are saved.
+     */
+    private static class PendingTransaction {
+        private Object tx;
+        private Map<Record, Change> changes = new IdentityHashMap<Record, Change>();
+        private Set<Integer> invalidated = new HashSet<Integer>();
+        private boolean inFlight = false;
+
+        public PendingTransaction(Object tx) {
+            this.tx = tx;
+        }
+
+        /**
+         * Collects a changed record, keeping the state it had when the transaction began.
+         */
+        public void change(Record record, RecordFacetState previous) {
+            if (!changes.containsKey(record)) {
+                changes.put(record, new Change(record, previous));
+            }
+        }
+
+        public void invalidate(Integer portalId) {
+            invalidated.add(portalId);
+        }
+
+        public boolean isEmpty() {
+            return changes.isEmpty() && invalidated.isEmpty();
+        }
+
+        /**
+         * @return the portals whose counts are affected by the transaction,
+         * including null if the counts of all portals are affected.
+         */
+        public Set<Integer> getPortalIds() {
+            Set<Integer> portalIds = new HashSet<Integer>(invalidated);
+            for (Change change : changes.values()) {
+                if (change.previous != null && change.previous.getPortalId() != null) {
+                    portalIds.add(change.previous.getPortalId());
+                }
+                if (change.current != null && change.current.getPortalId() != null) {
+                    portalIds.add(change.current.getPortalId());
+                }
+            }
+            return portalIds;
+        }
+    }
+}
@@ -110,6 +110,8 @@ public class FacetService {
     private RecordDAO recordDAO;
     @Autowired
     private LocationDAO locationDAO;
+    @Autowired
+    private FacetCountCache facetCountCache;
 
     /**
      * Generates the {@link List} of {@link Facet}s for {@link Record}. Each facet will be configured
@@ -148,7 +150,9 @@ public class FacetService {
         List<Facet> facetList = new ArrayList<Facet>();
 
         if (FACET_BUILDER_CLASS_REGISTRY.containsKey(facetClass)) {
-            FacetDAO dao = Record.class.equals(facetClass) ? recordDAO :
+            // the record facets share a single set of counts rather than
+            // running an aggregate query each.
+            FacetDAO dao = Record.class.equals(facetClass) ? new CountingFacetDAO(recordDAO, facetCountCache) :
                     (Location.class.equals(facetClass) ? locationDAO : null);
             for (FacetBuilder builder : FACET_BUILDER_CLASS_REGISTRY.get(facetClass)) {
                 Preference pref = prefDAO.getPreferenceByKey(builder.getPreferenceKey());
@@ -275,8 +279,13 @@ public class FacetService {
 
     private void applyFacetsToQuery(HqlQuery hqlQuery, List<Facet> facetList, String searchText) {
         applyJoinsForBaseQuery(hqlQuery);
-        // If we are doing a text search, add a few extra joins.
+        // the records matching the search text are found in the record index if possible
+        Predicate indexPredicate = null;
         if (searchText != null && !searchText.isEmpty()) {
+            indexPredicate = recordDAO.createSearchPredicate("record.id", searchText);
+        }
+        // If we are doing a text search without the index, add a few extra joins.
+        if (searchText != null && !searchText.isEmpty() && indexPredicate == null) {
             if (!hqlQuery.hasAlias(ATTRIBUTE_VALUE_ALIAS)) {
                 hqlQuery.leftJoin("record.attributes", ATTRIBUTE_VALUE_ALIAS);
             }
@@ -293,7 +302,9 @@ public class FacetService {
             }
         }
 
-        if (searchText != null && !searchText.isEmpty()) {
+        if (indexPredicate != null) {
+            hqlQuery.and(indexPredicate);
+        } else if (searchText != null && !searchText.isEmpty()) {
             String formattedSearchText = String.format("%%%s%%", searchText);
             Predicate searchPredicate = Predicate.ilike("record.notes", formattedSearchText);
             searchPredicate.or(Predicate.ilike("record.user.name", String.format("%%%s%%", searchText)));
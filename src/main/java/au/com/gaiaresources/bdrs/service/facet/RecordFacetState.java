@@ -0,0 +1,312 @@
+package au.com.gaiaresources.bdrs.service.facet;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.collection.PersistentCollection;
+
+import au.com.gaiaresources.bdrs.db.impl.PersistentImpl;
+import au.com.gaiaresources.bdrs.model.facet.FacetCounts;
+import au.com.gaiaresources.bdrs.model.location.Location;
+import au.com.gaiaresources.bdrs.model.method.CensusMethod;
+import au.com.gaiaresources.bdrs.model.portal.Portal;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeValue;
+import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
+import au.com.gaiaresources.bdrs.model.user.User;
+
+/**
+ * The properties of a single record that determine which facet options it is
+ * counted in and which cached {@link FacetCounts} it is visible to.
+ *
+ * A state is captured in two steps. The associations are captured when the
+ * record is changed, which may be during a flush where nothing may be loaded.
+ * They are {@link #resolve() resolved} to identifiers before the transaction
+ * completes, while the session can still initialise lazy associations.
+ */
+public class RecordFacetState {
+
+    private static final String PROPERTY_PORTAL = "portal";
+    private static final String PROPERTY_SURVEY = "survey";
+    private static final String PROPERTY_USER = "user";
+    private static final String PROPERTY_WHEN = "when";
+    private static final String PROPERTY_LOCATION = "location";
+    private static final String PROPERTY_CENSUS_METHOD = "censusMethod";
+    private static final String PROPERTY_VISIBILITY = "recordVisibility";
+    private static final String PROPERTY_HELD = "held";
+    private static final String PROPERTY_SPECIES = "species";
+    private static final String PROPERTY_ATTRIBUTES = "attributes";
+    private static final String PROPERTY_ATTRIBUTE_VALUE = "attributeValue";
+
+    // captured state
+    private Record record;
+    private Portal portal;
+    private Survey survey;
+    private User user;
+    private Date when;
+    private Location location;
+    private CensusMethod censusMethod;
+    private IndicatorSpecies species;
+    private Collection<AttributeValue> attributes;
+    private boolean attributesKnown = true;
+
+    // resolved state
+    private boolean resolved = false;
+    private Integer portalId;
+    private Integer surveyId;
+    private boolean surveyPublic;
+    private Integer userId;
+    private Long year;
+    private Long month;
+    private Integer locationId;
+    private String censusMethodType;
+    private RecordVisibility visibility;
+    private boolean held;
+    private boolean partial;
+    private Set<Integer> taxonGroupIds = new HashSet<Integer>();
+
+    private RecordFacetState(Record record) {
+        this.record = record;
+    }
+
+    /**
+     * Captures the current state of the record. The attribute values are read
+     * from the record when the state is resolved.
+     * @param record the record.
+     * @return the state of the record.
+     */
+    public static RecordFacetState fromRecord(Record record) {
+        RecordFacetState state = new RecordFacetState(record);
+        state.portal = record.getPortal();
+        state.survey = record.getSurvey();
+        state.user = record.getUser();
+        state.when = record.getWhen();
+        state.location = record.getLocation();
+        state.censusMethod = record.getCensusMethod();
+        state.visibility = record.getRecordVisibility();
+        state.held = Boolean.TRUE.equals(record.isHeld());
+        state.partial = record.getAttributeValue() != null;
+        state.species = record.getSpecies();
+        state.attributes = null;
+        return state;
+    }
+
+    /**
+     * Captures the state of a record from the property values provided by an
+     * interceptor, e.g. the previous state of a dirty record.
+     * @param record the record.
+     * @param propertyNames the names of the properties of the record.
+     * @param values the value of each property.
+     * @return the state of the record.
+     */
+    @SuppressWarnings("unchecked")
+    public static RecordFacetState fromState(Record record, String[] propertyNames, Object[] values) {
+        RecordFacetState state = new RecordFacetState(record);
+        Object attributes = null;
+        for (int i = 0; i < propertyNames.length; i++) {
+            String name = propertyNames[i];
+            Object value = values[i];
+            if (PROPERTY_PORTAL.equals(name)) {
+                state.portal = (Portal) value;
+            } else if (PROPERTY_SURVEY.equals(name)) {
+                state.survey = (Survey) value;
+            } else if (PROPERTY_USER.equals(name)) {
+                state.user = (User) value;
+            } else if (PROPERTY_WHEN.equals(name)) {
+                state.when = (Date) value;
+            } else if (PROPERTY_LOCATION.equals(name)) {
+                state.location = (Location) value;
+            } else if (PROPERTY_CENSUS_METHOD.equals(name)) {
+                state.censusMethod = (CensusMethod) value;
+            } else if (PROPERTY_VISIBILITY.equals(name)) {
+                state.visibility = (RecordVisibility) value;
+            } else if (PROPERTY_HELD.equals(name)) {
+                state.held = Boolean.TRUE.equals(value);
+            } else if (PROPERTY_SPECIES.equals(name)) {
+                state.species = (IndicatorSpecies) value;
+            } else if (PROPERTY_ATTRIBUTES.equals(name)) {
+                attributes = value;
+            } else if (PROPERTY_ATTRIBUTE_VALUE.equals(name)) {
+                state.partial = value != null;
+            }
+        }
+
+        Collection<AttributeValue> snapshot = getSnapshot(attributes);
+        if (snapshot != null) {
+            state.attributes = snapshot;
+        } else if (attributes != record.getAttributes()) {
+            // the collection was replaced before it was ever loaded.
+            state.attributesKnown = false;
+        }
+        return state;
+    }
+
+    /**
+     * Returns a copy of the elements that a collection contained when it was
+     * loaded, or null if the collection has not been initialised.
+     * @param collection the collection.
+     * @return the elements of the collection when it was loaded.
+     */
+    @SuppressWarnings("unchecked")
+    public static Collection<AttributeValue> getSnapshot(Object collection) {
+        if (collection == null) {
+            return Collections.emptyList();
+        }
+        if (collection instanceof PersistentCollection) {
+            PersistentCollection persistent = (PersistentCollection) collection;
+            if (!persistent.wasInitialized()) {
+                return null;
+            }
+            Object snapshot = persistent.getStoredSnapshot();
+            if (persistent.isDirty() && snapshot instanceof Map) {
+                return new ArrayList<AttributeValue>(((Map<Object, AttributeValue>) snapshot).values());
+            }
+        }
+        return new ArrayList<AttributeValue>((Collection<AttributeValue>) collection);
+    }
+
+    /**
+     * @return the record that this is the state of.
+     */
+    public Record getRecord() {
+        return record;
+    }
+
+    /**
+     * Replaces the attribute values of this state.
+     * @param attributes the attribute values, or null if they are not known.
+     */
+    public void setAttributes(Collection<AttributeValue> attributes) {
+        this.attributes = attributes;
+        this.attributesKnown = attributes != null;
+    }
+
+    /**
+     * @return true if every property of this state is known and can be resolved.
+     */
+    public boolean isKnown() {
+        return attributesKnown;
+    }
+
+    /**
+     * Resolves the captured associations into identifiers, initialising them
+     * if required. Must be called while the session of the record is open
+     * and not flushing.
+     */
+    public void resolve() {
+        if (resolved) {
+            return;
+        }
+        if (portal == null) {
+            // new records are assigned a portal when they are inserted.
+            portal = record.getPortal();
+        }
+        portalId = getId(portal);
+        surveyId = getId(survey);
+        surveyPublic = survey != null && (survey.isPublic() || survey.isPublicReadAccess());
+        userId = getId(user);
+        if (when != null) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTime(when);
+            year = Long.valueOf(cal.get(Calendar.YEAR));
+            month = Long.valueOf(cal.get(Calendar.MONTH) + 1);
+        }
+        locationId = getId(location);
+        censusMethodType = censusMethod == null ? null : censusMethod.getType();
+
+        if (species != null && species.getTaxonGroup() != null) {
+            taxonGroupIds.add(species.getTaxonGroup().getId());
+        }
+        Collection<AttributeValue> avs = attributes != null ? attributes : record.getAttributes();
+        if (avs != null) {
+            for (AttributeValue av : avs) {
+                IndicatorSpecies avSpecies = av.getSpecies();
+                if (avSpecies != null && avSpecies.getTaxonGroup() != null) {
+                    taxonGroupIds.add(avSpecies.getTaxonGroup().getId());
+                }
+            }
+        }
+
+        // release the entities
+        record = null;
+        portal = null;
+        survey = null;
+        user = null;
+        location = null;
+        censusMethod = null;
+        species = null;
+        attributes = null;
+        resolved = true;
+    }
+
+    /**
+     * @return the id of the portal of the record.
+     */
+    public Integer getPortalId() {
+        return portalId;
+    }
+
+    /**
+     * Returns whether a record in this state is counted in facets created
+     * with the specified record filter, or null if it cannot be determined
+     * without querying the database.
+     * @param key the cache key describing the record filter.
+     * @return true if the record is visible, false if it is not, null if unknown.
+     */
+    public Boolean isVisibleTo(FacetCountCache.Key key) {
+        if (portalId == null || !portalId.equals(key.getPortalId())) {
+            return Boolean.FALSE;
+        }
+        if (partial && key.isPartialRecordsExcluded()) {
+            return Boolean.FALSE;
+        }
+        if (key.getFilterName() == null) {
+            return Boolean.TRUE;
+        }
+        // see the record filters in Record
+        boolean owner = userId != null && userId.equals(key.getUserId());
+        boolean shared = RecordVisibility.PUBLIC.equals(visibility) || RecordVisibility.CONTROLLED.equals(visibility);
+        if (Record.MODERATOR_ACCESS_FILTER.equals(key.getFilterName())) {
+            return owner || shared;
+        }
+        if (owner) {
+            return Boolean.TRUE;
+        }
+        if (!shared || held) {
+            return Boolean.FALSE;
+        }
+        if (surveyPublic) {
+            return Boolean.TRUE;
+        }
+        if (surveyId == null || Integer.valueOf(0).equals(key.getUserId())) {
+            // anonymous users are never members of a survey
+            return Boolean.FALSE;
+        }
+        // depends on the survey membership of the user
+        return null;
+    }
+
+    /**
+     * Adds or removes this record from the counts.
+     * @param counts the counts to update.
+     * @param count 1 to add the record or -1 to remove it.
+     */
+    public void addTo(FacetCounts counts, int count) {
+        counts.add(surveyId, userId, year, month, locationId, censusMethodType, visibility, count);
+        for (Integer taxonGroupId : taxonGroupIds) {
+            counts.addTaxonGroup(taxonGroupId, count);
+        }
+    }
+
+    private static Integer getId(PersistentImpl persistent) {
+        return persistent == null ? null : persistent.getId();
+    }
+}
@@ -0,0 +1,195 @@
+package au.com.gaiaresources.bdrs.service.job;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.security.sasl.AuthenticationException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import au.com.gaiaresources.bdrs.json.JSONObject;
+import au.com.gaiaresources.bdrs.model.job.JobType;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
+import au.com.gaiaresources.bdrs.service.bulkdata.AbstractBulkDataService;
+import au.com.gaiaresources.bdrs.service.bulkdata.AmbiguousDataException;
+import au.com.gaiaresources.bdrs.service.bulkdata.BulkDataService;
+import au.com.gaiaresources.bdrs.service.bulkdata.BulkUpload;
+import au.com.gaiaresources.bdrs.service.bulkdata.BulkUploadCheckpoint;
+import au.com.gaiaresources.bdrs.service.bulkdata.DataReferenceException;
+import au.com.gaiaresources.bdrs.service.bulkdata.InvalidSurveySpeciesException;
+import au.com.gaiaresources.bdrs.service.bulkdata.LocationUpload;
+import au.com.gaiaresources.bdrs.service.bulkdata.MissingDataException;
+import au.com.gaiaresources.bdrs.service.bulkdata.RecordUpload;
+
+/**
+ * Saves the records of an uploaded .xls or .xlsx spreadsheet. The records
+ * are saved in chunks as they are by the bulk data page, the progress of
+ * the job is the number of rows committed.
+ */
+@Component
+public class BulkDataUploadJobHandler implements JobHandler {
+
+    /**
+     * The survey the spreadsheet was uploaded to.
+     */
+    public static final String PARAM_SURVEY_ID = "surveyId";
+    /**
+     * The name of the input file of the job holding the spreadsheet.
+     */
+    public static final String PARAM_FILE_NAME = "fileName";
+    /**
+     * The name of the spreadsheet as it was uploaded.
+     */
+    public static final String PARAM_ORIGINAL_FILE_NAME = "originalFileName";
+    /**
+     * True if missing surveys, groups and users may be created.
+     */
+    public static final String PARAM_CREATE_MISSING = "createMissing";
+    /**
+     * True if all of the records are saved in one transaction, so that
+     * either all or none of them are saved.
+     */
+    public static final String PARAM_ALL_OR_NOTHING = "allOrNothing";
+
+    /**
+     * The number of errors described in the message of a job.
+     */
+    private static final int MAX_REPORTED_ERRORS = 10;
+
+    @Autowired
+    private BulkDataService bulkDataService;
+    @Autowired
+    private SurveyDAO surveyDAO;
+
+    @Override
+    public JobType getType() {
+        return JobType.BULK_DATA_UPLOAD;
+    }
+
+    @Override
+    public void run(final JobContext context) throws Exception {
+        JSONObject params = context.getParameters();
+        int surveyId = params.getInt(PARAM_SURVEY_ID);
+        String originalFileName = params.optString(PARAM_ORIGINAL_FILE_NAME, params.getString(PARAM_FILE_NAME));
+        Survey survey = surveyDAO.getSurvey(context.getSession(), surveyId);
+        if (survey == null) {
+            throw new JobException("The survey of the upload no longer exists.");
+        }
+
+        BulkUpload bulkUpload;
+        InputStream in = new FileInputStream(context.getInputFile(params.getString(PARAM_FILE_NAME)));
+        try {
+            bulkUpload = bulkDataService.importBulkData(survey, in);
+        } catch (IllegalArgumentException iae) {
+            throw new JobException("The uploaded file could not be read. The internal error was: " + getMessage(iae), iae);
+        } catch (IOException ioe) {
+            throw new JobException("The uploaded file could not be read. The internal error was: " + getMessage(ioe), ioe);
+        } catch (ParseException pe) {
+            throw new JobException(pe.getErrorOffset() > 0 ?
+                    pe.getMessage() + " Please correct the header in column: " + pe.getErrorOffset() : pe.getMessage(), pe);
+        } finally {
+            in.close();
+        }
+
+        if (bulkUpload.hasError()) {
+            throw new JobException(getParseErrorMessage(bulkUpload));
+        }
+
+        context.setProgressTotal(bulkUpload.getRecordUploadList().size());
+        // the progress of the job is advanced as each chunk is committed.
+        // A job is never resumed so the checkpoint has no content hash.
+        BulkUploadCheckpoint checkpoint = new BulkUploadCheckpoint(surveyId, originalFileName,
+                null, bulkUpload.getRecordUploadList().size()) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void chunkCommitted(int committedRowCount, long millis) {
+                super.chunkCommitted(committedRowCount, millis);
+                context.setProgress(committedRowCount);
+            }
+        };
+
+        try {
+            bulkDataService.saveRecords(context.getOwner(), bulkUpload,
+                    params.optBoolean(PARAM_CREATE_MISSING, false),
+                    params.optBoolean(PARAM_ALL_OR_NOTHING, false) ? 0 : AbstractBulkDataService.SAVE_CHUNK_SIZE,
+                    checkpoint);
+        } catch (MissingDataException mde) {
+            throw new JobException(getSavedMessage(checkpoint) + "The records could not be imported because there is missing data: "
+                    + getMissingData(bulkUpload), mde);
+        } catch (AmbiguousDataException ade) {
+            throw new JobException(getSavedMessage(checkpoint) + "The records could not be imported because these species names are ambiguous: "
+                    + join(bulkUpload.getAmbiguousSpeciesNames()), ade);
+        } catch (InvalidSurveySpeciesException ise) {
+            throw new JobException(getSavedMessage(checkpoint) + "Cannot add sighting records for a species that is not in the survey.", ise);
+        } catch (AuthenticationException ae) {
+            throw new JobException(getSavedMessage(checkpoint) + "You do not have the permissions required to create the missing data: "
+                    + getMissingData(bulkUpload), ae);
+        } catch (DataReferenceException dre) {
+            throw new JobException(getSavedMessage(checkpoint) + dre.getMessage(), dre);
+        }
+
+        context.setMessage(String.format("Saved %d records of %s.", checkpoint.getSavedRowCount(), originalFileName));
+    }
+
+    private String getSavedMessage(BulkUploadCheckpoint checkpoint) {
+        if (checkpoint.getCommittedRowCount() == 0) {
+            return "";
+        }
+        return String.format("The first %d records have been saved. ", checkpoint.getCommittedRowCount());
+    }
+
+    private String getParseErrorMessage(BulkUpload bulkUpload) {
+        StringBuilder sb = new StringBuilder();
+        if (bulkUpload.getErrorCount() < BulkDataService.PARSE_ERROR_LIMIT) {
+            sb.append("There has been an error while parsing the spreadsheet.");
+        } else {
+            sb.append("More than ").append(BulkDataService.PARSE_ERROR_LIMIT);
+            sb.append(" errors were encountered while parsing the spreadsheet.");
+        }
+        int reported = 0;
+        for (RecordUpload recordUpload : bulkUpload.getErrorRecordUploadList()) {
+            if (reported++ == MAX_REPORTED_ERRORS) {
+                break;
+            }
+            sb.append(" ").append(recordUpload.getErrorMessage());
+        }
+        for (LocationUpload locationUpload : bulkUpload.getErrorLocationUploadList()) {
+            if (reported++ == MAX_REPORTED_ERRORS) {
+                break;
+            }
+            sb.append(" ").append(locationUpload.getErrorMessage());
+        }
+        return sb.toString();
+    }
+
+    private String getMissingData(BulkUpload bulkUpload) {
+        List<String> missing = new ArrayList<String>();
+        missing.addAll(bulkUpload.getMissingSurveys());
+        missing.addAll(bulkUpload.getMissingGroups());
+        missing.addAll(bulkUpload.getMissingUsers());
+        missing.addAll(bulkUpload.getMissingIndicatorSpecies());
+        return join(missing);
+    }
+
+    private String join(Iterable<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    private String getMessage(Exception e) {
+        return e.getMessage() == null ? e.toString() : e.getMessage();
+    }
+}
@@ -0,0 +1,77 @@
+package au.com.gaiaresources.bdrs.service.job;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import au.com.gaiaresources.bdrs.db.impl.SortingCriteria;
+import au.com.gaiaresources.bdrs.dwca.RecordDwcaWriter;
+import au.com.gaiaresources.bdrs.model.job.JobType;
+import au.com.gaiaresources.bdrs.model.record.RecordDAO;
+import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
+import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
+import au.com.gaiaresources.bdrs.model.record.impl.AdvancedCountRecordFilter;
+import au.com.gaiaresources.bdrs.model.record.impl.AdvancedRecordFilter;
+import au.com.gaiaresources.bdrs.model.record.impl.RecordFilter;
+import au.com.gaiaresources.bdrs.service.lsid.LSIDService;
+import au.com.gaiaresources.bdrs.service.web.RedirectionService;
+import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
+
+/**
+ * Writes the public records to a Darwin Core archive, the archive is the
+ * result file of the job. The progress of the job is the number of records
+ * written.
+ */
+@Component
+public class DwcaDownloadJobHandler implements JobHandler {
+
+    /**
+     * The URL of the application up to the context path, the links in the
+     * archive are relative to this URL.
+     */
+    public static final String PARAM_SERVER_URL = "serverURL";
+
+    /**
+     * The name of the result file.
+     */
+    public static final String RESULT_FILE_NAME = "bdrs_dwca.zip";
+
+    @Autowired
+    private LSIDService lsidService;
+    @Autowired
+    private RecordDAO recordDAO;
+
+    @Override
+    public JobType getType() {
+        return JobType.DWCA_DOWNLOAD;
+    }
+
+    @Override
+    public void run(JobContext context) throws Exception {
+        RedirectionService redirService = new RedirectionService(context.getParameters().getString(PARAM_SERVER_URL));
+
+        RecordFilter countFilter = new AdvancedCountRecordFilter();
+        countFilter.setRecordVisibility(RecordVisibility.PUBLIC);
+        context.setProgressTotal(recordDAO.countRecords(countFilter));
+
+        RecordFilter recFilter = new AdvancedRecordFilter();
+        recFilter.setRecordVisibility(RecordVisibility.PUBLIC);
+        List<SortingCriteria> sortCriteria = Collections.emptyList();
+        ScrollableRecords sc = recordDAO.getStreamingRecords(recFilter, sortCriteria, RecordDwcaWriter.BATCH_SIZE);
+
+        RecordDwcaWriter writer = new RecordDwcaWriter(lsidService, new SpatialUtilFactory().getLocationUtil(), redirService);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(context.createResultFile(RESULT_FILE_NAME)));
+        try {
+            writer.writeArchive(new ProgressScrollableRecords(sc, context), out);
+        } finally {
+            out.close();
+        }
+        context.setMessage(String.format("Wrote %d records and %d measurements to the archive.",
+                writer.getRecordCount(), writer.getMeasurementCount()));
+    }
+}
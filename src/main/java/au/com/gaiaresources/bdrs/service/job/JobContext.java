@@ -0,0 +1,299 @@
+package au.com.gaiaresources.bdrs.service.job;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import au.com.gaiaresources.bdrs.file.FileService;
+import au.com.gaiaresources.bdrs.json.JSONObject;
+import au.com.gaiaresources.bdrs.model.job.Job;
+import au.com.gaiaresources.bdrs.model.job.JobStatus;
+import au.com.gaiaresources.bdrs.model.job.JobType;
+import au.com.gaiaresources.bdrs.model.portal.Portal;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.util.TransactionHelper;
+
+/**
+ * What a {@link JobHandler} needs to run a {@link Job}: the parameters and
+ * files of the job, a session to do the work in and a place to report
+ * progress.
+ *
+ * The progress is updated by the thread running the job and may be read
+ * from any thread. When the job is run from the queue the progress is also
+ * written to the job, at most once every
+ * {@link JobService#setProgressFlushMillis(long) progressFlushMillis}, in the
+ * session that tracks the status of the job so that it is committed
+ * independently of the work. The heartbeat of the job is set each time its
+ * status is committed, between commits it is kept up to date by the
+ * {@link JobService}.
+ */
+public class JobContext {
+
+    private Logger log = Logger.getLogger(getClass());
+
+    private Job job;
+    private Integer jobId;
+    private JobType type;
+    private Session session;
+    private Session statusSession;
+    private FileService fileService;
+    private long progressFlushMillis;
+
+    private JSONObject parameters;
+    private User owner;
+    private Portal portal;
+
+    private volatile JobStatus status;
+    private volatile int progress;
+    private volatile int progressTotal;
+    private volatile String message;
+    private String resultFileName;
+    private long startTime;
+    private volatile long endTime = 0;
+    private long lastFlush;
+
+    /**
+     * @param job the job to run.
+     * @param session the session to do the work in.
+     * @param statusSession the session the job was loaded in, the progress
+     * is committed in this session. If null the progress is only set on the
+     * job.
+     */
+    JobContext(Job job, Session session, Session statusSession, FileService fileService, long progressFlushMillis) {
+        this.job = job;
+        this.jobId = job.getId();
+        this.type = job.getType();
+        this.session = session;
+        this.statusSession = statusSession;
+        this.fileService = fileService;
+        this.progressFlushMillis = progressFlushMillis;
+
+        this.parameters = job.getParameterMap();
+        // the job may belong to the status session, the work is done with
+        // copies that belong to the work session.
+        this.owner = (User) session.get(User.class, job.getOwner().getId());
+        this.portal = job.getPortal() == null ? null : (Portal) session.get(Portal.class, job.getPortal().getId());
+
+        this.status = job.getStatus();
+        this.progress = job.getProgress();
+        this.progressTotal = job.getProgressTotal();
+        this.message = job.getMessage();
+        this.resultFileName = job.getResultFileName();
+        this.startTime = System.currentTimeMillis();
+        this.lastFlush = startTime;
+    }
+
+    /**
+     * @return the primary key of the job.
+     */
+    public Integer getJobId() {
+        return jobId;
+    }
+
+    /**
+     * @return the kind of work.
+     */
+    public JobType getType() {
+        return type;
+    }
+
+    /**
+     * @return what was asked for.
+     */
+    public JSONObject getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return the session to do the work in. Its transaction is committed
+     * once the handler returns, or rolled back if the handler throws.
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return the user the work is done for, in the work session.
+     */
+    public User getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return the portal the job was created in, in the work session.
+     */
+    public Portal getPortal() {
+        return portal;
+    }
+
+    /**
+     * @param name the name the file was stored with, see
+     * {@link JobService#createInputFile(Job, String)}.
+     * @return a file uploaded for the job.
+     * @throws IllegalArgumentException if the file does not exist.
+     */
+    public File getInputFile(String name) {
+        return fileService.getFile(Job.class, jobId, name).getFile();
+    }
+
+    /**
+     * Creates the file that is served as the result of the job once it has
+     * completed.
+     * @param name the name of the file.
+     * @return the file to write the result to.
+     */
+    public File createResultFile(String name) throws IOException {
+        File file = fileService.createTargetFile(Job.class, jobId, name);
+        resultFileName = name;
+        return file;
+    }
+
+    /**
+     * @return the state of the job.
+     */
+    public JobStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the amount of the work that has been done.
+     */
+    public int getProgress() {
+        return progress;
+    }
+
+    /**
+     * @param progress the amount of the work that has been done.
+     */
+    public void setProgress(int progress) {
+        this.progress = progress;
+        flushProgress(false);
+    }
+
+    /**
+     * @param count the amount of work done since the progress was last set.
+     */
+    public void addProgress(int count) {
+        setProgress(progress + count);
+    }
+
+    /**
+     * @return the amount of work to do, or zero if it is not known.
+     */
+    public int getProgressTotal() {
+        return progressTotal;
+    }
+
+    /**
+     * @param progressTotal the amount of work to do.
+     */
+    public void setProgressTotal(int progressTotal) {
+        this.progressTotal = progressTotal;
+        flushProgress(false);
+    }
+
+    /**
+     * @return a description of the outcome of the job.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @param message a description of the outcome of the job.
+     */
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * @return the time taken by the job so far in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    /**
+     * @return the progress as a map for JSON serialization.
+     */
+    public Map<String, Object> flatten() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("id", jobId);
+        map.put("type", type.toString());
+        map.put("status", status.toString());
+        map.put("progress", progress);
+        map.put("total", progressTotal);
+        map.put("message", message);
+        map.put("elapsed", getElapsedMillis());
+        return map;
+    }
+
+    void start() {
+        status = JobStatus.RUNNING;
+        job.setStatus(status);
+        job.setStartTime(new Date(startTime));
+        commitStatus();
+    }
+
+    void complete() {
+        finish(JobStatus.COMPLETE);
+    }
+
+    void fail(String message) {
+        this.message = message;
+        finish(JobStatus.FAILED);
+    }
+
+    private void finish(JobStatus finalStatus) {
+        endTime = System.currentTimeMillis();
+        status = finalStatus;
+        job.setStatus(finalStatus);
+        job.setEndTime(new Date(endTime));
+        job.setMessage(message);
+        if (finalStatus == JobStatus.COMPLETE) {
+            job.setResultFileName(resultFileName);
+        }
+        flushProgress(true);
+    }
+
+    /**
+     * Writes the progress to the job, and commits it if the job is run
+     * from the queue and the progress has not been committed recently.
+     */
+    private void flushProgress(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - lastFlush < progressFlushMillis) {
+            return;
+        }
+        lastFlush = now;
+        job.setProgress(progress);
+        job.setProgressTotal(progressTotal);
+        commitStatus();
+    }
+
+    private void commitStatus() {
+        if (statusSession == null) {
+            return;
+        }
+        // every column of the job is written, so the heartbeat must not go
+        // back to the one the job was loaded with.
+        job.setHeartbeat(new Date());
+        Transaction tx = statusSession.beginTransaction();
+        try {
+            TransactionHelper.commit(tx, statusSession);
+        } catch (HibernateException he) {
+            // the work is not stopped because its progress could not be saved.
+            log.error("Unable to save the progress of job " + jobId, he);
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        }
+    }
+}
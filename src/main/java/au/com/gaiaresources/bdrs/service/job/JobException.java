@@ -0,0 +1,19 @@
+package au.com.gaiaresources.bdrs.service.job;
+
+/**
+ * Thrown by a {@link JobHandler} when a job cannot be done, for example
+ * because the uploaded file is invalid. The message is shown to the owner
+ * of the job so it should describe what to correct.
+ */
+public class JobException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public JobException(String message) {
+        super(message);
+    }
+
+    public JobException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,30 @@
+package au.com.gaiaresources.bdrs.service.job;
+
+import au.com.gaiaresources.bdrs.model.job.JobType;
+
+/**
+ * Does the work of one {@link JobType}. Handlers are found by the
+ * {@link JobService} in the application context, there must be exactly one
+ * handler for each type of job that is submitted.
+ *
+ * A handler is run by the consumers of its queue, so it may be run by
+ * several threads at once and must not keep the state of a job in fields.
+ */
+public interface JobHandler {
+
+    /**
+     * @return the type of job run by this handler.
+     */
+    public JobType getType();
+
+    /**
+     * Does the work of a job. The portal and user of the job are set on the
+     * request context of the calling thread and the work session is its
+     * hibernate session.
+     * @param context the parameters of the job and the place to report progress.
+     * @throws JobException if the job cannot be done, the message of the
+     * exception is shown to the owner of the job.
+     * @throws Exception if the job fails unexpectedly.
+     */
+    public void run(JobContext context) throws Exception;
+}
@@ -0,0 +1,557 @@
+package au.com.gaiaresources.bdrs.service.job;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.activation.FileDataSource;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.TextMessage;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jms.connection.CachingConnectionFactory;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.listener.DefaultMessageListenerContainer;
+import org.springframework.scheduling.TaskScheduler;
+
+import au.com.gaiaresources.bdrs.db.FilterManager;
+import au.com.gaiaresources.bdrs.file.FileService;
+import au.com.gaiaresources.bdrs.model.job.Job;
+import au.com.gaiaresources.bdrs.model.job.JobDAO;
+import au.com.gaiaresources.bdrs.model.job.JobStatus;
+import au.com.gaiaresources.bdrs.model.job.JobType;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.security.UserDetails;
+import au.com.gaiaresources.bdrs.servlet.RequestContext;
+import au.com.gaiaresources.bdrs.servlet.RequestContextHolder;
+import au.com.gaiaresources.bdrs.util.TransactionHelper;
+
+/**
+ * Runs long running work, such as bulk uploads and downloads of records, in
+ * the background so that it does not tie up the request threads.
+ *
+ * A job is saved to the database when it is submitted and the id of the job
+ * is sent to the queue of its type on an embedded ActiveMQ broker, using the
+ * VM transport so that there is no external service to run. Each type of
+ * job has its own queue and a fixed number of consumers, so at most
+ * <code>consumerCounts</code> jobs of a type run at once and a backlog of
+ * one type does not hold up the others.
+ *
+ * The database rather than the broker is the record of the jobs, messages
+ * are not persisted by the broker. When the application starts the jobs
+ * that were still queued are queued again.
+ *
+ * A running job records the <code>nodeName</code> of the server running it,
+ * and the server updates the heartbeat of its running jobs every
+ * <code>heartbeatMillis</code>. A running job whose heartbeat is older than
+ * <code>staleMillis</code> has lost its server and is marked as failed, by
+ * whichever server notices first. The running jobs of a server that
+ * restarts with the same <code>nodeName</code> are failed when it starts.
+ */
+public class JobService {
+
+    /**
+     * The name of the queue of a type of job is this prefix followed by the type.
+     */
+    public static final String QUEUE_NAME_PREFIX = "bdrs.job.";
+
+    /**
+     * The message of a job whose server stopped while it was running.
+     */
+    public static final String MSG_INTERRUPTED = "The job was interrupted by a restart or failure of the server, please submit it again.";
+
+    private Logger log = Logger.getLogger(getClass());
+
+    @Autowired
+    private SessionFactory sessionFactory;
+    @Autowired
+    private JobDAO jobDAO;
+    @Autowired
+    private FileService fileService;
+    @Autowired
+    private List<JobHandler> handlerList;
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    // Each consumer takes one message at a time so that a queued job is
+    // run by the next free consumer rather than waiting behind a busy one.
+    private String brokerURL = "vm://bdrs-jobs?broker.persistent=false&broker.useJmx=false&jms.prefetchPolicy.queuePrefetch=1";
+    private Map<JobType, Integer> consumerCounts = new EnumMap<JobType, Integer>(JobType.class);
+    private int defaultConsumerCount = 1;
+    private long progressFlushMillis = 2000;
+    private String nodeName = ManagementFactory.getRuntimeMXBean().getName();
+    private long heartbeatMillis = 30000;
+    private long staleMillis = 150000;
+
+    private Map<JobType, JobHandler> handlers = new EnumMap<JobType, JobHandler>(JobType.class);
+    private CachingConnectionFactory connectionFactory;
+    private JmsTemplate jmsTemplate;
+    private Map<JobType, DefaultMessageListenerContainer> containers =
+        new EnumMap<JobType, DefaultMessageListenerContainer>(JobType.class);
+    private ScheduledFuture<?> heartbeatTask;
+
+    /**
+     * The jobs being run by the consumers of this server by id.
+     */
+    private Map<Integer, JobContext> running = new ConcurrentHashMap<Integer, JobContext>();
+
+    @PostConstruct
+    public void init() {
+        for (JobHandler handler : handlerList) {
+            if (handlers.put(handler.getType(), handler) != null) {
+                throw new IllegalStateException("There is more than one handler for " + handler.getType());
+            }
+        }
+
+        ActiveMQConnectionFactory amqFactory = new ActiveMQConnectionFactory(brokerURL);
+        // The sessions and producers used to send are cached, a new
+        // connection is not opened for every message.
+        connectionFactory = new CachingConnectionFactory(amqFactory);
+        jmsTemplate = new JmsTemplate(connectionFactory);
+
+        for (JobType type : JobType.values()) {
+            if (!handlers.containsKey(type)) {
+                log.warn("There is no handler for " + type + ", jobs of this type will not be run.");
+                continue;
+            }
+            int consumers = getConsumerCount(type);
+            DefaultMessageListenerContainer container = new DefaultMessageListenerContainer();
+            container.setConnectionFactory(amqFactory);
+            container.setDestinationName(QUEUE_NAME_PREFIX + type);
+            container.setConcurrentConsumers(consumers);
+            container.setMaxConcurrentConsumers(consumers);
+            // the consumer threads are named after the bean
+            container.setBeanName("bdrs-job-" + type.toString().toLowerCase());
+            container.setMessageListener(new JobMessageListener());
+            container.afterPropertiesSet();
+            container.start();
+            containers.put(type, container);
+            log.info(String.format("Started %d consumers of %s jobs", consumers, type));
+        }
+
+        recoverJobs();
+
+        heartbeatTask = taskScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                heartbeat();
+            }
+        }, heartbeatMillis);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+            heartbeatTask = null;
+        }
+        for (DefaultMessageListenerContainer container : containers.values()) {
+            container.shutdown();
+        }
+        containers.clear();
+        if (connectionFactory != null) {
+            connectionFactory.destroy();
+        }
+    }
+
+    /**
+     * Saves a job in the current session. The job is queued once the
+     * transaction of the session commits, so files may be added to the job
+     * with {@link #createInputFile(Job, String)} until then.
+     * @param type the kind of work.
+     * @param owner the user the work is done for.
+     * @param parameters what was asked for, the values must be strings,
+     * numbers or booleans.
+     * @return the saved job.
+     */
+    public Job submit(JobType type, User owner, Map<String, Object> parameters) {
+        final Job job = jobDAO.save(new Job(type, owner, parameters));
+        Session sesh = sessionFactory.getCurrentSession();
+        if (sesh.getTransaction().isActive()) {
+            sesh.getTransaction().registerSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) {
+                        queue(job.getType(), job.getId());
+                    }
+                }
+            });
+        } else {
+            queue(type, job.getId());
+        }
+        return job;
+    }
+
+    /**
+     * Creates a file that is read by the job, such as an uploaded spreadsheet.
+     * @param job a job that has not been queued yet.
+     * @param name the name of the file, see {@link JobContext#getInputFile(String)}.
+     * @return the file to write.
+     */
+    public File createInputFile(Job job, String name) throws IOException {
+        return fileService.createTargetFile(Job.class, job.getId(), name);
+    }
+
+    /**
+     * @param job a job.
+     * @return the file written by the job, or null if the job has not
+     * completed or did not write a file.
+     */
+    public FileDataSource getResultFile(Job job) {
+        if (job.getStatus() != JobStatus.COMPLETE || job.getResultFileName() == null) {
+            return null;
+        }
+        return fileService.getFile(Job.class, job.getId(), job.getResultFileName());
+    }
+
+    /**
+     * @param job a job.
+     * @return the state and progress of the job as a map for JSON
+     * serialization. The progress of a job run by this server is the
+     * progress so far rather than the progress last saved.
+     */
+    public Map<String, Object> getStatus(Job job) {
+        JobContext context = running.get(job.getId());
+        if (context != null) {
+            return context.flatten();
+        }
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("id", job.getId());
+        map.put("type", job.getType().toString());
+        map.put("status", job.getStatus().toString());
+        map.put("progress", job.getProgress());
+        map.put("total", job.getProgressTotal());
+        map.put("message", job.getMessage());
+        long elapsed = 0;
+        if (job.getStartTime() != null) {
+            Date end = job.getEndTime() != null ? job.getEndTime() : new Date();
+            elapsed = end.getTime() - job.getStartTime().getTime();
+        }
+        map.put("elapsed", elapsed);
+        return map;
+    }
+
+    /**
+     * Runs a job on the calling thread in the given session, without
+     * committing. The status, progress and result of the job are set on the
+     * job.
+     * @param sesh the session to do the work in, the job must belong to it.
+     * @param job the job to run.
+     */
+    public void execute(Session sesh, Job job) {
+        JobContext context = new JobContext(job, sesh, null, fileService, progressFlushMillis);
+        if (runHandler(context)) {
+            context.complete();
+        }
+    }
+
+    /**
+     * Runs a job that has been taken from its queue. The job is claimed and
+     * loaded in a session of its own, where its status and progress are
+     * committed, and the work is done in the current session of the
+     * consumer thread. The job is marked as complete once the work has been
+     * committed.
+     * @param jobId the id of the job.
+     */
+    void run(Integer jobId) {
+        Session statusSession = sessionFactory.openSession();
+        try {
+            // The same job may be in the queues of several servers, each
+            // server queues the queued jobs again when it starts. Only the
+            // server that claims the job runs it.
+            Transaction tx = statusSession.beginTransaction();
+            boolean claimed = jobDAO.claimJob(statusSession, jobId, nodeName, new Date());
+            Job job = jobDAO.getJob(statusSession, jobId);
+            TransactionHelper.commit(tx, statusSession);
+            if (job == null) {
+                log.warn("Job " + jobId + " no longer exists");
+                return;
+            }
+            if (!claimed) {
+                log.warn(String.format("Job %d is %s, not running it again", jobId, job.getStatus()));
+                return;
+            }
+
+            Session sesh = sessionFactory.getCurrentSession();
+            Transaction workTx = sesh.beginTransaction();
+            try {
+                JobContext context = new JobContext(job, sesh, statusSession, fileService, progressFlushMillis);
+                running.put(jobId, context);
+
+                RequestContext requestContext = new RequestContext();
+                requestContext.setPortal(context.getPortal());
+                requestContext.setUserDetails(new UserDetails(context.getOwner()));
+                requestContext.setHibernate(sesh);
+                RequestContextHolder.set(requestContext);
+                FilterManager.enablePortalFilter(sesh, context.getPortal());
+
+                if (runHandler(context)) {
+                    try {
+                        if (workTx.isActive()) {
+                            TransactionHelper.commit(workTx, sesh);
+                        }
+                        context.complete();
+                    } catch (HibernateException he) {
+                        log.error("Unable to commit job " + jobId, he);
+                        context.fail("The results of the job could not be saved.");
+                    }
+                }
+            } finally {
+                running.remove(jobId);
+                RequestContextHolder.clear();
+                if (workTx.isActive()) {
+                    workTx.rollback();
+                }
+                if (sesh.isOpen()) {
+                    sesh.close();
+                }
+            }
+        } catch (HibernateException he) {
+            log.error("Unable to run job " + jobId, he);
+        } finally {
+            statusSession.close();
+        }
+    }
+
+    /**
+     * Does the work of a job, the job is marked as running first and as
+     * failed if the work cannot be done.
+     * @return true if the work was done.
+     */
+    private boolean runHandler(JobContext context) {
+        JobHandler handler = handlers.get(context.getType());
+        if (handler == null) {
+            context.fail("Jobs of this type cannot be run.");
+            return false;
+        }
+        context.start();
+        try {
+            handler.run(context);
+            log.info(String.format("Ran %s job %d in %d ms", context.getType(),
+                    context.getJobId(), context.getElapsedMillis()));
+            return true;
+        } catch (JobException je) {
+            log.warn(String.format("%s job %d failed: %s", context.getType(), context.getJobId(), je.getMessage()), je);
+            context.fail(je.getMessage());
+        } catch (Exception e) {
+            log.error(String.format("%s job %d failed", context.getType(), context.getJobId()), e);
+            context.fail(getUnexpectedErrorMessage(e));
+        }
+        return false;
+    }
+
+    private static String getUnexpectedErrorMessage(Exception e) {
+        String msg = e.getMessage() == null ? e.toString() : e.getMessage();
+        return "An unexpected error has occurred. The internal error was: " + msg;
+    }
+
+    /**
+     * Marks a job that could not be run as failed, unless it has already
+     * finished.
+     * @param jobId the id of the job.
+     * @param message why the job failed.
+     */
+    private void failJob(Integer jobId, String message) {
+        Session sesh = sessionFactory.openSession();
+        Transaction tx = sesh.beginTransaction();
+        try {
+            Job job = jobDAO.getJob(sesh, jobId);
+            if (job != null && (job.getStatus() == JobStatus.QUEUED || job.getStatus() == JobStatus.RUNNING)) {
+                job.setStatus(JobStatus.FAILED);
+                job.setEndTime(new Date());
+                job.setMessage(message);
+            }
+            TransactionHelper.commit(tx, sesh);
+        } catch (HibernateException he) {
+            log.error("Unable to mark job " + jobId + " as failed", he);
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        } finally {
+            sesh.close();
+        }
+    }
+
+    /**
+     * Updates the heartbeat of the jobs run by this server and fails the
+     * running jobs whose server has stopped.
+     */
+    private void heartbeat() {
+        Session sesh = sessionFactory.openSession();
+        Transaction tx = sesh.beginTransaction();
+        try {
+            Date now = new Date();
+            jobDAO.updateHeartbeat(sesh, running.keySet(), now);
+            int failed = jobDAO.failStaleJobs(sesh, new Date(now.getTime() - staleMillis), null, MSG_INTERRUPTED);
+            TransactionHelper.commit(tx, sesh);
+            if (failed > 0) {
+                log.warn(String.format("Failed %d jobs whose server stopped while they were running", failed));
+            }
+        } catch (HibernateException he) {
+            log.error("Unable to update the heartbeat of the running jobs", he);
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        } finally {
+            sesh.close();
+        }
+    }
+
+    /**
+     * Sends the id of a job to the queue of its type.
+     */
+    private void queue(JobType type, Integer jobId) {
+        jmsTemplate.convertAndSend(QUEUE_NAME_PREFIX + type, jobId.toString());
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Queued %s job %d", type, jobId));
+        }
+    }
+
+    /**
+     * Queues the jobs that were queued when the application stopped, and
+     * fails the running jobs of this server and the running jobs of any
+     * server that is no longer updating their heartbeat. The running jobs
+     * of the other servers are left to finish.
+     */
+    private void recoverJobs() {
+        Session sesh = sessionFactory.openSession();
+        Transaction tx = sesh.beginTransaction();
+        try {
+            Date staleBefore = new Date(System.currentTimeMillis() - staleMillis);
+            int failed = jobDAO.failStaleJobs(sesh, staleBefore, nodeName, MSG_INTERRUPTED);
+            List<Job> queued = jobDAO.getJobs(sesh, JobStatus.QUEUED);
+            TransactionHelper.commit(tx, sesh);
+
+            if (failed > 0) {
+                log.warn(String.format("Failed %d jobs that were interrupted while running", failed));
+            }
+
+            for (Job job : queued) {
+                queue(job.getType(), job.getId());
+            }
+            if (!queued.isEmpty()) {
+                log.info(String.format("Queued %d jobs again", queued.size()));
+            }
+        } catch (HibernateException he) {
+            log.error("Unable to recover the jobs queued before the restart", he);
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        } finally {
+            sesh.close();
+        }
+    }
+
+    private int getConsumerCount(JobType type) {
+        Integer count = consumerCounts.get(type);
+        return Math.max(1, count == null ? defaultConsumerCount : count);
+    }
+
+    /**
+     * @param brokerURL the URL of the broker, by default an embedded broker
+     * that does not persist messages.
+     */
+    public void setBrokerURL(String brokerURL) {
+        this.brokerURL = brokerURL;
+    }
+
+    /**
+     * @param consumerCounts the number of jobs of each type that may run at once.
+     */
+    public void setConsumerCounts(Map<JobType, Integer> consumerCounts) {
+        this.consumerCounts.clear();
+        this.consumerCounts.putAll(consumerCounts);
+    }
+
+    /**
+     * @param defaultConsumerCount the number of jobs of a type that may run
+     * at once if the type is not in the <code>consumerCounts</code>.
+     */
+    public void setDefaultConsumerCount(int defaultConsumerCount) {
+        this.defaultConsumerCount = defaultConsumerCount;
+    }
+
+    /**
+     * @param progressFlushMillis the minimum time between saves of the
+     * progress of a job.
+     */
+    public void setProgressFlushMillis(long progressFlushMillis) {
+        this.progressFlushMillis = progressFlushMillis;
+    }
+
+    /**
+     * @param nodeName the name recorded on the jobs run by this server, by
+     * default the name of the JVM. It must be unique among the servers
+     * sharing the database.
+     */
+    public void setNodeName(String nodeName) {
+        this.nodeName = nodeName;
+    }
+
+    /**
+     * @param heartbeatMillis the time between updates of the heartbeat of
+     * the jobs run by this server.
+     */
+    public void setHeartbeatMillis(long heartbeatMillis) {
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * @param staleMillis the age of the heartbeat of a running job after
+     * which its server is assumed to have stopped, it must be several times
+     * the <code>heartbeatMillis</code>.
+     */
+    public void setStaleMillis(long staleMillis) {
+        this.staleMillis = staleMillis;
+    }
+
+    /**
+     * Takes the id of a job from a queue and runs the job.
+     */
+    private class JobMessageListener implements MessageListener {
+        @Override
+        public void onMessage(Message message) {
+            Integer jobId;
+            try {
+                jobId = Integer.valueOf(((TextMessage) message).getText());
+            } catch (JMSException jmse) {
+                log.error("Unable to read a job from the queue", jmse);
+                return;
+            } catch (RuntimeException re) {
+                log.error("Unable to read a job from the queue", re);
+                return;
+            }
+            try {
+                run(jobId);
+            } catch (RuntimeException re) {
+                // The message is not redelivered, so the job is failed
+                // rather than left queued or running.
+                log.error("Unable to run job " + jobId, re);
+                failJob(jobId, getUnexpectedErrorMessage(re));
+            }
+        }
+    }
+}
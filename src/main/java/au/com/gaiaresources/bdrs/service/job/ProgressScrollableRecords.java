@@ -0,0 +1,48 @@
+package au.com.gaiaresources.bdrs.service.job;
+
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
+
+/**
+ * Advances the progress of a job as the records of a download are read, so
+ * that the progress of a writer that does not report its progress can be
+ * followed.
+ */
+class ProgressScrollableRecords implements ScrollableRecords {
+
+    private ScrollableRecords records;
+    private JobContext context;
+    private int count = 0;
+
+    /**
+     * @param records the records being written.
+     * @param context the job writing the records.
+     */
+    public ProgressScrollableRecords(ScrollableRecords records, JobContext context) {
+        this.records = records;
+        this.context = context;
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+        return records.hasMoreElements();
+    }
+
+    @Override
+    public Record nextElement() {
+        Record rec = records.nextElement();
+        context.setProgress(++count);
+        return rec;
+    }
+
+    @Override
+    public void rewind() {
+        records.rewind();
+        count = 0;
+    }
+
+    @Override
+    public String getContinuationToken() {
+        return records.getContinuationToken();
+    }
+}
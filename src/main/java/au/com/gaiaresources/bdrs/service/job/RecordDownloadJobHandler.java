@@ -0,0 +1,94 @@
+package au.com.gaiaresources.bdrs.service.job;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Date;
+
+import org.hibernate.FlushMode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import au.com.gaiaresources.bdrs.json.JSONObject;
+import au.com.gaiaresources.bdrs.model.job.JobType;
+import au.com.gaiaresources.bdrs.model.record.RecordDAO;
+import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
+import au.com.gaiaresources.bdrs.service.bulkdata.BulkDataService;
+
+/**
+ * Writes the records of a survey to a spreadsheet, as
+ * <code>/webservice/record/downloadRecords.htm</code> does, for the owner of
+ * the job. The spreadsheet is the result file of the job and the progress
+ * of the job is the number of records written.
+ */
+@Component
+public class RecordDownloadJobHandler implements JobHandler {
+
+    public static final String PARAM_SURVEY_ID = "surveyId";
+    public static final String PARAM_GROUP_ID = "groupId";
+    public static final String PARAM_TAXON_GROUP_ID = "taxonGroupId";
+    public static final String PARAM_SPECIES = "species";
+    /**
+     * The start of the date range in milliseconds since the epoch.
+     */
+    public static final String PARAM_START_DATE = "startDate";
+    /**
+     * The end of the date range in milliseconds since the epoch.
+     */
+    public static final String PARAM_END_DATE = "endDate";
+    public static final String PARAM_LIMIT = "limit";
+    /**
+     * Either "xls" or "xlsx".
+     */
+    public static final String PARAM_FORMAT = "format";
+
+    public static final String FORMAT_XLSX = "xlsx";
+    public static final String FORMAT_XLS = "xls";
+
+    @Autowired
+    private BulkDataService bulkDataService;
+    @Autowired
+    private RecordDAO recordDAO;
+    @Autowired
+    private SurveyDAO surveyDAO;
+
+    @Override
+    public JobType getType() {
+        return JobType.RECORD_DOWNLOAD;
+    }
+
+    @Override
+    public void run(JobContext context) throws Exception {
+        JSONObject params = context.getParameters();
+        Survey survey = surveyDAO.getSurvey(context.getSession(), params.getInt(PARAM_SURVEY_ID));
+        if (survey == null) {
+            throw new JobException("The survey of the download no longer exists.");
+        }
+
+        // only reads are performed, see RecordService.downloadRecords
+        context.getSession().setFlushMode(FlushMode.MANUAL);
+
+        ScrollableRecords sc = recordDAO.getScrollableRecords(context.getOwner(),
+                params.optInt(PARAM_GROUP_ID, 0), survey.getId(), params.optInt(PARAM_TAXON_GROUP_ID, 0),
+                new Date(params.getLong(PARAM_START_DATE)), new Date(params.getLong(PARAM_END_DATE)),
+                params.optString(PARAM_SPECIES, ""));
+        long limit = params.optLong(PARAM_LIMIT, Long.MAX_VALUE);
+
+        boolean xlsx = FORMAT_XLSX.equalsIgnoreCase(params.optString(PARAM_FORMAT, FORMAT_XLS));
+        String fileName = "records_" + System.currentTimeMillis() + (xlsx ? ".xlsx" : ".xls");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(context.createResultFile(fileName)));
+        try {
+            ScrollableRecords records = new ProgressScrollableRecords(sc, context);
+            if (xlsx) {
+                bulkDataService.exportSurveyRecordsXlsx(context.getSession(), survey, records, limit, out);
+            } else {
+                bulkDataService.exportSurveyRecords(context.getSession(), survey, records, limit, out);
+            }
+        } finally {
+            out.close();
+        }
+        context.setMessage(String.format("Wrote %d records.", context.getProgress()));
+    }
+}
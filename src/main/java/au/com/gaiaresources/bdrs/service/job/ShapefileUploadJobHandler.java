@@ -0,0 +1,98 @@
+package au.com.gaiaresources.bdrs.service.job;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import au.com.gaiaresources.bdrs.attribute.AttributeDictionaryFactory;
+import au.com.gaiaresources.bdrs.deserialization.record.AttributeParser;
+import au.com.gaiaresources.bdrs.deserialization.record.RecordDeserializer;
+import au.com.gaiaresources.bdrs.deserialization.record.RecordDeserializerResult;
+import au.com.gaiaresources.bdrs.deserialization.record.RecordEntry;
+import au.com.gaiaresources.bdrs.deserialization.record.RecordKeyLookup;
+import au.com.gaiaresources.bdrs.model.job.JobType;
+import au.com.gaiaresources.bdrs.model.taxa.TaxaDAO;
+import au.com.gaiaresources.bdrs.spatial.ShapeFileReader;
+import au.com.gaiaresources.bdrs.spatial.ShapefileAttributeDictionaryFactory;
+import au.com.gaiaresources.bdrs.spatial.ShapefileAttributeParser;
+import au.com.gaiaresources.bdrs.spatial.ShapefileRecordKeyLookup;
+import au.com.gaiaresources.bdrs.spatial.ShapefileToRecordEntryTransformer;
+
+/**
+ * Saves the records of an uploaded shapefile. Either all of the records are
+ * saved or, if any feature has an error, none of them are.
+ */
+@Component
+public class ShapefileUploadJobHandler implements JobHandler {
+
+    /**
+     * The name of the input file of the job holding the zipped shapefile.
+     */
+    public static final String PARAM_FILE_NAME = "fileName";
+
+    public static final String MSG_BAD_ZIP = "There was an error attempting to read the ZIP file. Please make sure the filled out template file package is properly compressed in ZIP format.";
+    public static final String MSG_UNSUPPORTED_CRS = "The shapefile is not in WGS84 (lat/lon) projection. Please reproject your shapefile to lat/lon to upload your records.";
+    public static final String MSG_EMPTY = "The shapefile has no features to load.";
+
+    /**
+     * The number of features in error described in the message of a job.
+     */
+    private static final int MAX_REPORTED_ERRORS = 10;
+
+    @Autowired
+    private TaxaDAO taxaDAO;
+
+    @Override
+    public JobType getType() {
+        return JobType.SHAPEFILE_UPLOAD;
+    }
+
+    @Override
+    public void run(JobContext context) throws Exception {
+        ShapeFileReader reader;
+        try {
+            reader = new ShapeFileReader(context.getInputFile(context.getParameters().getString(PARAM_FILE_NAME)));
+        } catch (IOException ioe) {
+            throw new JobException(MSG_BAD_ZIP, ioe);
+        }
+        if (reader.isEmpty()) {
+            throw new JobException(MSG_EMPTY);
+        } else if (!reader.isCrsSupported()) {
+            throw new JobException(MSG_UNSUPPORTED_CRS);
+        }
+
+        RecordKeyLookup klu = new ShapefileRecordKeyLookup();
+        ShapefileToRecordEntryTransformer transformer = new ShapefileToRecordEntryTransformer(klu);
+        List<RecordEntry> entries = transformer.shapefileFeatureToRecordEntries(reader.getFeatureIterator(),
+                reader.getSurveyIdList(), reader.getCensusMethodIdList());
+        context.setProgressTotal(entries.size());
+
+        AttributeDictionaryFactory adf = new ShapefileAttributeDictionaryFactory();
+        AttributeParser parser = new ShapefileAttributeParser(taxaDAO);
+        RecordDeserializer rds = new RecordDeserializer(klu, adf, parser);
+        List<RecordDeserializerResult> dsResult = rds.deserialize(context.getOwner(), entries);
+
+        int errorCount = 0;
+        StringBuilder errors = new StringBuilder();
+        for (RecordDeserializerResult rdr : dsResult) {
+            if (!rdr.getErrorMap().isEmpty()) {
+                if (errorCount++ < MAX_REPORTED_ERRORS) {
+                    for (Map.Entry<String, String> error : rdr.getErrorMap().entrySet()) {
+                        errors.append(" ").append(error.getKey()).append(": ").append(error.getValue());
+                    }
+                }
+            }
+        }
+        if (errorCount > 0) {
+            // the records that were saved are rolled back with the work session.
+            throw new JobException(String.format("No records were saved because %d of the %d features have errors.%s",
+                    errorCount, dsResult.size(), errors));
+        }
+
+        context.setProgress(dsResult.size());
+        context.setMessage(String.format("Saved %d records.", dsResult.size()));
+    }
+}
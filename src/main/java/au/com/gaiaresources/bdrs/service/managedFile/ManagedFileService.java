@@ -55,6 +55,7 @@ public class ManagedFileService {
             File f = fileService.getFile(mf, mf.getFilename()).getFile();
             mf.setContentType(FileUtils.getContentType(f));
             mf = managedFileDAO.saveOrUpdate(mf);
+            fileService.generateThumbnails(mf, mf.getFilename());
         }
         return mf;
     }
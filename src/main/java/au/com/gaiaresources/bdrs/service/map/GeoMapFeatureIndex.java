@@ -0,0 +1,345 @@
+package au.com.gaiaresources.bdrs.service.map;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import au.com.gaiaresources.bdrs.model.map.GeoMapFeature;
+import au.com.gaiaresources.bdrs.model.map.GeoMapFeatureDAO;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * An in memory spatial index of the {@link GeoMapFeature}s of each map layer,
+ * so that clicks on a map can be answered without a spatial query. Features
+ * are imported from shapefiles and rarely change once a layer is loaded.
+ *
+ * The index of a layer is built the first time the layer is queried and is
+ * held by a soft reference, so the indexes of layers that are not in use are
+ * discarded when memory is low and built again when they are next queried.
+ * The index of a layer is discarded when one of its features is saved,
+ * modified or deleted, and again once the transaction that changed it
+ * completes so that an index built from the previous state of the layer by
+ * another transaction is not kept.
+ *
+ * Indexes are kept separately for each portal, since the features are
+ * loaded with the portal filter of the session that built the index.
+ */
+@Service
+public class GeoMapFeatureIndex {
+
+    private Logger log = Logger.getLogger(getClass());
+
+    @Autowired
+    private GeoMapFeatureDAO featureDAO;
+
+    private Map<Key, SoftReference<LayerIndex>> indexes = new ConcurrentHashMap<Key, SoftReference<LayerIndex>>();
+    // incremented each time a layer changes so that an index built while the
+    // layer was changing is not kept.
+    private Map<Integer, AtomicLong> generations = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong invalidations = new AtomicLong();
+    private AtomicLong buildNanos = new AtomicLong();
+    private AtomicLong queries = new AtomicLong();
+    private AtomicLong queryNanos = new AtomicLong();
+    private AtomicLong maxQueryNanos = new AtomicLong();
+
+    private ThreadLocal<PendingChanges> pending = new ThreadLocal<PendingChanges>();
+
+    /**
+     * Finds the features of the layers that intersect a geometry.
+     * @param portalId the id of the portal of the session, may be null.
+     * @param mapLayerIds the ids of the layers.
+     * @param intersectGeom the geometry to intersect with, in the coordinate
+     * reference system of the features.
+     * @param maxResults the maximum number of ids to return.
+     * @return the ids of the intersecting features in ascending order.
+     */
+    public List<Integer> find(Integer portalId, Integer[] mapLayerIds, Geometry intersectGeom, int maxResults) {
+        long start = System.nanoTime();
+        List<Integer> result = new ArrayList<Integer>();
+        for (Integer layerId : mapLayerIds) {
+            if (layerId != null) {
+                getIndex(portalId, layerId).query(intersectGeom, result);
+            }
+        }
+        Collections.sort(result);
+        if (result.size() > maxResults) {
+            result = new ArrayList<Integer>(result.subList(0, maxResults));
+        }
+
+        long elapsed = System.nanoTime() - start;
+        queries.incrementAndGet();
+        queryNanos.addAndGet(elapsed);
+        long max = maxQueryNanos.get();
+        while (elapsed > max && !maxQueryNanos.compareAndSet(max, elapsed)) {
+            max = maxQueryNanos.get();
+        }
+        return result;
+    }
+
+    /**
+     * Discards the indexes of a layer.
+     * @param layerId the id of the layer.
+     */
+    public void invalidate(Integer layerId) {
+        if (layerId == null) {
+            return;
+        }
+        getGeneration(layerId).incrementAndGet();
+        for (Iterator<Key> iter = indexes.keySet().iterator(); iter.hasNext();) {
+            if (iter.next().layerId.equals(layerId)) {
+                iter.remove();
+            }
+        }
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Discards the indexes of all layers.
+     */
+    public void clear() {
+        for (AtomicLong generation : generations.values()) {
+            generation.incrementAndGet();
+        }
+        indexes.clear();
+    }
+
+    /**
+     * Notifies the index that the features of a layer have been changed by
+     * the current transaction.
+     * @param layerId the id of the changed layer.
+     */
+    public void layerChanged(Integer layerId) {
+        if (layerId == null) {
+            return;
+        }
+        invalidate(layerId);
+        getPendingChanges().layerIds.add(layerId);
+    }
+
+    /**
+     * Notifies the index that a transaction has begun on the current thread.
+     */
+    public void transactionBegun() {
+        getPendingChanges().depth++;
+    }
+
+    /**
+     * Notifies the index that a transaction has completed on the current
+     * thread, committed or not. The layers changed since the outermost
+     * transaction began are invalidated.
+     */
+    public void transactionCompleted() {
+        PendingChanges changes = pending.get();
+        if (changes == null) {
+            return;
+        }
+        for (Integer layerId : changes.layerIds) {
+            invalidate(layerId);
+        }
+        changes.depth = Math.max(0, changes.depth - 1);
+        if (changes.depth == 0) {
+            pending.remove();
+        }
+    }
+
+    private LayerIndex getIndex(Integer portalId, Integer layerId) {
+        Key key = new Key(portalId, layerId);
+        SoftReference<LayerIndex> ref = indexes.get(key);
+        LayerIndex index = ref != null ? ref.get() : null;
+        if (index != null) {
+            hits.incrementAndGet();
+            return index;
+        }
+        misses.incrementAndGet();
+
+        long generation = getGeneration(layerId).get();
+        long start = System.nanoTime();
+        index = new LayerIndex(featureDAO.getGeometries(layerId));
+        long elapsed = System.nanoTime() - start;
+        buildNanos.addAndGet(elapsed);
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Indexed %d features of layer %d in %d ms", index.size(), layerId, elapsed / 1000000));
+        }
+
+        // the changes of the current transaction are not visible to other
+        // transactions, nor is an index built while the layer was changing
+        PendingChanges changes = pending.get();
+        boolean changedByTransaction = changes != null && changes.layerIds.contains(layerId);
+        if (!changedByTransaction && getGeneration(layerId).get() == generation) {
+            indexes.put(key, new SoftReference<LayerIndex>(index));
+        }
+        return index;
+    }
+
+    private PendingChanges getPendingChanges() {
+        PendingChanges changes = pending.get();
+        if (changes == null) {
+            changes = new PendingChanges();
+            pending.set(changes);
+        }
+        return changes;
+    }
+
+    private AtomicLong getGeneration(Integer layerId) {
+        AtomicLong generation = generations.get(layerId);
+        if (generation == null) {
+            synchronized (generations) {
+                generation = generations.get(layerId);
+                if (generation == null) {
+                    generation = new AtomicLong();
+                    generations.put(layerId, generation);
+                }
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * @return the number of layer indexes held, including those that have been
+     * discarded by the garbage collector but not yet removed.
+     */
+    public int size() {
+        return indexes.size();
+    }
+
+    /**
+     * @return the number of queries answered with an existing index.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of layer indexes that have been built.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of times the indexes of a layer have been discarded
+     * because the layer changed.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return the total time spent building layer indexes in milliseconds.
+     */
+    public long getBuildMillis() {
+        return buildNanos.get() / 1000000;
+    }
+
+    /**
+     * @return the number of queries.
+     */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    /**
+     * @return the mean time taken to answer a query in microseconds,
+     * including the time taken to build missing indexes.
+     */
+    public long getMeanQueryMicros() {
+        long count = queries.get();
+        return count == 0 ? 0 : queryNanos.get() / count / 1000;
+    }
+
+    /**
+     * @return the longest time taken to answer a query in microseconds.
+     */
+    public long getMaxQueryMicros() {
+        return maxQueryNanos.get() / 1000;
+    }
+
+    /**
+     * The STRtree of the features of a layer. Once built the tree is only
+     * read, so it may be queried concurrently.
+     */
+    private static class LayerIndex {
+        private STRtree tree = new STRtree();
+        private int size = 0;
+
+        public LayerIndex(Map<Integer, Geometry> geometries) {
+            for (Map.Entry<Integer, Geometry> entry : geometries.entrySet()) {
+                Geometry geom = entry.getValue();
+                if (geom != null && !geom.isEmpty()) {
+                    tree.insert(geom.getEnvelopeInternal(), new Feature(entry.getKey(), geom));
+                    size++;
+                }
+            }
+            tree.build();
+        }
+
+        @SuppressWarnings("unchecked")
+        public void query(Geometry intersectGeom, List<Integer> result) {
+            for (Feature f : (List<Feature>) tree.query(intersectGeom.getEnvelopeInternal())) {
+                if (f.geometry.intersects(intersectGeom)) {
+                    result.add(f.id);
+                }
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    private static class Feature {
+        private Integer id;
+        private Geometry geometry;
+
+        public Feature(Integer id, Geometry geometry) {
+            this.id = id;
+            this.geometry = geometry;
+        }
+    }
+
+    private static class PendingChanges {
+        private int depth = 0;
+        private Set<Integer> layerIds = new HashSet<Integer>();
+    }
+
+    private static class Key {
+        private Integer portalId;
+        private Integer layerId;
+
+        public Key(Integer portalId, Integer layerId) {
+            this.portalId = portalId;
+            this.layerId = layerId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (portalId == null ? 0 : portalId.hashCode()) + layerId.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return layerId.equals(other.layerId) &&
+                    (portalId == null ? other.portalId == null : portalId.equals(other.portalId));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package au.com.gaiaresources.bdrs.service.map;
+
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Service;
+
+/**
+ * A version number for the records of each survey, incremented each time a
+ * record of the survey is saved, modified or deleted. Responses built from
+ * the records of a survey, such as the tiles of a survey map layer, can be
+ * given an entity tag from the version before the records are queried.
+ *
+ * The version is incremented when the record changes and again once the
+ * transaction that changed it completes, so that a response built from the
+ * previous state of the records by another transaction does not get the
+ * new version. Changes made by bulk HQL statements are not seen.
+ *
+ * The versions are kept in memory and start again from zero when the
+ * server restarts, so every version is qualified by an epoch that is chosen
+ * at random when the server starts. Only the changes made by this server
+ * are seen, a response that may be served by several servers must also be
+ * tagged with something stored with the records, such as
+ * {@link au.com.gaiaresources.bdrs.model.record.RecordDAO#getSurveyRecordState(Integer)}.
+ */
+@Service
+public class SurveyRecordVersions {
+
+    private final String epoch = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+
+    private Map<Integer, AtomicLong> versions = new ConcurrentHashMap<Integer, AtomicLong>();
+    // incremented when a change may affect the records of every survey,
+    // such as a renamed taxon.
+    private AtomicLong globalVersion = new AtomicLong();
+
+    private ThreadLocal<PendingChanges> pending = new ThreadLocal<PendingChanges>();
+
+    /**
+     * @param surveyId the id of the survey.
+     * @return an opaque version of the records of the survey, that changes
+     * whenever a record of the survey changes.
+     */
+    public String getVersion(Integer surveyId) {
+        return epoch + "-" + globalVersion.get() + "-" + surveyId + "-" + getCounter(surveyId).get();
+    }
+
+    /**
+     * Notifies the versions that a record of a survey has been changed by
+     * the current transaction.
+     * @param surveyId the id of the survey of the record, may be null.
+     */
+    public void surveyChanged(Integer surveyId) {
+        if (surveyId == null) {
+            return;
+        }
+        getCounter(surveyId).incrementAndGet();
+        getPendingChanges().surveyIds.add(surveyId);
+    }
+
+    /**
+     * Notifies the versions that the current transaction has made a change
+     * that may affect the records of every survey.
+     */
+    public void allChanged() {
+        globalVersion.incrementAndGet();
+        getPendingChanges().all = true;
+    }
+
+    /**
+     * Notifies the versions that a transaction has begun on the current thread.
+     */
+    public void transactionBegun() {
+        getPendingChanges().depth++;
+    }
+
+    /**
+     * Notifies the versions that a transaction has completed on the current
+     * thread, committed or not. The surveys changed since the outermost
+     * transaction began get a new version.
+     */
+    public void transactionCompleted() {
+        PendingChanges changes = pending.get();
+        if (changes == null) {
+            return;
+        }
+        for (Integer surveyId : changes.surveyIds) {
+            getCounter(surveyId).incrementAndGet();
+        }
+        if (changes.all) {
+            globalVersion.incrementAndGet();
+        }
+        changes.depth = Math.max(0, changes.depth - 1);
+        if (changes.depth == 0) {
+            pending.remove();
+        }
+    }
+
+    private AtomicLong getCounter(Integer surveyId) {
+        AtomicLong counter = versions.get(surveyId);
+        if (counter == null) {
+            synchronized (versions) {
+                counter = versions.get(surveyId);
+                if (counter == null) {
+                    counter = new AtomicLong();
+                    versions.put(surveyId, counter);
+                }
+            }
+        }
+        return counter;
+    }
+
+    private PendingChanges getPendingChanges() {
+        PendingChanges changes = pending.get();
+        if (changes == null) {
+            changes = new PendingChanges();
+            pending.set(changes);
+        }
+        return changes;
+    }
+
+    private static class PendingChanges {
+        private int depth = 0;
+        private boolean all = false;
+        private Set<Integer> surveyIds = new HashSet<Integer>();
+    }
+}
@@ -0,0 +1,352 @@
+package au.com.gaiaresources.bdrs.service.menu;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import au.com.gaiaresources.bdrs.model.menu.MenuItem;
+import au.com.gaiaresources.bdrs.model.portal.Portal;
+import au.com.gaiaresources.bdrs.model.theme.Theme;
+import au.com.gaiaresources.bdrs.model.theme.ThemeDAO;
+import au.com.gaiaresources.bdrs.model.user.User;
+
+/**
+ * Keeps the menu of each user of each portal, and the active theme of each
+ * portal, so that they are not queried again for every page request.
+ *
+ * The menus are kept by portal and user, the anonymous users of a portal
+ * share a menu. The menus and active theme of a portal are discarded when a
+ * survey, census method, map, theme or group of the portal is saved, modified
+ * or deleted, or when the members of a survey or group change. The menus of
+ * a user are discarded when the user is modified, as the roles of the user
+ * determine the menu. As with the other caches of the interceptor, they are
+ * discarded again once the transaction that made the change completes so that
+ * a menu built from the previous state by another transaction is not kept.
+ *
+ * The static menus are read once from the menu configuration, call
+ * {@link #invalidateAll()} if it is ever reloaded.
+ */
+@Service
+public class MenuCache {
+
+    // the id of the theme of a portal without an active theme
+    private static final Integer NO_THEME = Integer.valueOf(-1);
+    // the key of the portal of requests without a portal
+    private static final Integer NO_PORTAL = Integer.valueOf(-1);
+
+    @Autowired
+    private MenuService menuService;
+    @Autowired
+    private ThemeDAO themeDAO;
+
+    private ConcurrentMap<Key, CachedMenu> menus = new ConcurrentHashMap<Key, CachedMenu>();
+    private ConcurrentMap<Integer, Integer> themeIds = new ConcurrentHashMap<Integer, Integer>();
+    // incremented each time a menu or theme may have changed so that one
+    // built while it was changing is not kept.
+    private AtomicLong generation = new AtomicLong();
+
+    private AtomicLong requests = new AtomicLong();
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong savedQueries = new AtomicLong();
+    private AtomicLong invalidations = new AtomicLong();
+
+    private ThreadLocal<PendingChanges> pending = new ThreadLocal<PendingChanges>();
+
+    /**
+     * Gets the menu of a user, creating it if there is none.
+     * @param portal the portal of the request, may be null.
+     * @param user the user, null for an anonymous user.
+     * @return the menu, which must not be modified as it is shared by the
+     * requests of the user.
+     */
+    public List<MenuItem> getMenu(Portal portal, User user) {
+        requests.incrementAndGet();
+        Key key = new Key(getPortalId(portal), user != null ? user.getId() : null);
+        CachedMenu cached = menus.get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            savedQueries.addAndGet(cached.queryCount);
+            return cached.items;
+        }
+        misses.incrementAndGet();
+
+        long gen = generation.get();
+        AtomicInteger queryCount = new AtomicInteger();
+        List<MenuItem> items = Collections.unmodifiableList(menuService.getMenus(user, queryCount));
+        if (isKept(gen, key.portalId, key.userId)) {
+            menus.put(key, new CachedMenu(items, queryCount.get()));
+        }
+        return items;
+    }
+
+    /**
+     * Gets the active theme of a portal. The theme is loaded by its id, which
+     * is answered by the second level cache, rather than by querying for the
+     * active theme of the portal.
+     * @param portal the portal, may be null.
+     * @return the active theme of the portal or null if the portal is null
+     * or has no active theme.
+     */
+    public Theme getActiveTheme(Portal portal) {
+        if (portal == null) {
+            return null;
+        }
+        Integer portalId = getPortalId(portal);
+        Integer themeId = themeIds.get(portalId);
+        if (themeId != null) {
+            if (NO_THEME.equals(themeId)) {
+                hits.incrementAndGet();
+                savedQueries.incrementAndGet();
+                return null;
+            }
+            Theme theme = themeDAO.getTheme(themeId);
+            if (theme != null && theme.isActive()) {
+                hits.incrementAndGet();
+                savedQueries.incrementAndGet();
+                return theme;
+            }
+        }
+        misses.incrementAndGet();
+
+        long gen = generation.get();
+        Theme theme = themeDAO.getActiveTheme(portal);
+        if (isKept(gen, portalId, null)) {
+            themeIds.put(portalId, theme != null ? theme.getId() : NO_THEME);
+        }
+        return theme;
+    }
+
+    /**
+     * The changes of the current transaction are not visible to other
+     * transactions, nor is a menu built while the menus changed.
+     */
+    private boolean isKept(long gen, Integer portalId, Integer userId) {
+        PendingChanges changes = pending.get();
+        boolean changedByTransaction = changes != null &&
+                (changes.allPortals || changes.portalIds.contains(portalId) ||
+                        (userId != null && changes.userIds.contains(userId)));
+        return !changedByTransaction && generation.get() == gen;
+    }
+
+    /**
+     * Notifies the cache that a survey, census method, map, theme or group
+     * of a portal has been changed by the current transaction.
+     * @param portalId the id of the portal or null if it is not known, in
+     * which case every portal is affected.
+     */
+    public void portalChanged(Integer portalId) {
+        if (portalId == null) {
+            invalidateAll();
+            getPendingChanges().allPortals = true;
+        } else {
+            invalidatePortal(portalId);
+            getPendingChanges().portalIds.add(portalId);
+        }
+    }
+
+    /**
+     * Notifies the cache that a user has been changed by the current transaction.
+     * @param userId the id of the user.
+     */
+    public void userChanged(Integer userId) {
+        if (userId == null) {
+            return;
+        }
+        invalidateUser(userId);
+        getPendingChanges().userIds.add(userId);
+    }
+
+    /**
+     * Notifies the cache that a transaction has begun on the current thread.
+     */
+    public void transactionBegun() {
+        getPendingChanges().depth++;
+    }
+
+    /**
+     * Notifies the cache that a transaction has completed on the current
+     * thread, committed or not. The menus changed since the outermost
+     * transaction began are discarded.
+     */
+    public void transactionCompleted() {
+        PendingChanges changes = pending.get();
+        if (changes == null) {
+            return;
+        }
+        if (changes.allPortals) {
+            invalidateAll();
+        } else {
+            for (Integer portalId : changes.portalIds) {
+                invalidatePortal(portalId);
+            }
+        }
+        for (Integer userId : changes.userIds) {
+            invalidateUser(userId);
+        }
+        changes.depth = Math.max(0, changes.depth - 1);
+        if (changes.depth == 0) {
+            pending.remove();
+        }
+    }
+
+    /**
+     * Discards the menus and active theme of a portal.
+     * @param portalId the id of the portal.
+     */
+    public void invalidatePortal(Integer portalId) {
+        generation.incrementAndGet();
+        themeIds.remove(portalId);
+        for (Iterator<Key> iter = menus.keySet().iterator(); iter.hasNext();) {
+            if (iter.next().portalId.equals(portalId)) {
+                iter.remove();
+            }
+        }
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Discards the menus of a user in every portal.
+     * @param userId the id of the user.
+     */
+    public void invalidateUser(Integer userId) {
+        generation.incrementAndGet();
+        for (Iterator<Key> iter = menus.keySet().iterator(); iter.hasNext();) {
+            if (userId.equals(iter.next().userId)) {
+                iter.remove();
+            }
+        }
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Discards every menu and active theme.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        menus.clear();
+        themeIds.clear();
+        invalidations.incrementAndGet();
+    }
+
+    private Integer getPortalId(Portal portal) {
+        return portal != null && portal.getId() != null ? portal.getId() : NO_PORTAL;
+    }
+
+    private PendingChanges getPendingChanges() {
+        PendingChanges changes = pending.get();
+        if (changes == null) {
+            changes = new PendingChanges();
+            pending.set(changes);
+        }
+        return changes;
+    }
+
+    /**
+     * @return the number of menus held.
+     */
+    public int size() {
+        return menus.size();
+    }
+
+    /**
+     * @return the number of menus and themes answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of menus and themes that had to be queried.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the proportion of menus and themes answered from the cache,
+     * 0 if none have been requested.
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return the number of database queries that were not made because the
+     * menu or theme was answered from the cache.
+     */
+    public long getSavedQueryCount() {
+        return savedQueries.get();
+    }
+
+    /**
+     * @return the average number of database queries saved for each request,
+     * a menu is requested once for each request.
+     */
+    public double getSavedQueriesPerRequest() {
+        long r = requests.get();
+        return r == 0 ? 0 : (double) savedQueries.get() / r;
+    }
+
+    /**
+     * @return the number of times menus have been discarded.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    private static class CachedMenu {
+        private List<MenuItem> items;
+        // the number of queries made to create the menu
+        private int queryCount;
+
+        public CachedMenu(List<MenuItem> items, int queryCount) {
+            this.items = items;
+            this.queryCount = queryCount;
+        }
+    }
+
+    private static class PendingChanges {
+        private int depth = 0;
+        private boolean allPortals = false;
+        private Set<Integer> portalIds = new HashSet<Integer>();
+        private Set<Integer> userIds = new HashSet<Integer>();
+    }
+
+    private static class Key {
+        private Integer portalId;
+        // null for anonymous users
+        private Integer userId;
+
+        public Key(Integer portalId, Integer userId) {
+            this.portalId = portalId;
+            this.userId = userId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * portalId.hashCode() + (userId != null ? userId.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return portalId.equals(other.portalId) &&
+                    (userId == null ? other.userId == null : userId.equals(other.userId));
+        }
+    }
+}
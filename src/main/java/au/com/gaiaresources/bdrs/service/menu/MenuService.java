@@ -2,7 +2,9 @@ package au.com.gaiaresources.bdrs.service.menu;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.hibernate.Hibernate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -53,14 +55,27 @@ public class MenuService {
      * @return A List of MenuItems representing a menu in a view
      */
     public List<MenuItem> getMenus(User user) {
+        return getMenus(user, new AtomicInteger());
+    }
+
+    /**
+     * Returns a list of {@link MenuItem MenuItems} that the {@link User} can access
+     * and counts the database queries made to create it, see {@link MenuCache}.
+     * @param user The user accessing the page
+     * @param queryCount incremented for each query made
+     * @return A List of MenuItems representing a menu in a view
+     */
+    List<MenuItem> getMenus(User user, AtomicInteger queryCount) {
         // get the menus from the DAO
         List<MenuItem> menu = menuDAO.getUserMenus(user);
         // create the map items
         List<GeoMap> maps = mapService.getAvailableMaps(user);
+        queryCount.incrementAndGet();
         List<MenuItem> mapMenu = createMapMenu(maps);
         List<Survey> surveys = user != null ? surveyDAO.getActiveSurveysForUser(user) : 
                                surveyDAO.getActivePublicSurveys(false);
-        List<MenuItem> surveyMenu = createSurveyMenu(surveys);
+        queryCount.incrementAndGet();
+        List<MenuItem> surveyMenu = createSurveyMenu(surveys, queryCount);
         
         for (MenuItem menuItem : menu) {
             // insert the mapMenu at the appropriate item
@@ -79,12 +94,16 @@ public class MenuService {
     /**
      * Create the menu items for the surveys
      * @param surveys A list of surveys to create menus for
+     * @param queryCount incremented for each census method list loaded
      * @return A list of menu items representing the user surveys
      */
-    private List<MenuItem> createSurveyMenu(List<Survey> surveys) {
+    private List<MenuItem> createSurveyMenu(List<Survey> surveys, AtomicInteger queryCount) {
         List<MenuItem> menu = new ArrayList<MenuItem>();
         if (surveys != null) {
             for (Survey survey : surveys) {
+                if (!Hibernate.isInitialized(survey.getCensusMethods())) {
+                    queryCount.incrementAndGet();
+                }
                 MenuItem item = new MenuItem(survey.getName(), 
                                              RenderController.SURVEY_RENDER_REDIRECT_URL + "?surveyId="+survey.getId(), 
                                              survey.getDescription(), 
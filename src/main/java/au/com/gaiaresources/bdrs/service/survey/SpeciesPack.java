@@ -0,0 +1,151 @@
+package au.com.gaiaresources.bdrs.service.survey;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A prebuilt download of the species of a survey, see {@link SpeciesPackService}.
+ *
+ * The pack is stored on disk twice: as a gzip compressed JSON document with
+ * every species and taxon group, which is downloaded whole or in byte ranges,
+ * and as one JSON object per species per line, from which the pages of the
+ * paged species download are read. A pack is never modified, a change to the
+ * species of the survey produces a new pack with a new version.
+ */
+public class SpeciesPack {
+
+    private Integer surveyId;
+    private boolean includeProfile;
+    private long version;
+    private File packFile;
+    private File linesFile;
+    // the byte offset of the line of each species, and the end of the file
+    private long[] offsets;
+    // the ids of the taxon groups of each species
+    private int[][] speciesGroups;
+    // the JSON of each taxon group by id
+    private Map<Integer, String> groupJson;
+
+    SpeciesPack(Integer surveyId, boolean includeProfile, long version, File packFile, File linesFile,
+            long[] offsets, int[][] speciesGroups, Map<Integer, String> groupJson) {
+        this.surveyId = surveyId;
+        this.includeProfile = includeProfile;
+        this.version = version;
+        this.packFile = packFile;
+        this.linesFile = linesFile;
+        this.offsets = offsets;
+        this.speciesGroups = speciesGroups;
+        this.groupJson = groupJson;
+    }
+
+    /**
+     * @return the id of the survey.
+     */
+    public Integer getSurveyId() {
+        return surveyId;
+    }
+
+    /**
+     * @return true if the species profile items are included.
+     */
+    public boolean isIncludeProfile() {
+        return includeProfile;
+    }
+
+    /**
+     * @return the version of the pack, greater than the versions of the
+     * packs built before it.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the entity tag of the pack for HTTP caching.
+     */
+    public String getETag() {
+        return String.format("\"%d-%s-%d\"", surveyId, includeProfile ? "p" : "n", version);
+    }
+
+    /**
+     * @return the gzip compressed JSON document of the pack.
+     */
+    public File getPackFile() {
+        return packFile;
+    }
+
+    /**
+     * @return the compressed size of the pack in bytes.
+     */
+    public long getPackLength() {
+        return packFile.length();
+    }
+
+    /**
+     * @return the number of species in the pack.
+     */
+    public int getCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Reads a page of the species in the same form as the paged species
+     * download: the count of species, the list of species of the page and
+     * the taxon groups of those species.
+     * @param first the index of the first species of the page, starts at 0.
+     * @param maxResults the maximum number of species in the page.
+     * @return the JSON of the page.
+     * @throws IOException if the pack cannot be read.
+     */
+    public String getSlice(int first, int maxResults) throws IOException {
+        int count = getCount();
+        int start = Math.max(0, Math.min(first, count));
+        int end = Math.max(start, Math.min(count, start + Math.max(0, maxResults)));
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"count\":").append(count).append(",\"list\":[");
+        if (end > start) {
+            byte[] bytes = new byte[(int) (offsets[end] - offsets[start])];
+            RandomAccessFile file = new RandomAccessFile(linesFile, "r");
+            try {
+                file.seek(offsets[start]);
+                file.readFully(bytes);
+            } finally {
+                file.close();
+            }
+            // each line ends with a new line, which becomes the separator
+            String lines = new String(bytes, SpeciesPackService.CHARSET);
+            json.append(lines.substring(0, lines.length() - 1).replace('\n', ','));
+        }
+        json.append("],\"").append(SpeciesPackService.JSON_KEY_TAXON_GROUPS).append("\":[");
+
+        Set<Integer> groupIds = new LinkedHashSet<Integer>();
+        for (int i = start; i < end; i++) {
+            for (int groupId : speciesGroups[i]) {
+                groupIds.add(groupId);
+            }
+        }
+        boolean separate = false;
+        for (Integer groupId : groupIds) {
+            if (separate) {
+                json.append(',');
+            }
+            json.append(groupJson.get(groupId));
+            separate = true;
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * Deletes the files of the pack.
+     */
+    void delete() {
+        packFile.delete();
+        linesFile.delete();
+    }
+}
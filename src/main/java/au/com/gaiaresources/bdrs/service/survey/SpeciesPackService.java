@@ -0,0 +1,499 @@
+package au.com.gaiaresources.bdrs.service.survey;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import au.com.gaiaresources.bdrs.file.FileService;
+import au.com.gaiaresources.bdrs.json.JSONArray;
+import au.com.gaiaresources.bdrs.json.JSONObject;
+import au.com.gaiaresources.bdrs.model.file.ManagedFile;
+import au.com.gaiaresources.bdrs.model.file.ManagedFileDAO;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
+import au.com.gaiaresources.bdrs.model.taxa.SpeciesProfile;
+import au.com.gaiaresources.bdrs.model.taxa.TaxaDAO;
+import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
+
+/**
+ * Builds and keeps the {@link SpeciesPack} of each survey, with and without
+ * the species profiles, so that the species of a survey are queried once and
+ * not for every device that downloads the survey.
+ *
+ * A pack is built the first time it is requested, a batch of species at a
+ * time with the groups and profiles of the species fetched by joins. The
+ * files of the pack are written beside the files of the survey and renamed
+ * into place once complete.
+ *
+ * The packs of a survey are discarded when the species of the survey are
+ * changed, and all packs are discarded when a taxon, taxon group or species
+ * profile is saved, modified or deleted. As with the other caches of the
+ * interceptor, the packs are discarded again once the transaction that made
+ * the change completes so that a pack built from the previous state by
+ * another transaction is not kept.
+ */
+@Service
+public class SpeciesPackService {
+
+    /** The folder of the survey files that holds the packs. */
+    public static final String PACK_DIRECTORY = "speciesPack";
+    /** The number of species loaded at a time. */
+    public static final int BATCH_SIZE = 200;
+
+    public static final String JSON_KEY_TAXON_GROUP_ID = "taxonGroupId";
+    public static final String JSON_KEY_SECONDARY_TAXON_GROUPS = "secondaryTaxonGroups";
+    public static final String JSON_KEY_SPECIES_INFO_ITEMS = "profileItems";
+    public static final String JSON_KEY_TAXON_GROUPS = "taxonGroups";
+    public static final String JSON_KEY_MANAGED_FILE = "managedFile";
+
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final byte[] NEW_LINE = "\n".getBytes(CHARSET);
+    private static final byte[] SEPARATOR = ",".getBytes(CHARSET);
+
+    private Logger log = Logger.getLogger(getClass());
+
+    @Autowired
+    private TaxaDAO taxaDAO;
+    @Autowired
+    private ManagedFileDAO managedFileDAO;
+    @Autowired
+    private FileService fileService;
+
+    private ConcurrentMap<Key, SpeciesPack> packs = new ConcurrentHashMap<Key, SpeciesPack>();
+    // the packs being built, so that the requests that arrive meanwhile wait
+    // for the pack rather than building it again
+    private ConcurrentMap<Key, Object> buildLocks = new ConcurrentHashMap<Key, Object>();
+    // incremented each time a pack may have changed so that a pack built
+    // while the species were changing is not kept.
+    private AtomicLong generation = new AtomicLong();
+    // versions increase across restarts
+    private AtomicLong version = new AtomicLong(System.currentTimeMillis());
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong builds = new AtomicLong();
+    private AtomicLong buildNanos = new AtomicLong();
+    private AtomicLong invalidations = new AtomicLong();
+
+    private ThreadLocal<PendingChanges> pending = new ThreadLocal<PendingChanges>();
+
+    /**
+     * Gets the pack of a survey, building it if there is none.
+     * WARNING: building a pack has the side effect of clearing the session.
+     * @param sesh the session used to load the species, the portal filter
+     * of the session determines the species of a survey without species.
+     * @param survey the survey.
+     * @param includeProfile true if the species profiles are included.
+     * @return the pack.
+     * @throws IOException if the pack cannot be written.
+     */
+    public SpeciesPack getPack(Session sesh, Survey survey, boolean includeProfile) throws IOException {
+        Key key = new Key(survey.getId(), includeProfile);
+        SpeciesPack pack = packs.get(key);
+        if (pack != null) {
+            hits.incrementAndGet();
+            return pack;
+        }
+
+        Object lock = new Object();
+        Object existing = buildLocks.putIfAbsent(key, lock);
+        if (existing != null) {
+            lock = existing;
+        }
+        synchronized (lock) {
+            pack = packs.get(key);
+            if (pack != null) {
+                hits.incrementAndGet();
+                return pack;
+            }
+            try {
+                long gen = generation.get();
+                pack = build(sesh, survey, includeProfile);
+
+                // the changes of the current transaction are not visible to
+                // other transactions, nor is a pack built while the species changed
+                PendingChanges changes = pending.get();
+                boolean changedByTransaction = changes != null &&
+                        (changes.allSurveys || changes.surveyIds.contains(survey.getId()));
+                if (!changedByTransaction && generation.get() == gen) {
+                    SpeciesPack previous = packs.put(key, pack);
+                    deleteOldPacks(key, pack, previous);
+                }
+                return pack;
+            } finally {
+                buildLocks.remove(key, lock);
+            }
+        }
+    }
+
+    /**
+     * Gets a page of the species of a survey from its pack.
+     * @see #getPack(Session, Survey, boolean)
+     * @see SpeciesPack#getSlice(int, int)
+     */
+    public String getSlice(Session sesh, Survey survey, boolean includeProfile, int first, int maxResults) throws IOException {
+        return getPack(sesh, survey, includeProfile).getSlice(first, maxResults);
+    }
+
+    /**
+     * Notifies the service that the species of a survey have been changed
+     * by the current transaction.
+     * @param surveyId the id of the survey.
+     */
+    public void surveyChanged(Integer surveyId) {
+        if (surveyId == null) {
+            return;
+        }
+        invalidate(surveyId);
+        getPendingChanges().surveyIds.add(surveyId);
+    }
+
+    /**
+     * Notifies the service that a taxon, taxon group or species profile has
+     * been changed by the current transaction.
+     */
+    public void taxaChanged() {
+        invalidateAll();
+        getPendingChanges().allSurveys = true;
+    }
+
+    /**
+     * Notifies the service that a transaction has begun on the current thread.
+     */
+    public void transactionBegun() {
+        getPendingChanges().depth++;
+    }
+
+    /**
+     * Notifies the service that a transaction has completed on the current
+     * thread, committed or not. The packs changed since the outermost
+     * transaction began are discarded.
+     */
+    public void transactionCompleted() {
+        PendingChanges changes = pending.get();
+        if (changes == null) {
+            return;
+        }
+        if (changes.allSurveys) {
+            invalidateAll();
+        } else {
+            for (Integer surveyId : changes.surveyIds) {
+                invalidate(surveyId);
+            }
+        }
+        changes.depth = Math.max(0, changes.depth - 1);
+        if (changes.depth == 0) {
+            pending.remove();
+        }
+    }
+
+    /**
+     * Discards the packs of a survey.
+     * @param surveyId the id of the survey.
+     */
+    public void invalidate(Integer surveyId) {
+        generation.incrementAndGet();
+        packs.remove(new Key(surveyId, true));
+        packs.remove(new Key(surveyId, false));
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Discards the packs of every survey.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        packs.clear();
+        invalidations.incrementAndGet();
+    }
+
+    private SpeciesPack build(Session sesh, Survey survey, boolean includeProfile) throws IOException {
+        long start = System.nanoTime();
+        long packVersion = version.incrementAndGet();
+        Integer surveyId = survey.getId();
+
+        // the session is cleared as the species are written
+        sesh.flush();
+        List<Integer> ids = taxaDAO.getIndicatorSpeciesIdsBySurvey(sesh, survey);
+
+        File dir = fileService.getTargetDirectory(Survey.class, surveyId, PACK_DIRECTORY, true);
+        String name = fileName(includeProfile, packVersion);
+        File packFile = new File(dir, name + ".json.gz");
+        File linesFile = new File(dir, name + ".lines");
+        File packTemp = new File(dir, packFile.getName() + ".tmp");
+        File linesTemp = new File(dir, linesFile.getName() + ".tmp");
+
+        long[] offsets = new long[ids.size() + 1];
+        int[][] speciesGroups = new int[ids.size()][];
+        Map<Integer, String> groupJson = new LinkedHashMap<Integer, String>();
+
+        OutputStream pack = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(packTemp)));
+        OutputStream lines = new BufferedOutputStream(new FileOutputStream(linesTemp));
+        try {
+            pack.write(String.format("{\"version\":%d,\"surveyId\":%d,\"count\":%d,\"list\":[",
+                    packVersion, surveyId, ids.size()).getBytes(CHARSET));
+            long offset = 0;
+            int index = 0;
+            for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+                List<Integer> batch = ids.subList(i, Math.min(ids.size(), i + BATCH_SIZE));
+                List<IndicatorSpecies> species = taxaDAO.getIndicatorSpeciesWithGroups(sesh, batch, includeProfile);
+                Map<String, ManagedFile> files = includeProfile ? getProfileFiles(sesh, species) : null;
+                for (IndicatorSpecies sp : species) {
+                    byte[] json = JSONObject.fromMapToString(flattenSpecies(sp, files)).getBytes(CHARSET);
+                    if (index > 0) {
+                        pack.write(SEPARATOR);
+                    }
+                    pack.write(json);
+                    lines.write(json);
+                    lines.write(NEW_LINE);
+
+                    offsets[index] = offset;
+                    offset += json.length + NEW_LINE.length;
+                    speciesGroups[index] = getGroupIds(sp, groupJson);
+                    index++;
+                }
+                // the species are not needed once written
+                sesh.clear();
+            }
+            // species deleted since their ids were read are left out
+            if (index < ids.size()) {
+                offsets = Arrays.copyOf(offsets, index + 1);
+                speciesGroups = Arrays.copyOf(speciesGroups, index);
+            }
+            offsets[index] = offset;
+
+            pack.write(("],\"" + JSON_KEY_TAXON_GROUPS + "\":[").getBytes(CHARSET));
+            boolean separate = false;
+            for (String group : groupJson.values()) {
+                if (separate) {
+                    pack.write(SEPARATOR);
+                }
+                pack.write(group.getBytes(CHARSET));
+                separate = true;
+            }
+            pack.write("]}".getBytes(CHARSET));
+        } finally {
+            pack.close();
+            lines.close();
+        }
+
+        if (!linesTemp.renameTo(linesFile) || !packTemp.renameTo(packFile)) {
+            packTemp.delete();
+            linesTemp.delete();
+            throw new IOException("Unable to move the species pack into place: " + packFile.getAbsolutePath());
+        }
+
+        long elapsed = System.nanoTime() - start;
+        builds.incrementAndGet();
+        buildNanos.addAndGet(elapsed);
+        log.info(String.format("Built species pack %s of survey %d, %d species and %d bytes in %d ms",
+                name, surveyId, offsets.length - 1, packFile.length(), elapsed / 1000000));
+        return new SpeciesPack(surveyId, includeProfile, packVersion, packFile, linesFile,
+                offsets, speciesGroups, groupJson);
+    }
+
+    /**
+     * The same minimal fields as the paged species download.
+     */
+    private Map<String, Object> flattenSpecies(IndicatorSpecies sp, Map<String, ManagedFile> files) {
+        Map<String, Object> speciesMap = new HashMap<String, Object>();
+        speciesMap.put("server_id", sp.getId());
+        speciesMap.put("scientificNameAndAuthor", sp.getScientificNameAndAuthor());
+        speciesMap.put("scientificName", sp.getScientificName());
+        speciesMap.put("commonName", sp.getCommonName());
+        speciesMap.put("author", sp.getAuthor());
+        speciesMap.put("year", sp.getYear());
+        speciesMap.put(JSON_KEY_TAXON_GROUP_ID, sp.getTaxonGroup().getId());
+        List<Integer> secondaryGroupIds = new ArrayList<Integer>(sp.getSecondaryGroups().size());
+        for (TaxonGroup secondaryGroup : sp.getSecondaryGroups()) {
+            secondaryGroupIds.add(secondaryGroup.getId());
+        }
+        speciesMap.put(JSON_KEY_SECONDARY_TAXON_GROUPS, secondaryGroupIds);
+
+        if (files != null) {
+            JSONArray speciesProfileList = new JSONArray();
+            for (SpeciesProfile profile : sp.getInfoItems()) {
+                JSONObject profileJson = new JSONObject();
+                profileJson.put("header", profile.getHeader());
+                profileJson.put("description", profile.getDescription());
+                profileJson.put("type", profile.getType());
+                profileJson.put("content", profile.getContent());
+                profileJson.put("id", profile.getId());
+                profileJson.put("weight", profile.getWeight());
+                if (profile.isImgType() && profile.getContent() != null) {
+                    // uuid is stored in content property.
+                    ManagedFile theFile = files.get(profile.getContent().trim());
+                    if (theFile != null) {
+                        profileJson.put(JSON_KEY_MANAGED_FILE, JSONObject.fromMapToJSONObject(theFile.flatten()));
+                    }
+                }
+                speciesProfileList.add(profileJson);
+            }
+            speciesMap.put(JSON_KEY_SPECIES_INFO_ITEMS, speciesProfileList);
+        }
+        return speciesMap;
+    }
+
+    /**
+     * Loads the managed files of the image profile items of the species in
+     * a single query.
+     */
+    private Map<String, ManagedFile> getProfileFiles(Session sesh, List<IndicatorSpecies> species) {
+        Set<String> uuids = new HashSet<String>();
+        for (IndicatorSpecies sp : species) {
+            for (SpeciesProfile profile : sp.getInfoItems()) {
+                if (profile.isImgType() && profile.getContent() != null) {
+                    uuids.add(profile.getContent().trim());
+                }
+            }
+        }
+        Map<String, ManagedFile> files = new HashMap<String, ManagedFile>(uuids.size());
+        for (ManagedFile file : managedFileDAO.getManagedFiles(sesh, uuids)) {
+            files.put(file.getUuid(), file);
+        }
+        return files;
+    }
+
+    private int[] getGroupIds(IndicatorSpecies sp, Map<Integer, String> groupJson) {
+        List<TaxonGroup> groups = new ArrayList<TaxonGroup>(sp.getSecondaryGroups().size() + 1);
+        groups.add(sp.getTaxonGroup());
+        groups.addAll(sp.getSecondaryGroups());
+        int[] groupIds = new int[groups.size()];
+        for (int i = 0; i < groups.size(); i++) {
+            TaxonGroup tg = groups.get(i);
+            groupIds[i] = tg.getId();
+            if (!groupJson.containsKey(tg.getId())) {
+                JSONObject taxonGroupJson = new JSONObject();
+                taxonGroupJson.put("id", tg.getId());
+                taxonGroupJson.put("name", tg.getName());
+                taxonGroupJson.put("image", tg.getImage());
+                taxonGroupJson.put("thumbNail", tg.getThumbNail());
+                groupJson.put(tg.getId(), taxonGroupJson.toString());
+            }
+        }
+        return groupIds;
+    }
+
+    /**
+     * Deletes the files of the packs of a key older than the previous pack,
+     * which may still be read by a request that got it before it was replaced.
+     */
+    private void deleteOldPacks(Key key, SpeciesPack pack, SpeciesPack previous) {
+        File dir = pack.getPackFile().getParentFile();
+        String prefix = filePrefix(key.includeProfile);
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        String current = fileName(key.includeProfile, pack.getVersion());
+        String kept = previous != null ? fileName(key.includeProfile, previous.getVersion()) : current;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(prefix) && !name.startsWith(current + ".") && !name.startsWith(kept + ".")) {
+                f.delete();
+            }
+        }
+    }
+
+    private String filePrefix(boolean includeProfile) {
+        return includeProfile ? "species-profile-" : "species-noprofile-";
+    }
+
+    private String fileName(boolean includeProfile, long packVersion) {
+        return filePrefix(includeProfile) + packVersion;
+    }
+
+    private PendingChanges getPendingChanges() {
+        PendingChanges changes = pending.get();
+        if (changes == null) {
+            changes = new PendingChanges();
+            pending.set(changes);
+        }
+        return changes;
+    }
+
+    /**
+     * @return the number of packs held.
+     */
+    public int size() {
+        return packs.size();
+    }
+
+    /**
+     * @return the number of requests answered with an existing pack.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of packs that have been built.
+     */
+    public long getBuildCount() {
+        return builds.get();
+    }
+
+    /**
+     * @return the total time spent building packs in milliseconds.
+     */
+    public long getBuildMillis() {
+        return buildNanos.get() / 1000000;
+    }
+
+    /**
+     * @return the number of times packs have been discarded.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    private static class PendingChanges {
+        private int depth = 0;
+        private boolean allSurveys = false;
+        private Set<Integer> surveyIds = new HashSet<Integer>();
+    }
+
+    private static class Key {
+        private Integer surveyId;
+        private boolean includeProfile;
+
+        public Key(Integer surveyId, boolean includeProfile) {
+            this.surveyId = surveyId;
+            this.includeProfile = includeProfile;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * surveyId.hashCode() + (includeProfile ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return surveyId.equals(other.surveyId) && includeProfile == other.includeProfile;
+        }
+    }
+}
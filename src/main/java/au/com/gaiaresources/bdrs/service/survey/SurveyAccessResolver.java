@@ -0,0 +1,194 @@
+package au.com.gaiaresources.bdrs.service.survey;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+import org.springframework.stereotype.Service;
+
+import au.com.gaiaresources.bdrs.db.FilterManager;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.user.User;
+
+/**
+ * Resolves the surveys whose shared records a user may see, so that the
+ * record filter can compare the survey of each record against a list of ids
+ * rather than evaluating the survey membership of the user for every row.
+ *
+ * A user may see the shared records of the public surveys, of the surveys
+ * the user is a member of and of the surveys of the groups the user is a
+ * member of, as in {@link Record#USER_ACCESS_FILTER}. The surveys of each
+ * user are kept until a survey or group is saved, modified or deleted, or
+ * the members of a survey or group change, when the surveys of every user
+ * are discarded. As with the other caches of the interceptor, they are
+ * discarded again once the transaction that made the change completes so
+ * that surveys resolved from the previous state by another transaction are
+ * not kept.
+ */
+@Service
+public class SurveyAccessResolver {
+
+    // the key of the anonymous user, who only sees the public surveys
+    private static final Integer ANONYMOUS = Integer.valueOf(0);
+
+    private static final String ACCESSIBLE_SURVEYS_QUERY =
+        "select surv.survey_id from survey surv where surv.public or surv.public_read_access" +
+        " union select sud.survey_survey_id from survey_user_definition sud where sud.users_user_definition_id = :userId" +
+        " union select sg.survey_survey_id from survey_usergroup sg join group_users gu on sg.groups_group_id = gu.usergroup_group_id" +
+        " where gu.users_user_definition_id = :userId";
+
+    private ConcurrentMap<Integer, Set<Integer>> surveyIds = new ConcurrentHashMap<Integer, Set<Integer>>();
+    // incremented each time the surveys may have changed so that surveys
+    // resolved while they were changing are not kept.
+    private AtomicLong generation = new AtomicLong();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong invalidations = new AtomicLong();
+
+    private ThreadLocal<PendingChanges> pending = new ThreadLocal<PendingChanges>();
+
+    /**
+     * Enables the record filter of the user on the session. Users that are
+     * neither administrators nor moderators are given the filter that
+     * compares the survey of each record with their accessible surveys.
+     * @param sesh the session to enable the filter on.
+     * @param user the user, null for an anonymous user.
+     * @see FilterManager#enableRecordFilter(Session, User)
+     */
+    public void enableRecordFilter(Session sesh, User user) {
+        if (user != null && (user.isAdmin() || user.isModerator())) {
+            FilterManager.enableRecordFilter(sesh, user);
+        } else {
+            FilterManager.enableRecordFilter(sesh, user, getAccessibleSurveyIds(sesh, user));
+        }
+    }
+
+    /**
+     * Gets the ids of the surveys whose shared records a user may see.
+     * @param sesh the session to query the surveys with if they are not known.
+     * @param user the user, null for an anonymous user.
+     * @return the ids of the surveys, which must not be modified.
+     */
+    public Set<Integer> getAccessibleSurveyIds(Session sesh, User user) {
+        Integer userId = user != null ? user.getId() : ANONYMOUS;
+        Set<Integer> ids = surveyIds.get(userId);
+        if (ids != null) {
+            hits.incrementAndGet();
+            return ids;
+        }
+        misses.incrementAndGet();
+
+        long gen = generation.get();
+        List<?> rows = sesh.createSQLQuery(ACCESSIBLE_SURVEYS_QUERY).setInteger("userId", userId).list();
+        Set<Integer> resolved = new HashSet<Integer>(rows.size());
+        for (Object row : rows) {
+            resolved.add(((Number) row).intValue());
+        }
+        ids = Collections.unmodifiableSet(resolved);
+        if (isKept(gen)) {
+            surveyIds.put(userId, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * The changes of the current transaction are not visible to other
+     * transactions, nor are surveys resolved while they changed.
+     */
+    private boolean isKept(long gen) {
+        PendingChanges changes = pending.get();
+        return (changes == null || !changes.changed) && generation.get() == gen;
+    }
+
+    /**
+     * Notifies the resolver that a survey or group, or the members of a
+     * survey or group, have been changed by the current transaction.
+     */
+    public void accessChanged() {
+        invalidateAll();
+        getPendingChanges().changed = true;
+    }
+
+    /**
+     * Notifies the resolver that a transaction has begun on the current thread.
+     */
+    public void transactionBegun() {
+        getPendingChanges().depth++;
+    }
+
+    /**
+     * Notifies the resolver that a transaction has completed on the current
+     * thread, committed or not. If the transaction changed the surveys they
+     * are discarded again.
+     */
+    public void transactionCompleted() {
+        PendingChanges changes = pending.get();
+        if (changes == null) {
+            return;
+        }
+        if (changes.changed) {
+            invalidateAll();
+        }
+        changes.depth = Math.max(0, changes.depth - 1);
+        if (changes.depth == 0) {
+            pending.remove();
+        }
+    }
+
+    /**
+     * Discards the surveys of every user.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        surveyIds.clear();
+        invalidations.incrementAndGet();
+    }
+
+    private PendingChanges getPendingChanges() {
+        PendingChanges changes = pending.get();
+        if (changes == null) {
+            changes = new PendingChanges();
+            pending.set(changes);
+        }
+        return changes;
+    }
+
+    /**
+     * @return the number of users whose surveys are held.
+     */
+    public int size() {
+        return surveyIds.size();
+    }
+
+    /**
+     * @return the number of requests answered without a query.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests that had to be queried.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of times the surveys have been discarded.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    private static class PendingChanges {
+        private int depth = 0;
+        private boolean changed = false;
+    }
+}
@@ -0,0 +1,721 @@
+package au.com.gaiaresources.bdrs.service.taxonomy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.springframework.stereotype.Service;
+
+import au.com.gaiaresources.bdrs.db.FilterManager;
+import au.com.gaiaresources.bdrs.db.impl.PortalPersistentImpl;
+import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
+import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
+
+/**
+ * An in memory index of the scientific and common names of the taxa, and of
+ * the names of the taxon groups, of each portal for the taxon autocompletes.
+ *
+ * A search matches the same names as the <code>like '%word%word%'</code>
+ * queries it replaces: every word of the search must appear in the name in
+ * order. Each name is indexed by its trigrams, so only the names containing
+ * the least common trigram of the search are compared with it. Searches
+ * shorter than a trigram are compared with every name, in memory.
+ *
+ * Matches are ranked exact, then prefix, then infix. Within each rank
+ * shorter names come first.
+ *
+ * The index of a portal is built the first time the portal is searched.
+ * Taxa and groups that are saved, updated or deleted are collected for the
+ * current transaction, searched in addition to the index by that transaction,
+ * and applied to the index once it commits.
+ */
+@Service
+public class TaxonNameIndex {
+
+    /**
+     * The length of the indexed n-grams.
+     */
+    public static final int GRAM_LENGTH = 3;
+
+    /**
+     * Exact match rank.
+     */
+    public static final int RANK_EXACT = 0;
+    /**
+     * Prefix match rank.
+     */
+    public static final int RANK_PREFIX = 1;
+    /**
+     * Infix match rank.
+     */
+    public static final int RANK_INFIX = 2;
+
+    private static final int NO_MATCH = -1;
+    // the separators of the words of a taxon search and of a group search,
+    // see TaxaDAOImpl
+    private static final String WORD_SEPARATORS = "[ %]+";
+    private static final String WILDCARD_SEPARATORS = "%+";
+    private static final int FETCH_SIZE = 1000;
+
+    private Logger log = Logger.getLogger(getClass());
+
+    private Map<Integer, PortalIndex> indexes = new ConcurrentHashMap<Integer, PortalIndex>();
+    // incremented each time the taxa of a portal change so that an index
+    // built while they were changing is not kept.
+    private Map<Integer, Long> generations = new HashMap<Integer, Long>();
+
+    private AtomicLong builds = new AtomicLong();
+    private AtomicLong buildNanos = new AtomicLong();
+    private AtomicLong queries = new AtomicLong();
+    private AtomicLong queryNanos = new AtomicLong();
+    private AtomicLong updates = new AtomicLong();
+
+    private ThreadLocal<LinkedList<PendingTransaction>> transactions = new ThreadLocal<LinkedList<PendingTransaction>>() {
+        @Override
+        protected LinkedList<PendingTransaction> initialValue() {
+            return new LinkedList<PendingTransaction>();
+        }
+    };
+
+    /**
+     * Searches the scientific and common names of the taxa.
+     * @param sesh the session of the search, the portal filter determines
+     * the portal that is searched.
+     * @param name the words to search for.
+     * @param excludeId the id of a taxon to exclude, may be null.
+     * @param maxResults the maximum number of ids to return.
+     * @return the ranked ids of the matching taxa, or null if the search cannot
+     * be answered by the index because the session is not filtered by portal
+     * or the search contains a single character wildcard.
+     */
+    public List<Integer> searchSpecies(Session sesh, String name, Integer excludeId, int maxResults) {
+        return search(sesh, new Query(name, WORD_SEPARATORS), true, excludeId, maxResults);
+    }
+
+    /**
+     * Searches the names of the taxon groups.
+     * @param sesh the session of the search, the portal filter determines
+     * the portal that is searched.
+     * @param nameFragment the part of the name to search for.
+     * @param maxResults the maximum number of ids to return.
+     * @return the ranked ids of the matching groups, or null if the search cannot
+     * be answered by the index.
+     * @see #searchSpecies(Session, String, Integer, int)
+     */
+    public List<Integer> searchTaxonGroups(Session sesh, String nameFragment, int maxResults) {
+        return search(sesh, new Query(nameFragment, WILDCARD_SEPARATORS), false, null, maxResults);
+    }
+
+    private List<Integer> search(Session sesh, Query query, boolean species, Integer excludeId,
+            int maxResults) {
+        Integer portalId = FilterManager.getFilteredPortalId(sesh);
+        if (portalId == null || !query.isSearchable()) {
+            return null;
+        }
+        long start = System.nanoTime();
+
+        // the changes of the current transaction are searched separately
+        PendingTransaction pending = transactions.get().peek();
+        Set<Integer> changedIds = new HashSet<Integer>();
+        if (excludeId != null) {
+            changedIds.add(excludeId);
+        }
+        TopHits hits = new TopHits(maxResults);
+        if (pending != null) {
+            for (Map.Entry<Object, Boolean> change : pending.changes.entrySet()) {
+                Object taxon = change.getKey();
+                boolean isSpecies = taxon instanceof IndicatorSpecies;
+                Integer portal = getPortalId(taxon);
+                if (isSpecies != species || (portal != null && !portal.equals(portalId))) {
+                    continue;
+                }
+                Integer id = ((PortalPersistentImpl) taxon).getId();
+                if (id == null || changedIds.contains(id)) {
+                    continue;
+                }
+                changedIds.add(id);
+                if (!change.getValue()) {
+                    hits.match(id, getNames(taxon), query);
+                }
+            }
+        }
+
+        PortalIndex index = getIndex(sesh, portalId);
+        index.lock.readLock().lock();
+        try {
+            (species ? index.species : index.groups).search(query, changedIds, hits);
+        } finally {
+            index.lock.readLock().unlock();
+        }
+
+        queries.incrementAndGet();
+        queryNanos.addAndGet(System.nanoTime() - start);
+        return hits.getIds();
+    }
+
+    /**
+     * Collects a taxon or taxon group that has been saved or modified.
+     * @param taxon the {@link IndicatorSpecies} or {@link TaxonGroup}.
+     */
+    public void taxonChanged(Object taxon) {
+        change(taxon, false);
+    }
+
+    /**
+     * Collects a taxon or taxon group that has been deleted.
+     * @param taxon the {@link IndicatorSpecies} or {@link TaxonGroup}.
+     */
+    public void taxonDeleted(Object taxon) {
+        change(taxon, true);
+    }
+
+    private void change(Object taxon, boolean deleted) {
+        if (!(taxon instanceof IndicatorSpecies || taxon instanceof TaxonGroup)) {
+            return;
+        }
+        PendingTransaction pending = transactions.get().peek();
+        if (pending == null) {
+            Map<Object, Boolean> changes = new IdentityHashMap<Object, Boolean>();
+            changes.put(taxon, deleted);
+            apply(changes);
+        } else if (deleted || !pending.changes.containsKey(taxon)) {
+            pending.changes.put(taxon, deleted);
+        }
+    }
+
+    /**
+     * Begins collecting the taxa changed by a transaction.
+     * @param tx the transaction.
+     */
+    public void transactionBegun(Object tx) {
+        LinkedList<PendingTransaction> stack = transactions.get();
+        // discard transactions that were abandoned without completing
+        for (Iterator<PendingTransaction> iter = stack.iterator(); iter.hasNext();) {
+            Object other = iter.next().tx;
+            if (other instanceof Transaction && !((Transaction) other).isActive()) {
+                iter.remove();
+            }
+        }
+        stack.addFirst(new PendingTransaction(tx));
+    }
+
+    /**
+     * Applies the changes of the transaction to the indexes if it was committed.
+     * @param tx the transaction that has completed.
+     * @param committed true if the transaction was committed.
+     */
+    public void transactionCompleted(Object tx, boolean committed) {
+        PendingTransaction pending = null;
+        for (PendingTransaction p : transactions.get()) {
+            if (p.tx == tx) {
+                pending = p;
+                break;
+            }
+        }
+        if (pending == null) {
+            return;
+        }
+        transactions.get().remove(pending);
+        if (committed && !pending.changes.isEmpty()) {
+            apply(pending.changes);
+        }
+    }
+
+    private synchronized void apply(Map<Object, Boolean> changes) {
+        for (Map.Entry<Object, Boolean> change : changes.entrySet()) {
+            Object taxon = change.getKey();
+            Integer portalId = getPortalId(taxon);
+            Integer id = ((PortalPersistentImpl) taxon).getId();
+            if (portalId == null || id == null) {
+                // cannot tell which index the taxon belongs to
+                invalidate(portalId);
+                continue;
+            }
+            nextGeneration(portalId);
+            PortalIndex index = indexes.get(portalId);
+            if (index == null) {
+                continue;
+            }
+            index.lock.writeLock().lock();
+            try {
+                NameIndex names = taxon instanceof IndicatorSpecies ? index.species : index.groups;
+                if (change.getValue()) {
+                    names.remove(id);
+                } else {
+                    names.put(id, getNames(taxon));
+                }
+            } finally {
+                index.lock.writeLock().unlock();
+            }
+            updates.incrementAndGet();
+        }
+    }
+
+    /**
+     * Discards the index of a portal.
+     * @param portalId the id of the portal, or null for all portals.
+     */
+    public synchronized void invalidate(Integer portalId) {
+        if (portalId == null) {
+            for (Integer id : new ArrayList<Integer>(generations.keySet())) {
+                nextGeneration(id);
+            }
+            indexes.clear();
+        } else {
+            nextGeneration(portalId);
+            indexes.remove(portalId);
+        }
+    }
+
+    /**
+     * Discards the indexes of all portals.
+     */
+    public void clear() {
+        invalidate(null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private PortalIndex getIndex(Session sesh, Integer portalId) {
+        PortalIndex index = indexes.get(portalId);
+        if (index != null) {
+            return index;
+        }
+
+        long generation = getGeneration(portalId);
+        long start = System.nanoTime();
+        index = new PortalIndex();
+        ScrollableResults results = sesh.createQuery("select i.id, i.scientificName, i.commonName from IndicatorSpecies i")
+            .setFetchSize(FETCH_SIZE).scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (results.next()) {
+                index.species.put((Integer) results.get(0), new String[] { (String) results.get(1), (String) results.get(2) });
+            }
+        } finally {
+            results.close();
+        }
+        for (Object[] row : (List<Object[]>) sesh.createQuery("select g.id, g.name from TaxonGroup g").list()) {
+            index.groups.put((Integer) row[0], new String[] { (String) row[1] });
+        }
+        long elapsed = System.nanoTime() - start;
+        builds.incrementAndGet();
+        buildNanos.addAndGet(elapsed);
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Indexed %d taxa and %d groups of portal %d in %d ms",
+                    index.species.size(), index.groups.size(), portalId, elapsed / 1000000));
+        }
+
+        // an index built from the uncommitted changes of the current
+        // transaction, or while another transaction was committing changes,
+        // is only used for this search
+        PendingTransaction pending = transactions.get().peek();
+        if (pending == null || !pending.affects(portalId)) {
+            synchronized (this) {
+                if (getGeneration(portalId) == generation) {
+                    indexes.put(portalId, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    private synchronized long getGeneration(Integer portalId) {
+        Long generation = generations.get(portalId);
+        return generation == null ? 0 : generation;
+    }
+
+    private synchronized void nextGeneration(Integer portalId) {
+        generations.put(portalId, getGeneration(portalId) + 1);
+    }
+
+    private static Integer getPortalId(Object taxon) {
+        PortalPersistentImpl ppi = (PortalPersistentImpl) taxon;
+        return ppi.getPortal() != null ? ppi.getPortal().getId() : null;
+    }
+
+    private static String[] getNames(Object taxon) {
+        if (taxon instanceof IndicatorSpecies) {
+            IndicatorSpecies species = (IndicatorSpecies) taxon;
+            return new String[] { species.getScientificName(), species.getCommonName() };
+        }
+        return new String[] { ((TaxonGroup) taxon).getName() };
+    }
+
+    private static String normalise(String name) {
+        return name == null ? null : name.toUpperCase();
+    }
+
+    /**
+     * @return the number of portal indexes held.
+     */
+    public int size() {
+        return indexes.size();
+    }
+
+    /**
+     * @return the number of trigram postings held by the portal indexes.
+     */
+    public long getPostingCount() {
+        long count = 0;
+        for (PortalIndex index : indexes.values()) {
+            index.lock.readLock().lock();
+            try {
+                count += index.species.getPostingCount() + index.groups.getPostingCount();
+            } finally {
+                index.lock.readLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of portal indexes that have been built.
+     */
+    public long getBuildCount() {
+        return builds.get();
+    }
+
+    /**
+     * @return the total time spent building portal indexes in milliseconds.
+     */
+    public long getBuildMillis() {
+        return buildNanos.get() / 1000000;
+    }
+
+    /**
+     * @return the number of taxa and groups added, modified or removed
+     * incrementally.
+     */
+    public long getUpdateCount() {
+        return updates.get();
+    }
+
+    /**
+     * @return the number of searches answered.
+     */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    /**
+     * @return the mean time taken to answer a search in microseconds,
+     * including the time taken to build missing indexes.
+     */
+    public long getMeanQueryMicros() {
+        long count = queries.get();
+        return count == 0 ? 0 : queryNanos.get() / count / 1000;
+    }
+
+    /**
+     * A normalised search.
+     */
+    private static class Query {
+        private String whole;
+        private String[] words;
+
+        /**
+         * @param name the search.
+         * @param separators the pattern that separates the words of the
+         * search, which must appear in the name in order.
+         */
+        public Query(String name, String separators) {
+            whole = normalise(name == null ? "" : name.trim());
+            List<String> list = new ArrayList<String>();
+            for (String word : whole.split(separators)) {
+                if (!word.isEmpty()) {
+                    list.add(word);
+                }
+            }
+            words = list.toArray(new String[list.size()]);
+        }
+
+        /**
+         * @return false if the search contains a single character wildcard
+         * that the index does not support.
+         */
+        public boolean isSearchable() {
+            return whole.indexOf('_') < 0;
+        }
+
+        /**
+         * @return the rank of the match or {@link TaxonNameIndex#NO_MATCH}.
+         */
+        public int match(String name) {
+            if (name == null) {
+                return NO_MATCH;
+            }
+            int pos = 0;
+            int first = -1;
+            for (String word : words) {
+                int i = name.indexOf(word, pos);
+                if (i < 0) {
+                    return NO_MATCH;
+                }
+                if (first < 0) {
+                    first = i;
+                }
+                pos = i + word.length();
+            }
+            if (name.equals(whole)) {
+                return RANK_EXACT;
+            }
+            return first == 0 ? RANK_PREFIX : RANK_INFIX;
+        }
+    }
+
+    /**
+     * The names of a set of taxa or groups and their trigrams.
+     */
+    private static class NameIndex {
+        private Map<Integer, String[]> names = new HashMap<Integer, String[]>();
+        private Map<String, IntList> grams = new HashMap<String, IntList>();
+
+        public int size() {
+            return names.size();
+        }
+
+        public long getPostingCount() {
+            long count = 0;
+            for (IntList postings : grams.values()) {
+                count += postings.size;
+            }
+            return count;
+        }
+
+        /**
+         * Adds or replaces the names of a taxon. The taxon is removed from
+         * the postings of the trigrams of its replaced names first, so each
+         * trigram lists a taxon once.
+         */
+        public void put(Integer id, String[] values) {
+            remove(id);
+            String[] normalised = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                normalised[i] = normalise(values[i]);
+            }
+            for (String gram : getGrams(normalised)) {
+                IntList postings = grams.get(gram);
+                if (postings == null) {
+                    postings = new IntList();
+                    grams.put(gram, postings);
+                }
+                postings.add(id);
+            }
+            names.put(id, normalised);
+        }
+
+        /**
+         * Removes the names of a taxon and the taxon from the postings of
+         * their trigrams.
+         */
+        public void remove(Integer id) {
+            String[] previous = names.remove(id);
+            if (previous == null) {
+                return;
+            }
+            for (String gram : getGrams(previous)) {
+                IntList postings = grams.get(gram);
+                if (postings != null) {
+                    postings.remove(id);
+                    if (postings.size == 0) {
+                        grams.remove(gram);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the distinct trigrams of the normalised names.
+         */
+        private static Set<String> getGrams(String[] normalised) {
+            Set<String> result = new HashSet<String>();
+            for (String name : normalised) {
+                if (name == null) {
+                    continue;
+                }
+                for (int j = 0; j + GRAM_LENGTH <= name.length(); j++) {
+                    result.add(name.substring(j, j + GRAM_LENGTH));
+                }
+            }
+            return result;
+        }
+
+        public void search(Query query, Set<Integer> excludedIds, TopHits hits) {
+            IntList candidates = null;
+            for (String word : query.words) {
+                for (int j = 0; j + GRAM_LENGTH <= word.length(); j++) {
+                    IntList postings = grams.get(word.substring(j, j + GRAM_LENGTH));
+                    if (postings == null) {
+                        // nothing contains the trigram
+                        return;
+                    }
+                    if (candidates == null || postings.size < candidates.size) {
+                        candidates = postings;
+                    }
+                }
+            }
+
+            if (candidates == null) {
+                // too short to use the trigrams
+                for (Map.Entry<Integer, String[]> entry : names.entrySet()) {
+                    if (!excludedIds.contains(entry.getKey())) {
+                        hits.match(entry.getKey(), entry.getValue(), query);
+                    }
+                }
+            } else {
+                for (int i = 0; i < candidates.size; i++) {
+                    Integer id = candidates.values[i];
+                    if (!excludedIds.contains(id)) {
+                        String[] values = names.get(id);
+                        if (values != null) {
+                            hits.match(id, values, query);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static class PortalIndex {
+        private ReadWriteLock lock = new ReentrantReadWriteLock();
+        private NameIndex species = new NameIndex();
+        private NameIndex groups = new NameIndex();
+    }
+
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size = 0;
+
+        public void add(int value) {
+            if (size == values.length) {
+                int[] grown = new int[values.length * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = value;
+        }
+
+        /**
+         * Removes a value, moving the last value into its place.
+         */
+        public void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    values[i] = values[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Hit {
+        private Integer id;
+        private int rank;
+        private String name;
+
+        public Hit(Integer id, int rank, String name) {
+            this.id = id;
+            this.rank = rank;
+            this.name = name;
+        }
+    }
+
+    private static final Comparator<Hit> HIT_ORDER = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit h1, Hit h2) {
+            if (h1.rank != h2.rank) {
+                return h1.rank < h2.rank ? -1 : 1;
+            }
+            if (h1.name.length() != h2.name.length()) {
+                return h1.name.length() < h2.name.length() ? -1 : 1;
+            }
+            int result = h1.name.compareTo(h2.name);
+            return result != 0 ? result : h1.id.compareTo(h2.id);
+        }
+    };
+
+    /**
+     * Keeps the best matches, the worst of them at the head of the queue.
+     */
+    private static class TopHits {
+        private int maxResults;
+        private PriorityQueue<Hit> queue;
+
+        public TopHits(int maxResults) {
+            this.maxResults = maxResults;
+            this.queue = new PriorityQueue<Hit>(Math.min(maxResults, 64) + 1, Collections.reverseOrder(HIT_ORDER));
+        }
+
+        public void match(Integer id, String[] names, Query query) {
+            Hit best = null;
+            for (String name : names) {
+                String normalised = normalise(name);
+                int rank = query.match(normalised);
+                if (rank != NO_MATCH && (best == null || rank < best.rank ||
+                        (rank == best.rank && normalised.length() < best.name.length()))) {
+                    best = new Hit(id, rank, normalised);
+                }
+            }
+            if (best != null && maxResults > 0) {
+                queue.add(best);
+                if (queue.size() > maxResults) {
+                    queue.poll();
+                }
+            }
+        }
+
+        public List<Integer> getIds() {
+            List<Hit> sorted = new ArrayList<Hit>(queue);
+            Collections.sort(sorted, HIT_ORDER);
+            List<Integer> ids = new ArrayList<Integer>(sorted.size());
+            for (Hit hit : sorted) {
+                ids.add(hit.id);
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * The taxa changed by a transaction, keyed by instance since new taxa do
+     * not have an id when they are saved. The value is true if the taxon
+     * was deleted.
+     */
+    private static class PendingTransaction {
+        private Object tx;
+        private Map<Object, Boolean> changes = new IdentityHashMap<Object, Boolean>();
+
+        public PendingTransaction(Object tx) {
+            this.tx = tx;
+        }
+
+        /**
+         * @return true if the transaction has changed the taxa of the portal.
+         */
+        public boolean affects(Integer portalId) {
+            for (Object taxon : changes.keySet()) {
+                Integer taxonPortalId = getPortalId(taxon);
+                if (taxonPortalId == null || taxonPortalId.equals(portalId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
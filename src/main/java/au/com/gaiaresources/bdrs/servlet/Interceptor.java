@@ -40,7 +40,7 @@ import au.com.gaiaresources.bdrs.model.user.User;
 import au.com.gaiaresources.bdrs.model.user.UserDAO;
 import au.com.gaiaresources.bdrs.security.Role;
 import au.com.gaiaresources.bdrs.security.UserDetails;
-import au.com.gaiaresources.bdrs.service.menu.MenuService;
+import au.com.gaiaresources.bdrs.service.menu.MenuCache;
 import au.com.gaiaresources.bdrs.service.mode.AbstractApplicationMode;
 import au.com.gaiaresources.bdrs.service.mode.ApplicationModeService;
 import au.com.gaiaresources.bdrs.service.property.PropertyService;
@@ -69,7 +69,7 @@ public class Interceptor implements HandlerInterceptor {
     private PortalDAO portalDAO;
 
     @Autowired
-    private MenuService menuService;
+    private MenuCache menuCache;
     @Autowired
     private ThemeDAO themeDAO;
     @Autowired
@@ -187,11 +187,11 @@ public class Interceptor implements HandlerInterceptor {
         } else {
             // Rebind the Portal to the current session.
             c.setPortal(portalDAO.getPortal(c.getPortal().getId()));
-            c.setTheme(themeDAO.getActiveTheme(c.getPortal()));
+            c.setTheme(menuCache.getActiveTheme(c.getPortal()));
         }
 
         // bind the menu to the context
-        List<MenuItem> menu = menuService.getMenus(c.getUser());
+        List<MenuItem> menu = menuCache.getMenu(c.getPortal(), c.getUser());
         if (menu == null || menu.size() < 1) {
             // write an error message so the user will know why they don't have
             // any menus
@@ -236,7 +236,7 @@ public class Interceptor implements HandlerInterceptor {
                 if (theme == null && portal != null
                         && !(modelAndView.getView() instanceof FileView)
                         && !(modelAndView.getView() instanceof RedirectView)) {
-                    theme = themeDAO.getActiveTheme(portal);
+                    theme = menuCache.getActiveTheme(portal);
                 }
             }
 
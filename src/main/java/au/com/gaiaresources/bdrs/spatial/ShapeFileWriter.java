@@ -1,9 +1,15 @@
 package au.com.gaiaresources.bdrs.spatial;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.nio.charset.Charset;
@@ -11,19 +17,24 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import au.com.gaiaresources.bdrs.model.taxa.AttributeValueUtil;
 import org.apache.log4j.Logger;
 import org.codehaus.plexus.util.StringUtils;
+import org.hibernate.Session;
 import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureWriter;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.shapefile.ShapefileDataStoreFactory;
 import org.geotools.data.shapefile.ShapefileFeatureStore;
@@ -37,6 +48,7 @@ import org.opengis.feature.simple.SimpleFeatureType;
 
 import au.com.gaiaresources.bdrs.attribute.AttributeDictionaryFactory;
 import au.com.gaiaresources.bdrs.config.AppContext;
+import au.com.gaiaresources.bdrs.db.ScrollableResults;
 import au.com.gaiaresources.bdrs.deserialization.record.RecordKeyLookup;
 import au.com.gaiaresources.bdrs.model.location.Location;
 import au.com.gaiaresources.bdrs.model.method.CensusMethod;
@@ -91,6 +103,9 @@ public class ShapeFileWriter {
     
     private static final String BYTE_ENCODING = "UTF-8";
     
+    // the features of a streamed export are held here until the schema is known
+    private static final String FEATURE_SPOOL_FILE = "features.spool";
+    
     private SimpleDateFormat shpDateFormat = new SimpleDateFormat("dd MMM yyyy");
     
     private SimpleDateFormat metadataDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
@@ -140,6 +155,98 @@ public class ShapeFileWriter {
         return createZipShapefile(surveyList, cmList, shapefileTypeSet, recList, accessor, DEFAULT_SRID);
     }
     
+    /**
+     * Streams the records into a zipped shapefile package written directly to the
+     * output stream. Unlike {@link #exportRecords(List, User)} the records are never
+     * held in memory together. The results are read once, with a forward only cursor,
+     * and the values of each feature are spooled to a temporary file while the surveys,
+     * census methods and geometry types that make up the shapefile schema are collected.
+     * Once the schema is known the spooled features are appended to the .shp/.dbf/.shx
+     * files. The session is cleared every {@link ScrollableResults#RESULTS_BATCH_SIZE} 
+     * records.
+     * 
+     * @param sc the records to export. The results are only read once so they do not
+     * need to be rewindable.
+     * @param sesh the session used to retrieve the records.
+     * @param survey if not null, only records in this survey will be exported.
+     * @param accessor User requesting shape file export operation.
+     * @param out the stream to write the zipped shapefile package to. The stream is not closed.
+     * @return true if a shapefile package was written, false if there were no records to export.
+     * @throws Exception
+     */
+    public boolean exportRecords(ScrollableResults<Record> sc, Session sesh, Survey survey, 
+            User accessor, OutputStream out) throws Exception {
+        
+        Set<Integer> surveyIdSet = new HashSet<Integer>();
+        Set<Integer> cmIdSet = new HashSet<Integer>();
+        Set<ShapefileType> shapefileTypeSet = new HashSet<ShapefileType>();
+        boolean recordWithoutCensusMethod = false;
+        boolean hasRecords = false;
+        
+        SpatialUtil spatialUtil = new SpatialUtilFactory().getLocationUtil(DEFAULT_SRID);
+        RecordKeyLookup klu = new ShapefileRecordKeyLookup();
+        
+        File tempdir = FileUtils.createTempDirectory("createShp");
+        try {
+            RecordFeatureSpool spool = new RecordFeatureSpool(new File(tempdir, FEATURE_SPOOL_FILE));
+            try {
+                int recordCount = 0;
+                while (sc.hasMoreElements()) {
+                    Record r = sc.nextElement();
+                    if (isRecordInSurvey(r, survey)) {
+                        hasRecords = true;
+                        if (r.getSurvey() != null) {
+                            surveyIdSet.add(r.getSurvey().getId());
+                        }
+                        if (r.getCensusMethod() != null) {
+                            cmIdSet.add(r.getCensusMethod().getId());
+                        } else {
+                            recordWithoutCensusMethod = true;
+                        }
+                        RecordFeature feature = createRecordFeature(r, accessor, spatialUtil, klu);
+                        if (feature != null) {
+                            shapefileTypeSet.add(feature.shapefileType);
+                            spool.write(feature);
+                        }
+                    }
+                    // evict to ensure garbage collection
+                    if (++recordCount % ScrollableResults.RESULTS_BATCH_SIZE == 0) {
+                        sesh.clear();
+                    }
+                }
+            } finally {
+                spool.close();
+            }
+            
+            if (!hasRecords) {
+                // no point writing a non empty shapefile since the user is not
+                // expecting a template in this download but a populated shapefile
+                return false;
+            }
+            
+            List<Survey> surveyList = new ArrayList<Survey>(surveyIdSet.size());
+            for (Integer surveyId : surveyIdSet) {
+                surveyList.add((Survey) sesh.get(Survey.class, surveyId));
+            }
+            List<CensusMethod> cmList = new ArrayList<CensusMethod>(cmIdSet.size());
+            for (Integer cmId : cmIdSet) {
+                cmList.add((CensusMethod) sesh.get(CensusMethod.class, cmId));
+            }
+            
+            Enumeration<RecordFeature> features = spool.read();
+            try {
+                List<File> filesToCompress = writeRecordShapefiles(tempdir, surveyList, cmList, shapefileTypeSet,
+                        true, recordWithoutCensusMethod, features);
+                ZipUtils.compressToOpenStream(filesToCompress, out);
+            } finally {
+                spool.close();
+            }
+        } finally {
+            org.apache.commons.io.FileUtils.deleteQuietly(tempdir);
+        }
+        return true;
+    }
+    
     /**
      * Create a zip file containing .shp, .dbf, .prj, .shx files. 
      * 
@@ -184,19 +291,53 @@ public class ShapeFileWriter {
      * @return Zipped shapefile package.
      * @throws Exception
      */
-    @SuppressWarnings("StringBufferReplaceableByString")
     private File createZipShapefile(List<Survey> surveyList, List<CensusMethod> cmList,
             Set<ShapefileType> shapefileTypeSet, List<Record> recList, User accessor, int srid) throws Exception {
         
+        boolean hasRecords = !recList.isEmpty();
+        boolean recordWithoutCensusMethod = false;
+        for (Record rec : recList) {
+            if (rec.getCensusMethod() == null) {
+                recordWithoutCensusMethod = true;
+                break;
+            }
+        }
+        
+        File tempdir = FileUtils.createTempDirectory("createShp");
+        List<File> filesToCompress = writeRecordShapefiles(tempdir, surveyList, cmList, shapefileTypeSet,
+                hasRecords, recordWithoutCensusMethod, new RecordFeatureEnumeration(recList.iterator(), accessor, srid));
+        
+        File outfile = new File(tempdir, getRecordBaseFilename(hasRecords) + ".zip");
+        ZipUtils.compress(filesToCompress, outfile);
+        
+        return outfile; 
+    }
+    
+    /**
+     * Writes the shape files and supporting files for a record export (or import template)
+     * into the temporary directory. Features are appended to the shape files one record 
+     * at a time so the features may be streamed.
+     * 
+     * @param tempdir Directory to write the files into.
+     * @param surveyList List of surveys.
+     * @param cmList List of census methods.
+     * @param shapefileTypeSet Set of shape file types (e.g. point, line, polygon).
+     * @param hasRecords true if this is a record export, false if this is an import template.
+     * @param recordWithoutCensusMethod true if any of the records do not have a census method.
+     * @param features The features of the records to write.
+     * @return The list of files that make up the shapefile package.
+     * @throws Exception
+     */
+    @SuppressWarnings("StringBufferReplaceableByString")
+    private List<File> writeRecordShapefiles(File tempdir, List<Survey> surveyList, List<CensusMethod> cmList,
+            Set<ShapefileType> shapefileTypeSet, boolean hasRecords, boolean recordWithoutCensusMethod,
+            Enumeration<RecordFeature> features) throws Exception {
+        
         if (shapefileTypeSet.isEmpty()) {
             // There are no shape file types so we will default to a point type.
             shapefileTypeSet.add(ShapefileType.POINT);
         }
         
-        SpatialUtil spatialUtil = new SpatialUtilFactory().getLocationUtil(srid);
-        
-        boolean hasRecords = !recList.isEmpty();
-        
         // we sort by database id's to achieve a deterministic order.
         Collections.sort(surveyList);
         Collections.sort(cmList);
@@ -220,13 +361,8 @@ public class ShapeFileWriter {
                     break;
                 }
             }
-            // yes we are spinning through this list yet again. I preferred it to
-            // passing yet another parameter into this method
-            for (Record rec : recList) {
-                if (rec.getCensusMethod() == null) {
-                    taxonomic = true;
-                    break;
-                }
+            if (recordWithoutCensusMethod) {
+                taxonomic = true;
             }
         }
         
@@ -234,25 +370,21 @@ public class ShapeFileWriter {
         RecordKeyLookup klu = new ShapefileRecordKeyLookup();
         Map<Attribute, Object> attrNameMap = attrDictFact.createNameKeyDictionary(surveyList, null, cmList);
         
+        // Records may be loaded in a different session to the surveys so
+        // the attribute names are looked up by id.
+        Map<Integer, Object> attrNameByIdMap = new HashMap<Integer, Object>(attrNameMap.size());
+        for (Entry<Attribute, Object> entry : attrNameMap.entrySet()) {
+            attrNameByIdMap.put(entry.getKey().getId(), entry.getValue());
+        }
+        
         Map<ShapefileType, ShapeFileWriterContext> contextMap = new HashMap<ShapefileType, ShapeFileWriterContext>();
         Map<ShapefileType, ShapefileDataStore> datastoreMap = new HashMap<ShapefileType, ShapefileDataStore>();
-        Map<ShapefileType, List<ShapefileFeature>> writeFeatureMap = new HashMap<ShapefileType, List<ShapefileFeature>>();
         
         for (ShapefileType shpType : shapefileTypeSet) {
             contextMap.put(shpType, new ShapeFileWriterContext(shpType, surveyList, cmList, ShapeFileWriterContext.FEATURE_RECORD));
-            writeFeatureMap.put(shpType, new LinkedList<ShapefileFeature>());
         }
         
-        String baseFilename;
-        if (recList.isEmpty()) {
-            // is a record import template...
-            baseFilename = "record_import_template";
-        } else {
-            // is a record export
-            baseFilename = "record_export";
-        }
-        File tempdir = FileUtils.createTempDirectory("createShp");
-        
+        String baseFilename = getRecordBaseFilename(hasRecords);
         
         ShapeFileWriterContext contextForDescriptions = null;
         // 1 shape file for each output shapefile type
@@ -321,63 +453,9 @@ public class ShapeFileWriter {
             newDataStore.forceSchemaCRS(DefaultGeographicCRS.WGS84);
         }
         
-        // write records, build up write maps
-        for (Record rec : recList) {
-            // will throw an exception if we find a geometry we do not expect...
-            ShapefileType recordShpType = getShapefileTypefromGeometry(rec.getGeometry());
-            if (recordShpType != null) {
-             // only process the record if it is one of the requested geometry types.
-                if (shapefileTypeSet.contains(recordShpType)) {
-                    Map<String, Object> featureAttr = new LinkedHashMap<String, Object>();
-                    
-                    AccessControlledRecordAdapter recAdapter = new AccessControlledRecordAdapter(rec, accessor);
-                    
-                    // add record data here!
-                    featureAttr.put(klu.getRecordIdKey(), recAdapter.getId());
-                    
-                    featureAttr.put(KEY_RECORD_OWNER, recAdapter.getUser().getFirstName() + " " + recAdapter.getUser().getLastName());
-                    
-                    if (recAdapter.getNumber() != null) {
-                        featureAttr.put(klu.getIndividualCountKey(), recAdapter.getNumber());
-                    }
-                    
-                    if (recAdapter.getWhen() != null) {
-                        featureAttr.put(klu.getDateKey(), shpDateFormat.format(recAdapter.getWhen()));
-                    }
-                    
-                    if (recAdapter.getNotes() != null) {
-                        featureAttr.put(klu.getNotesKey(), recAdapter.getNotes());
-                    }
-                    
-                    if (recAdapter.getAccuracyInMeters() != null) {
-                        featureAttr.put(klu.getAccuracyKey(), recAdapter.getAccuracyInMeters());
-                    }
-
-                    if (recAdapter.getGpsAltitude() != null) {
-                        featureAttr.put(klu.getGpsAltitudeKey(), recAdapter.getGpsAltitude());
-                    }
-                    
-                    if (recAdapter.getSpecies() != null) {
-                        featureAttr.put(klu.getSpeciesNameKey(), recAdapter.getSpecies().getScientificName());
-                    }
-                    if (recAdapter.getNumber() != null) {
-                        featureAttr.put(klu.getIndividualCountKey(), recAdapter.getNumber());
-                    }
-                    
-                    writeAttributeValues(recAdapter.getAttributes(), attrNameMap, featureAttr);
-                    
-                    ShapefileFeature feature = new ShapefileFeature(spatialUtil.transform(recAdapter.getGeometry()), featureAttr);
-                    writeFeatureMap.get(recordShpType).add(feature);
-                }
-            }
-        }
+        // The supporting files are written before the features because writing 
+        // the features may clear the session that the surveys were loaded in.
         
-        for (ShapefileType shpType : shapefileTypeSet) {
-            writeFeatures(datastoreMap.get(shpType), writeFeatureMap.get(shpType));
-        }
-        
-        File outfile = new File(tempdir, baseFilename + ".zip");
-
         // File for field descriptions
         OutputStreamWriter descFileWriter = null;
         try {
@@ -393,9 +471,9 @@ public class ShapeFileWriter {
             descFileWriter.write(newline);
             descFileWriter.write(newline);
             
-            for (Survey survey : surveyList) {
-                if (survey != null && survey.getId() != null) {
-                    descFileWriter.write(survey.getId().toString() + FIELD_DESCRIPTION_FILE_DELIM + survey.getName());
+            for (Survey s : surveyList) {
+                if (s != null && s.getId() != null) {
+                    descFileWriter.write(s.getId().toString() + FIELD_DESCRIPTION_FILE_DELIM + s.getName());
                     descFileWriter.write(newline);
                 }
             }
@@ -460,9 +538,9 @@ public class ShapeFileWriter {
             
             // for building the ID arrays in the helper file....
             List<String> surveyIds = new ArrayList<String>();
-            for (Survey survey : surveyList) {
-                if (survey != null && survey.getId() != null) {
-                    surveyIds.add(survey.getId().toString());
+            for (Survey s : surveyList) {
+                if (s != null && s.getId() != null) {
+                    surveyIds.add(s.getId().toString());
                 }
             }
             List<String> cmIds = new ArrayList<String>();
@@ -515,18 +593,18 @@ public class ShapeFileWriter {
             Map<String, Object> mdParam = new HashMap<String, Object>();
             
             if (surveyList.size() == 1) {
-                Survey survey = surveyList.get(0);
+                Survey s = surveyList.get(0);
                 mdParam.put("shpPurpose", "Shape file template for making new recordings for the Biological Data Recording System (BDRS)");
-                mdParam.put("surveyDescription", survey.getDescription());
+                mdParam.put("surveyDescription", s.getDescription());
                 mdParam.put("westBoundLongitude", "-180");
                 mdParam.put("eastBoundLongitude", "180");
                 mdParam.put("northBoundLatitude", "90");
                 mdParam.put("southBoundLatitude", "-90");
                 mdParam.put("responsiblePerson", "");
                 mdParam.put("responsibleOrg", "");
-                mdParam.put("shpTitle",survey.getName());
+                mdParam.put("shpTitle",s.getName());
                 mdParam.put("dateProduced", metadataDateFormat.format(new Date()));
-                mdParam.put("surveyStartDate", metadataDateFormat.format(survey.getStartDate()));
+                mdParam.put("surveyStartDate", metadataDateFormat.format(s.getStartDate()));
             } else {
                 mdParam.put("shpPurpose", "Shape file template for making new recordings for the Biological Data Recording System (BDRS)");
                 mdParam.put("surveyDescription", "Log into your BDRS site to see detailed information about the surveys in this shapefile");
@@ -552,6 +630,35 @@ public class ShapeFileWriter {
             }
         }
         
+        // write records straight into the shape files
+        Map<ShapefileType, FeatureWriter<SimpleFeatureType, SimpleFeature>> featureWriterMap = 
+            new HashMap<ShapefileType, FeatureWriter<SimpleFeatureType, SimpleFeature>>();
+        try {
+            for (Entry<ShapefileType, ShapefileDataStore> entry : datastoreMap.entrySet()) {
+                ShapefileDataStore ds = entry.getValue();
+                // auto commit so features go straight to disk instead of 
+                // being held in the transaction state.
+                featureWriterMap.put(entry.getKey(), 
+                        ds.getFeatureWriterAppend(ds.getSchema().getTypeName(), org.geotools.data.Transaction.AUTO_COMMIT));
+            }
+            
+            while (features.hasMoreElements()) {
+                RecordFeature rf = features.nextElement();
+                // only process the record if it is one of the requested geometry types.
+                if (shapefileTypeSet.contains(rf.shapefileType)) {
+                    Map<String, Object> featureAttr = new LinkedHashMap<String, Object>(rf.values);
+                    writeAttributeValues(rf.attributeValues, attrNameByIdMap, featureAttr);
+                    
+                    ShapefileFeature feature = new ShapefileFeature(rf.geometry, featureAttr);
+                    writeFeature(featureWriterMap.get(rf.shapefileType), feature);
+                }
+            }
+        } finally {
+            for (FeatureWriter<SimpleFeatureType, SimpleFeature> featureWriter : featureWriterMap.values()) {
+                featureWriter.close();
+            }
+        }
+        
         List<File> filesToCompress = new ArrayList<File>();
         
         for (ShapefileType shpType : shapefileTypeSet) {
@@ -565,9 +672,79 @@ public class ShapeFileWriter {
         filesToCompress.add(FileUtils.getFileFromDir(tempdir, HELPER_FILE));
         filesToCompress.add(FileUtils.getFileFromDir(tempdir, METADATA_FILE));
         
-        ZipUtils.compress(filesToCompress, outfile);
+        return filesToCompress;
+    }
+    
+    private String getRecordBaseFilename(boolean hasRecords) {
+        // is a record export or a record import template...
+        return hasRecords ? "record_export" : "record_import_template";
+    }
+    
+    /**
+     * Creates the feature of a record. The geometry is transformed to the output SRID
+     * and the values are the values the accessor may see.
+     * 
+     * @param rec the record.
+     * @param accessor User requesting shape file export operation.
+     * @param spatialUtil transforms the geometry to the output SRID.
+     * @param klu the keys of the record values.
+     * @return the feature, or null if the record does not have a geometry that can be 
+     * written to a shape file.
+     */
+    private RecordFeature createRecordFeature(Record rec, User accessor, SpatialUtil spatialUtil, RecordKeyLookup klu) {
+        // will throw an exception if we find a geometry we do not expect...
+        ShapefileType recordShpType = getShapefileTypefromGeometry(rec.getGeometry());
+        if (recordShpType == null) {
+            return null;
+        }
         
-        return outfile; 
+        RecordFeature feature = new RecordFeature();
+        feature.shapefileType = recordShpType;
+        Map<String, Object> featureAttr = feature.values;
+        
+        AccessControlledRecordAdapter recAdapter = new AccessControlledRecordAdapter(rec, accessor);
+        
+        // add record data here!
+        featureAttr.put(klu.getRecordIdKey(), recAdapter.getId());
+        
+        featureAttr.put(KEY_RECORD_OWNER, recAdapter.getUser().getFirstName() + " " + recAdapter.getUser().getLastName());
+        
+        if (recAdapter.getNumber() != null) {
+            featureAttr.put(klu.getIndividualCountKey(), recAdapter.getNumber());
+        }
+        
+        if (recAdapter.getWhen() != null) {
+            featureAttr.put(klu.getDateKey(), shpDateFormat.format(recAdapter.getWhen()));
+        }
+        
+        if (recAdapter.getNotes() != null) {
+            featureAttr.put(klu.getNotesKey(), recAdapter.getNotes());
+        }
+        
+        if (recAdapter.getAccuracyInMeters() != null) {
+            featureAttr.put(klu.getAccuracyKey(), recAdapter.getAccuracyInMeters());
+        }
+
+        if (recAdapter.getGpsAltitude() != null) {
+            featureAttr.put(klu.getGpsAltitudeKey(), recAdapter.getGpsAltitude());
+        }
+        
+        if (recAdapter.getSpecies() != null) {
+            featureAttr.put(klu.getSpeciesNameKey(), recAdapter.getSpecies().getScientificName());
+        }
+        
+        feature.attributeValues = getAttributeValues(recAdapter.getAttributes());
+        feature.geometry = spatialUtil.transform(recAdapter.getGeometry());
+        return feature;
+    }
+    
+    private boolean isRecordInSurvey(Record rec, Survey survey) {
+        if (survey == null) {
+            return true;
+        }
+        // compare by id as the records may be loaded after the session has been cleared.
+        return rec.getSurvey() != null && rec.getSurvey().getId() != null 
+                && rec.getSurvey().getId().equals(survey.getId());
     }
     
     private ShapefileType getShapefileTypefromGeometry(Geometry geom) {
@@ -586,6 +763,24 @@ public class ShapeFileWriter {
         }
     }
     
+    /**
+     * Appends a single feature to a shape file.
+     * @param featureWriter the append writer for the shape file.
+     * @param f the feature to write.
+     * @throws IOException
+     */
+    private void writeFeature(FeatureWriter<SimpleFeatureType, SimpleFeature> featureWriter, ShapefileFeature f) throws IOException {
+        SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(featureWriter.getFeatureType());
+        for (Entry<String, Object> entry : f.getAttributes().entrySet()) {
+            featureBuilder.set(entry.getKey(), entry.getValue());
+        }
+        featureBuilder.set(ShapefileFields.THE_GEOM, f.getGeometry());
+        
+        SimpleFeature feature = featureWriter.next();
+        feature.setAttributes(featureBuilder.buildFeature(null).getAttributes());
+        featureWriter.write();
+    }
+    
     private void writeFeatures(ShapefileDataStore ds, List<ShapefileFeature> featureList) throws IOException {
         
         org.geotools.data.Transaction shapefileTransaction = new DefaultTransaction("create");
@@ -642,13 +837,108 @@ public class ShapeFileWriter {
         return filenameBuilder.toString();
     }
     
-    private void writeAttributeValues(Set<AttributeValue> avSet, Map<Attribute, Object> attrNameMap, Map<String, Object> targetMap) {
+    /**
+     * Converts the attribute values of a record to the values written to the shape file.
+     * The values are keyed by attribute id as the names of the attributes depend on all
+     * of the surveys and census methods in the export.
+     * 
+     * @param avSet the attribute values of the record.
+     * @return the values to write keyed by attribute id.
+     */
+    private LinkedHashMap<Integer, Object> getAttributeValues(Set<AttributeValue> avSet) {
+        LinkedHashMap<Integer, Object> values = new LinkedHashMap<Integer, Object>();
         for (AttributeValue av : avSet) {
             Attribute a = av.getAttribute();
+            if (values.containsKey(a.getId())) {
+                // This can happen if the database contains more than one attribute value for an attribute
+                // within a single record. Previously we threw an exception but instead we will write out
+                // the first value and ignore the rest.
+                log.error("attribute value already exists, we should have no collisions : " 
+                          + "attribute name = " + a.getName() + ", attribute id = " + a.getId() + "\n"
+                          + "Database should only have one attribute value per each attribute per record");
+                // Skip to next attribute value.
+                continue;
+            }
+            
+            switch (a.getType()) {
+                // integer
+                case INTEGER:
+                case INTEGER_WITH_RANGE:
+                    if (av.getNumericValue() != null) {
+                        values.put(a.getId(), av.getNumericValue().toBigInteger().intValue());
+                    }
+                    break;
+                    
+                // float
+                case DECIMAL:
+                    if (av.getNumericValue() != null) {
+                        values.put(a.getId(), av.getNumericValue().doubleValue());
+                    }
+                    break;
+                    
+                case DATE: // dates are written as strings...
+                    if (av.getDateValue() != null) {
+                        values.put(a.getId(), shpDateFormat.format(av.getDateValue()));    
+                    }
+                    break;
+                    
+                // string
+                case TIME:
+                case REGEX:
+                case BARCODE:
+                case STRING:
+                case STRING_AUTOCOMPLETE:
+                case TEXT:
+                case STRING_WITH_VALID_VALUES:
+                case MULTI_CHECKBOX:
+                case SINGLE_CHECKBOX:
+                case MULTI_SELECT:
+                    if (av.getStringValue() != null) {
+                        values.put(a.getId(), av.getStringValue());
+                    }
+                    break;
+                case SPECIES:
+                    if (av.getSpecies() != null && StringUtils.isNotEmpty(av.getSpecies().getScientificName())) {
+                        values.put(a.getId(), av.getSpecies().getScientificName());
+                    }
+                    break;
+                // write download link
+                case IMAGE:
+                case AUDIO:
+                case VIDEO:
+                case FILE:
+                    if (av.getStringValue() != null) {
+                        values.put(a.getId(), AttributeValueUtil.getDownloadURL(serverURL, av));
+                    }
+                    break;
+
+                // not supported
+                case CENSUS_METHOD_ROW:
+                case CENSUS_METHOD_COL:
+                    // don't add
+                    break;
+                case HTML:
+                case HTML_RAW:
+                case HTML_NO_VALIDATION:
+                case HTML_COMMENT:
+                case HTML_HORIZONTAL_RULE:
+                    // display only fields, don't add
+                    break;
+                // error, not expected
+                default:
+                    // intended to cause regression failure when a new attribute type is not handled
+                    throw new IllegalStateException("An attribute type is not handled properly: " + a.getType());
+            }
+        }
+        return values;
+    }
+    
+    private void writeAttributeValues(Map<Integer, Object> values, Map<Integer, Object> attrNameMap, Map<String, Object> targetMap) {
+        for (Entry<Integer, Object> entry : values.entrySet()) {
             // shape file attributes should always be strings
-            Object attrName = attrNameMap.get(a);
+            Object attrName = attrNameMap.get(entry.getKey());
             if (attrName == null) {
-                log.error(String.format("cannot find name in attrNameMap for attribute id : %s and description : %s", a.getId(), a.getDescription()));
+                log.error(String.format("cannot find name in attrNameMap for attribute id : %s", entry.getKey()));
                 // this can be caused by removing an attribute from a survey/census method but the record
                 // still may have an AttributeValue associated with the Attribute. Log the error but continue
                 // processing the record.
@@ -660,87 +950,12 @@ public class ShapeFileWriter {
             
             if (attrName instanceof String) {
                 String name = (String) attrName;
-                
                 if (targetMap.containsKey(name)) {
-                    // This can happen if the database contains more than one attribute value for an attribute
-                    // within a single record. Previously we threw an exception but instead we will write out
-                    // the first value and ignore the rest. Print a lo
-                    log.error("key already exists in target map, we should have no collisions : " 
-                              + name + " for attribute name = " + a.getName() + ", attribute id = " + a.getId() + "\n"
-                              + "Database should only have one attribute value per each attribute per record");
-                    // Skip to next attribute value.
+                    log.error("key already exists in target map, we should have no collisions : " + name 
+                              + " for attribute id = " + entry.getKey());
                     continue;
                 }
-                
-                switch (a.getType()) {
-                    // integer
-                    case INTEGER:
-                    case INTEGER_WITH_RANGE:
-                        if (av.getNumericValue() != null) {
-                            targetMap.put(name, av.getNumericValue().toBigInteger().intValue());
-                        }
-                        break;
-                        
-                    // float
-                    case DECIMAL:
-                        if (av.getNumericValue() != null) {
-                            targetMap.put(name, av.getNumericValue().doubleValue());
-                        }
-                        break;
-                        
-                    case DATE: // dates are written as strings...
-                        if (av.getDateValue() != null) {
-                            targetMap.put(name, shpDateFormat.format(av.getDateValue()));    
-                        }
-                        break;
-                        
-                    // string
-                    case TIME:
-                    case REGEX:
-                    case BARCODE:
-                    case STRING:
-                    case STRING_AUTOCOMPLETE:
-                    case TEXT:
-                    case STRING_WITH_VALID_VALUES:
-                    case MULTI_CHECKBOX:
-                    case SINGLE_CHECKBOX:
-                    case MULTI_SELECT:
-                        if (av.getStringValue() != null) {
-                            targetMap.put(name, av.getStringValue());
-                        }
-                        break;
-                    case SPECIES:
-                        if (av.getSpecies() != null && StringUtils.isNotEmpty(av.getSpecies().getScientificName())) {
-                            targetMap.put(name, av.getSpecies().getScientificName());
-                        }
-                        break;
-                    // write download link
-                    case IMAGE:
-                    case AUDIO:
-                    case VIDEO:
-                    case FILE:
-                        if (av.getStringValue() != null) {
-                            targetMap.put(name, AttributeValueUtil.getDownloadURL(serverURL, av));
-                        }
-                        break;
-
-                    // not supported
-                    case CENSUS_METHOD_ROW:
-                    case CENSUS_METHOD_COL:
-                        // don't add
-                        break;
-                    case HTML:
-                    case HTML_RAW:
-                    case HTML_NO_VALIDATION:
-                    case HTML_COMMENT:
-                    case HTML_HORIZONTAL_RULE:
-                        // display only fields, don't add
-                        break;
-                    // error, not expected
-                    default:
-                        // intended to cause regression failure when a new attribute type is not handled
-                        throw new IllegalStateException("An attribute type is not handled properly: " + a.getType());
-                }
+                targetMap.put(name, entry.getValue());
             }
         }
     }
@@ -1009,4 +1224,117 @@ public class ShapeFileWriter {
         
         return outfile; 
     }
+    
+    /**
+     * The values of a record to be written as a feature. The attribute values are
+     * keyed by attribute id, see {@link ShapeFileWriter#getAttributeValues(Set)}.
+     */
+    private static class RecordFeature implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private ShapefileType shapefileType;
+        private Geometry geometry;
+        private LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+        private LinkedHashMap<Integer, Object> attributeValues;
+    }
+    
+    /**
+     * Creates the features of a list of records as they are written.
+     */
+    private class RecordFeatureEnumeration implements Enumeration<RecordFeature> {
+        private Iterator<Record> records;
+        private User accessor;
+        private SpatialUtil spatialUtil;
+        private RecordKeyLookup klu = new ShapefileRecordKeyLookup();
+        private RecordFeature next;
+        
+        public RecordFeatureEnumeration(Iterator<Record> records, User accessor, int srid) {
+            this.records = records;
+            this.accessor = accessor;
+            this.spatialUtil = new SpatialUtilFactory().getLocationUtil(srid);
+        }
+        
+        @Override
+        public boolean hasMoreElements() {
+            while (next == null && records.hasNext()) {
+                next = createRecordFeature(records.next(), accessor, spatialUtil, klu);
+            }
+            return next != null;
+        }
+        
+        @Override
+        public RecordFeature nextElement() {
+            if (!hasMoreElements()) {
+                throw new NoSuchElementException();
+            }
+            RecordFeature feature = next;
+            next = null;
+            return feature;
+        }
+    }
+    
+    /**
+     * Holds the features of a streamed export in a temporary file so that the records
+     * only have to be read once. The features are read back in the order they were written.
+     */
+    private static class RecordFeatureSpool {
+        private File file;
+        private int count = 0;
+        private ObjectOutputStream out;
+        private ObjectInputStream in;
+        
+        public RecordFeatureSpool(File file) throws IOException {
+            this.file = file;
+            this.out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+        
+        public void write(RecordFeature feature) throws IOException {
+            out.writeObject(feature);
+            // the stream holds a reference to every object written until it is reset
+            out.reset();
+            count++;
+        }
+        
+        /**
+         * Closes the spool for writing, or closes the features that have been read.
+         */
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+        
+        public Enumeration<RecordFeature> read() throws IOException {
+            close();
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return new Enumeration<RecordFeature>() {
+                private int read = 0;
+                
+                @Override
+                public boolean hasMoreElements() {
+                    return read < count;
+                }
+                
+                @Override
+                public RecordFeature nextElement() {
+                    if (!hasMoreElements()) {
+                        throw new NoSuchElementException();
+                    }
+                    try {
+                        read++;
+                        return (RecordFeature) in.readObject();
+                    } catch (IOException ioe) {
+                        throw new IllegalStateException("Cannot read the spooled features", ioe);
+                    } catch (ClassNotFoundException cnfe) {
+                        throw new IllegalStateException("Cannot read the spooled features", cnfe);
+                    }
+                }
+            };
+        }
+    }
 }
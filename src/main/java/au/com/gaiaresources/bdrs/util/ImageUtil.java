@@ -3,8 +3,11 @@ package au.com.gaiaresources.bdrs.util;
 import org.apache.log4j.Logger;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -12,6 +15,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Iterator;
 
 
 public class ImageUtil {
@@ -52,9 +56,25 @@ public class ImageUtil {
      * @throws IOException if there is an error reading the original image.
      */
     public static BufferedImage resizeImage(InputStream inputStream, Integer width, Integer height, boolean clip) throws IOException {
-        // Resize the image as required to fit the space
         BufferedImage sourceImage = ImageIO.read(inputStream);
-        
+        if (sourceImage == null) {
+            throw new IOException("The image format is not supported");
+        }
+        return resizeImage(sourceImage, width, height, clip);
+    }
+
+    /**
+     * Returns a BufferedImage containing a scaled (to the supplied width and height) version of the supplied image.
+     *
+     * @param sourceImage the original image.
+     * @param width the desired width of the scaled image.
+     * @param height the desired height of the scaled image.
+     * @param clip true if the original image should be clipped so that the scaled image contains no blank space.
+     * @return a BufferedImage containing a scaled verison of the original image.
+     * @see #resizeImage(InputStream, Integer, Integer, boolean)
+     */
+    public static BufferedImage resizeImage(BufferedImage sourceImage, Integer width, Integer height, boolean clip) {
+        // Resize the image as required to fit the space
         if (width != null && height != null) {
             BufferedImage scaledImage = new BufferedImage(width.intValue(), height.intValue(), BufferedImage.TYPE_INT_RGB);
             Graphics2D g2_scaled = scaledImage.createGraphics();
@@ -117,6 +137,46 @@ public class ImageUtil {
         }
     }
 
+    /**
+     * Reads an image to be scaled down to the supplied size. Large images are
+     * subsampled as they are decoded, keeping at least twice the pixels of the
+     * scaled image in each direction, which is much faster and uses much less
+     * memory than decoding every pixel of the original.
+     *
+     * @param file the image file.
+     * @param width the largest width the image will be scaled to.
+     * @param height the largest height the image will be scaled to.
+     * @return the image, or null if the format of the file is not supported.
+     * @throws IOException if there is an error reading the file.
+     */
+    public static BufferedImage readImage(File file, int width, int height) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        if (in == null) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.min(reader.getWidth(0) / Math.max(1, width * 2),
+                                           reader.getHeight(0) / Math.max(1, height * 2));
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     public static void saveImage(File targetFile, BufferedImage image, String mimeType) throws FileNotFoundException, IOException {
         saveImage(targetFile, image, mimeType, 100);
     }
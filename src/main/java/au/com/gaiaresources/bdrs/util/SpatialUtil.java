@@ -3,14 +3,9 @@ package au.com.gaiaresources.bdrs.util;
 import java.math.BigDecimal;
 
 import org.apache.log4j.Logger;
-import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.CRS;
-import org.opengis.referencing.FactoryException;
-import org.opengis.referencing.NoSuchAuthorityCodeException;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.MathTransform;
-import org.opengis.referencing.operation.TransformException;
 
+import au.com.gaiaresources.bdrs.geometry.CoordinateTransformService;
+import au.com.gaiaresources.bdrs.geometry.GeometryTransformationFailedException;
 import au.com.gaiaresources.bdrs.model.survey.BdrsCoordReferenceSystem;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -25,6 +20,10 @@ import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.PrecisionModel;
 import com.vividsolutions.jts.io.WKTReader;
 
+/**
+ * Creates geometries in, and transforms geometries to, a coordinate reference
+ * system. Instances may be shared between threads, see {@link SpatialUtilFactory}.
+ */
 public class SpatialUtil {
 
     private static final int DECIMAL_PLACES_TO_TRUNCATE_TO = 6;
@@ -32,11 +31,10 @@ public class SpatialUtil {
     private Logger log = Logger.getLogger(getClass());
     
     private GeometryFactory geometryFactory;
-    private WKTReader wktReader;
-    
-    private CoordinateReferenceSystem dstCrs;
     
     private BdrsCoordReferenceSystem bdrsCrs;
+    
+    private CoordinateTransformService transformService = CoordinateTransformService.getInstance();
 
     /**
      * ctor
@@ -45,15 +43,9 @@ public class SpatialUtil {
      */
     public SpatialUtil(int srid) {
         geometryFactory = new GeometryFactory(new PrecisionModel(), srid);
-        wktReader = new WKTReader(geometryFactory);
         bdrsCrs = BdrsCoordReferenceSystem.getBySRID(srid);
-        try {
-			dstCrs = CRS.decode(BdrsCoordReferenceSystem.sridToEpsg(srid));
-		} catch (NoSuchAuthorityCodeException e) {
-			throw new IllegalArgumentException("Could not decode requested SRID to epsg code : " + srid, e);
-		} catch (FactoryException e) {
-			throw new IllegalArgumentException("Could not decode requested SRID to epsg code : " + srid, e);
-		}
+        // fail early if the srid cannot be decoded
+        transformService.getCoordinateReferenceSystem(srid);
     }
 
     public GeometryFactory getGeometryFactory() {
@@ -93,7 +85,8 @@ public class SpatialUtil {
         
         Geometry geom = null;
         try {
-            geom = wktReader.read(wktString);
+            // readers are not thread safe
+            geom = new WKTReader(geometryFactory).read(wktString);
         } catch (Exception e) {
             log.error("Error occurred parsing WKT string:", e);
         }
@@ -119,22 +112,37 @@ public class SpatialUtil {
         return geom;
     }
 
+	/**
+	 * Transforms a geometry to the SRID of this SpatialUtil.
+	 * @param geom the geometry to transform.
+	 * @return the transformed geometry, the same geometry if it already has
+	 * the SRID of this SpatialUtil, or null if it cannot be transformed.
+	 */
 	public Geometry transform(Geometry geom) {
 		try {
-			if (geom.getSRID() != geometryFactory.getSRID()) {
-				CoordinateReferenceSystem srcCrs = CRS.decode(BdrsCoordReferenceSystem.sridToEpsg(geom.getSRID()));
-				MathTransform transform = CRS.findMathTransform(srcCrs, dstCrs, false);
-				Geometry g = JTS.transform(geom, transform);
-				// update the SRID of the new geometry
-				g.setSRID(geometryFactory.getSRID());
-				return g;
-			} else {
-				return geom;
-			}
-		} catch (FactoryException fe) {
-			log.error("CRS factory error", fe);
+			return transformService.transform(geom, geometryFactory.getSRID());
+		} catch (IllegalArgumentException iae) {
+			log.error("CRS factory error", iae);
+			return null;
+		} catch (GeometryTransformationFailedException te) {
+			log.error("Could not perform transformation", te);
+			return null;
+		}
+	}
+	
+	/**
+	 * Transforms coordinates to the SRID of this SpatialUtil in bulk.
+	 * @param srid the SRID of the coordinates.
+	 * @param coordinates the coordinates to transform, they are not modified.
+	 * @return the transformed coordinates or null if they cannot be transformed.
+	 */
+	public Coordinate[] transform(int srid, Coordinate[] coordinates) {
+		try {
+			return transformService.transform(srid, geometryFactory.getSRID(), coordinates);
+		} catch (IllegalArgumentException iae) {
+			log.error("CRS factory error", iae);
 			return null;
-		} catch (TransformException te) {
+		} catch (GeometryTransformationFailedException te) {
 			log.error("Could not perform transformation", te);
 			return null;
 		}
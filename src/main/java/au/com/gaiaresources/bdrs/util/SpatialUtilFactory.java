@@ -1,16 +1,17 @@
 package au.com.gaiaresources.bdrs.util;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import au.com.gaiaresources.bdrs.model.survey.BdrsCoordReferenceSystem;
 
 /**
- * Creates LocationUtil objects.
+ * Creates LocationUtil objects. The LocationUtil of each SRID is created once
+ * and shared by all factories.
  */
 public class SpatialUtilFactory {
 	
-	private Map<Integer, SpatialUtil> cache = new HashMap<Integer, SpatialUtil>();
+	private static ConcurrentMap<Integer, SpatialUtil> cache = new ConcurrentHashMap<Integer, SpatialUtil>();
 	
 	/**
 	 * Get a LocationUtil object for the given srid.
@@ -18,10 +19,15 @@ public class SpatialUtilFactory {
 	 * @return LocationUtil
 	 */
 	public SpatialUtil getLocationUtil(int srid) {
-		if (cache.get(srid) == null) {
-			cache.put(srid, new SpatialUtil(srid));
+		SpatialUtil spatialUtil = cache.get(srid);
+		if (spatialUtil == null) {
+			spatialUtil = new SpatialUtil(srid);
+			SpatialUtil existing = cache.putIfAbsent(srid, spatialUtil);
+			if (existing != null) {
+				spatialUtil = existing;
+			}
 		}
-		return cache.get(srid);
+		return spatialUtil;
 	}
 	
 	/**
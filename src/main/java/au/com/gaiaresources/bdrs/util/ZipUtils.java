@@ -149,6 +149,22 @@ public class ZipUtils {
         }
     }
 
+    /**
+     * Compresses the files into a zip archive written to the stream. Unlike
+     * {@link #compressToStream(File[], OutputStream)} the stream is left open
+     * and errors are propagated to the caller.
+     * 
+     * @param inFiles the files to compress.
+     * @param dest the stream to write the zip archive to.
+     * @throws IOException
+     */
+    public static void compressToOpenStream(List<File> inFiles, OutputStream dest) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
+        compressFiles(inFiles.toArray(new File[inFiles.size()]), out, "");
+        out.finish();
+        out.flush();
+    }
+
     private static void compressFiles(File[] inFiles, ZipOutputStream out, String parent) throws IOException {
         byte data[] = new byte[BUFFER];
 
@@ -40,6 +40,16 @@
                 Spreadsheet (XLS) &mdash; Can be used for <a href="http://www.libreoffice.org" target="_target">Spreadsheet Applications</a>
             </label> 
         </div>
+        <div>
+            <input id="xlsx" type="checkbox" name="download_format" value="XLSX"
+                <c:if test="${ download_xlsx_selected }">
+                    checked="checked"
+                </c:if>
+            />
+            <label for="xlsx">
+                Spreadsheet (XLSX) &mdash; For large downloads, XLS is limited to 65,536 records
+            </label> 
+        </div>
     </fieldset>
 </div>
 <div class="buttonpanel textright">
@@ -0,0 +1,27 @@
+package au.com.gaiaresources.bdrs.controller.admin;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import au.com.gaiaresources.bdrs.controller.AbstractControllerTest;
+import au.com.gaiaresources.bdrs.json.JSONObject;
+import au.com.gaiaresources.bdrs.security.Role;
+
+public class AdminQueueStatusControllerTest extends AbstractControllerTest {
+
+    @Test
+    public void testQueueStatus() throws Exception {
+        login("admin", "password", new String[] { Role.ADMIN });
+
+        request.setMethod("GET");
+        request.setRequestURI(AdminQueueStatusController.QUEUE_STATUS_URL);
+        handle(request, response);
+
+        JSONObject status = JSONObject.fromStringToJSONObject(response.getContentAsString());
+        JSONObject grid = status.getJSONObject("grid");
+        Assert.assertTrue(grid.containsKey("queueDepth"));
+        Assert.assertTrue(grid.containsKey("queueLagMillis"));
+        Assert.assertTrue(grid.containsKey("pendingCoalescedRecordCount"));
+        Assert.assertTrue(status.getJSONObject("thumbnail").containsKey("queueDepth"));
+    }
+}
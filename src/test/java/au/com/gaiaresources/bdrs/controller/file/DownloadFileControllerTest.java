@@ -3,6 +3,18 @@
  */
 package au.com.gaiaresources.bdrs.controller.file;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,6 +23,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.servlet.ModelAndView;
 
 import au.com.gaiaresources.bdrs.controller.AbstractControllerTest;
+import au.com.gaiaresources.bdrs.file.FileService;
 import au.com.gaiaresources.bdrs.model.file.ManagedFile;
 import au.com.gaiaresources.bdrs.service.managedFile.ManagedFileService;
 
@@ -29,6 +42,8 @@ public class DownloadFileControllerTest extends AbstractControllerTest {
 
     @Autowired
     private ManagedFileService managedFileService;
+    @Autowired
+    private FileService fileService;
     private ManagedFile managedFile;
     
     @Before
@@ -65,4 +80,52 @@ public class DownloadFileControllerTest extends AbstractControllerTest {
         ModelAndView mav = handle(request, response);
         assertFileView(mav, managedFile.getContentType());
     }
+
+    @Test
+    public void testThumbnails() throws Exception {
+        // the standard thumbnails are generated in the background on upload
+        File folder = fileService.getFile(managedFile, managedFile.getFilename()).getFile().getParentFile();
+        long timeout = System.currentTimeMillis() + 30000;
+        boolean generated = false;
+        while (!generated && System.currentTimeMillis() < timeout) {
+            generated = fileService.getThumbnailInFlightCount() == 0;
+            for (int[] size : FileService.STANDARD_THUMBNAIL_SIZES) {
+                String name = String.format("%s_%d_%d_clip_%s%s", FileService.THUMBNAIL_FILENAME_PREFIX,
+                        size[0], size[1], managedFile.getFilename(), FileService.THUMBNAIL_FILE_EXTENSION);
+                generated = generated && new File(folder, name).exists();
+            }
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(generated);
+
+        // concurrent requests for a new size generate it once. The file store
+        // is not rolled back with the database so remove any earlier thumbnail.
+        new File(folder, String.format("%s_33_44_clip_%s%s", FileService.THUMBNAIL_FILENAME_PREFIX,
+                managedFile.getFilename(), FileService.THUMBNAIL_FILE_EXTENSION)).delete();
+        long count = fileService.getThumbnailCount();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<File>> futures = new ArrayList<Future<File>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(pool.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        return fileService.getFileThumbnail(ManagedFile.class, managedFile.getId(),
+                                managedFile.getFilename(), 33, 44, true).getFile();
+                    }
+                }));
+            }
+            File thumb = futures.get(0).get();
+            for (Future<File> future : futures) {
+                Assert.assertEquals(thumb, future.get());
+            }
+            Assert.assertEquals(count + 1, fileService.getThumbnailCount());
+
+            BufferedImage image = ImageIO.read(thumb);
+            Assert.assertEquals(33, image.getWidth());
+            Assert.assertEquals(44, image.getHeight());
+        } finally {
+            pool.shutdown();
+        }
+    }
 }
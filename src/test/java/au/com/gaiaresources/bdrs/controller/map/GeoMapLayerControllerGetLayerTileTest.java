@@ -0,0 +1,206 @@
+package au.com.gaiaresources.bdrs.controller.map;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import au.com.gaiaresources.bdrs.controller.AbstractControllerTest;
+import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
+import au.com.gaiaresources.bdrs.json.JSONArray;
+import au.com.gaiaresources.bdrs.json.JSONObject;
+import au.com.gaiaresources.bdrs.model.map.GeoMapLayer;
+import au.com.gaiaresources.bdrs.model.map.GeoMapLayerDAO;
+import au.com.gaiaresources.bdrs.model.map.GeoMapLayerSource;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.security.Role;
+
+/**
+ * Tests the clustered GeoJSON tiles of survey map layers.
+ */
+public class GeoMapLayerControllerGetLayerTileTest extends AbstractControllerTest {
+
+    private static final String BBOX = "-20,-20,0,0";
+
+    @Autowired
+    private GeoMapLayerDAO layerDAO;
+
+    private GeometryBuilder geomBuilder = new GeometryBuilder();
+
+    private GeoMapLayer layer;
+    private Record recordOwnerOnly;
+    private Record recordPublic;
+    private Record recordControlled;
+
+    @Before
+    public void setup() throws Exception {
+        User owner = userDAO.createUser("owner", "first", "last", "user@user.com", "password", "regkey", Role.USER);
+
+        Survey survey = new Survey();
+        survey.setName("my survey");
+        surveyDAO.save(survey);
+
+        recordOwnerOnly = createRecord(survey, owner, RecordVisibility.OWNER_ONLY, -5, -5);
+        recordPublic = createRecord(survey, owner, RecordVisibility.PUBLIC, -5.001, -5.001);
+        recordControlled = createRecord(survey, owner, RecordVisibility.CONTROLLED, -15, -15);
+        // outside of the bounding box
+        createRecord(survey, owner, RecordVisibility.PUBLIC, 5, 5);
+
+        layer = new GeoMapLayer();
+        layer.setName("first");
+        layer.setSurvey(survey);
+        layer.setLayerSource(GeoMapLayerSource.SURVEY_KML);
+        layerDAO.save(layer);
+    }
+
+    private Record createRecord(Survey survey, User owner, RecordVisibility visibility, double x, double y) {
+        Calendar cal = Calendar.getInstance();
+        cal.set(2011, 1, 1);
+
+        Record rec = new Record();
+        rec.setRecordVisibility(visibility);
+        rec.setUser(owner);
+        rec.setWhen(cal.getTime());
+        rec.setLastDate(cal.getTime());
+        rec.setGeometry(geomBuilder.createPoint(x, y));
+        rec.setSurvey(survey);
+        return recDAO.saveRecord(rec);
+    }
+
+    @Test
+    public void testRecordsAsAnonymous() throws Exception {
+        JSONArray features = getFeatures(GeoMapLayerController.CLUSTER_MAX_ZOOM);
+        Assert.assertEquals(2, features.size());
+        Assert.assertNotNull(getFeature(features, recordPublic.getId().toString()));
+        Assert.assertNotNull(getFeature(features, recordControlled.getId().toString()));
+        Assert.assertEquals("public, max-age=" + GeoMapLayerController.TILE_MAX_AGE_SECS,
+                response.getHeader("Cache-Control"));
+    }
+
+    @Test
+    public void testRecordsAsOwner() throws Exception {
+        login("owner", "password", new String[] { Role.USER });
+        JSONArray features = getFeatures(GeoMapLayerController.CLUSTER_MAX_ZOOM);
+        Assert.assertEquals(3, features.size());
+        Assert.assertNotNull(getFeature(features, recordOwnerOnly.getId().toString()));
+        Assert.assertTrue(((String) response.getHeader("Cache-Control")).startsWith("private"));
+    }
+
+    @Test
+    public void testClusters() throws Exception {
+        login("admin", "password", new String[] { Role.ADMIN });
+        // the cells are 22.5 degrees wide at zoom 2, so all records in the
+        // bounding box are in the same cell
+        JSONArray features = getFeatures(2);
+        Assert.assertEquals(1, features.size());
+        JSONObject properties = features.getJSONObject(0).getJSONObject("properties");
+        Assert.assertTrue(properties.getBoolean("cluster"));
+        Assert.assertEquals(3, properties.getInt("count"));
+
+        // the cells are 0.0879 degrees wide at zoom 10
+        features = getFeatures(10);
+        Assert.assertEquals(2, features.size());
+        Assert.assertNotNull(getFeature(features, recordControlled.getId().toString()));
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        getFeatures(GeoMapLayerController.CLUSTER_MAX_ZOOM);
+        String etag = (String) response.getHeader("ETag");
+        Assert.assertNotNull(etag);
+
+        request.addHeader("If-None-Match", etag);
+        response = new MockHttpServletResponse();
+        handle(request, response);
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+    }
+
+    @Test
+    public void testModifiedByRecordChange() throws Exception {
+        getFeatures(GeoMapLayerController.CLUSTER_MAX_ZOOM);
+        String etag = (String) response.getHeader("ETag");
+
+        recordPublic.setGeometry(geomBuilder.createPoint(-6, -6));
+        recDAO.saveRecord(recordPublic);
+        getSession().flush();
+
+        request.addHeader("If-None-Match", etag);
+        getFeatures(GeoMapLayerController.CLUSTER_MAX_ZOOM);
+        Assert.assertFalse(etag.equals(response.getHeader("ETag")));
+    }
+
+    @Test
+    public void testSmallBbox() throws Exception {
+        // small enough for the records to be compared in their own SRID first
+        login("owner", "password", new String[] { Role.USER });
+        JSONArray features = getFeatures("-6,-6,-4,-4", GeoMapLayerController.CLUSTER_MAX_ZOOM);
+        Assert.assertEquals(2, features.size());
+        Assert.assertNotNull(getFeature(features, recordOwnerOnly.getId().toString()));
+        Assert.assertNotNull(getFeature(features, recordPublic.getId().toString()));
+    }
+
+    @Test
+    public void testModifiedByAnotherServer() throws Exception {
+        getFeatures(GeoMapLayerController.CLUSTER_MAX_ZOOM);
+        String etag = (String) response.getHeader("ETag");
+
+        // a bulk update is not seen by the survey record versions, as a
+        // change made by another server is not.
+        getSession().createQuery("update Record set updatedAt = :updatedAt where id = :id")
+            .setParameter("updatedAt", new Date(System.currentTimeMillis() + 60000))
+            .setParameter("id", recordPublic.getId()).executeUpdate();
+
+        request.addHeader("If-None-Match", etag);
+        getFeatures(GeoMapLayerController.CLUSTER_MAX_ZOOM);
+        Assert.assertFalse(etag.equals(response.getHeader("ETag")));
+    }
+
+    @Test
+    public void testInvalidBbox() throws Exception {
+        request.setRequestURI(GeoMapLayerController.GET_LAYER_TILE_URL);
+        request.setMethod("GET");
+        request.setParameter(GeoMapLayerController.PARAM_LAYER_ID, layer.getId().toString());
+        request.setParameter(GeoMapLayerController.PARAM_BBOX, "0,0,-20");
+        request.setParameter(GeoMapLayerController.PARAM_ZOOM, "2");
+        handle(request, response);
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    }
+
+    private JSONArray getFeatures(int zoom) throws Exception {
+        return getFeatures(BBOX, zoom);
+    }
+
+    private JSONArray getFeatures(String bbox, int zoom) throws Exception {
+        response = new MockHttpServletResponse();
+        request.setRequestURI(GeoMapLayerController.GET_LAYER_TILE_URL);
+        request.setMethod("GET");
+        request.setParameter(GeoMapLayerController.PARAM_LAYER_ID, layer.getId().toString());
+        request.setParameter(GeoMapLayerController.PARAM_BBOX, bbox);
+        request.setParameter(GeoMapLayerController.PARAM_ZOOM, String.valueOf(zoom));
+        handle(request, response);
+
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        JSONObject json = JSONObject.fromStringToJSONObject(response.getContentAsString());
+        Assert.assertEquals("FeatureCollection", json.getString("type"));
+        return json.getJSONArray("features");
+    }
+
+    private JSONObject getFeature(JSONArray features, String id) {
+        for (int i = 0; i < features.size(); i++) {
+            if (id.equals(features.getJSONObject(i).getString("id"))) {
+                return features.getJSONObject(i);
+            }
+        }
+        return null;
+    }
+}
@@ -113,6 +113,7 @@ public class AdvancedReviewLocationsControllerTest extends
         getRequestContext().getHibernate().flush();
         getRequestContext().getHibernate().clear();
         getRequestContext().getHibernate().disableFilter(Record.USER_ACCESS_FILTER);
+        getRequestContext().getHibernate().disableFilter(Record.USER_SURVEY_ACCESS_FILTER);
         getRequestContext().getHibernate().disableFilter(Record.MODERATOR_ACCESS_FILTER);
         getRequestContext().getHibernate().disableFilter(Record.ANONYMOUS_RECORD_ACCESS_FILTER);
 
@@ -122,6 +122,7 @@ public class AdvancedReviewSightingsControllerTest extends
         getRequestContext().getHibernate().flush();
         getRequestContext().getHibernate().clear();
         getRequestContext().getHibernate().disableFilter(Record.USER_ACCESS_FILTER);
+        getRequestContext().getHibernate().disableFilter(Record.USER_SURVEY_ACCESS_FILTER);
         getRequestContext().getHibernate().disableFilter(Record.MODERATOR_ACCESS_FILTER);
         getRequestContext().getHibernate().disableFilter(Record.ANONYMOUS_RECORD_ACCESS_FILTER);
 
@@ -20,25 +20,30 @@ import au.com.gaiaresources.bdrs.model.taxa.*;
 import au.com.gaiaresources.bdrs.model.user.User;
 import au.com.gaiaresources.bdrs.model.user.UserDAO;
 import au.com.gaiaresources.bdrs.service.map.GeoMapService;
+import au.com.gaiaresources.bdrs.service.survey.SpeciesPackService;
 import au.com.gaiaresources.bdrs.service.survey.SurveyImportExportService;
 import au.com.gaiaresources.bdrs.servlet.BdrsWebConstants;
 import au.com.gaiaresources.bdrs.util.SpatialUtil;
 import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Point;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.encoding.Md5PasswordEncoder;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.security.authentication.encoding.PasswordEncoder;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 public class ApplicationServiceTest extends AbstractControllerTest {
 
@@ -84,6 +89,9 @@ public class ApplicationServiceTest extends AbstractControllerTest {
     @Autowired
     private AttributeValueDAO attrValueDAO;
 
+    @Autowired
+    private SpeciesPackService speciesPackService;
+
     private ManagedFile testFile;
 
     private Location l1;
@@ -702,6 +710,82 @@ public class ApplicationServiceTest extends AbstractControllerTest {
         assertTaxonGroups(json);
     }
 
+    @Test
+    public void testGetSpeciesPack() throws Exception {
+        // packs are not kept while the transaction that created the species is pending
+        speciesPackService.transactionCompleted();
+
+        requestSpeciesPack(frogSurveyInDb, null, null);
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        Assert.assertEquals("gzip", response.getHeader("Content-Encoding"));
+        byte[] pack = response.getContentAsByteArray();
+        String etag = (String) response.getHeader("ETag");
+        Assert.assertNotNull(etag);
+
+        JSONObject json = JSONObject.fromStringToJSONObject(gunzip(pack));
+        Assert.assertEquals("wrong count in json", 2, json.getInt("count"));
+        JSONArray jsonSpeciesArray = json.getJSONArray("list");
+        Assert.assertEquals("wrong list size", 2, jsonSpeciesArray.size());
+        Assert.assertEquals("wrong species id", frog1.getId().intValue(), jsonSpeciesArray.getJSONObject(0).getInt("server_id"));
+        Assert.assertEquals("wrong species id", frog2.getId().intValue(), jsonSpeciesArray.getJSONObject(1).getInt("server_id"));
+        for (int i = 0; i < jsonSpeciesArray.size(); ++i) {
+            assertInfoItems(jsonSpeciesArray.getJSONObject(i));
+        }
+        assertTaxonGroups(json);
+
+        // the device already has this version
+        long builds = speciesPackService.getBuildCount();
+        requestSpeciesPack(frogSurveyInDb, etag, null);
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+        Assert.assertEquals(0, response.getContentAsByteArray().length);
+        Assert.assertEquals(builds, speciesPackService.getBuildCount());
+
+        // resume a download
+        requestSpeciesPack(frogSurveyInDb, null, "bytes=10-");
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        Assert.assertEquals(String.format("bytes 10-%d/%d", pack.length - 1, pack.length), response.getHeader("Content-Range"));
+        byte[] rest = response.getContentAsByteArray();
+        Assert.assertEquals(pack.length - 10, rest.length);
+        Assert.assertEquals(pack[10], rest[0]);
+
+        requestSpeciesPack(frogSurveyInDb, null, "bytes=" + pack.length + "-");
+        Assert.assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+
+        // changing the species of the survey replaces the pack
+        // the session is cleared when a pack is built
+        Survey survey = surveyDAO.getSurvey(frogSurveyInDb.getId());
+        survey.getSpecies().remove(taxaDAO.getIndicatorSpecies(frog1.getId()));
+        getSession().flush();
+        speciesPackService.transactionCompleted();
+        Assert.assertEquals(0, speciesPackService.size());
+
+        requestSpeciesPack(frogSurveyInDb, etag, null);
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        Assert.assertFalse(etag.equals(response.getHeader("ETag")));
+        json = JSONObject.fromStringToJSONObject(gunzip(response.getContentAsByteArray()));
+        Assert.assertEquals("wrong count in json", 1, json.getInt("count"));
+    }
+
+    private void requestSpeciesPack(Survey survey, String ifNoneMatch, String range) throws Exception {
+        request = createMockHttpServletRequest();
+        response = new MockHttpServletResponse();
+        request.setMethod("GET");
+        request.setRequestURI(ApplicationService.DOWNLOAD_SURVEY_SPECIES_PACK_URL);
+        request.setParameter(BdrsWebConstants.PARAM_SURVEY_ID, survey.getId().toString());
+        request.addHeader("Accept-Encoding", "gzip, deflate");
+        if (ifNoneMatch != null) {
+            request.addHeader("If-None-Match", ifNoneMatch);
+        }
+        if (range != null) {
+            request.addHeader("Range", range);
+        }
+        this.handle(request, response);
+    }
+
+    private String gunzip(byte[] content) throws Exception {
+        return IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(content)), "UTF-8");
+    }
+
     @Test
     public void testCreateSurveySetName() throws Exception {
         User u = userDAO.getUser("user");
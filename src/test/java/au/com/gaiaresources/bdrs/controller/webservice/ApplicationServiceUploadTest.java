@@ -214,6 +214,57 @@ public class ApplicationServiceUploadTest extends AbstractControllerTest {
         //System.err.println(data.toString());
     }
     
+    /**
+     * Syncs more records than fit in a single batch, then syncs the same
+     * records again by client id to check that they are updated rather than
+     * duplicated.
+     */
+    @Test
+    public void testSyncMultipleBatches() throws Exception {
+        login("admin", "password", new String[] { Role.ADMIN });
+        createTestData();
+        
+        JSONArray syncData = new JSONArray();
+        while (syncData.size() <= ApplicationService.CLIENT_SYNC_BATCH_SIZE) {
+            JSONArray generated = JSONArray.fromString(generateSyncData(false));
+            for (int i=0; i<generated.size(); i++) {
+                syncData.add(generated.get(i));
+            }
+        }
+        
+        Map<String, Integer> serverIds = new HashMap<String, Integer>();
+        for (int pass=0; pass<2; pass++) {
+            MockHttpServletRequest syncRequest = new MockHttpServletRequest();
+            syncRequest.setMethod("POST");
+            syncRequest.setRequestURI("/webservice/application/clientSync.htm");
+            syncRequest.setParameter("ident", getRequestContext().getUser().getRegistrationKey());
+            syncRequest.setParameter("syncData", syncData.toString());
+            
+            ModelAndView mv = handle(syncRequest, new MockHttpServletResponse());
+            JSONObject json = JSONObject.fromStringToJSONObject(mv.getModel().get("message").toString());
+            Assert.assertEquals(200, json.getInt("status"));
+            
+            JSONArray syncResult = json.getJSONObject("200").getJSONArray("sync_result");
+            validate(syncData, syncResult);
+            
+            int recordCount = 0;
+            for (int i=0; i<syncResult.size(); i++) {
+                JSONObject jsonResult = syncResult.getJSONObject(i);
+                if (Record.class.getSimpleName().equals(jsonResult.getString("klass"))) {
+                    recordCount++;
+                    String clientId = jsonResult.getString("id");
+                    if (pass == 0) {
+                        serverIds.put(clientId, jsonResult.getInt("server_id"));
+                    } else {
+                        Assert.assertEquals(serverIds.get(clientId).intValue(), jsonResult.getInt("server_id"));
+                    }
+                }
+            }
+            Assert.assertEquals(syncData.size(), recordCount);
+        }
+        Assert.assertEquals(syncData.size(), serverIds.size());
+    }
+    
     @Test
     public void testSyncUpdate() throws Exception {
         login("admin", "password", new String[] { Role.ADMIN });
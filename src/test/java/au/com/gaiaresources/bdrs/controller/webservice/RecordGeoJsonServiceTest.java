@@ -16,6 +16,7 @@ import au.com.gaiaresources.bdrs.util.SpatialUtil;
 import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -23,7 +24,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.mock.web.MockHttpServletResponse;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Created with IntelliJ IDEA.
@@ -247,6 +250,50 @@ public class RecordGeoJsonServiceTest extends AbstractControllerTest {
         }
     }
 
+    @Test
+    public void testProjectionProperties() throws Exception {
+        request.setParameter(RecordGeoJsonService.PARAM_USERNAME, mainUser.getName());
+        request.addParameter(RecordGeoJsonService.PARAM_SURVEY_IDS, s1.getId().toString());
+        request.addParameter(RecordGeoJsonService.PARAM_LIMIT, "10");
+        request.setRequestURI(RecordGeoJsonService.GET_RECORD_GEOJSON_URL);
+        request.setMethod("GET");
+
+        this.handle(request, response);
+
+        JSONArray featureJsonArray = getFeatureArray(response);
+        Assert.assertEquals("wrong count", 1, featureJsonArray.size());
+        JSONObject properties = featureJsonArray.getJSONObject(0).getJSONObject("properties");
+        Assert.assertEquals("wrong user", mainUser.getId().intValue(), properties.getInt("user_id"));
+        Assert.assertEquals("wrong survey", s1.getId().intValue(), properties.getInt("survey_id"));
+        Assert.assertEquals("wrong species", species1.getId().intValue(), properties.getInt("species_id"));
+        Assert.assertEquals("wrong scientific name", species1.getScientificName(), properties.getString("scientific_name"));
+        Assert.assertEquals("wrong common name", species1.getCommonName(), properties.getString("common_name"));
+        Assert.assertEquals("wrong date", r1.getWhen().getTime(), properties.getLong("when"));
+        Assert.assertEquals("wrong group", 0, properties.getInt("group_id"));
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        request.setParameter(RecordGeoJsonService.PARAM_USERNAME, mainUser.getName());
+        request.addParameter(RecordGeoJsonService.PARAM_LIMIT, "10");
+        request.addHeader("Accept-Encoding", "gzip, deflate");
+        request.setRequestURI(RecordGeoJsonService.GET_RECORD_GEOJSON_URL);
+        request.setMethod("GET");
+
+        this.handle(request, response);
+
+        Assert.assertEquals("wrong http return code", HttpServletResponse.SC_OK, response.getStatus());
+        Assert.assertEquals("wrong encoding", "gzip", response.getHeader("Content-Encoding"));
+
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray()));
+        String content = IOUtils.toString(in, "UTF-8");
+        JSONObject json = JSONObject.fromStringToJSONObject(content);
+        JSONArray featureJsonArray = json.getJSONArray("features");
+        Assert.assertEquals("wrong count", 2, featureJsonArray.size());
+        this.assertHasRecord(featureJsonArray, r1);
+        this.assertHasRecord(featureJsonArray, r2);
+    }
+
     private JSONArray getFeatureArray(MockHttpServletResponse response) throws UnsupportedEncodingException {
         Assert.assertEquals("wrong http return code. msg : " + response.getContentAsString(),
                 HttpServletResponse.SC_OK, response.getStatus());
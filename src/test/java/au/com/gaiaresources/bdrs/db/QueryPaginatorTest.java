@@ -1,5 +1,12 @@
 package au.com.gaiaresources.bdrs.db;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 import org.hibernate.Criteria;
 import org.hibernate.Session;
@@ -16,6 +23,7 @@ import org.springframework.util.StringUtils;
 
 import au.com.gaiaresources.bdrs.controller.AbstractControllerTest;
 import au.com.gaiaresources.bdrs.db.impl.HqlQuery;
+import au.com.gaiaresources.bdrs.db.impl.HqlUtil;
 import au.com.gaiaresources.bdrs.db.impl.PagedQueryResult;
 import au.com.gaiaresources.bdrs.db.impl.PaginationFilter;
 import au.com.gaiaresources.bdrs.db.impl.Predicate;
@@ -140,6 +148,112 @@ public class QueryPaginatorTest extends AbstractControllerTest {
         Assert.assertEquals("Zenichowski", result.getList().get(2).getFirstName());
     }
 
+    @Test
+    public void testKeysetPaging() throws Exception {
+        PaginationFilter filter = new PaginationFilter(0, 5);
+        filter.addSortingCriteria("lastName", SortOrder.ASCENDING);
+        filter.setKeyset(true);
+
+        List<User> users = new ArrayList<User>();
+        Set<Integer> ids = new HashSet<Integer>();
+        int pages = 0;
+        PagedQueryResult<User> result;
+        do {
+            result = hqlSearch(null, null, null, filter);
+            // the count of the first page is carried by the token
+            Assert.assertEquals(testnames.length + 2, result.getCount());
+            users.addAll(result.getList());
+            for (User u : result.getList()) {
+                Assert.assertTrue("duplicate user " + u.getName(), ids.add(u.getId()));
+            }
+            filter.setContinuationToken(result.getContinuationToken());
+            pages++;
+        } while (result.getContinuationToken() != null);
+
+        Assert.assertEquals(3, pages);
+        Assert.assertEquals(testnames.length + 2, users.size());
+        // Haugen appears twice, ordered by id
+        for (int i = 1; i < users.size(); i++) {
+            User prev = users.get(i - 1);
+            User u = users.get(i);
+            if (prev.getLastName() == null) {
+                Assert.assertNull(u.getLastName());
+            } else if (u.getLastName() != null) {
+                int cmp = prev.getLastName().compareTo(u.getLastName());
+                Assert.assertTrue(cmp < 0 || (cmp == 0 && prev.getId() < u.getId()));
+            }
+        }
+    }
+
+    @Test
+    public void testKeysetPagingWithCondition() throws Exception {
+        PaginationFilter filter = new PaginationFilter(0, 2);
+        filter.addSortingCriteria("firstName", SortOrder.DESCENDING);
+        filter.setKeyset(true);
+        filter.setCountRequired(false);
+
+        List<String> names = new ArrayList<String>();
+        PagedQueryResult<User> result;
+        do {
+            result = hqlSearch(null, null, "Z%", filter);
+            Assert.assertEquals(PagedQueryResult.COUNT_UNKNOWN, result.getCount());
+            for (User u : result.getList()) {
+                names.add(u.getFirstName());
+            }
+            filter.setContinuationToken(result.getContinuationToken());
+        } while (result.getContinuationToken() != null);
+
+        List<String> expected = new ArrayList<String>();
+        for (String[] name : testnames) {
+            if (name[0].startsWith("Z")) {
+                expected.add(name[0]);
+            }
+        }
+        Collections.sort(expected, Collections.reverseOrder());
+        Assert.assertEquals(expected, names);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeysetTokenSortMismatch() throws Exception {
+        PaginationFilter filter = new PaginationFilter(0, 5);
+        filter.addSortingCriteria("lastName", SortOrder.ASCENDING);
+        filter.setKeyset(true);
+        PagedQueryResult<User> result = hqlSearch(null, null, null, filter);
+        Assert.assertNotNull(result.getContinuationToken());
+
+        PaginationFilter other = new PaginationFilter(0, 5);
+        other.addSortingCriteria("firstName", SortOrder.ASCENDING);
+        other.setContinuationToken(result.getContinuationToken());
+        hqlSearch(null, null, null, other);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeysetTokenTampered() throws Exception {
+        PaginationFilter filter = new PaginationFilter(0, 5);
+        filter.addSortingCriteria("lastName", SortOrder.ASCENDING);
+        filter.setKeyset(true);
+        PagedQueryResult<User> result = hqlSearch(null, null, null, filter);
+        Assert.assertNotNull(result.getContinuationToken());
+
+        // change the count carried by the token
+        byte[] token = Base64.decodeBase64(result.getContinuationToken());
+        token[8] ^= 1;
+        filter.setContinuationToken(Base64.encodeBase64URLSafeString(token));
+        hqlSearch(null, null, null, filter);
+    }
+
+    @Test
+    public void testAddCondition() {
+        Assert.assertEquals("from User u where u.id > 1",
+                HqlUtil.addCondition("from User u", "u.id > 1"));
+        Assert.assertEquals("from User u where (u.id > 1) and (u.name = 'a or b') order by u.name",
+                HqlUtil.addCondition("from User u where u.name = 'a or b' order by u.name", "u.id > 1"));
+        Assert.assertEquals("from User u where u.id > 1 group by u.name",
+                HqlUtil.addCondition("from User u group by u.name", "u.id > 1"));
+        Assert.assertEquals("from User u where (u.id > 1) and (u.id in (select g.id from Group g where g.id > 0))",
+                HqlUtil.addCondition("from User u where u.id in (select g.id from Group g where g.id > 0)", "u.id > 1"));
+    }
+
     public PagedQueryResult<User> hqlSearch(String username, String email,
             String name, PaginationFilter filter) {
 
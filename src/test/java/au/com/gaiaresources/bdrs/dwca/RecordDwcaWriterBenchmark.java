@@ -0,0 +1,222 @@
+package au.com.gaiaresources.bdrs.dwca;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.db.impl.SortingCriteria;
+import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.record.RecordDAO;
+import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
+import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
+import au.com.gaiaresources.bdrs.model.record.impl.AdvancedRecordFilter;
+import au.com.gaiaresources.bdrs.model.record.impl.RecordFilter;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
+import au.com.gaiaresources.bdrs.model.taxa.Attribute;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeDAO;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeScope;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeType;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeValue;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.model.user.UserDAO;
+import au.com.gaiaresources.bdrs.service.lsid.LSIDService;
+import au.com.gaiaresources.bdrs.service.web.RedirectionService;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
+
+/**
+ * Measures the records per second and peak heap of the {@link RecordDwcaWriter}
+ * when streaming an archive of the records of a survey, with a cursor that
+ * never clears the session and with cursors that clear the session after each
+ * batch of records.
+ * This is not run with the unit tests. Run it with a fixed heap, e.g.
+ * <pre>
+ * mvn test -Dtest=RecordDwcaWriterBenchmark -Dbenchmark.records=50000 -DargLine=-Xmx1024m
+ * </pre>
+ * The unbatched run is expected to run out of heap for the larger counts.
+ */
+public class RecordDwcaWriterBenchmark extends AbstractTransactionalTest {
+
+    private static final int[] BATCH_SIZES = new int[] { 100, ScrollableRecords.RESULTS_BATCH_SIZE, 2000 };
+
+    @Autowired
+    private RecordDAO recordDAO;
+    @Autowired
+    private SurveyDAO surveyDAO;
+    @Autowired
+    private AttributeDAO attributeDAO;
+    @Autowired
+    private UserDAO userDAO;
+    @Autowired
+    private LSIDService lsidService;
+
+    private GeometryBuilder builder = new GeometryBuilder(4326);
+    private Random random = new Random(42);
+
+    @Test
+    public void benchmark() throws Exception {
+        int recordCount = Integer.getInteger("benchmark.records", 50000);
+
+        User admin = userDAO.getUser("admin");
+        Attribute habitat = createAttribute("habitat", AttributeType.STRING);
+        Attribute count = createAttribute("count", AttributeType.INTEGER);
+
+        Survey survey = new Survey();
+        survey.setName("benchmark survey");
+        survey.setDescription("benchmark survey");
+        survey.setActive(true);
+        survey.setStartDate(new Date());
+        survey = surveyDAO.save(survey);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < recordCount; i++) {
+            Record rec = new Record();
+            rec.setUser(admin);
+            rec.setSurvey(survey);
+            rec.setWhen(new Date());
+            rec.setLastDate(rec.getWhen());
+            rec.setNumber(1 + random.nextInt(20));
+            rec.setGeometry(builder.createPoint(115 + random.nextDouble() * 5, -35 + random.nextDouble() * 5));
+            rec.setRecordVisibility(RecordVisibility.PUBLIC);
+            rec.getAttributes().add(createValue(habitat, "habitat " + random.nextInt(100), null));
+            rec.getAttributes().add(createValue(count, null, random.nextInt(1000)));
+            recordDAO.saveRecord(rec);
+            if (i % 1000 == 0) {
+                getSession().flush();
+                getSession().clear();
+            }
+        }
+        getSession().flush();
+        getSession().clear();
+        System.out.println(String.format("Created %d records in %d ms", recordCount, System.currentTimeMillis() - start));
+
+        // warm up
+        run(survey, ScrollableRecords.RESULTS_BATCH_SIZE);
+
+        System.out.println("batch\trecords\tmeasurements\tms\trecords/s\tpeak heap MB\tbytes");
+        Result unbatched = run(survey, 0);
+        print("none", unbatched);
+        for (int batchSize : BATCH_SIZES) {
+            Result batched = run(survey, batchSize);
+            print(String.valueOf(batchSize), batched);
+
+            Assert.assertEquals(recordCount, batched.records);
+            Assert.assertEquals(recordCount * 2, batched.measurements);
+            if (!unbatched.outOfMemory) {
+                Assert.assertEquals(unbatched.records, batched.records);
+                Assert.assertEquals(unbatched.measurements, batched.measurements);
+            }
+        }
+    }
+
+    private Result run(Survey survey, int batchSize) throws IOException {
+        getSession().clear();
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+
+        RecordFilter filter = new AdvancedRecordFilter();
+        filter.setSurveyPk(survey.getId());
+        filter.setRecordVisibility(RecordVisibility.PUBLIC);
+        List<SortingCriteria> sortCriteria = Collections.emptyList();
+
+        RecordDwcaWriter writer = new RecordDwcaWriter(lsidService, new SpatialUtilFactory().getLocationUtil(),
+                new RedirectionService("http://localhost:8080/BDRS"));
+        CountingOutputStream out = new CountingOutputStream();
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+        try {
+            ScrollableRecords sc = recordDAO.getStreamingRecords(filter, sortCriteria, batchSize);
+            writer.writeArchive(sc, out);
+        } catch (OutOfMemoryError oome) {
+            getSession().clear();
+            result.outOfMemory = true;
+        }
+        result.millis = System.currentTimeMillis() - start;
+        result.records = writer.getRecordCount();
+        result.measurements = writer.getMeasurementCount();
+        result.bytes = out.count;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                result.peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        return result;
+    }
+
+    private void print(String batch, Result result) {
+        if (result.outOfMemory) {
+            System.out.println(String.format("%s\t%d\tOutOfMemoryError", batch, result.records));
+        } else {
+            System.out.println(String.format("%s\t%d\t%d\t%d\t%.0f\t%.1f\t%d", batch, result.records,
+                    result.measurements, result.millis, result.records * 1000d / Math.max(1, result.millis),
+                    result.peakHeap / (1024d * 1024d), result.bytes));
+        }
+    }
+
+    private Attribute createAttribute(String name, AttributeType type) {
+        Attribute attr = new Attribute();
+        attr.setName(name);
+        attr.setDescription(name);
+        attr.setRequired(false);
+        attr.setScope(AttributeScope.RECORD);
+        attr.setTag(false);
+        attr.setTypeCode(type.getCode());
+        return attributeDAO.save(attr);
+    }
+
+    private AttributeValue createValue(Attribute attr, String stringValue, Integer numericValue) {
+        AttributeValue av = new AttributeValue();
+        av.setAttribute(attr);
+        if (stringValue != null) {
+            av.setStringValue(stringValue);
+        }
+        if (numericValue != null) {
+            av.setNumericValue(new BigDecimal(numericValue));
+            av.setStringValue(numericValue.toString());
+        }
+        return attributeDAO.save(av);
+    }
+
+    private static class Result {
+        private int records;
+        private int measurements;
+        private long millis;
+        private long peakHeap;
+        private long bytes;
+        private boolean outOfMemory;
+    }
+
+    /**
+     * Discards the archive but counts its length.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package au.com.gaiaresources.bdrs.file;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ThumbnailGenerator} with a single worker.
+ */
+public class ThumbnailGeneratorTest {
+
+    private File dir;
+    private ThumbnailGenerator generator;
+
+    @Before
+    public void setup() throws IOException {
+        dir = File.createTempFile("thumbnails", "");
+        dir.delete();
+        dir.mkdirs();
+        generator = new ThumbnailGenerator(1, 1, 10000);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        generator.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testRequestWaitsForBackgroundJob() throws IOException {
+        File original = new File(dir, "image.png");
+        ImageIO.write(new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB), "png", original);
+
+        List<ThumbnailGenerator.Thumbnail> thumbs = new ArrayList<ThumbnailGenerator.Thumbnail>();
+        File small = new File(dir, "small.png");
+        File large = new File(dir, "large.png");
+        thumbs.add(generator.thumbnail(original, small, 50, 50, true));
+        thumbs.add(generator.thumbnail(original, large, 100, 100, true));
+        generator.generateLater(original, thumbs);
+
+        // the only worker runs the job, which must not wait for this request
+        Assert.assertEquals(large, generator.getThumbnail(original, large, 100, 100, true));
+        Assert.assertEquals(small, generator.getThumbnail(original, small, 50, 50, true));
+        Assert.assertTrue(large.exists());
+        Assert.assertTrue(small.exists());
+        Assert.assertEquals(0, generator.getInFlightCount());
+    }
+
+    @Test
+    public void testBackgroundJobNotAnImage() throws IOException {
+        File original = new File(dir, "notes.txt");
+        FileWriter writer = new FileWriter(original);
+        writer.write("not an image");
+        writer.close();
+
+        List<ThumbnailGenerator.Thumbnail> thumbs = new ArrayList<ThumbnailGenerator.Thumbnail>();
+        File thumb = new File(dir, "notes.png");
+        thumbs.add(generator.thumbnail(original, thumb, 50, 50, true));
+        generator.generateLater(original, thumbs);
+
+        try {
+            generator.getThumbnail(original, thumb, 50, 50, true);
+            Assert.fail("a thumbnail of a text file cannot be generated");
+        } catch (IOException expected) {
+            // the request is released rather than waiting forever
+        }
+        Assert.assertFalse(thumb.exists());
+    }
+}
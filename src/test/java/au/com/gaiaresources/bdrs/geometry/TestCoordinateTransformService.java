@@ -0,0 +1,82 @@
+package au.com.gaiaresources.bdrs.geometry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+public class TestCoordinateTransformService {
+
+    private static final int MGA_50_SRID = 28350;
+    private static final int WGS84_SRID = 4326;
+
+    private CoordinateTransformService service = CoordinateTransformService.getInstance();
+
+    @Test
+    public void testTransformIsShared() {
+        assertSame(service.getTransform(MGA_50_SRID, WGS84_SRID), service.getTransform(MGA_50_SRID, WGS84_SRID));
+        assertSame(service.getCoordinateReferenceSystem(WGS84_SRID), service.getCoordinateReferenceSystem(WGS84_SRID));
+    }
+
+    @Test
+    public void testTransformGeometry() {
+        Point mgaPoint = new GeometryBuilder(MGA_50_SRID).createPoint(550000, 7000000);
+
+        Geometry result = service.transform(mgaPoint, WGS84_SRID);
+        assertEquals(WGS84_SRID, result.getSRID());
+        assertEquals(117.5, result.getCoordinate().x, 0.1);
+        assertEquals(-27.1, result.getCoordinate().y, 0.1);
+
+        // the same srid is not transformed
+        assertSame(mgaPoint, service.transform(mgaPoint, MGA_50_SRID));
+    }
+
+    @Test
+    public void testTransformPolygon() {
+        Polygon square = new GeometryBuilder(MGA_50_SRID).createSquare(550000, 7000000, 1000);
+        Geometry result = new GeometryBuilder(WGS84_SRID).transform(square);
+
+        assertTrue(result instanceof Polygon);
+        assertEquals(WGS84_SRID, result.getSRID());
+        assertTrue(result.isValid());
+        assertEquals(square.getNumPoints(), result.getNumPoints());
+        assertTrue(result.contains(service.transform(square.getCentroid(), WGS84_SRID)));
+    }
+
+    @Test
+    public void testBulkTransform() {
+        Coordinate[] coords = new Coordinate[] {
+                new Coordinate(550000, 7000000),
+                new Coordinate(400000, 6500000),
+                new Coordinate(350000, 6400000, 12)
+        };
+        double[] ordinates = new double[] { 0, 550000, 7000000, 400000, 6500000, 350000, 6400000 };
+
+        Coordinate[] result = service.transform(MGA_50_SRID, WGS84_SRID, coords);
+        service.transform(MGA_50_SRID, WGS84_SRID, ordinates, 1, coords.length);
+
+        GeometryBuilder mgaBuilder = new GeometryBuilder(MGA_50_SRID);
+        for (int i = 0; i < coords.length; i++) {
+            Geometry expected = service.transform(mgaBuilder.createPoint(coords[i].x, coords[i].y), WGS84_SRID);
+            assertEquals(expected.getCoordinate().x, result[i].x, 1e-9);
+            assertEquals(expected.getCoordinate().y, result[i].y, 1e-9);
+            assertEquals(expected.getCoordinate().x, ordinates[1 + i * 2], 1e-9);
+            assertEquals(expected.getCoordinate().y, ordinates[2 + i * 2], 1e-9);
+        }
+        // the source coordinates are not modified
+        assertEquals(550000, coords[0].x, 0);
+        assertEquals(12, result[2].z, 0);
+        assertEquals(0, ordinates[0], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownSrid() {
+        service.getTransform(-1, WGS84_SRID);
+    }
+}
@@ -0,0 +1,71 @@
+package au.com.gaiaresources.bdrs.grid.impl;
+
+import java.math.BigDecimal;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import au.com.gaiaresources.bdrs.model.grid.impl.GridCell;
+
+public class GridCellTest {
+
+    private static final int MIN_X = 111;
+    private static final int MIN_Y = -44;
+
+    /**
+     * The cell index must match the square found by stepping across the grid
+     * from the origin one square at a time.
+     */
+    @Test
+    public void testIndexMatchesStepping() {
+        BigDecimal[] precisions = new BigDecimal[] { new BigDecimal("2"), new BigDecimal("1.5"), 
+                new BigDecimal("1"), new BigDecimal("0.5"), new BigDecimal("0.25") };
+        for (BigDecimal p : precisions) {
+            for (double x = 110; x < 156; x += 0.125) {
+                Assert.assertEquals("x " + x + " precision " + p, step(x, MIN_X, p), GridCell.getIndex(x, MIN_X, p));
+            }
+            for (double y = -45; y < -9; y += 0.13) {
+                Assert.assertEquals("y " + y + " precision " + p, step(y, MIN_Y, p), GridCell.getIndex(y, MIN_Y, p));
+            }
+        }
+    }
+
+    @Test
+    public void testBoundary() {
+        BigDecimal p = new BigDecimal("0.5");
+        // on the boundary belongs to the lower square
+        Assert.assertEquals(0, GridCell.getIndex(111.5, MIN_X, p));
+        Assert.assertEquals(1, GridCell.getIndex(111.50001, MIN_X, p));
+        // below the origin belongs to the first square
+        Assert.assertEquals(0, GridCell.getIndex(100, MIN_X, p));
+    }
+
+    @Test
+    public void testLowerBoundRoundTrip() {
+        BigDecimal p = new BigDecimal("1.5");
+        for (int i = 0; i < 30; i++) {
+            double lower = GridCell.getLowerBound(i, MIN_Y, p);
+            Assert.assertEquals(MIN_Y + i * 1.5, lower, 0.0000001);
+            Assert.assertEquals(i, GridCell.getIndexOfSquare(lower, MIN_Y, p));
+        }
+    }
+
+    @Test
+    public void testEquals() {
+        Assert.assertEquals(new GridCell(1, 2, 3, 4), new GridCell(1, 2, 3, 4));
+        Assert.assertEquals(new GridCell(1, 2, 3, 4).hashCode(), new GridCell(1, 2, 3, 4).hashCode());
+        Assert.assertFalse(new GridCell(1, 2, 3, 4).equals(new GridCell(1, 2, 4, 3)));
+        Assert.assertFalse(new GridCell(1, 2, 3, 4).equals(new GridCell(2, 2, 3, 4)));
+    }
+
+    private int step(double coord, int origin, BigDecimal precision) {
+        BigDecimal grid = new BigDecimal(origin);
+        int index = 0;
+        while (coord > grid.add(precision).doubleValue()) {
+            grid = grid.add(precision);
+            index++;
+        }
+        return index;
+    }
+}
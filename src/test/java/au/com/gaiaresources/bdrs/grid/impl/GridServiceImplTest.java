@@ -0,0 +1,166 @@
+package au.com.gaiaresources.bdrs.grid.impl;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
+import au.com.gaiaresources.bdrs.model.grid.Grid;
+import au.com.gaiaresources.bdrs.model.grid.GridDAO;
+import au.com.gaiaresources.bdrs.model.grid.GridEntry;
+import au.com.gaiaresources.bdrs.model.grid.impl.GridServiceImpl;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
+import au.com.gaiaresources.bdrs.model.taxa.TaxaDAO;
+import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+
+/**
+ * Tests that the records handled by the grid service are counted in the
+ * stored grid entries once the queued batch has been applied.
+ */
+public class GridServiceImplTest extends AbstractTransactionalTest {
+
+    @Autowired
+    private GridDAO gridDAO;
+    @Autowired
+    private TaxaDAO taxaDAO;
+    @Autowired
+    private GeometryBuilder geometryBuilder;
+
+    private GridServiceImpl gridService;
+
+    private Grid degreeGrid;
+    private Grid halfDegreeGrid;
+    private IndicatorSpecies kingfisher;
+    private IndicatorSpecies lorikeet;
+
+    @Before
+    public void setup() {
+        degreeGrid = createGrid(new BigDecimal("1"));
+        halfDegreeGrid = createGrid(new BigDecimal("0.5"));
+
+        TaxonGroup group = new TaxonGroup();
+        group.setName("birds");
+        taxaDAO.save(group);
+        kingfisher = createSpecies(group, "Todiramphus sanctus");
+        lorikeet = createSpecies(group, "Trichoglossus moluccanus");
+
+        // no workers, the test applies the queue on its own thread so that
+        // the updates join the test transaction.
+        gridService = new GridServiceImpl();
+        applicationContext.getAutowireCapableBeanFactory().autowireBean(gridService);
+        gridService.setPrecisions(Arrays.asList(degreeGrid.getPrecision(), halfDegreeGrid.getPrecision()));
+        gridService.setMinX(111);
+        gridService.setMaxX(155);
+        gridService.setMinY(-44);
+        gridService.setMaxY(-10);
+        gridService.setWorkerCount(0);
+        gridService.init();
+    }
+
+    @After
+    public void teardown() {
+        gridService.destroy();
+    }
+
+    @Test
+    public void testHandleRecord() {
+        // the first two records are in the same square of both grids
+        gridService.handleRecord(createRecord(kingfisher, 115.3, -30.2));
+        gridService.handleRecord(createRecord(kingfisher, 115.4, -30.3));
+        gridService.handleRecord(createRecord(kingfisher, 120.5, -25.5));
+        gridService.handleRecord(createRecord(lorikeet, 115.3, -30.2));
+        Assert.assertEquals(4, gridService.getQueueDepth());
+
+        gridService.applyQueuedRecords();
+        Assert.assertEquals(0, gridService.getQueueDepth());
+        Assert.assertEquals(4, gridService.getProcessedRecordCount());
+
+        for (Grid g : new Grid[] { degreeGrid, halfDegreeGrid }) {
+            List<GridEntry> entries = getStoredEntries(g);
+            Assert.assertEquals(3, entries.size());
+            assertCount(entries, kingfisher, 115.3, -30.2, 2);
+            assertCount(entries, kingfisher, 120.5, -25.5, 1);
+            assertCount(entries, lorikeet, 115.3, -30.2, 1);
+        }
+    }
+
+    @Test
+    public void testHandleRecordExistingEntry() {
+        gridService.handleRecord(createRecord(kingfisher, 115.3, -30.2));
+        gridService.applyQueuedRecords();
+
+        // the second batch increments the entries inserted by the first
+        gridService.handleRecord(createRecord(kingfisher, 115.4, -30.3));
+        gridService.handleRecord(createRecord(kingfisher, 115.45, -30.35));
+        gridService.applyQueuedRecords();
+
+        for (Grid g : new Grid[] { degreeGrid, halfDegreeGrid }) {
+            List<GridEntry> entries = getStoredEntries(g);
+            Assert.assertEquals(1, entries.size());
+            assertCount(entries, kingfisher, 115.3, -30.2, 3);
+        }
+        Assert.assertEquals(3, gridService.getProcessedRecordCount());
+    }
+
+    @Test
+    public void testHandleRecordWithoutSpecies() {
+        gridService.handleRecord(createRecord(null, 115.3, -30.2));
+        Assert.assertEquals(0, gridService.getQueueDepth());
+    }
+
+    /**
+     * Reads the entries of the grid from the database rather than the session,
+     * the entries are written with JDBC batches that bypass the session.
+     */
+    private List<GridEntry> getStoredEntries(Grid g) {
+        getSession().flush();
+        getSession().clear();
+        List<GridEntry> entries = new ArrayList<GridEntry>();
+        entries.addAll(gridDAO.getGridEntries(g, Arrays.asList(kingfisher.getId(), lorikeet.getId())));
+        return entries;
+    }
+
+    private void assertCount(List<GridEntry> entries, IndicatorSpecies species, double x, double y, int expected) {
+        for (GridEntry entry : entries) {
+            if (entry.getSpecies().getId().equals(species.getId())
+                    && entry.getBoundary().contains(geometryBuilder.createPoint(x, y))) {
+                Assert.assertEquals(expected, entry.getNumberOfRecords());
+                return;
+            }
+        }
+        Assert.fail("No grid entry for " + species.getScientificName() + " at " + x + ", " + y);
+    }
+
+    private Grid createGrid(BigDecimal precision) {
+        Grid g = new Grid();
+        g.setPrecision(precision);
+        getSession().save(g);
+        return g;
+    }
+
+    private IndicatorSpecies createSpecies(TaxonGroup group, String scientificName) {
+        IndicatorSpecies species = new IndicatorSpecies();
+        species.setScientificName(scientificName);
+        species.setCommonName(scientificName);
+        species.setTaxonGroup(group);
+        return taxaDAO.save(species);
+    }
+
+    private Record createRecord(IndicatorSpecies species, double x, double y) {
+        Record record = new Record();
+        record.setSpecies(species);
+        record.setNumber(1);
+        record.setGeometry(geometryBuilder.createPoint(x, y));
+        return record;
+    }
+}
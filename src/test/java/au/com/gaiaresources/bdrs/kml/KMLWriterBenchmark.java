@@ -0,0 +1,155 @@
+package au.com.gaiaresources.bdrs.kml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.PrecisionModel;
+
+/**
+ * Compares the peak heap and time to first byte of the {@link KMLWriter} and
+ * the {@link StreamingKMLWriter} when writing large numbers of placemarks.
+ * This is not a unit test. Run it from the command line with a fixed heap, e.g.
+ * <pre>
+ * java -Xmx1024m -cp ... au.com.gaiaresources.bdrs.kml.KMLWriterBenchmark 10000 100000 1000000
+ * </pre>
+ * The in memory writer is expected to run out of heap for the larger counts.
+ */
+public class KMLWriterBenchmark {
+
+    private static final int[] DEFAULT_COUNTS = new int[] { 10000, 100000, 1000000 };
+    private static final String FOLDER = "Record";
+    private static final String STYLE = "pointIcon";
+    // roughly the size of the json description of a record without attributes.
+    private static final String DESCRIPTION = "{\"id\":%d,\"species\":\"Latin binomial\",\"commonName\":\"Common name\",\"when\":1325376000000,\"owner\":\"Firstname Lastname\"}";
+
+    private static GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    public static void main(String[] args) throws Exception {
+        int[] counts = DEFAULT_COUNTS;
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        // warm up the JAXB context and transforms.
+        runJAXB(1000);
+        runStreaming(1000);
+
+        System.out.println("writer\tplacemarks\tms to first byte\ttotal ms\tpeak heap MB\tbytes");
+        for (int count : counts) {
+            print("jaxb", count, runJAXB(count));
+            print("streaming", count, runStreaming(count));
+        }
+    }
+
+    private static Result runJAXB(int count) throws Exception {
+        CountingOutputStream out = startRun();
+        try {
+            KMLWriter writer = new KMLWriter();
+            writer.createStyleIcon(STYLE, "http://www.example.com/icon.png", 16, 16);
+            writer.createFolder(FOLDER);
+            for (int i = 0; i < count; i++) {
+                writer.createPlacemark(FOLDER, "Record #" + i, String.format(DESCRIPTION, i), String.valueOf(i), createPoint(i), STYLE);
+            }
+            writer.write(false, out);
+        } catch (OutOfMemoryError oome) {
+            return new Result(out, true);
+        }
+        return new Result(out, false);
+    }
+
+    private static Result runStreaming(int count) throws Exception {
+        CountingOutputStream out = startRun();
+        try {
+            StreamingKMLWriter writer = new StreamingKMLWriter(out);
+            writer.createStyleIcon(STYLE, "http://www.example.com/icon.png", 16, 16);
+            writer.createFolder(FOLDER);
+            for (int i = 0; i < count; i++) {
+                writer.createPlacemark(FOLDER, "Record #" + i, String.format(DESCRIPTION, i), String.valueOf(i), createPoint(i), STYLE);
+            }
+            writer.close();
+        } catch (OutOfMemoryError oome) {
+            return new Result(out, true);
+        }
+        return new Result(out, false);
+    }
+
+    private static Point createPoint(int i) {
+        return factory.createPoint(new Coordinate(110 + (i % 4000) / 100d, -10 - (i / 4000) / 100d));
+    }
+
+    private static CountingOutputStream startRun() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        return new CountingOutputStream();
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void print(String writer, int count, Result result) {
+        if (result.outOfMemory) {
+            System.out.println(String.format("%s\t%d\tOutOfMemoryError", writer, count));
+        } else {
+            System.out.println(String.format("%s\t%d\t%d\t%d\t%.1f\t%d", writer, count,
+                    result.firstByteMillis, result.totalMillis, result.peakHeap / (1024d * 1024d), result.bytes));
+        }
+    }
+
+    private static class Result {
+        private long firstByteMillis;
+        private long totalMillis;
+        private long peakHeap;
+        private long bytes;
+        private boolean outOfMemory;
+
+        public Result(CountingOutputStream out, boolean outOfMemory) {
+            this.totalMillis = System.currentTimeMillis() - out.start;
+            this.firstByteMillis = out.firstByte < 0 ? -1 : out.firstByte - out.start;
+            this.bytes = out.count;
+            this.peakHeap = getPeakHeap();
+            this.outOfMemory = outOfMemory;
+        }
+    }
+
+    /**
+     * Discards the output but records when the first byte was written.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long start = System.currentTimeMillis();
+        private long firstByte = -1;
+        private long count = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (firstByte < 0 && len > 0) {
+                firstByte = System.currentTimeMillis();
+            }
+            count += len;
+        }
+    }
+}
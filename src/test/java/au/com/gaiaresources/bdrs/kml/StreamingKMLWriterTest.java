@@ -0,0 +1,180 @@
+package au.com.gaiaresources.bdrs.kml;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.PrecisionModel;
+
+public class StreamingKMLWriterTest {
+
+    private static final String ICON_URL = "http://www.example.com/icon.png";
+
+    private GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    @Test
+    public void testSameKMLAsJAXBWriter() throws Exception {
+        KMLWriter writer = new KMLWriter();
+        writer.createStyleIcon("icon", ICON_URL, 16, 16);
+        writer.createStylePoly("poly", "EE9900".toCharArray());
+        writer.createStylePoly("colour", new Color(255, 0, 0, 100));
+        writer.createFolder("Record");
+        writer.createFolder("Location");
+        writer.createPlacemark("Record", "point", "point description", "1", factory.createPoint(new Coordinate(115, -31)), "icon");
+        writer.createPlacemark("Record", "poly", "poly <b>description</b>", "2", factory.createMultiPolygon(new Polygon[] { createSquare(10, 10) }), "poly");
+        writer.createPlacemark("Record", "line", null, "3", factory.createMultiLineString(new LineString[] { 
+                factory.createLineString(new Coordinate[] { new Coordinate(0, 0), new Coordinate(1, 1) }) }), "poly");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writer.write(false, expected);
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        StreamingKMLWriter streamingWriter = new StreamingKMLWriter(actual);
+        streamingWriter.createStyleIcon("icon", ICON_URL, 16, 16);
+        streamingWriter.createStylePoly("poly", "EE9900".toCharArray());
+        streamingWriter.createStylePoly("colour", new Color(255, 0, 0, 100));
+        streamingWriter.createFolder("Record");
+        streamingWriter.createFolder("Location");
+        streamingWriter.createPlacemark("Record", "point", "point description", "1", factory.createPoint(new Coordinate(115, -31)), "icon");
+        streamingWriter.createPlacemark("Record", "poly", "poly <b>description</b>", "2", factory.createMultiPolygon(new Polygon[] { createSquare(10, 10) }), "poly");
+        streamingWriter.createPlacemark("Record", "line", null, "3", factory.createMultiLineString(new LineString[] { 
+                factory.createLineString(new Coordinate[] { new Coordinate(0, 0), new Coordinate(1, 1) }) }), "poly");
+        streamingWriter.close();
+
+        assertSameKML(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void testEmptyDocument() throws Exception {
+        KMLWriter writer = new KMLWriter();
+        writer.createFolder("Squares");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writer.write(false, expected);
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        StreamingKMLWriter streamingWriter = new StreamingKMLWriter(actual);
+        streamingWriter.createFolder("Squares");
+        streamingWriter.close();
+
+        assertSameKML(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void testInterleavedFolders() throws Exception {
+        KMLWriter writer = new KMLWriter();
+        writer.createStyleIcon("icon", ICON_URL, 16, 16);
+        writer.createFolder("Record");
+        writer.createFolder("Location");
+        writer.createPlacemark("Location", "location 1", "first location", "1", factory.createPoint(new Coordinate(115, -31)), "icon");
+        writer.createPlacemark("Record", "record 1", "first record", "2", factory.createPoint(new Coordinate(116, -31)), "icon");
+        writer.createPlacemark("Location", "location 2", "second location", "3", factory.createPoint(new Coordinate(117, -31)), "icon");
+        writer.createPlacemark("Other", "other", null, "4", factory.createPoint(new Coordinate(118, -31)), "icon");
+        writer.createPlacemark("Record", "record 2", "second record", "5", factory.createPoint(new Coordinate(119, -31)), "icon");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writer.write(false, expected);
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        StreamingKMLWriter streamingWriter = new StreamingKMLWriter(actual);
+        streamingWriter.createStyleIcon("icon", ICON_URL, 16, 16);
+        streamingWriter.createFolder("Record");
+        streamingWriter.createFolder("Location");
+        streamingWriter.createPlacemark("Location", "location 1", "first location", "1", factory.createPoint(new Coordinate(115, -31)), "icon");
+        streamingWriter.createPlacemark("Record", "record 1", "first record", "2", factory.createPoint(new Coordinate(116, -31)), "icon");
+        streamingWriter.createPlacemark("Location", "location 2", "second location", "3", factory.createPoint(new Coordinate(117, -31)), "icon");
+        streamingWriter.createPlacemark("Other", "other", null, "4", factory.createPoint(new Coordinate(118, -31)), "icon");
+        streamingWriter.createPlacemark("Record", "record 2", "second record", "5", factory.createPoint(new Coordinate(119, -31)), "icon");
+        streamingWriter.close();
+
+        assertSameKML(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void testNothingWrittenBeforePlacemark() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingKMLWriter streamingWriter = new StreamingKMLWriter(out);
+        streamingWriter.createStylePoly("poly", "EE9900".toCharArray());
+        streamingWriter.createFolder("Squares");
+        Assert.assertEquals(0, out.size());
+
+        ByteArrayOutputStream other = new ByteArrayOutputStream();
+        streamingWriter.setOutputStream(other);
+        streamingWriter.createPlacemark("Squares", "square", createSquare(0, 0), null);
+        streamingWriter.close();
+        Assert.assertEquals(0, out.size());
+        Assert.assertTrue(new String(other.toByteArray(), "UTF-8").contains("<name>square</name>"));
+    }
+
+    @Test
+    public void testPlacemarksWrittenBeforeClose() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingKMLWriter streamingWriter = new StreamingKMLWriter(out);
+        streamingWriter.createFolder("Squares");
+        streamingWriter.createPlacemark("Squares", "square", createSquare(0, 0), null);
+        streamingWriter.flush();
+
+        Assert.assertTrue(new String(out.toByteArray(), "UTF-8").contains("<name>square</name>"));
+        streamingWriter.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStyleAfterPlacemark() throws Exception {
+        StreamingKMLWriter streamingWriter = new StreamingKMLWriter(new ByteArrayOutputStream());
+        streamingWriter.createPlacemark("Squares", "square", createSquare(0, 0), null);
+        streamingWriter.createStylePoly("poly", "EE9900".toCharArray());
+    }
+
+    private Polygon createSquare(double x, double y) {
+        LinearRing ring = factory.createLinearRing(new Coordinate[] {
+                new Coordinate(x, y),
+                new Coordinate(x + 1, y),
+                new Coordinate(x + 1, y + 1),
+                new Coordinate(x, y + 1),
+                new Coordinate(x, y)
+        });
+        return factory.createPolygon(ring, null);
+    }
+
+    private void assertSameKML(byte[] expected, byte[] actual) throws Exception {
+        Document expectedDoc = parse(expected);
+        Document actualDoc = parse(actual);
+        Assert.assertTrue("Streaming KML differs from JAXB KML :\n" + new String(expected, "UTF-8") + "\n" + new String(actual, "UTF-8"), 
+                expectedDoc.getDocumentElement().isEqualNode(actualDoc.getDocumentElement()));
+    }
+
+    private Document parse(byte[] kml) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(kml));
+        removeNamespaceDeclarations(doc.getDocumentElement());
+        return doc;
+    }
+
+    // the streaming writer may declare namespaces on each placemark rather than the root element.
+    private void removeNamespaceDeclarations(Node node) {
+        NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null) {
+            for (int i = attributes.getLength() - 1; i >= 0; i--) {
+                Node attr = attributes.item(i);
+                if ("xmlns".equals(attr.getPrefix()) || "xmlns".equals(attr.getNodeName())) {
+                    attributes.removeNamedItem(attr.getNodeName());
+                }
+            }
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            removeNamespaceDeclarations(child);
+        }
+    }
+}
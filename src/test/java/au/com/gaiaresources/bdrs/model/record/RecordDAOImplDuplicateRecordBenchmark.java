@@ -0,0 +1,129 @@
+package au.com.gaiaresources.bdrs.model.record;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.model.user.UserDAO;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+
+/**
+ * Compares the time taken to find the duplicates of a bulk upload one record
+ * at a time with {@link RecordDAO#getDuplicateRecords(Record, double, int, int, Integer[], Integer[])}
+ * and as a batch with {@link RecordDAO#getDuplicateRecords(java.util.Collection, double, int, int, Integer[], Integer[])}.
+ * This is not run with the unit tests. Run it with
+ * <pre>
+ * mvn test -Dtest=RecordDAOImplDuplicateRecordBenchmark -Dbenchmark.existing=20000 -Dbenchmark.uploaded=1000
+ * </pre>
+ */
+public class RecordDAOImplDuplicateRecordBenchmark extends AbstractTransactionalTest {
+
+    private static final double BUFFER_METRE = 50;
+    private static final int CALENDAR_FIELD = Calendar.HOUR_OF_DAY;
+    private static final int EXTEND_TIME = 2;
+
+    @Autowired
+    private RecordDAO recDAO;
+    @Autowired
+    private SurveyDAO surveyDAO;
+    @Autowired
+    private UserDAO userDAO;
+
+    private GeometryBuilder builder = new GeometryBuilder(4326);
+    private Random random = new Random(42);
+
+    @Test
+    public void benchmark() {
+        int existingCount = Integer.getInteger("benchmark.existing", 20000);
+        int uploadedCount = Integer.getInteger("benchmark.uploaded", 1000);
+
+        User admin = userDAO.getUser("admin");
+        Survey survey = new Survey();
+        survey.setName("benchmark survey");
+        survey.setDescription("benchmark survey");
+        survey = surveyDAO.save(survey);
+
+        long start = System.currentTimeMillis();
+        List<Record> existing = new ArrayList<Record>(existingCount);
+        for (int i = 0; i < existingCount; i++) {
+            existing.add(createRecord(survey, admin, 115 + random.nextDouble() * 5, -35 + random.nextDouble() * 5, randomDate()));
+            if (i % 1000 == 0) {
+                getSession().flush();
+                getSession().clear();
+            }
+        }
+        // the upload duplicates a tenth of the existing records
+        List<Record> uploaded = new ArrayList<Record>(uploadedCount);
+        for (int i = 0; i < uploadedCount; i++) {
+            if (i % 10 == 0) {
+                Record original = existing.get(random.nextInt(existing.size()));
+                uploaded.add(createRecord(survey, admin, original.getPoint().getX(), original.getPoint().getY(), original.getWhen()));
+            } else {
+                uploaded.add(createRecord(survey, admin, 115 + random.nextDouble() * 5, -35 + random.nextDouble() * 5, randomDate()));
+            }
+        }
+        getSession().flush();
+        getSession().clear();
+        System.out.println(String.format("Created %d existing and %d uploaded records in %d ms", existingCount, uploadedCount, System.currentTimeMillis() - start));
+
+        List<Record> candidates = new ArrayList<Record>(uploadedCount);
+        for (Record r : uploaded) {
+            candidates.add(recDAO.getRecord(r.getId()));
+        }
+
+        start = System.currentTimeMillis();
+        Map<Record, Set<Record>> single = new HashMap<Record, Set<Record>>();
+        for (Record candidate : candidates) {
+            Set<Record> duplicates = recDAO.getDuplicateRecords(candidate, BUFFER_METRE, CALENDAR_FIELD, EXTEND_TIME, null, null);
+            if (!duplicates.isEmpty()) {
+                single.put(candidate, duplicates);
+            }
+        }
+        long singleMillis = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        Map<Record, Set<Record>> batch = recDAO.getDuplicateRecords(candidates, BUFFER_METRE, CALENDAR_FIELD, EXTEND_TIME, null, null);
+        long batchMillis = System.currentTimeMillis() - start;
+
+        System.out.println("method\trecords\tduplicated\tms");
+        System.out.println(String.format("single\t%d\t%d\t%d", candidates.size(), single.size(), singleMillis));
+        System.out.println(String.format("batch\t%d\t%d\t%d", candidates.size(), batch.size(), batchMillis));
+
+        Assert.assertEquals(single.keySet(), batch.keySet());
+        for (Record candidate : single.keySet()) {
+            Assert.assertEquals(single.get(candidate), new HashSet<Record>(batch.get(candidate)));
+        }
+    }
+
+    private Date randomDate() {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(2011, random.nextInt(12), 1 + random.nextInt(28), random.nextInt(24), 0);
+        return cal.getTime();
+    }
+
+    private Record createRecord(Survey survey, User owner, double x, double y, Date when) {
+        Record rec = new Record();
+        rec.setUser(owner);
+        rec.setSurvey(survey);
+        rec.setWhen(when);
+        rec.setLastDate(when);
+        rec.setGeometry(builder.createPoint(x, y));
+        rec.setRecordVisibility(RecordVisibility.PUBLIC);
+        return recDAO.saveRecord(rec);
+    }
+}
@@ -1,6 +1,11 @@
 package au.com.gaiaresources.bdrs.model.record;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.junit.Assert;
@@ -15,9 +20,11 @@ import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
 import au.com.gaiaresources.bdrs.model.user.User;
 import au.com.gaiaresources.bdrs.model.user.UserDAO;
 import au.com.gaiaresources.bdrs.test.TestUtil;
+import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
 
 import com.ibm.icu.util.Calendar;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
 
 public class RecordDAOImplDuplicateRecordTest extends AbstractControllerTest {
 
@@ -80,6 +87,62 @@ public class RecordDAOImplDuplicateRecordTest extends AbstractControllerTest {
 		}
 	}
 	
+	@Test
+	public void testBatchDuplicateRecords() {
+		List<Record> candidates = Arrays.asList(r1, r2, r3, r4);
+		assertBatchMatchesSingle(candidates, 1, 0, 0, new Integer[] {}, new Integer[] {});
+		assertBatchMatchesSingle(candidates, 1, 0, 0, new Integer[] { r2.getId() }, new Integer[] {});
+		assertBatchMatchesSingle(candidates, 1, 0, 0, new Integer[] { r2.getId() }, new Integer[] { r1.getId() });
+		assertBatchMatchesSingle(candidates, 1, Calendar.HOUR_OF_DAY, 1, new Integer[] {}, new Integer[] {});
+	}
+	
+	@Test
+	public void testBatchDuplicateRecordsOtherSrid() {
+		Record far = createTestRecord(d1, wgsBuilder.createPoint(21, 20), r1.getSurvey(), admin);
+		Geometry wgsPoint = wgsBuilder.createPoint(115.7, -31.9);
+		Record wgs = createTestRecord(d1, wgsPoint, r1.getSurvey(), admin);
+		// an existing record about 100m away stored in MGA zone 50
+		Point mgaPoint = new SpatialUtilFactory().getLocationUtil(28350).transform(wgsPoint).getCentroid();
+		Record mga = createTestRecord(d1, mgaBuilder.createPoint(mgaPoint.getX() + 100, mgaPoint.getY()), r1.getSurvey(), admin);
+		
+		List<Record> candidates = Arrays.asList(r1, far, wgs);
+		assertBatchMatchesSingle(candidates, 1, 0, 0, new Integer[] {}, new Integer[] {});
+		assertBatchMatchesSingle(candidates, 5000, 0, 0, new Integer[] {}, new Integer[] {});
+		Assert.assertEquals(Collections.singleton(mga), 
+				recDAO.getDuplicateRecords(candidates, 5000, 0, 0, new Integer[] {}, new Integer[] {}).get(wgs));
+	}
+	
+	@Test
+	public void testDuplicateClusters() {
+		Record unsaved1 = new Record();
+		unsaved1.setWhen(d2);
+		unsaved1.setGeometry(wgsBuilder.createPoint(30, 30));
+		Record unsaved2 = new Record();
+		unsaved2.setWhen(d2);
+		unsaved2.setGeometry(wgsBuilder.createPoint(30, 30));
+		
+		List<Set<Record>> clusters = recDAO.getDuplicateRecordClusters(Arrays.asList(r1, unsaved1, unsaved2), 1, Calendar.HOUR_OF_DAY, 1, new Integer[] {}, new Integer[] {});
+		Assert.assertEquals("wrong cluster count", 2, clusters.size());
+		for (Set<Record> cluster : clusters) {
+			if (cluster.contains(r1)) {
+				Assert.assertEquals(new HashSet<Record>(Arrays.asList(r1, r2, r3, r4)), cluster);
+			} else {
+				Assert.assertEquals(2, cluster.size());
+				Assert.assertTrue(cluster.contains(unsaved1));
+				Assert.assertTrue(cluster.contains(unsaved2));
+			}
+		}
+	}
+	
+	private void assertBatchMatchesSingle(List<Record> candidates, double bufferMetre, int calendarField, int extendTime, Integer[] excludeRecordIds, Integer[] includeRecordIds) {
+		Map<Record, Set<Record>> batch = recDAO.getDuplicateRecords(candidates, bufferMetre, calendarField, extendTime, excludeRecordIds, includeRecordIds);
+		for (Record candidate : candidates) {
+			Set<Record> expected = recDAO.getDuplicateRecords(candidate, bufferMetre, calendarField, extendTime, excludeRecordIds, includeRecordIds);
+			Set<Record> actual = batch.containsKey(candidate) ? batch.get(candidate) : new HashSet<Record>();
+			Assert.assertEquals("wrong duplicates for record " + candidate.getId(), expected, actual);
+		}
+	}
+	
 	private Record createTestRecord(Date now, Geometry geom, Survey survey, User owner) {
         Record rec = new Record();
         rec.setUser(owner);
@@ -24,6 +24,7 @@ import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
 import au.com.gaiaresources.bdrs.model.user.User;
 import au.com.gaiaresources.bdrs.model.user.UserDAO;
 import au.com.gaiaresources.bdrs.security.Role;
+import au.com.gaiaresources.bdrs.service.survey.SurveyAccessResolver;
 import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
 import au.com.gaiaresources.bdrs.util.SpatialUtil;
 import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
@@ -42,6 +43,8 @@ public class RecordDAOImplFilterTest extends AbstractTransactionalTest {
     private LocationDAO locDAO;
     @Autowired
     private GroupDAO groupDAO;
+    @Autowired
+    private SurveyAccessResolver surveyAccessResolver;
 
     private TaxonGroup g1;
     private TaxonGroup g2;
@@ -334,6 +337,39 @@ public class RecordDAOImplFilterTest extends AbstractTransactionalTest {
         assertRecord(result, r9);
     }
     
+    @Test
+    public void testResolvedSurveyRecordFilter() {
+        User[] users = new User[] { null, groupUser, normalUser, moderatorUser, adminUser };
+        for (User user : users) {
+            FilterManager.enableRecordFilter(getSession(), user);
+            List<Record> expected = recordDAO.getRecords(100, 0);
+            FilterManager.disableRecordFilter(getSession());
+            
+            surveyAccessResolver.enableRecordFilter(getSession(), user);
+            List<Record> result = recordDAO.getRecords(100, 0);
+            FilterManager.disableRecordFilter(getSession());
+            
+            String name = user == null ? "anonymous" : user.getName();
+            Assert.assertEquals("wrong size for " + name, expected.size(), result.size());
+            for (Record rec : expected) {
+                assertRecord(result, rec);
+            }
+        }
+    }
+    
+    @Test
+    public void testAccessibleSurveyIdsChange() {
+        Set<Integer> before = surveyAccessResolver.getAccessibleSurveyIds(getSession(), normalUser);
+        Assert.assertFalse("user is not a member of survey5", before.contains(survey5.getId()));
+        
+        addUserToSurvey(survey5, normalUser);
+        surveyDAO.updateSurvey(survey5);
+        getSession().flush();
+        
+        Set<Integer> after = surveyAccessResolver.getAccessibleSurveyIds(getSession(), normalUser);
+        Assert.assertTrue("user is now a member of survey5", after.contains(survey5.getId()));
+    }
+    
     private void addLocationToSurvey(Survey survey, Location loc) {
         List<Location> locList = new ArrayList<Location>();
         locList.addAll(survey.getLocations());
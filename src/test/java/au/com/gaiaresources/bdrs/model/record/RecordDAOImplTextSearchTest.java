@@ -0,0 +1,253 @@
+package au.com.gaiaresources.bdrs.model.record;
+
+import java.util.Date;
+import java.util.List;
+
+import org.hibernate.Query;
+import org.hibernate.search.Search;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.db.impl.HqlQuery;
+import au.com.gaiaresources.bdrs.db.impl.Predicate;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
+import au.com.gaiaresources.bdrs.model.taxa.Attribute;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeDAO;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeScope;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeType;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeValue;
+import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
+import au.com.gaiaresources.bdrs.model.taxa.TaxaDAO;
+import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.model.user.UserDAO;
+import au.com.gaiaresources.bdrs.search.HibernateSearchService;
+import au.com.gaiaresources.bdrs.search.IndexProgress;
+import au.com.gaiaresources.bdrs.search.SearchService;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+
+/**
+ * Tests searching the full text index of the records.
+ */
+public class RecordDAOImplTextSearchTest extends AbstractTransactionalTest {
+
+    @Autowired
+    private RecordDAO recordDAO;
+    @Autowired
+    private SurveyDAO surveyDAO;
+    @Autowired
+    private TaxaDAO taxaDAO;
+    @Autowired
+    private AttributeDAO attributeDAO;
+    @Autowired
+    private UserDAO userDAO;
+    @Autowired
+    private SearchService searchService;
+
+    private User user;
+    private Survey survey;
+    private Attribute textAttribute;
+    private Attribute speciesAttribute;
+
+    private Record notesRecord;
+    private Record speciesRecord;
+    private Record textRecord;
+    private Record attributeSpeciesRecord;
+
+    @Before
+    public void setup() {
+        user = userDAO.getUser("admin");
+
+        survey = new Survey();
+        survey.setName("text search survey");
+        survey.setDescription("text search survey");
+        survey.setActive(true);
+        survey.setStartDate(new Date());
+        surveyDAO.save(survey);
+
+        TaxonGroup group = new TaxonGroup();
+        group.setName("birds");
+        taxaDAO.save(group);
+        IndicatorSpecies kingfisher = createSpecies(group, "Todiramphus sanctus", "Sacred Kingfisher");
+        IndicatorSpecies lorikeet = createSpecies(group, "Trichoglossus moluccanus", "Rainbow Lorikeet");
+
+        textAttribute = createAttribute("habitat", AttributeType.STRING);
+        speciesAttribute = createAttribute("associate", AttributeType.SPECIES);
+
+        notesRecord = createRecord(null, "Seen near the billabong at dusk");
+        speciesRecord = createRecord(kingfisher, null);
+
+        textRecord = createRecord(null, null);
+        AttributeValue text = new AttributeValue();
+        text.setAttribute(textAttribute);
+        text.setStringValue("Nesting in a hollow");
+        textRecord.getAttributes().add(attributeDAO.save(text));
+        recordDAO.saveRecord(textRecord);
+
+        attributeSpeciesRecord = createRecord(null, null);
+        AttributeValue species = new AttributeValue();
+        species.setAttribute(speciesAttribute);
+        species.setSpecies(lorikeet);
+        attributeSpeciesRecord.getAttributes().add(attributeDAO.save(species));
+        recordDAO.saveRecord(attributeSpeciesRecord);
+
+        searchService.createIndex(getSession(), Record.class, defaultPortal);
+    }
+
+    @After
+    public void teardown() {
+        // the index is not rolled back with the transaction
+        searchService.deleteIndex(getSession(), Record.class, defaultPortal);
+    }
+
+    private IndicatorSpecies createSpecies(TaxonGroup group, String scientificName, String commonName) {
+        IndicatorSpecies species = new IndicatorSpecies();
+        species.setScientificName(scientificName);
+        species.setCommonName(commonName);
+        species.setTaxonGroup(group);
+        return taxaDAO.save(species);
+    }
+
+    private Attribute createAttribute(String name, AttributeType type) {
+        Attribute attr = new Attribute();
+        attr.setName(name);
+        attr.setDescription(name);
+        attr.setRequired(false);
+        attr.setScope(AttributeScope.RECORD);
+        attr.setTag(false);
+        attr.setTypeCode(type.getCode());
+        return attributeDAO.save(attr);
+    }
+
+    private Record createRecord(IndicatorSpecies species, String notes) {
+        Record record = new Record();
+        record.setSurvey(survey);
+        record.setUser(user);
+        record.setSpecies(species);
+        record.setNotes(notes);
+        record.setWhen(new Date());
+        return recordDAO.saveRecord(record);
+    }
+
+    private void assertMatches(String searchText, Record... expected) {
+        List<Integer> ids = recordDAO.searchRecordIds(searchText);
+        Assert.assertNotNull(searchText, ids);
+        Assert.assertEquals(searchText, expected.length, ids.size());
+        for (Record r : expected) {
+            Assert.assertTrue(searchText, ids.contains(r.getId()));
+        }
+    }
+
+    @Test
+    public void testSearchFields() {
+        assertMatches("billabong", notesRecord);
+        assertMatches("kingfisher", speciesRecord);
+        assertMatches("hollow", textRecord);
+        assertMatches("lorikeet", attributeSpeciesRecord);
+    }
+
+    @Test
+    public void testSearchWords() {
+        // the start of a word
+        assertMatches("billab", notesRecord);
+        assertMatches("BILLABONG", notesRecord);
+        // every word must match
+        assertMatches("billabong dusk", notesRecord);
+        assertMatches("billabong kingfisher");
+    }
+
+    @Test
+    public void testNotSearchable() {
+        Assert.assertNull(recordDAO.searchRecordIds("  -- "));
+        Assert.assertNull(recordDAO.searchRecordIds(""));
+    }
+
+    @Test
+    public void testSearchPredicate() {
+        Predicate predicate = recordDAO.createSearchPredicate("record.id", "billabong");
+        Assert.assertNotNull(predicate);
+        HqlQuery hqlQuery = new HqlQuery("select record.id from Record record");
+        hqlQuery.and(predicate);
+        Query query = getSession().createQuery(hqlQuery.getQueryString());
+        hqlQuery.applyNamedArgsToQuery(query);
+        List<?> ids = query.list();
+        Assert.assertEquals(1, ids.size());
+        Assert.assertEquals(notesRecord.getId(), ids.get(0));
+
+        // the hits of a search are only written once by a transaction
+        Assert.assertNotNull(recordDAO.createSearchPredicate("record.id", "billabong"));
+        Assert.assertEquals(1, countSearchHits());
+        Assert.assertNotNull(recordDAO.createSearchPredicate("record.id", "kingfisher"));
+        Assert.assertEquals(2, countSearchHits());
+
+        Assert.assertNull(recordDAO.createSearchPredicate("record.id", "  -- "));
+    }
+
+    private int countSearchHits() {
+        return ((Number) getSession().createQuery("select count(*) from RecordSearchHit").uniqueResult()).intValue();
+    }
+
+    @Test
+    public void testIncrementalIndexing() {
+        Record record = recordDAO.getRecord(notesRecord.getId());
+        record.setNotes("Resting on a fence");
+        recordDAO.updateRecord(record);
+
+        for (AttributeValue av : recordDAO.getRecord(textRecord.getId()).getAttributes()) {
+            // the record is not modified by the change to its attribute
+            av.setStringValue("Roosting in a tree");
+            recordDAO.updateAttributeValue(av);
+        }
+        recordDAO.saveRecord(recordDAO.getRecord(textRecord.getId()));
+
+        recordDAO.delete(recordDAO.getRecord(speciesRecord.getId()));
+
+        // apply the changes queued for the commit
+        Search.getFullTextSession(getSession()).flushToIndexes();
+
+        assertMatches("billabong");
+        assertMatches("fence", notesRecord);
+        assertMatches("hollow");
+        assertMatches("roosting", textRecord);
+        assertMatches("kingfisher");
+    }
+
+    @Test
+    public void testRebuildIndex() {
+        HibernateSearchService hibernateSearchService = (HibernateSearchService) searchService;
+        int workers = hibernateSearchService.getIndexWorkers();
+        // the workers cannot see the records of this transaction
+        hibernateSearchService.setIndexWorkers(0);
+        try {
+            // deleted without notifying the index
+            getSession().createQuery("delete from Record where id = :id")
+                    .setParameter("id", notesRecord.getId()).executeUpdate();
+
+            searchService.rebuildIndex(getSession(), Record.class, defaultPortal);
+        } finally {
+            hibernateSearchService.setIndexWorkers(workers);
+        }
+
+        assertMatches("billabong");
+        assertMatches("kingfisher", speciesRecord);
+        assertMatches("hollow", textRecord);
+        assertMatches("lorikeet", attributeSpeciesRecord);
+
+        IndexProgress progress = null;
+        for (IndexProgress p : searchService.getIndexProgress(defaultPortal)) {
+            if (Record.class.getSimpleName().equals(p.getClassName())) {
+                progress = p;
+            }
+        }
+        Assert.assertNotNull(progress);
+        Assert.assertEquals(IndexProgress.State.COMPLETE, progress.getState());
+        Assert.assertEquals(3, progress.getTotal());
+        Assert.assertEquals(3, progress.getIndexed());
+        Assert.assertEquals(1, progress.getPurged());
+        Assert.assertEquals(0, progress.getEtaMillis());
+    }
+}
@@ -0,0 +1,224 @@
+package au.com.gaiaresources.bdrs.model.record;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.db.FilterManager;
+import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
+import au.com.gaiaresources.bdrs.model.group.Group;
+import au.com.gaiaresources.bdrs.model.group.GroupDAO;
+import au.com.gaiaresources.bdrs.model.record.impl.AdvancedCountRecordFilter;
+import au.com.gaiaresources.bdrs.model.record.impl.RecordFilter;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.model.user.UserDAO;
+import au.com.gaiaresources.bdrs.security.Role;
+import au.com.gaiaresources.bdrs.service.survey.SurveyAccessResolver;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+
+/**
+ * Compares {@link Record#USER_ACCESS_FILTER}, which evaluates the survey
+ * membership of the user for each record, with
+ * {@link Record#USER_SURVEY_ACCESS_FILTER}, which compares the survey of each
+ * record with the surveys resolved by the {@link SurveyAccessResolver}. The
+ * query plans of a record count for a user are printed with the time taken
+ * to count the records of a sample of the users with each filter.
+ * This is not run with the unit tests. Run it with
+ * <pre>
+ * mvn test -Dtest=RecordUserAccessFilterBenchmark -Dbenchmark.records=100000 -Dbenchmark.surveys=200 -Dbenchmark.users=1000
+ * </pre>
+ */
+public class RecordUserAccessFilterBenchmark extends AbstractTransactionalTest {
+
+    private static final int GROUP_COUNT = 50;
+    private static final int SAMPLE_USERS = 50;
+    private static final int REPEATS = 5;
+
+    private static final String COUNT_QUERY = "select count(*) from record where ";
+
+    // see the filters of Record
+    private static final String USER_ACCESS_CONDITION = "(INDICATOR_USER_ID = %1$d OR (("
+        + " INDICATOR_SURVEY_ID in (select surv2.survey_id from survey surv2 where surv2.public or surv2.public_read_access)"
+        + " or INDICATOR_SURVEY_ID in (select sud2.survey_survey_id from survey_user_definition sud2 where sud2.users_user_definition_id = %1$d)"
+        + " or INDICATOR_SURVEY_ID in (select sg3.survey_survey_id from survey_usergroup sg3 join group_users gu3 on sg3.groups_group_id=gu3.usergroup_group_id where gu3.users_user_definition_id = %1$d ))"
+        + " and RECORD_VISIBILITY IN ('PUBLIC','CONTROLLED') and not HELD))";
+    private static final String USER_SURVEY_ACCESS_CONDITION = "(INDICATOR_USER_ID = %1$d OR ("
+        + " INDICATOR_SURVEY_ID in (%2$s)"
+        + " and RECORD_VISIBILITY IN ('PUBLIC','CONTROLLED') and not HELD))";
+
+    @Autowired
+    private RecordDAO recordDAO;
+    @Autowired
+    private SurveyDAO surveyDAO;
+    @Autowired
+    private UserDAO userDAO;
+    @Autowired
+    private GroupDAO groupDAO;
+    @Autowired
+    private SurveyAccessResolver surveyAccessResolver;
+
+    private GeometryBuilder builder = new GeometryBuilder(4326);
+    private Random random = new Random(42);
+
+    @Test
+    public void benchmark() {
+        int recordCount = Integer.getInteger("benchmark.records", 100000);
+        int surveyCount = Integer.getInteger("benchmark.surveys", 200);
+        int userCount = Integer.getInteger("benchmark.users", 1000);
+
+        long start = System.currentTimeMillis();
+        List<User> users = new ArrayList<User>(userCount);
+        for (int i = 0; i < userCount; i++) {
+            users.add(userDAO.createUser("bench" + i, "first" + i, "last" + i, "bench" + i + "@example.com",
+                    "password", "regkey" + i, new String[] { Role.USER }));
+        }
+
+        // each group has a tenth of the users
+        List<Group> groups = new ArrayList<Group>(GROUP_COUNT);
+        for (int i = 0; i < GROUP_COUNT; i++) {
+            Group group = new Group();
+            group.setName("bench group " + i);
+            group.setUsers(randomSubset(users, userCount / 10));
+            groups.add(groupDAO.save(group));
+        }
+
+        // a fifth of the surveys are public, the others have a few groups
+        // and a twentieth of the users as members
+        List<Survey> surveys = new ArrayList<Survey>(surveyCount);
+        for (int i = 0; i < surveyCount; i++) {
+            Survey survey = new Survey();
+            survey.setName("bench survey " + i);
+            survey.setDescription("bench survey " + i);
+            survey.setActive(true);
+            survey.setStartDate(new Date());
+            boolean isPublic = i % 5 == 0;
+            survey.setPublic(isPublic);
+            survey.setPublicReadAccess(isPublic);
+            if (!isPublic) {
+                survey.setUsers(randomSubset(users, userCount / 20));
+                survey.setGroups(randomSubset(groups, 3));
+            }
+            surveys.add(surveyDAO.save(survey));
+        }
+        getSession().flush();
+
+        RecordVisibility[] visibilities = RecordVisibility.values();
+        for (int i = 0; i < recordCount; i++) {
+            Record rec = new Record();
+            rec.setUser(users.get(random.nextInt(users.size())));
+            rec.setSurvey(surveys.get(random.nextInt(surveys.size())));
+            rec.setWhen(new Date());
+            rec.setLastDate(rec.getWhen());
+            rec.setNumber(1);
+            rec.setGeometry(builder.createPoint(115 + random.nextDouble() * 5, -35 + random.nextDouble() * 5));
+            rec.setRecordVisibility(visibilities[random.nextInt(visibilities.length)]);
+            rec.setHeld(random.nextInt(50) == 0);
+            recordDAO.saveRecord(rec);
+            if (i % 1000 == 0) {
+                getSession().flush();
+                getSession().clear();
+            }
+        }
+        getSession().flush();
+        getSession().clear();
+        for (String table : new String[] { "record", "survey", "survey_user_definition", "survey_usergroup", "group_users" }) {
+            getSession().createSQLQuery("analyze " + table).executeUpdate();
+        }
+        System.out.println(String.format("Created %d records in %d surveys for %d users in %d ms",
+                recordCount, surveyCount, userCount, System.currentTimeMillis() - start));
+
+        List<User> sample = new ArrayList<User>(randomSubset(users, Math.min(SAMPLE_USERS, userCount)));
+        User planUser = sample.get(0);
+        Set<Integer> planSurveyIds = surveyAccessResolver.getAccessibleSurveyIds(getSession(), planUser);
+        System.out.println(String.format("User %d may see %d of the %d surveys", planUser.getId(),
+                planSurveyIds.size(), surveyCount));
+        System.out.println("Before (" + Record.USER_ACCESS_FILTER + "):");
+        explain(String.format(USER_ACCESS_CONDITION, planUser.getId()));
+        System.out.println("After (" + Record.USER_SURVEY_ACCESS_FILTER + "):");
+        explain(String.format(USER_SURVEY_ACCESS_CONDITION, planUser.getId(), join(planSurveyIds)));
+
+        // warm up
+        count(sample, false);
+        count(sample, true);
+
+        System.out.println("filter\tusers\tcounts\tms\tms/count");
+        long before = 0;
+        long after = 0;
+        for (int i = 0; i < REPEATS; i++) {
+            surveyAccessResolver.invalidateAll();
+            long t0 = System.currentTimeMillis();
+            List<Integer> expected = count(sample, false);
+            long t1 = System.currentTimeMillis();
+            List<Integer> actual = count(sample, true);
+            long t2 = System.currentTimeMillis();
+            Assert.assertEquals("the filters must return the same records", expected, actual);
+            before += t1 - t0;
+            after += t2 - t1;
+        }
+        int counts = sample.size() * REPEATS;
+        System.out.println(String.format("%s\t%d\t%d\t%d\t%.2f", Record.USER_ACCESS_FILTER, sample.size(), counts,
+                before, before / (double) counts));
+        System.out.println(String.format("%s\t%d\t%d\t%d\t%.2f", Record.USER_SURVEY_ACCESS_FILTER, sample.size(), counts,
+                after, after / (double) counts));
+    }
+
+    /**
+     * Counts the records each user may see with one of the filters. The
+     * surveys of each user are resolved on the first count after the
+     * resolver is invalidated, as they would be for the first request.
+     */
+    private List<Integer> count(List<User> sample, boolean resolved) {
+        Session sesh = getSession();
+        List<Integer> counts = new ArrayList<Integer>(sample.size());
+        for (User user : sample) {
+            if (resolved) {
+                surveyAccessResolver.enableRecordFilter(sesh, user);
+            } else {
+                FilterManager.enableRecordFilter(sesh, user);
+            }
+            RecordFilter filter = new AdvancedCountRecordFilter();
+            counts.add(recordDAO.countRecords(filter));
+            FilterManager.disableRecordFilter(sesh);
+        }
+        return counts;
+    }
+
+    private void explain(String condition) {
+        List<?> plan = getSession().createSQLQuery("explain analyze " + COUNT_QUERY + condition).list();
+        for (Object line : plan) {
+            System.out.println("  " + line);
+        }
+    }
+
+    private <T> Set<T> randomSubset(List<T> list, int size) {
+        Set<T> subset = new HashSet<T>();
+        while (subset.size() < Math.min(size, list.size())) {
+            subset.add(list.get(random.nextInt(list.size())));
+        }
+        return subset;
+    }
+
+    private String join(Set<Integer> ids) {
+        if (ids.isEmpty()) {
+            return "0";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Integer id : ids) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(id);
+        }
+        return sb.toString();
+    }
+}
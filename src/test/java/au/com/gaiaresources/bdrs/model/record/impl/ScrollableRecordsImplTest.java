@@ -1,11 +1,21 @@
 package au.com.gaiaresources.bdrs.model.record.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import junit.framework.Assert;
 
 import org.hibernate.Session;
 import org.junit.Test;
 
 import au.com.gaiaresources.bdrs.controller.AbstractGridControllerTest;
+import au.com.gaiaresources.bdrs.db.impl.PaginationFilter;
+import au.com.gaiaresources.bdrs.db.impl.SortOrder;
+import au.com.gaiaresources.bdrs.db.impl.SortingCriteria;
+import au.com.gaiaresources.bdrs.model.record.Record;
 import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
 import au.com.gaiaresources.bdrs.model.user.User;
 import au.com.gaiaresources.bdrs.servlet.RequestContextHolder;
@@ -47,4 +57,83 @@ public class ScrollableRecordsImplTest extends AbstractGridControllerTest {
         
         Assert.assertEquals("scrollable count after rewind does not match record database count", recCount.intValue(), scrollableRewindCount);
     }
+
+    @Test
+    public void testStreamingRecords() {
+        RecordFilter filter = new AdvancedRecordFilter();
+        filter.setAccessor(userDAO.getUser("admin"));
+        Integer recCount = recordDAO.countAllRecords();
+        Assert.assertTrue("the number of recs in the database should be > 2", recCount > 2);
+        
+        Session mySesh = RequestContextHolder.getContext().getHibernate();
+        List<SortingCriteria> sortCriteria = Collections.emptyList();
+        ScrollableRecords sr = recordDAO.getStreamingRecords(filter, sortCriteria, 2);
+        
+        List<Record> read = new ArrayList<Record>();
+        while (sr.hasMoreElements()) {
+            read.add(sr.nextElement());
+            if (read.size() == 3) {
+                // the session was cleared before the third record was read
+                Assert.assertFalse(mySesh.contains(read.get(0)));
+                Assert.assertTrue(mySesh.contains(read.get(2)));
+            }
+        }
+        Assert.assertEquals(recCount.intValue(), read.size());
+        Assert.assertFalse(sr.hasMoreElements());
+        
+        // rewinding executes the query again
+        sr.rewind();
+        int rewindCount = 0;
+        while (sr.hasMoreElements()) {
+            sr.nextElement();
+            ++rewindCount;
+        }
+        Assert.assertEquals(recCount.intValue(), rewindCount);
+    }
+
+    @Test
+    public void testKeysetScrollableRecordsByDate() {
+        assertKeysetPages(new PaginationFilter(0, 3));
+    }
+
+    @Test
+    public void testKeysetScrollableRecordsBySpecies() {
+        // species is null for some records and shared by others
+        PaginationFilter pageFilter = new PaginationFilter(0, 2);
+        pageFilter.addSortingCriteria("species.scientificName", SortOrder.ASCENDING);
+        pageFilter.addSortingCriteria("record.when", SortOrder.DESCENDING);
+        assertKeysetPages(pageFilter);
+    }
+
+    private void assertKeysetPages(PaginationFilter pageFilter) {
+        RecordFilter filter = new AdvancedRecordFilter();
+        filter.setAccessor(userDAO.getUser("admin"));
+        
+        Set<Integer> expected = new HashSet<Integer>();
+        ScrollableRecords all = recordDAO.getScrollableRecords(filter);
+        while (all.hasMoreElements()) {
+            expected.add(all.nextElement().getId());
+        }
+        
+        pageFilter.setKeyset(true);
+        Set<Integer> actual = new HashSet<Integer>();
+        int pages = 0;
+        String token;
+        do {
+            ScrollableRecords sr = recordDAO.getScrollableRecords(filter, pageFilter);
+            int pageCount = 0;
+            while (sr.hasMoreElements()) {
+                Record r = sr.nextElement();
+                Assert.assertTrue("record returned twice " + r.getId(), actual.add(r.getId()));
+                ++pageCount;
+            }
+            Assert.assertTrue(pageCount <= pageFilter.getMaxResult());
+            token = sr.getContinuationToken();
+            pageFilter.setContinuationToken(token);
+            ++pages;
+        } while (token != null);
+        
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals((expected.size() + pageFilter.getMaxResult() - 1) / pageFilter.getMaxResult(), pages);
+    }
 }
@@ -0,0 +1,163 @@
+package au.com.gaiaresources.bdrs.model.taxa.impl;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
+import au.com.gaiaresources.bdrs.model.taxa.TaxaDAO;
+import au.com.gaiaresources.bdrs.model.taxa.TaxaService;
+import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
+import au.com.gaiaresources.bdrs.service.taxonomy.TaxonNameIndex;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+
+/**
+ * Tests the taxon name searches answered by the {@link TaxonNameIndex}.
+ */
+public class TaxaServiceImplNameIndexTest extends AbstractTransactionalTest {
+
+    @Autowired
+    private TaxaDAO taxaDAO;
+    @Autowired
+    private TaxaService taxaService;
+    @Autowired
+    private TaxonNameIndex nameIndex;
+
+    private TaxonGroup group;
+    private TaxonGroup otherGroup;
+    private IndicatorSpecies exact;
+    private IndicatorSpecies prefix;
+    private IndicatorSpecies infix;
+    private IndicatorSpecies otherPrefix;
+
+    @Before
+    public void setup() {
+        nameIndex.clear();
+
+        group = new TaxonGroup();
+        group.setName("Zyxwing");
+        taxaDAO.save(group);
+
+        otherGroup = new TaxonGroup();
+        otherGroup.setName("Long tailed zyxwings");
+        taxaDAO.save(otherGroup);
+
+        exact = createSpecies("Zyxwing", "Common zyxwing thing");
+        prefix = createSpecies("Zyxwing australis", "Southern thing");
+        otherPrefix = createSpecies("Zyxwing borealis major", "Northern thing");
+        infix = createSpecies("Vulgaris", "Lesser zyxwing");
+    }
+
+    @After
+    public void teardown() {
+        nameIndex.clear();
+    }
+
+    private IndicatorSpecies createSpecies(String scientificName, String commonName) {
+        IndicatorSpecies species = new IndicatorSpecies();
+        species.setScientificName(scientificName);
+        species.setCommonName(commonName);
+        species.setTaxonGroup(group);
+        return taxaDAO.save(species);
+    }
+
+    @Test
+    public void testRanking() {
+        List<IndicatorSpecies> result = taxaService.getIndicatorSpeciesByNameSearch("zyxwing", true);
+        Assert.assertEquals(4, result.size());
+        // exact, then prefix with the shortest first, then infix
+        Assert.assertEquals(exact, result.get(0));
+        Assert.assertEquals(prefix, result.get(1));
+        Assert.assertEquals(otherPrefix, result.get(2));
+        Assert.assertEquals(infix, result.get(3));
+    }
+
+    @Test
+    public void testWords() {
+        List<IndicatorSpecies> result = taxaService.getIndicatorSpeciesByNameSearch("zyx bor", true);
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(otherPrefix, result.get(0));
+
+        // the words must appear in order
+        result = taxaService.getIndicatorSpeciesByNameSearch("bor zyx", true);
+        Assert.assertEquals(0, result.size());
+
+        // a search without a complete trigram
+        result = taxaService.getIndicatorSpeciesByNameSearch("zy%au", true);
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(prefix, result.get(0));
+    }
+
+    @Test
+    public void testTaxonGroupSearch() {
+        List<TaxonGroup> result = taxaService.getTaxonGroupSearch("zyxwing");
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(group, result.get(0));
+        Assert.assertEquals(otherGroup, result.get(1));
+
+        result = taxaService.getTaxonGroupSearch("tail%zyx");
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(otherGroup, result.get(0));
+    }
+
+    @Test
+    public void testIncrementalUpdate() {
+        // the index is not kept while the transaction that created the taxa is pending
+        nameIndex.transactionCompleted(getSession().getTransaction(), true);
+
+        long builds = nameIndex.getBuildCount();
+        Assert.assertEquals(4, taxaService.getIndicatorSpeciesByNameSearch("zyxwing", true).size());
+        Assert.assertEquals(builds + 1, nameIndex.getBuildCount());
+        Assert.assertEquals(1, nameIndex.size());
+
+        Assert.assertEquals(4, taxaService.getIndicatorSpeciesByNameSearch("zyxwing", true).size());
+        Assert.assertEquals(builds + 1, nameIndex.getBuildCount());
+
+        long updates = nameIndex.getUpdateCount();
+        infix.setCommonName("Lesser qwvtail");
+        getSession().flush();
+
+        Assert.assertTrue(nameIndex.getUpdateCount() > updates);
+        Assert.assertEquals(3, taxaService.getIndicatorSpeciesByNameSearch("zyxwing", true).size());
+        List<IndicatorSpecies> result = taxaService.getIndicatorSpeciesByNameSearch("qwvtail", true);
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(infix, result.get(0));
+
+        IndicatorSpecies added = createSpecies("Qwvtail minor", "Little thing");
+        getSession().flush();
+        result = taxaService.getIndicatorSpeciesByNameSearch("qwvtail", true);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(added, result.get(0));
+        Assert.assertEquals(infix, result.get(1));
+
+        // updated in place rather than rebuilt
+        Assert.assertEquals(builds + 1, nameIndex.getBuildCount());
+    }
+
+    @Test
+    public void testRenameReplacesGrams() {
+        nameIndex.transactionCompleted(getSession().getTransaction(), true);
+        Assert.assertEquals(4, taxaService.getIndicatorSpeciesByNameSearch("zyxwing", true).size());
+        long postings = nameIndex.getPostingCount();
+
+        infix.setCommonName("Lesser qwvtail");
+        getSession().flush();
+        Assert.assertEquals(3, taxaService.getIndicatorSpeciesByNameSearch("zyxwing", true).size());
+
+        // renamed back, the taxon is listed once for each trigram again
+        infix.setCommonName("Lesser zyxwing");
+        getSession().flush();
+        Assert.assertEquals(postings, nameIndex.getPostingCount());
+        Assert.assertEquals(4, taxaService.getIndicatorSpeciesByNameSearch("zyxwing", true).size());
+        Assert.assertEquals(0, taxaService.getIndicatorSpeciesByNameSearch("qwvtail", true).size());
+
+        taxaDAO.delete(infix);
+        getSession().flush();
+        Assert.assertEquals(3, taxaService.getIndicatorSpeciesByNameSearch("zyxwing", true).size());
+        Assert.assertTrue(nameIndex.getPostingCount() < postings);
+    }
+}
@@ -15,6 +15,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -26,9 +27,14 @@ import junit.framework.Assert;
 import org.apache.log4j.Logger;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.hibernate.HibernateException;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -322,6 +328,77 @@ public class BulkDataServiceTest extends AbstractControllerTest {
                 - recUpload.getWhen().getTime()) < 1000);
     }
 
+    @Test
+    public void testImportSurveyXlsx() throws Exception {
+        Survey survey = new Survey();
+        setHidden(survey, false);
+        setRequired(survey, false);
+
+        InputStream xlsStream = getClass().getResourceAsStream("basic_upload.xls");
+        registerStream(xlsStream);
+        BulkUpload xlsUpload = bulkDataService.importBulkData(survey, xlsStream);
+
+        // the same upload saved as an .xlsx workbook is read row by row
+        InputStream copyStream = getClass().getResourceAsStream("basic_upload.xls");
+        registerStream(copyStream);
+        byte[] xlsx = toXlsx(new HSSFWorkbook(copyStream));
+        BulkUpload xlsxUpload = bulkDataService.importBulkData(survey, new ByteArrayInputStream(xlsx));
+
+        Assert.assertEquals(xlsUpload.getLocationUploads().size(), xlsxUpload.getLocationUploads().size());
+        Assert.assertEquals(xlsUpload.getErrorCount(), xlsxUpload.getErrorCount());
+        Assert.assertEquals(1, xlsxUpload.getRecordUploadList().size());
+        for (int i = 0; i < xlsUpload.getRecordUploadList().size(); i++) {
+            RecordUpload expected = xlsUpload.getRecordUploadList().get(i);
+            RecordUpload actual = xlsxUpload.getRecordUploadList().get(i);
+            Assert.assertEquals(expected.getRowNumber(), actual.getRowNumber());
+            Assert.assertEquals(expected.getScientificName(), actual.getScientificName());
+            Assert.assertEquals(expected.getLatitude(), actual.getLatitude(), 0.0000001);
+            Assert.assertEquals(expected.getLongitude(), actual.getLongitude(), 0.0000001);
+            Assert.assertTrue(Math.abs(expected.getWhen().getTime() - actual.getWhen().getTime()) < 1000);
+        }
+    }
+
+    /**
+     * Saves the cell values of a workbook as an .xlsx workbook, formulas are
+     * saved as their results.
+     */
+    private byte[] toXlsx(Workbook source) throws IOException {
+        FormulaEvaluator evaluator = source.getCreationHelper().createFormulaEvaluator();
+        Workbook target = new XSSFWorkbook();
+        for (int s = 0; s < source.getNumberOfSheets(); s++) {
+            Sheet sourceSheet = source.getSheetAt(s);
+            Sheet targetSheet = target.createSheet(sourceSheet.getSheetName());
+            for (Iterator<Row> rowIter = sourceSheet.rowIterator(); rowIter.hasNext();) {
+                Row sourceRow = rowIter.next();
+                Row targetRow = targetSheet.createRow(sourceRow.getRowNum());
+                for (Iterator<Cell> cellIter = sourceRow.cellIterator(); cellIter.hasNext();) {
+                    Cell sourceCell = cellIter.next();
+                    int type = sourceCell.getCellType();
+                    if (type == Cell.CELL_TYPE_FORMULA) {
+                        CellValue value = evaluator.evaluate(sourceCell);
+                        type = value.getCellType();
+                        if (type == Cell.CELL_TYPE_STRING) {
+                            targetRow.createCell(sourceCell.getColumnIndex()).setCellValue(value.getStringValue());
+                        } else if (type == Cell.CELL_TYPE_NUMERIC) {
+                            targetRow.createCell(sourceCell.getColumnIndex()).setCellValue(value.getNumberValue());
+                        } else if (type == Cell.CELL_TYPE_BOOLEAN) {
+                            targetRow.createCell(sourceCell.getColumnIndex()).setCellValue(value.getBooleanValue());
+                        }
+                    } else if (type == Cell.CELL_TYPE_STRING) {
+                        targetRow.createCell(sourceCell.getColumnIndex()).setCellValue(sourceCell.getStringCellValue());
+                    } else if (type == Cell.CELL_TYPE_NUMERIC) {
+                        targetRow.createCell(sourceCell.getColumnIndex()).setCellValue(sourceCell.getNumericCellValue());
+                    } else if (type == Cell.CELL_TYPE_BOOLEAN) {
+                        targetRow.createCell(sourceCell.getColumnIndex()).setCellValue(sourceCell.getBooleanCellValue());
+                    }
+                }
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        target.write(out);
+        return out.toByteArray();
+    }
+
     @Test
     public void testExportSurveyTemplateCensusMethod() throws IOException {
         File spreadSheetTmp = File.createTempFile(
@@ -971,6 +1048,121 @@ public class BulkDataServiceTest extends AbstractControllerTest {
         rec.getAttributes().add(av);
     }
 
+    @Test
+    public void testExportXlsx() throws IOException {
+        setRequired(survey, false);
+        Calendar cal = Calendar.getInstance();
+        cal.set(2011, 2, 27, 14, 42, 0);
+        Point point = spatialUtil.createPoint(-40, 120);
+
+        List<Record> recList = new ArrayList<Record>();
+        for (int i = 0; i < 3; i++) {
+            Record rec = createRecord(survey, point, user, species, cal.getTime(), cal.getTime().getTime(),
+                    null, null, "", false, false, "", "notes <" + i + "> & more", 10 + i,
+                    new HashMap<Attribute, Object>());
+            rec.setCensusMethod(cm);
+            rec.setRecordVisibility(RecordVisibility.PUBLIC);
+            recList.add(rec);
+        }
+        sessionFactory.getCurrentSession().flush();
+
+        ByteArrayOutputStream xlsOut = new ByteArrayOutputStream();
+        bulkDataService.exportSurveyRecords(sessionFactory.getCurrentSession(), survey,
+                new ScrollableRecordsList(recList), xlsOut);
+        ByteArrayOutputStream xlsxOut = new ByteArrayOutputStream();
+        bulkDataService.exportSurveyRecordsXlsx(sessionFactory.getCurrentSession(), survey,
+                new ScrollableRecordsList(recList), xlsxOut);
+
+        Workbook xls = new HSSFWorkbook(new ByteArrayInputStream(xlsOut.toByteArray()));
+        Workbook xlsx = new XSSFWorkbook(new ByteArrayInputStream(xlsxOut.toByteArray()));
+
+        // the same sheets in the same order
+        Assert.assertEquals(xls.getNumberOfSheets(), xlsx.getNumberOfSheets());
+        for (int i = 0; i < xls.getNumberOfSheets(); i++) {
+            Assert.assertEquals(xls.getSheetName(i), xlsx.getSheetName(i));
+        }
+
+        // the same observations, the header written to the sheet and the
+        // records written by the streaming writer
+        Sheet xlsSheet = xls.getSheet(AbstractBulkDataService.RECORD_SHEET_NAME);
+        Sheet xlsxSheet = xlsx.getSheet(AbstractBulkDataService.RECORD_SHEET_NAME);
+        Assert.assertEquals(HEADER_ROW_IDX + recList.size(), xlsxSheet.getLastRowNum());
+        Assert.assertEquals(xlsSheet.getLastRowNum(), xlsxSheet.getLastRowNum());
+        for (int rowIdx = 0; rowIdx <= xlsSheet.getLastRowNum(); rowIdx++) {
+            Row xlsRow = xlsSheet.getRow(rowIdx);
+            Row xlsxRow = xlsxSheet.getRow(rowIdx);
+            Assert.assertEquals(xlsRow.getLastCellNum(), xlsxRow.getLastCellNum());
+            for (int colIdx = 0; colIdx < xlsRow.getLastCellNum(); colIdx++) {
+                Cell expected = xlsRow.getCell(colIdx);
+                Cell actual = xlsxRow.getCell(colIdx);
+                if (expected == null || expected.getCellType() == Cell.CELL_TYPE_BLANK) {
+                    Assert.assertTrue(actual == null || actual.getCellType() == Cell.CELL_TYPE_BLANK);
+                    continue;
+                }
+                Assert.assertEquals(expected.getCellType(), actual.getCellType());
+                switch (expected.getCellType()) {
+                case Cell.CELL_TYPE_NUMERIC:
+                    Assert.assertEquals(expected.getNumericCellValue(), actual.getNumericCellValue(), 0.000001);
+                    // dates and times keep their format
+                    Assert.assertEquals(DateUtil.isCellDateFormatted(expected), DateUtil.isCellDateFormatted(actual));
+                    break;
+                case Cell.CELL_TYPE_STRING:
+                    Assert.assertEquals(expected.getStringCellValue(), actual.getStringCellValue());
+                    break;
+                case Cell.CELL_TYPE_BOOLEAN:
+                    Assert.assertEquals(expected.getBooleanCellValue(), actual.getBooleanCellValue());
+                    break;
+                case Cell.CELL_TYPE_FORMULA:
+                    // the census method name is written with its result
+                    Assert.assertEquals(Cell.CELL_TYPE_STRING, actual.getCachedFormulaResultType());
+                    Assert.assertEquals(expected.getStringCellValue(), actual.getStringCellValue());
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExportImportXlsxLocation() throws Exception {
+        setRequired(survey, false);
+        Calendar cal = Calendar.getInstance();
+        cal.set(2011, 2, 27, 14, 42, 0);
+        Point point = spatialUtil.createPoint(-40, 120);
+
+        Record rec = createRecord(survey, point, user, species, cal.getTime(), cal.getTime().getTime(),
+                null, null, "", false, false, "", "", 10, new HashMap<Attribute, Object>());
+        rec.setLocation(loc);
+        rec.setRecordVisibility(RecordVisibility.PUBLIC);
+        List<Record> recList = new ArrayList<Record>();
+        recList.add(rec);
+        sessionFactory.getCurrentSession().flush();
+
+        // the location name is a lookup formula, this workbook is imported
+        // without its formulas ever being evaluated.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bulkDataService.exportSurveyRecordsXlsx(sessionFactory.getCurrentSession(), survey,
+                new ScrollableRecordsList(recList), out);
+
+        rec = recDAO.getRecord(rec.getId());
+        rec.setLocation(null);
+        sessionFactory.getCurrentSession().flush();
+
+        BulkUpload bulkUpload = bulkDataService.importBulkData(survey,
+                new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals(1, bulkUpload.getRecordUploadList().size());
+        Assert.assertEquals(loc.getId(), bulkUpload.getRecordUploadList().get(0).getLocationId());
+
+        commit();
+
+        bulkDataService.saveRecords(user, bulkUpload, true);
+
+        rec = recDAO.getRecord(rec.getId());
+        Assert.assertNotNull("the location is restored from its id", rec.getLocation());
+        Assert.assertEquals(loc.getId(), rec.getLocation().getId());
+    }
+
     @SuppressWarnings("deprecation")
     @Test
     public void testExportEditXls() throws IOException, ParseException,
@@ -1339,6 +1531,129 @@ public class BulkDataServiceTest extends AbstractControllerTest {
         }
     }
 
+    @Test
+    public void testSaveRecordsValidatedBeforeCommit() throws Exception {
+        setRequired(survey, false);
+        String ssParentId = "yodawg!";
+
+        MyTestRow parentRow = new MyTestRow();
+        parentRow.setId(ssParentId);
+        parentRow.setCmId(cm.getId().toString());
+
+        // the census method does not exist
+        MyTestRow badRow = new MyTestRow();
+        badRow.setCmId(String.valueOf(Integer.MAX_VALUE));
+
+        BulkUpload bulkUpload = importRows("testSaveRecordsValidatedBeforeCommit", parentRow, badRow);
+        Assert.assertEquals(2, bulkUpload.getRecordUploadList().size());
+
+        commit();
+
+        // The second row fails before the chunk of the first row is committed.
+        BulkUploadCheckpoint checkpoint = new BulkUploadCheckpoint(survey.getId(), "upload.xls", "hash", 2);
+        try {
+            bulkDataService.saveRecords(user, bulkUpload, true, 1, checkpoint);
+            Assert.fail("Expected the census method of the second row to be invalid");
+        } catch (DataReferenceException dre) {
+            // expected
+        }
+        Assert.assertEquals(0, checkpoint.getCommittedRowCount());
+        Assert.assertEquals(0, recDAO.countAllRecords().intValue());
+    }
+
+    @Test
+    public void testSaveRecordsInChunksAndResume() throws Exception {
+        setRequired(survey, false);
+        String ssParentId = "yodawg!";
+
+        MyTestRow parentRow = new MyTestRow();
+        parentRow.setId(ssParentId);
+        parentRow.setCmId(cm.getId().toString());
+
+        MyTestRow childRow = new MyTestRow();
+        childRow.setParentId(ssParentId);
+        childRow.setCmId(cm2.getId().toString());
+        childRow.setNotes("child entry notes");
+
+        BulkUpload failedUpload = importRows("testSaveRecordsInChunksAndResume", parentRow, childRow);
+        BulkUpload resumedUpload = importRows("testSaveRecordsInChunksAndResume", parentRow, childRow);
+        Assert.assertEquals(2, failedUpload.getRecordUploadList().size());
+
+        commit();
+
+        // The upload fails after the chunk of the first row is committed.
+        BulkUploadCheckpoint checkpoint = new BulkUploadCheckpoint(survey.getId(), "upload.xls", "hash", 2) {
+            private static final long serialVersionUID = 1L;
+            private boolean failed = false;
+
+            @Override
+            protected void chunkCommitted(int committedRowCount, long millis) {
+                super.chunkCommitted(committedRowCount, millis);
+                if (!failed) {
+                    failed = true;
+                    throw new HibernateException("the upload was interrupted");
+                }
+            }
+        };
+        try {
+            bulkDataService.saveRecords(user, failedUpload, true, 1, checkpoint);
+            Assert.fail("Expected the upload to be interrupted");
+        } catch (HibernateException he) {
+            // expected
+        }
+        Assert.assertEquals(1, checkpoint.getCommittedRowCount());
+        Assert.assertEquals(1, recDAO.countAllRecords().intValue());
+
+        // only the same spreadsheet can be resumed
+        Assert.assertTrue(checkpoint.matches(survey.getId(), "hash", 2));
+        Assert.assertFalse(checkpoint.matches(survey.getId(), "other hash", 2));
+        Assert.assertFalse(checkpoint.matches(survey.getId(), "hash", 3));
+
+        // The resumed upload continues from the second row and refers to
+        // the parent record saved by the first upload.
+        Assert.assertEquals(1, bulkDataService.saveRecords(user, resumedUpload, true, 1, checkpoint));
+
+        Assert.assertEquals(2, checkpoint.getCommittedRowCount());
+        Assert.assertEquals(2, checkpoint.getSavedRowCount());
+        Assert.assertEquals(2, checkpoint.getChunkCount());
+        Assert.assertEquals(2, recDAO.countAllRecords().intValue());
+
+        List<Record> recList = recDAO.getRecords(user);
+        Record parentRecord = getRecordByCensusMethod(recList, cm);
+        Record childRecord = getRecordByCensusMethod(recList, cm2);
+        Assert.assertNotNull(parentRecord);
+        Assert.assertNotNull(childRecord);
+        Assert.assertEquals(parentRecord, childRecord.getParentRecord());
+        Assert.assertEquals("child entry notes", childRecord.getNotes());
+    }
+
+    @Test
+    public void testSaveRecordsAllOrNothing() throws Exception {
+        setRequired(survey, false);
+
+        MyTestRow goodRow = new MyTestRow();
+        goodRow.setCmId(cm.getId().toString());
+
+        // the census method does not exist
+        MyTestRow badRow = new MyTestRow();
+        badRow.setCmId(String.valueOf(Integer.MAX_VALUE));
+
+        BulkUpload bulkUpload = importRows("testSaveRecordsAllOrNothing", goodRow, badRow);
+        Assert.assertEquals(2, bulkUpload.getRecordUploadList().size());
+
+        commit();
+
+        BulkUploadCheckpoint checkpoint = new BulkUploadCheckpoint();
+        try {
+            bulkDataService.saveRecords(user, bulkUpload, true, 0, checkpoint);
+            Assert.fail("Expected the census method of the second row to be invalid");
+        } catch (DataReferenceException dre) {
+            // expected
+        }
+        Assert.assertEquals(0, checkpoint.getCommittedRowCount());
+        Assert.assertEquals(0, recDAO.countAllRecords().intValue());
+    }
+
     @Test
     public void testImportSurveyInvalidDateRange() throws Exception,
             ParseException {
@@ -2205,6 +2520,34 @@ public class BulkDataServiceTest extends AbstractControllerTest {
     }
 
     // for debugging obviously...
+    /**
+     * Writes rows to the template of the survey and imports them.
+     */
+    private BulkUpload importRows(String name, MyTestRow... rows) throws Exception {
+        File spreadSheetTmp = File.createTempFile("BulkDataServiceTest." + name, ".xls");
+        FileOutputStream outStream = new FileOutputStream(spreadSheetTmp);
+        registerStream(outStream);
+        bulkDataService.exportSurveyTemplate(getSession(), survey, outStream);
+
+        InputStream inStream = new FileInputStream(spreadSheetTmp);
+        registerStream(inStream);
+        Workbook wb = new HSSFWorkbook(inStream);
+
+        // enter records starting at row 3
+        Sheet obSheet = wb.getSheet(AbstractBulkDataService.RECORD_SHEET_NAME);
+        for (int i = 0; i < rows.length; i++) {
+            rows[i].createRow(obSheet, 3 + i);
+        }
+
+        FileOutputStream outStream2 = new FileOutputStream(spreadSheetTmp);
+        registerStream(outStream2);
+        wb.write(outStream2);
+
+        FileInputStream inStream2 = new FileInputStream(spreadSheetTmp);
+        registerStream(inStream2);
+        return bulkDataService.importBulkData(survey, inStream2);
+    }
+
     private void logRecordAttributes(List<AttributeValue> recAttrList) {
         log.debug("actual record attributes:");
         for (AttributeValue recAttr : recAttrList) {
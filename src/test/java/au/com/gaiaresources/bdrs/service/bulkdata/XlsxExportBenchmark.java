@@ -0,0 +1,234 @@
+package au.com.gaiaresources.bdrs.service.bulkdata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.db.impl.SortingCriteria;
+import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.record.RecordDAO;
+import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
+import au.com.gaiaresources.bdrs.model.record.ScrollableRecords;
+import au.com.gaiaresources.bdrs.model.record.impl.AdvancedRecordFilter;
+import au.com.gaiaresources.bdrs.model.record.impl.RecordFilter;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
+import au.com.gaiaresources.bdrs.model.taxa.Attribute;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeDAO;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeScope;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeType;
+import au.com.gaiaresources.bdrs.model.taxa.AttributeValue;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.model.user.UserDAO;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+
+/**
+ * Measures the peak heap and rows per second of the .xls and the streaming
+ * .xlsx export of the records of a survey for increasing numbers of records.
+ * This is not run with the unit tests. Run it with a fixed heap, e.g.
+ * <pre>
+ * mvn test -Dtest=XlsxExportBenchmark -Dbenchmark.records=100000 -DargLine=-Xmx1024m
+ * </pre>
+ * The .xls export is only run for the counts that fit in an .xls sheet.
+ * The peak heap of the .xlsx export is expected to stay flat as the number
+ * of records grows.
+ */
+public class XlsxExportBenchmark extends AbstractTransactionalTest {
+
+    // the survey description, census method title and header rows
+    private static final int HEADER_ROW_COUNT = 3;
+
+    @Autowired
+    private BulkDataService bulkDataService;
+    @Autowired
+    private RecordDAO recordDAO;
+    @Autowired
+    private SurveyDAO surveyDAO;
+    @Autowired
+    private AttributeDAO attributeDAO;
+    @Autowired
+    private UserDAO userDAO;
+
+    private GeometryBuilder builder = new GeometryBuilder(4326);
+    private Random random = new Random(42);
+
+    @Test
+    public void benchmark() throws Exception {
+        int recordCount = Integer.getInteger("benchmark.records", 100000);
+        int[] rowCounts = new int[] { recordCount / 100, recordCount / 10, recordCount };
+
+        User admin = userDAO.getUser("admin");
+        Attribute habitat = createAttribute("habitat", AttributeType.STRING);
+        Attribute count = createAttribute("count", AttributeType.INTEGER);
+
+        Survey survey = new Survey();
+        survey.setName("benchmark survey");
+        survey.setDescription("benchmark survey");
+        survey.setActive(true);
+        survey.setStartDate(new Date());
+        survey.getAttributes().add(habitat);
+        survey.getAttributes().add(count);
+        survey = surveyDAO.save(survey);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < recordCount; i++) {
+            Record rec = new Record();
+            rec.setUser(admin);
+            rec.setSurvey(survey);
+            rec.setWhen(new Date());
+            rec.setLastDate(rec.getWhen());
+            rec.setNumber(1 + random.nextInt(20));
+            rec.setNotes("notes " + i);
+            rec.setGeometry(builder.createPoint(115 + random.nextDouble() * 5, -35 + random.nextDouble() * 5));
+            rec.setRecordVisibility(RecordVisibility.PUBLIC);
+            rec.getAttributes().add(createValue(habitat, "habitat " + random.nextInt(100), null));
+            rec.getAttributes().add(createValue(count, null, random.nextInt(1000)));
+            recordDAO.saveRecord(rec);
+            if (i % 1000 == 0) {
+                getSession().flush();
+                getSession().clear();
+            }
+        }
+        getSession().flush();
+        getSession().clear();
+        System.out.println(String.format("Created %d records in %d ms", recordCount, System.currentTimeMillis() - start));
+
+        // warm up
+        run(survey.getId(), rowCounts[0], true);
+
+        System.out.println("format\trows\tms\trows/s\tpeak heap MB\tbytes");
+        for (int rows : rowCounts) {
+            if (rows + HEADER_ROW_COUNT <= AbstractBulkDataService.MAX_EXCEL_ROW_COUNT) {
+                Result xls = run(survey.getId(), rows, false);
+                print("xls", rows, xls);
+                Assert.assertEquals(rows + HEADER_ROW_COUNT, countXlsRows(xls.file));
+                xls.file.delete();
+            }
+
+            Result xlsx = run(survey.getId(), rows, true);
+            print("xlsx", rows, xlsx);
+            Assert.assertEquals(rows + HEADER_ROW_COUNT, countXlsxRows(xlsx.file));
+            xlsx.file.delete();
+        }
+    }
+
+    private Result run(Integer surveyId, int rows, boolean xlsx) throws IOException {
+        getSession().clear();
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+
+        Survey survey = surveyDAO.getSurvey(surveyId);
+        RecordFilter filter = new AdvancedRecordFilter();
+        filter.setSurveyPk(surveyId);
+        filter.setRecordVisibility(RecordVisibility.PUBLIC);
+        List<SortingCriteria> sortCriteria = Collections.emptyList();
+        // the export evicts the records itself
+        ScrollableRecords sc = recordDAO.getStreamingRecords(filter, sortCriteria, 0);
+
+        Result result = new Result();
+        result.file = File.createTempFile("XlsxExportBenchmark", xlsx ? ".xlsx" : ".xls");
+        OutputStream out = new FileOutputStream(result.file);
+        long start = System.currentTimeMillis();
+        try {
+            if (xlsx) {
+                bulkDataService.exportSurveyRecordsXlsx(getSession(), survey, sc, rows, out);
+            } else {
+                bulkDataService.exportSurveyRecords(getSession(), survey, sc, rows, out);
+            }
+        } finally {
+            out.close();
+        }
+        result.millis = System.currentTimeMillis() - start;
+        result.bytes = result.file.length();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                result.peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        return result;
+    }
+
+    private int countXlsRows(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            HSSFWorkbook wb = new HSSFWorkbook(in);
+            return wb.getSheet(AbstractBulkDataService.RECORD_SHEET_NAME).getPhysicalNumberOfRows();
+        } finally {
+            in.close();
+        }
+    }
+
+    private int countXlsxRows(File file) throws Exception {
+        // read back one row at a time, the workbook may be too large to load
+        StreamingXlsxReader reader = new StreamingXlsxReader(file);
+        try {
+            int rows = 0;
+            for (Iterator<Row> iter = reader.rowIterator(AbstractBulkDataService.RECORD_SHEET_NAME); iter.hasNext();) {
+                iter.next();
+                rows++;
+            }
+            return rows;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void print(String format, int rows, Result result) {
+        System.out.println(String.format("%s\t%d\t%d\t%.0f\t%.1f\t%d", format, rows, result.millis,
+                rows * 1000d / Math.max(1, result.millis), result.peakHeap / (1024d * 1024d), result.bytes));
+    }
+
+    private Attribute createAttribute(String name, AttributeType type) {
+        Attribute attr = new Attribute();
+        attr.setName(name);
+        attr.setDescription(name);
+        attr.setRequired(false);
+        attr.setScope(AttributeScope.RECORD);
+        attr.setTag(false);
+        attr.setTypeCode(type.getCode());
+        return attributeDAO.save(attr);
+    }
+
+    private AttributeValue createValue(Attribute attr, String stringValue, Integer numericValue) {
+        AttributeValue av = new AttributeValue();
+        av.setAttribute(attr);
+        if (stringValue != null) {
+            av.setStringValue(stringValue);
+        }
+        if (numericValue != null) {
+            av.setNumericValue(new BigDecimal(numericValue));
+            av.setStringValue(numericValue.toString());
+        }
+        return attributeDAO.save(av);
+    }
+
+    private static class Result {
+        private File file;
+        private long millis;
+        private long peakHeap;
+        private long bytes;
+    }
+}
@@ -0,0 +1,156 @@
+package au.com.gaiaresources.bdrs.service.facet;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.db.FilterManager;
+import au.com.gaiaresources.bdrs.model.location.Location;
+import au.com.gaiaresources.bdrs.model.location.LocationDAO;
+import au.com.gaiaresources.bdrs.model.method.CensusMethod;
+import au.com.gaiaresources.bdrs.model.method.CensusMethodDAO;
+import au.com.gaiaresources.bdrs.model.method.Taxonomic;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.record.RecordDAO;
+import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
+import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
+import au.com.gaiaresources.bdrs.model.taxa.TaxaDAO;
+import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.model.user.UserDAO;
+import au.com.gaiaresources.bdrs.security.Role;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+import au.com.gaiaresources.bdrs.util.SpatialUtil;
+import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
+
+/**
+ * Tests that the {@link CountingFacetDAO} returns the same facet options in
+ * the same order as the aggregate queries of the {@link RecordDAO}.
+ */
+public class CountingFacetDAOTest extends AbstractTransactionalTest {
+
+    @Autowired
+    private TaxaDAO taxaDAO;
+    @Autowired
+    private RecordDAO recordDAO;
+    @Autowired
+    private UserDAO userDAO;
+    @Autowired
+    private SurveyDAO surveyDAO;
+    @Autowired
+    private LocationDAO locDAO;
+    @Autowired
+    private CensusMethodDAO cmDAO;
+
+    private User adminUser;
+    private User normalUser;
+
+    private SpatialUtil spatialUtil = new SpatialUtilFactory().getLocationUtil();
+
+    @Before
+    public void setup() {
+        adminUser = userDAO.getUser("admin");
+        normalUser = userDAO.createUser("normal", "normalfirst", "normallast", "normal@normal.com", "password", "regkey", new String[] { Role.USER });
+
+        Location[] locations = new Location[4];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = new Location();
+            locations[i].setLocation(spatialUtil.createPoint(i, i));
+            locations[i].setName("loc " + (char)('d' - i));
+            locDAO.save(locations[i]);
+        }
+
+        Survey[] surveys = new Survey[3];
+        for (int i = 0; i < surveys.length; i++) {
+            surveys[i] = new Survey();
+            surveys[i].setName("survey " + (char)('c' - i));
+            surveys[i].setPublicReadAccess(true);
+            surveyDAO.save(surveys[i]);
+        }
+
+        IndicatorSpecies[] species = new IndicatorSpecies[3];
+        for (int i = 0; i < species.length; i++) {
+            TaxonGroup group = new TaxonGroup();
+            group.setName("group " + i);
+            taxaDAO.save(group);
+
+            species[i] = new IndicatorSpecies();
+            species[i].setTaxonGroup(group);
+            species[i].setScientificName("species " + i);
+            species[i].setCommonName("common " + i);
+            taxaDAO.save(species[i]);
+        }
+
+        CensusMethod[] methods = new CensusMethod[2];
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = new CensusMethod();
+            methods[i].setName("method " + i);
+            methods[i].setType("type " + (char)('b' - i));
+            methods[i].setTaxonomic(Taxonomic.OPTIONALLYTAXONOMIC);
+            cmDAO.save(methods[i]);
+        }
+
+        User[] owners = new User[] { adminUser, normalUser };
+        RecordVisibility[] visibilities = RecordVisibility.values();
+        Calendar cal = Calendar.getInstance();
+        for (int i = 0; i < 30; i++) {
+            cal.clear();
+            cal.set(2008 + (i % 3), i % 12, 1 + (i % 28));
+            Record r = new Record();
+            r.setUser(owners[i % owners.length]);
+            r.setSurvey(surveys[i % surveys.length]);
+            r.setSpecies(i % 4 == 0 ? null : species[i % species.length]);
+            r.setLocation(i % 5 == 0 ? null : locations[i % locations.length]);
+            r.setCensusMethod(i % 3 == 0 ? null : methods[i % methods.length]);
+            r.setRecordVisibility(visibilities[i % visibilities.length]);
+            r.setWhen(i % 7 == 0 ? null : cal.getTime());
+            r.setHeld(i % 11 == 0);
+            recordDAO.save(r);
+        }
+        getSession().flush();
+    }
+
+    @Test
+    public void testAdminCounts() {
+        assertSameAsRecordDAO(adminUser);
+    }
+
+    @Test
+    public void testNormalUserCounts() {
+        assertSameAsRecordDAO(normalUser);
+    }
+
+    @Test
+    public void testAnonymousCounts() {
+        assertSameAsRecordDAO(null);
+    }
+
+    private void assertSameAsRecordDAO(User user) {
+        FilterManager.enableRecordFilter(getSession(), user);
+        CountingFacetDAO dao = new CountingFacetDAO(recordDAO);
+
+        Assert.assertEquals(recordDAO.getDistinctUsers(null), dao.getDistinctUsers(null));
+        Assert.assertEquals(recordDAO.getDistinctSurveys(null), dao.getDistinctSurveys(null));
+        Assert.assertEquals(recordDAO.getDistinctTaxonGroups(null), dao.getDistinctTaxonGroups(null));
+        Assert.assertEquals(recordDAO.getDistinctMonths(null), dao.getDistinctMonths(null));
+        Assert.assertEquals(recordDAO.getDistinctYears(null), dao.getDistinctYears(null));
+        Assert.assertEquals(recordDAO.getDistinctCensusMethodTypes(null), dao.getDistinctCensusMethodTypes(null));
+        Assert.assertEquals(recordDAO.countNullCensusMethodRecords(), dao.countNullCensusMethodRecords());
+        Assert.assertEquals(recordDAO.getDistinctRecordVisibilities(), dao.getDistinctRecordVisibilities());
+        Assert.assertEquals(recordDAO.getDistinctLocations(null, -1), dao.getDistinctLocations(null, -1));
+        // the locations have the same number of records, so the limit falls
+        // within a tie.
+        Assert.assertEquals(recordDAO.getDistinctLocations(null, 2), dao.getDistinctLocations(null, 2));
+        Assert.assertEquals(recordDAO.getDistinctLocations(null, 3), dao.getDistinctLocations(null, 3));
+
+        Integer[] selected = new Integer[] { recordDAO.getDistinctLocations(null, -1).get(0).getFirst().getId() };
+        Assert.assertEquals(recordDAO.getDistinctLocations(null, 1, selected), dao.getDistinctLocations(null, 1, selected));
+    }
+}
@@ -0,0 +1,302 @@
+package au.com.gaiaresources.bdrs.service.facet;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.db.FilterManager;
+import au.com.gaiaresources.bdrs.model.facet.FacetCounts;
+import au.com.gaiaresources.bdrs.model.location.Location;
+import au.com.gaiaresources.bdrs.model.location.LocationDAO;
+import au.com.gaiaresources.bdrs.model.record.Record;
+import au.com.gaiaresources.bdrs.model.record.RecordDAO;
+import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
+import au.com.gaiaresources.bdrs.model.taxa.IndicatorSpecies;
+import au.com.gaiaresources.bdrs.model.taxa.TaxaDAO;
+import au.com.gaiaresources.bdrs.model.taxa.TaxonGroup;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.model.user.UserDAO;
+import au.com.gaiaresources.bdrs.security.Role;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+import au.com.gaiaresources.bdrs.util.SpatialUtil;
+import au.com.gaiaresources.bdrs.util.SpatialUtilFactory;
+
+/**
+ * Tests that the {@link FacetCountCache} adjusts the cached counts to match
+ * the counts queried after records are saved, modified and deleted.
+ */
+public class FacetCountCacheTest extends AbstractTransactionalTest {
+
+    @Autowired
+    private FacetCountCache cache;
+    @Autowired
+    private TaxaDAO taxaDAO;
+    @Autowired
+    private RecordDAO recordDAO;
+    @Autowired
+    private UserDAO userDAO;
+    @Autowired
+    private SurveyDAO surveyDAO;
+    @Autowired
+    private LocationDAO locDAO;
+
+    private User adminUser;
+    private User normalUser;
+    private Survey[] surveys = new Survey[2];
+    private IndicatorSpecies[] species = new IndicatorSpecies[2];
+    private Location[] locations = new Location[2];
+    private List<Record> records = new ArrayList<Record>();
+
+    private SpatialUtil spatialUtil = new SpatialUtilFactory().getLocationUtil();
+
+    @Before
+    public void setup() {
+        cache.clear();
+        cache.setMaxEntries(FacetCountCache.DEFAULT_MAX_ENTRIES);
+        // the test data is not committed, so it is collected separately to
+        // the changes made by each test and then discarded.
+        Object setupTx = new Object();
+        cache.transactionBegun(setupTx);
+
+        adminUser = userDAO.getUser("admin");
+        normalUser = userDAO.createUser("normal", "normalfirst", "normallast", "normal@normal.com", "password", "regkey", new String[] { Role.USER });
+
+        for (int i = 0; i < surveys.length; i++) {
+            surveys[i] = new Survey();
+            surveys[i].setName("survey " + i);
+            surveys[i].setPublicReadAccess(true);
+            surveyDAO.save(surveys[i]);
+
+            TaxonGroup group = new TaxonGroup();
+            group.setName("group " + i);
+            taxaDAO.save(group);
+
+            species[i] = new IndicatorSpecies();
+            species[i].setTaxonGroup(group);
+            species[i].setScientificName("species " + i);
+            species[i].setCommonName("common " + i);
+            taxaDAO.save(species[i]);
+
+            locations[i] = new Location();
+            locations[i].setLocation(spatialUtil.createPoint(i, i));
+            locations[i].setName("loc " + i);
+            locDAO.save(locations[i]);
+        }
+
+        User[] owners = new User[] { adminUser, normalUser };
+        Calendar cal = Calendar.getInstance();
+        for (int i = 0; i < 10; i++) {
+            cal.clear();
+            cal.set(2010 + (i % 2), i % 12, 1);
+            Record r = new Record();
+            r.setUser(owners[i % owners.length]);
+            r.setSurvey(surveys[i % surveys.length]);
+            r.setSpecies(species[i % species.length]);
+            r.setLocation(locations[i % locations.length]);
+            r.setRecordVisibility(i % 3 == 0 ? RecordVisibility.OWNER_ONLY : RecordVisibility.PUBLIC);
+            r.setWhen(cal.getTime());
+            recordDAO.save(r);
+            records.add(r);
+        }
+        getSession().flush();
+        cache.beforeTransactionCompletion(setupTx);
+        cache.afterTransactionCompletion(setupTx, false);
+    }
+
+    @After
+    public void teardown() {
+        cache.clear();
+    }
+
+    @Test
+    public void testKey() {
+        FilterManager.enableRecordFilter(getSession(), null);
+        FacetCountCache.Key anonymous = cache.getKey(getSession());
+        Assert.assertNotNull(anonymous);
+        Assert.assertEquals(defaultPortal.getId(), anonymous.getPortalId());
+        Assert.assertEquals(Record.USER_ACCESS_FILTER, anonymous.getFilterName());
+        Assert.assertEquals(Integer.valueOf(0), anonymous.getUserId());
+
+        FilterManager.enableRecordFilter(getSession(), normalUser);
+        FacetCountCache.Key user = cache.getKey(getSession());
+        Assert.assertEquals(normalUser.getId(), user.getUserId());
+        Assert.assertFalse(anonymous.equals(user));
+
+        getSession().enableFilter(Record.IMAGE_FILTER);
+        Assert.assertNull(cache.getKey(getSession()));
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        FilterManager.enableRecordFilter(getSession(), null);
+        CountingFacetDAO dao = new CountingFacetDAO(recordDAO, cache);
+
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+        dao.getDistinctSurveys(null);
+        Assert.assertEquals(misses + 1, cache.getMissCount());
+        Assert.assertEquals(1, cache.size());
+
+        Assert.assertEquals(recordDAO.getDistinctSurveys(null), dao.getDistinctSurveys(null));
+        Assert.assertEquals(recordDAO.getDistinctUsers(null), dao.getDistinctUsers(null));
+        Assert.assertEquals(hits + 2, cache.getHitCount());
+        Assert.assertEquals(misses + 1, cache.getMissCount());
+    }
+
+    @Test
+    public void testEviction() {
+        cache.setMaxEntries(2);
+        long evictions = cache.getEvictionCount();
+        for (int i = 1; i <= 3; i++) {
+            FacetCountCache.Key key = new FacetCountCache.Key(defaultPortal.getId(), true, Record.USER_ACCESS_FILTER, i);
+            cache.put(key, new FacetCounts(), cache.getGeneration(defaultPortal.getId()));
+            if (i == 2) {
+                // the first key is now the most recently used
+                cache.get(new FacetCountCache.Key(defaultPortal.getId(), true, Record.USER_ACCESS_FILTER, 1));
+            }
+        }
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(evictions + 1, cache.getEvictionCount());
+        Assert.assertNotNull(cache.get(new FacetCountCache.Key(defaultPortal.getId(), true, Record.USER_ACCESS_FILTER, 1)));
+        Assert.assertNull(cache.get(new FacetCountCache.Key(defaultPortal.getId(), true, Record.USER_ACCESS_FILTER, 2)));
+        Assert.assertNotNull(cache.get(new FacetCountCache.Key(defaultPortal.getId(), true, Record.USER_ACCESS_FILTER, 3)));
+    }
+
+    @Test
+    public void testStaleCountsNotCached() {
+        FacetCountCache.Key key = new FacetCountCache.Key(defaultPortal.getId(), true, null, null);
+        long generation = cache.getGeneration(defaultPortal.getId());
+        cache.invalidate(defaultPortal.getId());
+        cache.put(key, new FacetCounts(), generation);
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testAdminCountsAdjusted() {
+        assertCountsAdjusted(adminUser);
+    }
+
+    @Test
+    public void testNormalUserCountsAdjusted() {
+        assertCountsAdjusted(normalUser);
+    }
+
+    @Test
+    public void testAnonymousCountsAdjusted() {
+        assertCountsAdjusted(null);
+    }
+
+    @Test
+    public void testRollbackDiscardsChanges() {
+        FilterManager.enableRecordFilter(getSession(), null);
+        FacetCountCache.Key key = cacheCounts();
+        FacetCounts before = cache.get(key);
+
+        Object tx = new Object();
+        cache.transactionBegun(tx);
+        records.get(1).setRecordVisibility(RecordVisibility.OWNER_ONLY);
+        recordDAO.delete(records.get(2));
+        getSession().flush();
+        Assert.assertTrue(cache.hasPendingChanges());
+        cache.beforeTransactionCompletion(tx);
+        cache.afterTransactionCompletion(tx, false);
+
+        Assert.assertSame(before, cache.get(key));
+    }
+
+    @Test
+    public void testSurveyChangeInvalidates() {
+        FilterManager.enableRecordFilter(getSession(), null);
+        FacetCountCache.Key key = cacheCounts();
+
+        Object tx = new Object();
+        cache.transactionBegun(tx);
+        surveys[0].setPublicReadAccess(false);
+        surveyDAO.save(surveys[0]);
+        getSession().flush();
+        cache.beforeTransactionCompletion(tx);
+        cache.afterTransactionCompletion(tx, true);
+
+        Assert.assertNull(cache.get(key));
+    }
+
+    private void assertCountsAdjusted(User user) {
+        FilterManager.enableRecordFilter(getSession(), user);
+        FacetCountCache.Key key = cacheCounts();
+        long adjustments = cache.getAdjustmentCount();
+
+        Object tx = new Object();
+        cache.transactionBegun(tx);
+
+        // new record
+        Record added = new Record();
+        added.setUser(normalUser);
+        added.setSurvey(surveys[1]);
+        added.setSpecies(species[0]);
+        added.setRecordVisibility(RecordVisibility.PUBLIC);
+        added.setWhen(new Date());
+        recordDAO.save(added);
+
+        // modified records
+        Record r = records.get(1);
+        r.setSurvey(surveys[0]);
+        r.setLocation(null);
+        r.setSpecies(species[0]);
+        recordDAO.save(r);
+
+        r = records.get(3);
+        r.setRecordVisibility(RecordVisibility.PUBLIC);
+        r.setUser(normalUser);
+        recordDAO.save(r);
+
+        r = records.get(4);
+        r.setHeld(true);
+        recordDAO.save(r);
+
+        // deleted record
+        recordDAO.delete(records.get(5));
+        getSession().flush();
+
+        Assert.assertTrue(cache.hasPendingChanges());
+        cache.beforeTransactionCompletion(tx);
+        cache.afterTransactionCompletion(tx, true);
+        Assert.assertFalse(cache.hasPendingChanges());
+
+        FacetCounts cached = cache.get(key);
+        Assert.assertNotNull(cached);
+        Assert.assertTrue(cache.getAdjustmentCount() > adjustments);
+        assertCountsEqual(recordDAO.getFacetCounts(getSession()), cached);
+    }
+
+    private FacetCountCache.Key cacheCounts() {
+        FacetCountCache.Key key = cache.getKey(getSession());
+        Assert.assertNotNull(key);
+        long generation = cache.getGeneration(key.getPortalId());
+        cache.put(key, recordDAO.getFacetCounts(getSession()), generation);
+        Assert.assertNotNull(cache.get(key));
+        return key;
+    }
+
+    private void assertCountsEqual(FacetCounts expected, FacetCounts actual) {
+        Assert.assertEquals(expected.getRecordCount(), actual.getRecordCount());
+        Assert.assertEquals(expected.getNullCensusMethodCount(), actual.getNullCensusMethodCount());
+        Assert.assertEquals(expected.getSurveys(), actual.getSurveys());
+        Assert.assertEquals(expected.getUsers(), actual.getUsers());
+        Assert.assertEquals(expected.getLocations(), actual.getLocations());
+        Assert.assertEquals(expected.getTaxonGroups(), actual.getTaxonGroups());
+        Assert.assertEquals(expected.getYears(), actual.getYears());
+        Assert.assertEquals(expected.getMonths(), actual.getMonths());
+        Assert.assertEquals(expected.getCensusMethodTypes(), actual.getCensusMethodTypes());
+        Assert.assertEquals(expected.getVisibilities(), actual.getVisibilities());
+    }
+}
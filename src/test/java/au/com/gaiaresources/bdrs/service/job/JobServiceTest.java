@@ -0,0 +1,173 @@
+package au.com.gaiaresources.bdrs.service.job;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.activation.FileDataSource;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.controller.AbstractGridControllerTest;
+import au.com.gaiaresources.bdrs.controller.job.JobController;
+import au.com.gaiaresources.bdrs.dwca.RecordDwcaWriter;
+import au.com.gaiaresources.bdrs.json.JSONObject;
+import au.com.gaiaresources.bdrs.model.job.Job;
+import au.com.gaiaresources.bdrs.model.job.JobDAO;
+import au.com.gaiaresources.bdrs.model.job.JobStatus;
+import au.com.gaiaresources.bdrs.model.job.JobType;
+import au.com.gaiaresources.bdrs.model.record.RecordVisibility;
+import au.com.gaiaresources.bdrs.model.record.impl.AdvancedCountRecordFilter;
+import au.com.gaiaresources.bdrs.model.record.impl.RecordFilter;
+import au.com.gaiaresources.bdrs.security.Role;
+import au.com.gaiaresources.bdrs.util.FileUtils;
+import au.com.gaiaresources.bdrs.util.ZipUtils;
+
+/**
+ * Runs jobs synchronously with {@link JobService#execute}, jobs submitted in
+ * the test transaction are never queued because the transaction is rolled
+ * back.
+ */
+public class JobServiceTest extends AbstractGridControllerTest {
+
+    private static final String APPLICATION_URL = REQUEST_SCHEME + "://" + REQUEST_SERVER_NAME + ":" + REQUEST_SERVER_PORT + REQUEST_CONTEXT_PATH;
+
+    @Autowired
+    private JobService jobService;
+    @Autowired
+    private JobDAO jobDAO;
+
+    @Test
+    public void testDwcaDownloadJob() throws Exception {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DwcaDownloadJobHandler.PARAM_SERVER_URL, APPLICATION_URL);
+        Job job = jobService.submit(JobType.DWCA_DOWNLOAD, currentUser, params);
+        Assert.assertEquals("job should be queued", JobStatus.QUEUED, job.getStatus());
+
+        jobService.execute(getSession(), job);
+
+        Assert.assertEquals("job should be complete: " + job.getMessage(), JobStatus.COMPLETE, job.getStatus());
+        Assert.assertNotNull("start time should be set", job.getStartTime());
+        Assert.assertNotNull("end time should be set", job.getEndTime());
+
+        RecordFilter recFilter = new AdvancedCountRecordFilter();
+        recFilter.setRecordVisibility(RecordVisibility.PUBLIC);
+        int publicCount = recordDAO.countRecords(recFilter);
+        Assert.assertEquals("wrong total", publicCount, job.getProgressTotal());
+        Assert.assertEquals("every record should be written", publicCount, job.getProgress());
+
+        FileDataSource result = jobService.getResultFile(job);
+        Assert.assertNotNull("result file should exist", result);
+        Assert.assertEquals("wrong result file", DwcaDownloadJobHandler.RESULT_FILE_NAME, job.getResultFileName());
+
+        File targetDir = FileUtils.createTempDirectory("decompress_job_dwca");
+        ZipUtils.decompressToDir(result.getFile(), targetDir);
+        Assert.assertTrue("occurrence file should exist", new File(targetDir, RecordDwcaWriter.OCCURRENCE_FILE).exists());
+    }
+
+    @Test
+    public void testFailedJob() throws Exception {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(RecordDownloadJobHandler.PARAM_SURVEY_ID, 0);
+        params.put(RecordDownloadJobHandler.PARAM_START_DATE, 0);
+        params.put(RecordDownloadJobHandler.PARAM_END_DATE, System.currentTimeMillis());
+        Job job = jobService.submit(JobType.RECORD_DOWNLOAD, currentUser, params);
+
+        jobService.execute(getSession(), job);
+
+        Assert.assertEquals("job should have failed", JobStatus.FAILED, job.getStatus());
+        Assert.assertEquals("wrong message", "The survey of the download no longer exists.", job.getMessage());
+        Assert.assertNull("a failed job has no result", jobService.getResultFile(job));
+    }
+
+    @Test
+    public void testRecordDownloadJob() throws Exception {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(RecordDownloadJobHandler.PARAM_SURVEY_ID, survey1.getId());
+        params.put(RecordDownloadJobHandler.PARAM_START_DATE, 0);
+        params.put(RecordDownloadJobHandler.PARAM_END_DATE, System.currentTimeMillis());
+        params.put(RecordDownloadJobHandler.PARAM_FORMAT, RecordDownloadJobHandler.FORMAT_XLSX);
+        Job job = jobService.submit(JobType.RECORD_DOWNLOAD, currentUser, params);
+
+        jobService.execute(getSession(), job);
+
+        Assert.assertEquals("job should be complete: " + job.getMessage(), JobStatus.COMPLETE, job.getStatus());
+        Assert.assertTrue("records should be written", job.getProgress() > 0);
+        Assert.assertTrue("result should be a .xlsx", job.getResultFileName().endsWith(".xlsx"));
+        Assert.assertTrue("result should not be empty", jobService.getResultFile(job).getFile().length() > 0);
+    }
+
+    @Test
+    public void testFailStaleJobs() throws Exception {
+        long now = System.currentTimeMillis();
+        Job stale = createRunningJob("node1", new Date(now - 600000));
+        Job live = createRunningJob("node2", new Date(now));
+        Job restarted = createRunningJob("node3", new Date(now));
+        getSession().flush();
+
+        int failed = jobDAO.failStaleJobs(getSession(), new Date(now - 60000), "node3", JobService.MSG_INTERRUPTED);
+        Assert.assertEquals("wrong number of jobs failed", 2, failed);
+
+        getSession().refresh(stale);
+        getSession().refresh(live);
+        getSession().refresh(restarted);
+        Assert.assertEquals("a job without a recent heartbeat should fail", JobStatus.FAILED, stale.getStatus());
+        Assert.assertEquals("wrong message", JobService.MSG_INTERRUPTED, stale.getMessage());
+        Assert.assertEquals("the job of another server should still run", JobStatus.RUNNING, live.getStatus());
+        Assert.assertEquals("the job of the restarted server should fail", JobStatus.FAILED, restarted.getStatus());
+
+        Date heartbeat = new Date((now / 1000 + 1) * 1000);
+        Assert.assertEquals("only running jobs have a heartbeat", 1, jobDAO.updateHeartbeat(getSession(),
+                Arrays.asList(stale.getId(), live.getId()), heartbeat));
+        getSession().refresh(live);
+        Assert.assertEquals("wrong heartbeat", heartbeat.getTime(), live.getHeartbeat().getTime());
+    }
+
+    @Test
+    public void testClaimJob() throws Exception {
+        Job job = jobDAO.save(new Job(JobType.DWCA_DOWNLOAD, currentUser, new HashMap<String, Object>()));
+        getSession().flush();
+
+        Date start = new Date();
+        Assert.assertTrue("a queued job should be claimed", jobDAO.claimJob(getSession(), job.getId(), "node1", start));
+        Assert.assertFalse("a job should only be claimed once", jobDAO.claimJob(getSession(), job.getId(), "node2", start));
+
+        getSession().refresh(job);
+        Assert.assertEquals("wrong status", JobStatus.RUNNING, job.getStatus());
+        Assert.assertEquals("the first server should run the job", "node1", job.getNode());
+        Assert.assertNotNull("the heartbeat should be set", job.getHeartbeat());
+    }
+
+    private Job createRunningJob(String node, Date heartbeat) {
+        Job job = jobDAO.save(new Job(JobType.DWCA_DOWNLOAD, currentUser, new HashMap<String, Object>()));
+        job.setStatus(JobStatus.RUNNING);
+        job.setStartTime(heartbeat);
+        job.setNode(node);
+        job.setHeartbeat(heartbeat);
+        return job;
+    }
+
+    @Test
+    public void testJobStatus() throws Exception {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DwcaDownloadJobHandler.PARAM_SERVER_URL, APPLICATION_URL);
+        Job job = jobService.submit(JobType.DWCA_DOWNLOAD, currentUser, params);
+        jobService.execute(getSession(), job);
+
+        login("admin", "password", new String[] { Role.ADMIN });
+        request.setMethod("GET");
+        request.setRequestURI(JobController.JOB_STATUS_URL);
+        request.setParameter(JobController.PARAM_JOB_ID, job.getId().toString());
+        handle(request, response);
+
+        JSONObject status = JSONObject.fromStringToJSONObject(response.getContentAsString());
+        Assert.assertEquals("wrong job", job.getId().intValue(), status.getInt("id"));
+        Assert.assertEquals("wrong status", JobStatus.COMPLETE.toString(), status.getString("status"));
+        Assert.assertEquals("wrong progress", job.getProgress(), status.getInt("progress"));
+    }
+}
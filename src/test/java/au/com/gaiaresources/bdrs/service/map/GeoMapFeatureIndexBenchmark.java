@@ -0,0 +1,114 @@
+package au.com.gaiaresources.bdrs.service.map;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.db.impl.PaginationFilter;
+import au.com.gaiaresources.bdrs.db.impl.SortOrder;
+import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
+import au.com.gaiaresources.bdrs.model.map.GeoMapFeature;
+import au.com.gaiaresources.bdrs.model.map.GeoMapFeatureDAO;
+import au.com.gaiaresources.bdrs.model.map.GeoMapLayer;
+import au.com.gaiaresources.bdrs.model.map.GeoMapLayerDAO;
+import au.com.gaiaresources.bdrs.model.map.GeoMapLayerSource;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Compares the time taken to find the features under a map click with the
+ * spatial query used by the feature info request and with the
+ * {@link GeoMapFeatureIndex}.
+ * This is not run with the unit tests. Run it with
+ * <pre>
+ * mvn test -Dtest=GeoMapFeatureIndexBenchmark -Dbenchmark.features=20000 -Dbenchmark.clicks=1000
+ * </pre>
+ */
+public class GeoMapFeatureIndexBenchmark extends AbstractTransactionalTest {
+
+    private static final int MAX_RESULTS = 10;
+    private static final double CLICK_BUFFER = 0.01;
+
+    @Autowired
+    private GeoMapFeatureIndex index;
+    @Autowired
+    private GeoMapLayerDAO layerDAO;
+    @Autowired
+    private GeoMapFeatureDAO featureDAO;
+
+    private GeometryBuilder builder = new GeometryBuilder();
+    private Random random = new Random(42);
+
+    @Test
+    public void benchmark() {
+        int featureCount = Integer.getInteger("benchmark.features", 20000);
+        int clickCount = Integer.getInteger("benchmark.clicks", 1000);
+
+        GeoMapLayer layer = new GeoMapLayer();
+        layer.setName("benchmark layer");
+        layer.setLayerSource(GeoMapLayerSource.SHAPEFILE);
+        layerDAO.save(layer);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < featureCount; i++) {
+            GeoMapFeature feature = new GeoMapFeature();
+            feature.setGeometry(builder.createSquare(115 + random.nextDouble() * 5, -35 + random.nextDouble() * 5, 0.05));
+            feature.setLayer(layer);
+            featureDAO.save(feature);
+            if (i % 1000 == 0) {
+                getSession().flush();
+                getSession().clear();
+            }
+        }
+        getSession().flush();
+        getSession().clear();
+        // treat the features as committed so that the index is kept
+        index.clear();
+        index.transactionCompleted();
+        System.out.println(String.format("Created %d features in %d ms", featureCount, System.currentTimeMillis() - start));
+
+        Integer[] layerIds = new Integer[] { layer.getId() };
+        List<Geometry> clicks = new ArrayList<Geometry>(clickCount);
+        for (int i = 0; i < clickCount; i++) {
+            clicks.add(builder.createPoint(115 + random.nextDouble() * 5, -35 + random.nextDouble() * 5).buffer(CLICK_BUFFER));
+        }
+
+        PaginationFilter filter = new PaginationFilter(0, MAX_RESULTS);
+        filter.addSortingCriteria("id", SortOrder.ASCENDING);
+        start = System.currentTimeMillis();
+        List<List<Integer>> queried = new ArrayList<List<Integer>>(clickCount);
+        for (Geometry click : clicks) {
+            List<Integer> ids = new ArrayList<Integer>();
+            for (GeoMapFeature feature : featureDAO.find(layerIds, click, filter).getList()) {
+                ids.add(feature.getId());
+            }
+            queried.add(ids);
+        }
+        long queryMillis = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        List<List<Integer>> indexed = new ArrayList<List<Integer>>(clickCount);
+        for (Geometry click : clicks) {
+            indexed.add(index.find(defaultPortal.getId(), layerIds, click, MAX_RESULTS));
+        }
+        long indexMillis = System.currentTimeMillis() - start;
+
+        int hits = 0;
+        for (List<Integer> ids : queried) {
+            hits += ids.size();
+        }
+        System.out.println("method\tclicks\thits\tms");
+        System.out.println(String.format("query\t%d\t%d\t%d", clickCount, hits, queryMillis));
+        System.out.println(String.format("index\t%d\t%d\t%d", clickCount, hits, indexMillis));
+        System.out.println(String.format("index build %d ms, mean %d us, max %d us",
+                index.getBuildMillis(), index.getMeanQueryMicros(), index.getMaxQueryMicros()));
+
+        Assert.assertEquals(queried, indexed);
+        index.clear();
+    }
+}
@@ -0,0 +1,148 @@
+package au.com.gaiaresources.bdrs.service.map;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.geometry.GeometryBuilder;
+import au.com.gaiaresources.bdrs.model.map.GeoMapFeature;
+import au.com.gaiaresources.bdrs.model.map.GeoMapFeatureDAO;
+import au.com.gaiaresources.bdrs.model.map.GeoMapLayer;
+import au.com.gaiaresources.bdrs.model.map.GeoMapLayerDAO;
+import au.com.gaiaresources.bdrs.model.map.GeoMapLayerSource;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+
+/**
+ * Tests that the {@link GeoMapFeatureIndex} finds the same features as the
+ * spatial query and is discarded when the features of a layer change.
+ */
+public class GeoMapFeatureIndexTest extends AbstractTransactionalTest {
+
+    @Autowired
+    private GeoMapFeatureIndex index;
+    @Autowired
+    private GeoMapLayerDAO layerDAO;
+    @Autowired
+    private GeoMapFeatureDAO featureDAO;
+
+    private GeometryBuilder geomBuilder = new GeometryBuilder();
+
+    private GeoMapLayer layer;
+    private GeoMapLayer otherLayer;
+    private GeoMapFeature[] features = new GeoMapFeature[3];
+
+    @Before
+    public void setup() {
+        index.clear();
+
+        layer = new GeoMapLayer();
+        layer.setName("indexed");
+        layer.setLayerSource(GeoMapLayerSource.SHAPEFILE);
+        layerDAO.save(layer);
+
+        otherLayer = new GeoMapLayer();
+        otherLayer.setName("other");
+        otherLayer.setLayerSource(GeoMapLayerSource.SHAPEFILE);
+        layerDAO.save(otherLayer);
+
+        // overlapping squares along the diagonal
+        for (int i = 0; i < features.length; i++) {
+            features[i] = new GeoMapFeature();
+            features[i].setGeometry(geomBuilder.createSquare(i * 5, i * 5, 10));
+            features[i].setLayer(layer);
+            featureDAO.save(features[i]);
+        }
+        GeoMapFeature other = new GeoMapFeature();
+        other.setGeometry(geomBuilder.createSquare(0, 0, 100));
+        other.setLayer(otherLayer);
+        featureDAO.save(other);
+        getSession().flush();
+
+        // the test data is not committed, treat it as if it was so that
+        // the indexes are kept.
+        index.transactionCompleted();
+    }
+
+    @After
+    public void teardown() {
+        index.clear();
+    }
+
+    @Test
+    public void testFind() {
+        Integer[] layerIds = new Integer[] { layer.getId() };
+
+        // inside the first two squares
+        List<Integer> ids = index.find(getPortalId(), layerIds, geomBuilder.createPoint(7, 7), 10);
+        Assert.assertEquals(Arrays.asList(features[0].getId(), features[1].getId()), ids);
+        Assert.assertEquals(ids, getIds(featureDAO.find(layerIds, geomBuilder.createPoint(7, 7))));
+
+        // the envelope of the buffer intersects the first square but the buffer does not
+        ids = index.find(getPortalId(), layerIds, geomBuilder.createPoint(-0.9, -0.9).buffer(1), 10);
+        Assert.assertTrue(ids.isEmpty());
+
+        ids = index.find(getPortalId(), layerIds, geomBuilder.createSquare(0, 0, 30), 2);
+        Assert.assertEquals(Arrays.asList(features[0].getId(), features[1].getId()), ids);
+
+        ids = index.find(getPortalId(), new Integer[] { layer.getId(), otherLayer.getId() }, geomBuilder.createPoint(50, 50), 10);
+        Assert.assertEquals(1, ids.size());
+    }
+
+    @Test
+    public void testIndexReused() {
+        Integer[] layerIds = new Integer[] { layer.getId() };
+        long misses = index.getMissCount();
+        long hits = index.getHitCount();
+
+        index.find(getPortalId(), layerIds, geomBuilder.createPoint(7, 7), 10);
+        Assert.assertEquals(misses + 1, index.getMissCount());
+        Assert.assertEquals(1, index.size());
+
+        index.find(getPortalId(), layerIds, geomBuilder.createPoint(12, 12), 10);
+        Assert.assertEquals(misses + 1, index.getMissCount());
+        Assert.assertEquals(hits + 1, index.getHitCount());
+        Assert.assertEquals(2, index.getQueryCount());
+    }
+
+    @Test
+    public void testFeatureChangeInvalidates() {
+        Integer[] layerIds = new Integer[] { layer.getId() };
+        Assert.assertEquals(2, index.find(getPortalId(), layerIds, geomBuilder.createPoint(7, 7), 10).size());
+        Assert.assertEquals(1, index.size());
+
+        long invalidations = index.getInvalidationCount();
+        features[0].setGeometry(geomBuilder.createSquare(100, 100, 10));
+        featureDAO.update(features[0]);
+        getSession().flush();
+
+        Assert.assertTrue(index.getInvalidationCount() > invalidations);
+        Assert.assertEquals(0, index.size());
+        // the changes of this transaction are visible to it but not kept
+        Assert.assertEquals(Arrays.asList(features[1].getId()),
+                index.find(getPortalId(), layerIds, geomBuilder.createPoint(7, 7), 10));
+        Assert.assertEquals(0, index.size());
+
+        index.transactionCompleted();
+        Assert.assertEquals(Arrays.asList(features[0].getId()),
+                index.find(getPortalId(), layerIds, geomBuilder.createPoint(105, 105), 10));
+        Assert.assertEquals(1, index.size());
+    }
+
+    private Integer getPortalId() {
+        return defaultPortal.getId();
+    }
+
+    private List<Integer> getIds(List<GeoMapFeature> list) {
+        Integer[] ids = new Integer[list.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = list.get(i).getId();
+        }
+        Arrays.sort(ids);
+        return Arrays.asList(ids);
+    }
+}
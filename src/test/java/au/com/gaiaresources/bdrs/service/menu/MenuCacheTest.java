@@ -0,0 +1,129 @@
+package au.com.gaiaresources.bdrs.service.menu;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import au.com.gaiaresources.bdrs.model.menu.MenuItem;
+import au.com.gaiaresources.bdrs.model.survey.Survey;
+import au.com.gaiaresources.bdrs.model.survey.SurveyDAO;
+import au.com.gaiaresources.bdrs.model.theme.Theme;
+import au.com.gaiaresources.bdrs.model.theme.ThemeDAO;
+import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.model.user.UserDAO;
+import au.com.gaiaresources.bdrs.test.AbstractTransactionalTest;
+
+/**
+ * Tests that the {@link MenuCache} answers repeated requests from the cache
+ * and discards the menus when the surveys or users change.
+ */
+public class MenuCacheTest extends AbstractTransactionalTest {
+
+    @Autowired
+    private MenuCache menuCache;
+    @Autowired
+    private SurveyDAO surveyDAO;
+    @Autowired
+    private UserDAO userDAO;
+    @Autowired
+    private ThemeDAO themeDAO;
+
+    private Survey survey;
+    private User admin;
+
+    @Before
+    public void setup() {
+        menuCache.invalidateAll();
+
+        survey = new Survey();
+        survey.setName("menu survey");
+        survey.setDescription("menu survey");
+        survey.setActive(true);
+        survey.setPublic(true);
+        survey.setStartDate(new Date());
+        surveyDAO.save(survey);
+        admin = userDAO.getUser("admin");
+        getSession().flush();
+
+        // the test data is not committed, treat it as if it was so that
+        // the menus are kept.
+        menuCache.transactionCompleted();
+    }
+
+    @After
+    public void teardown() {
+        menuCache.invalidateAll();
+    }
+
+    @Test
+    public void testMenuCached() {
+        long hits = menuCache.getHitCount();
+        long saved = menuCache.getSavedQueryCount();
+
+        List<MenuItem> anonymous = menuCache.getMenu(defaultPortal, null);
+        List<MenuItem> user = menuCache.getMenu(defaultPortal, admin);
+        Assert.assertNotSame(anonymous, user);
+        Assert.assertEquals(2, menuCache.size());
+
+        Assert.assertSame(anonymous, menuCache.getMenu(defaultPortal, null));
+        Assert.assertSame(user, menuCache.getMenu(defaultPortal, admin));
+        Assert.assertEquals(hits + 2, menuCache.getHitCount());
+        // at least the map and survey queries of each menu
+        Assert.assertTrue(menuCache.getSavedQueryCount() >= saved + 4);
+        Assert.assertTrue(menuCache.getHitRatio() > 0);
+    }
+
+    @Test
+    public void testSurveyChangeInvalidates() {
+        List<MenuItem> menu = menuCache.getMenu(defaultPortal, admin);
+        Assert.assertSame(menu, menuCache.getMenu(defaultPortal, admin));
+
+        Survey s = surveyDAO.getSurvey(survey.getId());
+        s.setName("renamed menu survey");
+        surveyDAO.updateSurvey(s);
+        getSession().flush();
+
+        List<MenuItem> changed = menuCache.getMenu(defaultPortal, admin);
+        Assert.assertNotSame(menu, changed);
+        // not kept until the transaction that changed the survey completes
+        Assert.assertNotSame(changed, menuCache.getMenu(defaultPortal, admin));
+        Assert.assertEquals(0, menuCache.size());
+
+        menuCache.transactionCompleted();
+        List<MenuItem> kept = menuCache.getMenu(defaultPortal, admin);
+        Assert.assertSame(kept, menuCache.getMenu(defaultPortal, admin));
+    }
+
+    @Test
+    public void testUserChangeInvalidates() {
+        List<MenuItem> anonymous = menuCache.getMenu(defaultPortal, null);
+        List<MenuItem> menu = menuCache.getMenu(defaultPortal, admin);
+
+        User u = userDAO.getUser(admin.getId());
+        u.setFirstName("renamed");
+        userDAO.updateUser(u);
+        getSession().flush();
+
+        Assert.assertNotSame(menu, menuCache.getMenu(defaultPortal, admin));
+        // the menus of other users are kept
+        Assert.assertSame(anonymous, menuCache.getMenu(defaultPortal, null));
+    }
+
+    @Test
+    public void testActiveTheme() {
+        Theme expected = themeDAO.getActiveTheme(defaultPortal);
+        long hits = menuCache.getHitCount();
+
+        Theme theme = menuCache.getActiveTheme(defaultPortal);
+        Assert.assertEquals(hits, menuCache.getHitCount());
+        Assert.assertEquals(expected, menuCache.getActiveTheme(defaultPortal));
+        Assert.assertEquals(theme, menuCache.getActiveTheme(defaultPortal));
+        Assert.assertEquals(hits + 2, menuCache.getHitCount());
+        Assert.assertNull(menuCache.getActiveTheme(null));
+    }
+}
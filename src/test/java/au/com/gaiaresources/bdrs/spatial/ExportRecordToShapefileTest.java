@@ -1,5 +1,6 @@
 package au.com.gaiaresources.bdrs.spatial;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
@@ -7,10 +8,14 @@ import java.util.List;
 import junit.framework.Assert;
 
 import org.apache.log4j.Logger;
+import org.hibernate.Query;
 import org.junit.Test;
 
+import au.com.gaiaresources.bdrs.db.ScrollableResults;
+import au.com.gaiaresources.bdrs.db.impl.StreamingScrollableResults;
 import au.com.gaiaresources.bdrs.model.record.Record;
 import au.com.gaiaresources.bdrs.model.user.User;
+import au.com.gaiaresources.bdrs.util.FileUtils;
 
 public class ExportRecordToShapefileTest extends AbstractShapefileTest {
 	
@@ -160,6 +165,49 @@ public class ExportRecordToShapefileTest extends AbstractShapefileTest {
         testExportMultiSurveyMultiCensus(nonOwner);
     }
 
+    @Test
+    public void testStreamExportSingleSurvey() throws Exception {
+        User accessor = owner;
+        ShapeFileWriter writer = new ShapeFileWriter(SERVER_URL);
+        
+        Query q = getSession().createQuery("from Record r where r.id in (:ids) order by r.id");
+        q.setParameterList("ids", new Integer[] { r1.getId(), r2.getId(), r3.getId(), r4.getId() });
+        ScrollableResults<Record> sc = new StreamingScrollableResults<Record>(q, getSession());
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // r3 belongs to the second survey and should be filtered out.
+        Assert.assertTrue(writer.exportRecords(sc, getSession(), survey, accessor, out));
+        
+        File exportedFile = File.createTempFile("testStreamExportSingleSurvey", ".zip");
+        exportedFile.deleteOnExit();
+        FileUtils.writeBytesToFile(out.toByteArray(), exportedFile);
+        
+        ShapeFileReader reader = new ShapeFileReader(exportedFile, true);
+        
+        Assert.assertEquals(1, reader.getSurveyIdList().size());
+        Assert.assertEquals(survey.getId(), reader.getSurveyIdList().get(0));
+        Assert.assertEquals(2, reader.getCensusMethodIdList().size());
+        
+        assertFeatureCount(reader.getFeatureIterator(), 3);
+        
+        assertRecord(r1, reader, accessor);
+        assertRecord(r2, reader, accessor);
+        assertRecord(r4, reader, accessor);
+    }
+    
+    @Test
+    public void testStreamExportNoRecords() throws Exception {
+        ShapeFileWriter writer = new ShapeFileWriter(SERVER_URL);
+        
+        Query q = getSession().createQuery("from Record r where r.id = :id");
+        q.setParameter("id", -1);
+        ScrollableResults<Record> sc = new StreamingScrollableResults<Record>(q, getSession());
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertFalse(writer.exportRecords(sc, getSession(), null, owner, out));
+        Assert.assertEquals(0, out.size());
+    }
+
     @Override
     protected String getServerURL() {
         return SERVER_URL;